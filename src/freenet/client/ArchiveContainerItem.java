@@ -0,0 +1,146 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.FreenetURI;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.NotPersistentBucket;
+
+/**
+ * A whole container in the archive cache, with an index of the files in it.
+ * Files are read straight out of the container when they are asked for, so a
+ * large container costs its own size in the cache rather than that of every
+ * file unpacked from it.
+ */
+class ArchiveContainerItem extends ArchiveStoreItem {
+
+	private final MultiReaderBucket mb;
+	private final Bucket bucket;
+	private final ArchiveIndex index;
+	private final long spaceUsed;
+
+	/**
+	 * @param key The key of the archive.
+	 * @param container The uncompressed container. Freed when the item is dropped and
+	 * nobody is reading any of its files.
+	 * @param index The index of container.
+	 */
+	ArchiveContainerItem(ArchiveStoreContext ctx, FreenetURI key, Bucket container, ArchiveIndex index) {
+		super(new ArchiveKey(key, ArchiveManager.CONTAINER_NAME), ctx);
+		mb = new MultiReaderBucket(container);
+		bucket = mb.getReaderBucket();
+		container.setReadOnly();
+		this.index = index;
+		spaceUsed = container.size();
+	}
+
+	ArchiveIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get a file from the container. The container is not freed until the returned
+	 * bucket is.
+	 * @return The file's data, or null if it is not in the container or the item has
+	 * been closed.
+	 */
+	Bucket getMember(String name) {
+		ArchiveIndex.Member member = index.get(name);
+		if(member == null) return null;
+		return getMember(member);
+	}
+
+	/**
+	 * Get a file from the container, whether or not it is in the index.
+	 * @return The file's data, or null if the item has been closed.
+	 */
+	Bucket getMember(ArchiveIndex.Member member) {
+		Bucket reader = mb.getReaderBucket();
+		if(reader == null) return null;
+		return new MemberBucket(reader, member);
+	}
+
+	@Override
+	long spaceUsed() {
+		return spaceUsed;
+	}
+
+	@Override
+	void innerClose() {
+		if(Logger.shouldLog(Logger.MINOR, this))
+			Logger.minor(this, "innerClose(): "+this+" : "+bucket);
+		bucket.free();
+	}
+
+	@Override
+	Bucket getDataOrThrow() throws ArchiveFailureException {
+		return bucket;
+	}
+
+	@Override
+	Bucket getReaderBucket() throws ArchiveFailureException {
+		return mb.getReaderBucket();
+	}
+
+	/** A read-only view of one file in the container. */
+	private static class MemberBucket implements NotPersistentBucket {
+
+		private final Bucket container;
+		private final ArchiveIndex.Member member;
+
+		MemberBucket(Bucket container, ArchiveIndex.Member member) {
+			this.container = container;
+			this.member = member;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			return ArchiveIndex.open(container, member);
+		}
+
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		public String getName() {
+			return container.getName()+':'+member.name;
+		}
+
+		public long size() {
+			return member.size;
+		}
+
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		public void setReadOnly() {
+			// Already read only
+		}
+
+		public void free() {
+			container.free();
+		}
+
+		public void storeTo(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void removeFrom(ObjectContainer container) {
+			// Valid no-op if we haven't been stored.
+		}
+
+		public Bucket createShadow() throws IOException {
+			return null;
+		}
+	}
+
+}
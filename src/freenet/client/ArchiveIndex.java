@@ -0,0 +1,424 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.tools.tar.TarEntry;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.io.Closer;
+
+/**
+ * Where each file is in an uncompressed ZIP or TAR container, so that a single
+ * file can be read straight out of the container rather than unpacking all of
+ * them. A ZIP index is built from the central directory at the end of the
+ * archive; a TAR index by one pass over the headers, skipping the data.
+ */
+final class ArchiveIndex {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ArchiveIndex.class);
+	}
+
+	/** A file in the container. */
+	static final class Member {
+		final String name;
+		/** Offset of the (possibly deflated) data in the container */
+		final long offset;
+		/** Length of the data in the container */
+		final long storedSize;
+		/** Length of the file */
+		final long size;
+		final boolean deflated;
+
+		Member(String name, long offset, long storedSize, long size, boolean deflated) {
+			this.name = name;
+			this.offset = offset;
+			this.storedSize = storedSize;
+			this.size = size;
+			this.deflated = deflated;
+		}
+
+		@Override
+		public String toString() {
+			return name + '@' + offset + ':' + storedSize + (deflated ? " deflated to " + size : "");
+		}
+	}
+
+	private static final int TAR_BLOCK = 512;
+	private static final int ZIP_LOCAL_HEADER = 0x04034b50;
+	private static final int ZIP_CENTRAL_HEADER = 0x02014b50;
+	private static final int ZIP_END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+	private static final int ZIP_END_LENGTH = 22;
+	private static final int ZIP_MAX_COMMENT = 65535;
+
+	private final HashMap<String, Member> members = new HashMap<String, Member>();
+
+	private ArchiveIndex() {
+		// Use readZip() or scanTar()
+	}
+
+	Member get(String name) {
+		return members.get(name);
+	}
+
+	Set<String> names() {
+		return members.keySet();
+	}
+
+	int size() {
+		return members.size();
+	}
+
+	/**
+	 * Remove the files which are bigger than a limit, so that they can't be read from
+	 * the container.
+	 * @return The files removed.
+	 */
+	ArrayList<Member> removeLargerThan(long maxSize) {
+		ArrayList<Member> removed = new ArrayList<Member>();
+		for(Iterator<Member> it = members.values().iterator(); it.hasNext();) {
+			Member member = it.next();
+			if(member.size > maxSize) {
+				removed.add(member);
+				it.remove();
+			}
+		}
+		return removed;
+	}
+
+	/** Add a member unless one with the same name is already there, like the streaming extractor. */
+	private void add(Member member, Object container) {
+		if(member.name.length() == 0)
+			return;
+		if(members.containsKey(member.name)) {
+			Logger.error(this, "Duplicate key "+member.name+" in archive "+container);
+			return;
+		}
+		if(logMINOR) Logger.minor(this, "Indexed "+member);
+		members.put(member.name, member);
+	}
+
+	/**
+	 * Index a ZIP container from its central directory.
+	 * @return The index, or null if the archive uses features we don't index (ZIP64, or
+	 * no central directory where we expect one), in which case it should be streamed.
+	 * @throws ArchiveFailureException If a file is encrypted or compressed with a method
+	 * other than deflate.
+	 */
+	static ArchiveIndex readZip(Bucket container) throws IOException, ArchiveFailureException {
+		long length = container.size();
+		int tailLength = (int) Math.min(length, ZIP_END_LENGTH + ZIP_MAX_COMMENT);
+		byte[] tail = new byte[tailLength];
+		InputStream is = container.getInputStream();
+		try {
+			skipFully(is, length - tailLength);
+			new DataInputStream(is).readFully(tail);
+		} finally {
+			is.close();
+		}
+		int end = -1;
+		for(int i = tailLength - ZIP_END_LENGTH; i >= 0; i--) {
+			if(readInt(tail, i) == ZIP_END_OF_CENTRAL_DIRECTORY) {
+				end = i;
+				break;
+			}
+		}
+		if(end < 0) return null;
+		int entries = readShort(tail, end + 10);
+		long directoryLength = readInt(tail, end + 12) & 0xFFFFFFFFL;
+		long directoryOffset = readInt(tail, end + 16) & 0xFFFFFFFFL;
+		long endOffset = length - tailLength + end;
+		if(entries == 0xFFFF || directoryOffset == 0xFFFFFFFFL || directoryOffset + directoryLength > endOffset
+				|| directoryLength > Integer.MAX_VALUE)
+			return null;
+
+		byte[] directory = new byte[(int) directoryLength];
+		is = container.getInputStream();
+		try {
+			skipFully(is, directoryOffset);
+			new DataInputStream(is).readFully(directory);
+		} finally {
+			is.close();
+		}
+
+		// Entries in the central directory: name, flags, method, sizes, local header offset.
+		ArrayList<long[]> headers = new ArrayList<long[]>(entries);
+		ArrayList<String> names = new ArrayList<String>(entries);
+		int ptr = 0;
+		for(int i = 0; i < entries; i++) {
+			if(ptr + 46 > directory.length || readInt(directory, ptr) != ZIP_CENTRAL_HEADER)
+				return null;
+			int flags = readShort(directory, ptr + 8);
+			int method = readShort(directory, ptr + 10);
+			long storedSize = readInt(directory, ptr + 20) & 0xFFFFFFFFL;
+			long size = readInt(directory, ptr + 24) & 0xFFFFFFFFL;
+			int nameLength = readShort(directory, ptr + 28);
+			int extraLength = readShort(directory, ptr + 30);
+			int commentLength = readShort(directory, ptr + 32);
+			long localOffset = readInt(directory, ptr + 42) & 0xFFFFFFFFL;
+			if(ptr + 46 + nameLength > directory.length)
+				return null;
+			String name = new String(directory, ptr + 46, nameLength, "UTF-8");
+			ptr += 46 + nameLength + extraLength + commentLength;
+			if(name.endsWith("/")) continue; // Directory
+			if(storedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL)
+				return null; // ZIP64
+			if((flags & 1) != 0)
+				throw new ArchiveFailureException("Encrypted file in ZIP archive: "+name);
+			if(method != 0 && method != 8)
+				throw new ArchiveFailureException("Unsupported compression method "+method+" for "+name+" in ZIP archive");
+			headers.add(new long[] { localOffset, storedSize, size, method, names.size() });
+			names.add(name);
+		}
+
+		// The data starts after the local header, whose extra field may differ from the central one.
+		// Read the local headers in order, so this is one pass over the container.
+		Collections.sort(headers, new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+		ArchiveIndex index = new ArchiveIndex();
+		byte[] local = new byte[30];
+		is = container.getInputStream();
+		try {
+			DataInputStream dis = new DataInputStream(is);
+			long pos = 0;
+			for(long[] header : headers) {
+				long localOffset = header[0];
+				if(localOffset < pos || localOffset + local.length > directoryOffset)
+					return null;
+				skipFully(is, localOffset - pos);
+				dis.readFully(local);
+				pos = localOffset + local.length;
+				if(readInt(local, 0) != ZIP_LOCAL_HEADER)
+					return null;
+				long offset = pos + readShort(local, 26) + readShort(local, 28);
+				if(offset + header[1] > directoryOffset)
+					return null;
+				index.add(new Member(names.get((int) header[4]), offset, header[1], header[2], header[3] == 8), container);
+			}
+		} finally {
+			is.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Index a TAR container with one pass over its headers.
+	 * @throws ArchiveFailureException If the archive is truncated or a header is invalid.
+	 */
+	static ArchiveIndex scanTar(Bucket container) throws IOException, ArchiveFailureException {
+		ArchiveIndex index = new ArchiveIndex();
+		byte[] header = new byte[TAR_BLOCK];
+		InputStream is = container.getInputStream();
+		try {
+			DataInputStream dis = new DataInputStream(is);
+			long pos = 0;
+			long length = container.size();
+			String longName = null;
+			while(pos + TAR_BLOCK <= length) {
+				dis.readFully(header);
+				pos += TAR_BLOCK;
+				if(isZero(header)) break; // End of archive
+				TarEntry entry;
+				try {
+					entry = new TarEntry(header);
+				} catch (RuntimeException e) {
+					throw new ArchiveFailureException("Invalid TAR header at "+(pos - TAR_BLOCK)+": "+e);
+				}
+				long size = entry.getSize();
+				long padded = (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+				if(size < 0 || pos + size > length)
+					throw new ArchiveFailureException("TAR archive truncated: "+entry.getName()+" needs "+size+" bytes at "+pos+" of "+length);
+				if(entry.isGNULongNameEntry()) {
+					if(size > Integer.MAX_VALUE)
+						throw new ArchiveFailureException("Invalid TAR long name of "+size+" bytes");
+					byte[] buf = new byte[(int) size];
+					dis.readFully(buf);
+					skipFully(is, padded - size);
+					pos += padded;
+					int nameLength = 0;
+					while(nameLength < buf.length && buf[nameLength] != 0) nameLength++;
+					longName = new String(buf, 0, nameLength, "UTF-8");
+					continue;
+				}
+				String name = longName != null ? longName : entry.getName();
+				longName = null;
+				byte type = header[156];
+				// Directories, and PAX extended headers, are not files.
+				if(!(entry.isDirectory() || type == 'x' || type == 'g'))
+					index.add(new Member(name, pos, size, size, false), container);
+				skipFully(is, padded);
+				pos += padded;
+			}
+		} finally {
+			is.close();
+		}
+		return index;
+	}
+
+	/**
+	 * Open a member's data. A deflated member is inflated to no more than its declared
+	 * size: reading past that throws a SizeExceededException.
+	 * @param container The container this index was built from.
+	 */
+	static InputStream open(Bucket container, final Member member) throws IOException {
+		InputStream is = container.getInputStream();
+		try {
+			skipFully(is, member.offset);
+		} catch (IOException e) {
+			is.close();
+			throw e;
+		}
+		InputStream data = new LimitedInputStream(is, member.storedSize, null);
+		if(!member.deflated) return data;
+		// Raw deflate needs an extra dummy byte at the end of the input, see Inflater(boolean).
+		data = new SequenceInputStream(data, new ByteArrayInputStream(new byte[1]));
+		return new LimitedInputStream(new InflaterInputStream(data, new Inflater(true)) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inf.end();
+				}
+			}
+		}, member.size, member);
+	}
+
+	/**
+	 * Copy a member's data out of the container.
+	 * @throws ArchiveFailureException If a deflated member inflates to more than its
+	 * declared size.
+	 */
+	static void copy(Bucket container, Member member, Bucket output) throws IOException, ArchiveFailureException {
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = open(container, member);
+			os = output.getOutputStream();
+			byte[] buf = new byte[32768];
+			int x;
+			while((x = is.read(buf)) > 0)
+				os.write(buf, 0, x);
+			os.close();
+			os = null;
+		} catch (SizeExceededException e) {
+			throw new ArchiveFailureException(e.getMessage(), e);
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+	}
+
+	static void skipFully(InputStream is, long bytes) throws IOException {
+		while(bytes > 0) {
+			long skipped = is.skip(bytes);
+			if(skipped <= 0) {
+				// skip() may stop early without reaching the end
+				if(is.read() < 0) throw new EOFException();
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	private static boolean isZero(byte[] buf) {
+		for(byte b : buf)
+			if(b != 0) return false;
+		return true;
+	}
+
+	private static int readShort(byte[] buf, int offset) {
+		return (buf[offset] & 0xFF) | ((buf[offset+1] & 0xFF) << 8);
+	}
+
+	private static int readInt(byte[] buf, int offset) {
+		return readShort(buf, offset) | (readShort(buf, offset+2) << 16);
+	}
+
+	/** Thrown when a deflated member inflates to more than its declared size. */
+	static class SizeExceededException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		SizeExceededException(Member member) {
+			super("File inflates to more than its declared size: "+member);
+		}
+	}
+
+	/** Returns EOF after a given number of bytes. */
+	private static class LimitedInputStream extends FilterInputStream {
+
+		private long remaining;
+		/** If set, there must be no more data after length bytes. */
+		private final Member checkEnd;
+
+		LimitedInputStream(InputStream is, long length, Member checkEnd) {
+			super(is);
+			remaining = length;
+			this.checkEnd = checkEnd;
+		}
+
+		private int end() throws IOException {
+			if(checkEnd != null && in.read() >= 0)
+				throw new SizeExceededException(checkEnd);
+			return -1;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(remaining <= 0) return end();
+			int x = in.read();
+			if(x >= 0) remaining--;
+			return x;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(remaining <= 0) return end();
+			int x = in.read(buf, offset, (int) Math.min(length, remaining));
+			if(x > 0) remaining -= x;
+			return x;
+		}
+
+		@Override
+		public long skip(long bytes) throws IOException {
+			long x = in.skip(Math.min(bytes, remaining));
+			if(x > 0) remaining -= x;
+			return x;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+}
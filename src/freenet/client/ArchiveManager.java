@@ -6,6 +6,7 @@ package freenet.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -39,12 +40,18 @@ import freenet.support.io.Closer;
  * files open due to the limitations of the java.util.zip API)
  * - Keep up to Y bytes (after padding and overheads) of decoded data on disk
  * (the OS is quite capable of determining what to keep in actual RAM)
+ * - Where possible, keep the whole container, uncompressed, with an index of
+ * where each file is in it, rather than unpacking every file. Files are then
+ * read out of the container when they are asked for. The same cache, and the
+ * same byte limit, serves persistent and transient requests.
  *
  * Always take the lock on ArchiveStoreContext before the lock on ArchiveManager, NOT the other way around.
  */
 public class ArchiveManager {
 
 	public static final String METADATA_NAME = ".metadata";
+	/** Name under which a whole container is cached. Not a valid file name, the index ignores empty names. */
+	static final String CONTAINER_NAME = "";
 	private static boolean logMINOR;
 
 	public enum ARCHIVE_TYPE {
@@ -207,10 +214,20 @@ public class ArchiveManager {
 		ArchiveStoreItem asi = null;
 		synchronized (this) {
 			asi = storedData.get(k);
-			if(asi == null) return null;
+			if(asi == null) {
+				// Maybe we have the whole container
+				k = new ArchiveKey(key, CONTAINER_NAME);
+				asi = storedData.get(k);
+				if(asi == null) return null;
+			}
 			// Promote to top of LRU
 			storedData.push(k, asi);
 		}
+		if(asi instanceof ArchiveContainerItem) {
+			Bucket data = ((ArchiveContainerItem)asi).getMember(filename);
+			if(logMINOR) Logger.minor(this, data == null ? "Not in container" : "Found data in container");
+			return data;
+		}
 		if(logMINOR) Logger.minor(this, "Found data");
 		return asi.getReaderBucket();
 	}
@@ -290,20 +307,10 @@ public class ArchiveManager {
 
 		InputStream is = null;
 		try {
-			if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
-				if(logMINOR) Logger.minor(this, "No compression");
-				is = data.getInputStream();
-			} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
-				if(logMINOR) Logger.minor(this, "dealing with BZIP2");
-				is = new CBZip2InputStream(data.getInputStream());
-			} else if(ctype == COMPRESSOR_TYPE.GZIP) {
-				if(logMINOR) Logger.minor(this, "dealing with GZIP");
-				is = new GZIPInputStream(data.getInputStream());
-			} else if(ctype == COMPRESSOR_TYPE.LZMA) {
-				if(logMINOR) Logger.minor(this, "dealing with LZMA");
-				is = new LzmaInputStream(data.getInputStream());
-			}
+			if(extractIndexed(key, archiveType, ctype, data, ctx, element, callback, gotElement, throwAtExit, container, context))
+				return;
 
+			is = openContainer(archiveType, ctype, data);
 			if(ARCHIVE_TYPE.ZIP == archiveType)
 				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
@@ -317,6 +324,134 @@ public class ArchiveManager {
 	}
 	}
 
+	/** Open the container, decompressing it if necessary. */
+	private InputStream openContainer(ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, Bucket data) throws IOException {
+		if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
+			if(logMINOR) Logger.minor(this, "No compression");
+			return data.getInputStream();
+		} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
+			if(logMINOR) Logger.minor(this, "dealing with BZIP2");
+			return new CBZip2InputStream(data.getInputStream());
+		} else if(ctype == COMPRESSOR_TYPE.GZIP) {
+			if(logMINOR) Logger.minor(this, "dealing with GZIP");
+			return new GZIPInputStream(data.getInputStream());
+		} else if(ctype == COMPRESSOR_TYPE.LZMA) {
+			if(logMINOR) Logger.minor(this, "dealing with LZMA");
+			return new LzmaInputStream(data.getInputStream());
+		}
+		throw new IOException("Unknown compression "+ctype);
+	}
+
+	/**
+	 * Cache the whole container, uncompressed, with an index of the files in it, rather
+	 * than unpacking every file.
+	 * @return False if the container is too big to cache whole, or uses ZIP features we
+	 * don't index. The caller must unpack it instead. Nothing has been cached or called.
+	 */
+	private boolean extractIndexed(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, Bucket data, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException, IOException {
+		if(ARCHIVE_TYPE.ZIP != archiveType && ARCHIVE_TYPE.TAR != archiveType) return false;
+		boolean compressed = ctype != null && ARCHIVE_TYPE.TAR == archiveType;
+		if(!compressed && data.size() > maxCachedData) return false;
+		Bucket copy = tempBucketFactory.makeBucket(compressed ? -1 : data.size());
+		ArchiveContainerItem item = null;
+		ArrayList<ArchiveIndex.Member> tooBig;
+		try {
+			InputStream is = null;
+			OutputStream os = null;
+			try {
+				is = openContainer(archiveType, ctype, data);
+				os = copy.getOutputStream();
+				byte[] buf = new byte[32768];
+				long written = 0;
+				int x;
+				while((x = is.read(buf)) > 0) {
+					written += x;
+					if(written > maxCachedData) {
+						if(logMINOR) Logger.minor(this, "Container too big to cache whole: "+key);
+						return false;
+					}
+					os.write(buf, 0, x);
+				}
+				os.close();
+				os = null;
+			} finally {
+				Closer.close(is);
+				Closer.close(os);
+			}
+			ArchiveIndex index;
+			if(ARCHIVE_TYPE.ZIP == archiveType) {
+				index = ArchiveIndex.readZip(copy);
+				if(index == null) {
+					if(logMINOR) Logger.minor(this, "Can't index ZIP, unpacking it instead: "+key);
+					return false;
+				}
+			} else
+				index = ArchiveIndex.scanTar(copy);
+			// Like the streaming extractors, don't let anyone read files over the size limit from the container.
+			tooBig = index.removeLargerThan(maxArchivedFileSize);
+			if(logMINOR) Logger.minor(this, "Indexed "+index.size()+" files in "+copy.size()+" bytes for "+key+", "+tooBig.size()+" too big");
+			item = new ArchiveContainerItem(ctx, key, copy, index);
+		} finally {
+			if(item == null) copy.free();
+		}
+
+		// Get the element before adding the container to the LRU, otherwise it may be deleted before it reaches the client.
+		// It is extracted even if it is over the size limit, because it was asked for.
+		Bucket matchBucket = null;
+		if(element != null) {
+			ArchiveIndex.Member member = item.getIndex().get(element);
+			if(member == null) {
+				for(ArchiveIndex.Member m : tooBig)
+					if(m.name.equals(element)) member = m;
+			}
+			if(member != null && member.deflated) {
+				// Inflate it now, so that if it is bigger than it says, we fail here.
+				matchBucket = tempBucketFactory.makeBucket(member.size);
+				boolean success = false;
+				try {
+					ArchiveIndex.copy(copy, member, matchBucket);
+					success = true;
+				} finally {
+					if(!success) {
+						matchBucket.free();
+						item.close();
+					}
+				}
+			} else if(member != null)
+				matchBucket = item.getMember(member);
+		}
+		ArchiveStoreItem oldItem;
+		synchronized(this) {
+			oldItem = storedData.get(item.key);
+			storedData.push(item.key, item);
+			cachedData += item.spaceUsed();
+			if(oldItem != null) {
+				cachedData -= oldItem.spaceUsed();
+				if(logMINOR) Logger.minor(this, "Dropping old container from archive cache: "+oldItem);
+				oldItem.close();
+			}
+		}
+		if(matchBucket != null) {
+			callback.gotBucket(matchBucket, container, context);
+			gotElement.value = true;
+		}
+		boolean gotMetadata = item.getIndex().get(METADATA_NAME) != null;
+		for(ArchiveIndex.Member member : tooBig) {
+			if(member.name.equals(METADATA_NAME)) gotMetadata = true;
+			addErrorElement(ctx, key, member.name, "File too big: "+member.size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+		}
+		// If no metadata, generate some
+		if(!gotMetadata)
+			generateMetadata(ctx, key, item.getIndex().names(), gotElement, element, callback, container, context);
+		trimStoredData();
+
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+
+		if((!gotElement.value) && element != null)
+			callback.notInArchive(container, context);
+		return true;
+	}
+
 	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarInputStream tarIS = null;
@@ -6,6 +6,8 @@ package freenet.client;
 import java.util.HashMap;
 import java.util.Set;
 
+import freenet.client.async.BatchFetchCallback;
+import freenet.client.async.BatchFetcher;
 import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientPutCallback;
@@ -78,6 +80,19 @@ public interface HighLevelSimpleClient {
 	 */
 	public ClientGetter fetch(FreenetURI uri, long maxSize, RequestClient context, ClientGetCallback callback, FetchContext fctx, short priorityClass) throws FetchException;
 
+	/**
+	 * Non-blocking fetch of many keys as a single request. Much cheaper than calling fetch() for
+	 * each key when polling a large number of keys. Will return immediately, the callback will be
+	 * called as each key succeeds or fails.
+	 * @param uris The keys to fetch. USKs are fetched at the edition given.
+	 * @param context Must not be persistent.
+	 * @param fctx Fetch context, shared by all the keys.
+	 * @return The BatchFetcher object, which will have been started already. Cancel it to stop
+	 * fetching any keys which haven't completed.
+	 * @throws FetchException If one of the URIs is invalid.
+	 */
+	public BatchFetcher fetchBatch(FreenetURI[] uris, RequestClient context, BatchFetchCallback callback, FetchContext fctx, short prio) throws FetchException;
+
 	/**
 	 * Blocking insert.
 	 * @param filenameHint If set, insert a single-file manifest containing only this file, under the given filename.
@@ -9,6 +9,8 @@ import java.util.Set;
 
 import com.db4o.ObjectContainer;
 
+import freenet.client.async.BatchFetchCallback;
+import freenet.client.async.BatchFetcher;
 import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientPutCallback;
@@ -177,6 +179,12 @@ public class HighLevelSimpleClientImpl implements HighLevelSimpleClient, Request
 		return get;
 	}
 
+	public BatchFetcher fetchBatch(FreenetURI[] uris, RequestClient clientContext, BatchFetchCallback callback, FetchContext fctx, short prio) throws FetchException {
+		BatchFetcher batch = new BatchFetcher(uris, fctx, prio, clientContext, callback);
+		batch.start(core.clientContext);
+		return batch;
+	}
+
 	public FreenetURI insert(InsertBlock insert, boolean getCHKOnly, String filenameHint) throws InsertException {
 		return insert(insert, getCHKOnly, filenameHint, priorityClass);
 	}
@@ -48,6 +48,10 @@ public class InsertContext implements Cloneable {
 	public int extraInsertsSingleBlock;
 	/** Number of extra inserts for a block inserted above a splitfile. */
 	public int extraInsertsSplitfileHeaderBlock;
+	/** If true, a manifest insert doesn't insert files and containers which have already been
+	 * inserted with the same settings, it redirects to their existing keys. Transient inserts only.
+	 * @see freenet.client.async.InsertedDataCache */
+	public boolean reuseInsertedData;
 
 	public InsertContext(
 			int maxRetries, int rnfsToSuccess, int splitfileSegmentDataBlocks, int splitfileSegmentCheckBlocks,
@@ -78,6 +82,7 @@ public class InsertContext implements Cloneable {
 		this.forkOnCacheable = ctx.forkOnCacheable;
 		this.extraInsertsSingleBlock = ctx.extraInsertsSingleBlock;
 		this.extraInsertsSplitfileHeaderBlock = ctx.extraInsertsSplitfileHeaderBlock;
+		this.reuseInsertedData = ctx.reuseInsertedData;
 	}
 	
 	/** Make public, but just call parent for a field for field copy */
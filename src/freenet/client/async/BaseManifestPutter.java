@@ -21,6 +21,7 @@ import freenet.client.Metadata;
 import freenet.client.MetadataUnresolvedException;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.client.events.InsertedDataReusedEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.keys.BaseClientKey;
 import freenet.keys.FreenetURI;
@@ -67,14 +68,18 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 	 */
 	private final class ArchivePutHandler extends PutHandler {
 
+		private final ContainerInserter inserter;
+
 		private ArchivePutHandler(BaseManifestPutter bmp, PutHandler parent, String name, HashMap<String, Object> data, FreenetURI insertURI, boolean getCHKOnly) {
 			super(bmp, parent, name, null, containerPutHandlers, null);
-			this.origSFI = new ContainerInserter(this, this, data, (persistent ? insertURI.clone() : insertURI), ctx, false, getCHKOnly, false, null, ARCHIVE_TYPE.TAR, false, earlyEncode);
+			inserter = new ContainerInserter(this, this, data, (persistent ? insertURI.clone() : insertURI), ctx, false, getCHKOnly, false, null, ARCHIVE_TYPE.TAR, false, earlyEncode);
+			this.origSFI = inserter;
 		}
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ObjectContainer container, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "onEncode(" + key + ") for " + this);
+			if(!persistent) inserter.onEncoded(key.getURI());
 			System.out.println("Got a URI: " + key.getURI().toString(false, false) + " for " + this);
 
 			if(persistent) {
@@ -115,6 +120,10 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 		@Override
 		public void onSuccess(ClientPutState state, ObjectContainer container, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "Completed '" + this.itemName + "' " + this);
+			if(!persistent) {
+				long reused = inserter.onInserted(context.insertedDataCache);
+				if(reused >= 0) onReused(reused);
+			}
 			if(persistent) {
 				container.activate(BaseManifestPutter.this, 1);
 			}
@@ -137,14 +146,18 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 	 */
 	private final class ContainerPutHandler extends PutHandler {
 
+		private final ContainerInserter inserter;
+
 		private ContainerPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, HashMap<String, Object> data, FreenetURI insertURI, Object object, boolean getCHKOnly, HashSet<PutHandler> runningMap) {
 			super(bmp, parent, name, null, runningMap, null);
-			this.origSFI = new ContainerInserter(this, this, data, (persistent ? insertURI.clone() : insertURI), ctx, false, getCHKOnly, false, null, ARCHIVE_TYPE.TAR, false, earlyEncode);
+			inserter = new ContainerInserter(this, this, data, (persistent ? insertURI.clone() : insertURI), ctx, false, getCHKOnly, false, null, ARCHIVE_TYPE.TAR, false, earlyEncode);
+			this.origSFI = inserter;
 		}
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ObjectContainer container, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "onEncode(" + key + ") for " + this);
+			if(!persistent) inserter.onEncoded(key.getURI());
 			System.out.println("Got a URI: " + key.getURI().toString(false, false) + " for " + this);
 
 			if(persistent) {
@@ -191,6 +204,10 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 		@Override
 		public void onSuccess(ClientPutState state, ObjectContainer container, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "Completed '" + this.itemName + "' " + this);
+			if(!persistent) {
+				long reused = inserter.onInserted(context.insertedDataCache);
+				if(reused >= 0) onReused(reused);
+			}
 
 			if(persistent) {
 				container.activate(BaseManifestPutter.this, 1);
@@ -214,12 +231,70 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 
 	private final class ExternPutHandler extends PutHandler {
 
+		private final Bucket data;
+		/** Key for the data in the inserted data cache, if we looked it up there */
+		private String cacheKey;
+		/** Metadata to add to the inserted data cache once the data has been inserted */
+		private byte[] metadataToCache;
+
 		private ExternPutHandler(BaseManifestPutter bmp, PutHandler parent, String name, Bucket data, ClientMetadata cm2, boolean getCHKOnly2) {
 			super(bmp, parent, name, cm2, runningPutHandlers, null);
+			this.data = data;
 			InsertBlock block = new InsertBlock(data, cm, persistent() ? FreenetURI.EMPTY_CHK_URI.clone() : FreenetURI.EMPTY_CHK_URI);
 			this.origSFI = new SingleFileInserter(this, this, block, false, ctx, false, getCHKOnly2, true, null, null, false, null, earlyEncode, false, persistent());
 		}
 
+		/**
+		 * If we reuse inserted data, hash the file first, and only insert it if it isn't
+		 * in the inserted data cache.
+		 */
+		@Override
+		public void start(ObjectContainer container, final ClientContext context) throws InsertException {
+			if(persistent || !ctx.reuseInsertedData) {
+				super.start(container, context);
+				return;
+			}
+			String settings = InsertedDataCache.settings(ctx, false, cm == null ? null : cm.getMIMEType());
+			context.insertedDataCache.hash(data, settings, context.mainExecutor, new InsertedDataCache.HashCallback() {
+
+				public void onHashed(String key, Metadata cached) {
+					synchronized(ExternPutHandler.this) {
+						cacheKey = key;
+					}
+					if(isFinished()) return;
+					if(cached != null)
+						reuse(cached, context);
+					else
+						startInsert(context);
+				}
+
+				public void onHashFailed(IOException e) {
+					onFailure(new InsertException(InsertException.BUCKET_ERROR, e, null), null, null, context);
+				}
+
+			});
+		}
+
+		private void startInsert(ClientContext context) {
+			try {
+				super.start(null, context);
+			} catch (InsertException e) {
+				onFailure(e, null, null, context);
+			}
+		}
+
+		/** The file has already been inserted, use its metadata rather than inserting it again. */
+		private void reuse(Metadata cached, ClientContext context) {
+			if(logMINOR) Logger.minor(this, "Already inserted '"+this.itemName+"' : "+cached);
+			synchronized(this) {
+				origSFI = null;
+			}
+			onReused(data.size());
+			onMetadata(cached, null, null, context);
+			onBlockSetFinished(null, null, context);
+			onSuccess(null, null, context);
+		}
+
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ObjectContainer container, ClientContext context) {
 			if (logMINOR) Logger.minor(this, "onEncode(" + key + ") for " + this);
@@ -253,6 +328,10 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 				return;
 			}
 			metadata = m;
+			synchronized(this) {
+				if(cacheKey != null && !getCHKOnly)
+					metadataToCache = InsertedDataCache.serialize(m);
+			}
 
 			if(persistent) {
 				container.activate(BaseManifestPutter.this, 1);
@@ -322,6 +401,14 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 
 		@Override
 		public void onSuccess(ClientPutState state, ObjectContainer container, ClientContext context) {
+			String key;
+			byte[] buf;
+			synchronized(this) {
+				key = cacheKey;
+				buf = metadataToCache;
+			}
+			if(key != null && buf != null)
+				context.insertedDataCache.put(key, buf);
 			super.onSuccess(state, container, context);
 		}
 	}
@@ -937,6 +1024,9 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 
 	private int numberOfFiles;
 	private long totalSize;
+	/** Files and containers not inserted because they already had been, and their size */
+	private int filesReused;
+	private long bytesReused;
 	private Metadata baseMetadata;
 	private boolean hasResolvedBase; // if this is true, the final block is ready for insert
 	private boolean fetchable;
@@ -1331,6 +1421,8 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 		// However it would complicate matters for no real gain in most cases...
 		// Also doing it this way means we don't need to worry about
 		if(persistent()) removePutHandlers(container, context);
+		if(ctx.reuseInsertedData && !persistent())
+			ctx.eventProducer.produceEvent(new InsertedDataReusedEvent(countReused(), bytesReused()), container, context);
 		boolean deactivateCB = false;
 		if(persistent()) {
 			deactivateCB = !container.ext().isActive(cb);
@@ -1504,6 +1596,21 @@ public abstract class BaseManifestPutter extends BaseClientPutter {
 		return totalSize;
 	}
 
+	private synchronized void onReused(long size) {
+		filesReused++;
+		bytesReused += size;
+	}
+
+	/** @return The number of files and containers which were not inserted because they already had been. */
+	public synchronized int countReused() {
+		return filesReused;
+	}
+
+	/** @return The bytes of data which were not inserted because they already had been. */
+	public synchronized long bytesReused() {
+		return bytesReused;
+	}
+
 	@Override
 	public void onMajorProgress(ObjectContainer container) {
 		boolean deactivate = false;
@@ -124,8 +124,11 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 						container.activate(key, 5);
 					RequestScheduler sched = context.getFetchScheduler(key instanceof ClientSSK);
 					cooldownWakeupTime = sched.queueCooldown(key, this, container);
-					if(persistent)
+					if(persistent) {
 						container.deactivate(key, 5);
+						// The cooldown queue is rebuilt from this on startup.
+						container.store(this);
+					}
 					// Unregister as going to cooldown queue.
 					unregister(container, context, getPriorityClass(container));
 				}
@@ -273,11 +276,29 @@ public abstract class BaseSingleFileFetcher extends SendableGet implements HasKe
 		}
 		if(logMINOR)
 			Logger.minor(this, "Requeueing after cooldown "+key+" for "+this);
+		cooldownWakeupTime = -1;
+		if(persistent)
+			container.store(this);
 		reschedule(container, context);
 		if(persistent)
 			container.deactivate(this.key, 5);
 	}
 
+	/**
+	 * Add our key to the persistent cooldown queue if we were waiting for it to come
+	 * out of cooldown when the node was shut down.
+	 * @param ssk Only restore SSKs if true, only CHKs if false.
+	 * @return True if the key was added.
+	 */
+	boolean restoreCooldown(PersistentCooldownQueue queue, boolean ssk, ObjectContainer container) {
+		if(cooldownWakeupTime <= 0 || isEmpty(container)) return false;
+		if((key instanceof ClientSSK) != ssk) return false;
+		container.activate(key, 5);
+		queue.restore(key.getNodeKey(true), cooldownWakeupTime);
+		container.deactivate(key, 5);
+		return true;
+	}
+
 	public void schedule(ObjectContainer container, ClientContext context) {
 		if(persistent) {
 			container.activate(ctx, 1);
@@ -0,0 +1,36 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+
+/**
+ * Callback for a BatchFetcher. Results are reported as each key completes, in
+ * whatever order they arrive, on whatever thread completed them, so
+ * implementations should return quickly.
+ */
+public interface BatchFetchCallback {
+
+	/**
+	 * One of the keys has been fetched. The callee is responsible for freeing
+	 * the data.
+	 * @param index The index of the key in the array passed to the BatchFetcher.
+	 */
+	public void onSuccess(int index, FetchResult result, BatchFetcher batch);
+
+	/**
+	 * One of the keys could not be fetched.
+	 * @param index The index of the key in the array passed to the BatchFetcher.
+	 */
+	public void onFailure(int index, FetchException e, BatchFetcher batch);
+
+	/**
+	 * Every key has succeeded or failed, or the batch has been cancelled. Keys
+	 * which were still running when it was cancelled are not reported
+	 * individually. Called exactly once.
+	 */
+	public void onFinished(BatchFetcher batch);
+
+}
@@ -0,0 +1,380 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.keys.BaseClientKey;
+import freenet.keys.ClientKey;
+import freenet.keys.ClientKeyBlock;
+import freenet.keys.ClientSSK;
+import freenet.keys.FreenetURI;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.KeyDecodeException;
+import freenet.keys.KeyVerifyException;
+import freenet.keys.TooBigException;
+import freenet.node.RequestClient;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+
+/**
+ * Fetches a set of keys as a single request, for clients which poll many keys
+ * at once, such as identity and forum plugins. All the CHKs in a batch share
+ * one low-level request and one KeyListener, as do all the SSKs, so the cost
+ * to the schedulers grows with the number of batches, not the number of keys.
+ * Results are passed to the BatchFetchCallback as each key completes.
+ *
+ * Each key is fetched as a single block. If the block turns out to be
+ * metadata, or the URI has meta-strings, the rest of that fetch is handed to
+ * an ordinary ClientGetter, which will find the first block in the store.
+ * USKs are fetched at the edition given; use the USKManager to follow a USK.
+ * A key which is in the batch more than once is only requested once, and the
+ * block is reported for each copy. Batches are never persistent.
+ */
+public class BatchFetcher extends ClientRequester {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(BatchFetcher.class);
+	}
+
+	final FetchContext ctx;
+	private final BatchFetchCallback cb;
+	/** The URIs as given, in order */
+	private final FreenetURI[] uris;
+	/** What we actually fetch, e.g. the SSK for a USK */
+	private final FreenetURI[] fetchURIs;
+	/** The key for each URI */
+	final ClientKey[] keys;
+	/** Retries so far for each key */
+	final int[] retries;
+	/** When each key on the cooldown queue will be retried, otherwise -1 */
+	final long[] cooldownWakeup;
+	/** Set for each key which has succeeded, failed or been cancelled */
+	private final boolean[] done;
+	private int remaining;
+	/** The later keys with the same routing key, by the number of the first
+	 * one, which is the only one requested */
+	private final HashMap<Integer, ArrayList<Integer>> duplicates;
+	/** Set for each key which is a duplicate of an earlier one */
+	private final boolean[] isDuplicate;
+	/** Fetches following metadata, by key number */
+	private final HashMap<Integer, ClientGetter> followers;
+	private BatchFetcherGet chkGet;
+	private BatchFetcherGet sskGet;
+	private boolean started;
+	private boolean finished;
+
+	/**
+	 * @param uris The keys to fetch. CHKs, SSKs, KSKs, and USKs at a specific
+	 * edition.
+	 * @param ctx The fetch settings, shared by all the keys.
+	 * @param client Must not be persistent.
+	 * @param cb Called as the keys succeed or fail.
+	 * @throws FetchException If one of the URIs is invalid.
+	 */
+	public BatchFetcher(FreenetURI[] uris, FetchContext ctx, short priorityClass, RequestClient client, BatchFetchCallback cb) throws FetchException {
+		super(priorityClass, client);
+		if(client.persistent())
+			throw new IllegalArgumentException("Batch fetches cannot be persistent");
+		this.ctx = ctx;
+		this.cb = cb;
+		this.uris = uris.clone();
+		fetchURIs = new FreenetURI[uris.length];
+		keys = new ClientKey[uris.length];
+		retries = new int[uris.length];
+		cooldownWakeup = new long[uris.length];
+		done = new boolean[uris.length];
+		followers = new HashMap<Integer, ClientGetter>();
+		duplicates = new HashMap<Integer, ArrayList<Integer>>();
+		isDuplicate = new boolean[uris.length];
+		HashMap<Key, Integer> firstByKey = new HashMap<Key, Integer>(uris.length * 2);
+		for(int i=0;i<uris.length;i++) {
+			FreenetURI uri = uris[i];
+			if("USK".equals(uri.getKeyType()))
+				uri = uri.sskForUSK();
+			fetchURIs[i] = uri;
+			BaseClientKey key;
+			try {
+				key = BaseClientKey.getBaseKey(uri);
+			} catch (MalformedURLException e) {
+				throw new FetchException(FetchException.INVALID_URI, e.getMessage(), uris[i]);
+			}
+			if(!(key instanceof ClientKey))
+				throw new FetchException(FetchException.INVALID_URI, "Not a fetchable key", uris[i]);
+			keys[i] = (ClientKey) key;
+			cooldownWakeup[i] = -1;
+			Key nodeKey = keys[i].getNodeKey(false);
+			Integer first = firstByKey.get(nodeKey);
+			if(first == null) {
+				firstByKey.put(nodeKey, i);
+			} else {
+				isDuplicate[i] = true;
+				ArrayList<Integer> list = duplicates.get(first);
+				if(list == null) {
+					list = new ArrayList<Integer>(1);
+					duplicates.put(first, list);
+				}
+				list.add(i);
+			}
+		}
+		remaining = uris.length;
+	}
+
+	/** Register the batch with the schedulers. */
+	public void start(ClientContext context) {
+		ArrayList<Integer> chks = new ArrayList<Integer>();
+		ArrayList<Integer> ssks = new ArrayList<Integer>();
+		synchronized(this) {
+			if(started) return;
+			started = true;
+			for(int i=0;i<keys.length;i++) {
+				if(isDuplicate[i]) continue;
+				if(keys[i] instanceof ClientSSK)
+					ssks.add(i);
+				else
+					chks.add(i);
+			}
+			if(!chks.isEmpty()) chkGet = new BatchFetcherGet(this, false, chks);
+			if(!ssks.isEmpty()) sskGet = new BatchFetcherGet(this, true, ssks);
+		}
+		addBlocks(keys.length, null);
+		addMustSucceedBlocks(keys.length, null);
+		blockSetFinalized(null, context);
+		if(keys.length == 0) {
+			checkFinished();
+			return;
+		}
+		if(chkGet != null) chkGet.schedule(context);
+		if(sskGet != null) sskGet.schedule(context);
+	}
+
+	/** The URI of the given key, as passed in. */
+	public FreenetURI getURI(int index) {
+		return uris[index];
+	}
+
+	/** The number of keys in the batch. */
+	public int size() {
+		return uris.length;
+	}
+
+	/** The number of keys which haven't yet succeeded or failed. */
+	public synchronized int countRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Cancel the keys which haven't completed yet. They are not reported
+	 * individually, but onFinished() is called.
+	 */
+	@Override
+	public void cancel(ObjectContainer container, ClientContext context) {
+		ClientGetter[] getters;
+		synchronized(this) {
+			if(super.cancel()) return;
+			if(finished) return;
+			for(int i=0;i<done.length;i++)
+				done[i] = true;
+			remaining = 0;
+			getters = followers.values().toArray(new ClientGetter[followers.size()]);
+			followers.clear();
+		}
+		if(chkGet != null) chkGet.cancel(context);
+		if(sskGet != null) sskGet.cancel(context);
+		for(ClientGetter getter : getters)
+			getter.cancel(null, context);
+		checkFinished();
+	}
+
+	synchronized boolean isDone(int num) {
+		return done[num];
+	}
+
+	/** The key and any duplicates of it. */
+	private int[] withDuplicates(int num) {
+		ArrayList<Integer> list = duplicates.get(num);
+		if(list == null) return new int[] { num };
+		int[] nums = new int[list.size() + 1];
+		nums[0] = num;
+		for(int i=0;i<list.size();i++)
+			nums[i+1] = list.get(i);
+		return nums;
+	}
+
+	/** Called by a BatchFetcherGet when the block for a key has arrived. */
+	void onGotBlock(int num, Key key, KeyBlock block, ClientContext context) {
+		// Decoded separately for each copy, which may have different meta-strings.
+		for(int n : withDuplicates(num))
+			onGotBlockFor(n, key, block, context);
+	}
+
+	/** Called by a BatchFetcherGet when the request for a key has failed. */
+	void onKeyFailed(int num, FetchException e, ClientContext context) {
+		for(int n : withDuplicates(num))
+			onFailure(n, e, context);
+	}
+
+	private void onGotBlockFor(int num, Key key, KeyBlock block, ClientContext context) {
+		if(isDone(num)) return;
+		ClientKeyBlock decoded;
+		try {
+			decoded = Key.createKeyBlock(keys[num], block);
+		} catch (KeyVerifyException e) {
+			Logger.error(this, "Got block for "+key+" but it doesn't verify: "+e, e);
+			onFailure(num, new FetchException(FetchException.BLOCK_DECODE_ERROR, e.getMessage()), context);
+			return;
+		}
+		if(decoded.isMetadata() || fetchURIs[num].hasMetaStrings()) {
+			follow(num, context);
+			return;
+		}
+		Bucket data;
+		try {
+			data = decoded.decode(context.getBucketFactory(false), (int)(Math.min(ctx.maxOutputLength, Integer.MAX_VALUE)), false);
+		} catch (KeyDecodeException e) {
+			if(logMINOR) Logger.minor(this, "Decode failure: "+e, e);
+			onFailure(num, new FetchException(FetchException.BLOCK_DECODE_ERROR, e.getMessage()), context);
+			return;
+		} catch (TooBigException e) {
+			onFailure(num, new FetchException(FetchException.TOO_BIG, e), context);
+			return;
+		} catch (IOException e) {
+			Logger.error(this, "Could not capture data - disk full?: "+e, e);
+			onFailure(num, new FetchException(FetchException.BUCKET_ERROR, e), context);
+			return;
+		}
+		onSuccess(num, new FetchResult(new ClientMetadata(), data), context);
+	}
+
+	/** Hand the rest of a fetch over to a ClientGetter. */
+	private void follow(final int num, ClientContext context) {
+		if(logMINOR) Logger.minor(this, "Following metadata for "+uris[num]+" on "+this);
+		ClientGetter getter = new ClientGetter(new ClientGetCallback() {
+
+			public void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
+				synchronized(BatchFetcher.this) {
+					followers.remove(num);
+				}
+				BatchFetcher.this.onSuccess(num, result, null);
+			}
+
+			public void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
+				synchronized(BatchFetcher.this) {
+					followers.remove(num);
+				}
+				BatchFetcher.this.onFailure(num, e, null);
+			}
+
+			public void onMajorProgress(ObjectContainer container) {
+				// Ignore
+			}
+
+		}, fetchURIs[num], ctx, priorityClass, client, null, null);
+		synchronized(this) {
+			if(done[num]) return;
+			followers.put(num, getter);
+		}
+		try {
+			getter.start(null, context);
+		} catch (FetchException e) {
+			synchronized(this) {
+				followers.remove(num);
+			}
+			onFailure(num, e, context);
+		}
+	}
+
+	void onSuccess(int num, FetchResult result, ClientContext context) {
+		synchronized(this) {
+			if(done[num]) {
+				result.asBucket().free();
+				return;
+			}
+			done[num] = true;
+			remaining--;
+		}
+		completedBlock(true, null, context);
+		try {
+			cb.onSuccess(num, result, this);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in callback for "+uris[num], t);
+		}
+		checkFinished();
+	}
+
+	void onFailure(int num, FetchException e, ClientContext context) {
+		synchronized(this) {
+			if(done[num]) return;
+			done[num] = true;
+			remaining--;
+		}
+		if(e.isFatal())
+			fatallyFailedBlock(null, context);
+		else
+			failedBlock(null, context);
+		try {
+			cb.onFailure(num, e, this);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in callback for "+uris[num], t);
+		}
+		checkFinished();
+	}
+
+	private void checkFinished() {
+		synchronized(this) {
+			if(finished || remaining > 0) return;
+			finished = true;
+		}
+		if(logMINOR) Logger.minor(this, "Finished batch "+this);
+		try {
+			cb.onFinished(this);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" in callback for "+this, t);
+		}
+	}
+
+	@Override
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
+	/** A batch has no single URI. */
+	@Override
+	public FreenetURI getURI() {
+		return null;
+	}
+
+	@Override
+	public void notifyClients(ObjectContainer container, ClientContext context) {
+		// Progress is reported per key.
+	}
+
+	@Override
+	protected void innerToNetwork(ObjectContainer container, ClientContext context) {
+		// Ignore
+	}
+
+	@Override
+	public void onTransition(ClientGetState oldState, ClientGetState newState, ObjectContainer container) {
+		// Ignore
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+uris.length+" keys";
+	}
+
+}
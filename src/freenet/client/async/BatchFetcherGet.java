@@ -0,0 +1,407 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.keys.ClientKey;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.KeysFetchingLocally;
+import freenet.node.LowLevelGetException;
+import freenet.node.RequestClient;
+import freenet.node.RequestScheduler;
+import freenet.node.SendableGet;
+import freenet.node.SendableRequestItem;
+import freenet.support.Logger;
+
+/**
+ * The low-level request for all the CHKs, or all the SSKs, in a BatchFetcher.
+ * Tokens are key numbers within the batch.
+ *
+ * LOCKING: Synchronizes on the BatchFetcher. Never calls the scheduler while
+ * holding it, since the KeyListener is called with the scheduler locked.
+ */
+class BatchFetcherGet extends SendableGet implements HasKeyListener {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(BatchFetcherGet.class);
+	}
+
+	private final BatchFetcher batch;
+	private final boolean ssk;
+	/** Key numbers by routing key, for the keys which haven't completed. The
+	 * BatchFetcher only gives us the first of any duplicate keys. */
+	private final HashMap<Key, Integer> numbersByKey;
+	/** Numbers of the keys which can be sent now: not completed and not on the
+	 * cooldown queue. Keys which are running are included. Only the first
+	 * sendableCount are valid, in no particular order. */
+	private final int[] sendable;
+	private int sendableCount;
+	/** Index of each key number in sendable, or -1 if it isn't there. */
+	private final int[] sendableIndex;
+	private boolean cancelled;
+
+	BatchFetcherGet(BatchFetcher batch, boolean ssk, List<Integer> numbers) {
+		super(batch);
+		this.batch = batch;
+		this.ssk = ssk;
+		numbersByKey = new HashMap<Key, Integer>(numbers.size() * 2);
+		for(Integer num : numbers)
+			numbersByKey.put(batch.keys[num].getNodeKey(false), num);
+		sendable = new int[numbers.size()];
+		sendableIndex = new int[batch.keys.length];
+		Arrays.fill(sendableIndex, -1);
+		for(Integer num : numbers)
+			addSendable(num);
+	}
+
+	private void addSendable(int num) {
+		if(sendableIndex[num] >= 0) return;
+		sendableIndex[num] = sendableCount;
+		sendable[sendableCount++] = num;
+	}
+
+	/** Remove by moving the last one into its place. */
+	private void removeSendable(int num) {
+		int index = sendableIndex[num];
+		if(index < 0) return;
+		int last = sendable[--sendableCount];
+		sendable[index] = last;
+		sendableIndex[last] = index;
+		sendableIndex[num] = -1;
+	}
+
+	private static class BatchItem implements SendableRequestItem {
+		final int num;
+		BatchItem(int num) {
+			this.num = num;
+		}
+		public void dump() {
+			// Ignore, we will be GC'ed
+		}
+	}
+
+	@Override
+	public SendableRequestItem chooseKey(KeysFetchingLocally fetching, ObjectContainer container, ClientContext context) {
+		int num = chooseNumber(fetching, context);
+		if(num < 0) return null;
+		return new BatchItem(num);
+	}
+
+	@Override
+	public boolean hasValidKeys(KeysFetchingLocally fetching, ObjectContainer container, ClientContext context) {
+		return chooseNumber(fetching, context) >= 0;
+	}
+
+	/** Pick a random key which isn't already being fetched. */
+	private int chooseNumber(KeysFetchingLocally fetching, ClientContext context) {
+		synchronized(batch) {
+			if(cancelled) return -1;
+			for(int i=0;i<10;i++) {
+				if(sendableCount == 0) return -1;
+				int num = sendable[context.fastWeakRandom.nextInt(sendableCount)];
+				if(fetching.hasKey(batch.keys[num].getNodeKey(false))) continue;
+				return num;
+			}
+			return -1;
+		}
+	}
+
+	@Override
+	public ClientKey getKey(Object token, ObjectContainer container) {
+		int num = ((BatchItem)token).num;
+		if(batch.isDone(num)) return null;
+		return batch.keys[num];
+	}
+
+	@Override
+	public Key[] listKeys(ObjectContainer container) {
+		synchronized(batch) {
+			return numbersByKey.keySet().toArray(new Key[numbersByKey.size()]);
+		}
+	}
+
+	@Override
+	public long countAllKeys(ObjectContainer container, ClientContext context) {
+		synchronized(batch) {
+			return numbersByKey.size();
+		}
+	}
+
+	@Override
+	public long countSendableKeys(ObjectContainer container, ClientContext context) {
+		synchronized(batch) {
+			return sendableCount;
+		}
+	}
+
+	@Override
+	public FetchContext getContext() {
+		return batch.ctx;
+	}
+
+	@Override
+	public boolean ignoreStore() {
+		return batch.ctx.ignoreStore;
+	}
+
+	/** The retry count is per key, so the batch as a whole always schedules
+	 * as a first attempt. */
+	@Override
+	public int getRetryCount() {
+		return 0;
+	}
+
+	@Override
+	public short getPriorityClass(ObjectContainer container) {
+		return batch.getPriorityClass();
+	}
+
+	@Override
+	public RequestClient getClient(ObjectContainer container) {
+		return batch.getClient();
+	}
+
+	@Override
+	public ClientRequester getClientRequest() {
+		return batch;
+	}
+
+	@Override
+	public boolean isSSK() {
+		return ssk;
+	}
+
+	@Override
+	public boolean isCancelled(ObjectContainer container) {
+		synchronized(batch) {
+			return cancelled || numbersByKey.isEmpty();
+		}
+	}
+
+	public boolean isEmpty(ObjectContainer container) {
+		synchronized(batch) {
+			return cancelled || sendableCount == 0;
+		}
+	}
+
+	/** Is the key one of ours, and not yet completed? */
+	boolean wantKey(Key key) {
+		synchronized(batch) {
+			return !cancelled && numbersByKey.containsKey(key);
+		}
+	}
+
+	/** Called by the KeyListener when a block arrives. */
+	boolean onGotKey(Key key, KeyBlock block, ClientContext context) {
+		Integer num;
+		boolean finished;
+		synchronized(batch) {
+			if(cancelled) return false;
+			num = numbersByKey.remove(key);
+			if(num == null) return false;
+			removeSendable(num);
+			finished = numbersByKey.isEmpty();
+		}
+		if(finished) unregisterAll(context);
+		batch.onGotBlock(num, key, block, context);
+		return true;
+	}
+
+	// FIXME refactor this out to a common method; see SimpleSingleFileFetcher
+	private FetchException translateException(LowLevelGetException e) {
+		switch(e.code) {
+		case LowLevelGetException.DATA_NOT_FOUND:
+		case LowLevelGetException.DATA_NOT_FOUND_IN_STORE:
+			return new FetchException(FetchException.DATA_NOT_FOUND);
+		case LowLevelGetException.RECENTLY_FAILED:
+			return new FetchException(FetchException.RECENTLY_FAILED);
+		case LowLevelGetException.DECODE_FAILED:
+			return new FetchException(FetchException.BLOCK_DECODE_ERROR);
+		case LowLevelGetException.INTERNAL_ERROR:
+			return new FetchException(FetchException.INTERNAL_ERROR);
+		case LowLevelGetException.REJECTED_OVERLOAD:
+			return new FetchException(FetchException.REJECTED_OVERLOAD);
+		case LowLevelGetException.ROUTE_NOT_FOUND:
+			return new FetchException(FetchException.ROUTE_NOT_FOUND);
+		case LowLevelGetException.TRANSFER_FAILED:
+			return new FetchException(FetchException.TRANSFER_FAILED);
+		case LowLevelGetException.VERIFY_FAILED:
+			return new FetchException(FetchException.BLOCK_DECODE_ERROR);
+		case LowLevelGetException.CANCELLED:
+			return new FetchException(FetchException.CANCELLED);
+		default:
+			Logger.error(this, "Unknown LowLevelGetException code: "+e.code);
+			return new FetchException(FetchException.INTERNAL_ERROR, "Unknown error code: "+e.code);
+		}
+	}
+
+	/**
+	 * A request for one of the keys failed. Retry it, possibly after the
+	 * cooldown, or fail it. A null token means the whole request failed.
+	 */
+	@Override
+	public void onFailure(LowLevelGetException e, Object token, ObjectContainer container, ClientContext context) {
+		FetchException fe = translateException(e);
+		if(token == null) {
+			failAll(fe, context);
+			return;
+		}
+		int num = ((BatchItem)token).num;
+		int maxRetries = batch.ctx.maxNonSplitfileRetries;
+		boolean cooldown = false;
+		boolean fail = false;
+		boolean finished = false;
+		synchronized(batch) {
+			if(cancelled || !numbersByKey.containsKey(batch.keys[num].getNodeKey(false))) return;
+			if(!fe.isFatal() && (maxRetries == -1 || batch.retries[num] < maxRetries)) {
+				batch.retries[num]++;
+				if(batch.retries[num] % RequestScheduler.COOLDOWN_RETRIES == 0) {
+					removeSendable(num);
+					cooldown = true;
+				}
+			} else {
+				numbersByKey.remove(batch.keys[num].getNodeKey(false));
+				removeSendable(num);
+				finished = numbersByKey.isEmpty();
+				fail = true;
+			}
+		}
+		if(cooldown) {
+			if(logMINOR) Logger.minor(this, "Adding key "+num+" to cooldown queue on "+this);
+			long wakeup = getScheduler(context).queueCooldown(batch.keys[num], this, null);
+			synchronized(batch) {
+				batch.cooldownWakeup[num] = wakeup;
+			}
+		}
+		if(fail) {
+			if(finished) unregisterAll(context);
+			batch.onKeyFailed(num, fe, context);
+		}
+	}
+
+	private void failAll(FetchException fe, ClientContext context) {
+		Integer[] nums;
+		synchronized(batch) {
+			if(cancelled) return;
+			cancelled = true;
+			nums = numbersByKey.values().toArray(new Integer[numbersByKey.size()]);
+			numbersByKey.clear();
+			Arrays.fill(sendableIndex, -1);
+			sendableCount = 0;
+		}
+		unregisterAll(context);
+		for(Integer num : nums)
+			batch.onKeyFailed(num, fe, context);
+	}
+
+	public void onFailed(KeyListenerConstructionException e, ObjectContainer container, ClientContext context) {
+		failAll(e.getFetchException(), context);
+	}
+
+	public KeyListener makeKeyListener(ObjectContainer container, ClientContext context) {
+		if(isCancelled(null)) return null;
+		return new BatchFetcherKeyListener(this);
+	}
+
+	@Override
+	public long getCooldownWakeup(Object token, ObjectContainer container) {
+		synchronized(batch) {
+			return batch.cooldownWakeup[((BatchItem)token).num];
+		}
+	}
+
+	@Override
+	public long getCooldownWakeupByKey(Key key, ObjectContainer container) {
+		synchronized(batch) {
+			Integer num = numbersByKey.get(key);
+			if(num == null) return -1;
+			return batch.cooldownWakeup[num];
+		}
+	}
+
+	@Override
+	public void resetCooldownTimes(ObjectContainer container) {
+		synchronized(batch) {
+			for(Integer num : numbersByKey.values())
+				batch.cooldownWakeup[num] = -1;
+		}
+	}
+
+	@Override
+	public void requeueAfterCooldown(Key key, long time, ObjectContainer container, ClientContext context) {
+		boolean wasEmpty;
+		synchronized(batch) {
+			if(cancelled) return;
+			Integer num = numbersByKey.get(key);
+			if(num == null) return;
+			if(batch.cooldownWakeup[num] > time) {
+				if(logMINOR) Logger.minor(this, "Not requeueing as deadline has not passed yet");
+				return;
+			}
+			batch.cooldownWakeup[num] = -1;
+			if(sendableIndex[num] >= 0) return;
+			wasEmpty = sendableCount == 0;
+			addSendable(num);
+		}
+		if(logMINOR)
+			Logger.minor(this, "Requeueing after cooldown "+key+" for "+this);
+		if(wasEmpty) reschedule(context);
+	}
+
+	@Override
+	public List<PersistentChosenBlock> makeBlocks(PersistentChosenRequest request, RequestScheduler sched, ObjectContainer container, ClientContext context) {
+		throw new UnsupportedOperationException("Batch fetches are never persistent");
+	}
+
+	@Override
+	public void preRegister(ObjectContainer container, ClientContext context, boolean toNetwork) {
+		if(toNetwork) batch.toNetwork(null, context);
+	}
+
+	void schedule(ClientContext context) {
+		try {
+			getScheduler(context).register(this, new SendableGet[] { this }, false, null, batch.ctx.blocks, false);
+		} catch (KeyListenerConstructionException e) {
+			onFailed(e, null, context);
+		}
+	}
+
+	private void reschedule(ClientContext context) {
+		try {
+			getScheduler(context).register(null, new SendableGet[] { this }, false, null, batch.ctx.blocks, true);
+		} catch (KeyListenerConstructionException e) {
+			Logger.error(this, "Impossible: "+e+" on "+this, e);
+		}
+	}
+
+	void cancel(ClientContext context) {
+		synchronized(batch) {
+			if(cancelled) return;
+			cancelled = true;
+		}
+		unregisterAll(context);
+	}
+
+	/** Remove the KeyListener and the request from the scheduler. */
+	private void unregisterAll(ClientContext context) {
+		getScheduler(context).removePendingKeys((HasKeyListener)this, false);
+		unregister(null, context, getPriorityClass(null));
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+(ssk ? "SSK" : "CHK")+":"+batch;
+	}
+
+}
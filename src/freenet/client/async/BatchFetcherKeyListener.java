@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.node.SendableGet;
+
+/**
+ * KeyListener for all the keys of one type in a BatchFetcher. Batches are
+ * transient, so rather than a Bloom filter we look the key up in the
+ * BatchFetcherGet's table, which is exact and just as cheap.
+ */
+class BatchFetcherKeyListener implements KeyListener {
+
+	private final BatchFetcherGet get;
+
+	BatchFetcherKeyListener(BatchFetcherGet get) {
+		this.get = get;
+	}
+
+	public boolean probablyWantKey(Key key, byte[] saltedKey) {
+		return get.wantKey(key);
+	}
+
+	public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+		if(!get.wantKey(key)) return -1;
+		return get.getPriorityClass(null);
+	}
+
+	public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+		if(!get.wantKey(key)) return null;
+		return new SendableGet[] { get };
+	}
+
+	public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+		return get.onGotKey(key, found, context);
+	}
+
+	public boolean persistent() {
+		return false;
+	}
+
+	public short getPriorityClass(ObjectContainer container) {
+		return get.getPriorityClass(null);
+	}
+
+	public long countKeys() {
+		return get.countAllKeys(null, null);
+	}
+
+	public HasKeyListener getHasKeyListener() {
+		return get;
+	}
+
+	public void onRemove() {
+		// Ignore
+	}
+
+	public boolean isEmpty() {
+		return get.isCancelled(null);
+	}
+
+	public boolean isSSK() {
+		return get.isSSK();
+	}
+
+}
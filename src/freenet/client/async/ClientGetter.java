@@ -16,6 +16,7 @@ import com.db4o.ObjectContainer;
 
 import freenet.client.ArchiveContext;
 import freenet.client.ClientMetadata;
+import freenet.client.DefaultMIMETypes;
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
 import freenet.client.FetchResult;
@@ -24,6 +25,7 @@ import freenet.client.events.ExpectedMIMEEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.client.filter.ContentFilter;
+import freenet.client.filter.MIMEType;
 import freenet.client.filter.UnsafeContentTypeException;
 import freenet.client.filter.ContentFilter.FilterStatus;
 import freenet.keys.ClientKeyBlock;
@@ -611,6 +613,59 @@ public class ClientGetter extends BaseClientGetter {
 		return clientCallback;
 	}
 
+	/**
+	 * Can the final data be streamed to the client as it is decoded? Only if the
+	 * request is transient, the client asks for it, and the content filter (if
+	 * enabled) would pass the data through unchanged. Called by SplitFileFetcher
+	 * once it knows the expected MIME type.
+	 */
+	boolean canStream() {
+		if(persistent() || binaryBlobBucket != null) return false;
+		if(!(clientCallback instanceof StreamingClientGetCallback)) return false;
+		if(ctx.filterData) {
+			String mimeType = ctx.overrideMIME != null ? ctx.overrideMIME : expectedMIME;
+			if(mimeType == null) return false;
+			int idx = mimeType.indexOf(';');
+			if(idx != -1) mimeType = mimeType.substring(0, idx);
+			MIMEType handler = ContentFilter.getMIMEType(mimeType.trim());
+			if(handler == null || handler.readFilter != null || !handler.safeToRead) return false;
+		}
+		return ((StreamingClientGetCallback)clientCallback).wantsStreaming(this);
+	}
+
+	/**
+	 * Called by the SplitFileStreamer just before it writes the first byte.
+	 * @param length The exact length of the data, or -1 if not known.
+	 * @return The stream to write the data to.
+	 */
+	OutputStream startStreaming(long length) throws IOException {
+		String mimeType = expectedMIME;
+		if(ctx.filterData && ctx.overrideMIME != null) mimeType = ctx.overrideMIME;
+		if(mimeType == null) mimeType = DefaultMIMETypes.DEFAULT_MIME_TYPE;
+		if(logMINOR) Logger.minor(this, "Streaming "+uri+" length "+length+" type "+mimeType+" for "+this);
+		return ((StreamingClientGetCallback)clientCallback).onStreamStarting(mimeType, length, this);
+	}
+
+	/**
+	 * Called when all the data has been streamed to the client. Replaces
+	 * onSuccess() for a streamed request.
+	 * @param length The number of bytes written.
+	 * @param state The ClientGetState which retrieved the data.
+	 */
+	void onStreamSuccess(long length, ClientGetState state, ClientContext context) {
+		if(logMINOR)
+			Logger.minor(this, "Streamed "+length+" bytes from "+state+" on "+this);
+		synchronized(this) {
+			if(finished) {
+				Logger.error(this, "Already finished but streamed successfully: "+this);
+				return;
+			}
+			finished = true;
+			currentState = null;
+		}
+		((StreamingClientGetCallback)clientCallback).onStreamFinished(length, this);
+	}
+
 	/** Remove the ClientGetter from the database. You must call this on the database thread, and it must
 	 * be a persistent request. We do not remove anything we are not responsible for. */
 	@Override
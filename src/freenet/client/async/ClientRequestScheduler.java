@@ -106,7 +106,7 @@ public class ClientRequestScheduler implements RequestScheduler {
 	private final Node node;
 	public final String name;
 	private final CooldownQueue transientCooldownQueue;
-	private CooldownQueue persistentCooldownQueue;
+	private PersistentCooldownQueue persistentCooldownQueue;
 	final PrioritizedSerialExecutor databaseExecutor;
 	final DatastoreChecker datastoreChecker;
 	public final ClientContext clientContext;
@@ -153,6 +153,12 @@ public class ClientRequestScheduler implements RequestScheduler {
 		persistentCooldownQueue = schedCore.persistentCooldownQueue;
 	}
 	
+	/** @return The cooldown queue for persistent requests, or null for an insert scheduler,
+	 * or before startCore(). */
+	public PersistentCooldownQueue getPersistentCooldownQueue() {
+		return persistentCooldownQueue;
+	}
+	
 	public static void loadKeyListeners(final ObjectContainer container, ClientContext context) {
 		ObjectSet<HasKeyListener> results =
 			Db4oBugs.query(container, HasKeyListener.class);
@@ -983,22 +989,16 @@ public class ClientRequestScheduler implements RequestScheduler {
 		 * simultaneously to avoid some kind of race condition? Or could we just
 		 * restore the one request on the queue? Maybe it's just a misguided
 		 * optimisation? IIRC we had some severe problems when we didn't have 
-		 * this, related to requests somehow being lost altogether... Is it 
-		 * essential? We can save a query if it's not... Is this about requests
-		 * or about keys? Should we limit all requests across any 
+		 * this, related to requests somehow being lost altogether... Is this
+		 * about requests or about keys? Should we limit all requests across any 
 		 * SendableRequest's to 3 every half hour for a specific key? Probably 
-		 * yes...? In which case, can the cooldown queue be entirely in RAM,
-		 * and would it be useful for it to be? Less disk, more RAM... for fast
-		 * nodes with little RAM it would be bad...
+		 * yes...? Both cooldown queues are entirely in RAM now, the persistent
+		 * one is rebuilt from the requests on startup.
 		 */
 		final int MAX_KEYS = 20;
-		Object ret;
 		ClientRequestScheduler otherScheduler = 
 			((!isSSKScheduler) ? this.clientContext.getSskFetchScheduler() : this.clientContext.getChkFetchScheduler());
-		if(queue instanceof PersistentCooldownQueue) {
-			ret = ((PersistentCooldownQueue)queue).removeKeyBefore(now, WAIT_AFTER_NOTHING_TO_START, container, MAX_KEYS, (PersistentCooldownQueue)otherScheduler.persistentCooldownQueue);
-		} else
-			ret = queue.removeKeyBefore(now, WAIT_AFTER_NOTHING_TO_START, container, MAX_KEYS);
+		Object ret = queue.removeKeyBefore(now, WAIT_AFTER_NOTHING_TO_START, container, MAX_KEYS);
 		if(ret == null) return Long.MAX_VALUE;
 		if(ret instanceof Long) {
 			return (Long) ret;
@@ -1006,15 +1006,11 @@ public class ClientRequestScheduler implements RequestScheduler {
 		Key[] keys = (Key[]) ret;
 		for(int j=0;j<keys.length;j++) {
 			Key key = keys[j];
-			if(persistent)
-				container.activate(key, 5);
 			if(logMINOR) Logger.minor(this, "Restoring key: "+key);
 			if(key instanceof NodeSSK == isSSKScheduler)
 				restoreKey(key, container, now);
 			else
 				otherScheduler.restoreKey(key, container, now); 
-			if(persistent)
-				container.deactivate(key, 5);
 		}
 		return Long.MAX_VALUE;
 	}
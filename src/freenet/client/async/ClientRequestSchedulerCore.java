@@ -117,6 +117,7 @@ class ClientRequestSchedulerCore extends ClientRequestSchedulerBase {
 		System.err.println("insert scheduler: "+isInsertScheduler);
 		if(!isInsertScheduler) {
 			persistentCooldownQueue.setCooldownTime(cooldownTime);
+			persistentCooldownQueue.rebuild(container, isSSKScheduler);
 		}
 		this.sched = sched;
 		this.initTime = System.currentTimeMillis();
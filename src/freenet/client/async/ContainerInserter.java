@@ -6,6 +6,7 @@ package freenet.client.async;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -26,9 +27,11 @@ import freenet.client.Metadata;
 import freenet.client.MetadataUnresolvedException;
 import freenet.client.ArchiveManager.ARCHIVE_TYPE;
 import freenet.client.Metadata.SimpleManifestComposer;
+import freenet.keys.BaseClientKey;
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
 import freenet.support.io.BucketTools;
 
 /**
@@ -76,6 +79,11 @@ public class ContainerInserter implements ClientPutState {
 	private final InsertContext ctx;
 	private final boolean reportMetadataOnly;
 	private final boolean dontCompress;
+	/** Key for the container in the inserted data cache, if we looked it up there */
+	private String cacheKey;
+	private FreenetURI insertedURI;
+	/** Size of the container if it had already been inserted, otherwise -1 */
+	private long reusedBytes = -1;
 
 	/**
 	 * Insert a bunch of files as single Archive with .metadata
@@ -153,20 +161,31 @@ public class ContainerInserter implements ClientPutState {
 	private void start(ObjectContainer container, ClientContext context) {
 		if(logDEBUG) Logger.debug(this, "Atempt to start a container inserter", new Exception("debug"));
 		
-		makeMetadata(context, container);
+		makeMetadata(context.tempBucketFactory, container, context);
 		
 		synchronized(this) {
 			if(finished) return;
 		}
 		
+		boolean dc = dontCompress;
+		if (!dontCompress) {
+			dc = (archiveType == ARCHIVE_TYPE.ZIP);
+		}
+
 		InsertBlock block;
 		try {
 			Bucket outputBucket = context.getBucketFactory(persistent).makeBucket(-1);
-			String mimeType = (archiveType == ARCHIVE_TYPE.TAR ?
-				createTarBucket(outputBucket, container) :
-				createZipBucket(outputBucket, container));
+			String mimeType = createContainer(outputBucket, container);
 			
 			if(logMINOR) Logger.minor(this, "We are using "+archiveType);
+
+			FreenetURI uri = lookUpInserted(outputBucket, mimeType, dc, context.insertedDataCache);
+			if(uri != null) {
+				long size = outputBucket.size();
+				outputBucket.free();
+				reuse(uri, size, container, context);
+				return;
+			}
 			
 			// Now we have to insert the Archive we have generated.
 			
@@ -179,11 +198,6 @@ public class ContainerInserter implements ClientPutState {
 			return;
 		}
 		
-		boolean dc = dontCompress;
-		if (!dontCompress) {
-			dc = (archiveType == ARCHIVE_TYPE.ZIP);
-		}
-		
 		// Treat it as a splitfile for purposes of determining reinsert count.
 		SingleFileInserter sfi = new SingleFileInserter(parent, cb, block, false, ctx, dc, getCHKOnly, reportMetadataOnly, token, archiveType, true, null, earlyEncode, true, persistent);
 		if(logMINOR)
@@ -198,7 +212,72 @@ public class ContainerInserter implements ClientPutState {
 		cb.onBlockSetFinished(this, container, context);
 	}
 
-	private void makeMetadata(ClientContext context, ObjectContainer container) {
+	String createContainer(Bucket outputBucket, ObjectContainer container) throws IOException {
+		return archiveType == ARCHIVE_TYPE.TAR ?
+			createTarBucket(outputBucket, container) :
+			createZipBucket(outputBucket, container);
+	}
+
+	/**
+	 * If we reuse inserted data, look the container up in the inserted data cache, and
+	 * remember its key so that it can be added once it has been inserted.
+	 * @return The CHK the container was inserted to, or null if it must be inserted.
+	 */
+	FreenetURI lookUpInserted(Bucket data, String mimeType, boolean dc, InsertedDataCache cache) throws IOException {
+		// The container only changes if a file in it, or a file it redirects to, changed.
+		if(persistent || !ctx.reuseInsertedData || !targetURI.isCHK()) return null;
+		String key = InsertedDataCache.key(data, InsertedDataCache.settings(ctx, dc, mimeType));
+		synchronized(this) {
+			cacheKey = key;
+		}
+		return cache.getURI(key);
+	}
+
+	/** The container has already been inserted to uri, tell the callback rather than inserting it again. */
+	private void reuse(FreenetURI uri, long size, ObjectContainer container, ClientContext context) {
+		if(logMINOR) Logger.minor(this, "Container already inserted to "+uri+" : "+this);
+		BaseClientKey key;
+		try {
+			key = BaseClientKey.getBaseKey(uri);
+		} catch (MalformedURLException e) {
+			fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);
+			return;
+		}
+		synchronized(this) {
+			if(finished) return;
+			finished = true;
+			reusedBytes = size;
+		}
+		cb.onEncode(key, this, container, context);
+		cb.onBlockSetFinished(this, container, context);
+		cb.onSuccess(this, container, context);
+	}
+
+	/** Called by the callback when it gets the key the container was inserted to. */
+	synchronized void onEncoded(FreenetURI uri) {
+		insertedURI = uri;
+	}
+
+	/**
+	 * Called by the callback when the container has been inserted, or reused. Adds it
+	 * to the inserted data cache if we looked it up there.
+	 * @return The size of the container if it was reused rather than inserted, otherwise -1.
+	 */
+	long onInserted(InsertedDataCache cache) {
+		String key;
+		FreenetURI uri;
+		long reused;
+		synchronized(this) {
+			key = cacheKey;
+			uri = insertedURI;
+			reused = reusedBytes;
+		}
+		if(reused < 0 && key != null && uri != null && !getCHKOnly)
+			cache.putURI(key, uri);
+		return reused;
+	}
+
+	void makeMetadata(BucketFactory bf, ObjectContainer container, ClientContext context) {
 
 		Bucket bucket = null;
 		int x = 0;
@@ -207,7 +286,7 @@ public class ContainerInserter implements ClientPutState {
 
 		while(true) {
 			try {
-				bucket = context.tempBucketFactory.makeBucket(-1);
+				bucket = bf.makeBucket(-1);
 				byte[] buf = md.writeToByteArray();
 				OutputStream os = bucket.getOutputStream();
 				os.write(buf);
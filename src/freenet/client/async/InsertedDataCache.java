@@ -0,0 +1,238 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+
+import freenet.client.InsertContext;
+import freenet.client.Metadata;
+import freenet.client.MetadataParseException;
+import freenet.client.MetadataUnresolvedException;
+import freenet.crypt.SHA256;
+import freenet.keys.FreenetURI;
+import freenet.support.Executor;
+import freenet.support.HexUtil;
+import freenet.support.LRUHashtable;
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+
+/**
+ * Remembers the metadata of data we have inserted, keyed by the hash of the data
+ * and the settings which affect its key. When a site is inserted again, most of
+ * its files and containers have not changed: they would encode to the same CHKs,
+ * so there is no need to insert them again. A manifest putter looks each one up
+ * here first, and only inserts what it can't find.
+ *
+ * Only data which was completely inserted is added. The cache is not persistent,
+ * it only lasts as long as the node is running: on disk it would be a record of
+ * what this node has inserted. For the same reason persistent inserts don't use
+ * it, since they usually outlive it anyway. See ClientPutDirMessage for how this
+ * is described to FCP clients.
+ */
+public class InsertedDataCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(InsertedDataCache.class);
+	}
+
+	public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+	/** Metadata bigger than this is not cached: it would be inserted separately anyway. */
+	static final int MAX_ENTRY_SIZE = Metadata.MAX_SIZE_IN_MANIFEST;
+
+	private final LRUHashtable<String, byte[]> entries = new LRUHashtable<String, byte[]>();
+	private final long maxBytes;
+	private long bytes;
+
+	/** Data waiting to be hashed. */
+	private final LinkedList<Runnable> waitingToHash = new LinkedList<Runnable>();
+	private final int maxHashers;
+	private int runningHashers;
+
+	public interface HashCallback {
+		/**
+		 * @param key The key to look the data up under, or to add it with once it has been inserted.
+		 * @param cached The metadata for the data if it has already been inserted, or null.
+		 */
+		void onHashed(String key, Metadata cached);
+		/** The data could not be read. */
+		void onHashFailed(IOException e);
+	}
+
+	public InsertedDataCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		maxHashers = Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Describe the settings which, along with the data, determine the key the data
+	 * is inserted to. The same data inserted with different settings is different.
+	 */
+	public static String settings(InsertContext ctx, boolean dontCompress, String mimeType) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(mimeType).append(';');
+		if(dontCompress || ctx.dontCompress)
+			sb.append("uncompressed");
+		else
+			sb.append(ctx.compressorDescriptor);
+		sb.append(';').append(ctx.splitfileAlgorithm);
+		sb.append(';').append(ctx.splitfileSegmentDataBlocks);
+		sb.append(';').append(ctx.splitfileSegmentCheckBlocks);
+		return sb.toString();
+	}
+
+	/** Hash the data and combine it with the settings. */
+	public static String key(Bucket data, String settings) throws IOException {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			InputStream is = data.getInputStream();
+			try {
+				SHA256.hash(is, md);
+			} finally {
+				is.close();
+			}
+			return HexUtil.bytesToHex(md.digest()) + ':' + settings;
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/**
+	 * @return The metadata we inserted for the key, a redirect or a splitfile, or
+	 * null if we haven't inserted it.
+	 */
+	public Metadata get(String key) {
+		byte[] buf;
+		synchronized(this) {
+			buf = entries.get(key);
+			if(buf == null) return null;
+			entries.push(key, buf);
+		}
+		try {
+			return Metadata.construct(buf);
+		} catch (MetadataParseException e) {
+			Logger.error(this, "Unable to parse cached metadata for "+key+" : "+e, e);
+			remove(key);
+			return null;
+		}
+	}
+
+	/** @return The CHK the key was inserted to, or null. */
+	public FreenetURI getURI(String key) {
+		Metadata m = get(key);
+		if(m == null || !m.isSimpleRedirect()) return null;
+		return m.getSingleTarget();
+	}
+
+	/**
+	 * @return The metadata as it would be cached, or null if it can't be: if it is too
+	 * big to fit in a manifest, it would be inserted separately.
+	 */
+	public static byte[] serialize(Metadata m) {
+		byte[] buf;
+		try {
+			buf = m.writeToByteArray();
+		} catch (MetadataUnresolvedException e) {
+			return null;
+		}
+		if(buf.length > MAX_ENTRY_SIZE) return null;
+		return buf;
+	}
+
+	/**
+	 * Remember the metadata for data which has been inserted.
+	 * @param buf The metadata, from serialize().
+	 */
+	public void put(String key, byte[] buf) {
+		synchronized(this) {
+			byte[] old = entries.get(key);
+			if(old != null) bytes -= old.length;
+			entries.push(key, buf);
+			bytes += buf.length;
+			while(bytes > maxBytes && entries.size() > 1) {
+				byte[] dropped = entries.popValue();
+				bytes -= dropped.length;
+			}
+		}
+		if(logMINOR) Logger.minor(this, "Cached "+key);
+	}
+
+	/** Remember the CHK a container was inserted to. */
+	public void putURI(String key, FreenetURI uri) {
+		byte[] buf = serialize(new Metadata(Metadata.SIMPLE_REDIRECT, null, null, uri, null));
+		if(buf != null) put(key, buf);
+	}
+
+	public synchronized void remove(String key) {
+		byte[] old = entries.get(key);
+		if(old == null) return;
+		entries.removeKey(key);
+		bytes -= old.length;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Hash some data off-thread and look it up. Several files are hashed at once, up
+	 * to one per processor; the rest wait their turn.
+	 */
+	public void hash(final Bucket data, final String settings, Executor executor, final HashCallback cb) {
+		Runnable job = new Runnable() {
+
+			public void run() {
+				String key;
+				try {
+					key = key(data, settings);
+				} catch (IOException e) {
+					cb.onHashFailed(e);
+					return;
+				}
+				cb.onHashed(key, get(key));
+			}
+
+		};
+		synchronized(this) {
+			if(runningHashers >= maxHashers) {
+				waitingToHash.add(job);
+				return;
+			}
+			runningHashers++;
+		}
+		executor.execute(new Hasher(job), "Hashing "+data);
+	}
+
+	private class Hasher implements Runnable {
+
+		private Runnable job;
+
+		Hasher(Runnable first) {
+			job = first;
+		}
+
+		public void run() {
+			while(true) {
+				try {
+					job.run();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" hashing data to insert", t);
+				}
+				synchronized(InsertedDataCache.this) {
+					job = waitingToHash.poll();
+					if(job == null) {
+						runningHashers--;
+						return;
+					}
+				}
+			}
+		}
+
+	}
+
+}
@@ -4,26 +4,30 @@
 package freenet.client.async;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
-import com.db4o.query.Candidate;
-import com.db4o.query.Evaluation;
 import com.db4o.query.Query;
 
 import freenet.keys.Key;
 import freenet.node.SendableGet;
-import freenet.support.HexUtil;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
 
 /**
- * Persistable implementation of CooldownQueue. Much simpler than RequestCooldownQueue,
- * and would use much more memory if it wasn't for the database!
+ * CooldownQueue for persistent requests. The requests themselves record when each
+ * of their keys comes out of cooldown (SplitFileFetcherSegment's cooldown times,
+ * BaseSingleFileFetcher's cooldownWakeupTime), and store that along with the rest
+ * of their state, so the queue only needs an index of which keys come out when.
+ * This is kept in memory and rebuilt from the requests on startup, so adding keys
+ * and waking them up doesn't touch the database at all. We used to store an item
+ * for every key in the database and query for them, which was a major source of
+ * database load with big downloads.
  *
- * Creator must call setContainer() and setCooldownTime() before use, after pulling it
+ * Creator must call setCooldownTime() and rebuild() before use, after pulling it
  * out of the database.
  * @author toad
  */
@@ -43,191 +47,180 @@ public class PersistentCooldownQueue implements CooldownQueue {
 
 	private long cooldownTime;
 
-	/** Cache of items found by removeKeyBefore() that could not be returned.
-	 * Kept deactivated to minimise memory usage, but if we have a big
-	 * backlog, this can avoid having to re-run the query. */
-	private transient LinkedList<PersistentCooldownQueueItem> itemsFromLastTime;
+	/** Keys by the time they come out of cooldown, rounded up to a second so that keys
+	 * queued at around the same time share an entry. */
+	private transient TreeMap<Long, ArrayList<Key>> keysByTime;
+	private transient int size;
 
-	private static final int KEEP_ITEMS_FROM_LAST_TIME = 1024;
+	private static final long TIME_GRANULARITY = 1000;
+
+	/** Wake-up statistics */
+	private transient long wakeups;
+	private transient long keysWokenUp;
+	private transient int largestWakeup;
 
 	void setCooldownTime(long time) {
 		cooldownTime = time;
-		itemsFromLastTime = new LinkedList<PersistentCooldownQueueItem>();
+		keysByTime = new TreeMap<Long, ArrayList<Key>>();
+		size = 0;
+	}
+
+	private static long bucket(long time) {
+		return ((time + TIME_GRANULARITY - 1) / TIME_GRANULARITY) * TIME_GRANULARITY;
 	}
 
 	public long add(Key key, SendableGet client, ObjectContainer container) {
 		assert(cooldownTime != 0);
 		long removeTime = System.currentTimeMillis() + cooldownTime;
-		container.activate(key, 5);
-		PersistentCooldownQueueItem persistentCooldownQueueItem = new PersistentCooldownQueueItem(client, key.cloneKey(), removeTime, this);
-		container.store(persistentCooldownQueueItem);
+		if(container != null)
+			container.activate(key, 5);
+		restore(key.cloneKey(), removeTime);
 		return removeTime;
 	}
 
-	public boolean removeKey(final Key key, final SendableGet client, final long time, ObjectContainer container) {
-		boolean found = false;
-		final String keyAsBytes = HexUtil.bytesToHex(key.getFullKey());
-		Query query = container.query();
-		query.constrain(PersistentCooldownQueueItem.class);
-		query.descend("keyAsBytes").constrain(keyAsBytes);
-		// The result from parent will be huge, and client may be huge too.
-		// Don't bother with a join, just check in the evaluation.
-//		query.descend("client").constrain(client);
-//		query.descend("parent").constrain(this);
-		Evaluation eval = new Evaluation() {
-			final private static long serialVersionUID = 1537102695504880276L;
-
-			public void evaluate(Candidate candidate) {
-				PersistentCooldownQueueItem item = (PersistentCooldownQueueItem) candidate.getObject();
-				if(item.client != client) {
-					candidate.include(false);
-					return;
-				}
-				if(item.parent != PersistentCooldownQueue.this) {
-					candidate.include(false);
-					return;
-				}
-				Key k = item.key;
-				candidate.objectContainer().activate(k, 5);
-				if(k.equals(key))
-					candidate.include(true);
-				else {
-					candidate.include(false);
-					candidate.objectContainer().deactivate(k, 5);
-				}
-			}
-
-		};
-		query.constrain(eval);
-		ObjectSet results = query.execute();
-
-		while(results.hasNext()) {
-			found = true;
-			PersistentCooldownQueueItem i = (PersistentCooldownQueueItem) results.next();
-			i.delete(container);
-			itemsFromLastTime.remove(i);
+	/**
+	 * Add a key to the index with the time it comes out of cooldown, which may be in
+	 * the past, if it came out of cooldown while the node was shut down.
+	 * @param key The key. Must not be stored in the database, or must be a copy.
+	 */
+	synchronized void restore(Key key, long time) {
+		Long t = Long.valueOf(bucket(time));
+		ArrayList<Key> keys = keysByTime.get(t);
+		if(keys == null) {
+			keys = new ArrayList<Key>(1);
+			keysByTime.put(t, keys);
 		}
-		return found;
+		keys.add(key);
+		size++;
 	}
 
-	public Object removeKeyBefore(final long now, long dontCareAfterMillis, ObjectContainer container, int maxCount) {
-		return removeKeyBefore(now, dontCareAfterMillis, container, maxCount, null);
+	public synchronized boolean removeKey(Key key, SendableGet client, long time, ObjectContainer container) {
+		Long t = Long.valueOf(bucket(time));
+		ArrayList<Key> keys = keysByTime.get(t);
+		if(keys == null || !keys.remove(key)) return false;
+		size--;
+		if(keys.isEmpty()) keysByTime.remove(t);
+		return true;
 	}
 
-	public Object removeKeyBefore(final long now, long dontCareAfterMillis, ObjectContainer container, int maxCount, PersistentCooldownQueue altQueue) {
-		// Will be called repeatedly until no more keys are returned, so it doesn't
-		// matter very much if they're not in order.
-
-		// This query returns bogus results (cooldown items with times in the future).
-//		ObjectSet results = container.query(new Predicate() {
-//			public boolean match(PersistentCooldownQueueItem persistentCooldownQueueItem) {
-//				if(persistentCooldownQueueItem.time >= now) return false;
-//				if(persistentCooldownQueueItem.parent != PersistentCooldownQueue.this) return false;
-//				return true;
-//			}
-//		});
-
-		ArrayList<Key> v = null;
-		if(!itemsFromLastTime.isEmpty()) {
-			if(v == null)
-				v = new ArrayList<Key>(Math.min(maxCount, itemsFromLastTime.size()));
-			Logger.normal(this, "Overflow handling in cooldown queue: reusing items from last time, now "+itemsFromLastTime.size());
-			for(ListIterator<PersistentCooldownQueueItem> it = itemsFromLastTime.listIterator();it.hasNext() && v.size() < maxCount;) {
-				PersistentCooldownQueueItem i = it.next();
-				container.activate(i, 1);
-				if(i.parent != this && i.parent != altQueue) {
-					container.deactivate(i, 1);
-					continue;
-				}
-				if(i.time >= now) {
-					container.deactivate(i, 1);
-					if(v.isEmpty()) return i.time;
-					return v.toArray(new Key[v.size()]);
-				}
-
-				container.activate(i.key, 5);
-				if(i.client == null || !container.ext().isStored(i.client)) {
-					Logger.normal(this, "Client has been removed but not the persistent cooldown queue item: time "+i.time+" for key "+i.key);
-				}
-				if(i.key == null) {
-					Logger.error(this, "Key is null on cooldown queue! i = "+i+" client="+i.client+" key as bytes = "+i.keyAsBytes);
-				} else {
-					v.add(i.key.cloneKey());
-					i.key.removeFrom(container);
-				}
-				i.delete(container);
+	public synchronized Object removeKeyBefore(long now, long dontCareAfterMillis, ObjectContainer container, int maxCount) {
+		if(keysByTime.isEmpty()) return null;
+		Long first = keysByTime.firstKey();
+		if(first.longValue() > now) {
+			if(first.longValue() > now + dontCareAfterMillis) return null;
+			return first;
+		}
+		ArrayList<Key> v = new ArrayList<Key>(Math.min(maxCount, size));
+		int due = 0;
+		for(Iterator<Map.Entry<Long, ArrayList<Key>>> it = keysByTime.entrySet().iterator();it.hasNext();) {
+			Map.Entry<Long, ArrayList<Key>> entry = it.next();
+			if(entry.getKey().longValue() > now) break;
+			ArrayList<Key> keys = entry.getValue();
+			due += keys.size();
+			while(v.size() < maxCount && !keys.isEmpty())
+				v.add(keys.remove(keys.size()-1));
+			if(keys.isEmpty())
 				it.remove();
-			}
+			if(v.size() == maxCount) break;
 		}
-		if(v != null && v.size() == maxCount)
-			return v.toArray(new Key[v.size()]);
+		size -= v.size();
+		wakeups++;
+		keysWokenUp += v.size();
+		if(v.size() > largestWakeup) largestWakeup = v.size();
+		if(logMINOR) Logger.minor(this, "Woke up "+v.size()+" keys, at least "+(due - v.size())+" more due, "+size+" in cooldown");
+		return v.toArray(new Key[v.size()]);
+	}
 
-		// Lets re-code it in SODA.
+	/**
+	 * Rebuild the index from the requests in the database. Called on startup, on the
+	 * database thread.
+	 * @param ssks True to restore SSKs, false to restore CHKs.
+	 */
+	void rebuild(ObjectContainer container, boolean ssks) {
 		long tStart = System.currentTimeMillis();
-		Query query = container.query();
-		query.constrain(PersistentCooldownQueueItem.class);
-		// Don't constrain on parent.
-		// parent index is humongous, so we get a huge memory spike, queries take ages.
-		// Just check manually.
-		query.descend("time").orderAscending().constrain(Long.valueOf(now + dontCareAfterMillis)).smaller();
-		ObjectSet results = query.execute();
-		if(results.hasNext()) {
-			long tEnd = System.currentTimeMillis();
-			if(tEnd - tStart > 1000)
-				Logger.error(this, "Query took "+(tEnd-tStart)+" for "+results.size());
-			else
-				if(logMINOR)
-					Logger.minor(this, "Query took "+(tEnd-tStart));
-			if(v == null)
-				v = new ArrayList<Key>(Math.min(maxCount, results.size()));
-			while(results.hasNext() && v.size() < maxCount) {
-				PersistentCooldownQueueItem i = (PersistentCooldownQueueItem) results.next();
-				if(i.parent != this && i.parent != altQueue) {
-					continue;
-				}
-				if(i.time >= now) {
-					if(v.isEmpty()) return i.time;
-					break;
-				}
-				container.activate(i.key, 5);
-				if(i.client == null || !container.ext().isStored(i.client)) {
-					Logger.normal(this, "Client has been removed but not the persistent cooldown queue item: time "+i.time+" for key "+i.key);
-				}
-				if(i.key == null) {
-					Logger.error(this, "Key is null on cooldown queue! i = "+i+" client="+i.client+" key as bytes = "+i.keyAsBytes);
-				} else {
-					v.add(i.key.cloneKey());
-					i.key.removeFrom(container);
-				}
-				i.delete(container);
+		int restored = 0;
+		if(!ssks) {
+			// Splitfiles are all CHKs.
+			Query query = container.query();
+			query.constrain(SplitFileFetcherSegment.class);
+			query.descend("finished").constrain(Boolean.FALSE);
+			ObjectSet<SplitFileFetcherSegment> segments = query.execute();
+			while(segments.hasNext()) {
+				SplitFileFetcherSegment segment = segments.next();
+				container.activate(segment, 1);
+				restored += segment.restoreCooldown(this, container);
+				container.deactivate(segment, 1);
 			}
-			if(!v.isEmpty()) {
-				while(results.hasNext() && itemsFromLastTime.size() < KEEP_ITEMS_FROM_LAST_TIME) {
-					PersistentCooldownQueueItem i = (PersistentCooldownQueueItem) results.next();
-					container.deactivate(i, 1);
-					itemsFromLastTime.add(i);
-				}
-				Logger.normal(this, "Overflow handling in cooldown queue: added items, items from last time now "+itemsFromLastTime.size());
-				return v.toArray(new Key[v.size()]);
-			}
-		} else {
-			long tEnd = System.currentTimeMillis();
-			if(tEnd - tStart > 1000)
-				Logger.error(this, "Query took "+(tEnd-tStart));
-			else
-				if(logMINOR)
-					Logger.minor(this, "Query took "+(tEnd-tStart));
-			return null;
 		}
-		return null;
+		Query query = container.query();
+		query.constrain(BaseSingleFileFetcher.class);
+		query.descend("cooldownWakeupTime").constrain(Long.valueOf(0)).greater();
+		ObjectSet<BaseSingleFileFetcher> fetchers = query.execute();
+		while(fetchers.hasNext()) {
+			BaseSingleFileFetcher fetcher = fetchers.next();
+			container.activate(fetcher, 1);
+			if(fetcher.restoreCooldown(this, ssks, container))
+				restored++;
+			container.deactivate(fetcher, 1);
+		}
+		restored += migrate(container);
+		long tEnd = System.currentTimeMillis();
+		Logger.normal(this, "Restored "+restored+" "+(ssks ? "SSK" : "CHK")+" keys to cooldown queue in "+(tEnd-tStart)+"ms");
 	}
 
-	public long size(ObjectContainer container) {
+	/** Move the keys from the items older versions stored in the database into the
+	 * index, and delete the items. */
+	private int migrate(ObjectContainer container) {
 		Query query = container.query();
 		query.constrain(PersistentCooldownQueueItem.class);
-		query.descend("parent").constrain(this).identity();
-		ObjectSet results = query.execute();
-		return results.size();
+		ObjectSet<PersistentCooldownQueueItem> results = query.execute();
+		int count = 0;
+		while(results.hasNext()) {
+			PersistentCooldownQueueItem i = results.next();
+			if(i.parent != this) continue;
+			if(i.key != null)
+				container.activate(i.key, 5);
+			if(migrate(i))
+				count++;
+			i.delete(container);
+		}
+		if(count > 0)
+			Logger.normal(this, "Migrated "+count+" keys from the old cooldown queue");
+		return count;
+	}
+
+	/**
+	 * Add the key from an item an older version stored in the database to the index.
+	 * @param i The item, with its key activated.
+	 * @return False if the item had no key.
+	 */
+	boolean migrate(PersistentCooldownQueueItem i) {
+		if(i.key == null) {
+			Logger.error(this, "Key is null on cooldown queue! i = "+i+" client="+i.client+" key as bytes = "+i.keyAsBytes);
+			return false;
+		}
+		restore(i.key.cloneKey(), i.time);
+		return true;
+	}
+
+	public synchronized long size(ObjectContainer container) {
+		return size;
+	}
+
+	/** @return The number of times keys have been woken up. */
+	public synchronized long getWakeups() {
+		return wakeups;
+	}
+
+	/** @return The average number of keys woken up at once. */
+	public synchronized double getAverageWakeupSize() {
+		if(wakeups == 0) return 0.0;
+		return (double) keysWokenUp / wakeups;
+	}
+
+	/** @return The most keys woken up at once. */
+	public synchronized int getLargestWakeup() {
+		return largestWakeup;
 	}
 
 }
@@ -126,6 +126,10 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 	 * KeyListener), it will remain valid, once it is set by the first call
 	 * during resuming. */
 	private transient SplitFileFetcherKeyListener tempListener;
+	/** If not null, we are streaming the data to the client as the segments
+	 * are decoded, rather than returning it all at once. Transient requests
+	 * only. */
+	private transient SplitFileStreamer streamer;
 
 	public SplitFileFetcher(Metadata metadata, GetCompletionCallback rcb, ClientRequester parent2,
 			FetchContext newCtx, boolean deleteFetchContext, List<? extends Compressor> decompressors2, ClientMetadata clientMetadata,
@@ -355,6 +359,24 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		} catch (IOException e) {
 			throw new FetchException(FetchException.BUCKET_ERROR, "Unable to write Bloom filters for splitfile");
 		}
+
+		// If this is the final data, the client may want it streamed.
+		if(!persistent && cb == parent && parent instanceof ClientGetter && decompressors.size() <= 1) {
+			ClientGetter getter = (ClientGetter) parent;
+			if(getter.canStream()) {
+				Compressor decompressor = decompressors.isEmpty() ? null : decompressors.get(0);
+				long streamLength;
+				if(decompressor == null)
+					streamLength = finalLength;
+				else if(metadata.uncompressedDataLength() > 0)
+					streamLength = metadata.uncompressedDataLength();
+				else
+					streamLength = -1;
+				long maxLen = Math.max(fetchContext.maxTempLength, fetchContext.maxOutputLength);
+				streamer = new SplitFileStreamer(segments, new StreamTarget(getter, context), decompressor, finalLength, streamLength, maxLen, context.mainExecutor);
+				if(logMINOR) Logger.minor(this, "Will stream "+this+" length "+streamLength+" decompressor "+decompressor);
+			}
+		}
 	}
 
 	/** Return the final status of the fetch. Throws an exception, or returns a
@@ -454,6 +476,7 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			notifyAll();
 		}
 		if(persistent) container.store(this);
+		if(streamer != null) streamer.segmentFinished();
 		if(finish) finish(container, context);
 	}
 
@@ -477,6 +500,12 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			context.jobRunner.setCommitThisTransaction();
 			if(persistent)
 				container.store(this);
+			if(streamer != null) {
+				// The streamer reports success once it has written everything.
+				for(int i=0;i<segments.length;i++)
+					segments[i].throwError(container);
+				return;
+			}
 			Bucket data = finalStatus(container, context);
 			// Decompress
 			if(persistent) {
@@ -533,19 +562,65 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 			}
 			cb.onSuccess(new FetchResult(clientMetadata, data), this, container, context);
 		} catch (FetchException e) {
-			cb.onFailure(e, this, container, context);
+			if(streamFailed())
+				cb.onFailure(e, this, container, context);
 		} catch (OutOfMemoryError e) {
 			OOMHandler.handleOOM(e);
 			System.err.println("Failing above attempted fetch...");
-			cb.onFailure(new FetchException(FetchException.INTERNAL_ERROR, e), this, container, context);
+			if(streamFailed())
+				cb.onFailure(new FetchException(FetchException.INTERNAL_ERROR, e), this, container, context);
 		} catch (Throwable t) {
 			Logger.error(this, "Caught "+t, t);
-			cb.onFailure(new FetchException(FetchException.INTERNAL_ERROR, t), this, container, context);
+			if(streamFailed())
+				cb.onFailure(new FetchException(FetchException.INTERNAL_ERROR, t), this, container, context);
 		}
 		if(!cbWasActive)
 			container.deactivate(cb, 1);
 	}
 
+	/** Passes the streamer's progress on to the ClientGetter. */
+	private class StreamTarget implements SplitFileStreamer.Target {
+
+		private final ClientGetter getter;
+		private final ClientContext context;
+
+		StreamTarget(ClientGetter getter, ClientContext context) {
+			this.getter = getter;
+			this.context = context;
+		}
+
+		public OutputStream startStreaming(long length) throws IOException {
+			return getter.startStreaming(length);
+		}
+
+		public void onStreamSuccess(long length) {
+			getter.onStreamSuccess(length, SplitFileFetcher.this, context);
+		}
+
+		public void onStreamFailure(FetchException e) {
+			getter.onFailure(e, SplitFileFetcher.this, null, context);
+			// Stop fetching.
+			cancel(null, context);
+		}
+
+		@Override
+		public String toString() {
+			return getter.toString();
+		}
+
+	}
+
+	/**
+	 * Stop streaming, if we are, because the fetch has failed.
+	 * @return True if we should report the failure, false if the streamer
+	 * already has.
+	 */
+	private boolean streamFailed() {
+		if(streamer == null) return true;
+		streamer.abort();
+		return streamer.claimCompletion();
+	}
+
 	public void schedule(ObjectContainer container, ClientContext context) throws KeyListenerConstructionException {
 		if(persistent)
 			container.activate(this, 1);
@@ -4,6 +4,7 @@
 package freenet.client.async;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.HashSet;
 import java.util.Vector;
@@ -26,7 +27,6 @@ import freenet.keys.CHKEncodeException;
 import freenet.keys.CHKVerifyException;
 import freenet.keys.ClientCHK;
 import freenet.keys.ClientCHKBlock;
-import freenet.keys.ClientKey;
 import freenet.keys.ClientKeyBlock;
 import freenet.keys.Key;
 import freenet.keys.KeyBlock;
@@ -46,7 +46,7 @@ import freenet.support.io.BucketTools;
  * A single segment within a SplitFileFetcher.
  * This in turn controls a large number of SplitFileFetcherSubSegment's, which are registered on the ClientRequestScheduler.
  */
-public class SplitFileFetcherSegment implements FECCallback {
+public class SplitFileFetcherSegment implements FECCallback, SplitFileStreamer.Segment {
 
 	private static volatile boolean logMINOR;
 	
@@ -125,10 +125,22 @@ public class SplitFileFetcherSegment implements FECCallback {
 	
 	private transient FECCodec codec;
 	
+	/** Index from routing key to block number, built on first use. Not
+	 * stored, see getKeyIndex(). */
+	private transient SplitFileSegmentKeyIndex keyIndex;
+	
 	public SplitFileFetcherSegment(short splitfileType, ClientCHK[] splitfileDataKeys, ClientCHK[] splitfileCheckKeys, SplitFileFetcher fetcher, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock) throws MetadataParseException, FetchException {
+		this(splitfileType, splitfileDataKeys, splitfileCheckKeys, fetcher, fetcher.persistent, archiveContext, blockFetchContext, maxTempLength, recursionLevel, requester, segNum, ignoreLastDataBlock);
+	}
+
+	/**
+	 * @param persistent Whether the fetcher is persistent. Tests create a
+	 * transient segment without a fetcher.
+	 */
+	SplitFileFetcherSegment(short splitfileType, ClientCHK[] splitfileDataKeys, ClientCHK[] splitfileCheckKeys, SplitFileFetcher fetcher, boolean persistent, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock) throws MetadataParseException, FetchException {
 		this.segNum = segNum;
 		this.hashCode = super.hashCode();
-		this.persistent = fetcher.persistent;
+		this.persistent = persistent;
 		this.parentFetcher = fetcher;
 		this.ignoreLastDataBlock = ignoreLastDataBlock;
 		this.errors = new FailureCodeTracker(false);
@@ -217,6 +229,12 @@ public class SplitFileFetcherSegment implements FECCallback {
 		return len;
 	}
 
+	/** Read the decoded segment's data. Only valid for a transient segment
+	 * which has succeeded, until freeDecodedData() is called. */
+	public InputStream getDecodedDataInputStream() throws IOException {
+		return decodedData.getInputStream();
+	}
+
 	/** How many blocks have failed due to running out of retries? */
 	public synchronized int failedBlocks() {
 		return failedBlocks;
@@ -1230,20 +1248,22 @@ public class SplitFileFetcherSegment implements FECCallback {
 			container.activate(this, 1);
 		Vector<SplitFileFetcherSubSegment> v = null;
 		boolean notFound = true;
+		boolean changed = false;
 		synchronized(this) {
 		if(isFinishing(container)) return false;
 		int maxTries = blockFetchContext.maxNonSplitfileRetries;
-		for(int i=0;i<dataKeys.length;i++) {
-			if(dataKeys[i] == null) continue;
-			ClientKey k = dataKeys[i];
-			if(persistent)
-				container.activate(k, 5);
-			if(k.getNodeKey(false).equals(key)) {
+		for(int blockNum = findBlock(key, -1, container); blockNum >= 0; blockNum = findBlock(key, blockNum, container)) {
+			if(blockNum < dataKeys.length) {
+				int i = blockNum;
 				if(dataCooldownTimes[i] > time) {
 					if(logMINOR)
 						Logger.minor(this, "Not retrying after cooldown for data block "+i+" as deadline has not passed yet on "+this+" remaining time: "+(dataCooldownTimes[i]-time)+"ms");
 					return false;
 				}
+				if(dataCooldownTimes[i] > 0) {
+					dataCooldownTimes[i] = -1;
+					changed = true;
+				}
 				int tries = dataRetries[i];
 				SplitFileFetcherSubSegment sub = getSubSegment(tries, container, false, dontDeactivate);
 				if(logMINOR)
@@ -1254,21 +1274,16 @@ public class SplitFileFetcherSegment implements FECCallback {
 				if(!v.contains(sub)) v.add(sub);
 				notFound = false;
 			} else {
-				if(persistent)
-					container.deactivate(k, 5);
-			}
-		}
-		for(int i=0;i<checkKeys.length;i++) {
-			if(checkKeys[i] == null) continue;
-			ClientKey k = checkKeys[i];
-			if(persistent)
-				container.activate(k, 5);
-			if(k.getNodeKey(false).equals(key)) {
+				int i = blockNum - dataKeys.length;
 				if(checkCooldownTimes[i] > time) {
 					if(logMINOR)
 						Logger.minor(this, "Not retrying after cooldown for check block "+i+" as deadline has not passed yet on "+this+" remaining time: "+(checkCooldownTimes[i]-time)+"ms");
 					return false;
 				}
+				if(checkCooldownTimes[i] > 0) {
+					checkCooldownTimes[i] = -1;
+					changed = true;
+				}
 				int tries = checkRetries[i];
 				SplitFileFetcherSubSegment sub = getSubSegment(tries, container, false, dontDeactivate);
 				if(logMINOR)
@@ -1277,15 +1292,14 @@ public class SplitFileFetcherSegment implements FECCallback {
 				sub.add(i+dataKeys.length, container, context, true);
 				if(!v.contains(sub)) v.add(sub);
 				notFound = false;
-			} else {
-				if(persistent)
-					container.deactivate(k, 5);
 			}
 		}
 		}
 		if(notFound) {
 			Logger.error(this, "requeueAfterCooldown: Key not found!: "+key+" on "+this);
 		}
+		if(changed && persistent)
+			container.store(this);
 		if(v != null) {
 			for(int i=0;i<v.size();i++) {
 				SplitFileFetcherSubSegment sub = v.get(i);
@@ -1313,62 +1327,97 @@ public class SplitFileFetcherSegment implements FECCallback {
 		return true;
 	}
 
-	public synchronized long getCooldownWakeupByKey(Key key, ObjectContainer container) {
+	/**
+	 * Add the keys of the blocks which were waiting to come out of cooldown when the
+	 * node was shut down to the persistent cooldown queue.
+	 * @return The number of keys added.
+	 */
+	synchronized int restoreCooldown(PersistentCooldownQueue queue, ObjectContainer container) {
+		if(finished || fetcherFinished) return 0;
+		int count = 0;
 		for(int i=0;i<dataKeys.length;i++) {
-			if(dataKeys[i] == null) continue;
-			ClientKey k = dataKeys[i];
-			if(persistent)
-				container.activate(k, 5);
-			if(k.getNodeKey(false).equals(key)) {
-				return dataCooldownTimes[i];
-			} else {
-				if(persistent)
-					container.deactivate(k, 5);
-			}
+			if(dataCooldownTimes[i] <= 0 || dataKeys[i] == null) continue;
+			container.activate(dataKeys[i], 5);
+			queue.restore(dataKeys[i].getNodeKey(true), dataCooldownTimes[i]);
+			container.deactivate(dataKeys[i], 5);
+			count++;
 		}
 		for(int i=0;i<checkKeys.length;i++) {
-			if(checkKeys[i] == null) continue;
-			ClientKey k = checkKeys[i];
-			if(persistent)
-				container.activate(k, 5);
-			if(checkKeys[i].getNodeKey(false).equals(key)) {
-				return checkCooldownTimes[i];
-			} else {
-				if(persistent)
-					container.deactivate(k, 5);
-			}
+			if(checkCooldownTimes[i] <= 0 || checkKeys[i] == null) continue;
+			container.activate(checkKeys[i], 5);
+			queue.restore(checkKeys[i].getNodeKey(true), checkCooldownTimes[i]);
+			container.deactivate(checkKeys[i], 5);
+			count++;
 		}
-		return -1;
+		return count;
+	}
+
+	public synchronized long getCooldownWakeupByKey(Key key, ObjectContainer container) {
+		int blockNum = findBlock(key, -1, container);
+		if(blockNum < 0) return -1;
+		if(blockNum < dataKeys.length)
+			return dataCooldownTimes[blockNum];
+		else
+			return checkCooldownTimes[blockNum - dataKeys.length];
 	}
 
 	public synchronized int getBlockNumber(Key key, ObjectContainer container) {
-		for(int i=0;i<dataKeys.length;i++) {
-			ClientCHK k = dataKeys[i];
+		return findBlock(key, -1, container);
+	}
+
+	/**
+	 * Find the next block whose key is <code>key</code>. Only the candidates
+	 * suggested by the key index are activated and compared. Blocks which
+	 * have already been fetched (their key has been nulled out) are skipped.
+	 * Must be called with the lock held.
+	 * @param after -1 to find the first matching block, or the previous
+	 * matching block to find the next one (splitfiles may contain duplicate
+	 * blocks).
+	 * @return The block number (check blocks are numbered after data
+	 * blocks), or -1.
+	 */
+	int findBlock(Key key, int after, ObjectContainer container) {
+		SplitFileSegmentKeyIndex index = getKeyIndex(container);
+		byte[] routingKey = key.getRoutingKey();
+		int blockNum = after;
+		while((blockNum = index.find(routingKey, blockNum)) >= 0) {
+			ClientCHK k = blockNum < dataKeys.length ? dataKeys[blockNum] : checkKeys[blockNum - dataKeys.length];
 			if(k == null) continue;
 			if(persistent)
 				container.activate(k, 5);
 			if(k.getRoutingKey() == null)
-				throw new NullPointerException("Routing key is null yet key exists for data block "+i+" of "+this+(persistent?(" stored="+container.ext().isStored(k)+" active="+container.ext().isActive(k)) : ""));
-			if(k.getNodeKey(false).equals(key)) return i;
-			else {
-				if(persistent)
-					container.deactivate(k, 5);
-			}
+				throw new NullPointerException("Routing key is null yet key exists for block "+blockNum+" of "+this+(persistent?(" stored="+container.ext().isStored(k)+" active="+container.ext().isActive(k)) : ""));
+			if(k.getNodeKey(false).equals(key)) return blockNum;
+			if(persistent)
+				container.deactivate(k, 5);
 		}
-		for(int i=0;i<checkKeys.length;i++) {
-			ClientCHK k = checkKeys[i];
+		return -1;
+	}
+
+	/**
+	 * Get the key index, building it if necessary. Building it activates
+	 * each remaining key once; after that, lookups by key only touch the
+	 * candidate blocks. Keys are only ever removed from the segment, never
+	 * added or changed, so the index never needs updating: lookups simply
+	 * skip blocks whose key has gone. Must be called with the lock held.
+	 */
+	private SplitFileSegmentKeyIndex getKeyIndex(ObjectContainer container) {
+		if(keyIndex != null) return keyIndex;
+		SplitFileSegmentKeyIndex index = new SplitFileSegmentKeyIndex(dataKeys.length + checkKeys.length);
+		for(int i=0;i<dataKeys.length+checkKeys.length;i++) {
+			ClientCHK k = i < dataKeys.length ? dataKeys[i] : checkKeys[i - dataKeys.length];
 			if(k == null) continue;
 			if(persistent)
 				container.activate(k, 5);
-			if(k.getRoutingKey() == null)
-				throw new NullPointerException("Routing key is null yet key exists for check block "+i+" of "+this);
-			if(k.getNodeKey(false).equals(key)) return dataKeys.length+i;
-			else {
-				if(persistent)
-					container.deactivate(k, 5);
-			}
+			byte[] routingKey = k.getRoutingKey();
+			if(routingKey == null)
+				throw new NullPointerException("Routing key is null yet key exists for block "+i+" of "+this);
+			index.add(routingKey, i);
+			if(persistent)
+				container.deactivate(k, 5);
 		}
-		return -1;
+		keyIndex = index;
+		return index;
 	}
 
 	public synchronized Integer[] getKeyNumbersAtRetryLevel(int retryCount) {
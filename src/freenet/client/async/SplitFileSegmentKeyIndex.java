@@ -0,0 +1,79 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * Compact open-addressed index from the first 4 bytes of a block's routing
+ * key to its block number within a splitfile segment. Routing keys are
+ * hashes, so the prefix is well distributed; it is only a hint, callers must
+ * check the full key of each candidate. Blocks with identical keys (duplicate
+ * blocks are legal in a splitfile) each get their own entry.
+ *
+ * Lets SplitFileFetcherSegment find a block without activating and comparing
+ * every key in the segment. Never stored in the database: it is cheap to
+ * rebuild and a segment only needs it while it is in memory.
+ */
+final class SplitFileSegmentKeyIndex {
+
+	/** Block number + 1 for each slot, 0 = empty */
+	private final int[] blocks;
+	/** Routing key prefix for each occupied slot */
+	private final int[] prefixes;
+	private final int mask;
+
+	/**
+	 * @param maxBlocks The maximum number of blocks that will be added.
+	 */
+	SplitFileSegmentKeyIndex(int maxBlocks) {
+		// Keep the load factor under 3/4 so probe sequences stay short.
+		int size = 4;
+		while(size * 3 < maxBlocks * 4) size <<= 1;
+		blocks = new int[size];
+		prefixes = new int[size];
+		mask = size - 1;
+	}
+
+	static int prefix(byte[] routingKey) {
+		return ((routingKey[0] & 0xff) << 24) | ((routingKey[1] & 0xff) << 16) |
+			((routingKey[2] & 0xff) << 8) | (routingKey[3] & 0xff);
+	}
+
+	private int home(int prefix) {
+		// Mix in the high bits, since the mask keeps only the low ones.
+		return (prefix ^ (prefix >>> 16)) & mask;
+	}
+
+	/**
+	 * Add a block. Blocks must be added in increasing order of block number,
+	 * so that find() returns duplicates lowest first.
+	 */
+	void add(byte[] routingKey, int blockNum) {
+		int prefix = prefix(routingKey);
+		int slot = home(prefix);
+		while(blocks[slot] != 0)
+			slot = (slot + 1) & mask;
+		blocks[slot] = blockNum + 1;
+		prefixes[slot] = prefix;
+	}
+
+	/**
+	 * Find the lowest block number greater than <code>after</code> whose
+	 * routing key starts with the same 4 bytes as the given key.
+	 * @param after -1 to find the first candidate, or the last candidate
+	 * returned to find the next one.
+	 * @return A candidate block number, or -1 if there are no more.
+	 */
+	int find(byte[] routingKey, int after) {
+		int prefix = prefix(routingKey);
+		int slot = home(prefix);
+		int block;
+		while((block = blocks[slot]) != 0) {
+			if(prefixes[slot] == prefix && block - 1 > after)
+				return block - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+}
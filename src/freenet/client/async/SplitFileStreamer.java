@@ -0,0 +1,249 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchException;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.compress.CompressionOutputSizeException;
+import freenet.support.compress.Compressor;
+import freenet.support.io.Closer;
+
+/**
+ * Streams a transient splitfile to a StreamingClientGetCallback, via the
+ * ClientGetter, as it is decoded. Segments are written strictly in order,
+ * each as soon as it and all the segments before it have been decoded, and
+ * then freed, so the client starts getting data long before the whole file
+ * has been fetched, and we never need to keep a copy of the whole file. If
+ * the splitfile is compressed we decompress on the fly.
+ *
+ * Runs on its own thread, started when the first segment has been decoded,
+ * so a slow client does not hold up the decoders. Reports success to the
+ * Target. A failed segment is reported by SplitFileFetcher.finish() as
+ * usual; we just stop writing. If writing or decompressing fails we report
+ * the failure to the Target, which cancels the fetch.
+ */
+final class SplitFileStreamer implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SplitFileStreamer.class);
+	}
+
+	/** A segment of the splitfile: SplitFileFetcherSegment. Only the methods
+	 * used on a transient segment, so the container is always null. */
+	interface Segment {
+		/** Has the segment finished, whether it was decoded or failed? */
+		boolean succeeded();
+		void throwError(ObjectContainer container) throws FetchException;
+		long decodedLength(ObjectContainer container);
+		InputStream getDecodedDataInputStream() throws IOException;
+		void freeDecodedData(ObjectContainer container);
+	}
+
+	/** Where the data goes, and who hears how it ended: the ClientGetter,
+	 * via the SplitFileFetcher. */
+	interface Target {
+		/** See ClientGetter.startStreaming(). */
+		OutputStream startStreaming(long length) throws IOException;
+		/** All the data has been written. */
+		void onStreamSuccess(long length);
+		/** Writing failed. Report the failure and stop the fetch. */
+		void onStreamFailure(FetchException e);
+	}
+
+	private final Segment[] segments;
+	private final Target target;
+	private final Executor executor;
+	/** Null if the data is not compressed */
+	private final Compressor decompressor;
+	/** Length of the (possibly compressed) data in the segments */
+	private final long dataLength;
+	/** Exact length of the data we will write, or -1 if we don't know yet */
+	private final long streamLength;
+	/** Maximum length of the decompressed data */
+	private final long maxLength;
+	private boolean started;
+	private boolean aborted;
+	private boolean completed;
+
+	SplitFileStreamer(Segment[] segments, Target target, Compressor decompressor,
+			long dataLength, long streamLength, long maxLength, Executor executor) {
+		this.segments = segments;
+		this.target = target;
+		this.decompressor = decompressor;
+		this.dataLength = dataLength;
+		this.streamLength = streamLength;
+		this.maxLength = maxLength;
+		this.executor = executor;
+	}
+
+	/** Called whenever a segment finishes. Starts streaming once the first
+	 * segment is ready. */
+	void segmentFinished() {
+		synchronized(this) {
+			if(started) {
+				notifyAll();
+				return;
+			}
+			if(aborted || !segments[0].succeeded()) return;
+			started = true;
+		}
+		executor.execute(this, "Streaming splitfile for "+target);
+	}
+
+	/** Stop streaming, e.g. because the fetch failed. */
+	synchronized void abort() {
+		aborted = true;
+		notifyAll();
+	}
+
+	/**
+	 * Claim the right to report the outcome of a streamed request. Either we
+	 * report it or the fetcher does, never both.
+	 * @return False if the outcome has already been reported.
+	 */
+	synchronized boolean claimCompletion() {
+		if(completed) return false;
+		completed = true;
+		return true;
+	}
+
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		SegmentInputStream is = new SegmentInputStream();
+		try {
+			OutputStream os = target.startStreaming(streamLength);
+			long written;
+			if(decompressor == null) {
+				written = 0;
+				byte[] buf = new byte[32768];
+				int read;
+				while((read = is.read(buf, 0, buf.length)) > 0) {
+					os.write(buf, 0, read);
+					written += read;
+				}
+			} else {
+				written = decompressor.decompress(is, os, maxLength, maxLength * 4);
+			}
+			os.flush();
+			if(logMINOR) Logger.minor(this, "Streamed "+written+" bytes for "+target);
+			if(claimCompletion())
+				target.onStreamSuccess(written);
+		} catch (SegmentFailedException e) {
+			// SplitFileFetcher will report the failure.
+			if(logMINOR) Logger.minor(this, "Stopped streaming "+target+" : "+e.getMessage());
+		} catch (CompressionOutputSizeException e) {
+			fail(new FetchException(FetchException.TOO_BIG, e.estimatedSize, false, null));
+		} catch (IOException e) {
+			// Either the client has gone away or the data is corrupt.
+			if(logMINOR) Logger.minor(this, "Streaming failed for "+target+" : "+e, e);
+			fail(new FetchException(FetchException.BUCKET_ERROR, e));
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" streaming "+target, t);
+			fail(new FetchException(FetchException.INTERNAL_ERROR, t));
+		} finally {
+			is.close();
+		}
+	}
+
+	private void fail(FetchException e) {
+		if(!claimCompletion()) return;
+		// The fetcher will not report the cancel, because we have already
+		// claimed the completion.
+		target.onStreamFailure(e);
+	}
+
+	/** A segment failed or we were aborted. Not reported by the streamer. */
+	private static class SegmentFailedException extends IOException {
+		private static final long serialVersionUID = 1L;
+		SegmentFailedException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Reads the decoded segments in order, waiting for each one to be decoded,
+	 * and frees each one as soon as it has been read.
+	 */
+	private class SegmentInputStream extends InputStream {
+
+		private int nextSegment;
+		private Segment current;
+		private InputStream currentStream;
+		private long currentLeft;
+		private long totalRead;
+
+		@Override
+		public int read() throws IOException {
+			byte[] buf = new byte[1];
+			int x = read(buf, 0, 1);
+			if(x <= 0) return -1;
+			return buf[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			while(true) {
+				if(currentStream != null) {
+					int x = currentStream.read(buf, offset, (int) Math.min(length, currentLeft));
+					if(x > 0) {
+						currentLeft -= x;
+						totalRead += x;
+						return x;
+					}
+					closeCurrent();
+				}
+				if(nextSegment == segments.length || totalRead >= dataLength) return -1;
+				Segment s = segments[nextSegment];
+				waitFor(s);
+				try {
+					s.throwError(null);
+				} catch (FetchException e) {
+					throw new SegmentFailedException("Segment "+nextSegment+" failed: "+e);
+				}
+				current = s;
+				nextSegment++;
+				currentLeft = Math.min(s.decodedLength(null), dataLength - totalRead);
+				currentStream = s.getDecodedDataInputStream();
+			}
+		}
+
+		private void waitFor(Segment s) throws SegmentFailedException {
+			synchronized(SplitFileStreamer.this) {
+				while(!s.succeeded()) {
+					if(aborted) throw new SegmentFailedException("Aborted");
+					try {
+						SplitFileStreamer.this.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				if(aborted) throw new SegmentFailedException("Aborted");
+			}
+		}
+
+		private void closeCurrent() {
+			Closer.close(currentStream);
+			currentStream = null;
+			current.freeDecodedData(null);
+			current = null;
+		}
+
+		@Override
+		public void close() {
+			if(current != null) closeCurrent();
+		}
+
+	}
+
+}
@@ -0,0 +1,51 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A ClientGetCallback which would like to receive the data as it is decoded,
+ * in order, rather than all at once when the whole file has been fetched.
+ * Only supported for transient requests. Only large files (splitfiles) are
+ * streamed, and only if the content filter would not change the data; if the
+ * data is not streamed, onSuccess() is called as usual.
+ *
+ * If the data is streamed, we call onStreamStarting() once, write all the
+ * data to the returned stream, and then call either onStreamFinished() or
+ * onFailure(). onFailure() may be called after some of the data has already
+ * been written, in which case the data written is incomplete.
+ * onSuccess() is not called for a streamed request.
+ *
+ * All methods except onStreamStarting() may be called on any thread.
+ * Writes to the stream happen on a thread dedicated to the request, so
+ * blocking in write() slows down the stream (but not the fetch).
+ */
+public interface StreamingClientGetCallback extends ClientGetCallback {
+
+	/**
+	 * Do we want to stream this request? Called when the request reaches a
+	 * splitfile which could be streamed.
+	 */
+	public boolean wantsStreaming(ClientGetter state);
+
+	/**
+	 * Called just before the first byte of the data is written.
+	 * @param mimeType The MIME type of the data.
+	 * @param length The exact length of the data, or -1 if we don't know it
+	 * yet because the data is compressed.
+	 * @return The stream to write the data to. We will not close it.
+	 * @throws IOException If the client has gone away. We will cancel the
+	 * request.
+	 */
+	public OutputStream onStreamStarting(String mimeType, long length, ClientGetter state) throws IOException;
+
+	/**
+	 * Called when all the data has been written to the stream.
+	 * @param length The number of bytes written.
+	 */
+	public void onStreamFinished(long length, ClientGetter state);
+
+}
@@ -5,8 +5,10 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.TimeZone;
 
+import freenet.keys.ClientSSK;
 import freenet.keys.FreenetURI;
 import freenet.keys.InsertableUSK;
+import freenet.keys.USK;
 
 /** Utility class for date-based edition hints */
 public class USKDateHint {
@@ -60,5 +62,28 @@ public class USKDateHint {
 			uris[x++] = key.getInsertableSSK(key.siteName+PREFIX+get(t)).getInsertURI();
 		return uris;
 	}
+	
+	/** Return the keys to fetch to find the hints inserted for the current period
+	 * (year, month, day, week), for a USK with the same site name. */
+	public ClientSSK[] getRequestKeys(USK key) {
+		ClientSSK[] keys = new ClientSSK[Type.values().length];
+		int x = 0;
+		for(Type t : Type.values())
+			keys[x++] = key.getSSK(key.siteName+PREFIX+get(t));
+		return keys;
+	}
+	
+	/** Parse the data from a hint slot.
+	 * @return The edition number it gives, or -1 if it isn't a valid hint. */
+	public static long parseData(String data) {
+		String[] lines = data.split("\n");
+		if(lines.length < 2 || !lines[0].equals("HINT")) return -1;
+		try {
+			long edition = Long.parseLong(lines[1].trim());
+			return edition < 0 ? -1 : edition;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
 
 }
@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * Decides which editions a USKFetcher should probe beyond the few it checks one
+ * after another after the latest known edition. A USK which has moved on by
+ * hundreds of editions would take hundreds of rounds of sequential probing to
+ * catch up with, so instead we probe further and further ahead, doubling the
+ * distance each time we find an edition, until we get a DNF; then we binary
+ * search between the latest edition found and the lowest edition not found,
+ * until the gap is small enough for the sequential probes.
+ *
+ * This assumes editions are inserted in order, so if an edition exists, so do
+ * all the editions before it. A DNF is not proof that an edition doesn't exist,
+ * so if we find an edition beyond one we didn't find, we forget the DNF and
+ * carry on searching.
+ *
+ * LOCKING: Synchronizes on itself and doesn't call out, so it is safe to call
+ * with other locks held.
+ */
+class USKEditionSearch {
+
+	/** Don't look further ahead than this many doublings of the step. */
+	static final int MAX_DOUBLINGS = 32;
+
+	/** Gaps no bigger than this are left to the sequential probes. */
+	private final int window;
+	/** The latest edition known to exist, or -1. */
+	private long found;
+	/** How far ahead of found to probe first. */
+	private long step;
+	/** The lowest edition after found which we have failed to find, or -1 if we
+	 * haven't failed to find any yet, i.e. we are still looking further ahead. */
+	private long notFound;
+
+	/**
+	 * @param window The number of editions the fetcher probes one after another
+	 * after the latest known edition.
+	 */
+	USKEditionSearch(int window) {
+		this.window = Math.max(1, window);
+		reset();
+	}
+
+	/** Start again from the latest edition known, e.g. when a background poll wakes up. */
+	synchronized void reset() {
+		found = -1;
+		step = window * 2;
+		notFound = -1;
+	}
+
+	/**
+	 * An edition has been found, by a probe or otherwise.
+	 * @return True if it is later than the latest edition we knew about.
+	 */
+	synchronized boolean onFound(long edition) {
+		if(edition <= found) return false;
+		if(notFound == -1) {
+			// Still going forwards, so go forwards faster.
+			if(found != -1 && step < Long.MAX_VALUE / 4) step *= 2;
+		} else if(edition >= notFound) {
+			// The DNF was wrong, or the author has inserted more since.
+			notFound = -1;
+		}
+		found = edition;
+		return true;
+	}
+
+	/**
+	 * A probe failed. Like the fetcher, we treat other failures the same as DNFs;
+	 * otherwise we could go on retrying the same edition indefinitely.
+	 */
+	synchronized void onFailed(long edition) {
+		if(edition <= found) return;
+		if(notFound == -1 || edition < notFound)
+			notFound = edition;
+	}
+
+	/**
+	 * Get an edition to probe next. The fetcher asks for candidates in order,
+	 * skipping those it is already probing, until it has as many as it wants.
+	 * @param latest The latest edition known to the USKManager.
+	 * @param index Which candidate to return, starting at 0.
+	 * @return The edition, or -1 if there are no more candidates.
+	 */
+	synchronized long getProbe(long latest, int index) {
+		if(latest > found) onFound(latest);
+		long base = Math.max(found, 0);
+		if(notFound == -1) {
+			// Look further ahead: base + step, base + 2*step, base + 4*step ...
+			if(index >= MAX_DOUBLINGS) return -1;
+			long distance = step;
+			for(int i=0;i<index;i++) {
+				if(distance > Long.MAX_VALUE / 4) return -1;
+				distance *= 2;
+			}
+			return base + distance;
+		}
+		// Binary search. Only one probe at a time, as each depends on the last.
+		if(index > 0) return -1;
+		long gap = notFound - base;
+		if(gap <= window) return -1;
+		return base + gap / 2;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "search: found "+found+" step "+step+" not found "+notFound;
+	}
+
+}
@@ -75,16 +75,20 @@ import freenet.support.io.BucketTools;
  * as its current pointer.
  * 
  * Current algorithm:
- * - Fetch the next 5 editions all at once.
+ * - Fetch the next few editions all at once.
+ * - Look further ahead at the same time, doubling the distance each time we find
+ *   an edition, then binary search once we get a DNF (see USKEditionSearch).
+ * - Fetch the date hints inserted by USKInserter for the current year, month,
+ *   week and day, and fetch from the editions they give as well.
  * - If we have four consecutive editions with DNF, and no later pending fetches,
  *   then we finish with the last known good version. (There are details relating
  *   to other error codes handled below in the relevant method).
  * - We immediately update the USKManager if we successfully fetch an edition.
  * - If a new, higher suggestion comes in, that is also fetched.
+ * - If another fetcher for the same USK is already fetching an edition, we wait
+ *   for its result rather than fetching it again (see USKManager.startProbe()).
  * 
  * Future extensions:
- * - Binary search.
- * - Hierarchical DBRs.
  * - TUKs (when we have TUKs).
  * - Passive requests (when we have passive requests).
  */
@@ -172,9 +176,16 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		boolean dnf;
 		boolean cancelled;
 		final Lookup lookup;
+		/** Polling rather than a one-off fetch */
+		final boolean forever;
+		/** We are fetching this edition on behalf of any other fetcher for the USK. */
+		private boolean probing;
+		/** Another fetcher is fetching this edition and will tell us the result. */
+		boolean shared;
 		public USKAttempt(Lookup l, boolean forever) {
 			this.lookup = l;
 			this.number = l.val;
+			this.forever = forever;
 			this.succeeded = false;
 			this.dnf = false;
 			this.checker = new USKChecker(this, l.key, forever ? -1 : ctx.maxUSKRetries, l.ignoreStore ? ctxNoStore : ctx, parent);
@@ -182,34 +193,65 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		public void onDNF(ClientContext context) {
 			checker = null;
 			dnf = true;
+			USKFetcher[] waiting = finishedProbe();
 			USKFetcher.this.onDNF(this, context);
+			if(waiting != null)
+				for(USKFetcher f : waiting) f.onSharedDNF(number, context);
 		}
 		public void onSuccess(ClientSSKBlock block, ClientContext context) {
 			checker = null;
 			succeeded = true;
+			USKFetcher[] waiting = finishedProbe();
 			USKFetcher.this.onSuccess(this, false, block, context);
+			if(waiting != null)
+				for(USKFetcher f : waiting) f.onSharedSuccess(number, context);
 		}
 		
 		public void onFatalAuthorError(ClientContext context) {
 			checker = null;
+			USKFetcher[] waiting = finishedProbe();
 			// Counts as success except it doesn't update
 			USKFetcher.this.onSuccess(this, true, null, context);
+			if(waiting != null)
+				for(USKFetcher f : waiting) f.onSharedSuccess(number, context);
 		}
 		
 		public void onNetworkError(ClientContext context) {
 			checker = null;
+			USKFetcher[] waiting = finishedProbe();
 			// Not a DNF
 			USKFetcher.this.onFail(this, context);
+			if(waiting != null)
+				for(USKFetcher f : waiting) f.onSharedFailed(number, context);
 		}
 		
 		public void onCancelled(ClientContext context) {
 			checker = null;
+			USKFetcher[] waiting = finishedProbe();
 			USKFetcher.this.onCancelled(this, context);
+			if(waiting != null)
+				for(USKFetcher f : waiting) f.onSharedFailed(number, context);
+		}
+		
+		/** @return The fetchers waiting for the result of our request, if any. */
+		private USKFetcher[] finishedProbe() {
+			synchronized(USKFetcher.this) {
+				if(!probing) return null;
+				probing = false;
+			}
+			return uskManager.finishedProbe(origUSK, number, USKFetcher.this);
 		}
 		
 		public void cancel(ObjectContainer container, ClientContext context) {
 			assert(container == null);
-			cancelled = true;
+			boolean wasShared;
+			synchronized(USKFetcher.this) {
+				cancelled = true;
+				wasShared = shared;
+				shared = false;
+			}
+			if(wasShared)
+				uskManager.stopWaiting(origUSK, number, USKFetcher.this);
 			if(checker != null)
 				checker.cancel(container, context);
 			onCancelled(context);
@@ -222,6 +264,24 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					Logger.minor(this, "Checker == null in schedule() for "+this, new Exception("debug"));
 			} else {
 				assert(!checker.persistent());
+				if(!forever) {
+					// Set before asking, because the other fetcher may finish as soon as we have.
+					synchronized(USKFetcher.this) {
+						shared = true;
+					}
+					boolean start = uskManager.startProbe(origUSK, number, USKFetcher.this);
+					synchronized(USKFetcher.this) {
+						if(!start) {
+							if(logMINOR) Logger.minor(this, "Waiting for another fetcher to fetch "+number+" for "+this);
+							return;
+						}
+						shared = false;
+						probing = true;
+					}
+				}
+				synchronized(USKFetcher.this) {
+					sskFetches++;
+				}
 				checker.schedule(container, context);
 			}
 		}
@@ -232,21 +292,101 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		}
 		
 		public short getPriority() {
-			if(backgroundPoll) {
-				if(progressed && !firstLoop) {
-					// Just advanced, boost the priority.
-					// Do NOT boost the priority if just started.
-					return progressPollPriority;
-				} else {
-					return normalPollPriority;
-				}
-			} else
-				return parent.getPriorityClass();
+			return getAttemptPriority();
 		}
 	}
 	
+	private short getAttemptPriority() {
+		if(backgroundPoll) {
+			if(progressed && !firstLoop) {
+				// Just advanced, boost the priority.
+				// Do NOT boost the priority if just started.
+				return progressPollPriority;
+			} else {
+				return normalPollPriority;
+			}
+		} else
+			return parent.getPriorityClass();
+	}
+	
+	/** Fetches a date hint, which gives an edition inserted in the current year, month, week or day. */
+	class DateHintAttempt implements USKCheckerCallback {
+		
+		final ClientSSK key;
+		USKChecker checker;
+		
+		DateHintAttempt(ClientSSK key) {
+			this.key = key;
+			checker = new USKChecker(this, key, ctx.maxUSKRetries, ctx, parent);
+		}
+
+		public void onSuccess(ClientSSKBlock block, ClientContext context) {
+			checker = null;
+			removeDateHint(this);
+			long edition;
+			try {
+				edition = USKDateHint.parseData(new String(block.memoryDecode(), "UTF-8"));
+			} catch (KeyDecodeException e) {
+				edition = -1;
+			} catch (IOException e) {
+				edition = -1;
+			}
+			if(edition == -1) {
+				Logger.normal(this, "Invalid date hint "+key.getURI()+" for "+origUSK);
+				return;
+			}
+			if(logMINOR) Logger.minor(this, "Date hint "+key.getURI()+" gives edition "+edition+" for "+origUSK);
+			onDateHint(edition, context);
+		}
+
+		public void onDNF(ClientContext context) {
+			checker = null;
+			removeDateHint(this);
+		}
+
+		public void onFatalAuthorError(ClientContext context) {
+			checker = null;
+			removeDateHint(this);
+		}
+
+		public void onNetworkError(ClientContext context) {
+			checker = null;
+			removeDateHint(this);
+		}
+
+		public void onCancelled(ClientContext context) {
+			checker = null;
+			removeDateHint(this);
+		}
+
+		public short getPriority() {
+			return getAttemptPriority();
+		}
+		
+		public void cancel(ClientContext context) {
+			USKChecker c = checker;
+			if(c != null) c.cancel(null, context);
+		}
+		
+		@Override
+		public String toString() {
+			return "DateHintAttempt for "+key.getURI()+" for "+USKFetcher.this;
+		}
+		
+	}
+	
 	private final TreeMap<Long, USKAttempt> runningAttempts = new TreeMap<Long, USKAttempt>();
 	private final TreeMap<Long, USKAttempt> pollingAttempts = new TreeMap<Long, USKAttempt>();
+	private final ArrayList<DateHintAttempt> dateHintAttempts = new ArrayList<DateHintAttempt>();
+	/** The day we last fetched the date hints for */
+	private String dateHintsFetched;
+	
+	/** Decides which editions to look for beyond the next few */
+	private final USKEditionSearch search;
+	/** The number of SSK requests we have sent */
+	private long sskFetches;
+	/** The value of sskFetches when we last found a new edition */
+	private long sskFetchesAtLastFound;
 	
 	private long lastFetchedEdition;
 
@@ -306,16 +446,31 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		// Whereas latestSlot we've definitely fetched, we don't want to re-check.
 		watchingKeys = new USKWatchingKeys(origUSK, Math.max(0, uskManager.lookupLatestSlot(origUSK)+1));
 		attemptsToStart = new ArrayList<USKAttempt>();
+		search = new USKEditionSearch(minFailures);
 	}
 	
 	void onDNF(USKAttempt att, ClientContext context) {
 		if(logMINOR) Logger.minor(this, "DNF: "+att);
 		boolean finished = false;
+		boolean registerNow = false;
 		long curLatest = uskManager.lookupLatestSlot(origUSK);
 		synchronized(this) {
 			if(completed || cancelled) return;
 			lastFetchedEdition = Math.max(lastFetchedEdition, att.number);
 			runningAttempts.remove(att.number);
+			if(att.lookup.search) {
+				search.onFailed(att.number);
+				if(!checkStoreOnly) {
+					// Carry on searching.
+					for(Lookup l : watchingKeys.getSearchProbes(curLatest, getRunningFetchEditions())) {
+						if(logMINOR) Logger.minor(this, "Adding checker for edition "+l+" after failing to find "+att.number+" ("+search+") for "+origUSK);
+						USKAttempt a = add(l, false);
+						if(a == null) continue;
+						attemptsToStart.add(a);
+						registerNow = true;
+					}
+				}
+			}
 			if(runningAttempts.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "latest: "+curLatest+", last fetched: "+lastFetchedEdition+", curLatest+MIN_FAILURES: "+(curLatest+origMinFailures));
 				if(started) {
@@ -323,11 +478,45 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 			} else if(logMINOR) Logger.minor(this, "Remaining: "+runningAttempts());
 		}
+		if(registerNow)
+			registerAttempts(context);
 		if(finished) {
 			finishSuccess(context);
 		}
 	}
 	
+	/** Another fetcher failed to find an edition we were waiting for it to fetch. */
+	void onSharedDNF(long edition, ClientContext context) {
+		USKAttempt att = takeSharedAttempt(edition);
+		if(att == null) return;
+		att.onDNF(context);
+	}
+	
+	/** Another fetcher found an edition we were waiting for it to fetch. It will have
+	 * told the USKManager, so all we need to do is count our attempt as successful. */
+	void onSharedSuccess(long edition, ClientContext context) {
+		USKAttempt att = takeSharedAttempt(edition);
+		if(att == null) return;
+		att.succeeded = true;
+		onSuccess(att, true, null, context);
+	}
+	
+	/** Another fetcher's request for an edition we wanted failed for some other reason,
+	 * or was cancelled. Fetch it ourselves, unless somebody else already is. */
+	void onSharedFailed(long edition, ClientContext context) {
+		USKAttempt att = takeSharedAttempt(edition);
+		if(att == null) return;
+		att.schedule(null, context);
+	}
+	
+	private synchronized USKAttempt takeSharedAttempt(long edition) {
+		if(completed || cancelled) return null;
+		USKAttempt att = runningAttempts.get(edition);
+		if(att == null || !att.shared) return null;
+		att.shared = false;
+		return att;
+	}
+	
 	private synchronized String runningAttempts() {
 		StringBuffer sb = new StringBuffer();
 		boolean first = true;
@@ -349,6 +538,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			long valAtEnd = uskManager.lookupLatestSlot(origUSK);
 			long end;
 			long now = System.currentTimeMillis();
+			search.reset();
 			synchronized(this) {
 				started = false; // don't finish before have rescheduled
                 
@@ -378,10 +568,15 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			context.getSskFetchScheduler().schedTransient.removePendingKeys((KeyListener)this);
 			long ed = uskManager.lookupLatestSlot(origUSK);
 			USKFetcherCallback[] cb;
+			DateHintAttempt[] hints;
 			synchronized(this) {
 				completed = true;
 				cb = callbacks.toArray(new USKFetcherCallback[callbacks.size()]);
+				hints = dateHintAttempts.toArray(new DateHintAttempt[dateHintAttempts.size()]);
 			}
+			for(DateHintAttempt hint : hints)
+				hint.cancel(context);
+			if(logMINOR) Logger.minor(this, "Finished at edition "+ed+" after "+getSSKFetches()+" SSK fetches for "+origUSK);
 			byte[] data;
 			if(lastRequestData == null)
 				data = null;
@@ -472,11 +667,31 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 			}
 		}
-		if(!dontUpdate)
+		if(!dontUpdate) {
+			if(curLatest > lastEd)
+				reportEditionsFound(lastEd, curLatest);
 			uskManager.updateSlot(origUSK, curLatest, context);
+		}
 		if(registerNow)
 			registerAttempts(context);
 	}
+	
+	/** Record how many SSK requests it took us to get from one edition to the next. */
+	private void reportEditionsFound(long previous, long edition) {
+		long fetches;
+		synchronized(this) {
+			fetches = sskFetches - sskFetchesAtLastFound;
+			sskFetchesAtLastFound = sskFetches;
+		}
+		long editions = edition - previous;
+		uskManager.reportEditionsFound(fetches, editions);
+		if(logMINOR) Logger.minor(this, "Found edition "+edition+" of "+origUSK+" after "+fetches+" SSK fetches, "+((double)fetches/editions)+" per edition ("+search+")");
+	}
+	
+	/** @return The number of SSK requests we have sent, including date hints. */
+	public synchronized long getSSKFetches() {
+		return sskFetches;
+	}
 
 	void onCancelled(USKAttempt att, ClientContext context) {
 		synchronized(this) {
@@ -636,25 +851,87 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		}
 		if(registerNow)
 			registerAttempts(context);
-		if(!bye) return;
+		if(!bye) {
+			if(!checkStoreOnly)
+				fetchDateHints(context);
+			return;
+		}
 		// We have been cancelled.
 		uskManager.unsubscribe(origUSK, this);
 		context.getSskFetchScheduler().schedTransient.removePendingKeys((KeyListener)this);
 		uskManager.onFinished(this, true);
 	}
 
+	/**
+	 * Fetch the date hints for today, unless we already have. USKInserter inserts a
+	 * hint giving the latest edition for the current year, month, week and day, so
+	 * these tell us roughly where the USK has got to even if it is far ahead of
+	 * anything we know about.
+	 */
+	private void fetchDateHints(ClientContext context) {
+		USKDateHint date = USKDateHint.now();
+		String today = date.get(USKDateHint.Type.DAY);
+		ArrayList<DateHintAttempt> toStart = new ArrayList<DateHintAttempt>();
+		synchronized(this) {
+			if(cancelled || completed) return;
+			if(today.equals(dateHintsFetched)) return;
+			if(!dateHintAttempts.isEmpty()) return;
+			dateHintsFetched = today;
+			for(ClientSSK key : date.getRequestKeys(origUSK)) {
+				DateHintAttempt hint = new DateHintAttempt(key);
+				dateHintAttempts.add(hint);
+				toStart.add(hint);
+			}
+			sskFetches += toStart.size();
+		}
+		parent.toNetwork(null, context);
+		for(DateHintAttempt hint : toStart) {
+			if(logMINOR) Logger.minor(this, "Fetching date hint "+hint.key.getURI()+" for "+origUSK);
+			hint.checker.schedule(null, context);
+		}
+	}
+	
+	private synchronized void removeDateHint(DateHintAttempt hint) {
+		dateHintAttempts.remove(hint);
+	}
+	
+	/** A date hint tells us an edition which has probably been inserted. */
+	private void onDateHint(long edition, ClientContext context) {
+		long lastEd = uskManager.lookupLatestSlot(origUSK);
+		if(edition <= lastEd) return;
+		watchingKeys.addHintEdition(edition, lastEd);
+		boolean registerNow;
+		synchronized(this) {
+			if(cancelled || completed) return;
+			USKWatchingKeys.ToFetch list = watchingKeys.getEditionsToFetch(lastEd, context.random, getRunningFetchEditions());
+			for(Lookup i : list.toPoll) {
+				if(logDEBUG) Logger.debug(this, "Polling "+i+" for "+this);
+				attemptsToStart.add(add(i, true));
+			}
+			for(Lookup i : list.toFetch) {
+				if(logMINOR) Logger.minor(this, "Adding checker for edition "+i+" for "+origUSK);
+				attemptsToStart.add(add(i, false));
+			}
+			registerNow = !fillKeysWatching(lastEd, context);
+		}
+		if(registerNow)
+			registerAttempts(context);
+	}
+
 	public void cancel(ObjectContainer container, ClientContext context) {
 		uskManager.unsubscribe(origUSK, this);
 		context.getSskFetchScheduler().schedTransient.removePendingKeys((KeyListener)this);
 		assert(container == null);
 		USKAttempt[] attempts;
 		USKAttempt[] polling;
+		DateHintAttempt[] hints;
 		uskManager.onFinished(this);
 		SendableGet storeChecker;
 		synchronized(this) {
 			cancelled = true;
 			attempts = runningAttempts.values().toArray(new USKAttempt[runningAttempts.size()]);
 			polling = pollingAttempts.values().toArray(new USKAttempt[pollingAttempts.size()]);
+			hints = dateHintAttempts.toArray(new DateHintAttempt[dateHintAttempts.size()]);
 			attemptsToStart.clear();
 			storeChecker = runningStoreChecker;
 			runningStoreChecker = null;
@@ -663,6 +940,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			attempts[i].cancel(container, context);
 		for(int i=0;i<polling.length;i++)
 			polling[i].cancel(container, context);
+		for(DateHintAttempt hint : hints)
+			hint.cancel(context);
 		if(storeChecker != null)
 			// Remove from the store checker queue.
 			storeChecker.unregister(container, context, storeChecker.getPriorityClass(container));
@@ -1302,31 +1581,49 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				entry.getValue().getNextEditions(toFetch, toPoll, l, alreadyRunning, random);
 			}
 			
-			// Now getRandomEditions
-			// But how many???
-			int runningRandom = 0;
-			for(Lookup l : alreadyRunning) {
-				if(toFetch.contains(l) || toPoll.contains(l)) continue;
-				runningRandom++;
-			}
-			
-			int allowedRandom = 2 + 2*fromSubscribers.size();
-			if(logMINOR) Logger.minor(this, "Running random requests: "+runningRandom+" total allowed: "+allowedRandom+" looked up is "+lookedUp+" for "+USKFetcher.this);
+			// Now look further ahead.
+			addSearchProbes(toFetch, lookedUp, alreadyRunning);
 			
-			allowedRandom -= runningRandom;
-			
-			if(allowedRandom > 0 && probeFromLastKnownGood) {
-				fromLastKnownGood.getRandomEditions(toFetch, lookedUp, alreadyRunning, random, Math.min(2, allowedRandom));
-				allowedRandom-=2;
+			return new ToFetch(toFetch, toPoll);
+		}
+		
+		/**
+		 * Get the next editions to probe for after one of the search probes has failed.
+		 * Only the search moves on when a probe fails; the editions after the latest
+		 * known edition are only fetched again when we find a new one.
+		 * @param lookedUp The current best known slot, from USKManager.
+		 * @param alreadyRunning The editions we are already fetching.
+		 */
+		public synchronized Lookup[] getSearchProbes(long lookedUp, ArrayList<Lookup> alreadyRunning) {
+			ArrayList<Lookup> toFetch = new ArrayList<Lookup>();
+			addSearchProbes(toFetch, lookedUp, alreadyRunning);
+			return toFetch.toArray(new Lookup[toFetch.size()]);
+		}
+		
+		private void addSearchProbes(ArrayList<Lookup> toFetch, long lookedUp, ArrayList<Lookup> alreadyRunning) {
+			// More subscribers, more interest, so look a bit harder.
+			int allowed = 2 + 2*fromSubscribers.size();
+			int running = 0;
+			for(Lookup l : alreadyRunning) {
+				if(l.search) running++;
 			}
-			
-			for(Iterator<KeyList> it = fromSubscribers.values().iterator(); allowedRandom >= 2 && it.hasNext();) {
-				KeyList k = it.next();
-				k.getRandomEditions(toFetch, lookedUp, alreadyRunning, random, Math.min(2, allowedRandom));
-				allowedRandom -= 2;
+			if(logMINOR) Logger.minor(this, "Running search requests: "+running+" total allowed: "+allowed+" looked up is "+lookedUp+" "+search+" for "+USKFetcher.this);
+			allowed -= running;
+			for(int i=0;allowed > 0;i++) {
+				long fetch = search.getProbe(lookedUp, i);
+				if(fetch == -1) break;
+				Lookup l = new Lookup();
+				l.val = fetch;
+				if(toFetch.contains(l)) continue;
+				if(alreadyRunning.contains(l)) continue;
+				l.key = origUSK.getSSK(fetch);
+				// The datastore checker covers the slots close to the latest known.
+				l.ignoreStore = !(fetch - lookedUp >= WATCH_KEYS);
+				l.search = true;
+				toFetch.add(l);
+				allowed--;
+				if(logMINOR) Logger.minor(this, "Searching for edition "+fetch+" for "+origUSK+" current edition "+lookedUp);
 			}
-			
-			return new ToFetch(toFetch, toPoll);
 		}
 
 		public synchronized void updateSubscriberHints(Long[] hints, long lookedUp) {
@@ -1430,29 +1727,6 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 			}
 			
-			public synchronized void getRandomEditions(ArrayList<Lookup> toFetch, long lookedUp, ArrayList<Lookup> alreadyRunning, Random random, int allowed) {
-				// Then add a couple of random editions for catch-up.
-				long baseEdition = lookedUp + origMinFailures;
-				for(int i=0;i<allowed;i++) {
-					while(true) {
-						// Geometric distribution.
-						// 20% chance of mean 100, 80% chance of mean 10. Thanks evanbd.
-						int mean = random.nextInt(5) == 0 ? 100 : 10;
-						long fetch = baseEdition + (long)Math.floor(Math.log(random.nextFloat()) / Math.log(1.0 - 1.0/mean));
-						if(fetch < baseEdition) continue;
-						Lookup l = new Lookup();
-						l.val = fetch;
-						if(toFetch.contains(l)) continue;
-						if(alreadyRunning.contains(l)) continue;
-						l.key = origUSK.getSSK(fetch);
-						l.ignoreStore = !(fetch - lookedUp >= WATCH_KEYS);
-						toFetch.add(l);
-						if(logMINOR) Logger.minor(this, "Trying random future edition "+fetch+" for "+origUSK+" current edition "+lookedUp);
-						break;
-					}
-				}
-			}
-
 			public class StoreSubChecker {
 				
 				/** Keys to check */
@@ -1665,6 +1939,8 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		long val;
 		ClientSSK key;
 		boolean ignoreStore;
+		/** Looking ahead for USKEditionSearch, rather than at the next few editions */
+		boolean search;
 		
 		public boolean equals(Object o) {
 			if(o instanceof Lookup) {
@@ -78,6 +78,28 @@ public class USKManager implements RequestClient {
 	 * fetcher finishes. */
 	final WeakHashMap<USK, Long> temporaryBackgroundFetchersPrefetch;
 	
+	/** Editions being requested from the network, by clear USK and edition. Several
+	 * fetchers may be looking for the same USK at once (a subscription, a temporary
+	 * background fetcher, a fetch of a particular edition), and they would often send
+	 * the same requests; instead, the first one sends the request and the rest wait
+	 * for its result. */
+	private final HashMap<USK, HashMap<Long, SharedProbe>> probesByClearUSK;
+	
+	private static class SharedProbe {
+		final USKFetcher owner;
+		final ArrayList<USKFetcher> waiting = new ArrayList<USKFetcher>(1);
+		SharedProbe(USKFetcher owner) {
+			this.owner = owner;
+		}
+	}
+	
+	/** Requests not sent because another fetcher was already sending them */
+	private long sharedProbes;
+	/** SSK requests sent by fetchers which then found new editions, and the
+	 * number of editions they advanced by, for the cost of finding an edition */
+	private long probesForEditionsFound;
+	private long editionsFound;
+	
 	final FetchContext backgroundFetchContext;
 	/** This one actually fetches data */
 	final FetchContext realFetchContext;
@@ -99,6 +121,7 @@ public class USKManager implements RequestClient {
 		backgroundFetchersByClearUSK = new HashMap<USK, USKFetcher>();
 		temporaryBackgroundFetchersLRU = new LRUHashtable<USK, USKFetcher>();
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
+		probesByClearUSK = new HashMap<USK, HashMap<Long, SharedProbe>>();
 		executor = core.getExecutor();
 	}
 
@@ -540,6 +563,79 @@ public class USKManager implements RequestClient {
 		}
 	}
 
+	/**
+	 * A fetcher wants to request an edition from the network.
+	 * @return True if it should go ahead. False if another fetcher is already
+	 * requesting it, in which case the fetcher will be told the result by the
+	 * fetcher sending the request.
+	 */
+	synchronized boolean startProbe(USK usk, long edition, USKFetcher fetcher) {
+		USK clear = usk.clearCopy();
+		HashMap<Long, SharedProbe> probes = probesByClearUSK.get(clear);
+		if(probes == null) {
+			probes = new HashMap<Long, SharedProbe>();
+			probesByClearUSK.put(clear, probes);
+		}
+		SharedProbe probe = probes.get(edition);
+		if(probe == null) {
+			probes.put(edition, new SharedProbe(fetcher));
+			return true;
+		}
+		if(probe.owner == fetcher) return true;
+		if(!probe.waiting.contains(fetcher))
+			probe.waiting.add(fetcher);
+		sharedProbes++;
+		if(logMINOR) Logger.minor(this, "Sharing request for edition "+edition+" of "+clear+" between "+probe.owner+" and "+fetcher);
+		return false;
+	}
+	
+	/** A fetcher waiting for another fetcher's request no longer cares about the result. */
+	synchronized void stopWaiting(USK usk, long edition, USKFetcher fetcher) {
+		HashMap<Long, SharedProbe> probes = probesByClearUSK.get(usk.clearCopy());
+		if(probes == null) return;
+		SharedProbe probe = probes.get(edition);
+		if(probe != null)
+			probe.waiting.remove(fetcher);
+	}
+	
+	/**
+	 * A request started after startProbe() returned true has finished.
+	 * @return The fetchers waiting for its result, which the caller must tell, or null.
+	 */
+	synchronized USKFetcher[] finishedProbe(USK usk, long edition, USKFetcher fetcher) {
+		USK clear = usk.clearCopy();
+		HashMap<Long, SharedProbe> probes = probesByClearUSK.get(clear);
+		if(probes == null) return null;
+		SharedProbe probe = probes.get(edition);
+		if(probe == null || probe.owner != fetcher) return null;
+		probes.remove(edition);
+		if(probes.isEmpty())
+			probesByClearUSK.remove(clear);
+		if(probe.waiting.isEmpty()) return null;
+		return probe.waiting.toArray(new USKFetcher[probe.waiting.size()]);
+	}
+	
+	/**
+	 * A fetcher has found a new edition.
+	 * @param probes The number of SSK requests it has sent since it last found one.
+	 * @param editions The number of editions it has advanced by.
+	 */
+	synchronized void reportEditionsFound(long probes, long editions) {
+		probesForEditionsFound += probes;
+		editionsFound += editions;
+	}
+	
+	/** @return The average number of SSK requests it takes to find a new edition. */
+	public synchronized double getProbesPerEditionFound() {
+		if(editionsFound == 0) return 0.0;
+		return (double) probesForEditionsFound / editionsFound;
+	}
+	
+	/** @return The number of requests which were not sent because another fetcher was already sending them. */
+	public synchronized long getSharedProbes() {
+		return sharedProbes;
+	}
+	
 	public boolean persistent() {
 		return false;
 	}
@@ -0,0 +1,33 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.events;
+
+/**
+ * Event indicating that a site insert has finished, and how much of it was not
+ * inserted again because it already had been.
+ * @see freenet.client.InsertContext#reuseInsertedData
+ */
+public class InsertedDataReusedEvent implements ClientEvent {
+
+	/** Files and containers which were not inserted again */
+	public final int filesReused;
+	/** Their total size */
+	public final long bytesReused;
+
+	public InsertedDataReusedEvent(int filesReused, long bytesReused) {
+		this.filesReused = filesReused;
+		this.bytesReused = bytesReused;
+	}
+
+	static final int CODE = 0x0D;
+
+	public int getCode() {
+		return CODE;
+	}
+
+	public String getDescription() {
+		return "Reused "+filesReused+" already inserted files and containers, skipped "+bytesReused+" bytes";
+	}
+
+}
@@ -168,7 +168,7 @@ public class BookmarkEditorToadlet extends Toadlet {
 			} catch(URLEncodedFormatException e) {
 				pageMaker.getInfobox("infobox-error", error, content, "bookmark-url-decode-error", false).
 					addChild("#", NodeL10n.getBase().getString("BookmarkEditorToadlet.urlDecodeError"));
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			}
 			Bookmark bookmark;
@@ -181,7 +181,7 @@ public class BookmarkEditorToadlet extends Toadlet {
 			if(bookmark == null) {
 				pageMaker.getInfobox("infobox-error", error, content, "bookmark-does-not-exist", false).
 					addChild("#", NodeL10n.getBase().getString("BookmarkEditorToadlet.bookmarkDoesNotExist", new String[]{"bookmark"}, new String[]{bookmarkPath}));
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else
 				if("del".equals(action)) {
@@ -290,7 +290,7 @@ public class BookmarkEditorToadlet extends Toadlet {
 		if(Logger.shouldLog(Logger.DEBUG, this))
 			Logger.debug(this, "Returning:\n"+pageNode.generate());
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	public void handleMethodPOST(URI uri, HTTPRequest req, ToadletContext ctx)
@@ -324,7 +324,7 @@ public class BookmarkEditorToadlet extends Toadlet {
 			if(bookmark == null && !req.isPartSet("cancelCut")) {
 				pageMaker.getInfobox("infobox-error", NodeL10n.getBase().getString("BookmarkEditorToadlet.error"), content, "bookmark-error", false).
 					addChild("#", NodeL10n.getBase().getString("BookmarkEditorToadlet.bookmarkDoesNotExist", new String[]{"bookmark"}, new String[]{bookmarkPath}));
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			}
 
@@ -406,7 +406,7 @@ public class BookmarkEditorToadlet extends Toadlet {
 		HTMLNode addDefaultBookmarksForm = ctx.addFormChild(content, "", "AddDefaultBookmarks");
 		addDefaultBookmarksForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "AddDefaultBookmarks", NodeL10n.getBase().getString("BookmarkEditorToadlet.addDefaultBookmarks")});
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	@Override
@@ -213,7 +213,7 @@ public class ConfigToadlet extends Toadlet implements LinkEnabledCallback {
 		content.addChild("br");
 		addHomepageLink(content);
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 
 	}
 
@@ -309,7 +309,7 @@ public class ConfigToadlet extends Toadlet implements LinkEnabledCallback {
 		formNode.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("apply")});
 		formNode.addChild("input", new String[] { "type", "value" }, new String[] { "reset",  l10n("reset")});
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private HTMLNode addComboBox(EnumerableOptionCallback o, SubConfig sc, String name, boolean disabled) {
@@ -449,7 +449,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			drawNoderefBox(contentNode, ctx);
 		}
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	protected abstract boolean acceptRefPosts();
@@ -574,7 +574,7 @@ public abstract class ConnectionsToadlet extends Toadlet {
 			infoboxContent.addChild("p").addChild("a", "href", path(), l10n("goFriendConnectionStatus"));
 			addHomepageLink(infoboxContent.addChild("p"));
 			
-			writeHTMLReply(ctx, 500, l10n("reportOfNodeAddition"), pageNode.generate());
+			writeHTMLReply(ctx, 500, l10n("reportOfNodeAddition"), pageNode);
 		} else handleAltPost(uri, request, ctx, logMINOR);
 		
 		
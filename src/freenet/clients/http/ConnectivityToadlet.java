@@ -197,7 +197,7 @@ public class ConnectivityToadlet extends Toadlet {
 		
 		}
 		
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 	
 	private String l10nConn(String string) {
@@ -111,7 +111,7 @@ public class DarknetAddRefToadlet extends Toadlet {
 		
 		ConnectionsToadlet.drawNoderefBox(contentNode, ctx, getNoderef());
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	protected SimpleFieldSet getNoderef() {
@@ -0,0 +1,198 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.async.ClientGetter;
+import freenet.client.async.StreamingClientGetCallback;
+import freenet.support.Logger;
+import freenet.support.MultiValueTable;
+
+/**
+ * A blocking FProxy fetch which streams large files to the browser as they are
+ * decoded, rather than making the user wait for the whole file. Supports a
+ * single byte range (for seeking in media players, and resuming downloads),
+ * provided we know the length of the file up front. Only used when the
+ * content filter is off, since we have already sent the headers by the time
+ * we see the data.
+ *
+ * Like FetchWaiter, except that waitForCompletion() returns null if the data
+ * has been streamed, in which case the reply has already been sent.
+ */
+class FProxyStreamingFetch implements StreamingClientGetCallback {
+
+	private final ToadletContext ctx;
+	private final boolean forceDownload;
+	private final String filename;
+	/** The requested byte range, or null */
+	private final long[] range;
+	/** The ETag if the data is immutable, or null */
+	private final String etag;
+	private FetchResult result;
+	private FetchException error;
+	private boolean finished;
+	/** Have we sent the reply headers? */
+	private boolean sentHeaders;
+
+	/**
+	 * @param forceDownload If true, send the same headers as a ?forcedownload
+	 * fetch, so the browser saves the file.
+	 * @param filename The filename to suggest if forceDownload.
+	 * @param range The byte range requested, as from
+	 * FProxyToadlet.parseRanges(), or null.
+	 * @param etag The ETag to send for immutable data, or null.
+	 */
+	FProxyStreamingFetch(ToadletContext ctx, boolean forceDownload, String filename, long[] range, String etag) {
+		this.ctx = ctx;
+		this.forceDownload = forceDownload;
+		this.filename = filename;
+		this.range = range;
+		this.etag = etag;
+	}
+
+	public boolean wantsStreaming(ClientGetter state) {
+		return true;
+	}
+
+	public OutputStream onStreamStarting(String mimeType, long length, ClientGetter state) throws IOException {
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		if(forceDownload) {
+			// Same as FProxyToadlet.handleDownload()
+			headers.put("Content-Disposition", "attachment; filename=\"" + filename + '"');
+			headers.put("Cache-Control", "private");
+			headers.put("Content-Transfer-Encoding", "binary");
+			mimeType = "application/force-download";
+		}
+		Date mTime = null;
+		if(etag != null) {
+			FProxyToadlet.addCacheHeaders(headers, etag);
+			mTime = FProxyToadlet.IMMUTABLE_MTIME;
+		}
+		long skip = 0;
+		long send = length;
+		try {
+			synchronized(this) {
+				sentHeaders = true;
+			}
+			if(length < 0) {
+				// Compressed, and we don't know the length. Ignore any range, and
+				// close the connection to mark the end of the data.
+				ctx.forceDisconnect();
+				ctx.sendReplyHeaders(200, "OK", headers, mimeType, -1, mTime);
+			} else if(range != null) {
+				long[] r = FProxyToadlet.resolveRange(range, length);
+				if(r == null) {
+					MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+					retHdr.put("Content-Range", "bytes */" + length);
+					ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", retHdr, null, 0);
+					throw new IOException("Range not satisfiable");
+				}
+				skip = r[0];
+				send = r[1] - r[0] + 1;
+				headers.put("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + length);
+				ctx.sendReplyHeaders(206, "Partial content", headers, mimeType, send, mTime);
+			} else {
+				headers.put("Accept-Ranges", "bytes");
+				ctx.sendReplyHeaders(200, "OK", headers, mimeType, length, mTime);
+			}
+		} catch (ToadletContextClosedException e) {
+			throw new IOException("Connection closed");
+		}
+		return new RangeOutputStream(skip, send);
+	}
+
+	public synchronized void onStreamFinished(long length, ClientGetter state) {
+		if(finished) return;
+		finished = true;
+		notifyAll();
+	}
+
+	public synchronized void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
+		if(finished) return;
+		this.result = result;
+		finished = true;
+		notifyAll();
+	}
+
+	public synchronized void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
+		if(finished) return;
+		this.error = e;
+		finished = true;
+		notifyAll();
+	}
+
+	public void onMajorProgress(ObjectContainer container) {
+		// Ignore
+	}
+
+	/**
+	 * Wait for the request to complete.
+	 * @return The data, if it was not streamed, or null if it was streamed, in
+	 * which case we have already sent the reply.
+	 * @throws FetchException If the request failed before we sent anything.
+	 */
+	synchronized FetchResult waitForCompletion() throws FetchException {
+		while(!finished) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+		}
+		if(error != null) {
+			if(!sentHeaders) throw error;
+			// The browser has an incomplete reply. Make sure it notices.
+			if(Logger.shouldLog(Logger.MINOR, this))
+				Logger.minor(this, "Failed after streaming started: "+error, error);
+			ctx.forceDisconnect();
+		}
+		return result;
+	}
+
+	/** Writes only the requested range of the data to the browser. */
+	private class RangeOutputStream extends OutputStream {
+
+		private long skip;
+		private long left;
+
+		RangeOutputStream(long skip, long length) {
+			this.skip = skip;
+			this.left = length;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(skip > 0) {
+				int x = (int) Math.min(skip, length);
+				skip -= x;
+				offset += x;
+				length -= x;
+			}
+			if(left >= 0) {
+				if(length > left) length = (int) left;
+				left -= length;
+			}
+			if(length <= 0) return;
+			try {
+				ctx.writeData(buf, offset, length);
+			} catch (ToadletContextClosedException e) {
+				throw new IOException("Connection closed");
+			}
+		}
+
+	}
+
+}
@@ -3,13 +3,17 @@ package freenet.clients.http;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import com.db4o.ObjectContainer;
@@ -45,6 +49,7 @@ import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarter;
 import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
+import freenet.node.Version;
 import freenet.pluginmanager.PluginInfoWrapper;
 import freenet.support.HTMLEncoder;
 import freenet.support.HTMLNode;
@@ -59,7 +64,6 @@ import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 
 public final class FProxyToadlet extends Toadlet implements RequestClient {
 	
@@ -77,6 +81,13 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		prefetchAllowedTypes.add("image/gif");
 	}
 	
+	/** Last-Modified for immutable data. Being long past, the Expires time
+	 * derived from it makes the browser revalidate with the ETag rather than
+	 * use its copy blindly. */
+	static final Date IMMUTABLE_MTIME = new Date(0);
+	/** More ranges than this in one request get the whole file instead. */
+	private static final int MAX_RANGES = 32;
+	
 	// ?force= links become invalid after 2 hours.
 	private static final long FORCE_GRAIN_INTERVAL = 60*60*1000;
 	/** Maximum size for transparent pass-through, should be a config option */
@@ -131,6 +142,14 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	}
 
 	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset) throws ToadletContextClosedException, IOException {
+		handleDownload(context, data, bucketFactory, mimeType, requestedMimeType, forceString, forceDownload, basePath, key, extras, referrer, downloadLink, ctx, core, dontFreeData, maybeCharset, null);
+	}
+	
+	/**
+	 * @param etag If not null, the data is immutable, so send this ETag and let
+	 * the browser cache it, see makeETag().
+	 */
+	public static void handleDownload(ToadletContext context, Bucket data, BucketFactory bucketFactory, String mimeType, String requestedMimeType, String forceString, boolean forceDownload, String basePath, FreenetURI key, String extras, String referrer, boolean downloadLink, ToadletContext ctx, NodeClientCore core, boolean dontFreeData, String maybeCharset, String etag) throws ToadletContextClosedException, IOException {
 		ToadletContainer container = context.getContainer();
 		if(Logger.shouldLog(Logger.MINOR, FProxyToadlet.class))
 			Logger.minor(FProxyToadlet.class, "handleDownload(data.size="+data.size()+", mimeType="+mimeType+", requestedMimeType="+requestedMimeType+", forceDownload="+forceDownload+", basePath="+basePath+", key="+key);
@@ -152,7 +171,6 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		}
 
 		Bucket toFree = null;
-		Bucket tmpRange = null;
 		try {
 			if((!force) && (!forceDownload)) {
 				//Horrible hack needed for GWT as it relies on document.write() which is not supported in xhtml
@@ -220,8 +238,8 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			}
 			
+			MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
 			if (forceDownload) {
-				MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
 				headers.put("Content-Disposition", "attachment; filename=\"" + key.getPreferredFilename() + '"');
 				headers.put("Cache-Control", "private");
 				headers.put("Content-Transfer-Encoding", "binary");
@@ -231,36 +249,10 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				// see http://onjava.com/pub/a/onjava/excerpt/jebp_3/index3.html
 				// Testing on FF3.5.1 shows that application/x-force-download wants to run it in wine, 
 				// whereas application/force-download wants to save it.
-				context.sendReplyHeaders(200, "OK", headers, "application/force-download", data.size());
-				context.writeData(data);
-			} else {
-				// Send the data, intact
-				MultiValueTable<String, String> hdr = context.getHeaders();
-				String rangeStr = hdr.get("range");
-				// was a range request
-				if (rangeStr != null) {
-					
-					long range[] = parseRange(rangeStr);
-					if (range[1] == -1 || range[1] >= data.size()) {
-						range[1] = data.size() - 1;
-					}
-					tmpRange = bucketFactory.makeBucket(range[1] - range[0]);
-					InputStream is = data.getInputStream();
-					OutputStream os = tmpRange.getOutputStream();
-					if (range[0] > 0)
-						is.skip(range[0]);
-					FileUtil.copy(is, os, range[1] - range[0] + 1);
-					os.close();
-					is.close();
-					MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
-					retHdr.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + data.size());
-					context.sendReplyHeaders(206, "Partial content", retHdr, mimeType, tmpRange.size());
-					context.writeData(tmpRange);
-				} else {
-					context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), mimeType, data.size());
-					context.writeData(data);
-				}
+				mimeType = "application/force-download";
 			}
+			// Send the data, intact
+			sendData(context, data, mimeType, headers, etag);
 		}/* catch (URISyntaxException use1) {*/
 			/* shouldn't happen */
 			/*use1.printStackTrace();
@@ -270,7 +262,69 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
 		} finally {
 			if(toFree != null && !dontFreeData) toFree.free();
-			if(tmpRange != null) tmpRange.free();
+		}
+	}
+	
+	/**
+	 * Send the data, or the parts of it the client asked for with a Range
+	 * header. Ranges are written straight from the bucket, not copied.
+	 * @param etag The ETag for immutable data, or null.
+	 */
+	private static void sendData(ToadletContext ctx, Bucket data, String mimeType, MultiValueTable<String, String> headers, String etag) throws ToadletContextClosedException, IOException, HTTPRangeException {
+		long size = data.size();
+		Date mTime = null;
+		if(etag != null) {
+			addCacheHeaders(headers, etag);
+			mTime = IMMUTABLE_MTIME;
+		}
+		MultiValueTable<String, String> reqHeaders = ctx.getHeaders();
+		String rangeStr = reqHeaders.get("range");
+		String ifRange = reqHeaders.get("if-range");
+		if(rangeStr != null && ifRange != null && !ifRange.equals(etag))
+			rangeStr = null; // Can't tell whether it has changed, so send the whole thing.
+		List<long[]> ranges = null;
+		if(rangeStr != null) {
+			ranges = new ArrayList<long[]>();
+			for(long[] range : parseRanges(rangeStr)) {
+				range = resolveRange(range, size);
+				if(range != null) ranges.add(range);
+			}
+			if(ranges.isEmpty()) {
+				MultiValueTable<String, String> retHdr = new MultiValueTable<String, String>();
+				retHdr.put("Content-Range", "bytes */" + size);
+				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", retHdr, null, 0);
+				return;
+			}
+		}
+		if(ranges == null || ranges.size() > MAX_RANGES) {
+			headers.put("Accept-Ranges", "bytes");
+			ctx.sendReplyHeaders(200, "OK", headers, mimeType, size, mTime);
+			ctx.writeData(data);
+		} else if(ranges.size() == 1) {
+			long[] range = ranges.get(0);
+			headers.put("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+			ctx.sendReplyHeaders(206, "Partial content", headers, mimeType, range[1] - range[0] + 1, mTime);
+			ctx.writeData(data, range[0], range[1] - range[0] + 1);
+		} else {
+			// Several ranges, e.g. from a media player: multipart/byteranges.
+			String boundary = "freenet-" + Long.toHexString(new Random().nextLong());
+			byte[][] partHeaders = new byte[ranges.size()][];
+			long length = 0;
+			for(int i=0;i<partHeaders.length;i++) {
+				long[] range = ranges.get(i);
+				partHeaders[i] = ("\r\n--" + boundary + "\r\nContent-Type: " + mimeType + "\r\nContent-Range: bytes " +
+						range[0] + "-" + range[1] + "/" + size + "\r\n\r\n").getBytes("US-ASCII");
+				length += partHeaders[i].length + range[1] - range[0] + 1;
+			}
+			byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes("US-ASCII");
+			length += end.length;
+			ctx.sendReplyHeaders(206, "Partial content", headers, "multipart/byteranges; boundary=" + boundary, length, mTime);
+			for(int i=0;i<partHeaders.length;i++) {
+				long[] range = ranges.get(i);
+				ctx.writeData(partHeaders[i]);
+				ctx.writeData(data, range[0], range[1] - range[0] + 1);
+			}
+			ctx.writeData(end);
 		}
 	}
 
@@ -475,9 +529,12 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		//first check of httprange before get
 		// only valid number format is checked here
 		String rangeStr = ctx.getHeaders().get("range");
+		long[] range = null;
 		if (rangeStr != null) {
 			try {
-				parseRange(rangeStr);
+				List<long[]> ranges = parseRanges(rangeStr);
+				// FProxyStreamingFetch only does single ranges, otherwise send it all.
+				if (ranges.size() == 1) range = ranges.get(0);
 			} catch (HTTPRangeException e) {
 				Logger.normal(this, "Invalid Range Header: "+rangeStr, e);
 				ctx.sendReplyHeaders(416, "Requested Range Not Satisfiable", null, null, 0);
@@ -503,7 +560,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			errorContent.addChild("br");
 			addHomepageLink(errorContent);
 
-			this.writeHTMLReply(ctx, 400, l10n("invalidKeyTitle"), pageNode.generate());
+			this.writeHTMLReply(ctx, 400, l10n("invalidKeyTitle"), pageNode);
 			return;
 		}
 
@@ -537,6 +594,24 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			if(override.length() == 0) override = "?forcedownload";
 			else override = override+"&forcedownload";
 		}
+		
+		// If the browser already has it, we don't need to fetch and filter it again.
+		String etag = null;
+		if(canCache(key, core)) {
+			etag = makeETag(key, requestedMimeType, maybeCharset, fctx.filterData, httprequest.isParameterSet("forcedownload"), container.isFProxyWebPushingEnabled());
+			String matched = matchETag(ctx.getHeaders().get("if-none-match"), etag);
+			if(matched != null) {
+				MultiValueTable<String, String> retHeaders = new MultiValueTable<String, String>();
+				addCacheHeaders(retHeaders, matched);
+				ctx.sendReplyHeaders(304, "Not Modified", retHeaders, null, -1, IMMUTABLE_MTIME);
+				return;
+			}
+		}
+		if(range != null) {
+			String ifRange = ctx.getHeaders().get("if-range");
+			if(ifRange != null && !ifRange.equals(etag))
+				range = null; // Can't tell whether it has changed, so send the whole thing.
+		}
 
 		Bucket data = null;
 		String mimeType = null;
@@ -638,7 +713,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				
 				MultiValueTable<String, String> retHeaders = new MultiValueTable<String, String>();
 				//retHeaders.put("Refresh", "2; url="+location);
-				writeHTMLReply(ctx, 200, "OK", retHeaders, pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", retHeaders, pageNode);
 				fr.close();
 				fetch.close();
 				return;
@@ -678,13 +753,24 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 				if(needsFetch){
 					//If we don't have the data, then we need to fetch it and block until it is available
-					FetchResult result = fetch(key, maxSize, new RequestClient() {
+					RequestClient rc = new RequestClient() {
 						public boolean persistent() {
 							return false;
 						}
 						public void removeFrom(ObjectContainer container) {
 							throw new UnsupportedOperationException();
-						} }, fctx); 
+						} };
+					FetchResult result;
+					if(!fctx.filterData) {
+						// Not filtering, so we can stream big files to the browser as they are
+						// decoded, rather than making the user wait for the whole file.
+						FProxyStreamingFetch streamer = new FProxyStreamingFetch(ctx, httprequest.isParameterSet("forcedownload"),
+								key.getPreferredFilename(), range, etag);
+						getClientImpl().fetch(key, maxSize, rc, streamer, fctx);
+						result = streamer.waitForCompletion();
+						if(result == null) return; // Already sent
+					} else
+						result = fetch(key, maxSize, rc, fctx);
 					
 					// Now, is it safe?
 					
@@ -693,7 +779,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				}
 			} else if(fe != null) throw fe;
 			
-			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, maxSize != MAX_LENGTH ? "&max-size="+maxSize : "", referer, true, ctx, core, fr != null, maybeCharset);
+			handleDownload(ctx, data, ctx.getBucketFactory(), mimeType, requestedMimeType, forceString, httprequest.isParameterSet("forcedownload"), "/", key, maxSize != MAX_LENGTH ? "&max-size="+maxSize : "", referer, true, ctx, core, fr != null, maybeCharset, etag);
 		} catch (FetchException e) {
 			//Handle exceptions thrown from the ContentFilter
 			String msg = e.getMessage();
@@ -740,7 +826,7 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 				//option = optionTable.addChild("tr").addChild("td", "colspan", "2");
 				optionList.addChild("li").addChild(ctx.getPageMaker().createBackLink(ctx, l10n("goBackToPrev")));
 				
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 			} else {
 				PageNode page = ctx.getPageMaker().getPageNode(e.getCause() == null ? FetchException.getShortMessage(e.mode) : FetchException.getShortMessage(e.mode)+": "+e.getCause().toString(), ctx);
 				HTMLNode pageNode = page.outer;
@@ -1118,34 +1204,127 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return s + '.' + ext;
 	}
 	
-	private static long[] parseRange(String hdrrange) throws HTTPRangeException {
+	/**
+	 * Parse a Range header.
+	 * @return The ranges, as {first, last}. last is -1 if the range is open
+	 * ended. first is -1 for a suffix range, in which case last is the number
+	 * of bytes wanted from the end. See resolveRange().
+	 */
+	static List<long[]> parseRanges(String hdrrange) throws HTTPRangeException {
 		
-		long result[] = new long[2];
+		List<long[]> result = new ArrayList<long[]>();
 		try {
 			String[] units = hdrrange.split("=", 2);
 			// FIXME are MBytes and co valid? if so, we need to adjust the values and
 			// return always bytes
-			if (!"bytes".equals(units[0])) {
+			if (!"bytes".equals(units[0].trim())) {
 				throw new HTTPRangeException("Unknown unit, only 'bytes' supportet yet");
 			}
-			String[] range = units[1].split("-", 2);
-			result[0] = Long.parseLong(range[0]);
-			if (result[0] < 0)
-				throw new HTTPRangeException("Negative 'from' value");
-			if (range[1].trim().length() > 0) {
-				result[1] = Long.parseLong(range[1]);
-				if (result[1] <= result[0])
-					throw new HTTPRangeException("'from' value must be less then 'to' value");
-			} else {
-				result[1] = -1;
+			for(String spec : units[1].split(",")) {
+				spec = spec.trim();
+				if(spec.length() == 0) continue;
+				String[] range = spec.split("-", 2);
+				long[] r = new long[2];
+				if (range[0].trim().length() == 0) {
+					// The last n bytes
+					r[0] = -1;
+					r[1] = Long.parseLong(range[1].trim());
+					if (r[1] < 0)
+						throw new HTTPRangeException("Negative suffix length");
+				} else {
+					r[0] = Long.parseLong(range[0].trim());
+					if (r[0] < 0)
+						throw new HTTPRangeException("Negative 'from' value");
+					if (range[1].trim().length() > 0) {
+						r[1] = Long.parseLong(range[1].trim());
+						if (r[1] < r[0])
+							throw new HTTPRangeException("'from' value must not be more than 'to' value");
+					} else {
+						r[1] = -1;
+					}
+				}
+				result.add(r);
 			}
 		} catch (NumberFormatException nfe) {
 			throw new HTTPRangeException(nfe);
 		} catch (IndexOutOfBoundsException ioobe) {
 			throw new HTTPRangeException(ioobe);
 		}
+		if (result.isEmpty())
+			throw new HTTPRangeException("No ranges");
 		return result;
 	}
+	
+	/**
+	 * Convert a range from parseRanges() into the first and last byte to send,
+	 * or null if none of it is within the data.
+	 */
+	static long[] resolveRange(long[] range, long size) {
+		long first = range[0];
+		long last = range[1];
+		if (first == -1) {
+			if (last == 0) return null;
+			first = Math.max(0, size - last);
+			last = size - 1;
+		} else if (last == -1 || last >= size) {
+			last = size - 1;
+		}
+		if (first >= size) return null;
+		return new long[] { first, last };
+	}
+	
+	/**
+	 * Can the browser cache this key? Only immutable keys, and not if the
+	 * physical security level says we shouldn't leave traces on disk.
+	 */
+	private static boolean canCache(FreenetURI key, NodeClientCore core) {
+		if(!(key.isCHK() || key.isSSK())) return false;
+		PHYSICAL_THREAT_LEVEL level = core.node.securityLevels.getPhysicalThreatLevel();
+		return level == PHYSICAL_THREAT_LEVEL.LOW || level == PHYSICAL_THREAT_LEVEL.NORMAL;
+	}
+	
+	/**
+	 * Make a strong ETag for an immutable key. The same key with the same
+	 * options and the same build of the content filter always produces the
+	 * same bytes, so this can be checked against If-None-Match before fetching.
+	 */
+	static String makeETag(FreenetURI key, String requestedMimeType, String maybeCharset, boolean filterData, boolean forceDownload, boolean webPushing) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(key.toString()).append('\n');
+		sb.append(requestedMimeType).append('\n');
+		sb.append(maybeCharset).append('\n');
+		sb.append(filterData).append(forceDownload).append(webPushing).append('\n');
+		sb.append(Version.buildNumber());
+		try {
+			return '"' + HexUtil.bytesToHex(SHA256.digest(sb.toString().getBytes("UTF-8"))) + '"';
+		} catch (UnsupportedEncodingException e) {
+			throw new Error(e);
+		}
+	}
+	
+	/**
+	 * Does an If-None-Match header include the ETag, either for the identity
+	 * or for the gzip encoding (see ToadletContextImpl.gzipETag())?
+	 * @return The ETag to send with the 304, or null if it doesn't match.
+	 */
+	static String matchETag(String ifNoneMatch, String etag) {
+		if(ifNoneMatch == null) return null;
+		String gzipped = ToadletContextImpl.gzipETag(etag);
+		for(String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			if(tag.equals(etag) || tag.equals("*")) return etag;
+			if(tag.equals(gzipped)) return gzipped;
+		}
+		return null;
+	}
+	
+	/** Headers which let the browser keep immutable data, and revalidate it with
+	 * the ETag rather than fetching it again. */
+	static void addCacheHeaders(MultiValueTable<String, String> headers, String etag) {
+		headers.put("ETag", etag);
+		if(!headers.containsKey("Cache-Control"))
+			headers.put("Cache-Control", "private");
+	}
 
 	public boolean persistent() {
 		return false;
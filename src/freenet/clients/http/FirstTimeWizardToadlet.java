@@ -101,7 +101,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 			infoboxContent.addChild("p").addChild("a", "href", "?step="+WIZARD_STEP.MISC, NodeL10n.getBase().getString("FirstTimeWizardToadlet.clickContinue"));
 
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.SECURITY_NETWORK) {
 			PageNode page = ctx.getPageMaker().getPageNode(l10n("networkSecurityPageTitle"), false, ctx);
@@ -126,7 +126,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 			}
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "networkSecurityF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.SECURITY_FRIENDS) {
 			PageNode page = ctx.getPageMaker().getPageNode(l10n("friendsSecurityPageTitle"), false, ctx);
@@ -151,7 +151,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 			}
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "friendsSecurityF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.SECURITY_PHYSICAL) {
 			PageNode page = ctx.getPageMaker().getPageNode(l10n("physicalSecurityPageTitle"), false, ctx);
@@ -184,7 +184,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 			}
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "physicalSecurityF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			form.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.NAME_SELECTION) {
 			// Attempt to skip one step if possible: opennet nodes don't need a name
@@ -207,7 +207,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 			nnameForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "nnameF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			nnameForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.BANDWIDTH) {
 			// Attempt to skip one step if possible
@@ -249,7 +249,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 			bandwidthForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "bwF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			bandwidthForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
 			bandwidthInfoboxContent.addChild("#", l10n("bandwidthLimitAfter"));
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.DATASTORE_SIZE) {
 			// Attempt to skip one step if possible
@@ -292,7 +292,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 			bandwidthForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "dsF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			bandwidthForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.MISC) {
 			PageNode page = ctx.getPageMaker().getPageNode(l10n("stepMiscTitle"), false, ctx);
@@ -325,7 +325,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 			miscInfoboxContent.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "miscF", NodeL10n.getBase().getString("FirstTimeWizardToadlet.continue")});
 			miscInfoboxContent.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		}else if(currentStep == WIZARD_STEP.CONGRATZ) {
 			PageNode page = ctx.getPageMaker().getPageNode(l10n("step7Title"), true, ctx);
@@ -341,7 +341,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 			congratzInfoboxContent.addChild("a", "href", "?step="+WIZARD_STEP.FINAL, NodeL10n.getBase().getString("FirstTimeWizardToadlet.continueEnd"));
 
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		} else if(currentStep == WIZARD_STEP.FINAL) {
 			try {
@@ -373,7 +373,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 		HTMLNode thirdParagraph = welcomeInfoboxContent.addChild("p");
 		thirdParagraph.addChild("a", "href", "?step="+WIZARD_STEP.FINAL).addChild("#", l10n("skipWizard"));
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private String l10nSec(String key) {
@@ -435,7 +435,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 					formNode.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "security-levels.networkThreatLevel.tryConfirm", "on" });
 					formNode.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "seclevels", "on" });
 					formNode.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("continue")});
-					writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+					writeHTMLReply(ctx, 200, "OK", pageNode);
 					return;
 				} else if((!request.isPartSet("security-levels.networkThreatLevel.confirm")) &&
 						request.isPartSet("security-levels.networkThreatLevel.tryConfirm")) {
@@ -475,7 +475,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 					formNode.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "security-levels.friendsThreatLevel.tryConfirm", "on" });
 					formNode.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "seclevels", "on" });
 					formNode.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("continue")});
-					writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+					writeHTMLReply(ctx, 200, "OK", pageNode);
 					return;
 				} else if((!request.isPartSet("security-levels.friendsThreatLevel.confirm")) &&
 						request.isPartSet("security-levels.friendsThreatLevel.tryConfirm")) {
@@ -524,7 +524,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 						addBackToPhysicalSeclevelsLink(content);
 
-						writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+						writeHTMLReply(ctx, 200, "OK", pageNode);
 						return;
 					} catch (MasterKeysFileSizeException e) {
 						sendPasswordFileCorruptedPage(e.isTooBig(), ctx, false, true);
@@ -548,7 +548,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 					addBackToPhysicalSeclevelsLink(content);
 
-					writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+					writeHTMLReply(ctx, 200, "OK", pageNode);
 					return;
 				}
 			}
@@ -591,7 +591,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 						addBackToPhysicalSeclevelsLink(content);
 
-						writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+						writeHTMLReply(ctx, 200, "OK", pageNode);
 						return;
 					} catch (MasterKeysFileSizeException e) {
 						sendPasswordFileCorruptedPage(e.isTooBig(), ctx, false, true);
@@ -617,7 +617,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 					addBackToPhysicalSeclevelsLink(content);
 
-					writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+					writeHTMLReply(ctx, 200, "OK", pageNode);
 					return;
 
 				}
@@ -709,7 +709,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 	}
 
 	private void sendPasswordFileCorruptedPage(boolean tooBig, ToadletContext ctx, boolean forSecLevels, boolean forFirstTimeWizard) throws ToadletContextClosedException, IOException {
-		writeHTMLReply(ctx, 500, "OK", SecurityLevelsToadlet.sendPasswordFileCorruptedPageInner(tooBig, ctx, forSecLevels, forFirstTimeWizard, core.node.getMasterPasswordFile().getPath(), core.node).generate());
+		writeHTMLReply(ctx, 500, "OK", SecurityLevelsToadlet.sendPasswordFileCorruptedPageInner(tooBig, ctx, forSecLevels, forFirstTimeWizard, core.node.getMasterPasswordFile().getPath(), core.node));
 	}
 
 	private void addBackToPhysicalSeclevelsLink(HTMLNode content) {
@@ -841,7 +841,7 @@ public class FirstTimeWizardToadlet extends Toadlet {
 
 	private void sendCantDeleteMasterKeysFile(ToadletContext ctx, String physicalSecurityLevel) throws ToadletContextClosedException, IOException {
 		HTMLNode pageNode = SecurityLevelsToadlet.sendCantDeleteMasterKeysFileInner(ctx, core.node.getMasterPasswordFile().getPath(), false, physicalSecurityLevel, this.core.node);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	@Override
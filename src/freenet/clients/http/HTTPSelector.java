@@ -0,0 +1,505 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Selector based front end for the web interface. Connections only use a
+ * thread while a request is actually being handled: new connections, and
+ * kept-alive connections between requests, are parked on a Selector until a
+ * complete set of request headers has arrived, and long polls (see
+ * LongPollToadlet) are parked until they are woken up, the client goes away,
+ * or LONG_POLL_TIMEOUT passes. Requests are handled
+ * by ToadletContextImpl as before, on at most maxWorkers threads at once.
+ *
+ * Only used for connections which have a channel, i.e. not for SSL.
+ */
+final class HTTPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(HTTPSelector.class);
+	}
+
+	/** Close connections which have been idle this long between requests */
+	static final int IDLE_TIMEOUT = 2*60*1000;
+	/** Close long polls which haven't been woken up after this long. The
+	 * client will poll again if it is still there. */
+	static final int LONG_POLL_TIMEOUT = 5*60*1000;
+	/** Initial read buffer per parked connection */
+	private static final int INITIAL_BUFFER = 2048;
+	/** Once this much has been read without the end of the headers, hand it
+	 * over anyway and let the parser reject it. */
+	private static final int MAX_BUFFER = 65536;
+	private static final int SELECT_TIMEOUT = 10*1000;
+
+	private final ToadletContainer container;
+	private final PageMaker pageMaker;
+	private final Executor executor;
+	private final Selector selector;
+	/** Connections to add to the selector, and parked long polls to take off
+	 * it again, from other threads, in the order they happened */
+	private final ArrayList<Object> toRegister = new ArrayList<Object>();
+	/** Parked long polls. Only used on the selector thread. */
+	private final HashMap<ToadletContextImpl.ParkedRequest, SelectionKey> parkedPolls =
+		new HashMap<ToadletContextImpl.ParkedRequest, SelectionKey>();
+	/** Requests waiting for a worker */
+	private final LinkedList<Runnable> pendingJobs = new LinkedList<Runnable>();
+	/** Number of connections registered with the selector, including long
+	 * polls. Only changed on the selector thread. */
+	private volatile int parkedConnections;
+	/** Number of long polls registered with the selector. Only changed on
+	 * the selector thread. */
+	private volatile int parkedPollCount;
+	private int maxWorkers;
+	private int runningWorkers;
+	private boolean running;
+	private boolean stopped;
+	private Thread thread;
+
+	/** A connection waiting for its next request, or for a long poll to be
+	 * woken up. */
+	private static class Connection {
+		final SocketChannel channel;
+		/** The long poll, or null if waiting for a request */
+		final ToadletContextImpl.ParkedRequest poll;
+		ByteBuffer buf;
+		long lastActive;
+		long deadline;
+
+		Connection(SocketChannel channel, ToadletContextImpl.ParkedRequest poll, long now) {
+			this.channel = channel;
+			this.poll = poll;
+			this.lastActive = now;
+		}
+	}
+
+	HTTPSelector(ToadletContainer container, PageMaker pageMaker, Executor executor, int maxWorkers) throws IOException {
+		this.container = container;
+		this.pageMaker = pageMaker;
+		this.executor = executor;
+		this.maxWorkers = maxWorkers;
+		this.selector = Selector.open();
+	}
+
+	synchronized void start() {
+		if(running || stopped) return;
+		running = true;
+		thread = new Thread(this, "HTTP selector");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** Stop the selector thread, closing any connections parked on it. A
+	 * stopped HTTPSelector can't be started again. */
+	void stop() {
+		synchronized(this) {
+			running = false;
+			stopped = true;
+			if(thread == null) {
+				// Never started, so nothing is parked.
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+				return;
+			}
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Park a connection until its next request arrives. Used for new
+	 * connections, and by ToadletContextImpl once it has answered a request on
+	 * a persistent connection and has nothing more buffered.
+	 */
+	void park(Socket sock) {
+		SocketChannel channel = sock.getChannel();
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			Closer.close(channel);
+			return;
+		}
+		synchronized(toRegister) {
+			toRegister.add(new Connection(channel, null, System.currentTimeMillis()));
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Watch a parked long poll's connection, so that it is closed if the client
+	 * goes away or it isn't woken up within LONG_POLL_TIMEOUT. Anything the
+	 * client pipelines in the meantime is kept for after the poll.
+	 */
+	void parkLongPoll(ToadletContextImpl.ParkedRequest poll) {
+		SocketChannel channel = poll.sock.getChannel();
+		try {
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			Closer.close(channel);
+			return;
+		}
+		synchronized(toRegister) {
+			toRegister.add(new Connection(channel, poll, System.currentTimeMillis()));
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * A parked long poll has been woken up: take it off the selector and
+	 * handle it on a worker, unless it has already been closed.
+	 */
+	void wakeLongPoll(ToadletContextImpl.ParkedRequest poll) {
+		synchronized(toRegister) {
+			toRegister.add(poll);
+		}
+		selector.wakeup();
+	}
+
+	/** Run a job on a worker thread, or queue it if maxWorkers are busy. */
+	void dispatch(Runnable job) {
+		synchronized(this) {
+			if(runningWorkers >= maxWorkers) {
+				pendingJobs.add(job);
+				if(logMINOR) Logger.minor(this, "All workers busy, queued request, "+pendingJobs.size()+" waiting");
+				return;
+			}
+			runningWorkers++;
+		}
+		executor.execute(new Worker(job), "HTTP worker");
+	}
+
+	synchronized int getMaxWorkers() {
+		return maxWorkers;
+	}
+
+	/** @return The number of requests being handled right now. */
+	synchronized int getRunningWorkers() {
+		return runningWorkers;
+	}
+
+	/** @return The number of requests waiting for a worker. */
+	synchronized int getQueuedRequests() {
+		return pendingJobs.size();
+	}
+
+	/** @return The number of connections waiting for a request, or for a long
+	 * poll to be woken up, without a thread. */
+	int countParkedConnections() {
+		return parkedConnections;
+	}
+
+	/** @return The number of long polls currently parked. */
+	int countParkedPolls() {
+		return parkedPollCount;
+	}
+
+	void setMaxWorkers(int maxWorkers) {
+		int start;
+		synchronized(this) {
+			this.maxWorkers = maxWorkers;
+			start = Math.min(pendingJobs.size(), maxWorkers - runningWorkers);
+			if(start <= 0) return;
+			runningWorkers += start;
+		}
+		for(int i=0;i<start;i++)
+			executor.execute(new Worker(null), "HTTP worker");
+	}
+
+	/** Runs its job, then any queued jobs, then exits. */
+	private class Worker implements PrioRunnable {
+
+		private Runnable job;
+
+		Worker(Runnable job) {
+			this.job = job;
+		}
+
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				if(job == null) {
+					synchronized(HTTPSelector.this) {
+						if(pendingJobs.isEmpty() || runningWorkers > maxWorkers) {
+							runningWorkers--;
+							return;
+						}
+						job = pendingJobs.removeFirst();
+					}
+				}
+				try {
+					job.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+					Logger.error(this, "OOM in HTTP worker");
+				} catch (Throwable t) {
+					Logger.error(this, "Caught in HTTP worker: "+t, t);
+				}
+				job = null;
+			}
+		}
+
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
+	/** Handles a request whose headers have arrived, and any further requests
+	 * on the connection until it goes idle again. */
+	private class RequestHandler implements Runnable {
+
+		private final Socket sock;
+		private final byte[] prefetched;
+
+		RequestHandler(Socket sock, byte[] prefetched) {
+			this.sock = sock;
+			this.prefetched = prefetched;
+		}
+
+		public void run() {
+			ToadletContextImpl.handle(sock, prefetched, container, pageMaker, HTTPSelector.this, null);
+		}
+
+	}
+
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		boolean moreSelected = false;
+		long lastIdleCheck = System.currentTimeMillis();
+		try {
+			while(true) {
+				synchronized(this) {
+					if(!running) break;
+				}
+				try {
+					if(!moreSelected)
+						selector.select(SELECT_TIMEOUT);
+				} catch (IOException e) {
+					Logger.error(this, "Selector failed: "+e, e);
+					continue;
+				}
+				moreSelected = false;
+				long now = System.currentTimeMillis();
+				registerNewConnections(now);
+				ArrayList<Connection> ready = null;
+				for(Iterator<SelectionKey> i = selector.selectedKeys().iterator();i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					if(!key.isValid() || !key.isReadable()) continue;
+					Connection c = (Connection) key.attachment();
+					int status = read(c, now);
+					if(c.poll != null) {
+						// Only closing or overflowing matters while the poll waits.
+						if(status < 0 || (!c.buf.hasRemaining() && c.buf.capacity() >= MAX_BUFFER)) {
+							if(logMINOR) Logger.minor(this, "Closing long poll from "+c.channel.socket().getInetAddress());
+							close(key, c);
+						}
+					} else if(status < 0) {
+						close(key, c);
+					} else if(status > 0) {
+						key.cancel();
+						parkedConnections--;
+						if(ready == null) ready = new ArrayList<Connection>();
+						ready.add(c);
+					}
+				}
+				if(ready != null) {
+					// A channel can't go back to blocking mode until the selector
+					// has actually dropped its cancelled key.
+					try {
+						selector.selectNow();
+					} catch (IOException e) {
+						Logger.error(this, "Selector failed: "+e, e);
+					}
+					moreSelected = !selector.selectedKeys().isEmpty();
+					for(Connection c : ready)
+						handOver(c);
+				}
+				if(now - lastIdleCheck > SELECT_TIMEOUT) {
+					closeIdle(now);
+					lastIdleCheck = now;
+				}
+			}
+		} finally {
+			for(SelectionKey key : selector.keys())
+				Closer.close(key.channel());
+			synchronized(toRegister) {
+				for(Object op : toRegister)
+					if(op instanceof Connection) Closer.close(((Connection) op).channel);
+				toRegister.clear();
+			}
+			parkedPolls.clear();
+			parkedConnections = 0;
+			parkedPollCount = 0;
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private void registerNewConnections(long now) {
+		Object[] ops;
+		synchronized(toRegister) {
+			if(toRegister.isEmpty()) return;
+			ops = toRegister.toArray();
+			toRegister.clear();
+		}
+		ArrayList<SelectionKey> woken = null;
+		for(Object op : ops) {
+			if(op instanceof Connection) {
+				Connection c = (Connection) op;
+				try {
+					c.lastActive = now;
+					SelectionKey key = c.channel.register(selector, SelectionKey.OP_READ, c);
+					parkedConnections++;
+					if(c.poll != null) {
+						c.deadline = now + LONG_POLL_TIMEOUT;
+						parkedPolls.put(c.poll, key);
+						parkedPollCount = parkedPolls.size();
+					}
+				} catch (ClosedChannelException e) {
+					// Ignore
+				}
+			} else {
+				SelectionKey key = parkedPolls.remove(op);
+				// Null if it has already been closed.
+				if(key == null) continue;
+				parkedPollCount = parkedPolls.size();
+				parkedConnections--;
+				key.cancel();
+				if(woken == null) woken = new ArrayList<SelectionKey>();
+				woken.add(key);
+			}
+		}
+		if(woken == null) return;
+		try {
+			selector.selectNow();
+		} catch (IOException e) {
+			Logger.error(this, "Selector failed: "+e, e);
+		}
+		for(SelectionKey key : woken) {
+			Connection c = (Connection) key.attachment();
+			try {
+				c.channel.configureBlocking(true);
+			} catch (IOException e) {
+				Closer.close(c.channel);
+				continue;
+			}
+			byte[] pipelined = null;
+			if(c.buf != null) {
+				pipelined = new byte[c.buf.position()];
+				System.arraycopy(c.buf.array(), 0, pipelined, 0, pipelined.length);
+				c.buf = null;
+			}
+			c.poll.resume(pipelined);
+		}
+	}
+
+	private void close(SelectionKey key, Connection c) {
+		key.cancel();
+		Closer.close(c.channel);
+		parkedConnections--;
+		if(c.poll != null) {
+			parkedPolls.remove(c.poll);
+			parkedPollCount = parkedPolls.size();
+		}
+	}
+
+	/**
+	 * Read whatever has arrived.
+	 * @return -1 if the connection has closed, 1 if the request headers are
+	 * complete, otherwise 0.
+	 */
+	private int read(Connection c, long now) {
+		try {
+			if(c.buf == null)
+				c.buf = ByteBuffer.allocate(INITIAL_BUFFER);
+			else if(!c.buf.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(c.buf.capacity() * 2);
+				c.buf.flip();
+				bigger.put(c.buf);
+				c.buf = bigger;
+			}
+			int read = c.channel.read(c.buf);
+			if(read < 0) return -1;
+			c.lastActive = now;
+			if(headersComplete(c.buf)) return 1;
+			if(!c.buf.hasRemaining() && c.buf.capacity() >= MAX_BUFFER) return 1;
+			return 0;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** Has a blank line, ending the headers, arrived? Blank lines before the
+	 * request line don't count (ToadletContextImpl skips them). */
+	static boolean headersComplete(ByteBuffer buf) {
+		byte[] data = buf.array();
+		int end = buf.position();
+		int i = 0;
+		while(i < end && (data[i] == '\r' || data[i] == '\n')) i++;
+		boolean lineStart = false;
+		for(;i<end;i++) {
+			byte b = data[i];
+			if(b == '\n') {
+				if(lineStart) return true;
+				lineStart = true;
+			} else if(b != '\r') {
+				lineStart = false;
+			}
+		}
+		return false;
+	}
+
+	private void handOver(Connection c) {
+		try {
+			c.channel.configureBlocking(true);
+		} catch (IOException e) {
+			Closer.close(c.channel);
+			return;
+		}
+		byte[] prefetched = new byte[c.buf.position()];
+		System.arraycopy(c.buf.array(), 0, prefetched, 0, prefetched.length);
+		c.buf = null;
+		dispatch(new RequestHandler(c.channel.socket(), prefetched));
+	}
+
+	private void closeIdle(long now) {
+		// Copy, as close() changes the key set.
+		for(SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+			Connection c = (Connection) key.attachment();
+			if(c == null || !key.isValid()) continue;
+			boolean expired = c.poll != null ? now > c.deadline : now - c.lastActive > IDLE_TIMEOUT;
+			if(expired) {
+				if(logMINOR) Logger.minor(this, "Closing "+(c.poll != null ? "timed out long poll" : "idle connection")+" from "+c.channel.socket().getInetAddress());
+				close(key, c);
+			}
+		}
+	}
+
+}
@@ -44,7 +44,7 @@ public class InsertFreesiteToadlet extends Toadlet {
 		NodeL10n.getBase().addL10nSubstitution(contentBox.addChild("p"), "InsertFreesiteToadlet.contentThingamablog", new String[] { "thingamablog", "thingamablog-freenet", "/link" },
 				new String[] { "<a href=\"/?_CHECKED_HTTP_=http://downloads.freenetproject.org/alpha/thingamablog/thingamablog.zip\">", "<a href=\"/CHK@o8j9T2Ghc9cfKMLvv9aLrHbvW5XiAMEGwGDqH2UANTk,sVxLdxoNL-UAsvrlXRZtI5KyKlp0zv3Ysk4EcO627V0,AAIC--8/thingamablog.zip\">", "</a>" });
 		
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private static final String l10n(String string) {
@@ -206,7 +206,7 @@ public class LocalFileInsertToadlet extends Toadlet {
 			ulNode.addChild("li", l10n("checkPathReadable"));
 		}
 
-		writeHTMLReply(toadletContext, 200, "OK", pageNode.generate());
+		writeHTMLReply(toadletContext, 200, "OK", pageNode);
 	}
 
 	private String l10n(String key, String pattern, String value) {
@@ -0,0 +1,21 @@
+package freenet.clients.http;
+
+import freenet.support.api.HTTPRequest;
+
+/**
+ * A Toadlet whose GET may wait a long time before answering, e.g. an AJAX
+ * long poll. When the selector front end is in use, the connection is parked
+ * without a thread until the toadlet is ready, and then handleMethodGET() is
+ * called as usual. Otherwise handleMethodGET() simply blocks as before.
+ */
+public interface LongPollToadlet {
+
+	/**
+	 * Would handleMethodGET() answer this request without waiting?
+	 * @param wakeup If not, this is run once when it might. It may be run from
+	 * any thread, while holding locks, so it only queues the request.
+	 * @return True if the request should be handled now.
+	 */
+	boolean isReady(HTTPRequest req, ToadletContext ctx, Runnable wakeup);
+
+}
@@ -77,7 +77,7 @@ public class N2NTMToadlet extends Toadlet {
 			HashMap<String, String> peers = new HashMap<String, String>();
 			peers.put(input_hashcode_string, peernode_name);
 			createN2NTMSendForm(pageNode, contentNode, ctx, peers);
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		}
 		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
@@ -149,7 +149,7 @@ public class N2NTMToadlet extends Toadlet {
 				if(!(filename.exists() && filename.canRead())) {
 					peerTableInfobox.addChild("#", l10n("noSuchFileOrCannotRead"));
 					Toadlet.addHomepageLink(peerTableInfobox);
-					this.writeHTMLReply(ctx, 400, "OK", pageNode.generate());
+					this.writeHTMLReply(ctx, 400, "OK", pageNode);
 					return;
 				}
 			}
@@ -170,7 +170,7 @@ public class N2NTMToadlet extends Toadlet {
 						} catch (IOException e) {
 							peerTableInfobox.addChild("#", l10n("noSuchFileOrCannotRead"));
 							Toadlet.addHomepageLink(peerTableInfobox);
-							this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+							this.writeHTMLReply(ctx, 200, "OK", pageNode);
 							return;
 						}
 					} else {
@@ -220,7 +220,7 @@ public class N2NTMToadlet extends Toadlet {
 			list.addChild("li").addChild("a", new String[] { "href", "title" },
 					new String[] { "/friends/", l10n("returnToFriends") },
 					l10n("friends"));
-			this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+			this.writeHTMLReply(ctx, 200, "OK", pageNode);
 			return;
 		}
 		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
@@ -9,6 +9,7 @@ import java.util.List;
 import java.util.Map;
 
 import freenet.client.filter.PushingTagReplacerCallback;
+import freenet.l10n.BaseL10n.LANGUAGE;
 import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
 import freenet.node.Node;
@@ -93,6 +94,12 @@ public final class PageMaker {
 	private File override;
 	private final Node node;
 	
+	/** The alternate stylesheet links, the same on every page */
+	private static final HTMLNode.PreEncoded alternateStylesheets = createAlternateStylesheets();
+	/** The client-side localization script for pushing, for the language it was built in */
+	private HTMLNode.PreEncoded localizationScript;
+	private LANGUAGE localizationScriptLanguage;
+	
 	private List<SubMenu> menuList = new ArrayList<SubMenu>();
 	private Map<String, SubMenu> subMenus = new HashMap<String, SubMenu>();
 	
@@ -225,6 +232,26 @@ public final class PageMaker {
 		return new HTMLNode("a", new String[] { "href", "title" }, new String[] { "javascript:back()", name }, name);
 	}
 	
+	private static HTMLNode.PreEncoded createAlternateStylesheets() {
+		HTMLNode links = new HTMLNode("#");
+		for (THEME t: THEME.values()) {
+			String themeName = t.code;
+			links.addChild("link", new String[] { "rel", "href", "type", "media", "title" }, new String[] { "alternate stylesheet", "/static/themes/" + themeName + "/theme.css", "text/css", "screen", themeName });
+		}
+		return new HTMLNode.PreEncoded(links);
+	}
+	
+	private synchronized HTMLNode getLocalizationScript() {
+		LANGUAGE language = NodeL10n.getBase().getSelectedLanguage();
+		if(localizationScript == null || language != localizationScriptLanguage) {
+			HTMLNode script = new HTMLNode("script", new String[] { "type", "language" }, new String[] { "text/javascript", "javascript" });
+			script.addChild("%", PushingTagReplacerCallback.getClientSideLocalizationScript());
+			localizationScript = new HTMLNode.PreEncoded(script);
+			localizationScriptLanguage = language;
+		}
+		return localizationScript;
+	}
+	
 	public PageNode getPageNode(String title, ToadletContext ctx) {
 		return getPageNode(title, true, ctx);
 	}
@@ -242,10 +269,7 @@ public final class PageMaker {
 			headNode.addChild("link", new String[] { "rel", "href", "type", "title" }, new String[] { "stylesheet", "/static/themes/" + theme.code + "/theme.css", "text/css", theme.code });
 		else
 			headNode.addChild(getOverrideContent());
-		for (THEME t: THEME.values()) {
-			String themeName = t.code;
-			headNode.addChild("link", new String[] { "rel", "href", "type", "media", "title" }, new String[] { "alternate stylesheet", "/static/themes/" + themeName + "/theme.css", "text/css", "screen", themeName });
-		}
+		headNode.addChild(alternateStylesheets);
 		
 		boolean webPushingEnabled = 
 			ctx != null && ctx.getContainer().isFProxyJavascriptEnabled() && ctx.getContainer().isFProxyWebPushingEnabled();
@@ -269,7 +293,7 @@ public final class PageMaker {
 		
 		// Add the client-side localization only when pushing is enabled
 		if (webPushingEnabled) {
-			bodyNode.addChild("script", new String[] { "type", "language" }, new String[] { "text/javascript", "javascript" }).addChild("%", PushingTagReplacerCallback.getClientSideLocalizationScript());
+			bodyNode.addChild(getLocalizationScript());
 		}
 		
 		HTMLNode pageDiv = bodyNode.addChild("div", "id", "page");
@@ -37,6 +37,7 @@ import freenet.client.TempFetchResult;
 import freenet.client.async.ClientContext;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
+import freenet.clients.http.updateableelements.RequestProgressElement;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
 import freenet.node.DarknetPeerNode;
@@ -49,11 +50,17 @@ import freenet.node.fcp.ClientPut;
 import freenet.node.fcp.ClientPutDir;
 import freenet.node.fcp.ClientPutMessage;
 import freenet.node.fcp.ClientRequest;
+import freenet.node.fcp.DownloadRequestStatus;
 import freenet.node.fcp.FCPServer;
 import freenet.node.fcp.IdentifierCollisionException;
 import freenet.node.fcp.MessageInvalidException;
 import freenet.node.fcp.NotAllowedException;
 import freenet.node.fcp.RequestCompletionCallback;
+import freenet.node.fcp.RequestStatus;
+import freenet.node.fcp.RequestStatusCache;
+import freenet.node.fcp.UploadDirRequestStatus;
+import freenet.node.fcp.UploadFileRequestStatus;
+import freenet.node.fcp.UploadRequestStatus;
 import freenet.node.fcp.ClientPut.COMPRESS_STATE;
 import freenet.node.useralerts.StoringUserEvent;
 import freenet.node.useralerts.UserAlert;
@@ -63,6 +70,7 @@ import freenet.support.MultiValueTable;
 import freenet.support.MutableBoolean;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
+import freenet.support.URLEncoder;
 import freenet.support.api.Bucket;
 import freenet.support.api.HTTPRequest;
 import freenet.support.api.HTTPUploadedFile;
@@ -93,11 +101,12 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	private static final int MAX_FILENAME_LENGTH = 1024*1024;
 	private static final int MAX_TYPE_LENGTH = 1024;
 	static final int MAX_KEY_LENGTH = 1024*1024;
+	/** Maximum number of requests shown in each table, the rest are on further pages */
+	private static final int REQUESTS_PER_PAGE = 100;
 	
 	private NodeClientCore core;
 	final FCPServer fcp;
 	
-	private boolean isReversed = false;
 	
 	private final boolean uploads;
 	
@@ -206,7 +215,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "remove_request", NodeL10n.getBase().getString("Toadlet.yes") });
 				deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "cancel", NodeL10n.getBase().getString("Toadlet.no") });
 				
-				this.writeHTMLReply(ctx, 200, "OK", page.outer.generate());
+				this.writeHTMLReply(ctx, 200, "OK", page.outer);
 			} else if(request.isPartSet("remove_request") && (request.getPartAsString("remove_request", 32).length() > 0)) {
 				String identifier = request.getPartAsString("identifier", MAX_IDENTIFIER_LENGTH);
 				if(logMINOR) Logger.minor(this, "Removing "+identifier);
@@ -346,7 +355,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 					failureDiv.addChild("br");
 				}
 				alertContent.addChild("a", "href", path(), NodeL10n.getBase().getString("Toadlet.returnToQueuepage"));
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if (request.isPartSet("change_priority")) {
 				String identifier = request.getPartAsString("identifier", MAX_IDENTIFIER_LENGTH);
@@ -663,7 +672,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 				form.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "recommend_uri", NodeL10n.getBase().getString("QueueToadlet.recommend")});
 
-				this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				this.writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else if(request.isPartSet("recommend_uri") && request.isPartSet("URI")) {
 				FreenetURI furi = null;
@@ -688,7 +697,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	}
 	
 	private void sendPanicingPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
-		writeHTMLReply(ctx, 200, "OK", WelcomeToadlet.sendRestartingPageInner(ctx).generate());
+		writeHTMLReply(ctx, 200, "OK", WelcomeToadlet.sendRestartingPageInner(ctx));
 	}
 
 	private void sendConfirmPanicPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -711,7 +720,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		else
 			content.addChild("p").addChild("a", "href", path(), l10n("backToDownloadsPage"));
 		
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void sendPersistenceDisabledError(ToadletContext ctx) throws ToadletContextClosedException, IOException {
@@ -727,7 +736,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			
 			addHomepageLink(infoboxContent);
 			
-			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode.generate());
+			writeHTMLReply(ctx, 500, "Internal Server Error", pageNode);
 			return;
 
 		}
@@ -759,7 +768,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		infoboxContent.addChild("#", message);
 		if(returnToQueuePage)
 			NodeL10n.getBase().addL10nSubstitution(infoboxContent.addChild("div"), "QueueToadlet.returnToQueuePage", new String[] { "link", "/link" }, new String[] { "<a href=\""+path()+"\">", "</a>" });
-		writeHTMLReply(context, 400, "Bad request", pageNode.generate());
+		writeHTMLReply(context, 400, "Bad request", pageNode);
 	}
 
 	public void handleMethodGET(URI uri, final HTTPRequest request, final ToadletContext ctx) 
@@ -824,68 +833,73 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		
 		final boolean count = countRequests; 
 		
-		try {
-			core.clientContext.jobRunner.queue(new DBJob() {
-
-				public boolean run(ObjectContainer container, ClientContext context) {
-					HTMLNode pageNode = null;
-					try {
-						if(count) {
-							long queued = core.requestStarters.chkFetchScheduler.countPersistentWaitingKeys(container);
-							Logger.minor(this, "Total waiting CHKs: "+queued);
-							long reallyQueued = core.requestStarters.chkFetchScheduler.countPersistentQueuedRequests(container);
-							Logger.minor(this, "Total queued CHK requests: "+reallyQueued);
-							PageNode page = pageMaker.getPageNode(NodeL10n.getBase().getString("QueueToadlet.title", new String[]{ "nodeName" }, new String[]{ core.getMyName() }), ctx);
-							pageNode = page.outer;
-							HTMLNode contentNode = page.content;
-							/* add alert summary box */
-							if(ctx.isAllowedFullAccess())
-								contentNode.addChild(core.alerts.createSummary());
-							HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", "Queued requests status", contentNode, null, false);
-							infoboxContent.addChild("p", "Total awaiting CHKs: "+queued);
-							infoboxContent.addChild("p", "Total queued CHK requests: "+reallyQueued);
-							return false;
-						} else {
-							try {
-								pageNode = handleGetInner(pageMaker, container, context, request, ctx);
-							} catch (DatabaseDisabledException e) {
-								pageNode = null;
+		final RequestStatusCache statusCache = fcp.getGlobalRequestStatusCache();
+		
+		// The queue page is rendered from the status cache, without a database job,
+		// once the cache has been filled.
+		if(count || !statusCache.isLoaded()) {
+			try {
+				core.clientContext.jobRunner.queue(new DBJob() {
+
+					public boolean run(ObjectContainer container, ClientContext context) {
+						HTMLNode pageNode = null;
+						try {
+							if(count) {
+								long queued = core.requestStarters.chkFetchScheduler.countPersistentWaitingKeys(container);
+								Logger.minor(this, "Total waiting CHKs: "+queued);
+								long reallyQueued = core.requestStarters.chkFetchScheduler.countPersistentQueuedRequests(container);
+								Logger.minor(this, "Total queued CHK requests: "+reallyQueued);
+								PageNode page = pageMaker.getPageNode(NodeL10n.getBase().getString("QueueToadlet.title", new String[]{ "nodeName" }, new String[]{ core.getMyName() }), ctx);
+								pageNode = page.outer;
+								HTMLNode contentNode = page.content;
+								/* add alert summary box */
+								if(ctx.isAllowedFullAccess())
+									contentNode.addChild(core.alerts.createSummary());
+								HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", "Queued requests status", contentNode, null, false);
+								infoboxContent.addChild("p", "Total awaiting CHKs: "+queued);
+								infoboxContent.addChild("p", "Total queued CHK requests: "+reallyQueued);
+								return false;
+							} else {
+								try {
+									fcp.loadGlobalRequestStatus(container);
+								} catch (DatabaseDisabledException e) {
+									// Handled below
+								}
+								return false;
+							}
+						} finally {
+							synchronized(ow) {
+								ow.done = true;
+								ow.pageNode = pageNode;
+								ow.notifyAll();
 							}
-							return false;
-						}
-					} finally {
-						synchronized(ow) {
-							ow.done = true;
-							ow.pageNode = pageNode;
-							ow.notifyAll();
 						}
 					}
-				}
-			// Do not use maximal priority: There may be exceptional cases which have higher priority than the UI, to get rid of excessive garbage for example.			
-			}, NativeThread.HIGH_PRIORITY, false);
-		} catch (DatabaseDisabledException e1) {
-			sendPersistenceDisabledError(ctx);
-			return;
-		}
-		
-		HTMLNode pageNode;
-		synchronized(ow) {
-			while(true) {
-				if(ow.done) {
-					pageNode = ow.pageNode;
-					break;
-				}
-				try {
-					ow.wait();
-				} catch (InterruptedException e) {
-					// Ignore
+				// Do not use maximal priority: There may be exceptional cases which have higher priority than the UI, to get rid of excessive garbage for example.			
+				}, NativeThread.HIGH_PRIORITY, false);
+			} catch (DatabaseDisabledException e1) {
+				sendPersistenceDisabledError(ctx);
+				return;
+			}
+			
+			synchronized(ow) {
+				while(!ow.done) {
+					try {
+						ow.wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
 				}
 			}
 		}
 		
+		HTMLNode pageNode = ow.pageNode;
+		if(!count && statusCache.isLoaded())
+			pageNode = handleGetInner(pageMaker, statusCache, request, ctx);
+		
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
-			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
+			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode);
 		else {
 			if(core.killedDatabase())
 				sendPersistenceDisabledError(ctx);
@@ -895,27 +909,82 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 
 	}
 	
-	private HTMLNode handleGetInner(PageMaker pageMaker, final ObjectContainer container, ClientContext context, final HTTPRequest request, ToadletContext ctx) throws DatabaseDisabledException {
+	/** Sorts requests by the column given in the sortBy parameter, then by
+	 * priority and identifier. */
+	private static class StatusComparator implements Comparator<RequestStatus> {
+		
+		private final String sortBy;
+		private final boolean reversed;
+		
+		StatusComparator(String sortBy, boolean reversed) {
+			this.sortBy = sortBy;
+			this.reversed = reversed;
+		}
+		
+		public int compare(RequestStatus firstRequest, RequestStatus secondRequest) {
+			int result = 0;
+			if("id".equals(sortBy)) {
+				result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
+			} else if("size".equals(sortBy)) {
+				result = compareLongs(firstRequest.getDataSize(), secondRequest.getDataSize());
+			} else if("progress".equals(sortBy)) {
+				result = Double.compare(progress(firstRequest), progress(secondRequest));
+			} else if("lastActivity".equals(sortBy)) {
+				result = compareLongs(firstRequest.getLastActivity(), secondRequest.getLastActivity());
+			}
+			if(result == 0)
+				result = firstRequest.getPriority() - secondRequest.getPriority();
+			if(result == 0)
+				result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
+			return reversed ? -result : result;
+		}
+		
+		private static int compareLongs(long a, long b) {
+			return a < b ? -1 : (a > b ? 1 : 0);
+		}
+		
+		private static double progress(RequestStatus status) {
+			if(status.getMinBlocks() <= 0) return 0.0;
+			return status.getFetchedBlocks() / (double) status.getMinBlocks();
+		}
+		
+	}
+	
+	/** Does the request match the filter typed in by the user? Matches the
+	 * identifier, the key and the filename, case insensitively. */
+	private static boolean matchesFilter(RequestStatus status, String filter) {
+		if(filter == null) return true;
+		if(status.getIdentifier().toLowerCase().indexOf(filter) != -1) return true;
+		FreenetURI uri = status.getURI();
+		if(uri != null && uri.toString(false, false).toLowerCase().indexOf(filter) != -1) return true;
+		String filename = status.getFilename();
+		if(filename != null && filename.toLowerCase().indexOf(filter) != -1) return true;
+		return false;
+	}
+	
+	private HTMLNode handleGetInner(PageMaker pageMaker, RequestStatusCache statusCache, final HTTPRequest request, ToadletContext ctx) {
 		
 		// First, get the queued requests, and separate them into different types.
-		LinkedList<ClientRequest> completedDownloadToDisk = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> completedDownloadToTemp = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> completedUpload = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> completedDirUpload = new LinkedList<ClientRequest>();
+		LinkedList<RequestStatus> completedDownloadToDisk = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> completedDownloadToTemp = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> completedUpload = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> completedDirUpload = new LinkedList<RequestStatus>();
 		
-		LinkedList<ClientRequest> failedDownload = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> failedUpload = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> failedDirUpload = new LinkedList<ClientRequest>();
+		LinkedList<RequestStatus> failedDownload = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> failedUpload = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> failedDirUpload = new LinkedList<RequestStatus>();
 		
-		LinkedList<ClientRequest> uncompletedDownload = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> uncompletedUpload = new LinkedList<ClientRequest>();
-		LinkedList<ClientRequest> uncompletedDirUpload = new LinkedList<ClientRequest>();
+		LinkedList<RequestStatus> uncompletedDownload = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> uncompletedUpload = new LinkedList<RequestStatus>();
+		LinkedList<RequestStatus> uncompletedDirUpload = new LinkedList<RequestStatus>();
 		
-		ClientRequest[] reqs = fcp.getGlobalRequests(container);
+		DownloadRequestStatus[] downloads = statusCache.getDownloads();
+		UploadRequestStatus[] uploadStatus = statusCache.getUploads();
+		int totalRequests = downloads.length + uploadStatus.length;
 		if(Logger.shouldLog(Logger.MINOR, this))
-			Logger.minor(this, "Request count: "+reqs.length);
+			Logger.minor(this, "Request count: "+totalRequests);
 		
-		if(reqs.length < 1){
+		if(totalRequests < 1){
 			PageNode page = pageMaker.getPageNode(NodeL10n.getBase().getString("QueueToadlet.title"+(uploads?"Uploads":"Downloads"), new String[]{ "nodeName" }, new String[]{ core.getMyName() }), ctx);
 			HTMLNode pageNode = page.outer;
 			HTMLNode contentNode = page.content;
@@ -931,62 +1000,54 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			return pageNode;
 		}
 
+		String filter = request.getParam("filter").trim();
+		if(filter.length() == 0)
+			filter = null;
+		String lowerCaseFilter = filter == null ? null : filter.toLowerCase();
+		
 		short lowestQueuedPrio = RequestStarter.MINIMUM_PRIORITY_CLASS;
 		
 		long totalQueuedDownloadSize = 0;
 		long totalQueuedUploadSize = 0;
 		
-		for(int i=0;i<reqs.length;i++) {
-			ClientRequest req = reqs[i];
-			if(req instanceof ClientGet && !uploads) {
-				ClientGet cg = (ClientGet) req;
-				if(cg.hasSucceeded()) {
-					if(cg.isDirect())
-						completedDownloadToTemp.add(cg);
-					else if(cg.isToDisk())
-						completedDownloadToDisk.add(cg);
+		if(!uploads) {
+			for(DownloadRequestStatus status : downloads) {
+				if(!matchesFilter(status, lowerCaseFilter)) continue;
+				if(status.hasSucceeded()) {
+					if(status.isToTemp())
+						completedDownloadToTemp.add(status);
+					else if(status.isToDisk())
+						completedDownloadToDisk.add(status);
 					else
 						// FIXME
-						Logger.error(this, "Don't know what to do with "+cg);
-				} else if(cg.hasFinished()) {
-					failedDownload.add(cg);
+						Logger.error(this, "Don't know what to do with "+status);
+				} else if(status.hasFinished()) {
+					failedDownload.add(status);
 				} else {
-					short prio = cg.getPriority();
+					short prio = status.getPriority();
 					if(prio < lowestQueuedPrio)
 						lowestQueuedPrio = prio;
-					uncompletedDownload.add(cg);
-					long size = cg.getDataSize(container);
+					uncompletedDownload.add(status);
+					long size = status.getDataSize();
 					if(size > 0)
 						totalQueuedDownloadSize += size;
 				}
-			} else if(req instanceof ClientPut && uploads) {
-				ClientPut cp = (ClientPut) req;
-				if(cp.hasSucceeded()) {
-					completedUpload.add(cp);
-				} else if(cp.hasFinished()) {
-					failedUpload.add(cp);
-				} else {
-					short prio = req.getPriority();
-					if(prio < lowestQueuedPrio)
-						lowestQueuedPrio = prio;
-					uncompletedUpload.add(cp);
-				}
-				long size = cp.getDataSize(container);
-				if(size > 0)
-					totalQueuedUploadSize += size;
-			} else if(req instanceof ClientPutDir && uploads) {
-				ClientPutDir cp = (ClientPutDir) req;
-				if(cp.hasSucceeded()) {
-					completedDirUpload.add(cp);
-				} else if(cp.hasFinished()) {
-					failedDirUpload.add(cp);
+			}
+		} else {
+			for(UploadRequestStatus status : uploadStatus) {
+				if(!matchesFilter(status, lowerCaseFilter)) continue;
+				boolean isDir = status instanceof UploadDirRequestStatus;
+				if(status.hasSucceeded()) {
+					(isDir ? completedDirUpload : completedUpload).add(status);
+				} else if(status.hasFinished()) {
+					(isDir ? failedDirUpload : failedUpload).add(status);
 				} else {
-					short prio = req.getPriority();
+					short prio = status.getPriority();
 					if(prio < lowestQueuedPrio)
 						lowestQueuedPrio = prio;
-					uncompletedDirUpload.add(cp);
+					(isDir ? uncompletedDirUpload : uncompletedUpload).add(status);
 				}
-				long size = cp.getTotalDataSize();
+				long size = status.getDataSize();
 				if(size > 0)
 					totalQueuedUploadSize += size;
 			}
@@ -994,46 +1055,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		Logger.minor(this, "Total queued downloads: "+SizeUtil.formatSize(totalQueuedDownloadSize));
 		Logger.minor(this, "Total queued uploads: "+SizeUtil.formatSize(totalQueuedUploadSize));
 		
-		Comparator<ClientRequest> jobComparator = new Comparator<ClientRequest>() {
-			public int compare(ClientRequest firstRequest, ClientRequest secondRequest) {
-				int result = 0;
-				boolean isSet = true;
-				
-				if(request.isParameterSet("sortBy")){
-					final String sortBy = request.getParam("sortBy"); 
-
-					if(sortBy.equals("id")){
-						result = firstRequest.getIdentifier().compareToIgnoreCase(secondRequest.getIdentifier());
-					}else if(sortBy.equals("size")){
-						result = (firstRequest.getTotalBlocks(container) - secondRequest.getTotalBlocks(container)) < 0 ? -1 : 1;
-					}else if(sortBy.equals("progress")){
-						result = (firstRequest.getFetchedBlocks(container) / firstRequest.getMinBlocks(container) - secondRequest.getFetchedBlocks(container) / secondRequest.getMinBlocks(container)) < 0 ? -1 : 1;
-					} else if (sortBy.equals("lastActivity")) {
-						result = (int) Math.min(Integer.MAX_VALUE, Math.max(Integer.MIN_VALUE, firstRequest.getLastActivity() - secondRequest.getLastActivity()));
-					}else
-						isSet=false;
-				}else
-					isSet=false;
-				
-				if(!isSet){
-					int priorityDifference =  firstRequest.getPriority() - secondRequest.getPriority(); 
-					if (priorityDifference != 0) 
-						result = (priorityDifference < 0 ? -1 : 1);
-					else
-						result = firstRequest.getIdentifier().compareTo(secondRequest.getIdentifier());
-				}
-
-				if(result == 0){
-					return 0;
-				}else if(request.isParameterSet("reversed")){
-					isReversed = true;
-					return result > 0 ? -1 : 1;
-				}else{
-					isReversed = false;
-					return result < 0 ? -1 : 1;
-				}
-			}
-		};
+		String sortBy = request.getParam("sortBy", null);
+		boolean reversed = request.isParameterSet("reversed");
+		Comparator<RequestStatus> jobComparator = new StatusComparator(sortBy, reversed);
 		
 		Collections.sort(completedDownloadToDisk, jobComparator);
 		Collections.sort(completedDownloadToTemp, jobComparator);
@@ -1046,6 +1070,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		Collections.sort(uncompletedUpload, jobComparator);
 		Collections.sort(uncompletedDirUpload, jobComparator);
 		
+		QueueView view = new QueueView(request, sortBy, reversed, filter);
+		
 		String pageName;
 		if(uploads)
 			pageName = 
@@ -1130,6 +1156,8 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		if (includeNavigationBar) {
 			contentNode.addChild(navigationBar);
 		}
+		
+		contentNode.addChild(createFilterBox(pageMaker, view));
 
 		final String[] priorityClasses = new String[] { 
 				NodeL10n.getBase().getString("QueueToadlet.priority0"),
@@ -1151,7 +1179,7 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				legendRow.addChild("td", "class", "priority" + i, priorityClasses[i]);
 		}
 
-		if (reqs.length > 1 && SimpleToadletServer.isPanicButtonToBeShown) {
+		if (totalRequests > 1 && SimpleToadletServer.isPanicButtonToBeShown) {
 			contentNode.addChild(createPanicBox(pageMaker, ctx));
 		}
 
@@ -1159,9 +1187,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToTemp");
 			HTMLNode completedDownloadsToTempContent = pageMaker.getInfobox("completed_requests", NodeL10n.getBase().getString("QueueToadlet.completedDinTempDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToTemp.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_SIZE, LIST_MIME_TYPE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(completedDownloadsToTempContent, pageMaker, ctx, view, "completedDownloadToTemp", completedDownloadToTemp, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_SIZE, LIST_MIME_TYPE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			} else {
-				completedDownloadsToTempContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToTemp, new int[] { LIST_RECOMMEND, LIST_SIZE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(completedDownloadsToTempContent, pageMaker, ctx, view, "completedDownloadToTemp", completedDownloadToTemp, new int[] { LIST_RECOMMEND, LIST_SIZE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			}
 		}
 		
@@ -1169,9 +1197,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDownloadToDisk");
 			HTMLNode completedToDiskInfoboxContent = pageMaker.getInfobox("completed_requests", NodeL10n.getBase().getString("QueueToadlet.completedDinDownloadDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDownloadToDisk.size()) }), contentNode, "request-completed", false);
 			if (advancedModeEnabled) {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(completedToDiskInfoboxContent, pageMaker, ctx, view, "completedDownloadToDisk", completedDownloadToDisk, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			} else {
-				completedToDiskInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedDownloadToDisk, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(completedToDiskInfoboxContent, pageMaker, ctx, view, "completedDownloadToDisk", completedDownloadToDisk, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_DOWNLOAD, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			}
 		}
 
@@ -1179,9 +1207,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedUpload");
 			HTMLNode completedUploadInfoboxContent = pageMaker.getInfobox("completed_requests", NodeL10n.getBase().getString("QueueToadlet.completedU", new String[]{ "size" }, new String[]{ String.valueOf(completedUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(completedUploadInfoboxContent, pageMaker, ctx, view, "completedUpload", completedUpload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else  {
-				completedUploadInfoboxContent.addChild(createRequestTable(pageMaker, ctx, completedUpload, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(completedUploadInfoboxContent, pageMaker, ctx, view, "completedUpload", completedUpload, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 		
@@ -1189,9 +1217,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "completedDirUpload");
 			HTMLNode completedUploadDirContent = pageMaker.getInfobox("completed_requests", NodeL10n.getBase().getString("QueueToadlet.completedUDirectory", new String[]{ "size" }, new String[]{ String.valueOf(completedDirUpload.size()) }), contentNode, "download-completed", false);
 			if (advancedModeEnabled) {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_TOTAL_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(completedUploadDirContent, pageMaker, ctx, view, "completedDirUpload", completedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_TOTAL_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else {
-				completedUploadDirContent.addChild(createRequestTable(pageMaker, ctx, completedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(completedUploadDirContent, pageMaker, ctx, view, "completedDirUpload", completedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 				
@@ -1199,9 +1227,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDownload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", NodeL10n.getBase().getString("QueueToadlet.failedD", new String[]{ "size" }, new String[]{ String.valueOf(failedDownload.size()) }), contentNode, "download-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedDownload", failedDownload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDownload, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedDownload", failedDownload, new int[] { LIST_RECOMMEND, LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			}
 		}
 		
@@ -1209,9 +1237,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", NodeL10n.getBase().getString("QueueToadlet.failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, new int[] { LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedUpload", failedUpload, new int[] { LIST_IDENTIFIER, LIST_FILENAME, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedUpload, new int[] { LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedUpload", failedUpload, new int[] { LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 		
@@ -1219,9 +1247,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "failedDirUpload");
 			HTMLNode failedContent = pageMaker.getInfobox("failed_requests", NodeL10n.getBase().getString("QueueToadlet.failedU", new String[]{ "size" }, new String[]{ String.valueOf(failedDirUpload.size()) }), contentNode, "upload-failed", false);
 			if (advancedModeEnabled) {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedDirUpload", failedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else {
-				failedContent.addChild(createRequestTable(pageMaker, ctx, failedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(failedContent, pageMaker, ctx, view, "failedDirUpload", failedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_REASON, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 		
@@ -1229,9 +1257,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedDownload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", NodeL10n.getBase().getString("QueueToadlet.wipD", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDownload.size()) }), contentNode, "download-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_PRIORITY, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_FILENAME, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedDownload", uncompletedDownload, new int[] { LIST_RECOMMEND, LIST_IDENTIFIER, LIST_PRIORITY, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_FILENAME, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDownload, new int[] { LIST_RECOMMEND, LIST_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY }, priorityClasses, advancedModeEnabled, false, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedDownload", uncompletedDownload, new int[] { LIST_RECOMMEND, LIST_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY }, priorityClasses, advancedModeEnabled, false);
 			}
 		}
 		
@@ -1239,9 +1267,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedUpload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", NodeL10n.getBase().getString("QueueToadlet.wipU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedUpload.size()) }), contentNode, "upload-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new int[] { LIST_IDENTIFIER, LIST_PRIORITY, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_FILENAME, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedUpload", uncompletedUpload, new int[] { LIST_IDENTIFIER, LIST_PRIORITY, LIST_SIZE, LIST_MIME_TYPE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_FILENAME, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedUpload, new int[] { LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY, LIST_PERSISTENCE }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedUpload", uncompletedUpload, new int[] { LIST_FILENAME, LIST_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY, LIST_PERSISTENCE }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 		
@@ -1249,9 +1277,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			contentNode.addChild("a", "id", "uncompletedDirUpload");
 			HTMLNode uncompletedContent = pageMaker.getInfobox("requests_in_progress", NodeL10n.getBase().getString("QueueToadlet.wipDU", new String[]{ "size" }, new String[]{ String.valueOf(uncompletedDirUpload.size()) }), contentNode, "download-progressing upload-progressing", false);
 			if (advancedModeEnabled) {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_PRIORITY, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedDirUpload", uncompletedDirUpload, new int[] { LIST_IDENTIFIER, LIST_FILES, LIST_PRIORITY, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_PERSISTENCE, LIST_KEY }, priorityClasses, advancedModeEnabled, true);
 			} else {
-				uncompletedContent.addChild(createRequestTable(pageMaker, ctx, uncompletedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY, LIST_PERSISTENCE }, priorityClasses, advancedModeEnabled, true, container));
+				addRequestTable(uncompletedContent, pageMaker, ctx, view, "uncompletedDirUpload", uncompletedDirUpload, new int[] { LIST_FILES, LIST_TOTAL_SIZE, LIST_PROGRESS, LIST_LAST_ACTIVITY, LIST_KEY, LIST_PERSISTENCE }, priorityClasses, advancedModeEnabled, true);
 			}
 		}
 		
@@ -1279,17 +1307,24 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 	
 	public static HTMLNode createProgressCell(boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		HTMLNode progressCell = new HTMLNode("td", "class", "request-progress");
+		addProgress(progressCell, advancedMode, started, compressing, fetched, failed, fatallyFailed, min, total, finalized, upload);
+		return progressCell;
+	}
+	
+	/** Add the progress bar (or the reason there isn't one yet) to a progress
+	 * cell. Used both by the static page and by RequestProgressElement. */
+	public static void addProgress(HTMLNode progressCell, boolean advancedMode, boolean started, COMPRESS_STATE compressing, int fetched, int failed, int fatallyFailed, int min, int total, boolean finalized, boolean upload) {
 		if (!started) {
 			progressCell.addChild("#", NodeL10n.getBase().getString("QueueToadlet.starting"));
-			return progressCell;
+			return;
 		}
 		if(compressing == COMPRESS_STATE.WAITING && advancedMode) {
 			progressCell.addChild("#", NodeL10n.getBase().getString("QueueToadlet.awaitingCompression"));
-			return progressCell;
+			return;
 		}
 		if(compressing != COMPRESS_STATE.WORKING) {
 			progressCell.addChild("#", NodeL10n.getBase().getString("QueueToadlet.compressing"));
-			return progressCell;
+			return;
 		}
 		
 		//double frac = p.getSuccessFraction();
@@ -1326,7 +1361,6 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 				progressBar.addChild("div", new String[] { "class", "title" }, new String[] { "progress_fraction_not_finalized", prefix + NodeL10n.getBase().getString(upload ? "QueueToadlet.uploadProgressbarNotAccurate" : "QueueToadlet.progressbarNotAccurate") }, text);
 			}
 		}
-		return progressCell;
 	}
 	
 	private HTMLNode createNumberCell(int numberOfFiles) {
@@ -1373,26 +1407,26 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return recommendNode;
 	}
 
-	private HTMLNode createDeleteCell(PageMaker pageMaker, String identifier, ClientRequest clientRequest, ToadletContext ctx, ObjectContainer container) {
+	private HTMLNode createDeleteCell(PageMaker pageMaker, String identifier, RequestStatus status, ToadletContext ctx) {
 		HTMLNode deleteNode = new HTMLNode("td", "class", "request-delete");
 		HTMLNode deleteForm = ctx.addFormChild(deleteNode, path(), "queueDeleteForm-" + identifier.hashCode());
 		deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "identifier", identifier });
-		if((clientRequest instanceof ClientGet) && !((ClientGet)clientRequest).isToDisk()) {
+		if((status instanceof DownloadRequestStatus) && !((DownloadRequestStatus)status).isToDisk()) {
 			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "delete_request", NodeL10n.getBase().getString("QueueToadlet.deleteFileFromTemp") });
-			FreenetURI uri = ((ClientGet)clientRequest).getURI(container);
+			FreenetURI uri = status.getURI();
 			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "key", uri.toString(false, false) });
-			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "size", SizeUtil.formatSize(((ClientGet)clientRequest).getDataSize(container)) });
+			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "size", SizeUtil.formatSize(status.getDataSize()) });
 			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "filename", uri.getPreferredFilename() });
-			if(((ClientGet)clientRequest).isTotalFinalized(container))
+			if(status.isTotalFinalized())
 				deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "finalized", "true" });
 		} else
 			deleteForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "remove_request", NodeL10n.getBase().getString("QueueToadlet.remove") });
 		
 		// If it's failed, offer to restart it
 		
-		if(clientRequest.hasFinished() && !clientRequest.hasSucceeded() && clientRequest.canRestart()) {
+		if(status.hasFinished() && !status.hasSucceeded() && status.canRestart()) {
 			HTMLNode retryForm = ctx.addFormChild(deleteNode, path(), "queueRestartForm-" + identifier.hashCode());
-			String restartName = NodeL10n.getBase().getString(clientRequest instanceof ClientGet && ((ClientGet)clientRequest).hasPermRedirect() ? "QueueToadlet.follow" : "QueueToadlet.restart");
+			String restartName = NodeL10n.getBase().getString(status instanceof DownloadRequestStatus && ((DownloadRequestStatus)status).hasPermRedirect() ? "QueueToadlet.follow" : "QueueToadlet.restart");
 			retryForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "identifier", identifier });
 			retryForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "submit", "restart_request", restartName });
 		}
@@ -1431,9 +1465,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return persistenceCell;
 	}
 
-	private HTMLNode createDownloadCell(PageMaker pageMaker, ClientGet p, ObjectContainer container) {
+	private HTMLNode createDownloadCell(PageMaker pageMaker, DownloadRequestStatus p) {
 		HTMLNode downloadCell = new HTMLNode("td", "class", "request-download");
-		FreenetURI uri = p.getURI(container);
+		FreenetURI uri = p.getURI();
 		if(uri == null)
 			Logger.error(this, "NO URI FOR "+p, new Exception("error"));
 		else
@@ -1552,8 +1586,103 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		return lastActivityCell;
 	}
 
-	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, List<ClientRequest> requests, int[] columns, String[] priorityClasses, boolean advancedModeEnabled, boolean isUpload, ObjectContainer container) {
+	/** The sorting, filtering and paging parameters of the queue page, so
+	 * they can be carried over by the links on the page. */
+	private static class QueueView {
+		
+		final HTTPRequest request;
+		final String sortBy;
+		final boolean reversed;
+		final String filter;
+		
+		QueueView(HTTPRequest request, String sortBy, boolean reversed, String filter) {
+			this.request = request;
+			this.sortBy = sortBy;
+			this.reversed = reversed;
+			this.filter = filter;
+		}
+		
+		/** The page of a table to show, counting from zero. */
+		int getPage(String table) {
+			return Math.max(0, request.getIntParam(table + "Page", 0));
+		}
+		
+		/** A link to the queue page sorted by the given column. Sorting by the
+		 * column it is already sorted by reverses the order. */
+		String sortLink(String column) {
+			StringBuilder sb = new StringBuilder("?sortBy=").append(column);
+			if(!(column.equals(sortBy) && reversed))
+				sb.append("&reversed");
+			appendFilter(sb);
+			return sb.toString();
+		}
+		
+		/** A link to the given page of a table, keeping the current order and filter. */
+		String pageLink(String table, int page) {
+			StringBuilder sb = new StringBuilder("?");
+			if(sortBy != null)
+				sb.append("sortBy=").append(URLEncoder.encode(sortBy, false)).append('&');
+			if(reversed)
+				sb.append("reversed&");
+			sb.append(table).append("Page=").append(page);
+			appendFilter(sb);
+			sb.append('#').append(table);
+			return sb.toString();
+		}
+		
+		private void appendFilter(StringBuilder sb) {
+			if(filter != null)
+				sb.append("&filter=").append(URLEncoder.encode(filter, false));
+		}
+		
+	}
+	
+	private HTMLNode createFilterBox(PageMaker pageMaker, QueueView view) {
+		InfoboxNode infobox = pageMaker.getInfobox("infobox-normal", l10n("filterTitle"), "queue-filter", true);
+		HTMLNode filterForm = infobox.content.addChild("form", new String[] { "action", "method" }, new String[] { path(), "get" });
+		if(view.sortBy != null)
+			filterForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "sortBy", view.sortBy });
+		if(view.reversed)
+			filterForm.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "reversed", "true" });
+		filterForm.addChild("#", l10n("filterLabel") + ' ');
+		filterForm.addChild("input", new String[] { "type", "name", "size", "value" }, new String[] { "text", "filter", "40", view.filter == null ? "" : view.filter });
+		filterForm.addChild("#", " ");
+		filterForm.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("filterSubmit") });
+		if(view.filter != null) {
+			filterForm.addChild("#", " ");
+			filterForm.addChild("a", "href", view.sortBy == null ? path() : view.sortLink(view.sortBy) , l10n("filterClear"));
+		}
+		return infobox.outer;
+	}
+	
+	/** Add one page of a table of requests, with links to the other pages if
+	 * it does not fit on one. */
+	private void addRequestTable(HTMLNode parent, PageMaker pageMaker, ToadletContext ctx, QueueView view, String table, List<? extends RequestStatus> requests, int[] columns, String[] priorityClasses, boolean advancedModeEnabled, boolean isUpload) {
+		int pages = (requests.size() + REQUESTS_PER_PAGE - 1) / REQUESTS_PER_PAGE;
+		int page = Math.min(view.getPage(table), pages - 1);
+		int start = page * REQUESTS_PER_PAGE;
+		int end = Math.min(start + REQUESTS_PER_PAGE, requests.size());
+		if(pages > 1)
+			parent.addChild(createPageLinks(view, table, page, pages));
+		parent.addChild(createRequestTable(pageMaker, ctx, view, requests.subList(start, end), columns, priorityClasses, advancedModeEnabled, isUpload));
+		if(pages > 1)
+			parent.addChild(createPageLinks(view, table, page, pages));
+	}
+	
+	private HTMLNode createPageLinks(QueueView view, String table, int page, int pages) {
+		HTMLNode pageLinks = new HTMLNode("div", "class", "queue-pages");
+		if(page > 0)
+			pageLinks.addChild("a", "href", view.pageLink(table, page - 1), l10n("previousPage"));
+		pageLinks.addChild("#", " " + NodeL10n.getBase().getString("QueueToadlet.pageOf", new String[] { "page", "pages" }, new String[] { String.valueOf(page + 1), String.valueOf(pages) }) + " ");
+		if(page < pages - 1)
+			pageLinks.addChild("a", "href", view.pageLink(table, page + 1), l10n("nextPage"));
+		return pageLinks;
+	}
+
+	private HTMLNode createRequestTable(PageMaker pageMaker, ToadletContext ctx, QueueView view, List<? extends RequestStatus> requests, int[] columns, String[] priorityClasses, boolean advancedModeEnabled, boolean isUpload) {
 		boolean hasFriends = core.node.getDarknetConnections().length > 0;
+		boolean pushProgress = ctx.getContainer().isFProxyWebPushingEnabled();
+		RequestStatusCache statusCache = fcp.getGlobalRequestStatusCache();
 		long now = System.currentTimeMillis();
 		HTMLNode table = new HTMLNode("table", "class", "requests");
 		HTMLNode headerRow = table.addChild("tr", "class", "table-header");
@@ -1562,9 +1691,9 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		for (int columnIndex = 0, columnCount = columns.length; columnIndex < columnCount; columnIndex++) {
 			int column = columns[columnIndex];
 			if (column == LIST_IDENTIFIER) {
-				headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=id" : "?sortBy=id&reversed")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.identifier"));
+				headerRow.addChild("th").addChild("a", "href", view.sortLink("id")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.identifier"));
 			} else if (column == LIST_SIZE) {
-				headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=size" : "?sortBy=size&reversed")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.size"));
+				headerRow.addChild("th").addChild("a", "href", view.sortLink("size")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.size"));
 			} else if (column == LIST_DOWNLOAD) {
 				headerRow.addChild("th", NodeL10n.getBase().getString("QueueToadlet.download"));
 			} else if (column == LIST_MIME_TYPE) {
@@ -1576,88 +1705,76 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			} else if (column == LIST_FILENAME) {
 				headerRow.addChild("th", NodeL10n.getBase().getString("QueueToadlet.fileName"));
 			} else if (column == LIST_PRIORITY) {
-				headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=priority" : "?sortBy=priority&reversed")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.priority"));
+				headerRow.addChild("th").addChild("a", "href", view.sortLink("priority")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.priority"));
 			} else if (column == LIST_FILES) {
 				headerRow.addChild("th", NodeL10n.getBase().getString("QueueToadlet.files"));
 			} else if (column == LIST_TOTAL_SIZE) {
 				headerRow.addChild("th", NodeL10n.getBase().getString("QueueToadlet.totalSize"));
 			} else if (column == LIST_PROGRESS) {
-				headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=progress" : "?sortBy=progress&reversed")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.progress"));
+				headerRow.addChild("th").addChild("a", "href", view.sortLink("progress")).addChild("#", NodeL10n.getBase().getString("QueueToadlet.progress"));
 			} else if (column == LIST_REASON) {
 				headerRow.addChild("th", NodeL10n.getBase().getString("QueueToadlet.reason"));
 			} else if (column == LIST_RECOMMEND && hasFriends) {
 				headerRow.addChild("th");
 			} else if (column == LIST_LAST_ACTIVITY) {
-				headerRow.addChild("th").addChild("a", "href", (isReversed ? "?sortBy=lastActivity" : "?sortBy=lastActivity&reversed"),  NodeL10n.getBase().getString("QueueToadlet.lastActivity"));
+				headerRow.addChild("th").addChild("a", "href", view.sortLink("lastActivity"),  NodeL10n.getBase().getString("QueueToadlet.lastActivity"));
 			}
 		}
-		for (ClientRequest clientRequest : requests) {
-			container.activate(clientRequest, 1);
-			HTMLNode requestRow = table.addChild("tr", "class", "priority" + clientRequest.getPriority());
+		for (RequestStatus status : requests) {
+			HTMLNode requestRow = table.addChild("tr", "class", "priority" + status.getPriority());
 
-			requestRow.addChild(createDeleteCell(pageMaker, clientRequest.getIdentifier(), clientRequest, ctx, container));
+			requestRow.addChild(createDeleteCell(pageMaker, status.getIdentifier(), status, ctx));
 
 			for (int columnIndex = 0, columnCount = columns.length; columnIndex < columnCount; columnIndex++) {
 				int column = columns[columnIndex];
 				if (column == LIST_IDENTIFIER) {
-					if (clientRequest instanceof ClientGet) {
-						requestRow.addChild(createIdentifierCell(((ClientGet) clientRequest).getURI(container), clientRequest.getIdentifier(), false));
-					} else if (clientRequest instanceof ClientPutDir) {
-						requestRow.addChild(createIdentifierCell(((ClientPutDir) clientRequest).getFinalURI(container), clientRequest.getIdentifier(), true));
-					} else if (clientRequest instanceof ClientPut) {
-						requestRow.addChild(createIdentifierCell(((ClientPut) clientRequest).getFinalURI(container), clientRequest.getIdentifier(), false));
-					}
+					requestRow.addChild(createIdentifierCell(status.getURI(), status.getIdentifier(), status instanceof UploadDirRequestStatus));
 				} else if (column == LIST_SIZE) {
-					if (clientRequest instanceof ClientGet) {
-						requestRow.addChild(createSizeCell(((ClientGet) clientRequest).getDataSize(container), ((ClientGet) clientRequest).isTotalFinalized(container), advancedModeEnabled));
-					} else if (clientRequest instanceof ClientPut) {
-						requestRow.addChild(createSizeCell(((ClientPut) clientRequest).getDataSize(container), true, advancedModeEnabled));
+					if (status instanceof DownloadRequestStatus) {
+						requestRow.addChild(createSizeCell(status.getDataSize(), status.isTotalFinalized(), advancedModeEnabled));
+					} else if (status instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createSizeCell(status.getDataSize(), true, advancedModeEnabled));
 					}
 				} else if (column == LIST_DOWNLOAD) {
-					requestRow.addChild(createDownloadCell(pageMaker, (ClientGet) clientRequest, container));
+					requestRow.addChild(createDownloadCell(pageMaker, (DownloadRequestStatus) status));
 				} else if (column == LIST_MIME_TYPE) {
-					if (clientRequest instanceof ClientGet) {
-						requestRow.addChild(createTypeCell(((ClientGet) clientRequest).getMIMEType(container)));
-					} else if (clientRequest instanceof ClientPut) {
-						requestRow.addChild(createTypeCell(((ClientPut) clientRequest).getMIMEType()));
+					if (status instanceof DownloadRequestStatus) {
+						requestRow.addChild(createTypeCell(((DownloadRequestStatus) status).getMIMEType()));
+					} else if (status instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createTypeCell(((UploadFileRequestStatus) status).getMIMEType()));
 					}
 				} else if (column == LIST_PERSISTENCE) {
-					requestRow.addChild(createPersistenceCell(clientRequest.isPersistent(), clientRequest.isPersistentForever()));
+					// Everything on the global queue is persistent.
+					requestRow.addChild(createPersistenceCell(true, status.isPersistentForever()));
 				} else if (column == LIST_KEY) {
-					if (clientRequest instanceof ClientGet) {
-						requestRow.addChild(createKeyCell(((ClientGet) clientRequest).getURI(container), false));
-					} else if (clientRequest instanceof ClientPut) {
-						requestRow.addChild(createKeyCell(((ClientPut) clientRequest).getFinalURI(container), false));
-					}else {
-						requestRow.addChild(createKeyCell(((ClientPutDir) clientRequest).getFinalURI(container), true));
-					}
+					requestRow.addChild(createKeyCell(status.getURI(), status instanceof UploadDirRequestStatus));
 				} else if (column == LIST_FILENAME) {
-					if (clientRequest instanceof ClientGet) {
-						requestRow.addChild(createFilenameCell(((ClientGet) clientRequest).getDestFilename(container)));
-					} else if (clientRequest instanceof ClientPut) {
-						requestRow.addChild(createFilenameCell(((ClientPut) clientRequest).getOrigFilename(container)));
+					if (status instanceof DownloadRequestStatus) {
+						requestRow.addChild(createFilenameCell(((DownloadRequestStatus) status).getDestFilename()));
+					} else if (status instanceof UploadFileRequestStatus) {
+						requestRow.addChild(createFilenameCell(((UploadFileRequestStatus) status).getOrigFilename()));
 					}
 				} else if (column == LIST_PRIORITY) {
-					requestRow.addChild(createPriorityCell(pageMaker, clientRequest.getIdentifier(), clientRequest.getPriority(), ctx, priorityClasses, advancedModeEnabled));
+					requestRow.addChild(createPriorityCell(pageMaker, status.getIdentifier(), status.getPriority(), ctx, priorityClasses, advancedModeEnabled));
 				} else if (column == LIST_FILES) {
-					requestRow.addChild(createNumberCell(((ClientPutDir) clientRequest).getNumberOfFiles()));
+					requestRow.addChild(createNumberCell(((UploadDirRequestStatus) status).getNumberOfFiles()));
 				} else if (column == LIST_TOTAL_SIZE) {
-					requestRow.addChild(createSizeCell(((ClientPutDir) clientRequest).getTotalDataSize(), true, advancedModeEnabled));
+					requestRow.addChild(createSizeCell(((UploadDirRequestStatus) status).getTotalDataSize(), true, advancedModeEnabled));
 				} else if (column == LIST_PROGRESS) {
-					if(clientRequest instanceof ClientPut)
-						requestRow.addChild(createProgressCell(clientRequest.isStarted(), ((ClientPut)clientRequest).isCompressing(container), (int) clientRequest.getFetchedBlocks(container), (int) clientRequest.getFailedBlocks(container), (int) clientRequest.getFatalyFailedBlocks(container), (int) clientRequest.getMinBlocks(container), (int) clientRequest.getTotalBlocks(container), clientRequest.isTotalFinalized(container) || clientRequest instanceof ClientPut, isUpload));
-					else
-						requestRow.addChild(createProgressCell(clientRequest.isStarted(), COMPRESS_STATE.WORKING, (int) clientRequest.getFetchedBlocks(container), (int) clientRequest.getFailedBlocks(container), (int) clientRequest.getFatalyFailedBlocks(container), (int) clientRequest.getMinBlocks(container), (int) clientRequest.getTotalBlocks(container), clientRequest.isTotalFinalized(container) || clientRequest instanceof ClientPut, isUpload));
+					if(pushProgress)
+						requestRow.addChild(new RequestProgressElement(statusCache, status.getIdentifier(), advancedModeEnabled, isUpload, ctx, true));
+					else {
+						COMPRESS_STATE compressing = COMPRESS_STATE.WORKING;
+						if(status instanceof UploadFileRequestStatus)
+							compressing = ((UploadFileRequestStatus) status).isCompressing();
+						requestRow.addChild(createProgressCell(status.isStarted(), compressing, status.getFetchedBlocks(), status.getFailedBlocks(), status.getFatallyFailedBlocks(), status.getMinBlocks(), status.getTotalBlocks(), status.isTotalFinalized() || status instanceof UploadFileRequestStatus, isUpload));
+					}
 				} else if (column == LIST_REASON) {
-					requestRow.addChild(createReasonCell(clientRequest.getFailureReason(container)));
+					requestRow.addChild(createReasonCell(status.getFailureReason()));
 				} else if (column == LIST_RECOMMEND && hasFriends) {
-					if(clientRequest instanceof ClientGet) {
-						requestRow.addChild(createRecommendCell(pageMaker, ((ClientGet) clientRequest).getURI(container), ctx));
-					} else {
-						requestRow.addChild(createRecommendCell(pageMaker, ((ClientPut) clientRequest).getFinalURI(container), ctx));
-					}
+					requestRow.addChild(createRecommendCell(pageMaker, status.getURI(), ctx));
 				} else if (column == LIST_LAST_ACTIVITY) {
-					requestRow.addChild(createLastActivityCell(now, clientRequest.getLastActivity()));
+					requestRow.addChild(createLastActivityCell(now, status.getLastActivity()));
 				}
 			}
 		}
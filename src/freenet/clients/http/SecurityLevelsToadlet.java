@@ -203,7 +203,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 								addBackToSeclevelsLink(content);
 
-								writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+								writeHTMLReply(ctx, 200, "OK", pageNode);
 								if(changedAnything)
 									core.storeConfig();
 								return;
@@ -261,7 +261,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 								addBackToSeclevelsLink(content);
 
-								writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+								writeHTMLReply(ctx, 200, "OK", pageNode);
 								if(changedAnything)
 									core.storeConfig();
 								return;
@@ -294,7 +294,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 							addBackToSeclevelsLink(content);
 
-							writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+							writeHTMLReply(ctx, 200, "OK", pageNode);
 							if(changedAnything)
 								core.storeConfig();
 							return;
@@ -322,7 +322,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 				formNode.addChild("input", new String[] { "type", "name", "value" }, new String[] { "hidden", "seclevels", "on" });
 				formNode.addChild("input", new String[] { "type", "value" }, new String[] { "submit", l10n("apply")});
 				formNode.addChild("input", new String[] { "type", "value" }, new String[] { "reset",  l10n("reset")});
-				writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+				writeHTMLReply(ctx, 200, "OK", pageNode);
 				return;
 			} else {
 				MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
@@ -383,7 +383,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 	private void sendCantDeleteMasterKeysFile(ToadletContext ctx, String physicalSecurityLevel) throws ToadletContextClosedException, IOException {
 		HTMLNode pageNode = sendCantDeleteMasterKeysFileInner(ctx, node.getMasterPasswordFile().getPath(), false, physicalSecurityLevel, this.node);
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	static HTMLNode sendCantDeleteMasterKeysFileInner(ToadletContext ctx, String filename, boolean forFirstTimeWizard, String physicalSecurityLevel, Node node) {
@@ -439,7 +439,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 		}
 		addBackToSeclevelsLink(content);
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 
 	}
 
@@ -462,7 +462,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 		addBackToSeclevelsLink(content);
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private static void addBackToSeclevelsLink(HTMLNode content) {
@@ -484,7 +484,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 		drawSecurityLevelsPage(contentNode, ctx);
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawSecurityLevelsPage(HTMLNode contentNode, ToadletContext ctx) {
@@ -629,7 +629,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 	void sendPasswordFileCorruptedPage(boolean tooBig, ToadletContext ctx, boolean forSecLevels, boolean forFirstTimeWizard) throws ToadletContextClosedException, IOException {
 		HTMLNode page = sendPasswordFileCorruptedPageInner(tooBig, ctx, forSecLevels, forFirstTimeWizard, node.getMasterPasswordFile().getPath(), node);
-		writeHTMLReply(ctx, 500, "Internal Server Error", page.generate());
+		writeHTMLReply(ctx, 500, "Internal Server Error", page);
 	}
 
 	/** Send a page asking what to do when the master password file has been corrupted.
@@ -674,7 +674,7 @@ public class SecurityLevelsToadlet extends Toadlet {
 
 		addHomepageLink(content);
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	public static void generatePasswordFormPage(boolean wasWrong, ToadletContainer ctx, HTMLNode content, boolean forFirstTimeWizard, boolean forDowngrade, boolean forUpgrade, String physicalSecurityLevel, String redirect) {
@@ -94,6 +94,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 	private boolean enableInlinePrefetch;
 	private boolean enableActivelinks;
 	private boolean enableExtendedMethodHandling;
+	/** Maximum number of requests handled at once, on connections which go
+	 * through the selector */
+	private int maxWorkerThreads;
+	/** Parks idle and long polling connections, null if SSL */
+	private HTTPSelector httpSelector;
 	
 	// Something does not really belongs to here
 	volatile static boolean isPanicButtonToBeShown;				// move to QueueToadlet ?
@@ -258,10 +263,14 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 				} else {
 					myThread.interrupt();
 					myThread = null;
-					return;
 				}
 			}
+			if(!val) {
+				stopSelector();
+				return;
+			}
 			createFproxy();
+			startSelector();
 			myThread.setDaemon(true);
 			myThread.start();
 		}
@@ -498,6 +507,30 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		});
 		enablePersistentConnections = fproxyConfig.getBoolean("enablePersistentConnections");
 		
+		fproxyConfig.register("maxWorkerThreads", 50, configItemOrder++, true, false, "SimpleToadletServer.maxWorkerThreads", "SimpleToadletServer.maxWorkerThreadsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						synchronized(SimpleToadletServer.this) {
+							return maxWorkerThreads;
+						}
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException {
+						if(val <= 0)
+							throw new InvalidConfigValueException(l10n("maxWorkerThreadsMustBePositive"));
+						HTTPSelector selector;
+						synchronized(SimpleToadletServer.this) {
+							maxWorkerThreads = val;
+							selector = httpSelector;
+						}
+						if(selector != null) selector.setMaxWorkers(val);
+					}
+		}, false);
+		maxWorkerThreads = fproxyConfig.getInt("maxWorkerThreads");
+		
 		// Off by default.
 		// I had hoped it would yield a significant performance boost to bootstrap performance
 		// on browsers with low numbers of simultaneous connections. Unfortunately the bottleneck
@@ -633,10 +666,45 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
-			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true, true);
 		}
 	}		
 
+	/** Start the selector, creating it if it has been stopped. Not used for SSL. */
+	private void startSelector() {
+		if(ssl) return;
+		HTTPSelector selector;
+		synchronized(this) {
+			if(httpSelector == null) {
+				try {
+					httpSelector = new HTTPSelector(this, pageMaker, executor, maxWorkerThreads);
+				} catch (IOException e) {
+					// Connections will have a thread each instead.
+					Logger.error(this, "Could not create HTTP selector: "+e, e);
+					return;
+				}
+			}
+			selector = httpSelector;
+		}
+		selector.start();
+	}
+
+	/** Stop the selector, closing any connections parked on it, when FProxy is
+	 * disabled or the node shuts down. */
+	private void stopSelector() {
+		HTTPSelector selector;
+		synchronized(this) {
+			selector = httpSelector;
+			httpSelector = null;
+		}
+		if(selector != null) selector.stop();
+	}
+
+	/** @return The selector, or null if SSL or not running. */
+	synchronized HTTPSelector getHTTPSelector() {
+		return httpSelector;
+	}
+
 	public boolean doRobots() {
 		return doRobots;
 	}
@@ -648,6 +716,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 	public void start() {
 		if(myThread != null) try {
 			maybeGetNetworkInterface();
+			startSelector();
 			myThread.start();
 			Logger.normal(this, "Starting FProxy on "+bindTo+ ':' +port);
 			System.out.println("Starting FProxy on "+bindTo+ ':' +port);
@@ -762,12 +831,20 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable {
 				if(myThread == null) return;
 			}
 			Socket conn = networkInterface.accept();
-			if (WrapperManager.hasShutdownHookBeenTriggered())
+			if (WrapperManager.hasShutdownHookBeenTriggered()) {
+				stopSelector();
 				return;
+			}
             if(conn == null)
                 continue; // timeout
             if(Logger.shouldLog(Logger.MINOR, this))
                 Logger.minor(this, "Accepted connection");
+            HTTPSelector selector = getHTTPSelector();
+            if(selector != null && conn.getChannel() != null) {
+                // Wait for the request without a thread.
+                selector.park(conn);
+                continue;
+            }
             SocketHandler sh = new SocketHandler(conn);
             sh.start();
 		}
@@ -46,7 +46,7 @@ public class StartupToadlet extends Toadlet {
 			WelcomeToadlet.maybeDisplayWrapperLogfile(ctx, contentNode);
 
 			//TODO: send a Retry-After header ?
-			writeHTMLReply(ctx, 503, desc, pageNode.generate());
+			writeHTMLReply(ctx, 503, desc, pageNode);
 		}
 	}
 
@@ -12,6 +12,8 @@ import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.HighLevelSimpleClient;
+import freenet.client.async.ClientRequestScheduler;
+import freenet.client.async.PersistentCooldownQueue;
 import freenet.config.SubConfig;
 import freenet.l10n.NodeL10n;
 import freenet.node.Location;
@@ -308,6 +310,11 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode databaseJobsInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawDatabaseJobsBox(databaseJobsInfobox);
 
+			// web interface box
+			HTTPSelector httpSelector = core.getToadletContainer().getHTTPSelector();
+			if(httpSelector != null)
+				drawWebInterfaceBox(nextTableCell.addChild("div", "class", "infobox"), httpSelector);
+
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
 				// opennet stats box
@@ -360,7 +367,7 @@ public class StatisticsToadlet extends Toadlet {
 			}
 		}
 
-		this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		this.writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	private void drawRejectReasonsBox(HTMLNode nextTableCell, boolean local) {
@@ -490,6 +497,18 @@ public class StatisticsToadlet extends Toadlet {
 		stats.getDatabaseJobQueueStatistics().toTableRows(jobQueueStatistics);
 	}
 
+	private void drawWebInterfaceBox(HTMLNode node, HTTPSelector selector) {
+		node.addChild("div", "class", "infobox-header", l10n("webInterfaceTitle"));
+		HTMLNode webList = node.addChild("div", "class", "infobox-content").addChild("ul");
+		webList.addChild("li", l10n("webRunningRequests", new String[] { "running", "max" },
+				new String[] { Integer.toString(selector.getRunningWorkers()), Integer.toString(selector.getMaxWorkers()) }));
+		webList.addChild("li", l10n("webQueuedRequests", "count", Integer.toString(selector.getQueuedRequests())));
+		// Long polls are parked connections too.
+		int polls = selector.countParkedPolls();
+		webList.addChild("li", l10n("webParkedConnections", "count", Integer.toString(Math.max(0, selector.countParkedConnections() - polls))));
+		webList.addChild("li", l10n("webParkedPolls", "count", Integer.toString(polls)));
+	}
+
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
 		box.addChild("div", "class", "infobox-header", l10n("opennetStats"));
 		HTMLNode opennetStatsContent = box.addChild("div", "class", "infobox-content");
@@ -520,6 +539,9 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("accessRate"));
 		row.addChild("th", l10n("writeRate"));
 		row.addChild("th", l10n("falsePos"));
+		row.addChild("th", l10n("locksAcquired"));
+		row.addChild("th", l10n("locksContended"));
+		row.addChild("th", l10n("lockWaitTime"));
 		row.addChild("th", l10n("avgLocation"));
 		row.addChild("th", l10n("avgSuccessLoc"));
 		row.addChild("th", l10n("furthestSuccess"));
@@ -549,6 +571,21 @@ public class StatisticsToadlet extends Toadlet {
 			row.addChild("td", fix1p2.format(stats.accessRate(nodeUptimeSeconds)) + " /s");
 			row.addChild("td", fix1p2.format(stats.writeRate(nodeUptimeSeconds)) + " /s");
 			row.addChild("td", thousandPoint.format(stats.falsePos()));
+			try {
+				row.addChild("td", thousandPoint.format(stats.locksAcquired()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", thousandPoint.format(stats.locksContended()));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
+			try {
+				row.addChild("td", TimeUtil.formatTime(stats.lockWaitTime(), 2, true));
+			} catch (StatsNotAvailableException e) {
+				row.addChild("td", "N/A");
+			}
 			try {
 				row.addChild("td", fix1p4.format(stats.avgLocation()));
 			} catch (StatsNotAvailableException e) {
@@ -807,10 +844,22 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			activityList.addChild("li", "USKProbesPerEditionFound:\u00a0" + fix1p2.format(node.clientCore.uskManager.getProbesPerEditionFound()));
+			activityList.addChild("li", "USKSharedProbes:\u00a0" + node.clientCore.uskManager.getSharedProbes());
+			addCooldownWakeups(activityList, "CHK", node.clientCore.requestStarters.chkFetchScheduler);
+			addCooldownWakeups(activityList, "SSK", node.clientCore.requestStarters.sskFetchScheduler);
 		}
-		
+
 	}
-	
+
+	/** How many keys the persistent cooldown queue wakes up at a time. */
+	private void addCooldownWakeups(HTMLNode activityList, String type, ClientRequestScheduler sched) {
+		PersistentCooldownQueue queue = sched.getPersistentCooldownQueue();
+		if(queue == null) return;
+		activityList.addChild("li", "PersistentCooldownWakeups" + type + ": " + queue.getWakeups() +
+				" (average " + fix1p2.format(queue.getAverageWakeupSize()) + ", largest " + queue.getLargestWakeup() + ')');
+	}
+
 	static void drawBandwidth(HTMLNode activityList, Node node, long nodeUptimeSeconds, boolean isAdvancedModeEnabled) {
 		long[] total = node.collector.getTotalIO();
 		if(total[0] == 0 || total[1] == 0)
@@ -4,6 +4,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
@@ -80,10 +81,7 @@ public abstract class Toadlet {
 		MultiValueTable<String, String> hdrtbl = new MultiValueTable<String, String>();
 		hdrtbl.put("Allow", findSupportedMethods());
 
-		StringBuilder pageBuffer = new StringBuilder();
-		pageNode.generate(pageBuffer);
-		toadletContext.sendReplyHeaders(405, "Operation not Supported", hdrtbl, "text/html; charset=utf-8", pageBuffer.length());
-		toadletContext.writeData(pageBuffer.toString().getBytes("UTF-8"));
+		writeHTMLReply(toadletContext, 405, "Operation not Supported", hdrtbl, pageNode);
 	}
 	
 	private static String l10n(String key, String pattern, String value) {
@@ -204,6 +202,20 @@ public abstract class Toadlet {
 		writeReply(ctx, code, "text/plain; charset=utf-8", desc, headers, reply);
 	}
 	
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		writeHTMLReply(ctx, code, desc, null, pageNode);
+	}
+	
+	/**
+	 * Write a page straight to the socket as it is serialised, rather than
+	 * building it as a String and then a byte[] first.
+	 */
+	protected void writeHTMLReply(ToadletContext ctx, int code, String desc, MultiValueTable<String, String> headers, HTMLNode pageNode) throws ToadletContextClosedException, IOException {
+		OutputStream os = ctx.sendChunkedReplyHeaders(code, desc, headers, "text/html; charset=utf-8");
+		pageNode.generate(os);
+		os.close();
+	}
+	
 	protected void writeReply(ToadletContext context, int code, String mimeType, String desc, MultiValueTable<String, String> headers, String reply) throws ToadletContextClosedException, IOException {
 		byte[] buffer = reply.getBytes("UTF-8");
 		writeReply(context, code, mimeType, desc, headers, buffer, 0, buffer.length);
@@ -275,7 +287,7 @@ public abstract class Toadlet {
 		infoboxContent.addChild("br");
 		addHomepageLink(infoboxContent);
 		
-		writeHTMLReply(ctx, code, desc, pageNode.generate());
+		writeHTMLReply(ctx, code, desc, pageNode);
 	}
 
 	/**
@@ -306,7 +318,7 @@ public abstract class Toadlet {
 		infoboxContent.addChild("a", "href", ".", l10n("returnToPrevPage"));
 		addHomepageLink(infoboxContent);
 		
-		writeHTMLReply(ctx, 500, desc, pageNode.generate());
+		writeHTMLReply(ctx, 500, desc, pageNode);
 	}
 
 	protected void writeInternalError(Throwable t, ToadletContext ctx) throws ToadletContextClosedException, IOException {
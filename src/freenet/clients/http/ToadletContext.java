@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
 import java.text.ParseException;
 import java.util.Date;
@@ -29,6 +30,15 @@ public interface ToadletContext {
 	
 	void sendReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write reply headers for a reply whose length is not known in advance, and
+	 * return the stream to write the body to. The body is sent with chunked
+	 * transfer encoding, or for an HTTP/1.0 client, terminated by closing the
+	 * connection. The returned stream must be closed to finish the reply; this
+	 * does not close the connection.
+	 */
+	OutputStream sendChunkedReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -58,6 +68,14 @@ public interface ToadletContext {
 	 */
 	void writeData(Bucket data) throws ToadletContextClosedException, IOException;
 	
+	/**
+	 * Write part of a bucket, without copying it if possible, e.g. for a
+	 * range request. You must send reply headers first.
+	 * @param offset The first byte to write.
+	 * @param length The number of bytes to write.
+	 */
+	void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException;
+	
 	/**
 	 * Get the page maker object.
 	 */
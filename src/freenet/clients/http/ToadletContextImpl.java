@@ -1,10 +1,16 @@
 package freenet.clients.http;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.SequenceInputStream;
 import java.io.StringWriter;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -12,6 +18,8 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -20,6 +28,7 @@ import java.util.Enumeration;
 import java.util.Locale;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
 
 import freenet.clients.http.annotation.AllowData;
 import freenet.l10n.NodeL10n;
@@ -58,6 +67,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** The socket's channel, if it has one, for writing files without copying them */
+	private final SocketChannel sockChannel;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -75,6 +86,21 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** HTTP/1.0 clients don't understand chunked transfer encoding. */
+	private boolean isHTTP10;
+	/** Did the client say it accepts gzip content encoding? */
+	private final boolean acceptsGzip;
+	/** Don't buffer larger replies in order to compress them. */
+	private static final int MAX_GZIP_BUFFER = 1024*1024;
+	/** A reply we are going to compress: the headers are held back, and the
+	 * data collected here, until all contentLength bytes have been written. */
+	private byte[] gzipBuffer;
+	private int gzipBufferCount;
+	private int pendingReplyCode;
+	private String pendingReplyDescription;
+	private MultiValueTable<String,String> pendingHeaders;
+	private String pendingMimeType;
+	private Date pendingMTime;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container,URI uri) throws IOException {
 		this.headers = headers;
@@ -83,12 +109,14 @@ public class ToadletContextImpl implements ToadletContext {
 		this.closed = false;
 		this.uri=uri;
 		sockOutputStream = sock.getOutputStream();
+		sockChannel = sock.getChannel();
 		remoteAddr = sock.getInetAddress();
 		if(Logger.shouldLog(Logger.DEBUG, this))
 			Logger.debug(this, "Connection from "+remoteAddr);
 		this.bf = bf;
 		this.pagemaker = pageMaker;
 		this.container = container;
+		this.acceptsGzip = acceptsGzip(headers.get("accept-encoding"));
 		//Generate an unique id
 		uniqueId=String.valueOf(new Random().nextLong());
 	}
@@ -181,9 +209,175 @@ public class ToadletContextImpl implements ToadletContext {
 			}
 		}
 		
+		if(shouldGzip(replyCode, mvt, mimeType) && contentLength > 0 && contentLength <= MAX_GZIP_BUFFER) {
+			gzipBuffer = new byte[(int) contentLength];
+			gzipBufferCount = 0;
+			pendingReplyCode = replyCode;
+			pendingReplyDescription = replyDescription;
+			pendingHeaders = mvt;
+			pendingMimeType = mimeType;
+			pendingMTime = mTime;
+			return;
+		}
+		
 		sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, contentLength, mTime, shouldDisconnect);
 	}
 	
+	private static boolean acceptsGzip(String acceptEncoding) {
+		if(acceptEncoding == null) return false;
+		for(String encoding : acceptEncoding.toLowerCase().split(",")) {
+			String[] params = encoding.split(";");
+			if(!params[0].trim().equals("gzip")) continue;
+			for(int i=1;i<params.length;i++) {
+				String param = params[i].trim();
+				if(param.startsWith("q=")) {
+					try {
+						if(Float.parseFloat(param.substring(2)) == 0.0f) return false;
+					} catch (NumberFormatException e) {
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	/** Should a reply with these headers be compressed? Only ordinary replies of
+	 * text types, which the toadlet hasn't already encoded itself. Not if the
+	 * request asked for a range: ranges and If-Range refer to the identity
+	 * encoding. */
+	private boolean shouldGzip(int replyCode, MultiValueTable<String,String> mvt, String mimeType) {
+		if(!acceptsGzip || replyCode != 200 || mimeType == null) return false;
+		if(headers.containsKey("range") || headers.containsKey("if-range")) return false;
+		if(mvt != null && (mvt.containsKey("content-encoding") || mvt.containsKey("Content-Encoding") ||
+				mvt.containsKey("content-range") || mvt.containsKey("Content-Range")))
+			return false;
+		String type = mimeType.toLowerCase();
+		return type.startsWith("text/") || type.contains("javascript") || type.contains("xml") || type.contains("json");
+	}
+	
+	/**
+	 * The ETag of the gzip encoded form of an entity. A strong ETag identifies
+	 * the exact bytes, so the compressed reply must not reuse the identity one.
+	 */
+	static String gzipETag(String etag) {
+		if(etag.endsWith("\""))
+			return etag.substring(0, etag.length() - 1) + "-gzip\"";
+		return etag + "-gzip";
+	}
+	
+	/** Mark the headers of a reply as gzip encoded. */
+	private static void setGzipHeaders(MultiValueTable<String,String> mvt) {
+		for(String name : new String[] { "ETag", "etag" }) {
+			String etag = mvt.get(name);
+			if(etag == null) continue;
+			mvt.remove(name);
+			mvt.put(name, gzipETag(etag));
+		}
+		mvt.put("content-encoding", "gzip");
+		mvt.put("vary", "Accept-Encoding");
+	}
+	
+	/**
+	 * Send a reply which was held back to be compressed.
+	 * @param compress If false, send it as it is, e.g. because the toadlet
+	 * didn't write the amount of data it said it would.
+	 */
+	private void sendPendingReply(boolean compress) throws IOException {
+		byte[] buf = gzipBuffer;
+		int count = gzipBufferCount;
+		gzipBuffer = null;
+		MultiValueTable<String,String> mvt = pendingHeaders;
+		pendingHeaders = null;
+		if(compress) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(count / 2);
+			GZIPOutputStream gos = new GZIPOutputStream(baos);
+			gos.write(buf, 0, count);
+			gos.close();
+			if(baos.size() < count) {
+				if(mvt == null) mvt = new MultiValueTable<String,String>();
+				setGzipHeaders(mvt);
+				sendReplyHeaders(sockOutputStream, pendingReplyCode, pendingReplyDescription, mvt, pendingMimeType, baos.size(), pendingMTime, shouldDisconnect);
+				baos.writeTo(sockOutputStream);
+				return;
+			}
+		}
+		sendReplyHeaders(sockOutputStream, pendingReplyCode, pendingReplyDescription, mvt, pendingMimeType, buf.length, pendingMTime, shouldDisconnect);
+		sockOutputStream.write(buf, 0, count);
+	}
+	
+	/** Called once the toadlet has returned. */
+	private void finishReply() throws IOException {
+		if(gzipBuffer != null) sendPendingReply(false);
+	}
+	
+	public OutputStream sendChunkedReplyHeaders(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType) throws ToadletContextClosedException, IOException {
+		if(isHTTP10) {
+			// No chunked encoding, so mark the end of the data by closing the connection.
+			forceDisconnect();
+			sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1);
+			return new ReplyOutputStream(false);
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		boolean gzip = shouldGzip(replyCode, mvt, mimeType);
+		mvt.put("transfer-encoding", "chunked");
+		if(gzip)
+			setGzipHeaders(mvt);
+		sendReplyHeaders(replyCode, replyDescription, mvt, mimeType, -1);
+		if(gzip)
+			// The deflater writes in small pieces, so buffer to keep the chunks a reasonable size.
+			return new GZIPOutputStream(new BufferedOutputStream(new ReplyOutputStream(true), 16384), 8192);
+		return new ReplyOutputStream(true);
+	}
+	
+	/** The body of a reply sent with sendChunkedReplyHeaders(). Every write is
+	 * sent as a single chunk, so callers should buffer. */
+	private class ReplyOutputStream extends OutputStream {
+		
+		private final boolean chunked;
+		private boolean finished;
+		
+		ReplyOutputStream(boolean chunked) {
+			this.chunked = chunked;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(finished || closed) throw new IOException("Reply already finished");
+			if(length == 0) return; // A zero length chunk would end the reply.
+			if(chunked)
+				sockOutputStream.write((Integer.toHexString(length) + "\r\n").getBytes("US-ASCII"));
+			sockOutputStream.write(buf, offset, length);
+			if(chunked)
+				sockOutputStream.write(CRLF);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			sockOutputStream.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(finished) return;
+			finished = true;
+			if(chunked && !closed)
+				sockOutputStream.write(LAST_CHUNK);
+			sockOutputStream.flush();
+		}
+		
+	}
+	
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = new byte[] { '0', '\r', '\n', '\r', '\n' };
+	
 	public PageMaker getPageMaker() {
 		return pagemaker;
 	}
@@ -348,16 +542,48 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker) {
+		handle(sock, null, container, pageMaker, null, null);
+	}
+	
+	/**
+	 * Handle requests on a connection until it is closed, or, if we have a
+	 * selector, until it is idle or waiting for a long poll.
+	 * @param prefetched Bytes already read from the socket, or null.
+	 * @param selector If not null, hand the connection back to the selector
+	 * rather than blocking while waiting for the next request, and park long
+	 * polls until they are ready.
+	 * @param resume If not null, a long poll which was parked and has now been
+	 * woken up. It is handled before any further requests.
+	 */
+	static void handle(Socket sock, byte[] prefetched, ToadletContainer container, PageMaker pageMaker, HTTPSelector selector, ParkedRequest resume) {
+		boolean parked = false;
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
+			InputStream sockIn = sock.getInputStream();
+			if(prefetched != null && prefetched.length > 0)
+				sockIn = new SequenceInputStream(new ByteArrayInputStream(prefetched), sockIn);
+			InputStream is = new BufferedInputStream(sockIn, 4096);
 			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
+			if(resume != null) {
+				if(handleRequest(sock, resume.ctx, resume.uri, resume.method, null, resume.methodIsConfigurable, is, selector)) {
+					parked = true;
+					return;
+				}
+				if(resume.ctx.shouldDisconnect) return;
+			}
+			
 			while(true) {
 				
+				if(selector != null && is.available() == 0) {
+					// Nothing more buffered: wait for the next request without a thread.
+					selector.park(sock);
+					parked = true;
+					return;
+				}
+				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
-					sock.close();
 					return;
 				} else if (firstLine.equals("")) {
 					continue;
@@ -391,7 +617,6 @@ public class ToadletContextImpl implements ToadletContext {
 				while(true) {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
-						sock.close();
 						return;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
@@ -413,6 +638,7 @@ public class ToadletContextImpl implements ToadletContext {
 				
 				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container,uri);
 				ctx.shouldDisconnect = disconnect;
+				ctx.isHTTP10 = split[2].equals("HTTP/1.0");
 				
 				/*
 				 * copy the data into a bucket now,
@@ -481,70 +707,11 @@ public class ToadletContextImpl implements ToadletContext {
 
 				// Handle it.
 				try {
-					boolean redirect = true;
-					while (redirect) {
-						// don't go around the loop unless set explicitly
-						redirect = false;
-						
-						Toadlet t;
-						try {
-							t = container.findToadlet(uri);
-						} catch (PermanentRedirectException e) {
-							Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
-							break;
-						}
-					
-						if(t == null) {
-							ctx.sendNoToadletError(ctx.shouldDisconnect);
-							break;
-						}
-
-						// if the Toadlet does not support the method, we don't need to parse the data
-						// also due this pre check a 'NoSuchMethodException' should never appear
-						if (!(t.findSupportedMethods().contains(method))) {
-							ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
-							break;
-						}
-
-						HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
-						try {
-							String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
-							try {
-								Class<? extends Toadlet> c = t.getClass();
-								Method m = c.getMethod(methodName, HANDLE_PARAMETERS);
-								if (methodIsConfigurable) {
-									AllowData anno = m.getAnnotation(AllowData.class);
-									if (anno == null) {
-										if (data != null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
-											ctx.close();
-											return;
-										}
-									} else if (anno.value()) {
-										if (data == null) {
-											sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
-											ctx.close();
-											return;
-										}
-									}
-								}
-								ctx.setActiveToadlet(t);
-								Object arglist[] = new Object[] {uri, req, ctx};
-								m.invoke(t, arglist);
-							} catch (InvocationTargetException ite) {
-								throw ite.getCause();
-							}
-						} catch (RedirectException re) {
-							uri = re.newuri;
-							redirect = true;
-						} finally {
-							req.freeParts();
-						}
-					}
-					if(ctx.shouldDisconnect) {
-						sock.close();
+					if(handleRequest(sock, ctx, uri, method, data, methodIsConfigurable, is, selector)) {
+						parked = true;
 						return;
 					}
+					if(ctx.shouldDisconnect) return;
 				} finally {
 					if(data != null) data.free();
 				}
@@ -582,9 +749,179 @@ public class ToadletContextImpl implements ToadletContext {
 			} catch (IOException e1) {
 				// ignore and return
 			}
+		} finally {
+			if(!parked) {
+				try {
+					sock.close();
+				} catch (IOException e) {
+					// Ignore
+				}
+			}
 		}
 	}
 	
+	/**
+	 * Find the toadlet for a request and run it, following internal redirects.
+	 * @return True if the request is a long poll which has been parked, in
+	 * which case the connection now belongs to the ParkedRequest.
+	 */
+	private static boolean handleRequest(Socket sock, ToadletContextImpl ctx, URI uri, String method, Bucket data, boolean methodIsConfigurable, InputStream is, HTTPSelector selector) throws Throwable {
+		ToadletContainer container = ctx.container;
+		boolean redirect = true;
+		while (redirect) {
+			// don't go around the loop unless set explicitly
+			redirect = false;
+			
+			Toadlet t;
+			try {
+				t = container.findToadlet(uri);
+			} catch (PermanentRedirectException e) {
+				Toadlet.writePermanentRedirect(ctx, "Found elsewhere", e.newuri.toASCIIString());
+				break;
+			}
+		
+			if(t == null) {
+				ctx.sendNoToadletError(ctx.shouldDisconnect);
+				break;
+			}
+
+			// if the Toadlet does not support the method, we don't need to parse the data
+			// also due this pre check a 'NoSuchMethodException' should never appear
+			if (!(t.findSupportedMethods().contains(method))) {
+				ctx.sendMethodNotAllowed(method, ctx.shouldDisconnect);
+				break;
+			}
+
+			HTTPRequestImpl req = new HTTPRequestImpl(uri, data, ctx, method);
+			try {
+				if(selector != null && data == null && t instanceof LongPollToadlet) {
+					ParkedRequest parked = new ParkedRequest(sock, ctx, uri, method, methodIsConfigurable, selector);
+					if(!((LongPollToadlet) t).isReady(req, ctx, parked)) {
+						// Keep anything the client has pipelined behind the poll.
+						byte[] leftover = new byte[is.available()];
+						int read = 0;
+						while(read < leftover.length)
+							read += is.read(leftover, read, leftover.length - read);
+						parked.arm(leftover);
+						return true;
+					}
+				}
+				String methodName = Toadlet.HANDLE_METHOD_PREFIX + method;
+				try {
+					Class<? extends Toadlet> c = t.getClass();
+					Method m = c.getMethod(methodName, HANDLE_PARAMETERS);
+					if (methodIsConfigurable) {
+						AllowData anno = m.getAnnotation(AllowData.class);
+						if (anno == null) {
+							if (data != null) {
+								sendError(sock.getOutputStream(), 400, "Bad Request", "Content not allowed", true, null);
+								ctx.close();
+								ctx.shouldDisconnect = true;
+								return false;
+							}
+						} else if (anno.value()) {
+							if (data == null) {
+								sendError(sock.getOutputStream(), 400, "Bad Request", "Missing Content", true, null);
+								ctx.close();
+								ctx.shouldDisconnect = true;
+								return false;
+							}
+						}
+					}
+					ctx.setActiveToadlet(t);
+					Object arglist[] = new Object[] {uri, req, ctx};
+					m.invoke(t, arglist);
+				} catch (InvocationTargetException ite) {
+					throw ite.getCause();
+				}
+			} catch (RedirectException re) {
+				uri = re.newuri;
+				redirect = true;
+			} finally {
+				req.freeParts();
+			}
+		}
+		ctx.finishReply();
+		return false;
+	}
+	
+	/**
+	 * A long poll which is waiting for its LongPollToadlet to become ready.
+	 * The connection is not registered with the selector while parked, so
+	 * uses neither a thread nor a selector slot; run() is the wakeup passed to
+	 * LongPollToadlet.isReady(), and puts the request back on a worker.
+	 */
+	static class ParkedRequest implements Runnable {
+		
+		final Socket sock;
+		final ToadletContextImpl ctx;
+		final URI uri;
+		final String method;
+		final boolean methodIsConfigurable;
+		private final HTTPSelector selector;
+		private byte[] leftover;
+		/** Set once the request has actually been parked */
+		private boolean armed;
+		/** Set when woken, possibly before it was armed */
+		private boolean woken;
+		
+		ParkedRequest(Socket sock, ToadletContextImpl ctx, URI uri, String method, boolean methodIsConfigurable, HTTPSelector selector) {
+			this.sock = sock;
+			this.ctx = ctx;
+			this.uri = uri;
+			this.method = method;
+			this.methodIsConfigurable = methodIsConfigurable;
+			this.selector = selector;
+		}
+		
+		void arm(byte[] leftover) {
+			synchronized(this) {
+				this.leftover = leftover;
+				armed = true;
+				if(!woken) {
+					// Queued under the lock, so the selector always sees it before the wakeup.
+					selector.parkLongPoll(this);
+					return;
+				}
+			}
+			// Woken while we were parking it.
+			resume(null);
+		}
+		
+		public void run() {
+			synchronized(this) {
+				if(woken) return;
+				woken = true;
+				if(!armed) return;
+				// Does nothing if the selector has already closed it.
+				selector.wakeLongPoll(this);
+			}
+		}
+		
+		/** Handle the request again on a worker thread.
+		 * @param pipelined Data received while it was parked, or null. */
+		void resume(byte[] pipelined) {
+			final byte[] data;
+			if(pipelined == null || pipelined.length == 0) {
+				data = leftover;
+			} else if(leftover == null || leftover.length == 0) {
+				data = pipelined;
+			} else {
+				data = new byte[leftover.length + pipelined.length];
+				System.arraycopy(leftover, 0, data, 0, leftover.length);
+				System.arraycopy(pipelined, 0, data, leftover.length, pipelined.length);
+			}
+			selector.dispatch(new Runnable() {
+				
+				public void run() {
+					handle(sock, data, ctx.container, ctx.pagemaker, selector, ParkedRequest.this);
+				}
+				
+			});
+		}
+		
+	}
+	
 	private void setActiveToadlet(Toadlet t) {
 		this.activeToadlet = t;
 	}
@@ -617,6 +954,17 @@ public class ToadletContextImpl implements ToadletContext {
 	
 	public void writeData(byte[] data, int offset, int length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
+		if(gzipBuffer != null) {
+			if(length <= gzipBuffer.length - gzipBufferCount) {
+				System.arraycopy(data, offset, gzipBuffer, gzipBufferCount, length);
+				gzipBufferCount += length;
+				if(gzipBufferCount == gzipBuffer.length)
+					sendPendingReply(true);
+				return;
+			}
+			// More than it said it would send.
+			sendPendingReply(false);
+		}
 		sockOutputStream.write(data, offset, length);
 	}
 	
@@ -630,8 +978,46 @@ public class ToadletContextImpl implements ToadletContext {
 	 * FIXME: For all references to this function, check whether they free() the Bucket.
 	 */
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
+		writeData(data, 0, data.size());
+	}
+	
+	public void writeData(Bucket data, long offset, long length) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
+		if(length <= 0) return;
+		File file = null;
+		if(gzipBuffer == null && sockChannel != null && sockChannel.isBlocking())
+			file = BucketTools.getFile(data);
+		if(file != null) {
+			// Let the kernel copy it straight from the file to the socket.
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				FileChannel fc = fis.getChannel();
+				if(fc.size() < offset + length)
+					throw new IOException("File "+file+" is shorter than expected");
+				long written = 0;
+				while(written < length) {
+					long sent = fc.transferTo(offset + written, length - written, sockChannel);
+					if(sent <= 0) throw new IOException("Unable to send "+file);
+					written += sent;
+				}
+			} finally {
+				fis.close();
+			}
+			return;
+		}
+		InputStream is = data.getInputStream();
+		try {
+			FileUtil.skipFully(is, offset);
+			byte[] buf = new byte[32768];
+			while(length > 0) {
+				int read = is.read(buf, 0, (int) Math.min(buf.length, length));
+				if(read <= 0) throw new IOException("Bucket shorter than expected");
+				writeData(buf, 0, read);
+				length -= read;
+			}
+		} finally {
+			is.close();
+		}
 	}
 	
 	public BucketFactory getBucketFactory() {
@@ -46,7 +46,7 @@ public class UserAlertsToadlet extends Toadlet {
 		}
 		contentNode.addChild(alertsNode);
 
-		writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode);
 	}
 
 	public void handleMethodPOST(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
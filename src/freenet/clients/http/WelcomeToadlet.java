@@ -114,7 +114,7 @@ public class WelcomeToadlet extends Toadlet {
             HTMLNode content = ctx.getPageMaker().getInfobox("infobox-information", l10n("updatingTitle"), contentNode, null, true);
             content.addChild("p").addChild("#", l10n("updating"));
             content.addChild("p").addChild("#", l10n("thanks"));
-            writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            writeHTMLReply(ctx, 200, "OK", pageNode);
             Logger.normal(this, "Node is updating/restarting");
             node.getNodeUpdater().arm();
         } else if (request.getPartAsString(GenericReadFilterCallback.magicHTTPEscapeString, MAX_URL_LENGTH).length() > 0) {
@@ -138,7 +138,7 @@ public class WelcomeToadlet extends Toadlet {
             HTMLNode updateForm = ctx.addFormChild(content, "/", "updateConfirmForm");
             updateForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
             updateForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "updateconfirm", l10n("update")});
-            writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            writeHTMLReply(ctx, 200, "OK", pageNode);
         } else if (request.isPartSet("getThreadDump")) {
             if (noPassword) {
                 redirectToRoot(ctx);
@@ -156,7 +156,7 @@ public class WelcomeToadlet extends Toadlet {
             	ctx.getPageMaker().getInfobox("infobox-error", l10n("threadDumpSubTitle"), contentNode, "thread-dump-generation", true).
             		addChild("#", l10n("threadDumpNotUsingWrapper"));
             }
-            this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            this.writeHTMLReply(ctx, 200, "OK", pageNode);
         } else if (request.isPartSet("disable")) {
             if (noPassword) {
                 redirectToRoot(ctx);
@@ -233,7 +233,7 @@ public class WelcomeToadlet extends Toadlet {
             content.addChild("br");
             addHomepageLink(content);
 
-            writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            writeHTMLReply(ctx, 200, "OK", pageNode);
             request.freeParts();
             bucket.free();
         } else if (request.isPartSet("exit")) {
@@ -245,7 +245,7 @@ public class WelcomeToadlet extends Toadlet {
             HTMLNode shutdownForm = ctx.addFormChild(content.addChild("p"), "/", "confirmShutdownForm");
             shutdownForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
             shutdownForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "shutdownconfirm", l10n("shutdown")});
-            writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            writeHTMLReply(ctx, 200, "OK", pageNode);
             return;
         } else if (request.isPartSet("shutdownconfirm")) {
             if (noPassword) {
@@ -271,7 +271,7 @@ public class WelcomeToadlet extends Toadlet {
             HTMLNode restartForm = ctx.addFormChild(content.addChild("p"), "/", "confirmRestartForm");
             restartForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
             restartForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "restartconfirm", l10n("restart")});
-            writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+            writeHTMLReply(ctx, 200, "OK", pageNode);
             return;
         } else if (request.isPartSet("restartconfirm")) {
             if (noPassword) {
@@ -330,7 +330,7 @@ public class WelcomeToadlet extends Toadlet {
 
                 WelcomeToadlet.maybeDisplayWrapperLogfile(ctx, contentNode);
 
-                this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+                this.writeHTMLReply(ctx, 200, "OK", pageNode);
                 return;
             } else if (request.isParameterSet("restarted")) {
                 if ((!request.isParameterSet("formPassword")) || !request.getParam("formPassword").equals(core.formPassword)) {
@@ -383,7 +383,7 @@ public class WelcomeToadlet extends Toadlet {
 
                 addForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "addbookmark", NodeL10n.getBase().getString("BookmarkEditorToadlet.addBookmark")});
 
-                this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+                this.writeHTMLReply(ctx, 200, "OK", pageNode);
                 return;
             } else if (request.getParam(GenericReadFilterCallback.magicHTTPEscapeString).length() > 0) {
             	PageNode page = ctx.getPageMaker().getPageNode(l10n("confirmExternalLinkTitle"), ctx);
@@ -398,7 +398,7 @@ public class WelcomeToadlet extends Toadlet {
                 externalLinkForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"hidden", GenericReadFilterCallback.magicHTTPEscapeString, target});
                 externalLinkForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "cancel", NodeL10n.getBase().getString("Toadlet.cancel")});
                 externalLinkForm.addChild("input", new String[]{"type", "name", "value"}, new String[]{"submit", "Go", l10n("goToExternalLink")});
-                this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+                this.writeHTMLReply(ctx, 200, "OK", pageNode);
                 return;
             }
         }
@@ -511,7 +511,7 @@ public class WelcomeToadlet extends Toadlet {
             }
         }
 
-        this.writeHTMLReply(ctx, 200, "OK", pageNode.generate());
+        this.writeHTMLReply(ctx, 200, "OK", pageNode);
     }
 
 	private void putFetchKeyBox(ToadletContext ctx, HTMLNode contentNode) {
@@ -525,7 +525,7 @@ public class WelcomeToadlet extends Toadlet {
 	}
 
     private void sendRestartingPage(ToadletContext ctx) throws ToadletContextClosedException, IOException {
-        writeHTMLReply(ctx, 200, "OK", sendRestartingPageInner(ctx).generate());
+        writeHTMLReply(ctx, 200, "OK", sendRestartingPageInner(ctx));
 	}
     
     static HTMLNode sendRestartingPageInner(ToadletContext ctx) {
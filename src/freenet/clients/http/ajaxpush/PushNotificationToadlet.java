@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.URI;
 
 import freenet.client.HighLevelSimpleClient;
+import freenet.clients.http.LongPollToadlet;
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.SimpleToadletServer;
 import freenet.clients.http.Toadlet;
@@ -16,7 +17,7 @@ import freenet.support.Logger;
 import freenet.support.api.HTTPRequest;
 
 /** This toadlet provides notifications for clients. It will block until one is present. It requires the requestId parameter. */
-public class PushNotificationToadlet extends Toadlet {
+public class PushNotificationToadlet extends Toadlet implements LongPollToadlet {
 
 	private static volatile boolean	logMINOR;
 
@@ -43,6 +44,10 @@ public class PushNotificationToadlet extends Toadlet {
 		}
 	}
 
+	public boolean isReady(HTTPRequest req, ToadletContext ctx, Runnable wakeup) {
+		return ((SimpleToadletServer) ctx.getContainer()).pushDataManager.isNotificationReady(req.getParam("requestId"), wakeup);
+	}
+
 	@Override
 	public String path() {
 		return UpdaterConstants.notificationPath;
@@ -24,7 +24,7 @@ public class PushTesterToadlet extends Toadlet {
 		for (int i = 0; i < 600; i++) {
 			pageNode.content.addChild(new TesterElement(ctx, String.valueOf(i), 100));
 		}
-		writeHTMLReply(ctx, 200, "OK", pageNode.outer.generate());
+		writeHTMLReply(ctx, 200, "OK", pageNode.outer);
 	}
 
 	@Override
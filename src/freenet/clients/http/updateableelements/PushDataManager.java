@@ -32,6 +32,9 @@ public class PushDataManager {
 	
 	private Map<String, Boolean>						isFirstKeepaliveReceived		= new HashMap<String, Boolean>();
 
+	/** Parked long polls to wake up when a notification might have become available */
+	private List<Runnable>								notificationWaiters		= new ArrayList<Runnable>();
+
 	/** The Cleaner that runs periodically and cleanes the failing requests */
 	private Ticker										cleaner;
 
@@ -85,7 +88,7 @@ public class PushDataManager {
 			if(logMINOR){
 				Logger.minor(this, "Waking up notification polls");
 			}
-			notifyAll();
+			notificationsChanged();
 		}
 	}
 
@@ -168,7 +171,7 @@ public class PushDataManager {
 			if (logMINOR) {
 				Logger.minor(this, "copied " + awaitingNotifications.get(newRequestId).size() + " notification:" + awaitingNotifications.get(newRequestId));
 			}
-			notifyAll();
+			notificationsChanged();
 			return true;
 		} else {
 			if (logMINOR) {
@@ -209,7 +212,7 @@ public class PushDataManager {
 		}
 		isKeepaliveReceived.put(requestId, true);
 		isFirstKeepaliveReceived.put(requestId, true);
-		notifyAll();
+		notificationsChanged();
 		return true;
 	}
 
@@ -224,8 +227,7 @@ public class PushDataManager {
 		if (logMINOR) {
 			Logger.minor(this, "Polling for notification:" + requestId);
 		}
-		while (awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() == 0 || // No notifications 
-				(awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() != 0 && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false)) { // Not asked us yet
+		while (mustWaitForNotification(requestId)) {
 			try {
 				wait();
 			} catch (InterruptedException ie) {
@@ -241,6 +243,47 @@ public class PushDataManager {
 		return awaitingNotifications.get(requestId).remove(0);
 	}
 
+	/**
+	 * Would getNextNotification() return straight away? If not, the callback
+	 * will be run when it might, so the caller can wait without blocking a
+	 * thread. The callback is run with the lock held, so it must be quick.
+	 * 
+	 * @param requestId
+	 *            - The id of the request
+	 * @param callback
+	 *            - Run once, when a notification might be available
+	 * @return True if getNextNotification() would not wait
+	 */
+	public synchronized boolean isNotificationReady(String requestId, Runnable callback) {
+		if (mustWaitForNotification(requestId) == false) {
+			return true;
+		}
+		notificationWaiters.add(callback);
+		return false;
+	}
+
+	private boolean mustWaitForNotification(String requestId) {
+		return awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() == 0 || // No notifications 
+				(awaitingNotifications.get(requestId) != null && awaitingNotifications.get(requestId).size() != 0 && isFirstKeepaliveReceived.containsKey(awaitingNotifications.get(requestId).get(0).requestId)==false); // Not asked us yet
+	}
+
+	/** Wakes up everything waiting for a notification, blocked or parked */
+	private void notificationsChanged() {
+		notifyAll();
+		if (notificationWaiters.isEmpty()) {
+			return;
+		}
+		Runnable[] waiters = notificationWaiters.toArray(new Runnable[notificationWaiters.size()]);
+		notificationWaiters.clear();
+		for (Runnable waiter : waiters) {
+			try {
+				waiter.run();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught " + t + " waking " + waiter, t);
+			}
+		}
+	}
+
 	/** Returns the cleaner's delay in ms */
 	private int getDelayInMs() {
 		return (int) (UpdaterConstants.KEEPALIVE_INTERVAL_SECONDS * 1000 * 2.1);
@@ -288,6 +331,7 @@ public class PushDataManager {
 			}
 		}
 		awaitingNotifications.remove(requestId);
+		notificationsChanged();
 		return true;
 	}
 
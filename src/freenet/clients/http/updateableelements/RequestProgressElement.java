@@ -0,0 +1,85 @@
+package freenet.clients.http.updateableelements;
+
+import freenet.clients.http.QueueToadlet;
+import freenet.clients.http.SimpleToadletServer;
+import freenet.clients.http.ToadletContext;
+import freenet.node.fcp.RequestStatus;
+import freenet.node.fcp.RequestStatusCache;
+import freenet.node.fcp.UploadFileRequestStatus;
+import freenet.node.fcp.ClientPut.COMPRESS_STATE;
+import freenet.support.Base64;
+
+/** A pushed element that renders the progress cell of a request on the queue page. */
+public class RequestProgressElement extends BaseUpdateableElement {
+
+	/** The cache the progress is read from */
+	private final RequestStatusCache cache;
+	/** The identifier of the request on the global queue */
+	private final String identifier;
+	private final boolean advancedMode;
+	private final boolean upload;
+	/** Notifies the PushDataManager when the request's status changes */
+	private RequestStatusCache.Listener listener;
+
+	public RequestProgressElement(RequestStatusCache cache, String identifier, boolean advancedMode, boolean upload, ToadletContext ctx, boolean pushed) {
+		// This is a <td>
+		super("td", "class", "request-progress", ctx);
+		this.cache = cache;
+		this.identifier = identifier;
+		this.advancedMode = advancedMode;
+		this.upload = upload;
+		init(pushed);
+		if(!pushed) return;
+		final PushDataManager pushDataManager = ((SimpleToadletServer) ctx.getContainer()).pushDataManager;
+		listener = new RequestStatusCache.Listener() {
+
+			public void onStatusChanged(String identifier) {
+				pushDataManager.updateElement(getUpdaterId(null));
+			}
+
+		};
+		cache.addListener(identifier, listener);
+	}
+
+	@Override
+	public void updateState(boolean initial) {
+		children.clear();
+		RequestStatus status = cache.getStatus(identifier);
+		if(status == null) {
+			// Removed
+			return;
+		}
+		COMPRESS_STATE compressing = COMPRESS_STATE.WORKING;
+		if(status instanceof UploadFileRequestStatus)
+			compressing = ((UploadFileRequestStatus) status).isCompressing();
+		QueueToadlet.addProgress(this, advancedMode, status.isStarted(), compressing, status.getFetchedBlocks(), status.getFailedBlocks(),
+				status.getFatallyFailedBlocks(), status.getMinBlocks(), status.getTotalBlocks(),
+				status.isTotalFinalized() || status instanceof UploadFileRequestStatus, upload);
+	}
+
+	@Override
+	public String getUpdaterId(String requestId) {
+		return getId(identifier);
+	}
+
+	public static String getId(String identifier) {
+		return Base64.encodeStandard(("requestprogress[" + identifier + "]").getBytes());
+	}
+
+	@Override
+	public void dispose() {
+		if(listener != null)
+			cache.removeListener(identifier, listener);
+	}
+
+	@Override
+	public String getUpdaterType() {
+		return UpdaterConstants.REPLACER_UPDATER;
+	}
+
+	@Override
+	public String toString() {
+		return "RequestProgressElement[identifier:" + identifier + ",updaterId:" + getUpdaterId(null) + "]";
+	}
+
+}
@@ -4,8 +4,11 @@
 package freenet.crypt;
 
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.Random;
 
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUHashtable;
 import freenet.support.Logger;
 
 import net.i2p.util.NativeBigInteger;
@@ -20,6 +23,19 @@ public class DSA {
 	
 	static final BigInteger SIGNATURE_MASK =
 		Util.TWO.pow(255).subtract(BigInteger.ONE);
+
+	/** Number of recently verified signatures to remember */
+	static final int VERIFIED_CACHE_SIZE = 4096;
+
+	/** Hashes of recently verified (public key, message, signature) triples. Only successes are kept. */
+	private static final LRUHashtable<ByteArrayWrapper, Boolean> verifiedCache = new LRUHashtable<ByteArrayWrapper, Boolean>();
+	private static long verifiedCacheHits;
+
+	/** Comb tables for the generator of the group nearly every key uses; built on first use. */
+	private static class GeneratorComb {
+		static final FixedBaseComb BIG_A = new FixedBaseComb(Global.DSAgroupBigA.getG(), Global.DSAgroupBigA.getP(),
+		        Global.DSAgroupBigA.getQ().bitLength());
+	}
 	
 	/**
 	 * Returns a DSA signature given a group, private key (x), a random nonce
@@ -84,9 +100,81 @@ public class DSA {
 	public static boolean verify(DSAPublicKey kp,
 			DSASignature sig,
 			BigInteger m, boolean forceMod) {
+		return verify(kp, sig, m, forceMod, false);
+	}
+
+	/**
+	 * Verifies the message authenticity given a group, the public key
+	 * (y), a signature, and the hash of the message (m).
+	 * @param forceMod If enabled, skip the clipping m to 255 bits.
+	 * @param useCache If enabled, remember a good signature, and don't check
+	 * it again if it is seen again soon. Use this for signatures that are
+	 * likely to be checked more than once, such as those on SSK blocks read
+	 * from the store or offered by several peers, but not for those on
+	 * one-off messages such as handshakes.
+	 */
+	public static boolean verify(DSAPublicKey kp,
+			DSASignature sig,
+			BigInteger m, boolean forceMod, boolean useCache) {
 		if(m.signum() == -1) throw new IllegalArgumentException();
 		if(kp.getGroup().getQ().bitLength() == 256 && !forceMod)
 			m = m.and(SIGNATURE_MASK);
+		ByteArrayWrapper cacheKey = null;
+		if(useCache) {
+			cacheKey = verifiedCacheKey(kp, sig, m);
+			synchronized(verifiedCache) {
+				if(verifiedCache.containsKey(cacheKey)) {
+					verifiedCache.push(cacheKey, Boolean.TRUE);
+					verifiedCacheHits++;
+					return true;
+				}
+			}
+		}
+		boolean verified = verify(kp, sig, m);
+		if(verified && useCache) {
+			synchronized(verifiedCache) {
+				verifiedCache.push(cacheKey, Boolean.TRUE);
+				while(verifiedCache.size() > VERIFIED_CACHE_SIZE)
+					verifiedCache.popKey();
+			}
+		}
+		return verified;
+	}
+
+	private static ByteArrayWrapper verifiedCacheKey(DSAPublicKey kp, DSASignature sig, BigInteger m) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(kp.fingerprint());
+			md.update(m.toByteArray());
+			md.update(sig.getR().toByteArray());
+			md.update(sig.getS().toByteArray());
+			return new ByteArrayWrapper(md.digest());
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	/** @return Number of signatures found in the cache of good signatures since startup. */
+	static long getVerifiedCacheHits() {
+		synchronized(verifiedCache) {
+			return verifiedCacheHits;
+		}
+	}
+
+	static void clearVerifiedCache() {
+		synchronized(verifiedCache) {
+			while(verifiedCache.popKey() != null);
+		}
+	}
+
+	/** @return g^e mod p, using the precomputed comb for the usual group. */
+	private static BigInteger generatorPow(DSAGroup group, BigInteger e) {
+		if(group == Global.DSAgroupBigA || group.equals(Global.DSAgroupBigA))
+			return GeneratorComb.BIG_A.pow(e);
+		return group.getG().modPow(e, group.getP());
+	}
+
+	private static boolean verify(DSAPublicKey kp, DSASignature sig, BigInteger m) {
 		try {
 			// 0<r<q has to be true
 			if((sig.getR().compareTo(BigInteger.ZERO) < 1) || (kp.getQ().compareTo(sig.getR()) < 1)) {
@@ -104,7 +192,7 @@ public class DSA {
 			BigInteger w=sig.getS().modInverse(kp.getQ());
 			BigInteger u1=m.multiply(w).mod(kp.getQ());
 			BigInteger u2=sig.getR().multiply(w).mod(kp.getQ());
-			BigInteger v1=kp.getG().modPow(u1, kp.getP());
+			BigInteger v1=generatorPow(kp.getGroup(), u1);
 			BigInteger v2=kp.getY().modPow(u2, kp.getP());
 			BigInteger v=v1.multiply(v2).mod(kp.getP()).mod(kp.getQ());
 			return v.equals(sig.getR());
@@ -0,0 +1,123 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * Raises a fixed base to varying exponents modulo a fixed prime, using the
+ * Lim-Lee comb: the exponent is written as {@link #TEETH} rows, each row is
+ * cut into {@link #TABLES} blocks, and a table per block holds the product of
+ * every subset of the base's powers that one column of the comb can select.
+ * An exponentiation is then one squaring per column of a block and at most
+ * one multiplication per column and table, about 40 multiplications for a
+ * 256-bit exponent instead of the 300 or so modPow needs.
+ *
+ * The multiplications are reduced with Barrett's method rather than
+ * BigInteger.mod(), which is several times slower. The tables take
+ * TABLES * 2^TEETH numbers of the size of the modulus, 256KB for a 2048-bit
+ * group, so only use this for bases that are used all the time, such as the
+ * generator of the DSA group.
+ */
+public final class FixedBaseComb {
+
+	/** Rows of the comb; each table has 2^TEETH entries */
+	static final int TEETH = 8;
+	/** Tables, trading memory for squarings */
+	static final int TABLES = 4;
+
+	private final BigInteger base;
+	private final BigInteger modulus;
+	/** Largest exponent bit length the tables cover */
+	private final int maxBits;
+	/** Bits per row */
+	private final int rowBits;
+	/** Bits per block of a row, i.e. squarings per exponentiation */
+	private final int blockBits;
+	private final BigInteger[][] tables;
+
+	private final int modulusBits;
+	/** floor(2^(2*modulusBits) / modulus), for Barrett reduction */
+	private final BigInteger mu;
+
+	/**
+	 * @param maxBits Length of the largest exponent; longer ones fall back to modPow.
+	 */
+	public FixedBaseComb(BigInteger base, BigInteger modulus, int maxBits) {
+		if (modulus.signum() != 1 || maxBits < 1)
+			throw new IllegalArgumentException();
+		this.base = base;
+		this.modulus = modulus;
+		this.maxBits = maxBits;
+		modulusBits = modulus.bitLength();
+		mu = BigInteger.ONE.shiftLeft(2 * modulusBits).divide(modulus);
+		rowBits = (maxBits + TEETH - 1) / TEETH;
+		blockBits = (rowBits + TABLES - 1) / TABLES;
+
+		tables = new BigInteger[TABLES][1 << TEETH];
+		BigInteger reduced = base.mod(modulus);
+		for (int j = 0; j < TABLES; j++) {
+			BigInteger[] table = tables[j];
+			table[0] = BigInteger.ONE;
+			for (int i = 0; i < TEETH; i++) {
+				// base^(2^(i*rowBits + j*blockBits)), the power tooth i picks in block j
+				BigInteger power = reduced.modPow(BigInteger.ONE.shiftLeft(i * rowBits + j * blockBits), modulus);
+				int bit = 1 << i;
+				table[bit] = power;
+				for (int u = 1; u < bit; u++)
+					table[bit | u] = multiply(table[u], power);
+			}
+		}
+	}
+
+	public BigInteger getBase() {
+		return base;
+	}
+
+	public BigInteger getModulus() {
+		return modulus;
+	}
+
+	/** @return base^exponent mod modulus */
+	public BigInteger pow(BigInteger exponent) {
+		if (exponent.signum() < 0 || exponent.bitLength() > maxBits)
+			return base.modPow(exponent, modulus);
+		BigInteger result = BigInteger.ONE;
+		boolean one = true;
+		for (int k = blockBits - 1; k >= 0; k--) {
+			if (!one)
+				result = multiply(result, result);
+			for (int j = TABLES - 1; j >= 0; j--) {
+				int offset = j * blockBits + k;
+				if (offset >= rowBits)
+					continue;
+				int u = 0;
+				for (int i = TEETH - 1; i >= 0; i--) {
+					u <<= 1;
+					if (exponent.testBit(i * rowBits + offset))
+						u |= 1;
+				}
+				if (u == 0)
+					continue;
+				if (one) {
+					result = tables[j][u];
+					one = false;
+				} else {
+					result = multiply(result, tables[j][u]);
+				}
+			}
+		}
+		return result;
+	}
+
+	/** @return a * b mod modulus, for a and b already reduced */
+	private BigInteger multiply(BigInteger a, BigInteger b) {
+		BigInteger x = a.multiply(b);
+		BigInteger q = x.shiftRight(modulusBits - 1).multiply(mu).shiftRight(modulusBits + 1);
+		BigInteger r = x.subtract(q.multiply(modulus));
+		while (r.compareTo(modulus) >= 0)
+			r = r.subtract(modulus);
+		return r;
+	}
+}
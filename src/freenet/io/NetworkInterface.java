@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -82,8 +83,22 @@ public class NetworkInterface implements Closeable {
 	
 	private final Executor executor;
 
+	/** Whether to listen with ServerSocketChannel's, so that accepted sockets
+	 * have a channel and can be used with a Selector. */
+	private boolean useChannels;
+
 	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		return create(port, bindTo, allowedHosts, executor, ignoreUnbindableIP6, false);
+	}
+
+	/**
+	 * @param useChannels
+	 *            If true, the sockets returned by accept() will have a
+	 *            SocketChannel, see {@link Socket#getChannel()}.
+	 */
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6, boolean useChannels) throws IOException {
 		NetworkInterface iface = new NetworkInterface(port, allowedHosts, executor);
+		iface.useChannels = useChannels;
 		try {
 			iface.setBindTo(bindTo, ignoreUnbindableIP6);
 		} catch (IOException e) {
@@ -114,6 +129,8 @@ public class NetworkInterface implements Closeable {
 	}
 
 	protected ServerSocket createServerSocket() throws IOException {
+		if(useChannels)
+			return ServerSocketChannel.open().socket();
 		return new ServerSocket();
 	}
 	
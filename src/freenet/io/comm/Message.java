@@ -25,20 +25,20 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
 import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 
 /**
  * A Message which can be read from and written to a DatagramPacket
  *
+ * The fields are held in slots laid out by the MessageType's MessageCodec:
+ * primitives unboxed in a long[], everything else in an Object[].
+ *
  * @author ian
  */
 public class Message {
@@ -60,7 +60,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageCodec _codec;
+	/** Primitive fields, as longs; doubles as their bits. */
+	final long[] _primitives;
+	/** All other fields. */
+	final Object[] _objects;
+	/** Bit i is set if field i has been set. */
+	long _setFields;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -87,16 +93,7 @@ public class Message {
 		    return null; // silently discard internal-only messages
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-		    for (String name : mspec.getOrderedFields()) {
-		        Class<?> type = mspec.getFields().get(name);
-		        if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-		            m.set(name, Serializer
-					        .readListFromDataInputStream(mspec.getLinkedListTypes().get(name),
-					        bb));
-		        } else {
-		            m.set(name, Serializer.readFromDataInputStream(type, bb));
-		        }
-			}
+			m._codec.read(m, bb);
 			if (mayHaveSubMessages) {
 		    	while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 		    		ByteBufferInputStream bb2;
@@ -150,72 +147,107 @@ public class Message {
 			_sourceRef = source.getWeakRef();
 		}
 		_receivedByteCount = recvByteCount;
+		_codec = spec.getCodec();
+		_primitives = new long[_codec.primitives];
+		_objects = new Object[_codec.objects];
 	}
 
 	public boolean getBoolean(String key) {
-		return ((Boolean) _payload.get(key)).booleanValue();
+		return getPrimitive(key, MessageCodec.BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return ((Byte) _payload.get(key)).byteValue();
+		return (byte) getPrimitive(key, MessageCodec.BYTE);
 	}
 
 	public short getShort(String key) {
-		return ((Short) _payload.get(key)).shortValue();
+		return (short) getPrimitive(key, MessageCodec.SHORT);
 	}
 
 	public int getInt(String key) {
-		return ((Integer) _payload.get(key)).intValue();
+		return (int) getPrimitive(key, MessageCodec.INT);
 	}
 
 	public long getLong(String key) {
-		return ((Long) _payload.get(key)).longValue();
+		return getPrimitive(key, MessageCodec.LONG);
 	}
 
 	public double getDouble(String key) {
-	    return ((Double) _payload.get(key)).doubleValue();
+	    return Double.longBitsToDouble(getPrimitive(key, MessageCodec.DOUBLE));
+	}
+
+	private long getPrimitive(String key, byte kind) {
+		int field = _codec.field(key);
+		if(field < 0 || _codec.kinds[field] != kind)
+			throw new IncorrectTypeException("Wrong type for " + key + ", is " + _spec.typeOf(key));
+		if((_setFields & (1L << field)) == 0)
+			throw new FieldNotSetException(key + " not set");
+		return _primitives[_codec.slots[field]];
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/**
+	 * @return The value of the field, boxed if it is a primitive, or null if it
+	 * is not set.
+	 */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int field = _codec.field(key);
+		if(field < 0 || (_setFields & (1L << field)) == 0) return null;
+		byte kind = _codec.kinds[field];
+		if(MessageCodec.isPrimitive(kind))
+			return MessageCodec.box(kind, _primitives[_codec.slots[field]]);
+		return _objects[_codec.slots[field]];
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageCodec.BOOLEAN, b ? 1 : 0, Boolean.class);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageCodec.BYTE, b, Byte.class);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageCodec.SHORT, s, Short.class);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageCodec.INT, i, Integer.class);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageCodec.LONG, l, Long.class);
 	}
 
 	public void set(String key, double d) {
-		set(key, new Double(d));
+		setPrimitive(key, MessageCodec.DOUBLE, Double.doubleToLongBits(d), Double.class);
+	}
+
+	private void setPrimitive(String key, byte kind, long value, Class<?> type) {
+		int field = _codec.field(key);
+		if(field < 0 || _codec.kinds[field] != kind)
+			throw new IncorrectTypeException("Got " + type + ", expected " + _spec.typeOf(key));
+		_primitives[_codec.slots[field]] = value;
+		_setFields |= 1L << field;
 	}
 
 	public void set(String key, Object value) {
-		if (!_spec.checkType(key, value)) {
+		int field = _codec.field(key);
+		if (field < 0 || value == null || !_codec.types[field].isInstance(value)) {
 			if (value == null) {
 				throw new IncorrectTypeException("Got null for " + key);
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		byte kind = _codec.kinds[field];
+		if(MessageCodec.isPrimitive(kind))
+			_primitives[_codec.slots[field]] = MessageCodec.unbox(kind, value);
+		else
+			_objects[_codec.slots[field]] = value;
+		_setFields |= 1L << field;
 	}
 
 	public byte[] encodeToPacket(PeerContext destination) {
@@ -232,9 +264,7 @@ public class Message {
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos, destination);
-			}
+			_codec.write(this, dos, destination);
 			dos.flush();
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -267,7 +297,7 @@ public class Message {
 		ret.append(_spec.getName()).append(" {");
 		for (String name : _spec.getFields().keySet()) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -287,11 +317,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int field = _codec.field(fieldName);
+		return field >= 0 && (_setFields & (1L << field)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
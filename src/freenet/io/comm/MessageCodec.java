@@ -0,0 +1,288 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataInput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import freenet.io.WritableToDataOutputStream;
+import freenet.keys.Key;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+
+/**
+ * Reads and writes the fields of one MessageType. Built once per type from its
+ * fields: each field gets a kind, decided from its class up front, and a slot in
+ * the Message, either in its array of primitive values or in its array of objects.
+ * So encoding or decoding a message is a single pass over the fields switching on
+ * the kind, rather than dispatching on the class of every value and boxing every
+ * primitive. The wire format is exactly what Serializer reads and writes.
+ */
+final class MessageCodec {
+
+	static final byte BOOLEAN = 0;
+	static final byte BYTE = 1;
+	static final byte SHORT = 2;
+	static final byte INT = 3;
+	static final byte LONG = 4;
+	static final byte DOUBLE = 5;
+	static final byte STRING = 6;
+	static final byte BUFFER = 7;
+	static final byte SHORT_BUFFER = 8;
+	static final byte PEER = 9;
+	static final byte BIT_ARRAY = 10;
+	static final byte KEY = 11;
+	static final byte LIST = 12;
+	/** Anything else: left to Serializer. */
+	static final byte OTHER = 13;
+
+	/** The set fields of a Message are a bitmask in a long. */
+	static final int MAX_FIELDS = 64;
+
+	/** Don't trust the length of a string on the wire for more than this. */
+	private static final int MAX_STRING_PREALLOC = 512;
+
+	/** Field names, in wire order. */
+	final String[] names;
+	final Class<?>[] types;
+	final byte[] kinds;
+	/** Index into the Message's primitives or objects, depending on the kind. */
+	final int[] slots;
+	/** Element types of LIST fields. */
+	private final Class<?>[] elementTypes;
+	final int primitives;
+	final int objects;
+	/** Bits for all the fields, which must all be set to send a message. */
+	final long allFields;
+	private final HashMap<String, Integer> fieldsByName;
+
+	MessageCodec(List<String> orderedFields, Map<String, Class<?>> fields, Map<String, Class<?>> listTypes) {
+		int count = orderedFields.size();
+		names = orderedFields.toArray(new String[count]);
+		types = new Class<?>[count];
+		kinds = new byte[count];
+		slots = new int[count];
+		elementTypes = new Class<?>[count];
+		fieldsByName = new HashMap<String, Integer>(count * 2);
+		int p = 0;
+		int o = 0;
+		long all = 0;
+		for(int i=0;i<count;i++) {
+			// Interned so that field() can compare by reference.
+			names[i] = names[i].intern();
+			types[i] = fields.get(names[i]);
+			kinds[i] = kindOf(types[i]);
+			elementTypes[i] = listTypes.get(names[i]);
+			Integer prev = fieldsByName.get(names[i]);
+			if(prev != null) {
+				// Added twice: it's written twice, but there is only one value.
+				slots[i] = slots[prev.intValue()];
+			} else {
+				slots[i] = isPrimitive(kinds[i]) ? p++ : o++;
+				fieldsByName.put(names[i], Integer.valueOf(i));
+				all |= 1L << i;
+			}
+		}
+		primitives = p;
+		objects = o;
+		allFields = all;
+	}
+
+	static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Double.class) return DOUBLE;
+		if(type == String.class) return STRING;
+		if(type == Buffer.class) return BUFFER;
+		if(type == ShortBuffer.class) return SHORT_BUFFER;
+		if(type == Peer.class) return PEER;
+		if(type == BitArray.class) return BIT_ARRAY;
+		if(Key.class.isAssignableFrom(type)) return KEY;
+		if(type == java.util.LinkedList.class) return LIST;
+		return OTHER;
+	}
+
+	static boolean isPrimitive(byte kind) {
+		return kind <= DOUBLE;
+	}
+
+	/**
+	 * @return The index of the field, or -1 if there is no such field. Callers
+	 * almost always pass one of the DMT constants, which are interned, so try a
+	 * reference comparison against the few names first, and only hash the name
+	 * if that fails.
+	 */
+	int field(String name) {
+		String[] n = names;
+		for(int j=0;j<n.length;j++)
+			if(n[j] == name) return j;
+		Integer i = fieldsByName.get(name);
+		return i == null ? -1 : i.intValue();
+	}
+
+	/** Box a primitive value the way the old payload map held it. */
+	static Object box(byte kind, long value) {
+		switch(kind) {
+		case BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case BYTE:
+			return Byte.valueOf((byte) value);
+		case SHORT:
+			return Short.valueOf((short) value);
+		case INT:
+			return Integer.valueOf((int) value);
+		case LONG:
+			return Long.valueOf(value);
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		default:
+			throw new IllegalArgumentException("Not a primitive: "+kind);
+		}
+	}
+
+	/** @param value Must be an instance of the boxed type for the kind. */
+	static long unbox(byte kind, Object value) {
+		switch(kind) {
+		case BOOLEAN:
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		case BYTE:
+			return ((Byte) value).byteValue();
+		case SHORT:
+			return ((Short) value).shortValue();
+		case INT:
+			return ((Integer) value).intValue();
+		case LONG:
+			return ((Long) value).longValue();
+		case DOUBLE:
+			return Double.doubleToLongBits(((Double) value).doubleValue());
+		default:
+			throw new IllegalArgumentException("Not a primitive: "+kind);
+		}
+	}
+
+	/** Read all the fields of m, in order. */
+	void read(Message m, DataInput dis) throws IOException {
+		long[] p = m._primitives;
+		Object[] o = m._objects;
+		for(int i=0;i<kinds.length;i++) {
+			int slot = slots[i];
+			switch(kinds[i]) {
+			case BOOLEAN:
+				byte b = dis.readByte();
+				if(b != 0 && b != 1)
+					throw new IOException("Boolean is non boolean value: "+b);
+				p[slot] = b;
+				break;
+			case BYTE:
+				p[slot] = dis.readByte();
+				break;
+			case SHORT:
+				p[slot] = dis.readShort();
+				break;
+			case INT:
+				p[slot] = dis.readInt();
+				break;
+			case LONG:
+				p[slot] = dis.readLong();
+				break;
+			case DOUBLE:
+				// Same bits as set(double), so we send on exactly what we got.
+				p[slot] = Double.doubleToLongBits(dis.readDouble());
+				break;
+			case STRING:
+				o[slot] = readString(dis);
+				break;
+			case BUFFER:
+				o[slot] = new Buffer(dis);
+				break;
+			case SHORT_BUFFER:
+				o[slot] = new ShortBuffer(dis);
+				break;
+			case PEER:
+				o[slot] = new Peer(dis);
+				break;
+			case BIT_ARRAY:
+				o[slot] = new BitArray(dis, Serializer.MAX_BITARRAY_SIZE);
+				break;
+			case KEY:
+				Key key = Key.read(dis);
+				if(!types[i].isInstance(key))
+					throw new IOException("Got "+key+" for "+names[i]+", expected "+types[i]);
+				o[slot] = key;
+				break;
+			case LIST:
+				o[slot] = Serializer.readListFromDataInputStream(elementTypes[i], dis);
+				break;
+			default:
+				o[slot] = Serializer.readFromDataInputStream(types[i], dis);
+			}
+		}
+		m._setFields = allFields;
+	}
+
+	private static String readString(DataInput dis) throws IOException {
+		int length = dis.readInt();
+		if(length < 0) throw new IOException("Negative string length: "+length);
+		StringBuilder sb = new StringBuilder(Math.min(length, MAX_STRING_PREALLOC));
+		for(int x = 0; x < length; x++)
+			sb.append(dis.readChar());
+		return sb.toString();
+	}
+
+	/** Write all the fields of m, in order.
+	 * @throws Message.FieldNotSetException If any field has not been set. */
+	void write(Message m, DataOutputStream dos, PeerContext ctx) throws IOException {
+		if((m._setFields & allFields) != allFields) {
+			for(int i=0;i<names.length;i++) {
+				if((m._setFields & (1L << i)) == 0 && (allFields & (1L << i)) != 0)
+					throw new Message.FieldNotSetException(names[i]+" not set on "+m.getSpec().getName());
+			}
+		}
+		long[] p = m._primitives;
+		Object[] o = m._objects;
+		for(int i=0;i<kinds.length;i++) {
+			int slot = slots[i];
+			switch(kinds[i]) {
+			case BOOLEAN:
+			case BYTE:
+				dos.write((int) p[slot]);
+				break;
+			case SHORT:
+				dos.writeShort((int) p[slot]);
+				break;
+			case INT:
+				dos.writeInt((int) p[slot]);
+				break;
+			case LONG:
+			case DOUBLE:
+				dos.writeLong(p[slot]);
+				break;
+			case STRING:
+				String s = (String) o[slot];
+				dos.writeInt(s.length());
+				dos.writeChars(s);
+				break;
+			case LIST:
+				Serializer.writeToDataOutputStream(o[slot], dos, ctx);
+				break;
+			default:
+				Object value = o[slot];
+				if(value instanceof WritableToDataOutputStream)
+					((WritableToDataOutputStream) value).writeToDataOutputStream(dos);
+				else
+					Serializer.writeToDataOutputStream(value, dos, ctx);
+			}
+		}
+	}
+
+}
@@ -38,6 +38,8 @@ public class MessageType {
 	private final HashMap<String, Class<?>> _linkedListTypes = new HashMap<String, Class<?>>();
 	private final boolean internalOnly;
 	private final short priority;
+	/** Built when the first message of this type is created. */
+	private volatile MessageCodec _codec;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false);
@@ -64,8 +66,11 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if(_orderedFields.size() >= MessageCodec.MAX_FIELDS)
+			throw new IllegalStateException("Too many fields for "+_name);
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		_codec = null;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
@@ -121,6 +126,16 @@ public class MessageType {
 		return _fields;
 	}
 
+	MessageCodec getCodec() {
+		MessageCodec codec = _codec;
+		if(codec == null) {
+			// Harmless if two threads race to build it.
+			codec = new MessageCodec(_orderedFields, _fields, _linkedListTypes);
+			_codec = codec;
+		}
+		return codec;
+	}
+
 	public LinkedList<String> getOrderedFields() {
 		return _orderedFields;
 	}
@@ -0,0 +1,345 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import freenet.support.Logger;
+
+/**
+ * An in-memory network for simulations: many nodes in one JVM exchange packets
+ * through this instead of UDP sockets on localhost. Each node's socket handler
+ * is a SimulatedSocketHandler registered here by its port number. Links have a
+ * latency, a bandwidth and a loss rate; packets are delivered in order of the
+ * time they arrive, and packets which arrive at the same time in the order they
+ * were sent.
+ *
+ * The network has its own clock. By default it follows the system clock and a
+ * thread delivers packets as they become due. With a manual clock, nothing
+ * happens until the caller calls advanceTime(), which delivers everything
+ * due on the calling thread, in an order which only depends on the seed and
+ * on what was sent. The manual clock starts at the current time, so packets
+ * carry plausible timestamps. It only covers delivery: a node's Ticker and
+ * Executor still run on the system clock and their own threads, so a
+ * simulation of whole nodes is not reproducible even with the same seed. The
+ * manual clock is for driving endpoints directly, as the unit tests do.
+ *
+ * Install the network with install() before creating the nodes, and NodeCrypto
+ * will use it rather than opening a socket.
+ */
+public class SimulatedNetwork implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedNetwork.class);
+	}
+
+	private static SimulatedNetwork installed;
+
+	/** Use this network for the nodes created from now on. Null to use real sockets again. */
+	public static synchronized void install(SimulatedNetwork network) {
+		installed = network;
+	}
+
+	public static synchronized SimulatedNetwork getInstalled() {
+		return installed;
+	}
+
+	/** The simulated address of every node. */
+	static final InetAddress ADDRESS;
+
+	static {
+		try {
+			ADDRESS = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+		} catch (UnknownHostException e) {
+			throw new Error(e);
+		}
+	}
+
+	/** Properties of a link in one direction. */
+	public static final class LinkParameters {
+		/** One way delay in milliseconds */
+		public final int latency;
+		/** Bytes per second, 0 for unlimited */
+		public final int bandwidth;
+		/** Probability of losing a packet */
+		public final double loss;
+
+		public LinkParameters(int latency, int bandwidth, double loss) {
+			if(latency < 0 || bandwidth < 0 || loss < 0.0 || loss > 1.0)
+				throw new IllegalArgumentException();
+			this.latency = latency;
+			this.bandwidth = bandwidth;
+			this.loss = loss;
+		}
+
+		@Override
+		public String toString() {
+			return latency + "ms, " + (bandwidth == 0 ? "unlimited" : bandwidth + "B/s") + ", loss " + loss;
+		}
+	}
+
+	/** Something with a port on the network: a node's SimulatedSocketHandler. */
+	interface Endpoint {
+		int getPortNumber();
+		/** @return The bytes of headers each packet costs on a link, on top of its data. */
+		int getHeadersLength();
+		/** Called by the network when a packet arrives. */
+		void receive(byte[] data, Peer from, long now);
+	}
+
+	private static final class Delivery implements Comparable<Delivery> {
+		final long time;
+		final long seq;
+		final Endpoint from;
+		final Endpoint to;
+		final byte[] data;
+
+		Delivery(long time, long seq, Endpoint from, Endpoint to, byte[] data) {
+			this.time = time;
+			this.seq = seq;
+			this.from = from;
+			this.to = to;
+			this.data = data;
+		}
+
+		public int compareTo(Delivery d) {
+			if(time != d.time) return time < d.time ? -1 : 1;
+			if(seq != d.seq) return seq < d.seq ? -1 : 1;
+			return 0;
+		}
+	}
+
+	private final HashMap<Integer, Endpoint> handlers = new HashMap<Integer, Endpoint>();
+	private final HashMap<Long, LinkParameters> links = new HashMap<Long, LinkParameters>();
+	/** When the link from each port is next free to start sending, for bandwidth limiting */
+	private final HashMap<Long, Long> linkBusyUntil = new HashMap<Long, Long>();
+	private final PriorityQueue<Delivery> queue = new PriorityQueue<Delivery>();
+	private final Random random;
+	private final boolean manualClock;
+	private LinkParameters defaultLink;
+	private long now;
+	private long seq;
+	private boolean started;
+	private boolean stopped;
+
+	private long packetsSent;
+	private long bytesSent;
+	private long packetsLost;
+	private long packetsUndeliverable;
+	private long packetsDelivered;
+	private long bytesDelivered;
+
+	/**
+	 * @param seed Seed for packet loss.
+	 * @param defaultLink The parameters of every link which hasn't been set with setLink().
+	 * @param manualClock If true, time only passes when advanceTime() is called.
+	 */
+	public SimulatedNetwork(long seed, LinkParameters defaultLink, boolean manualClock) {
+		random = new Random(seed);
+		this.defaultLink = defaultLink;
+		this.manualClock = manualClock;
+		now = System.currentTimeMillis();
+	}
+
+	private static Long linkKey(int fromPort, int toPort) {
+		return Long.valueOf(((long) fromPort << 32) | (toPort & 0xFFFFFFFFL));
+	}
+
+	public synchronized void setDefaultLink(LinkParameters link) {
+		defaultLink = link;
+	}
+
+	/** Set the parameters of the link from one node to another. */
+	public synchronized void setLink(int fromPort, int toPort, LinkParameters link) {
+		links.put(linkKey(fromPort, toPort), link);
+	}
+
+	public synchronized LinkParameters getLink(int fromPort, int toPort) {
+		LinkParameters link = links.get(linkKey(fromPort, toPort));
+		return link == null ? defaultLink : link;
+	}
+
+	/** @return The time on the network's clock. */
+	public synchronized long now() {
+		if(!manualClock) now = Math.max(now, System.currentTimeMillis());
+		return now;
+	}
+
+	public boolean hasManualClock() {
+		return manualClock;
+	}
+
+	synchronized void register(Endpoint handler) {
+		Integer port = Integer.valueOf(handler.getPortNumber());
+		if(handlers.containsKey(port))
+			throw new IllegalStateException("Port "+port+" already in use on "+this);
+		handlers.put(port, handler);
+	}
+
+	synchronized void unregister(Endpoint handler) {
+		Integer port = Integer.valueOf(handler.getPortNumber());
+		if(handlers.get(port) == handler)
+			handlers.remove(port);
+	}
+
+	/** @return A port number nobody is using, for a node which doesn't care which. */
+	public synchronized int getFreePort() {
+		for(int port = 1024; port <= 65535; port++)
+			if(!handlers.containsKey(Integer.valueOf(port))) return port;
+		throw new IllegalStateException("No free ports on "+this);
+	}
+
+	/** Queue a packet for delivery. Called by the sender's socket handler. */
+	void send(Endpoint from, Peer destination, byte[] data) {
+		synchronized(this) {
+			long time = now();
+			packetsSent++;
+			bytesSent += data.length;
+			Endpoint to = handlers.get(Integer.valueOf(destination.getPort()));
+			if(to == null) {
+				packetsUndeliverable++;
+				if(logMINOR) Logger.minor(this, "Nobody on port "+destination.getPort()+" for packet from "+from);
+				return;
+			}
+			LinkParameters link = getLink(from.getPortNumber(), destination.getPort());
+			if(link.loss > 0.0 && random.nextDouble() < link.loss) {
+				packetsLost++;
+				return;
+			}
+			long sent = time;
+			if(link.bandwidth > 0) {
+				// Packets queue behind each other on the link.
+				Long key = linkKey(from.getPortNumber(), destination.getPort());
+				Long busy = linkBusyUntil.get(key);
+				if(busy != null && busy.longValue() > sent) sent = busy.longValue();
+				sent += (data.length + from.getHeadersLength()) * 1000L / link.bandwidth;
+				linkBusyUntil.put(key, Long.valueOf(sent));
+			}
+			queue.add(new Delivery(sent + link.latency, seq++, from, to, data));
+			if(!manualClock) notifyAll();
+		}
+	}
+
+	/** Start delivering packets in real time. Not needed with a manual clock. */
+	public synchronized void start() {
+		if(manualClock) throw new IllegalStateException("Manual clock: call advanceTime()");
+		if(started) return;
+		started = true;
+		Thread t = new Thread(this, "Simulated network delivery");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public void run() {
+		while(true) {
+			Delivery d;
+			synchronized(this) {
+				while(true) {
+					if(stopped) return;
+					Delivery next = queue.peek();
+					long time = now();
+					if(next != null && next.time <= time) {
+						d = queue.poll();
+						break;
+					}
+					try {
+						wait(next == null ? 1000 : Math.max(1, next.time - time));
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+			deliver(d);
+		}
+	}
+
+	/**
+	 * Move the manual clock forward, delivering every packet due by the new time,
+	 * including those sent in reply to packets delivered along the way.
+	 * @return The number of packets delivered.
+	 */
+	public int advanceTime(long millis) {
+		if(!manualClock) throw new IllegalStateException("Not a manual clock");
+		long target;
+		synchronized(this) {
+			target = now + millis;
+		}
+		int count = 0;
+		while(true) {
+			Delivery d;
+			synchronized(this) {
+				Delivery next = queue.peek();
+				if(next == null || next.time > target) {
+					now = target;
+					return count;
+				}
+				d = queue.poll();
+				if(d.time > now) now = d.time;
+			}
+			deliver(d);
+			count++;
+		}
+	}
+
+	private void deliver(Delivery d) {
+		long time;
+		synchronized(this) {
+			time = now;
+			if(handlers.get(Integer.valueOf(d.to.getPortNumber())) != d.to) {
+				// Closed while the packet was in flight
+				packetsUndeliverable++;
+				return;
+			}
+			packetsDelivered++;
+			bytesDelivered += d.data.length;
+		}
+		d.to.receive(d.data, new Peer(ADDRESS, d.from.getPortNumber()), manualClock ? time : System.currentTimeMillis());
+	}
+
+	/** @return Packets waiting to be delivered. */
+	public synchronized int queuedPackets() {
+		return queue.size();
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getBytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized long getPacketsLost() {
+		return packetsLost;
+	}
+
+	/** @return Packets sent to a port with nobody on it, or which was closed before they arrived. */
+	public synchronized long getPacketsUndeliverable() {
+		return packetsUndeliverable;
+	}
+
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	public synchronized long getBytesDelivered() {
+		return bytesDelivered;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "simulated network: "+handlers.size()+" nodes, default link "+defaultLink+", sent "+packetsSent+" packets ("+bytesSent+" bytes), delivered "+packetsDelivered+" ("+bytesDelivered+" bytes), lost "+packetsLost+", undeliverable "+packetsUndeliverable+", queued "+queue.size();
+	}
+}
@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import freenet.io.comm.Peer.LocalAddressException;
+import freenet.node.Node;
+import freenet.support.Logger;
+
+/**
+ * A socket handler which sends and receives packets through a SimulatedNetwork
+ * rather than a UDP socket. Everything above the socket, including the packet
+ * mangler and its handshakes, is unchanged.
+ */
+public class SimulatedSocketHandler extends UdpSocketHandler implements SimulatedNetwork.Endpoint {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SimulatedSocketHandler.class);
+	}
+
+	/** Same as UDP, so packet sizes and byte accounting match a real node. */
+	static final int MAX_PACKET_SIZE = MAX_ALLOWED_MTU - UDP_HEADERS_LENGTH;
+
+	private final SimulatedNetwork network;
+	private final Node node;
+	private final int port;
+	private final IOStatisticCollector collector;
+	private volatile boolean active = true;
+	private long startTime;
+
+	public SimulatedSocketHandler(SimulatedNetwork network, int port, Node node, long startupTime, String title, IOStatisticCollector collector) {
+		super(port, node, startupTime, title, collector);
+		this.network = network;
+		this.node = node;
+		this.port = port;
+		this.collector = collector;
+		network.register(this);
+	}
+
+	@Override
+	public void start() {
+		synchronized(this) {
+			startTime = System.currentTimeMillis();
+		}
+		getAddressTracker().startReceive(startTime);
+	}
+
+	@Override
+	public void close() {
+		Logger.normal(this, "Closing.");
+		active = false;
+		network.unregister(this);
+		getAddressTracker().storeData(node.bootID, node.getNodeDir(), port);
+	}
+
+	@Override
+	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		if(!active) {
+			Logger.error(this, "Trying to send packet but no longer active");
+			return;
+		}
+		int dropProbability = getDropProbability();
+		if(dropProbability > 0 && node.fastWeakRandom.nextInt() % dropProbability == 0) {
+			Logger.normal(this, "DROPPED: " + port + " -> " + destination.getPort());
+			return;
+		}
+		byte[] data = new byte[blockToSend.length];
+		System.arraycopy(blockToSend, 0, data, 0, data.length);
+		network.send(this, destination, data);
+		getAddressTracker().sentPacketTo(destination);
+		collector.addInfo(destination.toString(), 0, blockToSend.length + UDP_HEADERS_LENGTH);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+destination);
+	}
+
+	public void receive(byte[] data, Peer from, long now) {
+		if(!active) return;
+		collector.addInfo(from.toString(), data.length, 0);
+		receivedPacket(data, 0, data.length, from, now);
+	}
+
+	@Override
+	public int getMaxPacketSize() {
+		return MAX_PACKET_SIZE;
+	}
+
+	@Override
+	public int getPortNumber() {
+		return port;
+	}
+
+	@Override
+	public synchronized long getStartTime() {
+		return startTime;
+	}
+
+	public SimulatedNetwork getNetwork() {
+		return network;
+	}
+
+	@Override
+	public String toString() {
+		return "simulated:" + port;
+	}
+
+}
@@ -72,6 +72,25 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		tracker.startSend(startupTime);
 	}
 
+	/**
+	 * For transports which don't have a real socket, such as SimulatedSocketHandler. They
+	 * must override start(), close(), sendPacket(), getPortNumber() and toString(), and
+	 * pass incoming packets to receivedPacket().
+	 */
+	protected UdpSocketHandler(int listenPort, Node node, long startupTime, String title, IOStatisticCollector collector) {
+		this.node = node;
+		this.collector = collector;
+		this.title = title;
+		_bindTo = null;
+		this.listenPort = listenPort;
+		_sock = null;
+		dropRandom = node.fastWeakRandom;
+		logMINOR = Logger.shouldLog(Logger.MINOR, this);
+		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
+		tracker = AddressTracker.create(node.lastBootID, node.getNodeDir(), listenPort);
+		tracker.startSend(startupTime);
+	}
+
 	/** Must be called, or we will NPE in run() */
 	public void setLowLevelFilter(IncomingPacketFilter f) {
 		lowLevelFilter = f;
@@ -150,7 +169,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		if (gotPacket) {
 			long startTime = System.currentTimeMillis();
 			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
 			long endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
@@ -159,32 +177,35 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
+			receivedPacket(packet.getData(), packet.getOffset(), packet.getLength(), peer, now);
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
+	/** Pass a packet which has been received to the low level filter. */
+	protected void receivedPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		tracker.receivedPacketFrom(peer);
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
 	private boolean getPacket(DatagramPacket packet) {
@@ -23,7 +23,8 @@ public class CHKBlock implements KeyBlock {
     final byte[] headers;
     final short hashIdentifier;
     final NodeCHK chk;
-    final int hashCode;
+    /** Computed when first needed, most blocks are never put in a hash table */
+    private int hashCode;
     public static final int MAX_LENGTH_BEFORE_COMPRESSION = Integer.MAX_VALUE;
     public static final int TOTAL_HEADERS_LENGTH = 36;
     public static final int DATA_LENGTH = 32768;
@@ -52,6 +53,15 @@ public class CHKBlock implements KeyBlock {
     public static CHKBlock construct(byte[] data, byte[] header) throws CHKVerifyException {
     	return new CHKBlock(data, header, null, true, Key.ALGO_AES_PCFB_256_SHA256);
      }
+
+    /**
+     * Construct a block read back from the store under the given routing key,
+     * without hashing the data again. Only for blocks which were verified
+     * before they were stored.
+     */
+    public static CHKBlock constructTrusted(byte[] data, byte[] header, byte[] routingKey) throws CHKVerifyException {
+    	return new CHKBlock(data, header, new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256), false, Key.ALGO_AES_PCFB_256_SHA256);
+    }
     
     public CHKBlock(byte[] data2, byte[] header2, NodeCHK key) throws CHKVerifyException {
     	this(data2, header2, key, key.cryptoAlgorithm);
@@ -70,7 +80,6 @@ public class CHKBlock implements KeyBlock {
 //        Logger.debug(CHKBlock.class, "Data length: "+data.length+", header length: "+header.length);
         if((key != null) && !verify) {
         	this.chk = key;
-            hashCode = key.hashCode() ^ Fields.hashCode(data) ^ Fields.hashCode(headers) ^ cryptoAlgorithm;
         	return;
         }
         
@@ -94,7 +103,6 @@ public class CHKBlock implements KeyBlock {
             }
             // Otherwise it checks out
         }
-        hashCode = chk.hashCode() ^ Fields.hashCode(data) ^ Fields.hashCode(headers) ^ cryptoAlgorithm;
     }
 
 	public NodeCHK getKey() {
@@ -123,7 +131,12 @@ public class CHKBlock implements KeyBlock {
 	
 	@Override
 	public int hashCode() {
-		return hashCode;
+		int h = hashCode;
+		if(h == 0) {
+			h = chk.hashCode() ^ Fields.hashCode(data) ^ Fields.hashCode(headers) ^ chk.cryptoAlgorithm;
+			hashCode = h;
+		}
+		return h;
 	}
 	
 	@Override
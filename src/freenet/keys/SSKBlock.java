@@ -59,7 +59,8 @@ public class SSKBlock implements KeyBlock {
 	final DSAPublicKey pubKey;
     final short hashIdentifier;
     final short symCipherIdentifier;
-    final int hashCode;
+    /** Computed when first needed, most blocks are never put in a hash table */
+    private int hashCode;
     
     public static final short DATA_LENGTH = 1024;
     /* Maximum length of compressed payload */
@@ -94,7 +95,12 @@ public class SSKBlock implements KeyBlock {
     
     @Override
 	public int hashCode(){
-    	return hashCode;
+    	int h = hashCode;
+    	if(h == 0) {
+    		h = Fields.hashCode(data) ^ Fields.hashCode(headers) ^ nodeKey.hashCode() ^ pubKey.hashCode() ^ hashIdentifier;
+    		hashCode = h;
+    	}
+    	return h;
     }
     
 	/**
@@ -152,8 +158,10 @@ public class SSKBlock implements KeyBlock {
 			// Now verify it
 			NativeBigInteger r = new NativeBigInteger(1, bufR);
 			NativeBigInteger s = new NativeBigInteger(1, bufS);
-			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
-					(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
+			// Blocks are verified again on every store read and every offer, so use the cache.
+			// The second try only differs from the first when clipping the hash to 255 bits changed it.
+			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false, true) ||
+					((overallHash[0] & 0x80) != 0 && DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true, true)))) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
@@ -161,7 +169,6 @@ public class SSKBlock implements KeyBlock {
 		} // x isn't verified otherwise so no need to += SIG_R_LENGTH + SIG_S_LENGTH
 		if(!Arrays.equals(ehDocname, nodeKey.encryptedHashedDocname))
 			throw new SSKVerifyException("E(H(docname)) wrong - wrong key?? \nfrom headers: "+HexUtil.bytesToHex(ehDocname)+"\nfrom key:     "+HexUtil.bytesToHex(nodeKey.encryptedHashedDocname));
-		hashCode = Fields.hashCode(data) ^ Fields.hashCode(headers) ^ nodeKey.hashCode() ^ pubKey.hashCode() ^ hashIdentifier;
 	}
 
 	public NodeSSK getKey() {
@@ -2121,22 +2121,22 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 	}
 
 	/* (non-Javadoc)
-	 * @see freenet.node.OutgoingPacketMangler#processOutgoingOrRequeue(freenet.node.MessageItem[], freenet.node.PeerNode, boolean, boolean)
+	 * @see freenet.node.OutgoingPacketMangler#processOutgoingOrRequeue(freenet.node.MessageItem[], int, freenet.node.PeerNode, boolean, boolean)
 	 */
-	public boolean processOutgoingOrRequeue(MessageItem[] messages, PeerNode pn, boolean dontRequeue, boolean onePacket) throws BlockedTooLongException {
+	public boolean processOutgoingOrRequeue(MessageItem[] messages, int messageCount, PeerNode pn, boolean dontRequeue, boolean onePacket) throws BlockedTooLongException {
 		String requeueLogString = "";
 		if(!dontRequeue) {
 			requeueLogString = ", requeueing";
 		}
-		if(logMINOR) Logger.minor(this, "processOutgoingOrRequeue "+messages.length+" messages for "+pn);
-		byte[][] messageData = new byte[messages.length][];
-		MessageItem[] newMsgs = new MessageItem[messages.length];
+		if(logMINOR) Logger.minor(this, "processOutgoingOrRequeue "+messageCount+" messages for "+pn);
+		byte[][] messageData = new byte[messageCount][];
+		MessageItem[] newMsgs = new MessageItem[messageCount];
 		SessionKey kt = pn.getCurrentKeyTracker();
 		if(kt == null) {
 			Logger.error(this, "Not connected while sending packets: "+pn);
 			if(!dontRequeue) {
-				for(MessageItem item : messages)
-					item.onDisconnect();
+				for(int i=0;i<messageCount;i++)
+					messages[i].onDisconnect();
 			}
 			return false;
 		}
@@ -2145,7 +2145,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			if(logMINOR) Logger.minor(this, "Would block: "+kt);
 			// Requeue
 			if(!dontRequeue) {
-				pn.requeueMessageItems(messages, 0, messages.length, false, "WouldBlock");
+				pn.requeueMessageItems(messages, 0, messageCount, false, "WouldBlock");
 			}
 			return false;
 		}
@@ -2171,7 +2171,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 					// Requeue
 					if(!dontRequeue) {
 						pn.requeueMessageItems(newMsgs, 0, x, false, "NotConnectedException(1a)");
-						pn.requeueMessageItems(messages, i, messages.length-i, false, "NotConnectedException(1b)");
+						pn.requeueMessageItems(messages, i, messageCount-i, false, "NotConnectedException(1b)");
 					}
 					return false;
 				} catch (WouldBlockException e) {
@@ -2179,7 +2179,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 					// Requeue
 					if(!dontRequeue) {
 						pn.requeueMessageItems(newMsgs, 0, x, false, "WouldBlockException(1a)");
-						pn.requeueMessageItems(messages, i, messages.length-i, false, "WouldBlockException(1b)");
+						pn.requeueMessageItems(messages, i, messageCount-i, false, "WouldBlockException(1b)");
 					}
 					return false;
 				} catch (KeyChangedException e) {
@@ -2187,7 +2187,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 					// Requeue
 					if(!dontRequeue) {
 						pn.requeueMessageItems(newMsgs, 0, x, false, "KeyChangedException(1a)");
-						pn.requeueMessageItems(messages, i, messages.length-i, false, "KeyChangedException(1b)");
+						pn.requeueMessageItems(messages, i, messageCount-i, false, "KeyChangedException(1b)");
 					}
 					return false;
 				} catch (Throwable e) {
@@ -2195,7 +2195,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 					// Requeue
 					if(!dontRequeue) {
 						pn.requeueMessageItems(newMsgs, 0, x, false, "Throwable(1)");
-						pn.requeueMessageItems(messages, i, messages.length-i, false, "Throwable(1)");
+						pn.requeueMessageItems(messages, i, messageCount-i, false, "Throwable(1)");
 					}
 					return false;
 				}
@@ -2221,11 +2221,12 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			newMsgs = new MessageItem[x];
 			System.arraycopy(messages, 0, newMsgs, 0, x);
 			messages = newMsgs;
+			messageCount = x;
 		}
 		AsyncMessageCallback callbacks[] = new AsyncMessageCallback[callbacksCount];
 		x=0;
 		short priority = DMT.PRIORITY_BULK_DATA;
-		for(int i=0;i<messages.length;i++) {
+		for(int i=0;i<messageCount;i++) {
 			if(messages[i].formatted) continue;
 			if(messages[i].cb != null) {
 				System.arraycopy(messages[i].cb, 0, callbacks, x, messages[i].cb.length);
@@ -2254,19 +2255,19 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 				Logger.normal(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString);
 				// Requeue
 				if(!dontRequeue)
-					pn.requeueMessageItems(messages, 0, messages.length, false, "NotConnectedException(2)");
+					pn.requeueMessageItems(messages, 0, messageCount, false, "NotConnectedException(2)");
 				return false;
 			} catch (WouldBlockException e) {
 				if(logMINOR) Logger.minor(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString, e);
 				// Requeue
 				if(!dontRequeue)
-					pn.requeueMessageItems(messages, 0, messages.length, false, "WouldBlockException(2)");
+					pn.requeueMessageItems(messages, 0, messageCount, false, "WouldBlockException(2)");
 				return false;
 			} catch (Throwable e) {
 				Logger.error(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString, e);
 				// Requeue
 				if(!dontRequeue)
-					pn.requeueMessageItems(messages, 0, messages.length, false, "Throwable(2)");
+					pn.requeueMessageItems(messages, 0, messageCount, false, "Throwable(2)");
 				return false;
 
 			}
@@ -2282,11 +2283,11 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 			for(int i=0;i<=messageData.length;i++) {
 				if(logMINOR) Logger.minor(this, "Sending message "+i);
 				int thisLength;
-				if(i == messages.length) thisLength = 0;
+				if(i == messageCount) thisLength = 0;
 				else thisLength = (messageData[i].length + 2);
 				int newLength = length + thisLength;
 				count++;
-				if((newLength + HEADERS_LENGTH_MINIMUM > sock.getMaxPacketSize()) || (count > 255) || (i == messages.length)) {
+				if((newLength + HEADERS_LENGTH_MINIMUM > sock.getMaxPacketSize()) || (count > 255) || (i == messageCount)) {
 					// lastIndex up to the message right before this one
 					// e.g. lastIndex = 0, i = 1, we just send message 0
 					if(lastIndex != i) {
@@ -2306,21 +2307,21 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 							Logger.normal(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString);
 							// Requeue
 							if(!dontRequeue) {
-								pn.requeueMessageItems(messages, lastIndex, messages.length - lastIndex, false, "NotConnectedException(3)");
+								pn.requeueMessageItems(messages, lastIndex, messageCount - lastIndex, false, "NotConnectedException(3)");
 							}
 							return false;
 						} catch (WouldBlockException e) {
 							if(logMINOR) Logger.minor(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString, e);
 							// Requeue
 							if(!dontRequeue) {
-								pn.requeueMessageItems(messages, lastIndex, messages.length - lastIndex, false, "WouldBlockException(3)");
+								pn.requeueMessageItems(messages, lastIndex, messageCount - lastIndex, false, "WouldBlockException(3)");
 							}
 							return false;
 						} catch (Throwable e) {
 							Logger.error(this, "Caught "+e+" while sending messages ("+mi_name+") to "+pn.getPeer()+requeueLogString, e);
 							// Requeue
 							if(!dontRequeue) {
-								pn.requeueMessageItems(messages, lastIndex, messages.length - lastIndex, false, "Throwable(3)");
+								pn.requeueMessageItems(messages, lastIndex, messageCount - lastIndex, false, "Throwable(3)");
 							}
 							return false;
 						}
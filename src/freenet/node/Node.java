@@ -18,8 +18,12 @@ import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -35,6 +39,7 @@ import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.NotAvailNodeStoreStats;
 import freenet.node.stats.StoreCallbackStats;
+import freenet.node.stats.StoreTierStats;
 import org.spaceroots.mantissa.random.MersenneTwister;
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -119,22 +124,28 @@ import freenet.node.useralerts.NotEnoughNiceLevelsUserAlert;
 import freenet.node.useralerts.SimpleUserAlert;
 import freenet.node.useralerts.TimeSkewDetectedUserAlert;
 import freenet.node.useralerts.UserAlert;
+import freenet.node.useralerts.UserAlertManager;
 import freenet.pluginmanager.ForwardPort;
 import freenet.pluginmanager.PluginManager;
 import freenet.pluginmanager.PluginStore;
 import freenet.store.BerkeleyDBFreenetStore;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
+import freenet.store.HotBlockCache;
 import freenet.store.KeyCollisionException;
 import freenet.store.NullFreenetStore;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
 import freenet.store.SSKStore;
+import freenet.store.ShardedFreenetStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreScrubber;
+import freenet.store.StoreVolume;
 import freenet.store.BlockMetadata;
 import freenet.store.FreenetStore.StoreType;
+import freenet.store.logstructured.LogStructuredFreenetStore;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Executor;
 import freenet.support.Fields;
@@ -154,6 +165,7 @@ import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.api.ShortCallback;
+import freenet.support.api.StringArrCallback;
 import freenet.support.api.StringCallback;
 import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.Closer;
@@ -263,11 +275,19 @@ public class Node implements TimeSkewDetectorCallback {
 
 
 	public <T extends StorableBlock> void closeOldStore(StoreCallback<T> old) {
-		FreenetStore<T> store = old.getStore();
+		for(FreenetStore<T> store : shardsOf(old.getStore()))
+			closeOldStore(store);
+	}
+
+	private <T extends StorableBlock> void closeOldStore(FreenetStore<T> store) {
 		if(store instanceof SaltedHashFreenetStore) {
 			SaltedHashFreenetStore<T> saltstore = (SaltedHashFreenetStore<T>) store;
 			saltstore.close();
 			saltstore.destruct();
+		} else if(store instanceof LogStructuredFreenetStore) {
+			LogStructuredFreenetStore<T> logstore = (LogStructuredFreenetStore<T>) store;
+			logstore.close();
+			logstore.destruct();
 		}
 	}
 
@@ -367,6 +387,38 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
+	/** Chooses the on-disk format for one type of block, when storeType is salt-hash. */
+	private class StoreBackendCallback extends StringCallback implements EnumerableOptionCallback {
+
+		private final StoreType type;
+
+		StoreBackendCallback(StoreType type) {
+			this.type = type;
+		}
+
+		@Override
+		public String get() {
+			synchronized(Node.this) {
+				return storeBackends[type.ordinal()];
+			}
+		}
+
+		@Override
+		public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+			if(!val.equals(STORE_BACKEND_SALT_HASH) && !val.equals(STORE_BACKEND_LOG_STRUCTURED))
+				throw new InvalidConfigValueException("Invalid store backend");
+			synchronized(Node.this) {
+				if(val.equals(storeBackends[type.ordinal()])) return;
+				storeBackends[type.ordinal()] = val;
+			}
+			throw new NodeNeedRestartException("Store backend cannot be changed on the fly");
+		}
+
+		public String[] getPossibleValues() {
+			return new String[] { STORE_BACKEND_SALT_HASH, STORE_BACKEND_LOG_STRUCTURED };
+		}
+	}
+
 	private class ClientCacheTypeCallback extends StringCallback implements EnumerableOptionCallback {
 
 		@Override
@@ -542,12 +594,24 @@ public class Node implements TimeSkewDetectorCallback {
 
 	/** Datastore directory */
 	private final File storeDir;
+	/** Extra directories to spread the stores over, as configured */
+	private String[] storeVolumeDirs;
+	/** Volumes the stores are sharded over, storeDir first. Empty if not sharded. */
+	private final List<StoreVolume> storeVolumes = new ArrayList<StoreVolume>();
 
 	/** Datastore properties */
 	private String storeType;
 	private int storeBloomFilterSize;
 	private final boolean storeBloomFilterCounting;
 	private boolean storeSaltHashResizeOnStart;
+	private long storeSaltHashMaintenanceRate;
+	static final String STORE_BACKEND_SALT_HASH = "salt-hash";
+	static final String STORE_BACKEND_LOG_STRUCTURED = "log-structured";
+	/** Format of the CHK, pubkey and SSK stores and caches, indexed by StoreType */
+	private final String[] storeBackends = new String[StoreType.values().length];
+	private long storeLogStructuredGCRate;
+	/** Lets the on-disk stores skip verifying blocks they read back, and checks a sample of them instead */
+	private final StoreScrubber storeScrubber = new StoreScrubber(true, StoreScrubber.DEFAULT_BLOCKS_PER_SECOND);
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -615,6 +679,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	// FIXME make the first two configurable
 	private long maxSlashdotCacheSize;
+	/** Verified blocks in RAM, checked before any of the stores */
+	private HotBlockCache hotBlockCache;
+	private long maxHotBlockCacheSize;
+	/** Which tier answered each fetch(), and how quickly */
+	public final StoreTierStats storeTierStats = new StoreTierStats();
 	private int maxSlashdotCacheKeys;
 	static final long PURGE_INTERVAL = 60*1000;
 
@@ -2071,6 +2140,87 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMaintenanceRate", "4M", sortOrder++, true, false,
+				"Node.storeSaltHashMaintenanceRate", "Node.storeSaltHashMaintenanceRateLong", new LongCallback() {
+			@Override
+			public Long get() {
+				return storeSaltHashMaintenanceRate;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val <= 0)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeSaltHashMaintenanceRate = val;
+				for(StoreCallback<?> cb : new StoreCallback<?>[] { chkDatastore, chkDatacache, pubKeyDatastore, pubKeyDatacache, sskDatastore, sskDatacache, chkClientcache, pubKeyClientcache, sskClientcache }) {
+					if(cb == null) continue;
+					for(FreenetStore<?> fs : shardsOf(cb.getStore()))
+						if(fs instanceof SaltedHashFreenetStore)
+							((SaltedHashFreenetStore<?>) fs).setCleanerBytesPerSecond(val);
+				}
+			}
+		}, true);
+		storeSaltHashMaintenanceRate = nodeConfig.getLong("storeSaltHashMaintenanceRate");
+
+		for(StoreType type : StoreType.values()) {
+			String option = "storeBackend" + type;
+			nodeConfig.register(option, STORE_BACKEND_SALT_HASH, sortOrder++, true, false,
+					"Node." + option, "Node." + option + "Long", new StoreBackendCallback(type));
+			storeBackends[type.ordinal()] = nodeConfig.getString(option);
+		}
+
+		nodeConfig.register("storeLogStructuredGCRate", "4M", sortOrder++, true, false,
+				"Node.storeLogStructuredGCRate", "Node.storeLogStructuredGCRateLong", new LongCallback() {
+			@Override
+			public Long get() {
+				return storeLogStructuredGCRate;
+			}
+
+			@Override
+			public void set(Long val) throws InvalidConfigValueException {
+				if(val <= 0)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeLogStructuredGCRate = val;
+				for(StoreCallback<?> cb : new StoreCallback<?>[] { chkDatastore, chkDatacache, pubKeyDatastore, pubKeyDatacache, sskDatastore, sskDatacache }) {
+					if(cb == null) continue;
+					for(FreenetStore<?> fs : shardsOf(cb.getStore()))
+						if(fs instanceof LogStructuredFreenetStore)
+							((LogStructuredFreenetStore<?>) fs).setGCBytesPerSecond(val);
+				}
+			}
+		}, true);
+		storeLogStructuredGCRate = nodeConfig.getLong("storeLogStructuredGCRate");
+
+		nodeConfig.register("storeTrustVerifiedBlocks", true, sortOrder++, true, false,
+				"Node.storeTrustVerifiedBlocks", "Node.storeTrustVerifiedBlocksLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeScrubber.trustStores();
+			}
+
+			@Override
+			public void set(Boolean val) {
+				storeScrubber.setTrustStores(val);
+			}
+		});
+		storeScrubber.setTrustStores(nodeConfig.getBoolean("storeTrustVerifiedBlocks"));
+
+		nodeConfig.register("storeScrubRate", StoreScrubber.DEFAULT_BLOCKS_PER_SECOND, sortOrder++, true, false,
+				"Node.storeScrubRate", "Node.storeScrubRateLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return storeScrubber.getBlocksPerSecond();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeScrubber.setBlocksPerSecond(val);
+			}
+		}, false);
+		storeScrubber.setBlocksPerSecond(nodeConfig.getInt("storeScrubRate"));
+
 		nodeConfig.register("storeDir", "datastore", sortOrder++, true, true, "Node.storeDirectory", "Node.storeDirectoryLong",
 				new StringCallback() {
 					@Override
@@ -2097,6 +2247,35 @@ public class Node implements TimeSkewDetectorCallback {
 			throw new NodeInitException(NodeInitException.EXIT_STORE_OTHER, msg);
 		}
 
+		nodeConfig.register("storeVolumes", new String[0], sortOrder++, true, true, "Node.storeVolumes", "Node.storeVolumesLong",
+				new StringArrCallback() {
+					@Override
+					public String[] get() {
+						synchronized(Node.this) {
+							return storeVolumeDirs;
+						}
+					}
+					@Override
+					public void set(String[] val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(Node.this) {
+							if(Arrays.equals(val, storeVolumeDirs)) return;
+							storeVolumeDirs = val;
+						}
+						throw new NodeNeedRestartException("Store volumes cannot be changed on the fly");
+					}
+		});
+		storeVolumeDirs = nodeConfig.getStringArr("storeVolumes");
+		if(storeVolumeDirs.length > 0) {
+			try {
+				storeVolumes.add(StoreVolume.open(storeDir, random, StoreVolume.DEFAULT_MAX_CONCURRENT_IO));
+				for(String dir : storeVolumeDirs)
+					storeVolumes.add(StoreVolume.open(new File(dir), random, StoreVolume.DEFAULT_MAX_CONCURRENT_IO));
+			} catch (IOException e) {
+				String msg = "Could not open store volume: "+e;
+				throw new NodeInitException(NodeInitException.EXIT_STORE_OTHER, msg);
+			}
+		}
+
 		maxStoreKeys = maxTotalKeys / 2;
 		maxCacheKeys = maxTotalKeys - maxStoreKeys;
 
@@ -2121,12 +2300,11 @@ public class Node implements TimeSkewDetectorCallback {
                     public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
 						storePreallocate = val;
 						if (storeType.equals("salt-hash")) {
-							((SaltedHashFreenetStore<CHKBlock>) chkDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore<CHKBlock>) chkDatacache.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatacache.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore<SSKBlock>) sskDatastore.getStore()).setPreallocate(val);
-							((SaltedHashFreenetStore<SSKBlock>) sskDatacache.getStore()).setPreallocate(val);
+							for (StoreCallback<?> cb : new StoreCallback<?>[] { chkDatastore, chkDatacache, pubKeyDatastore, pubKeyDatacache, sskDatastore, sskDatacache }) {
+								for (FreenetStore<?> fs : shardsOf(cb.getStore()))
+									if (fs instanceof SaltedHashFreenetStore)
+										((SaltedHashFreenetStore<?>) fs).setPreallocate(val);
+							}
 						}
                     }}
 		);
@@ -2487,6 +2665,33 @@ public class Node implements TimeSkewDetectorCallback {
 		sskSlashdotcache = new SSKStore(getPubKey);
 		sskSlashdotcacheStore = new SlashdotStore<SSKBlock>(sskSlashdotcache, maxSlashdotCacheKeys, slashdotCacheLifetime, PURGE_INTERVAL, ps, this.clientCore.tempBucketFactory);
 
+		nodeConfig.register("hotBlockCacheSize", "8M", sortOrder++, true, true, "Node.hotBlockCacheSize", "Node.hotBlockCacheSizeLong",
+				new LongCallback() {
+
+					@Override
+					public Long get() {
+						return maxHotBlockCacheSize;
+					}
+
+					@Override
+					public void set(Long val) throws InvalidConfigValueException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("invalidHotBlockCacheSize"));
+						synchronized(Node.this) {
+							maxHotBlockCacheSize = val;
+						}
+						hotBlockCache.setMaxSize(val);
+					}
+		}, true);
+
+		maxHotBlockCacheSize = nodeConfig.getLong("hotBlockCacheSize");
+
+		if(maxHotBlockCacheSize < 0) {
+			throw new NodeInitException(NodeInitException.EXIT_INVALID_STORE_SIZE, "Invalid hot block cache size");
+		}
+
+		hotBlockCache = new HotBlockCache(maxHotBlockCacheSize);
+
 		// MAXIMUM seclevel = no slashdot cache.
 
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
@@ -3077,6 +3282,7 @@ public class Node implements TimeSkewDetectorCallback {
 		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
 		envMutableConfig = null;
 		this.storeEnvironment = null;
+		clientCacheReplaced();
 	}
 
 	private void initNoClientCacheFS() {
@@ -3088,6 +3294,14 @@ public class Node implements TimeSkewDetectorCallback {
 		new NullFreenetStore<SSKBlock>(sskClientcache);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
+		clientCacheReplaced();
+	}
+
+	/** The hot block cache must not keep serving blocks from a client cache we no longer have. */
+	private void clientCacheReplaced() {
+		// Null during startup: the client cache is set up first.
+		if(hotBlockCache != null)
+			hotBlockCache.removeClientCacheBlocks();
 	}
 
 	private String getStoreSuffix() {
@@ -3096,12 +3310,12 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void finishInitSaltHashFS(final String suffix, NodeClientCore clientCore) {
 		if(clientCore.alerts == null) throw new NullPointerException();
-		((SaltedHashFreenetStore<CHKBlock>) chkDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore<CHKBlock>) chkDatacache.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore<DSAPublicKey>) pubKeyDatacache.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore<SSKBlock>) sskDatastore.getStore()).setUserAlertManager(clientCore.alerts);
-		((SaltedHashFreenetStore<SSKBlock>) sskDatacache.getStore()).setUserAlertManager(clientCore.alerts);
+		setUserAlertManager(chkDatastore, clientCore.alerts);
+		setUserAlertManager(chkDatacache, clientCore.alerts);
+		setUserAlertManager(pubKeyDatastore, clientCore.alerts);
+		setUserAlertManager(pubKeyDatacache, clientCore.alerts);
+		setUserAlertManager(sskDatastore, clientCore.alerts);
+		setUserAlertManager(sskDatacache, clientCore.alerts);
 
 		if (isBDBStoreExist(suffix)) {
 			clientCore.alerts.register(new SimpleUserAlert(true, NodeL10n.getBase().getString("Node.storeSaltHashMigratedShort"),
@@ -3211,28 +3425,28 @@ public class Node implements TimeSkewDetectorCallback {
 			        : (bloomSize + 6) / 6 * 8; // + 6 to make size different, trigger rebuild
 
 			final CHKStore chkDatastore = new CHKStore();
-			final SaltedHashFreenetStore<CHKBlock> chkDataFS = makeStore(bloomFilterSizeInM, "CHK", true, chkDatastore, dontResizeOnStart, masterKey);
+			final FreenetStore<CHKBlock> chkDataFS = makeStore(bloomFilterSizeInM, "CHK", true, chkDatastore, dontResizeOnStart, masterKey);
 			final CHKStore chkDatacache = new CHKStore();
-			final SaltedHashFreenetStore<CHKBlock> chkCacheFS = makeStore(bloomFilterSizeInM, "CHK", false, chkDatacache, dontResizeOnStart, masterKey);
-			chkCacheFS.setAltStore(chkDataFS);
+			final FreenetStore<CHKBlock> chkCacheFS = makeStore(bloomFilterSizeInM, "CHK", false, chkDatacache, dontResizeOnStart, masterKey);
+			setAltStore(chkCacheFS, chkDataFS);
 			final PubkeyStore pubKeyDatastore = new PubkeyStore();
-			final SaltedHashFreenetStore<DSAPublicKey> pubkeyDataFS = makeStore(bloomFilterSizeInM, "PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
+			final FreenetStore<DSAPublicKey> pubkeyDataFS = makeStore(bloomFilterSizeInM, "PUBKEY", true, pubKeyDatastore, dontResizeOnStart, masterKey);
 			final PubkeyStore pubKeyDatacache = new PubkeyStore();
-			final SaltedHashFreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore(bloomFilterSizeInM, "PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
-			pubkeyCacheFS.setAltStore(pubkeyDataFS);
+			final FreenetStore<DSAPublicKey> pubkeyCacheFS = makeStore(bloomFilterSizeInM, "PUBKEY", false, pubKeyDatacache, dontResizeOnStart, masterKey);
+			setAltStore(pubkeyCacheFS, pubkeyDataFS);
 			final SSKStore sskDatastore = new SSKStore(getPubKey);
-			final SaltedHashFreenetStore<SSKBlock> sskDataFS = makeStore(bloomFilterSizeInM, "SSK", true, sskDatastore, dontResizeOnStart, masterKey);
+			final FreenetStore<SSKBlock> sskDataFS = makeStore(bloomFilterSizeInM, "SSK", true, sskDatastore, dontResizeOnStart, masterKey);
 			final SSKStore sskDatacache = new SSKStore(getPubKey);
-			final SaltedHashFreenetStore<SSKBlock> sskCacheFS = makeStore(bloomFilterSizeInM, "SSK", false, sskDatacache, dontResizeOnStart, masterKey);
-			sskCacheFS.setAltStore(sskDataFS);
+			final FreenetStore<SSKBlock> sskCacheFS = makeStore(bloomFilterSizeInM, "SSK", false, sskDatacache, dontResizeOnStart, masterKey);
+			setAltStore(sskCacheFS, sskDataFS);
 
 			boolean delay =
-				chkDataFS.start(ps, false) |
-				chkCacheFS.start(ps, false) |
-				pubkeyDataFS.start(ps, false) |
-				pubkeyCacheFS.start(ps, false) |
-				sskDataFS.start(ps, false) |
-				sskCacheFS.start(ps, false);
+				startStore(chkDataFS, false) |
+				startStore(chkCacheFS, false) |
+				startStore(pubkeyDataFS, false) |
+				startStore(pubkeyCacheFS, false) |
+				startStore(sskDataFS, false) |
+				startStore(sskCacheFS, false);
 
 			if(delay) {
 
@@ -3247,12 +3461,12 @@ public class Node implements TimeSkewDetectorCallback {
 					public void run() {
 						System.err.println("Starting delayed init of datastore");
 						try {
-							chkDataFS.start(ps, true);
-							chkCacheFS.start(ps, true);
-							pubkeyDataFS.start(ps, true);
-							pubkeyCacheFS.start(ps, true);
-							sskDataFS.start(ps, true);
-							sskCacheFS.start(ps, true);
+							startStore(chkDataFS, true);
+							startStore(chkCacheFS, true);
+							startStore(pubkeyDataFS, true);
+							startStore(pubkeyCacheFS, true);
+							startStore(sskDataFS, true);
+							startStore(sskCacheFS, true);
 						} catch (IOException e) {
 							Logger.error(this, "Failed to start datastore: "+e, e);
 							System.err.println("Failed to start datastore: "+e);
@@ -3367,6 +3581,7 @@ public class Node implements TimeSkewDetectorCallback {
 						Node.this.pubKeyClientcache = pubKeyClientcache;
 						getPubKey.setLocalDataStore(pubKeyClientcache);
 						Node.this.sskClientcache = sskClientcache;
+						clientCacheReplaced();
 
 						System.err.println("Finishing delayed init of client-cache");
 						migrate.run();
@@ -3377,6 +3592,7 @@ public class Node implements TimeSkewDetectorCallback {
 				Node.this.pubKeyClientcache = pubKeyClientcache;
 				getPubKey.setLocalDataStore(pubKeyClientcache);
 				Node.this.sskClientcache = sskClientcache;
+				clientCacheReplaced();
 			}
 
 		} catch (IOException e) {
@@ -3386,7 +3602,9 @@ public class Node implements TimeSkewDetectorCallback {
 		}
     }
 
-	private <T extends StorableBlock> void tryMigrate(SaltedHashFreenetStore<T> chkDataFS, String type, boolean isStore, String suffix) {
+	private <T extends StorableBlock> void tryMigrate(FreenetStore<T> fs, String type, boolean isStore, String suffix) {
+		if(!(fs instanceof SaltedHashFreenetStore)) return;
+		SaltedHashFreenetStore<T> chkDataFS = (SaltedHashFreenetStore<T>) fs;
 		String store = isStore ? "store" : "cache";
 		chkDataFS.migrationFrom(//
 		        new File(storeDir, type + suffix + "."+store), //
@@ -3394,22 +3612,87 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeClientcache(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
-		SaltedHashFreenetStore<T> store = makeStore(bloomFilterSizeInM, type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+		cb.setScrubber(storeScrubber);
+		SaltedHashFreenetStore<T> store = makeStore(storeDir, bloomFilterSizeInM, type, "clientcache", maxClientCacheKeys, cb, dontResizeOnStart, clientCacheMasterKey);
 		return store;
 	}
 
-	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeStore(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
+	private <T extends StorableBlock> FreenetStore<T> makeStore(int bloomFilterSizeInM, String type, boolean isStore, StoreCallback<T> cb, boolean dontResizeOnStart, byte[] clientCacheMasterKey) throws IOException {
 		String store = isStore ? "store" : "cache";
 		long maxKeys = isStore ? maxStoreKeys : maxCacheKeys;
-		return makeStore(bloomFilterSizeInM, type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+		cb.setScrubber(storeScrubber);
+		String backend;
+		synchronized(this) {
+			backend = storeBackends[StoreType.valueOf(type).ordinal()];
+		}
+		// The log-structured store doesn't support an encrypted salt, so the client cache is always salt-hash.
+		boolean logStructured = STORE_BACKEND_LOG_STRUCTURED.equals(backend) && clientCacheMasterKey == null;
+		if(storeVolumes.isEmpty()) {
+			if(logStructured)
+				return makeLogStructuredStore(storeDir, type, store, maxKeys, cb);
+			return makeStore(storeDir, bloomFilterSizeInM, type, store, maxKeys, cb, dontResizeOnStart, clientCacheMasterKey);
+		}
+		int count = storeVolumes.size();
+		long shardKeys = ShardedFreenetStore.keysPerShard(maxKeys, count);
+		List<FreenetStore<T>> shards = new ArrayList<FreenetStore<T>>(count);
+		for(StoreVolume volume : storeVolumes) {
+			if(logStructured)
+				shards.add(makeLogStructuredStore(volume.getDir(), type, store, shardKeys, cb));
+			else
+				shards.add(makeStore(volume.getDir(), bloomFilterSizeInM / count, type, store, shardKeys, cb, dontResizeOnStart, clientCacheMasterKey));
+		}
+		return new ShardedFreenetStore<T>(cb, shards, storeVolumes);
+	}
+
+	private <T extends StorableBlock> LogStructuredFreenetStore<T> makeLogStructuredStore(File dir, String type, String store, long maxKeys, StoreCallback<T> cb) throws IOException {
+		Logger.normal(this, "Initializing log-structured "+type+" Data"+store+" in "+dir);
+		System.out.println("Initializing log-structured "+type+" Data"+store+" (" + maxKeys + " keys)");
+
+		LogStructuredFreenetStore<T> fs = new LogStructuredFreenetStore<T>(dir, type+"-"+store, cb, random, maxKeys, shutdownHook);
+		fs.setGCBytesPerSecond(storeLogStructuredGCRate);
+		return fs;
+	}
+
+	private <T extends StorableBlock> void setAltStore(FreenetStore<T> cache, FreenetStore<T> store) {
+		// Only salt-hash stores can overflow into each other.
+		SaltedHashFreenetStore.setAltStore(cache, store);
 	}
 
-	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeStore(int bloomFilterSizeInM, String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
-		Logger.normal(this, "Initializing "+type+" Data"+store);
+	/** @return True if the start must be completed later, see SaltedHashFreenetStore.start(). */
+	private boolean startStore(FreenetStore<?> fs, boolean longStart) throws IOException {
+		if(fs instanceof ShardedFreenetStore) {
+			boolean later = false;
+			for(FreenetStore<?> shard : ((ShardedFreenetStore<?>) fs).getShards())
+				later |= startStore(shard, longStart);
+			return later;
+		}
+		if(fs instanceof SaltedHashFreenetStore)
+			return ((SaltedHashFreenetStore<?>) fs).start(ps, longStart);
+		if(fs instanceof LogStructuredFreenetStore)
+			((LogStructuredFreenetStore<?>) fs).start(ps);
+		return false;
+	}
+
+	private void setUserAlertManager(StoreCallback<?> cb, UserAlertManager alerts) {
+		for(FreenetStore<?> fs : shardsOf(cb.getStore()))
+			if(fs instanceof SaltedHashFreenetStore)
+				((SaltedHashFreenetStore<?>) fs).setUserAlertManager(alerts);
+	}
+
+	/** @return The stores making up a store: its shards if it is sharded, otherwise the store itself. */
+	private static <T extends StorableBlock> List<FreenetStore<T>> shardsOf(FreenetStore<T> fs) {
+		if(fs instanceof ShardedFreenetStore)
+			return ((ShardedFreenetStore<T>) fs).getShards();
+		return Collections.singletonList(fs);
+	}
+
+	private <T extends StorableBlock> SaltedHashFreenetStore<T> makeStore(File dir, int bloomFilterSizeInM, String type, String store, long maxKeys, StoreCallback<T> cb, boolean lateStart, byte[] clientCacheMasterKey) throws IOException {
+		Logger.normal(this, "Initializing "+type+" Data"+store+" in "+dir);
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
-		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(storeDir, type+"-"+store, cb,
+		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(dir, type+"-"+store, cb,
 		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ps : null, clientCacheMasterKey);
+		fs.setCleanerBytesPerSecond(storeSaltHashMaintenanceRate);
 		cb.setStore(fs);
 		return fs;
 	}
@@ -3573,6 +3856,7 @@ public class Node implements TimeSkewDetectorCallback {
 			opennet.start();
 		ps.start(nodeStats);
 		usm.start(ps);
+		storeScrubber.start(getTicker(), executor);
 
 		if(isUsingWrapper()) {
 			Logger.normal(this, "Using wrapper correctly: "+nodeStarter);
@@ -3984,12 +4268,21 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		if(meta == null) meta = new BlockMetadata();
+		SSKBlock hot = (SSKBlock) hotBlockCache.get(key, canReadClientCache, meta);
+		if(hot != null) {
+			storeTierStats.report(StoreTierStats.HOT_CACHE, System.nanoTime() - startTime);
+			return hot;
+		}
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
 		if(canReadClientCache) {
 			try {
 				SSKBlock block = sskClientcache.fetch(key, dontPromote || !canWriteClientCache, canReadClientCache, forULPR, meta);
 				if(block != null) {
+					hotBlockCache.offer(key, block, true, meta.isOldBlock());
+					storeTierStats.report(StoreTierStats.CLIENT_CACHE, System.nanoTime() - startTime);
 					nodeStats.avgClientCacheSSKSuccess.report(loc);
 					if (dist > nodeStats.furthestClientCacheSSKSuccess)
 					nodeStats.furthestClientCacheSSKSuccess=dist;
@@ -4004,6 +4297,7 @@ public class Node implements TimeSkewDetectorCallback {
 			try {
 				SSKBlock block = sskSlashdotcache.fetch(key, dontPromote, canReadClientCache, forULPR, meta);
 				if(block != null) {
+					storeTierStats.report(StoreTierStats.SLASHDOT_CACHE, System.nanoTime() - startTime);
 					nodeStats.avgSlashdotCacheSSKSuccess.report(loc);
 					if (dist > nodeStats.furthestSlashdotCacheSSKSuccess)
 					nodeStats.furthestSlashdotCacheSSKSuccess=dist;
@@ -4025,6 +4319,8 @@ public class Node implements TimeSkewDetectorCallback {
 					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, meta);
 			}
 			if(block != null) {
+				hotBlockCache.offer(key, block, false, meta.isOldBlock());
+				storeTierStats.report(StoreTierStats.STORE, System.nanoTime() - startTime);
 			nodeStats.avgStoreSSKSuccess.report(loc);
 			if (dist > nodeStats.furthestStoreSSKSuccess)
 				nodeStats.furthestStoreSSKSuccess=dist;
@@ -4038,9 +4334,13 @@ public class Node implements TimeSkewDetectorCallback {
 					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR, meta);
 			}
 			if (block != null) {
+				hotBlockCache.offer(key, block, false, meta.isOldBlock());
+				storeTierStats.report(StoreTierStats.CACHE, System.nanoTime() - startTime);
 			nodeStats.avgCacheSSKSuccess.report(loc);
 			if (dist > nodeStats.furthestCacheSSKSuccess)
 				nodeStats.furthestCacheSSKSuccess=dist;
+			} else {
+				storeTierStats.report(StoreTierStats.MISS, System.nanoTime() - startTime);
 			}
 			if(logDEBUG) Logger.debug(this, "Found key "+key+" in cache");
 			return block;
@@ -4051,12 +4351,21 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
+		long startTime = System.nanoTime();
+		if(meta == null) meta = new BlockMetadata();
+		CHKBlock hot = (CHKBlock) hotBlockCache.get(key, canReadClientCache, meta);
+		if(hot != null) {
+			storeTierStats.report(StoreTierStats.HOT_CACHE, System.nanoTime() - startTime);
+			return hot;
+		}
 		double loc=key.toNormalizedDouble();
 		double dist=Location.distance(lm.getLocation(), loc);
 		if(canReadClientCache) {
 			try {
 				CHKBlock block = chkClientcache.fetch(key, dontPromote || !canWriteClientCache, meta);
 				if(block != null) {
+					hotBlockCache.offer(key, block, true, meta.isOldBlock());
+					storeTierStats.report(StoreTierStats.CLIENT_CACHE, System.nanoTime() - startTime);
 					nodeStats.avgClientCacheCHKSuccess.report(loc);
 					if (dist > nodeStats.furthestClientCacheCHKSuccess)
 					nodeStats.furthestClientCacheCHKSuccess=dist;
@@ -4070,6 +4379,7 @@ public class Node implements TimeSkewDetectorCallback {
 			try {
 				CHKBlock block = chkSlashdotcache.fetch(key, dontPromote, meta);
 				if(block != null) {
+					storeTierStats.report(StoreTierStats.SLASHDOT_CACHE, System.nanoTime() - startTime);
 					nodeStats.avgSlashdotCacheCHKSucess.report(loc);
 					if (dist > nodeStats.furthestSlashdotCacheCHKSuccess)
 					nodeStats.furthestSlashdotCacheCHKSuccess=dist;
@@ -4089,6 +4399,8 @@ public class Node implements TimeSkewDetectorCallback {
 					block = store.fetch(key, dontPromote || !canWriteDatastore, meta);
 			}
 			if (block != null) {
+				hotBlockCache.offer(key, block, false, meta.isOldBlock());
+				storeTierStats.report(StoreTierStats.STORE, System.nanoTime() - startTime);
 				nodeStats.avgStoreCHKSuccess.report(loc);
 				if (dist > nodeStats.furthestStoreCHKSuccess)
 					nodeStats.furthestStoreCHKSuccess=dist;
@@ -4101,9 +4413,13 @@ public class Node implements TimeSkewDetectorCallback {
 					block = store.fetch(key, dontPromote || !canWriteDatastore, meta);
 			}
 			if (block != null) {
+				hotBlockCache.offer(key, block, false, meta.isOldBlock());
+				storeTierStats.report(StoreTierStats.CACHE, System.nanoTime() - startTime);
 				nodeStats.avgCacheCHKSuccess.report(loc);
 				if (dist > nodeStats.furthestCacheCHKSuccess)
 					nodeStats.furthestCacheCHKSuccess=dist;
+			} else {
+				storeTierStats.report(StoreTierStats.MISS, System.nanoTime() - startTime);
 			}
 			return block;
 		} catch (IOException e) {
@@ -4167,7 +4483,19 @@ public class Node implements TimeSkewDetectorCallback {
 				"CHK Datastore: "+chkDatastore.hits()+ '/' +(chkDatastore.hits()+chkDatastore.misses())+ '/' +chkDatastore.keyCount()+
 				"\nCHK Datacache: "+chkDatacache.hits()+ '/' +(chkDatacache.hits()+chkDatacache.misses())+ '/' +chkDatacache.keyCount()+
 				"\nSSK Datastore: "+sskDatastore.hits()+ '/' +(sskDatastore.hits()+sskDatastore.misses())+ '/' +sskDatastore.keyCount()+
-				"\nSSK Datacache: "+sskDatacache.hits()+ '/' +(sskDatacache.hits()+sskDatacache.misses())+ '/' +sskDatacache.keyCount());
+				"\nSSK Datacache: "+sskDatacache.hits()+ '/' +(sskDatacache.hits()+sskDatacache.misses())+ '/' +sskDatacache.keyCount()+
+				"\nHot block cache: "+hotBlockCache.hits()+ '/' +(hotBlockCache.hits()+hotBlockCache.misses())+ '/' +hotBlockCache.keyCount()+
+				"\nLookups by tier: "+storeTierStats+
+				"\nStore reads not verified: "+storeScrubber+
+				(storeVolumes.isEmpty() ? "" : "\nStore volumes: "+storeVolumes));
+	}
+
+	public HotBlockCache getHotBlockCache() {
+		return hotBlockCache;
+	}
+
+	public StoreScrubber getStoreScrubber() {
+		return storeScrubber;
 	}
 
 	public void storeShallow(CHKBlock block, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
@@ -4239,6 +4567,8 @@ public class Node implements TimeSkewDetectorCallback {
 
 	public void store(SSKBlock block, boolean deep, boolean overwrite, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) throws KeyCollisionException {
 		try {
+			// The stores may end up with a different block for this key.
+			hotBlockCache.remove(block.getKey());
 			// Store the pubkey before storing the data, otherwise we can get a race condition and
 			// end up deleting the SSK data.
 			double loc = block.getKey().toNormalizedDouble();
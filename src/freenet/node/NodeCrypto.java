@@ -32,6 +32,8 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.Peer;
+import freenet.io.comm.SimulatedNetwork;
+import freenet.io.comm.SimulatedSocketHandler;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
 import freenet.keys.InsertableClientSSK;
@@ -110,7 +112,17 @@ public class NodeCrypto {
 
 		UdpSocketHandler u = null;
 
-		if(port > 65535) {
+		SimulatedNetwork simulated = SimulatedNetwork.getInstalled();
+		if(simulated != null) {
+			// Simulation: no real socket
+			if(port == -1)
+				port = simulated.getFreePort();
+			try {
+				u = new SimulatedSocketHandler(simulated, port, node, startupTime, getTitle(port), node.collector);
+			} catch (IllegalStateException e) {
+				throw new NodeInitException(NodeInitException.EXIT_IMPOSSIBLE_USM_PORT, "Could not use simulated port: "+port+" : "+e.getMessage());
+			}
+		} else if(port > 65535) {
 			throw new NodeInitException(NodeInitException.EXIT_IMPOSSIBLE_USM_PORT, "Impossible port number: "+port);
 		} else if(port == -1) {
 			// Pick a random port
@@ -24,12 +24,14 @@ public interface OutgoingPacketMangler {
 	 * Build one or more packets and send them, from a whole bunch of messages.
 	 * If any MessageItem's are formatted already, they will be sent as single packets.
 	 * Any packets which cannot be sent will be requeued on the PeerNode.
+	 * @param messages The messages to send. Only the first <code>count</code> are used.
+	 * @param count The number of messages.
 	 * @param onePacketOnly If true, we will only send one packet, and will requeue any
 	 * messages that don't fit in that single packet.
 	 * @return True if we sent a packet.
 	 * @throws BlockedTooLongException 
 	 */
-	public boolean processOutgoingOrRequeue(MessageItem[] messages, PeerNode pn,
+	public boolean processOutgoingOrRequeue(MessageItem[] messages, int count, PeerNode pn,
 			boolean dontRequeue, boolean onePacketOnly) throws BlockedTooLongException;
 
 	/**
@@ -66,6 +66,7 @@ public class PacketSender implements Runnable, Ticker {
 	long lastReceivedPacketFromAnyNode;
 	private Vector<ResendPacketItem> rpiTemp;
 	private int[] rpiIntTemp;
+	private MessageItem[] messagesTemp;
 
 	private final static class Job {
 		final String name;
@@ -89,6 +90,7 @@ public class PacketSender implements Runnable, Ticker {
 		myThread.setDaemon(true);
 		rpiTemp = new Vector<ResendPacketItem>();
 		rpiIntTemp = new int[64];
+		messagesTemp = new MessageItem[PeerMessageQueue.MAX_MESSAGES_PER_PACKET];
 	}
 
 	void start(NodeStats stats) {
@@ -210,7 +212,7 @@ public class PacketSender implements Runnable, Ticker {
 				}
 
 				try {
-				if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp)) {
+				if((canSendThrottled || !pn.shouldThrottle()) && pn.maybeSendPacket(now, rpiTemp, rpiIntTemp, messagesTemp)) {
 					canSendThrottled = false;
 					count = node.outputThrottle.getCount();
 					if(count > MAX_PACKET_SIZE)
@@ -3,14 +3,9 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Vector;
 
 import freenet.io.comm.AsyncMessageCallback;
-import freenet.io.comm.DMT;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.xfer.PacketThrottle;
 import freenet.support.DoublyLinkedList;
@@ -20,6 +15,7 @@ import freenet.support.LimitedRangeIntByteArrayMapElement;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.ReceivedPacketNumbers;
+import freenet.support.TimedIntQueue;
 import freenet.support.TimeUtil;
 import freenet.support.UpdatableSortedLinkedListKilledException;
 import freenet.support.UpdatableSortedLinkedListWithForeignIndex;
@@ -56,13 +52,13 @@ public class PacketTracker {
 	 * and when they become urgent. We always add to the end,
 	 * and we always remove from the beginning, so should always
 	 * be consistent. */
-	private final List<QueuedAck> ackQueue;
+	private final TimedIntQueue ackQueue;
 	/** Serial numbers of packets that we have forgotten. Usually
 	 * when we have forgotten a packet it just means that it has 
 	 * been shifted to another SessionKey because this one was
 	 * deprecated; the messages will get through in the end.
 	 */
-	private final List<QueuedForgotten> forgottenQueue;
+	private final TimedIntQueue forgottenQueue;
 	/** The highest incoming serial number we have ever seen
 	 * from the other side. Includes actual packets and resend
 	 * requests (provided they are within range). */
@@ -77,9 +73,11 @@ public class PacketTracker {
 	 * and the time at which they become urgent. In order of
 	 * the latter. */
 	private final UpdatableSortedLinkedListWithForeignIndex<QueuedAckRequest> ackRequestQueue;
-	/** Numbered packets that we need to send to the other side
-	 * because they asked for them. Just contains the numbers. */
-	private final HashSet<Integer> packetsToResend;
+	/** Buffer for grabResendPackets(). Numbered packets that we need to
+	 * send to the other side because they asked for them are flagged in
+	 * sentPacketsContents. Protected by sentPacketsContents. */
+	private LimitedRangeIntByteArrayMapElement[] resendTemp = new LimitedRangeIntByteArrayMapElement[16];
+	private final int[] resendCount = new int[1];
 	/** Ranges of packet numbers we have received from the other
 	 * side. */
 	private final ReceivedPacketNumbers packetNumbersReceived;
@@ -99,14 +97,13 @@ public class PacketTracker {
 	PacketTracker(PeerNode pn, long tid) {
 		trackerID = tid;
 		this.pn = pn;
-		ackQueue = new LinkedList<QueuedAck>();
-		forgottenQueue = new LinkedList<QueuedForgotten>();
+		ackQueue = new TimedIntQueue(32);
+		forgottenQueue = new TimedIntQueue(8);
 		highestSeenIncomingSerialNumber = -1;
 		// give some leeway
 		sentPacketsContents = new LimitedRangeIntByteArrayMap(128);
 		resendRequestQueue = new UpdatableSortedLinkedListWithForeignIndex<QueuedResendRequest>();
 		ackRequestQueue = new UpdatableSortedLinkedListWithForeignIndex<QueuedAckRequest>();
-		packetsToResend = new HashSet<Integer>();
 		packetNumbersReceived = new ReceivedPacketNumbers(512);
 		isDeprecated = false;
 		nextPacketNumber = pn.node.random.nextInt(100 * 1000);
@@ -154,11 +151,13 @@ public class PacketTracker {
 	public void queueAck(int seqNumber) {
 		if(logMINOR)
 			Logger.minor(this, "Queueing ack for " + seqNumber);
-		QueuedAck qa = new QueuedAck(seqNumber);
+		/** If not included on a packet in next 200ms, then
+		 * force a send of an otherwise empty packet.
+		 */
+		long urgentTime = System.currentTimeMillis() + 200;
 		synchronized(ackQueue) {
-			ackQueue.add(qa);
+			ackQueue.add(seqNumber, urgentTime);
 		}
-	// Will go urgent in 200ms
 	}
 
 	public void queueForgotten(int seqNumber) {
@@ -174,9 +173,9 @@ public class PacketTracker {
 				Logger.minor(this, msg);
 			}
 		}
-		QueuedForgotten qf = new QueuedForgotten(seqNumber);
+		long urgentTime = System.currentTimeMillis() + PacketSender.MAX_COALESCING_DELAY;
 		synchronized(forgottenQueue) {
-			forgottenQueue.add(qf);
+			forgottenQueue.add(seqNumber, urgentTime);
 		}
 	}
 
@@ -194,28 +193,6 @@ public class PacketTracker {
 		}
 	}
 
-	private final static class QueuedAck extends PacketActionItem {
-
-		QueuedAck(int packet) {
-			long now = System.currentTimeMillis();
-			packetNumber = packet;
-			/** If not included on a packet in next 200ms, then
-			 * force a send of an otherwise empty packet.
-			 */
-			urgentTime = now + 200;
-		}
-	}
-
-	// FIXME this is almost identical to QueuedAck, coalesce the classes
-	private final static class QueuedForgotten extends PacketActionItem {
-
-		QueuedForgotten(int packet) {
-			long now = System.currentTimeMillis();
-			packetNumber = packet;
-			urgentTime = now + PacketSender.MAX_COALESCING_DELAY;
-		}
-	}
-
 	private abstract class BaseQueuedResend<T extends BaseQueuedResend<T>> extends PacketActionItem
 		implements IndexableUpdatableSortedLinkedListItem<T> {
 
@@ -512,7 +489,6 @@ public class PacketTracker {
 	public synchronized void acknowledgedPackets(int[] seqNos) {
 		// FIXME locking: can we just sync on the first part, and not the callbacks? 
 		// acknowledgedPacket() only sync's on removeAckRequest, but as mentioned above we need to do a bit more...
-		AsyncMessageCallback[][] callbacks = new AsyncMessageCallback[seqNos.length][];
 		for(int i = 0; i < seqNos.length; i++) {
 			int realSeqNo = seqNos[i];
 			if(logMINOR)
@@ -522,21 +498,24 @@ public class PacketTracker {
 			} catch(UpdatableSortedLinkedListKilledException e) {
 				// Ignore, we are processing an incoming packet
 			}
-			if(logMINOR)
-				Logger.minor(this, "Removed ack request");
-			callbacks[i] = sentPacketsContents.getCallbacks(realSeqNo);
-			byte[] buf = sentPacketsContents.get(realSeqNo);
-			long timeAdded = sentPacketsContents.getTime(realSeqNo);
-			if(sentPacketsContents.remove(realSeqNo))
-				if(buf.length > Node.PACKET_SIZE) {
-					PacketThrottle throttle = pn.getThrottle();
-					throttle.notifyOfPacketAcknowledged();
-					throttle.setRoundTripTime(System.currentTimeMillis() - timeAdded);
-				}
+		}
+		if(logMINOR)
+			Logger.minor(this, "Removed ack requests");
+		LimitedRangeIntByteArrayMapElement[] removed = new LimitedRangeIntByteArrayMapElement[seqNos.length];
+		sentPacketsContents.removeAll(seqNos, removed);
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < removed.length; i++) {
+			LimitedRangeIntByteArrayMapElement element = removed[i];
+			if(element != null && element.data.length > Node.PACKET_SIZE) {
+				PacketThrottle throttle = pn.getThrottle();
+				throttle.notifyOfPacketAcknowledged();
+				throttle.setRoundTripTime(now - element.createdTime);
+			}
 		}
 		int cbCount = 0;
-		for(int i = 0; i < callbacks.length; i++) {
-			AsyncMessageCallback[] cbs = callbacks[i];
+		for(int i = 0; i < removed.length; i++) {
+			if(removed[i] == null) continue;
+			AsyncMessageCallback[] cbs = removed[i].callbacks;
 			if(cbs != null)
 				for(int j = 0; j < cbs.length; j++) {
 					cbs[j].acknowledged();
@@ -569,15 +548,16 @@ public class PacketTracker {
 		}
 		if(logMINOR)
 			Logger.minor(this, "Removed ack request");
-		callbacks = sentPacketsContents.getCallbacks(realSeqNo);
-		byte[] buf = sentPacketsContents.get(realSeqNo);
-		long timeAdded = sentPacketsContents.getTime(realSeqNo);
-		if(sentPacketsContents.remove(realSeqNo))
-			if(buf.length > Node.PACKET_SIZE) {
+		LimitedRangeIntByteArrayMapElement element = sentPacketsContents.removeAndGet(realSeqNo);
+		callbacks = null;
+		if(element != null) {
+			callbacks = element.callbacks;
+			if(element.data.length > Node.PACKET_SIZE) {
 				PacketThrottle throttle = pn.getThrottle();
 				throttle.notifyOfPacketAcknowledged();
-				throttle.setRoundTripTime(System.currentTimeMillis() - timeAdded);
+				throttle.setRoundTripTime(System.currentTimeMillis() - element.createdTime);
 			}
+		}
 		try {
 			wouldBlock(true);
 		} catch(BlockedTooLongException e) {
@@ -617,10 +597,8 @@ public class PacketTracker {
 		if(resendData != null) {
 			if(resendData.length > Node.PACKET_SIZE)
 				pn.getThrottle().notifyOfPacketLost();
-			synchronized(packetsToResend) {
-				packetsToResend.add(seqNumber);
-			}
-			pn.node.ps.wakeUp();
+			if(sentPacketsContents.markResend(seqNumber))
+				pn.node.ps.wakeUp();
 		} else {
 			synchronized(this) {
 				if(nextPacketNumber <= seqNumber) {
@@ -661,19 +639,13 @@ public class PacketTracker {
 
 	/**
 	 * Is there a queued ack with the given packet number?
-	 * FIXME: have a hashtable? The others do, but probably it
-	 * isn't necessary. We should be consistent about this -
-	 * either take it out of UpdatableSortedLinkedListWithForeignIndex,
-	 * or add one here.
+	 * A linear scan of a primitive array; the queue is drained on
+	 * every packet sent so it is short.
 	 */
 	private boolean queuedAck(int packetNumber) {
 		synchronized(ackQueue) {
-			for(QueuedAck qa : ackQueue) {
-				if(qa.packetNumber == packetNumber)
-					return true;
-			}
+			return ackQueue.contains(packetNumber);
 		}
-		return false;
 	}
 
 	/**
@@ -756,19 +728,11 @@ public class PacketTracker {
 		int[] acks;
 		synchronized(forgottenQueue) {
 			// Grab the acks and tell them they are sent
-			int length = forgottenQueue.size();
-			acks = new int[length];
-			int i = 0;
-
-			Iterator<QueuedForgotten> it = forgottenQueue.iterator();
-			while(it.hasNext()) {
-				QueuedForgotten ack = it.next();
-				acks[i++] = ack.packetNumber;
-				if(logMINOR)
-					Logger.minor(this, "Grabbing ack " + ack.packetNumber + " from " + this);
-				it.remove();	// sent
-			}
+			acks = forgottenQueue.grabAll();
 		}
+		if(logMINOR)
+			for(int ack : acks)
+				Logger.minor(this, "Grabbing ack " + ack + " from " + this);
 		return acks;
 	}
 
@@ -790,18 +754,11 @@ public class PacketTracker {
 		int[] acks;
 		synchronized(ackQueue) {
 			// Grab the acks and tell them they are sent
-			int length = ackQueue.size();
-			acks = new int[length];
-			int i = 0;
-			Iterator<QueuedAck> it = ackQueue.iterator();
-			while(it.hasNext()) {
-				QueuedAck ack = it.next();
-				acks[i++] = ack.packetNumber;
-				if(logMINOR)
-					Logger.minor(this, "Grabbing ack " + ack.packetNumber + " from " + this);
-			}
-			ackQueue.clear();
+			acks = ackQueue.grabAll();
 		}
+		if(logMINOR)
+			for(int ack : acks)
+				Logger.minor(this, "Grabbing ack " + ack + " from " + this);
 		return acks;
 	}
 
@@ -904,10 +861,7 @@ public class PacketTracker {
 	public long getNextUrgentTime() {
 		long earliestTime = Long.MAX_VALUE;
 		synchronized(ackQueue) {
-			if(!ackQueue.isEmpty()) {
-				QueuedAck qa = ackQueue.get(0);
-				earliestTime = qa.urgentTime;
-			}
+			earliestTime = ackQueue.firstTime();
 		}
 		PacketActionItem qr = null;
 		synchronized(resendRequestQueue) {
@@ -978,9 +932,6 @@ public class PacketTracker {
 		synchronized(ackRequestQueue) {
 			ackRequestQueue.kill();
 		}
-		synchronized(packetsToResend) {
-			packetsToResend.clear();
-		}
 		packetNumbersReceived.clear();
 		return elements;
 	}
@@ -1047,33 +998,18 @@ public class PacketTracker {
 		rpiTemp.clear();
 		long now = System.currentTimeMillis();
 		long fourRTTs = twoRTTs();
-		int count = 0;
-		synchronized(packetsToResend) {
-			int len = packetsToResend.size();
-			if(numbers.length < len)
-				numbers = new int[len * 2];
-			for(Iterator<Integer> it = packetsToResend.iterator(); it.hasNext();) {
-				int packetNo = it.next();
-				long resentTime = sentPacketsContents.getReaddedTime(packetNo);
-				if(now - resentTime > fourRTTs) {
-					// Either never resent, or resent at least 4 RTTs ago
-					numbers[count++] = packetNo;
-					it.remove();
-				}
-			}
-			packetsToResend.clear();
-		}
-		for(int i = 0; i < count; i++) {
-			int packetNo = numbers[i];
-			byte[] buf = sentPacketsContents.get(packetNo);
-			if(buf == null) {
-				if(logMINOR)
-					Logger.minor(this, "Contents null for " + packetNo + " in grabResendPackets on " + this);
-				continue; // acked already?
+		int count;
+		synchronized(sentPacketsContents) {
+			resendTemp = sentPacketsContents.grabResends(now, fourRTTs, resendTemp, resendCount);
+			count = resendCount[0];
+			if(numbers.length < count)
+				numbers = new int[count * 2];
+			for(int i = 0; i < count; i++) {
+				LimitedRangeIntByteArrayMapElement element = resendTemp[i];
+				resendTemp[i] = null;
+				numbers[i] = element.packetNumber;
+				rpiTemp.add(new ResendPacketItem(element.data, element.packetNumber, this, element.callbacks, element.priority));
 			}
-			AsyncMessageCallback[] callbacks = sentPacketsContents.getCallbacks(packetNo);
-			short priority = sentPacketsContents.getPriority(packetNo, DMT.PRIORITY_BULK_DATA);
-			rpiTemp.add(new ResendPacketItem(buf, packetNo, this, callbacks, priority));
 		}
 		if(rpiTemp.isEmpty())
 			return null;
@@ -1081,9 +1017,7 @@ public class PacketTracker {
 	}
 
 	public boolean hasPacketsToResend() {
-		synchronized(packetsToResend) {
-			return !packetsToResend.isEmpty();
-		}
+		return sentPacketsContents.hasResendsPending();
 	}
 
 	public boolean isDeprecated() {
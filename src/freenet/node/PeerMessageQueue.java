@@ -1,302 +1,259 @@
 package freenet.node;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
 
 import freenet.io.comm.DMT;
 
 /**
  * Queue of messages to send to a node. Ordered first by priority then by time.
- * Will soon be round-robin between different transfers/UIDs/clients too.
+ * Round-robin between different transfers/UIDs within each priority.
+ *
+ * Each priority keeps one array-backed ring buffer for messages without an
+ * ID, and one ring buffer per UID. Empty per-UID rings are recycled rather
+ * than discarded, and we keep running totals of the number of messages and
+ * their length so that we never have to walk the queues to size them.
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class PeerMessageQueue {
 
 	private final PrioQueue[] queuesByPriority;
 
-	private static class PrioQueue {
-		LinkedList<MessageItem> itemsNoID;
-		ArrayList<LinkedList<MessageItem>> itemsWithID;
-		ArrayList<Long> itemsIDs;
-		Map<Long, LinkedList<MessageItem>> itemsByID;
-		// Construct structures lazily, we're protected by the overall synchronized.
+	/** Number of queued messages, over all priorities. */
+	private int totalCount;
+	/** Sum of getLength() over all queued messages. Excludes the 2 byte
+	 * per-message length prefix, add 2*totalCount for that. */
+	private long totalLength;
+
+	/** No more than this many messages are sent in one packet. */
+	static final int MAX_MESSAGES_PER_PACKET = 255;
+
+	/** The caller's buffer while grabMessagesForPacket() is collecting a
+	 * packet's worth of messages, otherwise null. */
+	private MessageItem[] output;
+	private int outputCount;
+
+	/** Array-backed ring buffer of MessageItem's. Capacity is always a power
+	 * of 2. Not synchronized, protected by the PeerMessageQueue lock. */
+	private static final class ItemQueue {
+
+		private static final int INITIAL_CAPACITY = 4;
+
+		private MessageItem[] items = new MessageItem[INITIAL_CAPACITY];
+		private int head;
+		private int size;
+		/** The UID for this queue, or null if it holds messages without an ID. */
+		Long id;
+
+		void addLast(MessageItem item) {
+			if(size == items.length) grow();
+			items[(head + size) & (items.length - 1)] = item;
+			size++;
+		}
+
+		void addFirst(MessageItem item) {
+			if(size == items.length) grow();
+			head = (head - 1) & (items.length - 1);
+			items[head] = item;
+			size++;
+		}
+
+		MessageItem peekFirst() {
+			return items[head];
+		}
+
+		MessageItem removeFirst() {
+			MessageItem item = items[head];
+			items[head] = null;
+			head = (head + 1) & (items.length - 1);
+			size--;
+			return item;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		int addTo(MessageItem[] output, int ptr) {
+			int mask = items.length - 1;
+			for(int i=0;i<size;i++)
+				output[ptr++] = items[(head + i) & mask];
+			return ptr;
+		}
+
+		void clear() {
+			int mask = items.length - 1;
+			for(int i=0;i<size;i++)
+				items[(head + i) & mask] = null;
+			head = 0;
+			size = 0;
+			id = null;
+		}
+
+		private void grow() {
+			MessageItem[] newItems = new MessageItem[items.length * 2];
+			int firstPart = Math.min(size, items.length - head);
+			System.arraycopy(items, head, newItems, 0, firstPart);
+			System.arraycopy(items, 0, newItems, firstPart, size - firstPart);
+			items = newItems;
+			head = 0;
+		}
+	}
+
+	private class PrioQueue {
+
+		/** Maximum number of empty per-UID queues we keep for reuse. */
+		private static final int MAX_SPARE_QUEUES = 8;
+
+		private final ItemQueue itemsNoID = new ItemQueue();
+		/** Queues with an ID, in the order in which their IDs first appeared. */
+		private ItemQueue[] itemsWithID = new ItemQueue[4];
+		private int itemsWithIDCount;
+		private final HashMap<Long, ItemQueue> itemsByID = new HashMap<Long, ItemQueue>();
+		private final ItemQueue[] spareQueues = new ItemQueue[MAX_SPARE_QUEUES];
+		private int spareQueuesCount;
 
 		/** 0 = itemsNoID, else 1-N = in itemsWithID[0-(N-1)].
 		 * Set when a packet is sent. */
 		private int roundRobinCounter;
 
-		public void addLast(MessageItem item) {
-			if(item.msg == null) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
-				itemsNoID.addLast(item);
-				return;
-			}
+		private ItemQueue queueFor(MessageItem item) {
+			if(item.msg == null) return itemsNoID;
 			Object o = item.msg.getObject(DMT.UID);
-			if(o == null || !(o instanceof Long)) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
-				itemsNoID.addLast(item);
-				return;
-			}
+			if(o == null || !(o instanceof Long)) return itemsNoID;
 			Long id = (Long) o;
-			LinkedList<MessageItem> list;
-			if(itemsByID == null) {
-				itemsByID = new HashMap<Long, LinkedList<MessageItem>>();
-				itemsWithID = new ArrayList<LinkedList<MessageItem>>();
-				itemsIDs = new ArrayList<Long>();
-				list = new LinkedList<MessageItem>();
-				itemsWithID.add(list);
-				itemsIDs.add(id);
-				itemsByID.put(id, list);
-			} else {
-				list = itemsByID.get(id);
-				if(list == null) {
-					list = new LinkedList<MessageItem>();
-					itemsWithID.add(list);
-					itemsByID.put(id, list);
-					itemsIDs.add(id);
-				}
+			ItemQueue queue = itemsByID.get(id);
+			if(queue != null) return queue;
+			if(spareQueuesCount > 0) {
+				queue = spareQueues[--spareQueuesCount];
+				spareQueues[spareQueuesCount] = null;
+			} else
+				queue = new ItemQueue();
+			queue.id = id;
+			if(itemsWithIDCount == itemsWithID.length) {
+				ItemQueue[] newQueues = new ItemQueue[itemsWithID.length * 2];
+				System.arraycopy(itemsWithID, 0, newQueues, 0, itemsWithIDCount);
+				itemsWithID = newQueues;
 			}
-			list.addLast(item);
+			itemsWithID[itemsWithIDCount++] = queue;
+			itemsByID.put(id, queue);
+			return queue;
+		}
+
+		public void addLast(MessageItem item) {
+			queueFor(item).addLast(item);
+			totalCount++;
+			totalLength += item.getLength();
 		}
 
 		public void addFirst(MessageItem item) {
-			if(item.msg == null) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
-				itemsNoID.addFirst(item);
-				return;
-			}
-			Object o = item.msg.getObject(DMT.UID);
-			if(o == null || !(o instanceof Long)) {
-				if(itemsNoID == null) itemsNoID = new LinkedList<MessageItem>();
-				itemsNoID.addFirst(item);
-				return;
-			}
-			Long id = (Long) o;
-			LinkedList<MessageItem> list;
-			if(itemsByID == null) {
-				itemsByID = new HashMap<Long, LinkedList<MessageItem>>();
-				itemsWithID = new ArrayList<LinkedList<MessageItem>>();
-				itemsIDs = new ArrayList<Long>();
-				list = new LinkedList<MessageItem>();
-				itemsWithID.add(list);
-				itemsIDs.add(id);
-				itemsByID.put(id, list);
-			} else {
-				list = itemsByID.get(id);
-				if(list == null) {
-					list = new LinkedList<MessageItem>();
-					itemsWithID.add(list);
-					itemsIDs.add(id);
-					itemsByID.put(id, list);
-				}
-			}
-			list.addFirst(item);
+			queueFor(item).addFirst(item);
+			totalCount++;
+			totalLength += item.getLength();
 		}
 
-		public int size() {
-			int size = 0;
-			if(itemsNoID != null)
-				size += itemsNoID.size();
-			if(itemsWithID != null)
-				for(LinkedList<MessageItem> list : itemsWithID)
-					size += list.size();
-			return size;
+		private MessageItem removeFirst(ItemQueue queue) {
+			MessageItem item = queue.removeFirst();
+			totalCount--;
+			totalLength -= item.getLength();
+			return item;
+		}
+
+		/** Drop an empty per-UID queue, preserving the order of the others. */
+		private void removeQueue(int listNum) {
+			ItemQueue queue = itemsWithID[listNum];
+			itemsByID.remove(queue.id);
+			itemsWithIDCount--;
+			System.arraycopy(itemsWithID, listNum+1, itemsWithID, listNum, itemsWithIDCount - listNum);
+			itemsWithID[itemsWithIDCount] = null;
+			queue.clear();
+			if(spareQueuesCount < MAX_SPARE_QUEUES)
+				spareQueues[spareQueuesCount++] = queue;
 		}
 
 		public int addTo(MessageItem[] output, int ptr) {
-			if(itemsNoID != null)
-				for(MessageItem item : itemsNoID)
-					output[ptr++] = item;
-			if(itemsWithID != null)
-				for(LinkedList<MessageItem> list : itemsWithID)
-					for(MessageItem item : list)
-						output[ptr++] = item;
+			ptr = itemsNoID.addTo(output, ptr);
+			for(int i=0;i<itemsWithIDCount;i++)
+				ptr = itemsWithID[i].addTo(output, ptr);
 			return ptr;
 		}
 
 		public long getNextUrgentTime(long t, long now) {
-			if(itemsNoID != null) {
-				t = Math.min(t, itemsNoID.getFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
+			if(!itemsNoID.isEmpty()) {
+				t = Math.min(t, itemsNoID.peekFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
 				if(t <= now) return t;
 			}
-			if(itemsWithID != null) {
-				for(LinkedList<MessageItem> items : itemsWithID) {
-					t = Math.min(t, items.getFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
-					if(t <= now) return t;
-				}
+			for(int i=0;i<itemsWithIDCount;i++) {
+				t = Math.min(t, itemsWithID[i].peekFirst().submitted + PacketSender.MAX_COALESCING_DELAY);
+				if(t <= now) return t;
 			}
 			return t;
 		}
 
 		/**
-		 * Add the size of messages in this queue to <code>length</code> until
-		 * length is larger than <code>maxSize</code>, or all messages have
-		 * been added.
-		 * @param length the starting length
-		 * @param maxSize the size at which to stop
-		 * @return the resulting length after adding messages
-		 */
-		public int addSize(int length, int maxSize) {
-			if(itemsNoID != null) {
-				for(MessageItem item : itemsNoID) {
-					int thisLen = item.getLength();
-					length += thisLen;
-					if(length > maxSize) return length;
-				}
-			}
-			if(itemsWithID != null) {
-				for(LinkedList<MessageItem> list : itemsWithID) {
-					for(MessageItem item : list) {
-						int thisLen = item.getLength();
-						length += thisLen;
-						if(length > maxSize) return length;
-					}
-				}
-			}
-			return length;
-		}
-
-		/**
-		 * Add messages to <code>messages</code> until there are no more
-		 * messages to add or <code>size</code> would exceed
-		 * <code>maxSize</code>. If <code>size == maxSize</code>, a
+		 * Add messages to the output buffer until there are no more
+		 * messages to add, the buffer is full or <code>size</code> would
+		 * exceed <code>maxSize</code>. If <code>size == maxSize</code>, a
 		 * message in the queue will be added even if it makes <code>size</code>
 		 * exceed <code>maxSize</code>. If <code>isUrgent</code> is set, only
 		 * messages that are considered urgent are added.
 		 *
-		 * @param size the current size of <code>messages</code>
-		 * @param minSize the size when <code>messages</code> is empty
-		 * @param maxSize the maximum size of <code>messages</code>
+		 * @param size the current size of the selected messages
+		 * @param minSize the size when no messages have been selected
+		 * @param maxSize the maximum size of the selected messages
 		 * @param now the current time
-		 * @param messages the list that messages will be added to
 		 * @param isUrgent <code>true</code> if only urgent messages should be added
-		 * @return the size of <code>messages</code>, multiplied by -1 if there were
+		 * @return the size of the selected messages, multiplied by -1 if there were
 		 * messages that didn't fit
 		 */
-		private int addMessages(int size, int minSize, int maxSize, long now, ArrayList<MessageItem> messages, boolean isUrgent) {
+		private int addMessages(int size, int minSize, int maxSize, long now, boolean isUrgent) {
 			assert(size >= 0);
 			assert(minSize >= 0);
 			assert(maxSize >= minSize);
-			int lists = 0;
-			if(itemsNoID != null)
-				lists++;
-			if(itemsWithID != null)
-				lists += itemsWithID.size();
-			for(int i=0;i<lists;i++) {
-				LinkedList<MessageItem> list;
-				int l = (i + roundRobinCounter + 1) % lists;
-				int listNum = -1;
-				if(itemsNoID != null) {
-					if(l == 0) list = itemsNoID;
-					else {
-						listNum = l-1;
-						list = itemsWithID.get(listNum);
-					}
-				} else {
-					listNum = l;
-					list = itemsWithID.get(l);
-				}
-
-				while(true) {
-					if(list.isEmpty()) break;
-					MessageItem item = list.getFirst();
+			// itemsNoID always occupies slot 0 in the rotation, even when empty,
+			// so that the counter means the same thing from one call to the next.
+			int lists = itemsWithIDCount + 1;
+			int toVisit = lists;
+			int l = (roundRobinCounter + 1) % lists;
+			while(toVisit-- > 0) {
+				ItemQueue list = (l == 0) ? itemsNoID : itemsWithID[l-1];
+				boolean removed = false;
+
+				while(!list.isEmpty()) {
+					MessageItem item = list.peekFirst();
 					if(isUrgent && item.submitted + PacketSender.MAX_COALESCING_DELAY > now) break;
+					if(outputCount == output.length) return -size;
 
 					int thisSize = item.getLength();
+					boolean last = false;
 					if(size + 2 + thisSize > maxSize) {
-						if(size == minSize) {
-							// Send it anyway, nothing else to send.
-							size += 2 + thisSize;
-							list.removeFirst();
-							if(list.isEmpty()) {
-								if(list == itemsNoID) {
-									itemsNoID = null;
-									lists--;
-								}
-								else {
-									Long id = itemsIDs.get(listNum);
-									itemsWithID.remove(listNum);
-									itemsIDs.remove(listNum);
-									itemsByID.remove(id);
-									lists--;
-								}
-							}
-							messages.add(item);
-							roundRobinCounter = i;
-							return size;
-						}
-						return -size;
+						if(size != minSize) return -size;
+						// Send it anyway, nothing else to send.
+						last = true;
 					}
 					size += 2 + thisSize;
-					list.removeFirst();
-					if(list.isEmpty()) {
-						if(list == itemsNoID) {
-							itemsNoID = null;
-							lists--;
-						} else {
-							Long id = itemsIDs.get(listNum);
-							itemsWithID.remove(listNum);
-							itemsIDs.remove(listNum);
-							itemsByID.remove(id);
-							lists--;
-						}
+					output[outputCount++] = removeFirst(list);
+					roundRobinCounter = l;
+					if(list.isEmpty() && l != 0) {
+						removeQueue(l-1);
+						lists--;
+						removed = true;
+						// The next list has moved down into slot l, start there next time.
+						roundRobinCounter = l-1;
 					}
-					messages.add(item);
-					roundRobinCounter = i;
+					if(last) return size;
 				}
+				if(!removed) l++;
+				if(l >= lists) l = 0;
 			}
 			return size;
 		}
 
-		/**
-		 * Add urgent messages to <code>messages</code> until there are no more
-		 * messages to add or <code>size</code> would exceed
-		 * <code>maxSize</code>. If <code>size == maxSize</code>, a message in
-		 * the queue will be added even if it makes <code>size</code> exceed
-		 * <code>maxSize</code>.
-		 *
-		 * @param size the current size of <code>messages</code>
-		 * @param minSize the size when <code>messages</code> is empty
-		 * @param maxSize the maximum size of <code>messages</code>
-		 * @param now the current time
-		 * @param messages the list that messages will be added to
-		 * @return the size of <code>messages</code>, multiplied by -1 if there were
-		 * messages that didn't fit
-		 */
-		public int addUrgentMessages(int size, int minSize, int maxSize, long now, ArrayList<MessageItem> messages) {
-			return addMessages(size, minSize, maxSize, now, messages, true);
-		}
-
-		/**
-		 * Add messages to <code>messages</code> until there are no more
-		 * messages to add or <code>size</code> would exceed
-		 * <code>maxSize</code>. If <code>size == maxSize</code>, a message in
-		 * the queue will be added even if it makes <code>size</code> exceed
-		 * <code>maxSize</code>.
-		 *
-		 * @param size the current size of <code>messages</code>
-		 * @param minSize the size when <code>messages</code> is empty
-		 * @param maxSize the maximum size of <code>messages</code>
-		 * @param now the current time
-		 * @param messages the list that messages will be added to
-		 * @return the size of <code>messages</code>, multiplied by -1 if there were
-		 * messages that didn't fit
-		 */
-		public int addMessages(int size, int minSize, int maxSize, long now, ArrayList<MessageItem> messages) {
-			return addMessages(size, minSize, maxSize, now, messages, false);
-		}
-
 		public void clear() {
-			itemsNoID = null;
-			itemsWithID = null;
-			itemsIDs = null;
-			itemsByID = null;
+			itemsNoID.clear();
+			while(itemsWithIDCount > 0)
+				removeQueue(itemsWithIDCount-1);
 		}
 
-
-
 	}
 
 	PeerMessageQueue() {
@@ -308,45 +265,17 @@ public class PeerMessageQueue {
 	/**
 	 * Queue a <code>MessageItem</code> and return an estimate of the size of
 	 * this queue. The value returned is the estimated number of bytes
-	 * needed for sending the all messages in this queue. Note that if the
-	 * returned estimate is higher than 1024, it might not cover all messages.
+	 * needed for sending the all messages in this queue.
 	 * @param item the <code>MessageItem</code> to queue
 	 * @return an estimate of the size of this queue
 	 */
 	public synchronized int queueAndEstimateSize(MessageItem item) {
 		enqueuePrioritizedMessageItem(item);
-		int x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNoID != null)
-				for(MessageItem it : pq.itemsNoID) {
-					x += it.getLength() + 2;
-					if(x > 1024)
-						break;
-				}
-			if(pq.itemsWithID != null) {
-				for(LinkedList<MessageItem> q : pq.itemsWithID)
-					for(MessageItem it : q) {
-						x += it.getLength() + 2;
-						if(x > 1024)
-							break;
-					}
-			}
-		}
-		return x;
+		return (int) Math.min(Integer.MAX_VALUE, totalLength + 2L * totalCount);
 	}
 
 	public synchronized long getMessageQueueLengthBytes() {
-		long x = 0;
-		for(PrioQueue pq : queuesByPriority) {
-			if(pq.itemsNoID != null)
-				for(MessageItem it : pq.itemsNoID)
-					x += it.getLength() + 2;
-			if(pq.itemsWithID != null)
-				for(LinkedList<MessageItem> q : pq.itemsWithID)
-					for(MessageItem it : q)
-						x += it.getLength() + 2;
-		}
-		return x;
+		return totalLength + 2L * totalCount;
 	}
 
 	private synchronized void enqueuePrioritizedMessageItem(MessageItem addMe) {
@@ -365,15 +294,15 @@ public class PeerMessageQueue {
 	}
 
 	public synchronized MessageItem[] grabQueuedMessageItems() {
-		int size = 0;
-		for(int i=0;i<queuesByPriority.length;i++)
-			size += queuesByPriority[i].size();
-		MessageItem[] output = new MessageItem[size];
+		MessageItem[] output = new MessageItem[totalCount];
 		int ptr = 0;
 		for(PrioQueue queue : queuesByPriority) {
 			ptr = queue.addTo(output, ptr);
 			queue.clear();
 		}
+		assert(ptr == output.length);
+		totalCount = 0;
+		totalLength = 0;
 		return output;
 	}
 
@@ -386,6 +315,7 @@ public class PeerMessageQueue {
 	 * @return
 	 */
 	public synchronized long getNextUrgentTime(long t, long now) {
+		if(totalCount == 0) return t;
 		for(PrioQueue queue : queuesByPriority) {
 			t = Math.min(t, queue.getNextUrgentTime(t, now));
 			if(t <= now) return t; // How much in the past doesn't matter, as long as it's in the past.
@@ -413,58 +343,50 @@ public class PeerMessageQueue {
 	 * messages in this queue is greater than <code>maxSize</code>
 	 */
 	public synchronized boolean mustSendSize(int minSize, int maxSize) {
-		int length = minSize;
-		for(PrioQueue items : queuesByPriority) {
-			length = items.addSize(length, maxSize);
-			if(length > maxSize) return true;
-		}
-		return false;
+		return minSize + totalLength > maxSize;
 	}
 
 	/**
-	 * Add urgent messages to <code>messages</code> until there are no more
-	 * messages to add or <code>size</code> would exceed
-	 * <code>maxSize</code>. If <code>size == maxSize</code>, the first
-	 * message in the queue will be added even if it makes <code>size</code>
-	 * exceed <code>maxSize</code>. Messages are urgent if the message has been
-	 * waiting for more than <code>PacketSender.MAX_COALESCING_DELAY</code>.
-	 * @param size the current size of the messages
+	 * Take a packet's worth of messages off the queue: first any urgent
+	 * messages, in priority order, then, if there is still room, messages
+	 * that are still waiting because of coalescing. Messages are urgent if
+	 * they have been waiting for more than
+	 * <code>PacketSender.MAX_COALESCING_DELAY</code>. If nothing else has
+	 * been selected, the first message will be taken even if it makes the
+	 * packet exceed <code>maxSize</code>.
+	 *
+	 * The selected messages are written to a buffer supplied by the caller,
+	 * which can be reused from one packet to the next and passed straight to
+	 * {@link OutgoingPacketMangler#processOutgoingOrRequeue(MessageItem[], int, PeerNode, boolean, boolean)}.
+	 * If the buffer fills up, the remaining messages wait for the next packet.
 	 * @param now the current time
 	 * @param minSize the starting size with no messages
 	 * @param maxSize the maximum size of messages
-	 * @param messages the list that messages will be added to
-	 * @return the size of the messages, multiplied by -1 if there were
-	 * messages that didn't fit
+	 * @param buf the buffer to write the messages to, usually
+	 * <code>MAX_MESSAGES_PER_PACKET</code> long
+	 * @return the number of messages written to <code>buf</code>.
 	 */
-	public synchronized int addUrgentMessages(int size, long now, int minSize, int maxSize, ArrayList<MessageItem> messages) {
-		for(PrioQueue queue : queuesByPriority) {
-			size = queue.addUrgentMessages(Math.abs(size), minSize, maxSize, now, messages);
+	public synchronized int grabMessagesForPacket(long now, int minSize, int maxSize, MessageItem[] buf) {
+		if(totalCount == 0 || buf.length == 0) return 0;
+		output = buf;
+		outputCount = 0;
+		try {
+			int size = minSize;
+			for(PrioQueue queue : queuesByPriority)
+				size = queue.addMessages(Math.abs(size), minSize, maxSize, now, true);
+			if(size >= 0) {
+				for(PrioQueue queue : queuesByPriority)
+					size = queue.addMessages(Math.abs(size), minSize, maxSize, now, false);
+			}
+			return outputCount;
+		} finally {
+			output = null;
 		}
-		return size;
 	}
 
-	/**
-	 * Add non-urgent messages to <code>messages</code> until there are no more
-	 * messages to add or <code>size</code> would exceed
-	 * <code>maxSize</code>. If <code>size == maxSize</code>, the first
-	 * message in the queue will be added even if it makes <code>size</code>
-	 * exceed <code>maxSize</code>. Non-urgent messages are messages that
-	 * are still waiting because of coalescing.
-	 * @param size the current size of the messages
-	 * @param now the current time
-	 * @param minSize the starting size with no messages
-	 * @param maxSize the maximum size of messages
-	 * @param messages the list that messages will be added to
-	 * @return the size of the messages, multiplied by -1 if there were
-	 * messages that didn't fit
-	 */
-	public synchronized int addNonUrgentMessages(int size, long now, int minSize, int maxSize, ArrayList<MessageItem> messages) {
-		for(PrioQueue queue : queuesByPriority) {
-			size = queue.addMessages(Math.abs(size), minSize, maxSize, now, messages);
-		}
-		return size;
+	/** @return The number of messages currently queued. */
+	public synchronized int size() {
+		return totalCount;
 	}
 
-
 }
-
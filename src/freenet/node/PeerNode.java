@@ -12,7 +12,6 @@ import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -4175,9 +4174,11 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 	 * @param now
 	 * @param rpiTemp
 	 * @param rpiTemp
+	 * @param messagesTemp Buffer for the messages to send, see
+	 * PeerMessageQueue.grabMessagesForPacket().
 	 * @throws BlockedTooLongException
 	 */
-	public boolean maybeSendPacket(long now, Vector<ResendPacketItem> rpiTemp, int[] rpiIntTemp) throws BlockedTooLongException {
+	public boolean maybeSendPacket(long now, Vector<ResendPacketItem> rpiTemp, int[] rpiIntTemp, MessageItem[] messagesTemp) throws BlockedTooLongException {
 		// If there are any urgent notifications, we must send a packet.
 		if(logMINOR) Logger.minor(this, "maybeSendPacket: "+this);
 		boolean mustSend = false;
@@ -4246,7 +4247,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 			mustSendPacket = true;
 		}
 
-		ArrayList<MessageItem> messages = new ArrayList<MessageItem>(10);
+		int messageCount = 0;
 
 		synchronized(messageQueue) {
 
@@ -4263,30 +4264,31 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 					mustSend = true;
 			}
 
-			if(mustSend) {
-				int size = minSize;
-				size = messageQueue.addUrgentMessages(size, now, minSize, maxSize, messages);
-
-				// Now the not-so-urgent messages.
-				if(size >= 0) {
-					size = messageQueue.addNonUrgentMessages(size, now, minSize, maxSize, messages);
-				}
-			}
+			if(mustSend)
+				messageCount = messageQueue.grabMessagesForPacket(now, minSize, maxSize, messagesTemp);
 
 		}
 
-		if(messages.isEmpty() && keepalive) {
+		if(messageCount == 0 && keepalive) {
 			// Force packet to have a sequence number.
 			Message m = DMT.createFNPVoid();
 			addToLocalNodeSentMessagesToStatistic(m);
-			messages.add(new MessageItem(m, null, null, this));
+			messagesTemp[0] = new MessageItem(m, null, null, this);
+			messageCount = 1;
 		}
 
-		if(!messages.isEmpty()) {
+		if(messageCount > 0) {
 			// Send packets, right now, blocking, including any active notifications
 			// Note that processOutgoingOrRequeue will drop messages from the end
 			// if necessary to fit the messages into a single packet.
-			if(!getOutgoingMangler().processOutgoingOrRequeue(messages.toArray(new MessageItem[messages.size()]), this, false, true)) {
+			boolean sent;
+			try {
+				sent = getOutgoingMangler().processOutgoingOrRequeue(messagesTemp, messageCount, this, false, true);
+			} finally {
+				// Don't keep the messages alive until the buffer is next used.
+				Arrays.fill(messagesTemp, 0, messageCount, null);
+			}
+			if(!sent) {
 				if(mustSendPacket) {
 					if(!sendAnyUrgentNotifications(false))
 						sendAnyUrgentNotifications(true);
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 
 public abstract class BaseDataCarryingMessage extends FCPMessage {
@@ -20,4 +21,19 @@ public abstract class BaseDataCarryingMessage extends FCPMessage {
 
 	protected abstract void writeData(OutputStream os) throws IOException;
 
+	/**
+	 * The buckets holding the data, so that it can be sent without
+	 * writeData(), for example straight from a file by the FCPSelector.
+	 * dataLength() bytes are sent from them in order.
+	 * @return Null if the data can only be sent by writeData().
+	 */
+	Bucket[] getDataBuckets() {
+		return null;
+	}
+
+	/** Called once the data from getDataBuckets() has been sent. */
+	void onDataSent() {
+		// Do nothing
+	}
+
 }
@@ -0,0 +1,60 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent once every key in a GetBatch has been reported, or after it has been
+ * cancelled. Keys which were still running when it was cancelled are not
+ * reported individually.
+ */
+public class BatchFinishedMessage extends FCPMessage {
+
+	static final String NAME = "BatchFinished";
+
+	final String identifier;
+	final int total;
+	final int succeeded;
+	final int failed;
+	final boolean cancelled;
+
+	BatchFinishedMessage(String identifier, int total, int succeeded, int failed, boolean cancelled) {
+		this.identifier = identifier;
+		this.total = total;
+		this.succeeded = succeeded;
+		this.failed = failed;
+		this.cancelled = cancelled;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Total", total);
+		fs.put("Succeeded", succeeded);
+		fs.put("Failed", failed);
+		fs.put("Cancelled", cancelled);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
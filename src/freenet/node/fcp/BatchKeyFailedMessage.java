@@ -0,0 +1,71 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchException;
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * One of the keys in a GetBatch could not be fetched. The fields are as in
+ * GetFailed.
+ */
+public class BatchKeyFailedMessage extends FCPMessage {
+
+	static final String NAME = "BatchKeyFailed";
+
+	final String identifier;
+	final int index;
+	final FreenetURI uri;
+	final int code;
+	final String extraDescription;
+	final boolean isFatal;
+	final FreenetURI redirectURI;
+
+	BatchKeyFailedMessage(String identifier, int index, FreenetURI uri, FetchException e) {
+		this.identifier = identifier;
+		this.index = index;
+		this.uri = uri;
+		this.code = e.mode;
+		this.extraDescription = e.extraMessage;
+		this.isFatal = e.isFatal();
+		this.redirectURI = e.newURI;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Index", index);
+		fs.putSingle("URI", uri.toString(false, false));
+		fs.put("Code", code);
+		fs.putSingle("CodeDescription", FetchException.getMessage(code));
+		fs.putSingle("ShortCodeDescription", FetchException.getShortMessage(code));
+		if(extraDescription != null)
+			fs.putSingle("ExtraDescription", extraDescription);
+		fs.put("Fatal", isFatal);
+		if(redirectURI != null)
+			fs.putSingle("RedirectURI", redirectURI.toString(false, false));
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
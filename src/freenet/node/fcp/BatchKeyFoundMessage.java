@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchResult;
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * One of the keys in a GetBatch has been fetched. Carries the data.
+ */
+public class BatchKeyFoundMessage extends DataCarryingMessage {
+
+	static final String NAME = "BatchKeyFound";
+
+	final String identifier;
+	final int index;
+	final FreenetURI uri;
+	final long dataLength;
+	final String mimeType;
+
+	BatchKeyFoundMessage(String identifier, int index, FreenetURI uri, FetchResult result) {
+		this.identifier = identifier;
+		this.index = index;
+		this.uri = uri;
+		this.bucket = result.asBucket();
+		this.dataLength = bucket.size();
+		this.mimeType = result.getMimeType();
+	}
+
+	@Override
+	long dataLength() {
+		return dataLength;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("Index", index);
+		fs.putSingle("URI", uri.toString(false, false));
+		fs.put("DataLength", dataLength);
+		if(mimeType != null) fs.putSingle("Metadata.ContentType", mimeType);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME+" goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	String getIdentifier() {
+		return identifier;
+	}
+
+	@Override
+	boolean isGlobal() {
+		return false;
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -5,6 +5,7 @@ package freenet.node.fcp;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.HashSet;
 
 import com.db4o.ObjectContainer;
@@ -14,13 +15,15 @@ import freenet.client.FetchException;
 import freenet.client.FetchResult;
 import freenet.client.async.BinaryBlob;
 import freenet.client.async.ClientContext;
-import freenet.client.async.ClientGetCallback;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientRequester;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
+import freenet.client.async.StreamingClientGetCallback;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
+import freenet.client.events.ExpectedFileSizeEvent;
+import freenet.client.events.ExpectedMIMEEvent;
 import freenet.client.events.SendingToNetworkEvent;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.keys.FreenetURI;
@@ -39,7 +42,7 @@ import freenet.support.io.SerializableToFieldSetBucketUtil;
  * A simple client fetch. This can of course fetch arbitrarily large
  * files, including splitfiles, redirects, etc.
  */
-public class ClientGet extends ClientRequest implements ClientGetCallback, ClientEventListener {
+public class ClientGet extends ClientRequest implements StreamingClientGetCallback, ClientEventListener {
 
 	/** Fetch context. Never passed in: always created new by the ClientGet. Therefore, we
 	 * can safely delete it in requestWasRemoved(). */
@@ -379,7 +382,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 					if(persistenceType == PERSIST_FOREVER) data.removeFrom(container);
 					return; // Already failed - bucket error maybe??
 				}
-				if(returnType == ClientGetMessage.RETURN_TYPE_DIRECT && returnBucket == null) {
+				if(returnsDataOverFCP() && returnBucket == null) {
 					// Lost bucket for some reason e.g. bucket error (caused by IOException) on previous try??
 					// Recover...
 					returnBucket = data;
@@ -415,7 +418,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			else
 				this.foundDataMimeType = BinaryBlob.MIME_TYPE;
 
-			if(returnType == ClientGetMessage.RETURN_TYPE_DIRECT) {
+			if(returnsDataOverFCP()) {
 				// Send all the data at once
 				// FIXME there should be other options
 				// FIXME: CompletionTime is set on finish() : we need to give it current time here
@@ -461,6 +464,45 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			client.notifySuccess(this, container);
 	}
 
+	public boolean wantsStreaming(ClientGetter state) {
+		return returnType == ClientGetMessage.RETURN_TYPE_STREAM;
+	}
+
+	public OutputStream onStreamStarting(String mimeType, long length, ClientGetter state) throws IOException {
+		// Streaming is only allowed for PERSIST_CONNECTION, see ClientGetMessage.
+		synchronized(this) {
+			started = true;
+			foundDataMimeType = mimeType;
+		}
+		return new StreamDataOutputStream(origHandler.outputHandler, identifier, global, mimeType, length);
+	}
+
+	public void onStreamFinished(long length, ClientGetter state) {
+		if(Logger.shouldLog(Logger.MINOR, this))
+			Logger.minor(this, "Streamed "+length+" bytes: "+identifier);
+		synchronized(this) {
+			if(finished) {
+				Logger.error(this, "Already finished but streamed "+this);
+				return;
+			}
+			progressPending = null;
+			foundDataLength = length;
+			succeeded = true;
+			finished = true;
+		}
+		trySendDataFoundOrGetFailed(null, null);
+		// The data was not written to the return bucket.
+		freeData(null);
+		finish(null);
+		if(client != null)
+			client.notifySuccess(this, null);
+	}
+
+	/** Do we send the data over the FCP connection? */
+	private boolean returnsDataOverFCP() {
+		return returnType == ClientGetMessage.RETURN_TYPE_DIRECT || returnType == ClientGetMessage.RETURN_TYPE_STREAM;
+	}
+
 	private void trySendDataFoundOrGetFailed(FCPConnectionOutputHandler handler, ObjectContainer container) {
 		FCPMessage msg;
 
@@ -662,6 +704,17 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 	public void receive(ClientEvent ce, ObjectContainer container, ClientContext context) {
 		// Don't need to lock, verbosity is final and finished is never unset.
 		if(finished) return;
+		if(ce instanceof ExpectedFileSizeEvent) {
+			RequestStatusCache cache = getStatusCache();
+			if(cache != null)
+				cache.updateExpectedSize(identifier, ((ExpectedFileSizeEvent)ce).expectedSize);
+			return;
+		} else if(ce instanceof ExpectedMIMEEvent) {
+			RequestStatusCache cache = getStatusCache();
+			if(cache != null)
+				cache.updateExpectedMIME(identifier, ((ExpectedMIMEEvent)ce).expectedMIMEType);
+			return;
+		}
 		final FCPMessage progress;
 		if(ce instanceof SplitfileProgressEvent) {
 			if(!((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS))
@@ -669,6 +722,9 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 			lastActivity = System.currentTimeMillis();
 			progress =
 				new SimpleProgressMessage(identifier, global, (SplitfileProgressEvent)ce);
+			RequestStatusCache cache = getStatusCache();
+			if(cache != null)
+				cache.updateProgress(identifier, (SplitfileProgressEvent)ce, lastActivity);
 		} else if(ce instanceof SendingToNetworkEvent) {
 			if(!((verbosity & VERBOSITY_SENT_TO_NETWORK) == VERBOSITY_SENT_TO_NETWORK))
 				return;
@@ -918,6 +974,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 				if(persistenceType == PERSIST_FOREVER)
 					container.store(this);
 			}
+			updateStatusCache(container);
 			return true;
 		} catch (FetchException e) {
 			onFailure(e, null, container);
@@ -925,6 +982,27 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 		}
 	}
 
+	@Override
+	public RequestStatus getStatus(ObjectContainer container) {
+		boolean canRestart = false;
+		if(finished && !succeeded) {
+			if(persistenceType == PERSIST_FOREVER)
+				container.activate(getter, 1);
+			canRestart = canRestart();
+		}
+		// Copy anything stored in the database, it may be deactivated later.
+		FreenetURI uri = getURI(container);
+		if(uri != null) uri = uri.clone();
+		File dest = getDestFilename(container);
+		if(dest != null) dest = new File(dest.getPath());
+		return new DownloadRequestStatus(identifier, persistenceType == PERSIST_FOREVER, priorityClass, started,
+				finished, succeeded, canRestart, (int) getTotalBlocks(container), (int) getMinBlocks(container),
+				(int) getFetchedBlocks(container), (int) getFailedBlocks(container),
+				(int) getFatalyFailedBlocks(container), isTotalFinalized(container), lastActivity,
+				getFailureReason(container), uri, getDataSize(container), getMIMEType(container),
+				dest, isToDisk(), isDirect(), hasPermRedirect());
+	}
+
 	public synchronized boolean hasPermRedirect() {
 		return getFailedMessage != null && getFailedMessage.redirectURI != null;
 	}
@@ -28,6 +28,8 @@ import freenet.support.SimpleFieldSet;
  * Identifier=Request Number One
  * Verbosity=0 // no status, just tell us when it's done
  * ReturnType=direct // return all at once over the FCP connection
+ *    (or stream: send large files over the FCP connection in StreamData
+ *    messages as they are decoded; Persistence=connection only)
  * MaxSize=100 // maximum size of returned data 
  * MaxTempSize=1000 // maximum size of intermediary data
  * MaxRetries=100 // automatic retry supported as an option
@@ -67,6 +69,7 @@ public class ClientGetMessage extends FCPMessage {
 	static final short RETURN_TYPE_NONE = 1; // not at all; to cache only; prefetch?
 	static final short RETURN_TYPE_DISK = 2; // to a file
 	static final short RETURN_TYPE_CHUNKED = 3; // FIXME implement: over FCP, as decoded
+	static final short RETURN_TYPE_STREAM = 4; // over FCP, in order, as decoded
 	
 	public ClientGetMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		short defaultPriority;
@@ -97,7 +100,7 @@ public class ClientGetMessage extends FCPMessage {
 		}
 		String returnTypeString = fs.get("ReturnType");
 		returnType = parseReturnTypeFCP(returnTypeString);
-		if(returnType == RETURN_TYPE_DIRECT) {
+		if(returnType == RETURN_TYPE_DIRECT || returnType == RETURN_TYPE_STREAM) {
 			diskFile = null;
 			tempFile = null;
 			// default just below FProxy
@@ -201,6 +204,8 @@ public class ClientGetMessage extends FCPMessage {
 		}
 		writeToClientCache = fs.getBoolean("WriteToClientCache", persistenceType == ClientRequest.PERSIST_CONNECTION);
 		binaryBlob = Fields.stringToBool(fs.get("BinaryBlob"), false);
+		if(returnType == RETURN_TYPE_STREAM && (persistenceType != ClientRequest.PERSIST_CONNECTION || binaryBlob))
+			throw new MessageInvalidException(ProtocolErrorMessage.NOT_SUPPORTED, "ReturnType=stream is only supported for Persistence=connection and not for binary blobs", identifier, global);
 	}
 
 	@Override
@@ -244,6 +249,8 @@ public class ClientGetMessage extends FCPMessage {
 			return "disk";
 		case RETURN_TYPE_CHUNKED:
 			return "chunked";
+		case RETURN_TYPE_STREAM:
+			return "stream";
 		default:
 			return Short.toString(type);
 		}
@@ -268,6 +275,8 @@ public class ClientGetMessage extends FCPMessage {
 			return RETURN_TYPE_DISK;
 		if(string.equalsIgnoreCase("chunked"))
 			return RETURN_TYPE_CHUNKED;
+		if(string.equalsIgnoreCase("stream"))
+			return RETURN_TYPE_STREAM;
 		return Short.parseShort(string);
 	}
 
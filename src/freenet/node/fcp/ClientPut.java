@@ -487,6 +487,7 @@ public class ClientPut extends ClientPutBase {
 			}
 			if(persistenceType == PERSIST_FOREVER)
 				container.store(this);
+			updateStatusCache(container);
 			return true;
 		} catch (InsertException e) {
 			onFailure(e, null, container);
@@ -517,6 +518,28 @@ public class ClientPut extends ClientPutBase {
 		super.requestWasRemoved(container, context);
 	}
 	
+	@Override
+	public RequestStatus getStatus(ObjectContainer container) {
+		boolean canRestart = false;
+		if(finished && !succeeded) {
+			if(persistenceType == PERSIST_FOREVER)
+				container.activate(putter, 1);
+			canRestart = canRestart();
+		}
+		// Copy anything stored in the database, it may be deactivated later.
+		FreenetURI finalURI = getFinalURI(container);
+		if(finalURI != null) finalURI = finalURI.clone();
+		File origFilename = getOrigFilename(container);
+		if(origFilename != null) origFilename = new File(origFilename.getPath());
+		if(persistenceType == PERSIST_FOREVER)
+			container.activate(clientMetadata, 5);
+		return new UploadFileRequestStatus(identifier, persistenceType == PERSIST_FOREVER, priorityClass, started,
+				finished, succeeded, canRestart, (int) getTotalBlocks(container), (int) getMinBlocks(container),
+				(int) getFetchedBlocks(container), (int) getFailedBlocks(container),
+				(int) getFatalyFailedBlocks(container), true, lastActivity, getFailureReason(container),
+				finalURI, getDataSize(container), getMIMEType(), origFilename, isCompressing(container));
+	}
+
 	public enum COMPRESS_STATE {
 		WAITING,
 		COMPRESSING,
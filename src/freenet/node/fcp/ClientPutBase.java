@@ -13,6 +13,7 @@ import freenet.client.async.DatabaseDisabledException;
 import freenet.client.events.ClientEvent;
 import freenet.client.events.ClientEventListener;
 import freenet.client.events.FinishedCompressionEvent;
+import freenet.client.events.InsertedDataReusedEvent;
 import freenet.client.events.SimpleEventProducer;
 import freenet.client.events.SplitfileProgressEvent;
 import freenet.client.events.StartedCompressionEvent;
@@ -202,6 +203,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 		if(persistenceType == PERSIST_FOREVER)
 			container.store(this);
 		trySendGeneratedURIMessage(null, container);
+		updateStatusCache(container);
 	}
 
 	@Override
@@ -283,6 +285,9 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 				SimpleProgressMessage progress = 
 					new SimpleProgressMessage(identifier, global, (SplitfileProgressEvent)ce);
 				lastActivity = System.currentTimeMillis();
+				RequestStatusCache cache = getStatusCache();
+				if(cache != null)
+					cache.updateProgress(identifier, (SplitfileProgressEvent)ce, lastActivity);
 				trySendProgressMessage(progress, VERBOSITY_SPLITFILE_PROGRESS, null, container, context);
 			}
 		} else if(ce instanceof StartedCompressionEvent) {
@@ -291,6 +296,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 					new StartedCompressionMessage(identifier, global, ((StartedCompressionEvent)ce).codec);
 				trySendProgressMessage(msg, VERBOSITY_COMPRESSION_START_END, null, container, context);
 				onStartCompressing();
+				updateStatusCache(container);
 			}
 		} else if(ce instanceof FinishedCompressionEvent) {
 			if((verbosity & VERBOSITY_COMPRESSION_START_END) == VERBOSITY_COMPRESSION_START_END) {
@@ -298,6 +304,13 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 					new FinishedCompressionMessage(identifier, global, (FinishedCompressionEvent)ce);
 				trySendProgressMessage(msg, VERBOSITY_COMPRESSION_START_END, null, container, context);
 				onStopCompressing();
+				updateStatusCache(container);
+			}
+		} else if(ce instanceof InsertedDataReusedEvent) {
+			if((verbosity & VERBOSITY_SPLITFILE_PROGRESS) == VERBOSITY_SPLITFILE_PROGRESS) {
+				InsertedDataReusedMessage msg =
+					new InsertedDataReusedMessage(identifier, global, (InsertedDataReusedEvent)ce);
+				trySendProgressMessage(msg, VERBOSITY_SPLITFILE_PROGRESS, null, container, context);
 			}
 		}
 	}
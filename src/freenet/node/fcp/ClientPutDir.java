@@ -21,6 +21,7 @@ import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientGetter;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DefaultManifestPutter;
 import freenet.client.async.ManifestElement;
 import freenet.client.async.SimpleManifestPutter;
 import freenet.keys.FreenetURI;
@@ -37,6 +38,9 @@ public class ClientPutDir extends ClientPutBase {
 
 	private HashMap<String, Object> manifestElements;
 	private SimpleManifestPutter putter;
+	/** Used instead of putter by transient inserts which reuse inserted data: only
+	 * DefaultManifestPutter can. Never stored. */
+	private transient DefaultManifestPutter reusingPutter;
 	private final String defaultName;
 	private final long totalSize;
 	private final int numberOfFiles;
@@ -72,8 +76,13 @@ public class ClientPutDir extends ClientPutBase {
 //		this.manifestElements = new HashMap<String, Object>();
 //		this.manifestElements.putAll(manifestElements);
 		this.defaultName = message.defaultName;
+		// Only transient inserts can reuse data, see InsertedDataCache.
+		ctx.reuseInsertedData = message.reuseInsertedData && persistenceType != PERSIST_FOREVER;
 		makePutter();
-		if(putter != null) {
+		if(reusingPutter != null) {
+			numberOfFiles = reusingPutter.countFiles();
+			totalSize = reusingPutter.totalSize();
+		} else if(putter != null) {
 			numberOfFiles = putter.countFiles();
 			totalSize = putter.totalSize();
 		} else {
@@ -167,6 +176,13 @@ public class ClientPutDir extends ClientPutBase {
 	}
 	
 	private void makePutter() {
+		if(ctx.reuseInsertedData) {
+			reusingPutter = new DefaultManifestPutter(this,
+					manifestElements, priorityClass, uri, defaultName, ctx, getCHKOnly,
+					lowLevelClient,
+					earlyEncode);
+			return;
+		}
 		SimpleManifestPutter p;
 			p = new SimpleManifestPutter(this, 
 					manifestElements, priorityClass, uri, defaultName, ctx, getCHKOnly,
@@ -262,10 +278,12 @@ public class ClientPutDir extends ClientPutBase {
 		if(finished) return;
 		if(started) return;
 		try {
-			if(putter != null)
+			if(reusingPutter != null)
+				reusingPutter.start(container, context);
+			else if(putter != null)
 				putter.start(container, context);
 			started = true;
-			if(logMINOR) Logger.minor(this, "Started "+putter+" for "+this+" persistence="+persistenceType);
+			if(logMINOR) Logger.minor(this, "Started "+getClientRequest()+" for "+this+" persistence="+persistenceType);
 			if(persistenceType != PERSIST_CONNECTION && !finished) {
 				FCPMessage msg = persistentTagMessage(container);
 				client.queueClientRequestMessage(msg, 0, container);
@@ -327,6 +345,7 @@ public class ClientPutDir extends ClientPutBase {
 
 	@Override
 	protected ClientRequester getClientRequest() {
+		if(reusingPutter != null) return reusingPutter;
 		return putter;
 	}
 
@@ -384,9 +403,21 @@ public class ClientPutDir extends ClientPutBase {
 		setVarsRestart(container);
 		makePutter();
 		start(container, context);
+		updateStatusCache(container);
 		return true;
 	}
 
+	@Override
+	public RequestStatus getStatus(ObjectContainer container) {
+		FreenetURI finalURI = getFinalURI(container);
+		if(finalURI != null) finalURI = finalURI.clone();
+		return new UploadDirRequestStatus(identifier, persistenceType == PERSIST_FOREVER, priorityClass, started,
+				finished, succeeded, canRestart(), (int) getTotalBlocks(container), (int) getMinBlocks(container),
+				(int) getFetchedBlocks(container), (int) getFailedBlocks(container),
+				(int) getFatalyFailedBlocks(container), isTotalFinalized(container), lastActivity,
+				getFailureReason(container), finalURI, getNumberOfFiles(), getTotalDataSize());
+	}
+
 	public void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {}
 
 	public void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {}
@@ -31,6 +31,18 @@ import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
  * ClientToken=<ClientToken as ClientPut>
  * Persistence=<Persistence as ClientPut>
  * Global=<Global as ClientPut>
+ * ReuseInsertedData=<true to not insert again files and containers which this node
+ * has already inserted with the same settings; ignored unless Persistence is
+ * connection or reboot>
+ *
+ * ReuseInsertedData only remembers what was inserted since the node started: the
+ * record is kept in memory, and is not written to disk, where it would show what
+ * this node has inserted. It holds up to 4MiB of metadata, least recently used
+ * first out, which is enough for several thousand files. So the first insert of
+ * a site after a restart, or after inserting a lot of other data, inserts
+ * everything again. Persistent (Persistence=forever) inserts don't use it, as
+ * they would usually outlive it. The InsertedDataReused message says how much
+ * was actually reused.
  */
 public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	// Some subtypes of this (ClientPutComplexDirMessage) may carry a payload.
@@ -52,6 +64,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 	public boolean forkOnCacheable;
 	final int extraInsertsSingleBlock;
 	final int extraInsertsSplitfileHeaderBlock;
+	final boolean reuseInsertedData;
 	
 	public ClientPutDirMessage(SimpleFieldSet fs) throws MessageInvalidException {
 		identifier = fs.get("Identifier");
@@ -143,6 +156,7 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 			forkOnCacheable = Node.FORK_ON_CACHEABLE_DEFAULT;
 		extraInsertsSingleBlock = fs.getInt("ExtraInsertsSingleBlock", HighLevelSimpleClientImpl.EXTRA_INSERTS_SINGLE_BLOCK);
 		extraInsertsSplitfileHeaderBlock = fs.getInt("ExtraInsertsSplitfileHeaderBlock", HighLevelSimpleClientImpl.EXTRA_INSERTS_SPLITFILE_HEADER);
+		reuseInsertedData = fs.getBoolean("ReuseInsertedData", false);
 	}
 
 	@Override
@@ -161,6 +175,8 @@ public abstract class ClientPutDirMessage extends BaseDataCarryingMessage {
 			sfs.putSingle("Codecs", compressorDescriptor);
 		sfs.putSingle("Global", Boolean.toString(global));
 		sfs.putSingle("DefaultName", defaultName);
+		if(reuseInsertedData)
+			sfs.putSingle("ReuseInsertedData", "true");
 		return sfs;
 	}
 
@@ -378,6 +378,7 @@ public abstract class ClientRequest {
 			client.finishedClientRequest(this, container);
 		if(persistenceType == ClientRequest.PERSIST_FOREVER)
 			container.store(this);
+		updateStatusCache(container);
 	}
 
 	public abstract double getSuccessFraction(ObjectContainer container);
@@ -455,6 +456,8 @@ public abstract class ClientRequest {
 			r.setPriorityClass(priorityClass, server.core.clientContext, container);
 			if(persistenceType == PERSIST_FOREVER) container.deactivate(r, 1);
 			priorityClassChanged = true;
+			RequestStatusCache cache = getStatusCache();
+			if(cache != null) cache.updatePriority(identifier, priorityClass);
 		}
 
 		if(! ( clientTokenChanged || priorityClassChanged ) ) {
@@ -530,11 +533,33 @@ public abstract class ClientRequest {
 	 * If the request is in the database, delete it.
 	 */
 	public void requestWasRemoved(ObjectContainer container, ClientContext context) {
+		RequestStatusCache cache = getStatusCache();
+		if(cache != null) cache.remove(identifier);
 		if(persistenceType != PERSIST_FOREVER) return;
 		if(uri != null) uri.removeFrom(container);
 		container.delete(this);
 	}
 
+	/**
+	 * Summarise the current state of the request for the web interface's
+	 * RequestStatusCache. Activates whatever it needs to, so should only be
+	 * called when something significant changes, not on every progress event.
+	 */
+	public abstract RequestStatus getStatus(ObjectContainer container);
+
+	/** The status cache to keep up to date, or null if we are not on the
+	 * global queue. Only the global queue's clients have one. */
+	protected RequestStatusCache getStatusCache() {
+		if(client == null) return null;
+		return client.getRequestStatusCache();
+	}
+
+	/** Replace our entry in the status cache, if we are on the global queue. */
+	protected void updateStatusCache(ObjectContainer container) {
+		RequestStatusCache cache = getStatusCache();
+		if(cache != null) cache.updateStatus(getStatus(container));
+	}
+
 	protected boolean isGlobalQueue() {
 		if(client == null) return false;
 		return client.isGlobalQueue;
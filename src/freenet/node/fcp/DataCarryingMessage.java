@@ -54,6 +54,17 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 	protected void writeData(OutputStream os) throws IOException {
 		long len = dataLength();
 		if(len > 0) BucketTools.copyTo(bucket, os, len);
+		onDataSent();
+	}
+
+	@Override
+	Bucket[] getDataBuckets() {
+		if(bucket == null) return new Bucket[0];
+		return new Bucket[] { bucket };
+	}
+
+	@Override
+	void onDataSent() {
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
 	
@@ -0,0 +1,83 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.File;
+
+import freenet.keys.FreenetURI;
+
+/** Cached status of a ClientGet on the global queue. */
+public class DownloadRequestStatus extends RequestStatus {
+
+	private final FreenetURI uri;
+	private long dataSize;
+	private String mimeType;
+	private final File destFilename;
+	private final boolean toDisk;
+	private final boolean toTemp;
+	private final boolean hasPermRedirect;
+
+	DownloadRequestStatus(String identifier, boolean persistentForever, short priority, boolean started,
+			boolean finished, boolean succeeded, boolean canRestart, int totalBlocks, int minBlocks,
+			int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean totalFinalized,
+			long lastActivity, String failureReason, FreenetURI uri, long dataSize, String mimeType,
+			File destFilename, boolean toDisk, boolean toTemp, boolean hasPermRedirect) {
+		super(identifier, persistentForever, priority, started, finished, succeeded, canRestart,
+				totalBlocks, minBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, totalFinalized,
+				lastActivity, failureReason);
+		this.uri = uri;
+		this.dataSize = dataSize;
+		this.mimeType = mimeType;
+		this.destFilename = destFilename;
+		this.toDisk = toDisk;
+		this.toTemp = toTemp;
+		this.hasPermRedirect = hasPermRedirect;
+	}
+
+	@Override
+	public FreenetURI getURI() {
+		return uri;
+	}
+
+	@Override
+	public String getFilename() {
+		return destFilename == null ? null : destFilename.toString();
+	}
+
+	@Override
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	public String getMIMEType() {
+		return mimeType;
+	}
+
+	void setDataSize(long dataSize) {
+		this.dataSize = dataSize;
+	}
+
+	void setMIMEType(String mimeType) {
+		this.mimeType = mimeType;
+	}
+
+	public File getDestFilename() {
+		return destFilename;
+	}
+
+	/** Is the data being written to a file in the downloads directory? */
+	public boolean isToDisk() {
+		return toDisk;
+	}
+
+	/** Is the data being kept in a temporary bucket (ReturnType=direct)? */
+	public boolean isToTemp() {
+		return toTemp;
+	}
+
+	public boolean hasPermRedirect() {
+		return hasPermRedirect;
+	}
+
+}
@@ -88,7 +88,17 @@ public class FCPClient {
 	private transient Whiteboard whiteboard;
 	/** Connection mode */
 	final short persistenceType;
+	/** Status of our requests for the web interface. Only set on the global queue. */
+	private transient RequestStatusCache statusCache;
 	
+	synchronized void setRequestStatusCache(RequestStatusCache cache) {
+		this.statusCache = cache;
+	}
+
+	synchronized RequestStatusCache getRequestStatusCache() {
+		return statusCache;
+	}
+
 	public synchronized FCPConnectionHandler getConnection() {
 		return currentConnection;
 	}
@@ -203,6 +213,8 @@ public class FCPClient {
 			clientRequestsByIdentifier.put(ident, cg);
 			if(container != null) container.ext().store(clientRequestsByIdentifier, 2);
 		}
+		RequestStatusCache cache = getRequestStatusCache();
+		if(cache != null) cache.updateStatus(cg.getStatus(container));
 	}
 
 	public boolean removeByIdentifier(String identifier, boolean kill, FCPServer server, ObjectContainer container, ClientContext context) {
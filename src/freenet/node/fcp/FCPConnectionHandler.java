@@ -62,8 +62,12 @@ public class FCPConnectionHandler implements Closeable {
 
 	final FCPServer server;
 	final Socket sock;
+	/** Does our socket I/O, or null if we have a thread each for input and
+	 * output (e.g. SSL connections, which don't have a channel). */
+	final FCPSelector selector;
 	final FCPConnectionInputHandler inputHandler;
 	final Map<String, SubscribeUSK> uskSubscriptions;
+	final Map<String, GetBatch> batches;
 	public final FCPConnectionOutputHandler outputHandler;
 	private boolean isClosed;
 	private boolean inputClosed;
@@ -95,9 +99,11 @@ public class FCPConnectionHandler implements Closeable {
 		this.sock = s;
 		this.server = server;
 		isClosed = false;
+		this.selector = (s != null && s.getChannel() != null) ? server.selector : null;
 		this.bf = server.core.tempBucketFactory;
 		requestsByIdentifier = new HashMap<String, ClientRequest>();
 		uskSubscriptions = new HashMap<String, SubscribeUSK>();
+		batches = new HashMap<String, GetBatch>();
 		this.inputHandler = new FCPConnectionInputHandler(this);
 		this.outputHandler = new FCPConnectionOutputHandler(this);
 		
@@ -107,6 +113,19 @@ public class FCPConnectionHandler implements Closeable {
 	}
 	
 	void start() {
+		if(selector != null) {
+			try {
+				selector.register(this);
+			} catch (IOException e) {
+				Logger.normal(this, "Unable to register "+this+" : "+e, e);
+				try {
+					sock.close();
+				} catch (IOException e1) {
+					// Ignore
+				}
+			}
+			return;
+		}
 		inputHandler.start();
 		outputHandler.start();
 	}
@@ -119,17 +138,21 @@ public class FCPConnectionHandler implements Closeable {
 			foreverClient.onLostConnection(this);
 		boolean dupe;
 		SubscribeUSK[] uskSubscriptions2;
+		GetBatch[] batches2;
 		synchronized(this) {
 			isClosed = true;
 			requests = new ClientRequest[requestsByIdentifier.size()];
 			requests = requestsByIdentifier.values().toArray(requests);
 			uskSubscriptions2 = uskSubscriptions.values().toArray(new SubscribeUSK[uskSubscriptions.size()]);
+			batches2 = batches.values().toArray(new GetBatch[batches.size()]);
 			dupe = killedDupe;
 		}
 		for(int i=0;i<requests.length;i++)
 			requests[i].onLostConnection(null, server.core.clientContext);
 		for(SubscribeUSK sub : uskSubscriptions2)
 			sub.unsubscribe();
+		for(GetBatch batch : batches2)
+			batch.cancel();
 		if(!dupe) {
 		try {
 			server.core.clientContext.jobRunner.queue(new DBJob() {
@@ -796,4 +819,23 @@ public class FCPConnectionHandler implements Closeable {
 		sub.unsubscribe();
 	}
 
+	synchronized void addBatch(String identifier, GetBatch batch) throws IdentifierCollisionException {
+		if(batches.containsKey(identifier)) throw new IdentifierCollisionException();
+		batches.put(identifier, batch);
+	}
+
+	synchronized void removeBatch(String identifier, GetBatch batch) {
+		if(batches.get(identifier) == batch)
+			batches.remove(identifier);
+	}
+
+	public void cancelBatch(String identifier) throws MessageInvalidException {
+		GetBatch batch;
+		synchronized(this) {
+			batch = batches.get(identifier);
+			if(batch == null) throw new MessageInvalidException(ProtocolErrorMessage.NO_SUCH_IDENTIFIER, "No such batch", identifier, false);
+		}
+		batch.cancel();
+	}
+
 }
@@ -6,6 +6,8 @@ package freenet.node.fcp;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import org.tanukisoftware.wrapper.WrapperManager;
 
@@ -34,13 +36,32 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	final FCPConnectionHandler handler;
+	/** If not null, the socket is non-blocking and the selector reads from it
+	 * into inBuf for us, and we only use a thread while there is something
+	 * to parse. */
+	private final FCPSelector selector;
+	private final byte[] inBuf;
+	private int inStart;
+	private int inEnd;
+	/** Set by the selector when the other side has closed, or on error */
+	private boolean eof;
+	/** Is a thread parsing and running messages? */
+	private boolean workerRunning;
+	private InputStream is;
+	private LineReadingInputStream lis;
+	private boolean firstMessage = true;
+
+	/** Bytes buffered per connection when using the selector */
+	static final int INPUT_BUFFER_SIZE = 32768;
 
 	FCPConnectionInputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
+		this.selector = handler.selector;
+		this.inBuf = selector == null ? null : new byte[INPUT_BUFFER_SIZE];
 	}
 
 	void start() {
-		if (handler.sock == null)
+		if (handler.sock == null || selector != null)
 			return;
 		handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
 	}
@@ -48,7 +69,10 @@ public class FCPConnectionInputHandler implements Runnable {
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
 		try {
-			realRun();
+			if(selector != null) {
+				if(channelRun()) return; // Waiting for more input
+			} else
+				realRun();
 		} catch (TooLongException e) {
 			Logger.normal(this, "Caught "+e.getMessage(), e);
 		} catch (IOException e) {
@@ -65,92 +89,219 @@ public class FCPConnectionInputHandler implements Runnable {
 	}
 
 	public void realRun() throws IOException {
-		InputStream is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
-		LineReadingInputStream lis = new LineReadingInputStream(is);
-
-		boolean firstMessage = true;
+		is = new BufferedInputStream(handler.sock.getInputStream(), 4096);
+		lis = new LineReadingInputStream(is);
 
 		while(true) {
-			SimpleFieldSet fs;
-			if(WrapperManager.hasShutdownHookBeenTriggered()) {
-				FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
-				handler.outputHandler.queue(msg);
-				Closer.close(is);
-				return;
-			}
-			// Read a message
-			String messageType = lis.readLine(128, 128, true);
-			if(messageType == null) {
+			if(!processMessage()) {
 				Closer.close(is);
 				return;
 			}
-			if(messageType.equals(""))
-				continue;
-			fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
-
-			// check for valid endmarker
-			if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
-				handler.outputHandler.queue(err);
-				continue;
-			}
+		}
+	}
 
-			FCPMessage msg;
-			try {
-				if(logDEBUG)
-					Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
-				msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
-				if(msg == null) continue;
-			} catch (MessageInvalidException e) {
-				if(firstMessage) {
-					FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
-					handler.outputHandler.queue(err);
-					handler.close();
-					Closer.close(is);
-					return;
-				} else {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
+	/**
+	 * Parse and run messages until we run out of buffered input.
+	 * @return True if the connection is still open and we are waiting for
+	 * the selector to read more, false if it should be closed.
+	 */
+	private boolean channelRun() throws IOException {
+		if(lis == null) {
+			is = new SelectorInputStream();
+			lis = new LineReadingInputStream(is);
+		}
+		while(true) {
+			synchronized(this) {
+				if(inStart == inEnd && !eof) {
+					workerRunning = false;
+					return true;
 				}
-				continue;
 			}
-			if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			if(!processMessage()) return false;
+		}
+	}
+
+	/**
+	 * Read and run a single message.
+	 * @return False if the connection should be closed.
+	 */
+	private boolean processMessage() throws IOException {
+		SimpleFieldSet fs;
+		if(WrapperManager.hasShutdownHookBeenTriggered()) {
+			FCPMessage msg = new ProtocolErrorMessage(ProtocolErrorMessage.SHUTTING_DOWN,true,"The node is shutting down","Node",false);
+			handler.outputHandler.queue(msg);
+			return false;
+		}
+		// Read a message
+		String messageType = lis.readLine(128, 128, true);
+		if(messageType == null) {
+			return false;
+		}
+		if(messageType.equals(""))
+			return true;
+		fs = new SimpleFieldSet(lis, 4096, 128, true, true, true);
+
+		// check for valid endmarker
+		if (!firstMessage && fs.getEndMarker() != null && (!fs.getEndMarker().startsWith("End")) && (!"Data".equals(fs.getEndMarker()))) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.MESSAGE_PARSE_ERROR, false, "Invalid end marker: "+fs.getEndMarker(), fs.get("Identifer"), fs.getBoolean("Global", false));
+			handler.outputHandler.queue(err);
+			return true;
+		}
+
+		FCPMessage msg;
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Incoming FCP message:\n"+messageType+'\n'+fs.toString());
+			msg = FCPMessage.create(messageType, fs, handler.bf, handler.server.core.persistentTempBucketFactory);
+			if(msg == null) return true;
+		} catch (MessageInvalidException e) {
+			if(firstMessage) {
 				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
 				handler.outputHandler.queue(err);
 				handler.close();
-				Closer.close(is);
-				return;
-			}
-			if(msg instanceof BaseDataCarryingMessage) {
-				// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
-				try {
-					((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
-				} catch (MessageInvalidException e) {
-					FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
-					handler.outputHandler.queue(err);
-					continue;
-				}
-			}
-			if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
-				FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+				return false;
+			} else {
+				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
 			}
+			return true;
+		}
+		if(firstMessage && !(msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.CLIENT_HELLO_MUST_BE_FIRST_MESSAGE, true, null, null, false);
+			handler.outputHandler.queue(err);
+			handler.close();
+			return false;
+		}
+		if(msg instanceof BaseDataCarryingMessage) {
+			// FIXME tidy up - coalesce with above and below try { } catch (MIE) {}'s?
 			try {
-				if(logDEBUG)
-					Logger.debug(this, "Parsed message: "+msg+" for "+handler);
-				msg.run(handler, handler.server.node);
+				((BaseDataCarryingMessage)msg).readFrom(lis, handler.bf, handler.server);
 			} catch (MessageInvalidException e) {
 				FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
 				handler.outputHandler.queue(err);
-				continue;
+				return true;
 			}
-			firstMessage = false;
-			if(handler.isClosed()) {
-				Closer.close(is);
-				return;
+		}
+		if((!firstMessage) && (msg instanceof ClientHelloMessage)) {
+			FCPMessage err = new ProtocolErrorMessage(ProtocolErrorMessage.NO_LATE_CLIENT_HELLOS, false, null, null, false);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		try {
+			if(logDEBUG)
+				Logger.debug(this, "Parsed message: "+msg+" for "+handler);
+			msg.run(handler, handler.server.node);
+		} catch (MessageInvalidException e) {
+			FCPMessage err = new ProtocolErrorMessage(e.protocolCode, false, e.getMessage(), e.ident, e.global);
+			handler.outputHandler.queue(err);
+			return true;
+		}
+		firstMessage = false;
+		return !handler.isClosed();
+	}
+
+	/** Should the selector read more for us? Not if our buffer is full, or if
+	 * the client isn't reading our replies. */
+	boolean wantsRead() {
+		synchronized(this) {
+			if(eof || inEnd - inStart == inBuf.length) return false;
+		}
+		return !handler.outputHandler.isBacklogged();
+	}
+
+	/** Called by the selector when there is something to read. */
+	void onReadable(SocketChannel channel) throws IOException {
+		boolean dispatch = false;
+		synchronized(this) {
+			if(inEnd == inBuf.length && inStart > 0) {
+				System.arraycopy(inBuf, inStart, inBuf, 0, inEnd - inStart);
+				inEnd -= inStart;
+				inStart = 0;
+			}
+			int read = channel.read(ByteBuffer.wrap(inBuf, inEnd, inBuf.length - inEnd));
+			if(read < 0)
+				eof = true;
+			else
+				inEnd += read;
+			notifyAll();
+			if(!workerRunning && (inEnd > inStart || eof)) {
+				workerRunning = true;
+				dispatch = true;
+			}
+		}
+		if(dispatch)
+			handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	/** Called by the selector if the connection fails: treat it as closed. */
+	void onChannelFailed() {
+		boolean dispatch = false;
+		synchronized(this) {
+			eof = true;
+			notifyAll();
+			if(!workerRunning) {
+				workerRunning = true;
+				dispatch = true;
+			}
+		}
+		if(dispatch)
+			handler.server.node.executor.execute(this, "FCP input handler for "+handler.sock.getRemoteSocketAddress());
+	}
+
+	/** Reads what the selector has buffered, waiting for more if necessary. */
+	private class SelectorInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			boolean wasFull;
+			int b;
+			synchronized(FCPConnectionInputHandler.this) {
+				if(!waitForData()) return -1;
+				wasFull = inEnd - inStart == inBuf.length;
+				b = inBuf[inStart++] & 0xFF;
+				if(inStart == inEnd) inStart = inEnd = 0;
+			}
+			if(wasFull) selector.interestChanged(handler);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			if(length == 0) return 0;
+			boolean wasFull;
+			int read;
+			synchronized(FCPConnectionInputHandler.this) {
+				if(!waitForData()) return -1;
+				wasFull = inEnd - inStart == inBuf.length;
+				read = Math.min(length, inEnd - inStart);
+				System.arraycopy(inBuf, inStart, buf, offset, read);
+				inStart += read;
+				if(inStart == inEnd) inStart = inEnd = 0;
+			}
+			if(wasFull) selector.interestChanged(handler);
+			return read;
+		}
+
+		@Override
+		public int available() {
+			synchronized(FCPConnectionInputHandler.this) {
+				return inEnd - inStart;
+			}
+		}
+
+		/** Caller must hold the lock. @return False on EOF. */
+		private boolean waitForData() {
+			while(inStart == inEnd) {
+				if(eof) return false;
+				try {
+					FCPConnectionInputHandler.this.wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
 			}
+			return true;
 		}
+
 	}
 
 	public boolean objectCanNew(ObjectContainer container) {
@@ -4,29 +4,64 @@
 package freenet.node.fcp;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
 import java.util.LinkedList;
 
 import com.db4o.ObjectContainer;
 
 import freenet.support.Logger;
 import freenet.support.OOMHandler;
+import freenet.support.api.Bucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.Closer;
 
-public class FCPConnectionOutputHandler implements Runnable {
+public class FCPConnectionOutputHandler implements Runnable, StreamDataOutputStream.Connection {
 
 	final FCPConnectionHandler handler;
 	final LinkedList<FCPMessage> outQueue;
 	// Synced on outQueue
 	private boolean closedOutputQueue;
+	/** If not null, the socket is non-blocking and the selector calls
+	 * onWritable() when it can take more, instead of us having a thread. */
+	private final FCPSelector selector;
+	/** The message the selector is part way through writing. Only used on the
+	 * selector thread. */
+	private PendingMessage pending;
+
+	/** The latest progress for each request with a SimpleProgress in outQueue,
+	 * by identifier. A newer one is sent in place of the one queued, rather than
+	 * queueing both. Synced on outQueue. */
+	private final HashMap<String, SimpleProgressMessage> queuedProgress;
+	/** Set when the client hasn't read MAX_QUEUED messages. Synced on outQueue. */
+	private boolean overflowed;
+
+	/** Stop reading from the client while this many messages are waiting for
+	 * it to read them. */
+	static final int MAX_QUEUED_BEFORE_THROTTLE = 256;
+	/** Drop the connection if this many messages are waiting for the client to
+	 * read them. It isn't reading: not all of what we send is in reply to what
+	 * it sends, for example progress of requests on the global queue. Persistent
+	 * requests' status can be had again when it reconnects. */
+	static final int MAX_QUEUED = 16384;
 	
 	public FCPConnectionOutputHandler(FCPConnectionHandler handler) {
 		this.handler = handler;
 		this.outQueue = new LinkedList<FCPMessage>();
+		this.queuedProgress = new HashMap<String, SimpleProgressMessage>();
+		this.selector = handler.selector;
 	}
 
 	void start() {
-		if (handler.sock == null)
+		if (handler.sock == null || selector != null)
 			return;
 		handler.server.node.executor.execute(this, "FCP output handler for "+handler.sock.getRemoteSocketAddress()+ ':' +handler.sock.getPort());
 	}
@@ -48,6 +83,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 			// I.e. the other side closed the connection, and we threw an IOException.
 			synchronized(outQueue) {
 				closedOutputQueue = true;
+				outQueue.notifyAll();
 			}
 		}
 		handler.close();
@@ -76,7 +112,7 @@ public class FCPConnectionOutputHandler implements Runnable {
 						}
 						continue;
 					}
-					msg = outQueue.removeFirst();
+					msg = takeFirst();
 					break;
 				}
 			}
@@ -102,12 +138,79 @@ public class FCPConnectionOutputHandler implements Runnable {
 				// FIXME throw something???
 				return;
 			}
-			outQueue.add(msg);
-			outQueue.notifyAll();
+			if(overflowed) return;
+			if(msg instanceof SimpleProgressMessage) {
+				SimpleProgressMessage progress = (SimpleProgressMessage) msg;
+				if(queuedProgress.put(progressKey(progress), progress) != null)
+					return; // Sent in place of the one already queued
+			}
+			if(outQueue.size() >= MAX_QUEUED) {
+				Logger.error(this, "Client isn't reading: "+outQueue.size()+" messages queued, dropping connection "+handler);
+				overflowed = true;
+				outQueue.clear();
+				queuedProgress.clear();
+				outQueue.notifyAll();
+			} else {
+				outQueue.add(msg);
+				outQueue.notifyAll();
+			}
+		}
+		if(selector != null)
+			selector.interestChanged(handler);
+		else if(hasOverflowed()) {
+			// Unblock the input and output threads, which will then close the connection.
+			try {
+				handler.sock.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	private static String progressKey(SimpleProgressMessage msg) {
+		return msg.isGlobal() ? "G:" + msg.getIdentifier() : "L:" + msg.getIdentifier();
+	}
+
+	/** Remove the first message from outQueue. Caller must hold outQueue. */
+	private FCPMessage takeFirst() {
+		FCPMessage msg = outQueue.removeFirst();
+		if(msg instanceof SimpleProgressMessage)
+			msg = queuedProgress.remove(progressKey((SimpleProgressMessage) msg));
+		// Wake up anyone in waitForQueueBelow()
+		outQueue.notifyAll();
+		return msg;
+	}
+
+	/** Has the client failed to read so many messages that we have given up on
+	 * it, and not closed the output yet? The selector then closes the connection. */
+	boolean hasOverflowed() {
+		synchronized(outQueue) {
+			return overflowed && !closedOutputQueue;
+		}
+	}
+
+	/**
+	 * Wait until fewer than the given number of messages are queued. Used when
+	 * streaming data, so that we don't queue more than the client can take.
+	 * @return False if the connection has been closed.
+	 */
+	public boolean waitForQueueBelow(int maxQueued) {
+		synchronized(outQueue) {
+			while(outQueue.size() >= maxQueued) {
+				if(closedOutputQueue) return false;
+				try {
+					outQueue.wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return !(closedOutputQueue || overflowed);
 		}
 	}
 
 	public void onClosed() {
+		if(selector != null)
+			selector.interestChanged(handler);
 		synchronized(outQueue) {
 			outQueue.notifyAll();
 			// Give a chance to the output handler to flush
@@ -124,6 +227,175 @@ public class FCPConnectionOutputHandler implements Runnable {
 		}
 	}
 
+	/** Has the client stopped reading our messages? If so the selector stops
+	 * reading its messages, rather than queueing replies without limit. */
+	boolean isBacklogged() {
+		synchronized(outQueue) {
+			return outQueue.size() >= MAX_QUEUED_BEFORE_THROTTLE;
+		}
+	}
+
+	/** Called on the selector thread. */
+	boolean wantsWrite() {
+		if(pending != null) return true;
+		synchronized(outQueue) {
+			return !closedOutputQueue && !outQueue.isEmpty();
+		}
+	}
+
+	/** Called on the selector thread when the socket can take more data.
+	 * Writes as much as it will take without blocking. */
+	void onWritable(SocketChannel channel) throws IOException {
+		while(true) {
+			if(pending == null) {
+				FCPMessage msg;
+				synchronized(outQueue) {
+					if(closedOutputQueue || outQueue.isEmpty()) return;
+					msg = takeFirst();
+				}
+				pending = new PendingMessage(msg);
+			}
+			if(!pending.writeTo(channel)) return;
+			pending.finish();
+			pending = null;
+		}
+	}
+
+	/** Called on the selector thread. If the connection has been closed and
+	 * everything has been written, shut down the output side. */
+	void maybeFinish() {
+		if(selector == null || pending != null) return;
+		// Don't hold outQueue while taking the handler's lock.
+		boolean closed = handler.isClosed();
+		synchronized(outQueue) {
+			if(closedOutputQueue || !closed || !outQueue.isEmpty()) return;
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
+		handler.closedOutput();
+	}
+
+	/** Called on the selector thread if writing fails. The input side will
+	 * see the end of the stream and close the connection. */
+	void onChannelFailed() {
+		boolean wasClosed;
+		synchronized(outQueue) {
+			wasClosed = closedOutputQueue;
+			closedOutputQueue = true;
+			outQueue.notifyAll();
+		}
+		if(pending != null) {
+			pending.abort();
+			pending = null;
+		}
+		if(!wasClosed)
+			handler.closedOutput();
+	}
+
+	/**
+	 * A message being written to a non-blocking channel. The name and fields
+	 * are serialized up front, and the data is then sent straight from its
+	 * buckets: with transferTo() if a bucket is a plain file, otherwise in
+	 * chunks.
+	 */
+	private class PendingMessage {
+
+		private final FCPMessage msg;
+		private final ByteBuffer header;
+		/** Null if the whole message is in the header */
+		private final Bucket[] buckets;
+		private long dataRemaining;
+		private int bucketIndex;
+		/** Bytes sent from the current bucket */
+		private long bucketOffset;
+		private FileChannel file;
+		private InputStream stream;
+		private ByteBuffer streamBuf;
+
+		PendingMessage(FCPMessage msg) throws IOException {
+			this.msg = msg;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(256);
+			Bucket[] data = null;
+			if(msg instanceof BaseDataCarryingMessage)
+				data = ((BaseDataCarryingMessage) msg).getDataBuckets();
+			if(data != null) {
+				msg.sendHeader(baos);
+				dataRemaining = ((BaseDataCarryingMessage) msg).dataLength();
+			} else {
+				msg.send(baos);
+			}
+			buckets = data;
+			header = ByteBuffer.wrap(baos.toByteArray());
+		}
+
+		/** @return True if the whole message has been written. */
+		boolean writeTo(SocketChannel channel) throws IOException {
+			if(header.hasRemaining()) {
+				channel.write(header);
+				if(header.hasRemaining()) return false;
+			}
+			while(dataRemaining > 0) {
+				if(bucketIndex >= buckets.length)
+					throw new IOException("Data shorter than expected sending "+msg);
+				Bucket bucket = buckets[bucketIndex];
+				long toSend = Math.min(bucket.size() - bucketOffset, dataRemaining);
+				if(toSend <= 0) {
+					closeBucket();
+					bucketIndex++;
+					bucketOffset = 0;
+					continue;
+				}
+				if(file == null && stream == null) {
+					File f = BucketTools.getFile(bucket);
+					if(f != null) {
+						file = new FileInputStream(f).getChannel();
+						if(file.size() < bucket.size())
+							throw new IOException("File "+f+" is shorter than expected");
+					} else {
+						stream = bucket.getInputStream();
+						if(streamBuf == null) streamBuf = ByteBuffer.allocate(32768);
+						streamBuf.limit(0);
+					}
+				}
+				long sent;
+				if(file != null) {
+					sent = file.transferTo(bucketOffset, toSend, channel);
+				} else {
+					if(!streamBuf.hasRemaining()) {
+						streamBuf.clear();
+						int read = stream.read(streamBuf.array(), 0, (int) Math.min(streamBuf.capacity(), toSend));
+						if(read <= 0) throw new IOException("Bucket shorter than expected sending "+msg);
+						streamBuf.limit(read);
+					}
+					sent = channel.write(streamBuf);
+				}
+				if(sent <= 0) return false;
+				bucketOffset += sent;
+				dataRemaining -= sent;
+			}
+			return true;
+		}
+
+		void finish() {
+			closeBucket();
+			if(buckets != null)
+				((BaseDataCarryingMessage) msg).onDataSent();
+		}
+
+		void abort() {
+			closeBucket();
+		}
+
+		private void closeBucket() {
+			Closer.close(file);
+			Closer.close(stream);
+			file = null;
+			stream = null;
+			if(streamBuf != null) streamBuf.limit(0);
+		}
+
+	}
+
 	public boolean objectCanNew(ObjectContainer container) {
 		throw new UnsupportedOperationException("FCPConnectionOutputHandler storage in database not supported");
 	}
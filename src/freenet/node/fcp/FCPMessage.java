@@ -14,6 +14,11 @@ import freenet.support.io.PersistentTempBucketFactory;
 public abstract class FCPMessage {
 
 	public void send(OutputStream os) throws IOException {
+		sendHeader(os);
+	}
+
+	/** Write the message name and fields, but not any data. */
+	final void sendHeader(OutputStream os) throws IOException {
 		SimpleFieldSet sfs = getFieldSet();
 		sfs.setEndMarker(getEndString());
 		String msg = sfs.toString();
@@ -106,6 +111,10 @@ public abstract class FCPMessage {
 			return new WatchFeedsMessage(fs);
 		if(name.equals(UnsubscribeUSKMessage.NAME))
 			return new UnsubscribeUSKMessage(fs);
+		if(name.equals(GetBatchMessage.NAME))
+			return new GetBatchMessage(fs);
+		if(name.equals(CancelBatchMessage.NAME))
+			return new CancelBatchMessage(fs);
 		if(name.equals(TestDDARequestMessage.NAME))
 			return new TestDDARequestMessage(fs);
 		if(name.equals(TestDDAResponseMessage.NAME))
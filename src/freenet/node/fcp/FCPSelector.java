@@ -0,0 +1,136 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+
+/**
+ * Does all the socket I/O for FCP connections which have a channel (i.e. not
+ * SSL), so that a connection doesn't need any threads of its own. Incoming
+ * bytes are buffered by the FCPConnectionInputHandler, which only uses a
+ * thread while it has something to parse and run. Outgoing messages are
+ * written as the socket can take them, by the FCPConnectionOutputHandler.
+ */
+final class FCPSelector implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(FCPSelector.class);
+	}
+
+	private final Selector selector;
+	/** Connections whose interest set needs recomputing, or which need
+	 * registering. Can be added to from any thread. */
+	private final LinkedHashSet<FCPConnectionHandler> changed = new LinkedHashSet<FCPConnectionHandler>();
+
+	FCPSelector() throws IOException {
+		selector = Selector.open();
+	}
+
+	void start() {
+		Thread t = new Thread(this, "FCP selector");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Start handling a new connection. */
+	void register(FCPConnectionHandler handler) throws IOException {
+		handler.sock.getChannel().configureBlocking(false);
+		interestChanged(handler);
+	}
+
+	/**
+	 * Something has changed which may mean the connection wants to read or
+	 * write when it didn't before, or vice versa.
+	 */
+	void interestChanged(FCPConnectionHandler handler) {
+		synchronized(changed) {
+			if(!changed.add(handler)) return;
+		}
+		selector.wakeup();
+	}
+
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(true) {
+			try {
+				selector.select();
+				updateInterest();
+				for(Iterator<SelectionKey> i = selector.selectedKeys().iterator();i.hasNext();) {
+					SelectionKey key = i.next();
+					i.remove();
+					FCPConnectionHandler handler = (FCPConnectionHandler) key.attachment();
+					handle(key, handler);
+				}
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+	}
+
+	private void handle(SelectionKey key, FCPConnectionHandler handler) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		try {
+			if(key.isValid() && key.isReadable())
+				handler.inputHandler.onReadable(channel);
+			if(key.isValid() && key.isWritable())
+				handler.outputHandler.onWritable(channel);
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Caught "+e+" on "+handler, e);
+			handler.inputHandler.onChannelFailed();
+			handler.outputHandler.onChannelFailed();
+		}
+		handler.outputHandler.maybeFinish();
+		setInterest(key, handler);
+	}
+
+	private void updateInterest() {
+		FCPConnectionHandler[] handlers;
+		synchronized(changed) {
+			if(changed.isEmpty()) return;
+			handlers = changed.toArray(new FCPConnectionHandler[changed.size()]);
+			changed.clear();
+		}
+		for(FCPConnectionHandler handler : handlers) {
+			SocketChannel channel = handler.sock.getChannel();
+			SelectionKey key = channel.keyFor(selector);
+			if(key == null) {
+				try {
+					key = channel.register(selector, 0, handler);
+				} catch (ClosedChannelException e) {
+					continue;
+				}
+			}
+			if(handler.outputHandler.hasOverflowed()) {
+				// The client isn't reading what we send: treat it as failed.
+				handler.inputHandler.onChannelFailed();
+				handler.outputHandler.onChannelFailed();
+			}
+			// Nothing to write but closed: the output side is finished.
+			handler.outputHandler.maybeFinish();
+			setInterest(key, handler);
+		}
+	}
+
+	private void setInterest(SelectionKey key, FCPConnectionHandler handler) {
+		if(!key.isValid()) return;
+		int ops = 0;
+		if(handler.inputHandler.wantsRead()) ops |= SelectionKey.OP_READ;
+		if(handler.outputHandler.wantsWrite()) ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+	}
+
+}
@@ -63,6 +63,8 @@ public class FCPServer implements Runnable {
 	private static boolean logMINOR;
 	public final static int DEFAULT_FCP_PORT = 9481;
 	NetworkInterface networkInterface;
+	/** Does the socket I/O for non-SSL connections, see FCPConnectionHandler. */
+	FCPSelector selector;
 	final NodeClientCore core;
 	final Node node;
 	final int port;
@@ -74,6 +76,8 @@ public class FCPServer implements Runnable {
 	final WeakHashMap<String, FCPClient> rebootClientsByName;
 	final FCPClient globalRebootClient;
 	FCPClient globalForeverClient;
+	/** Summary of the global queue for the web interface */
+	private final RequestStatusCache globalStatusCache = new RequestStatusCache();
 	private boolean enablePersistentDownloads;
 	private File persistentDownloadsFile;
 	private File persistentDownloadsTempFile;
@@ -111,6 +115,7 @@ public class FCPServer implements Runnable {
 		defaultInsertContext = client.getInsertContext(false);
 		
 		globalRebootClient = new FCPClient("Global Queue", null, true, null, ClientRequest.PERSIST_REBOOT, null, whiteboard, null);
+		globalRebootClient.setRequestStatusCache(globalStatusCache);
 		
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 		
@@ -119,6 +124,7 @@ public class FCPServer implements Runnable {
 	public void load(ObjectContainer container) {
 		persistentRoot = FCPPersistentRoot.create(node.nodeDBHandle, whiteboard, container);
 		globalForeverClient = persistentRoot.globalForeverClient;
+		globalForeverClient.setRequestStatusCache(globalStatusCache);
 		
 		if(enabled && enablePersistentDownloads) {
 			Logger.error(this, "Persistent downloads enabled: attempting to migrate old persistent downloads to database...");
@@ -137,7 +143,17 @@ public class FCPServer implements Runnable {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
-				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true, true);
+				if(selector == null) {
+					try {
+						FCPSelector sel = new FCPSelector();
+						sel.start();
+						selector = sel;
+					} catch (IOException e) {
+						// Fall back to threads
+						Logger.error(this, "Unable to open selector for FCP: "+e, e);
+					}
+				}
 			}
 		} catch (IOException be) {
 			Logger.error(this, "Couldn't bind to FCP Port "+bindTo+ ':' +port+". FCP Server not started.", be);
@@ -630,6 +646,31 @@ public class FCPServer implements Runnable {
 		return v.toArray(new ClientRequest[v.size()]);
 	}
 
+	/**
+	 * The web interface's summary of the global queue. Call
+	 * loadGlobalRequestStatus() on the database thread if it is not loaded yet.
+	 */
+	public RequestStatusCache getGlobalRequestStatusCache() {
+		return globalStatusCache;
+	}
+
+	/**
+	 * Fill the global queue's status cache, if this has not already been done
+	 * since startup. This is the only time we need to activate every request on
+	 * the queue; after this the requests keep the cache up to date themselves.
+	 */
+	public void loadGlobalRequestStatus(ObjectContainer container) throws DatabaseDisabledException {
+		if(globalStatusCache.isLoaded()) return;
+		ClientRequest[] reqs = getGlobalRequests(container);
+		if(logMINOR) Logger.minor(this, "Loading status of "+reqs.length+" global requests");
+		for(ClientRequest req : reqs) {
+			if(req.isPersistentForever())
+				container.activate(req, 1);
+			globalStatusCache.updateStatus(req.getStatus(container));
+		}
+		globalStatusCache.setLoaded();
+	}
+
 	public boolean removeGlobalRequestBlocking(final String identifier) throws MessageInvalidException, DatabaseDisabledException {
 		if(!globalRebootClient.removeByIdentifier(identifier, true, this, null, core.clientContext)) {
 			final Object sync = new Object();
@@ -0,0 +1,83 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import freenet.client.FetchContext;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.async.BatchFetchCallback;
+import freenet.client.async.BatchFetcher;
+import freenet.node.NodeClientCore;
+import freenet.support.Logger;
+
+/**
+ * A batch of keys fetched for an FCP client, see GetBatchMessage. Lasts until
+ * it finishes, it is cancelled, or the connection closes.
+ */
+public class GetBatch implements BatchFetchCallback {
+
+	final FCPConnectionHandler handler;
+	final String identifier;
+	private final BatchFetcher batch;
+	private int succeeded;
+	private int failed;
+
+	GetBatch(GetBatchMessage message, NodeClientCore core, FCPConnectionHandler handler) throws IdentifierCollisionException, MessageInvalidException {
+		this.handler = handler;
+		this.identifier = message.identifier;
+		FetchContext fctx = new FetchContext(handler.server.defaultFetchContext, FetchContext.IDENTICAL_MASK, false, null);
+		fctx.localRequestOnly = message.dsOnly;
+		fctx.ignoreStore = message.ignoreDS;
+		fctx.maxNonSplitfileRetries = message.maxRetries;
+		fctx.maxSplitfileBlockRetries = message.maxRetries;
+		fctx.maxOutputLength = message.maxSize;
+		fctx.maxTempLength = message.maxSize;
+		try {
+			batch = new BatchFetcher(message.uris, fctx, message.priorityClass, handler.getRebootClient().lowLevelClient, this);
+		} catch (FetchException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, e.getMessage(), identifier, false);
+		}
+		handler.addBatch(identifier, this);
+		batch.start(core.clientContext);
+	}
+
+	public void onSuccess(int index, FetchResult result, BatchFetcher batch) {
+		synchronized(this) {
+			succeeded++;
+		}
+		if(handler.isClosed()) {
+			result.asBucket().free();
+			return;
+		}
+		BatchKeyFoundMessage msg = new BatchKeyFoundMessage(identifier, index, batch.getURI(index), result);
+		msg.setFreeOnSent();
+		handler.outputHandler.queue(msg);
+	}
+
+	public void onFailure(int index, FetchException e, BatchFetcher batch) {
+		synchronized(this) {
+			failed++;
+		}
+		if(handler.isClosed()) return;
+		handler.outputHandler.queue(new BatchKeyFailedMessage(identifier, index, batch.getURI(index), e));
+	}
+
+	public void onFinished(BatchFetcher batch) {
+		handler.removeBatch(identifier, this);
+		if(Logger.shouldLog(Logger.MINOR, this))
+			Logger.minor(this, "Finished batch "+identifier+" on "+handler);
+		if(handler.isClosed()) return;
+		int s, f;
+		synchronized(this) {
+			s = succeeded;
+			f = failed;
+		}
+		handler.outputHandler.queue(new BatchFinishedMessage(identifier, batch.size(), s, f, batch.isCancelled()));
+	}
+
+	void cancel() {
+		batch.cancel(null, handler.server.core.clientContext);
+	}
+
+}
@@ -0,0 +1,113 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.FreenetURI;
+import freenet.node.Node;
+import freenet.node.RequestStarter;
+import freenet.support.Fields;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent by a client to fetch many keys as a single request. Much cheaper for the
+ * node than a ClientGet per key when polling lots of keys. Each key is reported
+ * with a BatchKeyFound or BatchKeyFailed as it completes, followed by a single
+ * BatchFinished. The batch lasts until the connection closes, or until the
+ * client sends a CancelBatch.
+ *
+ * GetBatch
+ * Identifier=identifier
+ * URI.0=SSK@.../identity-3
+ * URI.1=CHK@...
+ * PriorityClass=2
+ * MaxSize=65536 // maximum size of the data for each key
+ * MaxRetries=0 // per key, -1 = retry forever
+ * IgnoreDS=false
+ * DSOnly=false
+ * EndMessage
+ */
+public class GetBatchMessage extends FCPMessage {
+
+	public static final String NAME = "GetBatch";
+
+	final String identifier;
+	final FreenetURI[] uris;
+	final short priorityClass;
+	final long maxSize;
+	final int maxRetries;
+	final boolean ignoreDS;
+	final boolean dsOnly;
+
+	public GetBatchMessage(SimpleFieldSet fs) throws MessageInvalidException {
+		identifier = fs.get("Identifier");
+		if(identifier == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No Identifier!", null, false);
+		SimpleFieldSet uriSet = fs.subset("URI");
+		if(uriSet == null)
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No URI.0 on GetBatch", identifier, false);
+		ArrayList<FreenetURI> list = new ArrayList<FreenetURI>();
+		for(int i=0;;i++) {
+			String s = uriSet.get(Integer.toString(i));
+			if(s == null) break;
+			try {
+				list.add(new FreenetURI(s));
+			} catch (MalformedURLException e) {
+				throw new MessageInvalidException(ProtocolErrorMessage.FREENET_URI_PARSE_ERROR, "URI."+i+": "+e.getMessage(), identifier, false);
+			}
+		}
+		if(list.isEmpty())
+			throw new MessageInvalidException(ProtocolErrorMessage.MISSING_FIELD, "No URI.0 on GetBatch", identifier, false);
+		uris = list.toArray(new FreenetURI[list.size()]);
+		try {
+			maxSize = Long.parseLong(fs.get("MaxSize") == null ? Long.toString(Long.MAX_VALUE) : fs.get("MaxSize"), 10);
+			maxRetries = fs.get("MaxRetries") == null ? 0 : Integer.parseInt(fs.get("MaxRetries"), 10);
+			priorityClass = fs.get("PriorityClass") == null ? RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS : Short.parseShort(fs.get("PriorityClass"), 10);
+		} catch (NumberFormatException e) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ERROR_PARSING_NUMBER, e.getMessage(), identifier, false);
+		}
+		if((priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS) || (priorityClass > RequestStarter.MINIMUM_PRIORITY_CLASS))
+			throw new MessageInvalidException(ProtocolErrorMessage.INVALID_FIELD, "Valid priorities are from "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" to "+RequestStarter.MINIMUM_PRIORITY_CLASS, identifier, false);
+		ignoreDS = Fields.stringToBool(fs.get("IgnoreDS"), false);
+		dsOnly = Fields.stringToBool(fs.get("DSOnly"), false);
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		for(int i=0;i<uris.length;i++)
+			fs.putSingle("URI."+i, uris[i].toString(false, false));
+		fs.put("PriorityClass", priorityClass);
+		fs.put("MaxSize", maxSize);
+		fs.put("MaxRetries", maxRetries);
+		fs.put("IgnoreDS", ignoreDS);
+		fs.put("DSOnly", dsOnly);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		try {
+			new GetBatch(this, node.clientCore, handler);
+		} catch (IdentifierCollisionException e) {
+			handler.outputHandler.queue(new IdentifierCollisionMessage(identifier, false));
+		}
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
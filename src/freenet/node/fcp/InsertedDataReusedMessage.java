@@ -0,0 +1,55 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.events.InsertedDataReusedEvent;
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Sent before PutSuccessful for a directory insert with ReuseInsertedData=true:
+ * how many files and containers were not inserted again, and how many bytes.
+ */
+public class InsertedDataReusedMessage extends FCPMessage {
+
+	final String identifier;
+	final boolean global;
+	final int filesReused;
+	final long bytesReused;
+
+	public InsertedDataReusedMessage(String identifier, boolean global, InsertedDataReusedEvent event) {
+		this.identifier = identifier;
+		this.global = global;
+		this.filesReused = event.filesReused;
+		this.bytesReused = event.bytesReused;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		fs.put("FilesReused", filesReused);
+		fs.put("BytesReused", bytesReused);
+		if(global) fs.putSingle("Global", "true");
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return "InsertedDataReused";
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "InsertedDataReused goes from server to client not the other way around", identifier, global);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
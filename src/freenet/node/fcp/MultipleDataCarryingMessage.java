@@ -34,8 +34,20 @@ public abstract class MultipleDataCarryingMessage extends BaseDataCarryingMessag
 			for(Map.Entry<String, Bucket> entry : buckets.entrySet()) {
 				Bucket bucket = entry.getValue();
 				BucketTools.copyTo(bucket, os, bucket.size());
-				if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 			}
+			onDataSent();
+	}
+
+	@Override
+	Bucket[] getDataBuckets() {
+		return buckets.values().toArray(new Bucket[buckets.size()]);
+	}
+
+	@Override
+	void onDataSent() {
+		if(!freeOnSent) return;
+		for(Bucket bucket : buckets.values())
+			bucket.free(); // Always transient so no removeFrom() needed.
 	}
 	
 	@Override
@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.keys.FreenetURI;
+
+/**
+ * A summary of the state of a request on the global queue, kept in memory by
+ * the RequestStatusCache so the queue pages can be rendered without
+ * activating the request itself. Not stored in the database. Only modified
+ * while holding the cache's lock; callers outside the cache get a copy.
+ */
+public abstract class RequestStatus implements Cloneable {
+
+	private final String identifier;
+	private final boolean persistentForever;
+	private short priority;
+	private boolean started;
+	private boolean finished;
+	private boolean succeeded;
+	private boolean canRestart;
+	private int totalBlocks;
+	private int minBlocks;
+	private int fetchedBlocks;
+	private int failedBlocks;
+	private int fatallyFailedBlocks;
+	private boolean totalFinalized;
+	private long lastActivity;
+	private String failureReason;
+
+	RequestStatus(String identifier, boolean persistentForever, short priority, boolean started,
+			boolean finished, boolean succeeded, boolean canRestart, int totalBlocks, int minBlocks,
+			int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean totalFinalized,
+			long lastActivity, String failureReason) {
+		this.identifier = identifier;
+		this.persistentForever = persistentForever;
+		this.priority = priority;
+		this.started = started;
+		this.finished = finished;
+		this.succeeded = succeeded;
+		this.canRestart = canRestart;
+		this.totalBlocks = totalBlocks;
+		this.minBlocks = minBlocks;
+		this.fetchedBlocks = fetchedBlocks;
+		this.failedBlocks = failedBlocks;
+		this.fatallyFailedBlocks = fatallyFailedBlocks;
+		this.totalFinalized = totalFinalized;
+		this.lastActivity = lastActivity;
+		this.failureReason = failureReason;
+	}
+
+	public String getIdentifier() {
+		return identifier;
+	}
+
+	public boolean isPersistentForever() {
+		return persistentForever;
+	}
+
+	public short getPriority() {
+		return priority;
+	}
+
+	public boolean isStarted() {
+		return started;
+	}
+
+	public boolean hasFinished() {
+		return finished;
+	}
+
+	public boolean hasSucceeded() {
+		return succeeded;
+	}
+
+	public boolean canRestart() {
+		return canRestart;
+	}
+
+	public int getTotalBlocks() {
+		return totalBlocks;
+	}
+
+	public int getMinBlocks() {
+		return minBlocks;
+	}
+
+	public int getFetchedBlocks() {
+		return fetchedBlocks;
+	}
+
+	public int getFailedBlocks() {
+		return failedBlocks;
+	}
+
+	public int getFatallyFailedBlocks() {
+		return fatallyFailedBlocks;
+	}
+
+	public boolean isTotalFinalized() {
+		return totalFinalized;
+	}
+
+	/** The time of the last activity, or 0 if unknown. */
+	public long getLastActivity() {
+		return lastActivity;
+	}
+
+	/** Why did the request fail? Null if it hasn't failed or we don't know. */
+	public String getFailureReason() {
+		return failureReason;
+	}
+
+	/** The key to show for the request: the key being fetched, or the key
+	 * generated by an insert. Null if not known yet. */
+	public abstract FreenetURI getURI();
+
+	/** The filename to show for the request, or null. */
+	public abstract String getFilename();
+
+	/** Used for sorting by size. Negative if unknown. */
+	public abstract long getDataSize();
+
+	void setPriority(short priority) {
+		this.priority = priority;
+	}
+
+	void updateProgress(SplitfileProgressEvent event, long lastActivity) {
+		started = true;
+		totalBlocks = event.totalBlocks;
+		minBlocks = event.minSuccessfulBlocks;
+		fetchedBlocks = event.succeedBlocks;
+		failedBlocks = event.failedBlocks;
+		fatallyFailedBlocks = event.fatallyFailedBlocks;
+		totalFinalized = event.finalizedTotal;
+		this.lastActivity = lastActivity;
+	}
+
+	@Override
+	public RequestStatus clone() {
+		try {
+			return (RequestStatus) super.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new Error(e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+identifier;
+	}
+
+}
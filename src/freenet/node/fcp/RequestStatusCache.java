@@ -0,0 +1,182 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.support.Logger;
+
+/**
+ * In-memory summary of every request on the global queue, for the web
+ * interface. The requests keep it up to date as they start, make progress,
+ * finish, are restarted and are removed, so the queue pages can be rendered
+ * from here without a database job and without activating thousands of
+ * requests. Not persistent: it is filled by a single scan of the queue the
+ * first time it is needed after startup (see FCPServer.loadGlobalRequestStatus).
+ */
+public class RequestStatusCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(RequestStatusCache.class);
+	}
+
+	/** Notified when a request's cached status changes. Called without
+	 * holding any locks. */
+	public interface Listener {
+		void onStatusChanged(String identifier);
+	}
+
+	private final HashMap<String, DownloadRequestStatus> downloads;
+	private final HashMap<String, UploadRequestStatus> uploads;
+	private final HashMap<String, List<Listener>> listeners;
+	private boolean loaded;
+
+	RequestStatusCache() {
+		downloads = new HashMap<String, DownloadRequestStatus>();
+		uploads = new HashMap<String, UploadRequestStatus>();
+		listeners = new HashMap<String, List<Listener>>();
+	}
+
+	/** Has the cache been filled from the queue yet? Until then it only
+	 * knows about requests which have changed since startup. */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	synchronized void setLoaded() {
+		loaded = true;
+	}
+
+	/** Add a request, or replace its status completely. */
+	void updateStatus(RequestStatus status) {
+		if(logMINOR) Logger.minor(this, "Updating status for "+status.getIdentifier());
+		synchronized(this) {
+			String identifier = status.getIdentifier();
+			if(status instanceof DownloadRequestStatus) {
+				downloads.put(identifier, (DownloadRequestStatus) status);
+				uploads.remove(identifier);
+			} else {
+				uploads.put(identifier, (UploadRequestStatus) status);
+				downloads.remove(identifier);
+			}
+		}
+		notifyListeners(status.getIdentifier());
+	}
+
+	/** Called on every progress event, so must be cheap. */
+	void updateProgress(String identifier, SplitfileProgressEvent event, long lastActivity) {
+		synchronized(this) {
+			RequestStatus status = get(identifier);
+			if(status == null) return;
+			status.updateProgress(event, lastActivity);
+		}
+		notifyListeners(identifier);
+	}
+
+	/** The expected size of a download is known, or has changed. */
+	void updateExpectedSize(String identifier, long size) {
+		synchronized(this) {
+			DownloadRequestStatus status = downloads.get(identifier);
+			if(status == null) return;
+			status.setDataSize(size);
+		}
+		notifyListeners(identifier);
+	}
+
+	/** The expected MIME type of a download is known. */
+	void updateExpectedMIME(String identifier, String mimeType) {
+		synchronized(this) {
+			DownloadRequestStatus status = downloads.get(identifier);
+			if(status == null) return;
+			status.setMIMEType(mimeType);
+		}
+		notifyListeners(identifier);
+	}
+
+	void updatePriority(String identifier, short priority) {
+		synchronized(this) {
+			RequestStatus status = get(identifier);
+			if(status == null) return;
+			status.setPriority(priority);
+		}
+		notifyListeners(identifier);
+	}
+
+	void remove(String identifier) {
+		synchronized(this) {
+			if(downloads.remove(identifier) == null)
+				uploads.remove(identifier);
+		}
+		notifyListeners(identifier);
+	}
+
+	private RequestStatus get(String identifier) {
+		RequestStatus status = downloads.get(identifier);
+		if(status == null) status = uploads.get(identifier);
+		return status;
+	}
+
+	/** Get a copy of the status of a single request, or null if it is not
+	 * on the global queue. */
+	public synchronized RequestStatus getStatus(String identifier) {
+		RequestStatus status = get(identifier);
+		return status == null ? null : status.clone();
+	}
+
+	/** Get a copy of the status of every download on the global queue. */
+	public synchronized DownloadRequestStatus[] getDownloads() {
+		DownloadRequestStatus[] ret = new DownloadRequestStatus[downloads.size()];
+		int i = 0;
+		for(DownloadRequestStatus status : downloads.values())
+			ret[i++] = (DownloadRequestStatus) status.clone();
+		return ret;
+	}
+
+	/** Get a copy of the status of every upload on the global queue. */
+	public synchronized UploadRequestStatus[] getUploads() {
+		UploadRequestStatus[] ret = new UploadRequestStatus[uploads.size()];
+		int i = 0;
+		for(UploadRequestStatus status : uploads.values())
+			ret[i++] = (UploadRequestStatus) status.clone();
+		return ret;
+	}
+
+	public synchronized void addListener(String identifier, Listener listener) {
+		List<Listener> list = listeners.get(identifier);
+		if(list == null) {
+			list = new ArrayList<Listener>(1);
+			listeners.put(identifier, list);
+		}
+		list.add(listener);
+	}
+
+	public synchronized void removeListener(String identifier, Listener listener) {
+		List<Listener> list = listeners.get(identifier);
+		if(list == null) return;
+		list.remove(listener);
+		if(list.isEmpty()) listeners.remove(identifier);
+	}
+
+	private void notifyListeners(String identifier) {
+		Listener[] toNotify;
+		synchronized(this) {
+			List<Listener> list = listeners.get(identifier);
+			if(list == null) return;
+			toNotify = list.toArray(new Listener[list.size()]);
+		}
+		for(Listener listener : toNotify) {
+			try {
+				listener.onStatusChanged(identifier);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" notifying "+listener+" for "+identifier, t);
+			}
+		}
+	}
+
+}
@@ -45,6 +45,14 @@ public class SimpleProgressMessage extends FCPMessage {
 		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "SimpleProgress goes from server to client not the other way around", ident, global);
 	}
 
+	String getIdentifier() {
+		return ident;
+	}
+
+	boolean isGlobal() {
+		return global;
+	}
+
 	public double getFraction() {
 		return (double) event.succeedBlocks / (double) event.totalBlocks;
 	}
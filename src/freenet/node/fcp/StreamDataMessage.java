@@ -0,0 +1,95 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * Part of the data for a ClientGet with ReturnType=stream. Sent in order as
+ * the data is decoded, followed by a DataFound once all the data has been
+ * sent, or by a GetFailed. If the file is too small to be streamed, we send
+ * DataFound and AllData instead, as for ReturnType=direct.
+ *
+ * StreamData
+ * Identifier=Request Number One
+ * Offset=0 // offset of this chunk in the data
+ * DataLength=32768 // length of this chunk
+ * Metadata.ContentType=video/ogg // first chunk only
+ * ExpectedDataLength=123456789 // first chunk only, if known
+ * Data
+ * <data>
+ */
+public class StreamDataMessage extends DataCarryingMessage {
+
+	static final String NAME = "StreamData";
+
+	final String identifier;
+	final boolean global;
+	final long offset;
+	final long dataLength;
+	final String mimeType;
+	final long expectedDataLength;
+
+	/**
+	 * @param mimeType The MIME type, for the first chunk only, otherwise null.
+	 * @param expectedDataLength The length of the whole data, for the first
+	 * chunk only, otherwise -1. Also -1 if we don't know it.
+	 */
+	public StreamDataMessage(String identifier, boolean global, long offset, byte[] data, int length, String mimeType, long expectedDataLength) {
+		this.identifier = identifier;
+		this.global = global;
+		this.offset = offset;
+		this.bucket = new ArrayBucket(data);
+		this.dataLength = length;
+		this.mimeType = mimeType;
+		this.expectedDataLength = expectedDataLength;
+	}
+
+	@Override
+	long dataLength() {
+		return dataLength;
+	}
+
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("Identifier", identifier);
+		if(global) fs.putSingle("Global", "true");
+		fs.put("Offset", offset);
+		fs.put("DataLength", dataLength);
+		if(mimeType != null) fs.putSingle("Metadata.ContentType", mimeType);
+		if(expectedDataLength >= 0) fs.put("ExpectedDataLength", expectedDataLength);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, "StreamData goes from server to client not the other way around", identifier, global);
+	}
+
+	@Override
+	String getIdentifier() {
+		return identifier;
+	}
+
+	@Override
+	boolean isGlobal() {
+		return global;
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
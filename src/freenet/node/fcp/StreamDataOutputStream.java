@@ -0,0 +1,91 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns the data streamed for a ClientGet with ReturnType=stream into
+ * StreamData messages. Waits for the connection's output queue to drain
+ * before queueing another chunk, so a slow client slows down the stream
+ * rather than filling up our memory.
+ */
+class StreamDataOutputStream extends OutputStream {
+
+	static final int CHUNK_SIZE = 32768;
+	/** Maximum number of messages queued for the connection before we wait */
+	static final int MAX_QUEUED = 4;
+
+	/** Where the messages go: the client's connection. */
+	interface Connection {
+
+		/**
+		 * Wait until fewer than the given number of messages are queued.
+		 * @return False if the connection has been closed.
+		 */
+		boolean waitForQueueBelow(int maxQueued);
+
+		void queue(FCPMessage msg);
+
+	}
+
+	private final Connection handler;
+	private final String identifier;
+	private final boolean global;
+	private String mimeType;
+	private long expectedLength;
+	private byte[] buf;
+	private int bufLength;
+	private long offset;
+
+	StreamDataOutputStream(Connection handler, String identifier, boolean global, String mimeType, long expectedLength) {
+		this.handler = handler;
+		this.identifier = identifier;
+		this.global = global;
+		this.mimeType = mimeType;
+		this.expectedLength = expectedLength;
+		buf = new byte[CHUNK_SIZE];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		buf[bufLength++] = (byte) b;
+		if(bufLength == CHUNK_SIZE) flush();
+	}
+
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException {
+		while(len > 0) {
+			int copy = Math.min(len, CHUNK_SIZE - bufLength);
+			System.arraycopy(data, off, buf, bufLength, copy);
+			bufLength += copy;
+			off += copy;
+			len -= copy;
+			if(bufLength == CHUNK_SIZE) flush();
+		}
+	}
+
+	/** Send whatever we have buffered as a StreamData message. */
+	@Override
+	public void flush() throws IOException {
+		if(bufLength == 0) return;
+		if(!handler.waitForQueueBelow(MAX_QUEUED))
+			throw new IOException("Connection closed");
+		byte[] data = buf;
+		if(bufLength < CHUNK_SIZE) {
+			data = new byte[bufLength];
+			System.arraycopy(buf, 0, data, 0, bufLength);
+		} else {
+			// The message keeps the array until it is sent.
+			buf = new byte[CHUNK_SIZE];
+		}
+		handler.queue(new StreamDataMessage(identifier, global, offset, data, data.length, mimeType, expectedLength));
+		offset += data.length;
+		bufLength = 0;
+		mimeType = null;
+		expectedLength = -1;
+	}
+
+}
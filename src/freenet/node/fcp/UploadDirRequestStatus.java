@@ -0,0 +1,43 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import freenet.keys.FreenetURI;
+
+/** Cached status of a ClientPutDir on the global queue. */
+public class UploadDirRequestStatus extends UploadRequestStatus {
+
+	private final int numberOfFiles;
+	private final long totalDataSize;
+
+	UploadDirRequestStatus(String identifier, boolean persistentForever, short priority, boolean started,
+			boolean finished, boolean succeeded, boolean canRestart, int totalBlocks, int minBlocks,
+			int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean totalFinalized,
+			long lastActivity, String failureReason, FreenetURI finalURI, int numberOfFiles, long totalDataSize) {
+		super(identifier, persistentForever, priority, started, finished, succeeded, canRestart,
+				totalBlocks, minBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, totalFinalized,
+				lastActivity, failureReason, finalURI);
+		this.numberOfFiles = numberOfFiles;
+		this.totalDataSize = totalDataSize;
+	}
+
+	@Override
+	public String getFilename() {
+		return null;
+	}
+
+	@Override
+	public long getDataSize() {
+		return totalDataSize;
+	}
+
+	public int getNumberOfFiles() {
+		return numberOfFiles;
+	}
+
+	public long getTotalDataSize() {
+		return totalDataSize;
+	}
+
+}
@@ -0,0 +1,56 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import java.io.File;
+
+import freenet.keys.FreenetURI;
+import freenet.node.fcp.ClientPut.COMPRESS_STATE;
+
+/** Cached status of a ClientPut on the global queue. */
+public class UploadFileRequestStatus extends UploadRequestStatus {
+
+	private final long dataSize;
+	private final String mimeType;
+	private final File origFilename;
+	private final COMPRESS_STATE compressing;
+
+	UploadFileRequestStatus(String identifier, boolean persistentForever, short priority, boolean started,
+			boolean finished, boolean succeeded, boolean canRestart, int totalBlocks, int minBlocks,
+			int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean totalFinalized,
+			long lastActivity, String failureReason, FreenetURI finalURI, long dataSize, String mimeType,
+			File origFilename, COMPRESS_STATE compressing) {
+		super(identifier, persistentForever, priority, started, finished, succeeded, canRestart,
+				totalBlocks, minBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, totalFinalized,
+				lastActivity, failureReason, finalURI);
+		this.dataSize = dataSize;
+		this.mimeType = mimeType;
+		this.origFilename = origFilename;
+		this.compressing = compressing;
+	}
+
+	@Override
+	public String getFilename() {
+		return origFilename == null ? null : origFilename.toString();
+	}
+
+	@Override
+	public long getDataSize() {
+		return dataSize;
+	}
+
+	public String getMIMEType() {
+		return mimeType;
+	}
+
+	/** The file we are inserting, or null if it is not from disk. */
+	public File getOrigFilename() {
+		return origFilename;
+	}
+
+	public COMPRESS_STATE isCompressing() {
+		return compressing;
+	}
+
+}
@@ -0,0 +1,29 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import freenet.keys.FreenetURI;
+
+/** Cached status of a ClientPut or ClientPutDir on the global queue. */
+public abstract class UploadRequestStatus extends RequestStatus {
+
+	private final FreenetURI finalURI;
+
+	UploadRequestStatus(String identifier, boolean persistentForever, short priority, boolean started,
+			boolean finished, boolean succeeded, boolean canRestart, int totalBlocks, int minBlocks,
+			int fetchedBlocks, int failedBlocks, int fatallyFailedBlocks, boolean totalFinalized,
+			long lastActivity, String failureReason, FreenetURI finalURI) {
+		super(identifier, persistentForever, priority, started, finished, succeeded, canRestart,
+				totalBlocks, minBlocks, fetchedBlocks, failedBlocks, fatallyFailedBlocks, totalFinalized,
+				lastActivity, failureReason);
+		this.finalURI = finalURI;
+	}
+
+	/** The generated URI, or null if we don't know it yet. */
+	@Override
+	public FreenetURI getURI() {
+		return finalURI;
+	}
+
+}
@@ -10,6 +10,7 @@ import freenet.client.HighLevelSimpleClient;
 import freenet.crypt.DummyRandomSource;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKDecodeException;
 import freenet.keys.CHKEncodeException;
@@ -72,6 +73,7 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
         //NodeStarter.globalTestInit(name, false, Logger.ERROR, "freenet.node.Location:MINOR,freenet.io.comm:MINOR,freenet.node.NodeDispatcher:MINOR,freenet.node.simulator:MINOR,freenet.node.PeerManager:MINOR,freenet.node.RequestSender:MINOR");
         //NodeStarter.globalTestInit(name, false, Logger.ERROR, "freenet.node.FNP:MINOR,freenet.node.Packet:MINOR,freenet.io.comm:MINOR,freenet.node.PeerNode:MINOR,freenet.node.DarknetPeerNode:MINOR");
         NodeStarter.globalTestInit(name, false, Logger.ERROR, "", true);
+        SimulatedNetwork network = installSimulatedNetwork();
         System.out.println("Busy network test (inserts/retrieves in quantity/stress test)");
         System.out.println();
         DummyRandomSource random = new DummyRandomSource();
@@ -97,7 +99,8 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
 
         waitForAllConnected(nodes);
 
-        waitForPingAverage(0.95, nodes, random, MAX_PINGS, 1000);
+        SimulationStats stats = new SimulationStats(MAX_HTL);
+        waitForPingAverage(0.95, nodes, random, MAX_PINGS, 1000, stats);
 
         System.out.println();
         System.out.println("Ping average > 95%, lets do some inserts/requests");
@@ -134,9 +137,12 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
 				randomNode.clientCore.realPut(block, false, FORK_ON_CACHEABLE);
 				Logger.error(RealNodeRequestInsertTest.class, "Inserted to "+node1);
 				Logger.minor(RealNodeRequestInsertTest.class, "Data: "+Fields.hashCode(encData)+", Headers: "+Fields.hashCode(encHeaders));
+				stats.reportInsert(true);
 			} catch (freenet.node.LowLevelPutException putEx) {
 				Logger.error(RealNodeRequestInsertTest.class, "Insert failed: "+ putEx);
 				System.err.println("Insert failed: "+ putEx);
+				stats.reportInsert(false);
+				System.err.println(stats.summary(nodes, network));
 				System.exit(EXIT_INSERT_FAILED);
 			}
         }
@@ -166,6 +172,7 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
         	if(totalRunningRequests == 0) break;
         	Thread.sleep(1000);
         }
+        System.err.println(stats.summary(nodes, network));
         System.exit(0);
     }
 }
@@ -10,6 +10,7 @@ import java.util.Iterator;
 import freenet.crypt.DummyRandomSource;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.node.FSParseException;
 import freenet.node.Node;
 import freenet.node.NodeInitException;
@@ -59,6 +60,7 @@ public class RealNodeNetworkColoringTest extends RealNodeTest {
         new File(wd).mkdir();
         //NOTE: globalTestInit returns in ignored random source
         NodeStarter.globalTestInit(wd, false, Logger.ERROR, "freenet.node.Location:normal,freenet.node.simulator.RealNodeNetworkColoringTest:normal,freenet.node.NetworkIDManager:normal", true);
+        installSimulatedNetwork();
 
         DummyRandomSource random = new DummyRandomSource();
         //DiffieHellman.init(random);
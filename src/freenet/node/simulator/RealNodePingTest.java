@@ -34,6 +34,7 @@ public class RealNodePingTest {
 
     public static void main(String[] args) throws FSParseException, PeerParseException, InterruptedException, ReferenceSignatureVerificationException, NodeInitException, InvalidThresholdException {
         RandomSource random = NodeStarter.globalTestInit("pingtest", false, Logger.ERROR, "", true);
+        RealNodeTest.installSimulatedNetwork();
         // Create 2 nodes
         Executor executor = new PooledExecutor();
         Node node1 = NodeStarter.createTestNode(DARKNET_PORT1, 0, "pingtest", true, Node.DEFAULT_MAX_HTL, 0, random, executor, 1000, 65536, true, false, false, false, false, false, true, 0, false, false, true, false, null);
@@ -10,6 +10,7 @@ import java.util.Vector;
 import freenet.crypt.DummyRandomSource;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.keys.CHKEncodeException;
 import freenet.keys.ClientCHKBlock;
 import freenet.keys.ClientKSK;
@@ -78,6 +79,7 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         //NodeStarter.globalTestInit(name, false, Logger.ERROR, "freenet.node.Location:MINOR,freenet.io.comm:MINOR,freenet.node.NodeDispatcher:MINOR,freenet.node.simulator:MINOR,freenet.node.PeerManager:MINOR,freenet.node.RequestSender:MINOR");
         //NodeStarter.globalTestInit(name, false, Logger.ERROR, "freenet.node.FNP:MINOR,freenet.node.Packet:MINOR,freenet.io.comm:MINOR,freenet.node.PeerNode:MINOR,freenet.node.DarknetPeerNode:MINOR");
         NodeStarter.globalTestInit(name, false, Logger.ERROR, "", true);
+        SimulatedNetwork network = installSimulatedNetwork();
         System.out.println("Insert/retrieve test");
         System.out.println();
         DummyRandomSource random = new DummyRandomSource(3142);
@@ -104,7 +106,8 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
         
         waitForAllConnected(nodes);
         
-        waitForPingAverage(0.5, nodes, new DummyRandomSource(3143), MAX_PINGS, 1000);
+        SimulationStats stats = new SimulationStats(MAX_HTL);
+        waitForPingAverage(0.5, nodes, new DummyRandomSource(3143), MAX_PINGS, 1000, stats);
         
         random = new DummyRandomSource(3144);
         
@@ -167,9 +170,12 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
 					randomNode.clientCore.realPut(block, false, FORK_ON_CACHEABLE);
 					Logger.error(RealNodeRequestInsertTest.class, "Inserted to "+node1);
 					insertSuccesses++;
+					stats.reportInsert(true);
 				} catch (freenet.node.LowLevelPutException putEx) {
 					Logger.error(RealNodeRequestInsertTest.class, "Insert failed: "+ putEx);
 					System.err.println("Insert failed: "+ putEx);
+					stats.reportInsert(false);
+					System.err.println(stats.summary(nodes, network));
 					System.exit(EXIT_INSERT_FAILED);
 				}
                 // Pick random node to request from
@@ -188,16 +194,19 @@ public class RealNodeRequestInsertTest extends RealNodeRoutingTest {
                     Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2);
                     System.err.println("Fetch #"+requestNumber+" FAILED ("+percentSuccess+"%); from "+node2);
                     requestsAvg.report(0.0);
+                    stats.reportRequest(false);
                 } else {
                     byte[] results = block.memoryDecode();
                     requestsAvg.report(1.0);
                     if(Arrays.equals(results, data)) {
 						fetchSuccesses++;
+						stats.reportRequest(true);
 						int percentSuccess=100*fetchSuccesses/insertAttempts;
                         Logger.error(RealNodeRequestInsertTest.class, "Fetch #"+requestNumber+" from node "+node2+" succeeded ("+percentSuccess+"%): "+new String(results));
                         System.err.println("Fetch #"+requestNumber+" succeeded ("+percentSuccess+"%): \""+new String(results)+'\"');
                         if(fetchSuccesses == TARGET_SUCCESSES) {
                         	System.err.println("Succeeded, "+TARGET_SUCCESSES+" successful fetches");
+                        	System.err.println(stats.summary(nodes, network));
                         	System.exit(0);
                         }
                     } else {
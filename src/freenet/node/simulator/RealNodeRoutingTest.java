@@ -7,6 +7,7 @@ import java.io.File;
 
 import freenet.crypt.DummyRandomSource;
 import freenet.crypt.RandomSource;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.node.LocationManager;
 import freenet.node.Node;
 import freenet.node.NodeStarter;
@@ -52,6 +53,7 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		wd.mkdir();
 		//NOTE: globalTestInit returns in ignored random source
 		NodeStarter.globalTestInit(dir, false, Logger.ERROR, "", true);
+		SimulatedNetwork network = installSimulatedNetwork();
 		// Make the network reproducible so we can easily compare different routing options by specifying a seed.
 		DummyRandomSource random = new DummyRandomSource(3142);
 		//DiffieHellman.init(random);
@@ -80,11 +82,20 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		// There is timing noise because of all the nodes, but the network
 		// and the choice of nodes to start and finish are deterministic, so
 		// the overall result should be more or less deterministic.
-		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000);
+		SimulationStats stats = new SimulationStats(MAX_HTL);
+		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000, stats);
+		System.err.println(stats.summary(nodes, network));
 		System.exit(0);
 	}
 
 	static void waitForPingAverage(double accuracy, Node[] nodes, RandomSource random, int maxTests, int sleepTime) throws InterruptedException {
+		waitForPingAverage(accuracy, nodes, random, maxTests, sleepTime, null);
+	}
+
+	/**
+	 * @param stats If not null, the result of every routed ping is reported to this.
+	 */
+	static void waitForPingAverage(double accuracy, Node[] nodes, RandomSource random, int maxTests, int sleepTime, SimulationStats stats) throws InterruptedException {
 		int totalHopsTaken = 0;
 		int cycleNumber = 0;
 		int lastSwaps = 0;
@@ -148,6 +159,7 @@ public class RealNodeRoutingTest extends RealNodeTest {
 					
 					int hopsTaken = randomNode.routedPing(loc2, randomNode2.getDarknetIdentity());
 					pings++;
+					if(stats != null) stats.reportPing(hopsTaken);
 					if(hopsTaken < 0) {
 						failures++;
 						avg.report(0.0);
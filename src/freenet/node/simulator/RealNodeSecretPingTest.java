@@ -13,6 +13,7 @@ import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.node.FSParseException;
 import freenet.node.Location;
 import freenet.node.Node;
@@ -56,6 +57,7 @@ public class RealNodeSecretPingTest {
         new File(wd).mkdir();
         //NOTE: globalTestInit returns in ignored random source
         NodeStarter.globalTestInit(wd, false, Logger.ERROR, "freenet.node.Location:normal,freenet.node.simulator.RealNodeSecretPingTest:normal,freenet.node.NetworkIDManager:normal", true);
+        RealNodeTest.installSimulatedNetwork();
 
         DummyRandomSource random = new DummyRandomSource();
         //DiffieHellman.init(random);
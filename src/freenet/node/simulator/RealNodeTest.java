@@ -5,6 +5,7 @@ package freenet.node.simulator;
 
 import freenet.crypt.RandomSource;
 import freenet.io.comm.PeerParseException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.node.FSParseException;
 import freenet.node.Location;
 import freenet.node.Node;
@@ -28,6 +29,30 @@ public class RealNodeTest {
 	static final int EXIT_REQUEST_FAILED = EXIT_BASE + 6;
 	static final int EXIT_BAD_DATA = EXIT_BASE + 7;
 	
+	/* Set -Dfreenet.simulator.transport=true to run the nodes on an in-memory network
+	 * rather than UDP on localhost. The link parameters can be set with
+	 * freenet.simulator.latency (ms), freenet.simulator.bandwidth (bytes/sec, 0 for
+	 * unlimited), freenet.simulator.loss (packets per thousand) and freenet.simulator.seed. */
+	static final boolean SIMULATED_TRANSPORT = Boolean.getBoolean("freenet.simulator.transport");
+	
+	/**
+	 * Install the simulated network if it has been asked for. Must be called before
+	 * creating the nodes.
+	 * @return The network, or null if the nodes should use UDP.
+	 */
+	static SimulatedNetwork installSimulatedNetwork() {
+		if(!SIMULATED_TRANSPORT) return null;
+		SimulatedNetwork.LinkParameters link = new SimulatedNetwork.LinkParameters(
+				Integer.getInteger("freenet.simulator.latency", 10),
+				Integer.getInteger("freenet.simulator.bandwidth", 0),
+				Integer.getInteger("freenet.simulator.loss", 0) / 1000.0);
+		SimulatedNetwork network = new SimulatedNetwork(Long.getLong("freenet.simulator.seed", 3141), link, false);
+		SimulatedNetwork.install(network);
+		network.start();
+		System.err.println("Using "+network);
+		return network;
+	}
+	
 	/* Because we start a whole bunch of nodes at once, we will get many "Not reusing
 	 * tracker, so wiping old trackers" messages. This is normal, all the nodes start
 	 * handshaking straight off, they all send JFK(1)s, and we get race conditions. */
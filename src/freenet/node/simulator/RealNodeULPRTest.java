@@ -11,6 +11,7 @@ import freenet.io.comm.DMT;
 import freenet.io.comm.Message;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
+import freenet.io.comm.SimulatedNetwork;
 import freenet.keys.CHKEncodeException;
 import freenet.keys.ClientCHKBlock;
 import freenet.keys.ClientKSK;
@@ -94,6 +95,8 @@ public class RealNodeULPRTest extends RealNodeTest {
         // Uncomment as appropriate.
         // For testing high-level stuff (requests/ULPRs/FT bugs)
         NodeStarter.globalTestInit(testName, false, Logger.ERROR, "freenet.node.Location:normal,freenet.node.simulator.RealNodeRoutingTest:normal,freenet.node.NodeDispatcher:NORMAL,freenet.node.FailureTable:MINOR,freenet.node.Node:MINOR,freenet.node.Request:MINOR,freenet.io.comm.MessageCore:MINOR,freenet.node.PeerNode:MINOR,freenet.node.DarknetPeerNode:MINOR,freenet.io.xfer.PacketThrottle:MINOR,freenet.node.PeerManager:MINOR", true);
+        SimulatedNetwork network = installSimulatedNetwork();
+        SimulationStats stats = new SimulationStats(MAX_HTL);
         // For testing low-level stuff (connection bugs)
         //NodeStarter.globalTestInit(testName, false, Logger.ERROR, "freenet.node.Location:normal,freenet.node.simulator.RealNodeRoutingTest:normal,freenet.node.Node:MINOR,freenet.io.comm.MessageCore:MINOR,freenet.node.PeerNode:MINOR,freenet.node.DarknetPeerNode:MINOR,freenet.node.FNP:MINOR,freenet.io.xfer.PacketThrottle:MINOR,freenet.node.PeerManager:MINOR", true);
         Node[] nodes = new Node[NUMBER_OF_NODES];
@@ -258,6 +261,7 @@ public class RealNodeULPRTest extends RealNodeTest {
 			if(x > 300) {
 				System.err.println();
 				System.err.println("TEST FAILED");
+				System.err.println(stats.summary(nodes, network));
 				System.exit(EXIT_TEST_FAILED);
 			}
 			if(count == nodes.length) {
@@ -282,6 +286,7 @@ public class RealNodeULPRTest extends RealNodeTest {
 		
         }
         System.err.println("Overall average propagation time: "+(totalPropagationTime / successfulTests)+"ms");
+        System.err.println(stats.summary(nodes, network));
         System.exit(0);
     }
     
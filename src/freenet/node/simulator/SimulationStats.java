@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.simulator;
+
+import freenet.io.comm.SimulatedNetwork;
+import freenet.node.Node;
+
+/**
+ * Results of a simulation: hop counts of routed pings, success rates of pings,
+ * inserts and requests, and the throughput of the network, for comparing
+ * routing and load management options between runs.
+ */
+public class SimulationStats {
+
+	private final long startTime = System.currentTimeMillis();
+	/** Successful pings by the number of hops they took */
+	private final int[] hops;
+	private int pingSuccesses;
+	private int pingFailures;
+	private int insertSuccesses;
+	private int insertFailures;
+	private int requestSuccesses;
+	private int requestFailures;
+
+	public SimulationStats(int maxHTL) {
+		hops = new int[maxHTL + 1];
+	}
+
+	/** @param hopsTaken As returned by Node.routedPing(), negative if the ping failed. */
+	public synchronized void reportPing(int hopsTaken) {
+		if(hopsTaken < 0) {
+			pingFailures++;
+			return;
+		}
+		pingSuccesses++;
+		hops[Math.min(hopsTaken, hops.length - 1)]++;
+	}
+
+	public synchronized void reportInsert(boolean success) {
+		if(success)
+			insertSuccesses++;
+		else
+			insertFailures++;
+	}
+
+	public synchronized void reportRequest(boolean success) {
+		if(success)
+			requestSuccesses++;
+		else
+			requestFailures++;
+	}
+
+	public synchronized double averageHops() {
+		if(pingSuccesses == 0) return 0.0;
+		long total = 0;
+		for(int i = 0; i < hops.length; i++)
+			total += (long) i * hops[i];
+		return (double) total / pingSuccesses;
+	}
+
+	public synchronized double pingSuccessRate() {
+		return rate(pingSuccesses, pingFailures);
+	}
+
+	public synchronized double insertSuccessRate() {
+		return rate(insertSuccesses, insertFailures);
+	}
+
+	public synchronized double requestSuccessRate() {
+		return rate(requestSuccesses, requestFailures);
+	}
+
+	private static double rate(int successes, int failures) {
+		if(successes + failures == 0) return 0.0;
+		return (double) successes / (successes + failures);
+	}
+
+	/**
+	 * @param network The simulated network, or null if the nodes use UDP, in which case
+	 * throughput is what the nodes themselves counted.
+	 */
+	public synchronized String summary(Node[] nodes, SimulatedNetwork network) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		StringBuilder sb = new StringBuilder();
+		sb.append("Network size: ").append(nodes.length).append('\n');
+		sb.append("Routed pings: ").append(pingSuccesses + pingFailures).append(", success rate ").append(pingSuccessRate()).append('\n');
+		sb.append("Average hops for successful pings: ").append(averageHops()).append('\n');
+		sb.append("Hop counts:");
+		for(int i = 0; i < hops.length; i++)
+			sb.append(' ').append(i).append(':').append(hops[i]);
+		sb.append('\n');
+		sb.append("Inserts: ").append(insertSuccesses + insertFailures).append(", success rate ").append(insertSuccessRate()).append('\n');
+		sb.append("Requests: ").append(requestSuccesses + requestFailures).append(", success rate ").append(requestSuccessRate()).append('\n');
+		long bytes;
+		if(network != null) {
+			bytes = network.getBytesDelivered();
+			sb.append("Packets sent: ").append(network.getPacketsSent()).append(", lost: ").append(network.getPacketsLost()).append('\n');
+		} else {
+			bytes = 0;
+			for(Node node : nodes)
+				bytes += node.collector.getTotalIO()[1];
+		}
+		sb.append("Throughput: ").append(bytes * 1000 / elapsed).append(" bytes/second over ").append(elapsed / 1000).append(" seconds");
+		return sb.toString();
+	}
+}
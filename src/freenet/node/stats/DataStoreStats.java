@@ -31,6 +31,13 @@ public interface DataStoreStats {
 
 	public long falsePos();
 
+	public long locksAcquired() throws StatsNotAvailableException;
+
+	public long locksContended() throws StatsNotAvailableException;
+
+	/** In milliseconds */
+	public long lockWaitTime() throws StatsNotAvailableException;
+
 	double avgLocation() throws StatsNotAvailableException;
 
 	double avgSuccess() throws StatsNotAvailableException;
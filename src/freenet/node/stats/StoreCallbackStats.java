@@ -75,6 +75,25 @@ public class StoreCallbackStats implements DataStoreStats {
 		return storeStats.getBloomFalsePositive();
 	}
 
+	public long locksAcquired() throws StatsNotAvailableException {
+		return lockStat(storeStats.getLocksAcquired());
+	}
+
+	public long locksContended() throws StatsNotAvailableException {
+		return lockStat(storeStats.getLocksContended());
+	}
+
+	public long lockWaitTime() throws StatsNotAvailableException {
+		return lockStat(storeStats.getLockWaitTime());
+	}
+
+	/** The store returns -1 if it doesn't lock slots. */
+	private static long lockStat(long value) throws StatsNotAvailableException {
+		if (value < 0)
+			throw new StatsNotAvailableException();
+		return value;
+	}
+
 	public double avgLocation() throws StatsNotAvailableException {
 		return nodeStats.avgLocation();
 	}
@@ -0,0 +1,77 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.stats;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Which tier answered each Node.fetch() lookup, and how long the lookups
+ * took, for the hit ratio and latency of each tier.
+ */
+public class StoreTierStats {
+
+	public static final int HOT_CACHE = 0;
+	public static final int CLIENT_CACHE = 1;
+	public static final int SLASHDOT_CACHE = 2;
+	public static final int STORE = 3;
+	public static final int CACHE = 4;
+	/** Not found in any tier */
+	public static final int MISS = 5;
+
+	public static final String[] TIER_NAMES = {
+		"hot cache", "client cache", "slashdot cache", "store", "cache", "miss"
+	};
+
+	private final AtomicLongArray counts = new AtomicLongArray(TIER_NAMES.length);
+	private final AtomicLongArray nanos = new AtomicLongArray(TIER_NAMES.length);
+
+	/**
+	 * @param tier The tier which found the block, or MISS.
+	 * @param time How long the whole lookup took, in nanoseconds.
+	 */
+	public void report(int tier, long time) {
+		counts.incrementAndGet(tier);
+		nanos.addAndGet(tier, time);
+	}
+
+	public long lookups() {
+		long total = 0;
+		for (int i = 0; i < TIER_NAMES.length; i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	public long count(int tier) {
+		return counts.get(tier);
+	}
+
+	/** The proportion of all lookups answered by this tier. */
+	public double hitRatio(int tier) {
+		long total = lookups();
+		if (total == 0)
+			return 0.0;
+		return (double) counts.get(tier) / total;
+	}
+
+	/** Mean time for lookups answered by this tier, in milliseconds. */
+	public double averageLatency(int tier) {
+		long count = counts.get(tier);
+		if (count == 0)
+			return 0.0;
+		return nanos.get(tier) / (count * 1000.0 * 1000.0);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < TIER_NAMES.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(TIER_NAMES[i]).append(": ").append(counts.get(i));
+			sb.append(" (").append(averageLatency(i)).append("ms)");
+		}
+		return sb.toString();
+	}
+
+}
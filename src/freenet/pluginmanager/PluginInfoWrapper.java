@@ -142,6 +142,9 @@ public class PluginInfoWrapper implements Comparable<PluginInfoWrapper> {
 			}
 		}
 		
+		// Write what it has changed, and let the next copy of the plugin open its store.
+		pr.closeKeyValueStore();
+		
 		// Close the jar file, so we may delete / reload it
 		ClassLoader cl = plug.getClass().getClassLoader();
 		if (cl instanceof JarClassLoader) {
@@ -0,0 +1,527 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.pluginmanager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import freenet.node.Ticker;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * A simple typed key-value store for plugins, kept in its own file rather than
+ * in the node's database. Unlike PluginStore, changing one value doesn't
+ * rewrite the whole store: changed keys are marked dirty, and a little while
+ * after the first change all the dirty keys are appended to a log in one
+ * batch. The log is compacted (rewritten with only the live values) when it
+ * gets much bigger than the live data, or when compact() is called.
+ *
+ * Each batch in the log is [length][records][CRC32]. A batch which was only
+ * partly written when the node crashed fails the CRC, and it and anything
+ * after it are discarded on load, so a batch is applied completely or not at
+ * all.
+ *
+ * The file is NOT encrypted, whatever the physical security level. Plugins
+ * which keep anything sensitive should use PluginRespirator.getStore().
+ *
+ * LOCKING: Values are synchronized on this. Writes to the file are
+ * synchronized on fileLock, which is always taken first.
+ */
+public class PluginKeyValueStore {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(PluginKeyValueStore.class);
+	}
+
+	/** Write dirty values this long after the first change */
+	public static final int FLUSH_DELAY = 5*1000;
+	/** Don't compact logs smaller than this */
+	static final long MIN_COMPACT_SIZE = 64*1024;
+	/** Compact when the log is this many times the size of the live data */
+	static final int COMPACT_RATIO = 4;
+
+	private static final byte TYPE_REMOVED = 0;
+	private static final byte TYPE_LONG = 1;
+	private static final byte TYPE_INT = 2;
+	private static final byte TYPE_SHORT = 3;
+	private static final byte TYPE_BYTE = 4;
+	private static final byte TYPE_BOOLEAN = 5;
+	private static final byte TYPE_STRING = 6;
+	private static final byte TYPE_BYTES = 7;
+	/** A string too long for writeUTF(), as [length][UTF-8] */
+	private static final byte TYPE_LONG_STRING = 8;
+
+	/** The most bytes writeUTF() can write */
+	private static final int MAX_UTF_LENGTH = 65535;
+
+	/** Marks a removed key in the dirty map */
+	private static final Object REMOVED = new Object();
+
+	/** The files of the stores which are open, so two stores can't write one log. */
+	private static final HashSet<File> openFiles = new HashSet<File>();
+
+	private final File file;
+	private final Ticker ticker;
+	private final Object fileLock = new Object();
+	private final HashMap<String, Object> values;
+	/** Keys changed since the last flush, and their new values */
+	private LinkedHashMap<String, Object> dirty;
+	private boolean flushQueued;
+	private boolean closed;
+	/** Current length of the log, protected by fileLock */
+	private long logLength;
+
+	private final Runnable flusher = new Runnable() {
+
+		public void run() {
+			synchronized(PluginKeyValueStore.this) {
+				flushQueued = false;
+				// close() has written everything.
+				if(closed) return;
+			}
+			try {
+				flush();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to write plugin store "+file+" : "+e, e);
+			}
+		}
+
+	};
+
+	/**
+	 * Open the store, reading the log if it exists.
+	 * @param file The log file. Its directory will be created if necessary.
+	 * @param ticker Used to schedule writes. If null, nothing is written until
+	 * flush() or close() is called.
+	 * @throws IOException If the store could not be read, or another store has the
+	 * file open and hasn't been closed.
+	 */
+	public PluginKeyValueStore(File file, Ticker ticker) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.ticker = ticker;
+		values = new HashMap<String, Object>();
+		dirty = new LinkedHashMap<String, Object>();
+		synchronized(openFiles) {
+			if(!openFiles.add(this.file))
+				throw new IOException("Plugin store already open: "+file);
+		}
+		boolean success = false;
+		try {
+			File parent = this.file.getParentFile();
+			if(parent != null && !parent.exists() && !parent.mkdirs())
+				throw new IOException("Unable to create directory "+parent);
+			if(file.exists()) load();
+			success = true;
+		} finally {
+			if(!success) {
+				synchronized(openFiles) {
+					openFiles.remove(this.file);
+				}
+			}
+		}
+	}
+
+	private void load() throws IOException {
+		long length = file.length();
+		long valid = 0;
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			CRC32 crc = new CRC32();
+			while(valid < length) {
+				byte[] batch;
+				try {
+					int len = dis.readInt();
+					if(len < 0 || len > length - valid - 8) break;
+					batch = new byte[len];
+					dis.readFully(batch);
+					crc.reset();
+					crc.update(batch);
+					if(dis.readInt() != (int)crc.getValue()) break;
+				} catch (EOFException e) {
+					break;
+				}
+				readBatch(batch);
+				valid += batch.length + 8;
+			}
+		} finally {
+			Closer.close(dis);
+		}
+		if(valid < length) {
+			Logger.error(this, "Discarding "+(length-valid)+" bytes of incomplete or corrupt data at the end of "+file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				Closer.close(raf);
+			}
+		}
+		logLength = valid;
+		if(logMINOR) Logger.minor(this, "Loaded "+values.size()+" keys from "+file+" ("+valid+" bytes)");
+	}
+
+	private void readBatch(byte[] batch) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(batch));
+		int count = dis.readInt();
+		for(int i=0;i<count;i++) {
+			String key = dis.readUTF();
+			byte type = dis.readByte();
+			Object value;
+			switch(type) {
+			case TYPE_REMOVED:
+				values.remove(key);
+				continue;
+			case TYPE_LONG:
+				value = dis.readLong();
+				break;
+			case TYPE_INT:
+				value = dis.readInt();
+				break;
+			case TYPE_SHORT:
+				value = dis.readShort();
+				break;
+			case TYPE_BYTE:
+				value = dis.readByte();
+				break;
+			case TYPE_BOOLEAN:
+				value = dis.readBoolean();
+				break;
+			case TYPE_STRING:
+				value = dis.readUTF();
+				break;
+			case TYPE_LONG_STRING:
+				byte[] utf = new byte[dis.readInt()];
+				dis.readFully(utf);
+				value = new String(utf, "UTF-8");
+				break;
+			case TYPE_BYTES:
+				byte[] buf = new byte[dis.readInt()];
+				dis.readFully(buf);
+				value = buf;
+				break;
+			default:
+				throw new IOException("Unknown type "+type+" for key "+key+" in "+file);
+			}
+			values.put(key, value);
+		}
+	}
+
+	private static void writeRecord(DataOutputStream dos, String key, Object value) throws IOException {
+		dos.writeUTF(key);
+		if(value == REMOVED) {
+			dos.writeByte(TYPE_REMOVED);
+		} else if(value instanceof Long) {
+			dos.writeByte(TYPE_LONG);
+			dos.writeLong((Long)value);
+		} else if(value instanceof Integer) {
+			dos.writeByte(TYPE_INT);
+			dos.writeInt((Integer)value);
+		} else if(value instanceof Short) {
+			dos.writeByte(TYPE_SHORT);
+			dos.writeShort((Short)value);
+		} else if(value instanceof Byte) {
+			dos.writeByte(TYPE_BYTE);
+			dos.writeByte((Byte)value);
+		} else if(value instanceof Boolean) {
+			dos.writeByte(TYPE_BOOLEAN);
+			dos.writeBoolean((Boolean)value);
+		} else if(value instanceof String) {
+			String s = (String) value;
+			if(utfLength(s) <= MAX_UTF_LENGTH) {
+				dos.writeByte(TYPE_STRING);
+				dos.writeUTF(s);
+			} else {
+				byte[] buf = s.getBytes("UTF-8");
+				dos.writeByte(TYPE_LONG_STRING);
+				dos.writeInt(buf.length);
+				dos.write(buf);
+			}
+		} else {
+			byte[] buf = (byte[]) value;
+			dos.writeByte(TYPE_BYTES);
+			dos.writeInt(buf.length);
+			dos.write(buf);
+		}
+	}
+
+	/** The number of bytes writeUTF() would write for s, not counting the length. */
+	private static int utfLength(String s) {
+		int len = 0;
+		for(int i=0;i<s.length();i++) {
+			char c = s.charAt(i);
+			if(c >= 0x0001 && c <= 0x007F) len++;
+			else if(c > 0x07FF) len += 3;
+			else len += 2;
+		}
+		return len;
+	}
+
+	/** Encode a batch: [length][count][records...][CRC32] */
+	private static byte[] encodeBatch(Map<String, Object> records) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(records.size());
+		for(Map.Entry<String, Object> entry : records.entrySet())
+			writeRecord(dos, entry.getKey(), entry.getValue());
+		dos.close();
+		byte[] batch = baos.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(batch);
+		baos = new ByteArrayOutputStream(batch.length + 8);
+		dos = new DataOutputStream(baos);
+		dos.writeInt(batch.length);
+		dos.write(batch);
+		dos.writeInt((int)crc.getValue());
+		dos.close();
+		return baos.toByteArray();
+	}
+
+	// Reading
+
+	public synchronized boolean containsKey(String key) {
+		return values.containsKey(key);
+	}
+
+	public synchronized Set<String> keySet() {
+		return new java.util.HashSet<String>(values.keySet());
+	}
+
+	public synchronized int size() {
+		return values.size();
+	}
+
+	/** @throws ClassCastException If the key was stored with a different type. */
+	public synchronized long getLong(String key, long def) {
+		Long l = (Long) values.get(key);
+		return l == null ? def : l;
+	}
+
+	public synchronized int getInt(String key, int def) {
+		Integer i = (Integer) values.get(key);
+		return i == null ? def : i;
+	}
+
+	public synchronized short getShort(String key, short def) {
+		Short s = (Short) values.get(key);
+		return s == null ? def : s;
+	}
+
+	public synchronized byte getByte(String key, byte def) {
+		Byte b = (Byte) values.get(key);
+		return b == null ? def : b;
+	}
+
+	public synchronized boolean getBoolean(String key, boolean def) {
+		Boolean b = (Boolean) values.get(key);
+		return b == null ? def : b;
+	}
+
+	public synchronized String getString(String key, String def) {
+		String s = (String) values.get(key);
+		return s == null ? def : s;
+	}
+
+	/** @return A copy of the stored bytes, or def. */
+	public synchronized byte[] getBytes(String key, byte[] def) {
+		byte[] buf = (byte[]) values.get(key);
+		return buf == null ? def : buf.clone();
+	}
+
+	// Writing
+
+	public void putLong(String key, long value) {
+		put(key, value);
+	}
+
+	public void putInt(String key, int value) {
+		put(key, value);
+	}
+
+	public void putShort(String key, short value) {
+		put(key, value);
+	}
+
+	public void putByte(String key, byte value) {
+		put(key, value);
+	}
+
+	public void putBoolean(String key, boolean value) {
+		put(key, value);
+	}
+
+	public void putString(String key, String value) {
+		if(value == null) throw new NullPointerException();
+		put(key, value);
+	}
+
+	public void putBytes(String key, byte[] value) {
+		put(key, value.clone());
+	}
+
+	public void remove(String key) {
+		checkKey(key);
+		synchronized(this) {
+			if(closed) throw new IllegalStateException("Store closed: "+file);
+			if(values.remove(key) == null) return;
+		}
+		changed(key, REMOVED);
+	}
+
+	private void put(String key, Object value) {
+		checkKey(key);
+		synchronized(this) {
+			if(closed) throw new IllegalStateException("Store closed: "+file);
+			values.put(key, value);
+		}
+		changed(key, value);
+	}
+
+	/** Keys are written with writeUTF(), so they can't be too long. */
+	private static void checkKey(String key) {
+		if(key == null) throw new NullPointerException();
+		if(utfLength(key) > MAX_UTF_LENGTH)
+			throw new IllegalArgumentException("Key too long: "+key.length()+" chars");
+	}
+
+	private void changed(String key, Object value) {
+		boolean queue = false;
+		synchronized(this) {
+			dirty.remove(key);
+			dirty.put(key, value);
+			if(!flushQueued && ticker != null) {
+				flushQueued = true;
+				queue = true;
+			}
+		}
+		if(queue)
+			ticker.queueTimedJob(flusher, "Flush plugin store "+file.getName(), FLUSH_DELAY, false, true);
+	}
+
+	/** The number of keys which have changed since the last flush. */
+	public synchronized int countDirty() {
+		return dirty.size();
+	}
+
+	/**
+	 * Write the changed keys to the end of the log now, and compact the log if it has
+	 * got too big. Only writes what has changed.
+	 */
+	public void flush() throws IOException {
+		synchronized(fileLock) {
+			Map<String, Object> toWrite;
+			long liveEstimate;
+			synchronized(this) {
+				if(dirty.isEmpty()) return;
+				toWrite = dirty;
+				dirty = new LinkedHashMap<String, Object>();
+				liveEstimate = values.size();
+			}
+			byte[] batch = encodeBatch(toWrite);
+			RandomAccessFile raf = null;
+			try {
+				raf = new RandomAccessFile(file, "rw");
+				// Write over anything left by a write which failed part way,
+				// rather than after it, where load() would never reach.
+				raf.seek(logLength);
+				raf.write(batch);
+				if(raf.length() > logLength + batch.length)
+					raf.setLength(logLength + batch.length);
+				raf.getFD().sync();
+			} catch (IOException e) {
+				// Try again next time.
+				synchronized(this) {
+					for(Map.Entry<String, Object> entry : toWrite.entrySet()) {
+						if(!dirty.containsKey(entry.getKey()))
+							dirty.put(entry.getKey(), entry.getValue());
+					}
+				}
+				throw e;
+			} finally {
+				Closer.close(raf);
+			}
+			logLength += batch.length;
+			if(logMINOR) Logger.minor(this, "Wrote "+toWrite.size()+" keys ("+batch.length+" bytes) to "+file);
+			// Estimate the live data size as the average record size seen in
+			// this batch times the number of keys.
+			long estimate = liveEstimate * ((batch.length + toWrite.size() - 1) / toWrite.size());
+			if(logLength > MIN_COMPACT_SIZE && logLength > estimate * COMPACT_RATIO)
+				innerCompact();
+		}
+	}
+
+	/**
+	 * Rewrite the log with only the current values. Any changes not yet
+	 * written are included.
+	 */
+	public void compact() throws IOException {
+		synchronized(fileLock) {
+			innerCompact();
+		}
+	}
+
+	private void innerCompact() throws IOException {
+		byte[] batch;
+		synchronized(this) {
+			batch = encodeBatch(values);
+			dirty.clear();
+		}
+		File tmp = new File(file.getPath()+".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		BufferedOutputStream bos = new BufferedOutputStream(fos);
+		try {
+			bos.write(batch);
+			bos.flush();
+			fos.getFD().sync();
+		} finally {
+			Closer.close(bos);
+		}
+		if(!FileUtil.renameTo(tmp, file)) {
+			tmp.delete();
+			throw new IOException("Unable to rename "+tmp+" to "+file);
+		}
+		if(logMINOR) Logger.minor(this, "Compacted "+file+" from "+logLength+" to "+batch.length+" bytes");
+		logLength = batch.length;
+	}
+
+	/** Write any changes and stop accepting new ones. The file can then be opened
+	 * again. Called when the plugin is unloaded, or the node shuts down. */
+	public void close() throws IOException {
+		synchronized(this) {
+			if(closed) return;
+			closed = true;
+		}
+		try {
+			flush();
+		} finally {
+			synchronized(openFiles) {
+				openFiles.remove(file);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+file;
+	}
+
+}
@@ -5,6 +5,8 @@ import com.db4o.ObjectSet;
 import freenet.client.async.ClientContext;
 import freenet.client.async.DatabaseDisabledException;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
@@ -18,6 +20,7 @@ import freenet.clients.http.ToadletContainer;
 import freenet.node.Node;
 import freenet.node.RequestStarter;
 import freenet.support.HTMLNode;
+import freenet.support.Logger;
 import freenet.support.URIPreEncoder;
 import freenet.support.io.NativeThread;
 
@@ -33,6 +36,7 @@ public class PluginRespirator {
 	private final PluginManager pluginManager;
 
 	private PluginStore store;
+	private PluginKeyValueStore keyValueStore;
 	
 	public PluginRespirator(Node node, PluginManager pm, FredPlugin plug) {
 		this.node = node;
@@ -163,6 +167,36 @@ public class PluginRespirator {
 		}, NativeThread.NORM_PRIORITY, false);
 	}
 	
+	/**
+	 * Get a PluginKeyValueStore for the plugin. This is kept in its own file
+	 * under the node directory rather than in the node's database, and only
+	 * the keys which change are written, so it is much cheaper than
+	 * putStore() for state which changes often. It is not encrypted. It is
+	 * closed, writing any changes, when the plugin is unloaded or the node
+	 * shuts down.
+	 * @throws IOException If the store could not be read, or the plugin is
+	 * loaded twice.
+	 */
+	public synchronized PluginKeyValueStore getKeyValueStore() throws IOException {
+		if(keyValueStore == null) {
+			File dir = new File(node.getNodeDir(), "plugin-stores");
+			File file = new File(dir, plugin.getClass().getCanonicalName()+".kv");
+			keyValueStore = new PluginKeyValueStore(file, node.ps);
+		}
+		return keyValueStore;
+	}
+
+	/** Close the plugin's key-value store, if it has one, writing any changes.
+	 * Called after the plugin has been terminated. */
+	synchronized void closeKeyValueStore() {
+		if(keyValueStore == null) return;
+		try {
+			keyValueStore.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write "+keyValueStore+" : "+e, e);
+		}
+	}
+
 	public SessionManager getSessionManager(URI cookiePath) {
 		SessionManager session = sessionManagers.get(cookiePath);
 		
@@ -2322,6 +2322,18 @@ public class BerkeleyDBFreenetStore<T extends StorableBlock> implements FreenetS
 	public long getBloomFalsePositive() {
 		return -1;
 	}
+
+	public long getLocksAcquired() {
+		return -1;
+	}
+
+	public long getLocksContended() {
+		return -1;
+	}
+
+	public long getLockWaitTime() {
+		return -1;
+	}
 	
     public boolean probablyInStore(byte[] routingKey) {
     	// This needs to be fast, so that it can be run from any thread.
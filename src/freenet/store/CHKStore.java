@@ -20,9 +20,24 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 	public CHKBlock construct(byte[] data, byte[] headers,
 			byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey ignored) throws KeyVerifyException {
 		if(data == null || headers == null) throw new CHKVerifyException("Need either data and headers");
+		if(routingKey != null && trustStoredBlocks()) {
+			CHKBlock block = CHKBlock.constructTrusted(data, headers, routingKey);
+			trustedRead(block);
+			return block;
+		}
 		return CHKBlock.construct(data, headers);
 	}
 
+	@Override
+	public boolean verify(CHKBlock block) {
+		try {
+			new CHKBlock(block.getRawData(), block.getRawHeaders(), block.getKey());
+			return true;
+		} catch (CHKVerifyException e) {
+			return false;
+		}
+	}
+
 	public CHKBlock fetch(NodeCHK chk, boolean dontPromote, BlockMetadata meta) throws IOException {
 		return store.fetch(chk.getRoutingKey(), null, dontPromote, false, false, meta);
 	}
@@ -72,4 +87,14 @@ public class CHKStore extends StoreCallback<CHKBlock> {
 		return NodeCHK.routingKeyFromFullKey(keyBuf);
 	}
 
+	@Override
+	public byte[] blockData(CHKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] blockHeaders(CHKBlock block) {
+		return block.getRawHeaders();
+	}
+
 }
@@ -64,6 +64,17 @@ public interface FreenetStore<T extends StorableBlock> {
 	public long keyCount();
 
 	public long getBloomFalsePositive();
+
+	/** @return The number of slot locks taken, or -1 if the store doesn't lock slots. */
+	public long getLocksAcquired();
+
+	/** @return The number of slot locks which were already held by another
+	 * thread, or -1 if the store doesn't lock slots. */
+	public long getLocksContended();
+
+	/** @return The time spent waiting for contended slot locks, in milliseconds,
+	 * or -1 if the store doesn't lock slots. */
+	public long getLockWaitTime();
 	
 	/**
 	 * Check if a routing key probably
@@ -0,0 +1,399 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+
+/**
+ * In-memory cache of recently used, already verified blocks, sized in bytes,
+ * which Node.fetch() checks before any of the on-disk stores.
+ *
+ * The eviction policy is W-TinyLFU: new blocks go into a small LRU window;
+ * when they fall out of it they only displace the least recently used block
+ * of the main area if they have been asked for more often, according to a
+ * small count-min sketch of recent key frequencies. So a scan of blocks that
+ * are only fetched once (e.g. a big splitfile passing through) can't flush
+ * the blocks that are fetched again and again. The main area is a segmented
+ * LRU: blocks hit while on probation are promoted to the protected segment.
+ *
+ * Lookups are a ConcurrentHashMap get. Recording the access for the policy
+ * needs the lock, but if the lock is busy the access is simply not recorded,
+ * which costs a little accuracy and no waiting. Adding and removing blocks
+ * always take the lock.
+ *
+ * Blocks from the client cache are tagged, and only returned to requests
+ * which are allowed to read the client cache.
+ */
+public class HotBlockCache {
+
+	/** Rough overhead per cached block on top of the data and headers */
+	static final int ENTRY_OVERHEAD = 200;
+	/** Percentage of the cache used for the admission window */
+	static final int WINDOW_PERCENT = 1;
+	/** Percentage of the main area which is protected */
+	static final int PROTECTED_PERCENT = 80;
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+
+	private static final class Entry {
+		final Key key;
+		final KeyBlock block;
+		final boolean clientCache;
+		final boolean oldBlock;
+		final int size;
+		int queue;
+		Entry prev;
+		Entry next;
+
+		Entry(Key key, KeyBlock block, boolean clientCache, boolean oldBlock) {
+			this.key = key;
+			this.block = block;
+			this.clientCache = clientCache;
+			this.oldBlock = oldBlock;
+			this.size = block.getRawData().length + block.getRawHeaders().length + ENTRY_OVERHEAD;
+		}
+	}
+
+	/** Intrusive LRU list; head is the least recently used. */
+	private static final class Queue {
+		Entry head;
+		Entry tail;
+		long size;
+
+		void add(Entry e) {
+			e.prev = tail;
+			e.next = null;
+			if (tail == null)
+				head = e;
+			else
+				tail.next = e;
+			tail = e;
+			size += e.size;
+		}
+
+		void remove(Entry e) {
+			if (e.prev == null)
+				head = e.next;
+			else
+				e.prev.next = e.next;
+			if (e.next == null)
+				tail = e.prev;
+			else
+				e.next.prev = e.prev;
+			e.prev = e.next = null;
+			size -= e.size;
+		}
+
+		void moveToTail(Entry e) {
+			if (tail == e)
+				return;
+			remove(e);
+			add(e);
+		}
+	}
+
+	private final ConcurrentHashMap<Key, Entry> entries;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue window = new Queue();
+	private final Queue probation = new Queue();
+	private final Queue protectedQueue = new Queue();
+	private final FrequencySketch sketch;
+	private volatile long maxSize;
+	private volatile long maxWindowSize;
+	private long maxProtectedSize;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	/**
+	 * @param maxSize Maximum size of the cached blocks in bytes. Zero
+	 * disables the cache.
+	 */
+	public HotBlockCache(long maxSize) {
+		entries = new ConcurrentHashMap<Key, Entry>();
+		// Size the sketch for small SSKs; over-sizing it costs little.
+		sketch = new FrequencySketch((int) Math.min(Math.max(maxSize / 2048, 1024), 1 << 22));
+		setMaxSize(maxSize);
+	}
+
+	public void setMaxSize(long maxSize) {
+		lock.lock();
+		try {
+			this.maxSize = maxSize;
+			maxWindowSize = maxSize * WINDOW_PERCENT / 100;
+			maxProtectedSize = (maxSize - maxWindowSize) * PROTECTED_PERCENT / 100;
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Look up a block.
+	 * @param canReadClientCache If false, blocks which came from the client
+	 * cache will not be returned.
+	 * @param meta If not null, set to an old block if the cached block was.
+	 * @return The block, or null.
+	 */
+	public KeyBlock get(Key key, boolean canReadClientCache, BlockMetadata meta) {
+		Entry e = entries.get(key);
+		if (e == null || (e.clientCache && !canReadClientCache)) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		if (lock.tryLock()) {
+			try {
+				sketch.increment(key.hashCode());
+				onHit(e);
+			} finally {
+				lock.unlock();
+			}
+		}
+		if (meta != null && e.oldBlock)
+			meta.setOldBlock();
+		return e.block;
+	}
+
+	/**
+	 * Offer a block which was just fetched from one of the stores. It may or
+	 * may not be admitted.
+	 * @param clientCache True if it came from the client cache.
+	 * @param oldBlock True if the store said it was an old block.
+	 */
+	public void offer(Key key, KeyBlock block, boolean clientCache, boolean oldBlock) {
+		if (maxSize == 0)
+			return;
+		Entry e = new Entry(key, block, clientCache, oldBlock);
+		if (e.size > maxWindowSize && e.size > (maxSize - maxWindowSize) / 4)
+			return;
+		lock.lock();
+		try {
+			sketch.increment(key.hashCode());
+			Entry old = entries.get(key);
+			if (old != null) {
+				// Keep the public copy: anyone can read it.
+				if (old.clientCache && !clientCache)
+					remove(old);
+				else
+					return;
+			}
+			entries.put(key, e);
+			e.queue = WINDOW;
+			window.add(e);
+			evict();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Remove a block, e.g. because an SSK has been overwritten. */
+	public void remove(Key key) {
+		if (!entries.containsKey(key))
+			return;
+		lock.lock();
+		try {
+			Entry e = entries.get(key);
+			if (e != null)
+				remove(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/** Remove all the blocks from the client cache, because it has been
+	 * replaced (e.g. wiped, or moved to RAM when the security level changed),
+	 * so they must not outlive it here. */
+	public void removeClientCacheBlocks() {
+		lock.lock();
+		try {
+			for (Entry e : entries.values()) {
+				if (e.clientCache)
+					remove(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void remove(Entry e) {
+		entries.remove(e.key);
+		queueFor(e.queue).remove(e);
+	}
+
+	private Queue queueFor(int queue) {
+		switch (queue) {
+		case WINDOW:
+			return window;
+		case PROBATION:
+			return probation;
+		default:
+			return protectedQueue;
+		}
+	}
+
+	private void onHit(Entry e) {
+		// May have been evicted since we looked it up
+		if (entries.get(e.key) != e)
+			return;
+		switch (e.queue) {
+		case WINDOW:
+			window.moveToTail(e);
+			break;
+		case PROBATION:
+			probation.remove(e);
+			e.queue = PROTECTED;
+			protectedQueue.add(e);
+			while (protectedQueue.size > maxProtectedSize && protectedQueue.head != null) {
+				Entry demoted = protectedQueue.head;
+				protectedQueue.remove(demoted);
+				demoted.queue = PROBATION;
+				probation.add(demoted);
+			}
+			break;
+		default:
+			protectedQueue.moveToTail(e);
+		}
+	}
+
+	/** Move blocks out of the window, and evict the losers. Call with the lock held. */
+	private void evict() {
+		while (window.size > maxWindowSize && window.head != null) {
+			Entry candidate = window.head;
+			window.remove(candidate);
+			candidate.queue = PROBATION;
+			probation.add(candidate);
+		}
+		long maxMainSize = maxSize - maxWindowSize;
+		while (probation.size + protectedQueue.size > maxMainSize) {
+			// The candidates are at the tail of probation, the victim at the head.
+			Entry victim = probation.head;
+			Entry candidate = probation.tail;
+			if (victim == null) {
+				victim = protectedQueue.head;
+				if (victim == null)
+					break;
+				remove(victim);
+				evictions.incrementAndGet();
+				continue;
+			}
+			if (victim == candidate) {
+				remove(victim);
+				evictions.incrementAndGet();
+				continue;
+			}
+			if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+				remove(victim);
+				evictions.incrementAndGet();
+			} else {
+				remove(candidate);
+				rejections.incrementAndGet();
+			}
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	/** Blocks removed to make room */
+	public long evictions() {
+		return evictions.get();
+	}
+
+	/** Blocks which were not admitted because they weren't popular enough */
+	public long rejections() {
+		return rejections.get();
+	}
+
+	public int keyCount() {
+		return entries.size();
+	}
+
+	/** Bytes used by the cached blocks */
+	public long size() {
+		lock.lock();
+		try {
+			return window.size + probation.size + protectedQueue.size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Count-min sketch with four 4-bit counters per key, halved every
+	 * 10 * width increments so that it reflects recent popularity.
+	 */
+	static final class FrequencySketch {
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int width) {
+			int size = 1;
+			while (size < width)
+				size <<= 1;
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = 10 * size;
+		}
+
+		private static int rehash(int h, int i) {
+			h = (h + i) * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for (int i = 0; i < 4; i++) {
+				int h = rehash(hash, i);
+				int shift = ((h >>> 28) & 0xF) << 2;
+				int count = (int) ((table[h & mask] >>> shift) & 0xF);
+				if (count < min)
+					min = count;
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int h = rehash(hash, i);
+				int index = h & mask;
+				int shift = ((h >>> 28) & 0xF) << 2;
+				if (((table[index] >>> shift) & 0xF) != 0xF) {
+					table[index] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions >= sampleSize)
+				reset();
+		}
+
+		private void reset() {
+			for (int i = 0; i < table.length; i++)
+				table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+			additions /= 2;
+		}
+	}
+
+}
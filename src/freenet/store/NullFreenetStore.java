@@ -21,6 +21,18 @@ public class NullFreenetStore<T extends StorableBlock> implements FreenetStore<T
 		return 0;
 	}
 
+	public long getLocksAcquired() {
+		return -1;
+	}
+
+	public long getLocksContended() {
+		return -1;
+	}
+
+	public long getLockWaitTime() {
+		return -1;
+	}
+
 	public long getMaxKeys() {
 		return 0;
 	}
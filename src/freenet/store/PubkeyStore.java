@@ -74,4 +74,14 @@ public class PubkeyStore extends StoreCallback<DSAPublicKey> {
 	public byte[] routingKeyFromFullKey(byte[] keyBuf) {
 		return keyBuf;
 	}
+
+	@Override
+	public byte[] blockData(DSAPublicKey block) {
+		return block.asPaddedBytes();
+	}
+
+	@Override
+	public byte[] blockHeaders(DSAPublicKey block) {
+		return empty;
+	}
 }
@@ -137,6 +137,18 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	public long getBloomFalsePositive() {
 		return -1;
 	}
+
+	public long getLocksAcquired() {
+		return -1;
+	}
+
+	public long getLocksContended() {
+		return -1;
+	}
+
+	public long getLockWaitTime() {
+		return -1;
+	}
 	
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
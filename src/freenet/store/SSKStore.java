@@ -29,9 +29,23 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 			key.setPubKey(knownPublicKey);
 		else if(!key.grabPubkey(pubkeyCache, canReadClientCache, canReadSlashdotCache, meta))
 			throw new SSKVerifyException("No pubkey found");
-		SSKBlock block = new SSKBlock(data, headers, key, false);
+		// Migration and reconstruction pass no routing key: always verify those.
+		boolean trusted = routingKey != null && trustStoredBlocks();
+		SSKBlock block = new SSKBlock(data, headers, key, trusted);
+		if(trusted)
+			trustedRead(block);
 		return block;
 	}
+
+	@Override
+	public boolean verify(SSKBlock block) {
+		try {
+			new SSKBlock(block.getRawData(), block.getRawHeaders(), block.getKey(), false);
+			return true;
+		} catch (SSKVerifyException e) {
+			return false;
+		}
+	}
 	
 	public SSKBlock fetch(NodeSSK chk, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) throws IOException {
 		return store.fetch(chk.getRoutingKey(), chk.getFullKey(), dontPromote, canReadClientCache, canReadSlashdotCache, meta);
@@ -81,4 +95,14 @@ public class SSKStore extends StoreCallback<SSKBlock> {
 		return NodeSSK.routingKeyFromFullKey(keyBuf);
 	}
 
+	@Override
+	public byte[] blockData(SSKBlock block) {
+		return block.getRawData();
+	}
+
+	@Override
+	public byte[] blockHeaders(SSKBlock block) {
+		return block.getRawHeaders();
+	}
+
 }
@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sleepycat.je.DatabaseException;
+
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * Spreads a store over several volumes, usually on different disks. Each shard
+ * is a complete store with its own files and Bloom filter; every operation on a
+ * shard goes through its volume's I/O queue.
+ *
+ * A key belongs to the shard whose volume scores highest for it (rendezvous
+ * hashing on the routing key and the volume id). When a volume is added it
+ * takes an even share of the keyspace, and for every key it takes the previous
+ * owner is the shard that now scores second. So a miss on the owner is retried
+ * on the runner-up, and a block found there is copied to the owner. The stores
+ * can't list their keys, so this is the only rebalancing: keys that aren't
+ * asked for stay behind until they are evicted. Removing a volume loses its
+ * keys.
+ */
+public class ShardedFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ShardedFreenetStore.class);
+	}
+
+	private final StoreCallback<T> callback;
+	private final List<FreenetStore<T>> shards;
+	private final List<StoreVolume> volumes;
+
+	private long maxKeys;
+	private long hits;
+	private long misses;
+	private long rebalancedKeys;
+
+	/**
+	 * @param shards The stores, one per volume. Their sizes are set from
+	 * {@link #setMaxKeys(long, boolean)}; use {@link #keysPerShard(long, int)} when creating them.
+	 * @param volumes The volume each shard is on, in the same order.
+	 */
+	public ShardedFreenetStore(StoreCallback<T> callback, List<FreenetStore<T>> shards, List<StoreVolume> volumes) {
+		if (shards.isEmpty() || shards.size() != volumes.size())
+			throw new IllegalArgumentException("Need one volume per shard");
+		this.callback = callback;
+		this.shards = new ArrayList<FreenetStore<T>>(shards);
+		this.volumes = new ArrayList<StoreVolume>(volumes);
+		for (FreenetStore<T> shard : shards)
+			maxKeys += shard.getMaxKeys();
+		// The shards registered themselves with the callback as they were created.
+		callback.setStore(this);
+	}
+
+	public static long keysPerShard(long maxKeys, int shards) {
+		return (maxKeys + shards - 1) / shards;
+	}
+
+	/** MurmurHash3's 64-bit finaliser, so that similar volume ids give unrelated scores. */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @return The index of the shard owning the key in the first element, and
+	 * of the one that would own it without that shard in the second (-1 if
+	 * there is only one shard).
+	 */
+	int[] rank(byte[] routingKey) {
+		long key = Fields.bytesToLong(routingKey);
+		int best = -1, second = -1;
+		long bestScore = 0, secondScore = 0;
+		for (int i = 0; i < volumes.size(); i++) {
+			long score = mix(key ^ volumes.get(i).getId());
+			if (best == -1 || score > bestScore) {
+				second = best;
+				secondScore = bestScore;
+				best = i;
+				bestScore = score;
+			} else if (second == -1 || score > secondScore) {
+				second = i;
+				secondScore = score;
+			}
+		}
+		return new int[] { best, second };
+	}
+
+	private T fetch(int shard, byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache,
+	        boolean canReadSlashdotCache, BlockMetadata meta) throws IOException {
+		StoreVolume volume = volumes.get(shard);
+		long started = volume.begin();
+		try {
+			return shards.get(shard).fetch(routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, meta);
+		} finally {
+			volume.end(started);
+		}
+	}
+
+	private void put(int shard, T block, byte[] data, byte[] header, boolean overwrite, boolean oldBlock) throws IOException,
+	        KeyCollisionException {
+		StoreVolume volume = volumes.get(shard);
+		long started = volume.begin();
+		try {
+			shards.get(shard).put(block, data, header, overwrite, oldBlock);
+		} finally {
+			volume.end(started);
+		}
+	}
+
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache,
+	        BlockMetadata meta) throws IOException {
+		int[] rank = rank(routingKey);
+		T block = fetch(rank[0], routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, meta);
+		if (block == null && rank[1] != -1 && shards.get(rank[1]).probablyInStore(routingKey)) {
+			block = fetch(rank[1], routingKey, fullKey, dontPromote, canReadClientCache, canReadSlashdotCache, meta);
+			if (block != null)
+				moveToOwner(rank[0], block, meta);
+		}
+		synchronized (this) {
+			if (block == null)
+				misses++;
+			else
+				hits++;
+		}
+		return block;
+	}
+
+	/** Copy a block found on the runner-up to the shard which owns it now. */
+	private void moveToOwner(int owner, T block, BlockMetadata meta) {
+		byte[] data = callback.blockData(block);
+		byte[] header = callback.blockHeaders(block);
+		if (data == null || header == null)
+			return;
+		try {
+			put(owner, block, data, header, false, meta != null && meta.isOldBlock());
+			synchronized (this) {
+				rebalancedKeys++;
+			}
+			if (logMINOR)
+				Logger.minor(this, "Moved block to " + volumes.get(owner).getDir());
+		} catch (KeyCollisionException e) {
+			// A different block was stored on the owner since the miss; keep it.
+		} catch (IOException e) {
+			Logger.error(this, "Unable to move block to " + volumes.get(owner).getDir() + " : " + e, e);
+		}
+	}
+
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean oldBlock) throws IOException,
+	        KeyCollisionException {
+		put(rank(block.getRoutingKey())[0], block, data, header, overwrite, oldBlock);
+	}
+
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws DatabaseException, IOException {
+		long perShard = keysPerShard(maxStoreKeys, shards.size());
+		for (FreenetStore<T> shard : shards)
+			shard.setMaxKeys(perShard, shrinkNow);
+		synchronized (this) {
+			maxKeys = maxStoreKeys;
+		}
+	}
+
+	public synchronized long getMaxKeys() {
+		return maxKeys;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public long writes() {
+		long writes = 0;
+		for (FreenetStore<T> shard : shards)
+			writes += shard.writes();
+		return writes;
+	}
+
+	public long keyCount() {
+		long keys = 0;
+		for (FreenetStore<T> shard : shards)
+			keys += shard.keyCount();
+		return keys;
+	}
+
+	public long getBloomFalsePositive() {
+		long falsePositives = 0;
+		for (FreenetStore<T> shard : shards) {
+			long f = shard.getBloomFalsePositive();
+			if (f > 0)
+				falsePositives += f;
+		}
+		return falsePositives;
+	}
+
+	public long getLocksAcquired() {
+		long total = -1;
+		for (FreenetStore<T> shard : shards)
+			total = addLockStat(total, shard.getLocksAcquired());
+		return total;
+	}
+
+	public long getLocksContended() {
+		long total = -1;
+		for (FreenetStore<T> shard : shards)
+			total = addLockStat(total, shard.getLocksContended());
+		return total;
+	}
+
+	public long getLockWaitTime() {
+		long total = -1;
+		for (FreenetStore<T> shard : shards)
+			total = addLockStat(total, shard.getLockWaitTime());
+		return total;
+	}
+
+	/** Sum the shards which lock slots; -1 if none of them do. */
+	private static long addLockStat(long total, long shard) {
+		if (shard < 0)
+			return total;
+		return Math.max(total, 0) + shard;
+	}
+
+	public boolean probablyInStore(byte[] routingKey) {
+		int[] rank = rank(routingKey);
+		return shards.get(rank[0]).probablyInStore(routingKey)
+		        || (rank[1] != -1 && shards.get(rank[1]).probablyInStore(routingKey));
+	}
+
+	/** @return Number of blocks copied to their new owner after a volume was added. */
+	public synchronized long getRebalancedKeys() {
+		return rebalancedKeys;
+	}
+
+	public List<FreenetStore<T>> getShards() {
+		return Collections.unmodifiableList(shards);
+	}
+
+	public List<StoreVolume> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+}
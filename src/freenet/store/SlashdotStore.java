@@ -138,6 +138,18 @@ public class SlashdotStore<T extends StorableBlock> implements FreenetStore<T> {
 		return -1;
 	}
 
+	public long getLocksAcquired() {
+		return -1;
+	}
+
+	public long getLocksContended() {
+		return -1;
+	}
+
+	public long getLockWaitTime() {
+		return -1;
+	}
+
 	public long getMaxKeys() {
 		return maxKeys;
 	}
@@ -38,7 +38,7 @@ public abstract class StoreCallback<T extends StorableBlock> {
 	
 	protected FreenetStore<T> store;
 
-
+	private StoreScrubber scrubber;
 	
 	/** Called once when first connecting to a FreenetStore. Package-local. */
 	public void setStore(FreenetStore<T> store) {
@@ -86,6 +86,54 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store.getBloomFalsePositive();
 	}
 
+	public long getLocksAcquired() {
+		return store.getLocksAcquired();
+	}
+
+	public long getLocksContended() {
+		return store.getLocksContended();
+	}
+
+	public long getLockWaitTime() {
+		return store.getLockWaitTime();
+	}
+
+	/** Let construct() skip verifying blocks read from the store while the scrubber trusts the stores. */
+	public void setScrubber(StoreScrubber scrubber) {
+		this.scrubber = scrubber;
+	}
+
+	/** @return True if construct() may build a block read from the store without verifying it.
+	 * It must then call {@link #trustedRead(StorableBlock)}. */
+	protected boolean trustStoredBlocks() {
+		StoreScrubber s = scrubber;
+		return s != null && s.trustStores();
+	}
+
+	/** Called by construct() after building a block without verifying it, so it can be checked later. */
+	protected void trustedRead(T block) {
+		StoreScrubber s = scrubber;
+		if(s != null)
+			s.trustedRead(this, block);
+	}
+
+	/** Fully verify a block which construct() built without verifying it.
+	 * @return False if the block is corrupt. */
+	public boolean verify(T block) {
+		return true;
+	}
+
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
+
+	/** The data of a block as passed to FreenetStore.put(), or null if the block can't be copied
+	 * from one store to another. */
+	public byte[] blockData(T block) {
+		return null;
+	}
+
+	/** The headers of a block as passed to FreenetStore.put(). */
+	public byte[] blockHeaders(T block) {
+		return null;
+	}
 }
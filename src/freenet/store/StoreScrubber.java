@@ -0,0 +1,187 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.util.LinkedList;
+
+import freenet.node.FastRunnable;
+import freenet.node.Ticker;
+import freenet.support.Executor;
+import freenet.support.Logger;
+
+/**
+ * Every block in a store was verified when it was put there, so a block read
+ * back from the store doesn't need to be verified again: rehashing 32KB for a
+ * CHK or checking a DSA signature for an SSK on every read is wasted unless
+ * the disk corrupted the block. A store callback attached to a scrubber builds
+ * blocks read from the store without verifying them, as long as the scrubber
+ * trusts the stores.
+ *
+ * Instead, the scrubber verifies some of those blocks in the background, at a
+ * limited rate. The stores can't list their keys (the salted hash store
+ * doesn't keep them, by design), so it checks blocks as they are read rather
+ * than walking the store files. If the reads outpace it, it samples them. A
+ * block which fails means the disk is corrupting data, so the scrubber stops
+ * trusting the stores and every read is verified again. Verifying is slow (a
+ * DSA signature check for an SSK), so the ticker only schedules it and the
+ * blocks are checked on the executor.
+ */
+public class StoreScrubber implements Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(StoreScrubber.class);
+	}
+
+	/** Blocks waiting to be verified. Reads beyond this are not checked. */
+	static final int MAX_QUEUED = 64;
+	static final long INTERVAL = 1000;
+	public static final int DEFAULT_BLOCKS_PER_SECOND = 20;
+
+	private static final class Pending<T extends StorableBlock> {
+		final StoreCallback<T> callback;
+		final T block;
+
+		Pending(StoreCallback<T> callback, T block) {
+			this.callback = callback;
+			this.block = block;
+		}
+
+		boolean verify() {
+			return callback.verify(block);
+		}
+	}
+
+	private final LinkedList<Pending<?>> queue = new LinkedList<Pending<?>>();
+	private volatile boolean trustStores;
+	private volatile int blocksPerSecond;
+	private Ticker ticker;
+	private Executor executor;
+
+	private long trustedReads;
+	private long skipped;
+	private long scrubbed;
+	private long failures;
+
+	public StoreScrubber(boolean trustStores, int blocksPerSecond) {
+		this.trustStores = trustStores;
+		this.blocksPerSecond = blocksPerSecond;
+	}
+
+	public void start(Ticker ticker, Executor executor) {
+		synchronized (this) {
+			this.ticker = ticker;
+			this.executor = executor;
+		}
+		ticker.queueTimedJob(scheduler, INTERVAL);
+	}
+
+	/** Runs on the ticker: hand the verification over to the executor. */
+	private final FastRunnable scheduler = new FastRunnable() {
+		public void run() {
+			Executor e;
+			synchronized (StoreScrubber.this) {
+				e = executor;
+			}
+			e.execute(StoreScrubber.this, "Store scrubber", true);
+		}
+	};
+
+	/** @return True if blocks read from a store may be built without verifying them. */
+	public boolean trustStores() {
+		return trustStores;
+	}
+
+	public void setTrustStores(boolean trust) {
+		trustStores = trust;
+		if (!trust) {
+			synchronized (this) {
+				queue.clear();
+			}
+		}
+	}
+
+	public int getBlocksPerSecond() {
+		return blocksPerSecond;
+	}
+
+	/** @param blocksPerSecond Blocks to verify per second. 0 to trust the stores without checking. */
+	public void setBlocksPerSecond(int blocksPerSecond) {
+		this.blocksPerSecond = blocksPerSecond;
+	}
+
+	/** Called by a store callback after it built a block without verifying it. */
+	synchronized <T extends StorableBlock> void trustedRead(StoreCallback<T> callback, T block) {
+		trustedReads++;
+		if (blocksPerSecond <= 0 || queue.size() >= MAX_QUEUED) {
+			skipped++;
+			return;
+		}
+		queue.add(new Pending<T>(callback, block));
+	}
+
+	public void run() {
+		try {
+			scrub(blocksPerSecond);
+		} finally {
+			Ticker t;
+			synchronized (this) {
+				t = ticker;
+			}
+			if (t != null)
+				t.queueTimedJob(scheduler, INTERVAL);
+		}
+	}
+
+	/** Verify up to the given number of queued blocks. */
+	void scrub(int blocks) {
+		for (int i = 0; i < blocks; i++) {
+			Pending<?> pending;
+			synchronized (this) {
+				pending = queue.poll();
+			}
+			if (pending == null)
+				return;
+			boolean ok = pending.verify();
+			synchronized (this) {
+				scrubbed++;
+				if (!ok)
+					failures++;
+			}
+			if (!ok) {
+				Logger.error(this, "Block read from " + pending.callback.getStore() + " failed to verify: "
+				        + "the disk may be corrupting data, verifying every block read from now on");
+				setTrustStores(false);
+				return;
+			}
+			if (logMINOR)
+				Logger.minor(this, "Verified block from " + pending.callback.getStore());
+		}
+	}
+
+	/** @return Blocks read without verification, i.e. verifications saved (less those scrubbed). */
+	public synchronized long getTrustedReads() {
+		return trustedReads;
+	}
+
+	/** @return Blocks read without verification which were never checked because the scrubber was busy. */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	public synchronized long getScrubbed() {
+		return scrubbed;
+	}
+
+	public synchronized long getFailures() {
+		return failures;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "trusted " + trustStores + ", trusted reads " + trustedReads + ", verified later " + scrubbed + " ("
+		        + failures + " failed), not checked " + skipped;
+	}
+}
@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.io.Closer;
+
+/**
+ * A directory, usually on its own disk, holding one shard of each sharded
+ * store. All the shards on a volume share one I/O queue, so a slow disk
+ * doesn't get more requests than it can serve while the other disks are idle,
+ * and the latency and utilisation of each disk can be reported.
+ *
+ * Each volume has a random id, kept in the directory, which decides which keys
+ * it owns. The id follows the directory, so the keyspace doesn't move when the
+ * volumes are listed in a different order.
+ */
+public class StoreVolume {
+
+	/** Name of the file holding the volume id */
+	public static final String ID_FILE = "storeVolume.id";
+
+	public static final int DEFAULT_MAX_CONCURRENT_IO = 4;
+
+	private final File dir;
+	private final long id;
+	private final Semaphore queue;
+
+	private final AtomicLong operations = new AtomicLong();
+	private final AtomicLong ioNanos = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+
+	private final long created;
+	/** Operations in progress. Protected by this. */
+	private int inFlight;
+	/** Time during which at least one operation was in progress. Protected by this. */
+	private long busyNanos;
+	private long busySince;
+
+	/**
+	 * Open a volume, creating its directory and id if necessary.
+	 * @param maxConcurrentIO Number of operations that may run on the disk at once; the rest queue.
+	 */
+	public static StoreVolume open(File dir, Random random, int maxConcurrentIO) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Unable to create store volume " + dir);
+		File idFile = new File(dir, ID_FILE);
+		long id;
+		if (idFile.exists()) {
+			DataInputStream dis = null;
+			try {
+				dis = new DataInputStream(new FileInputStream(idFile));
+				id = dis.readLong();
+			} catch (EOFException e) {
+				throw new IOException("Truncated store volume id " + idFile);
+			} finally {
+				Closer.close(dis);
+			}
+		} else {
+			id = random.nextLong();
+			DataOutputStream dos = null;
+			try {
+				dos = new DataOutputStream(new FileOutputStream(idFile));
+				dos.writeLong(id);
+			} finally {
+				Closer.close(dos);
+			}
+		}
+		return new StoreVolume(dir, id, maxConcurrentIO);
+	}
+
+	public StoreVolume(File dir, long id, int maxConcurrentIO) {
+		this.dir = dir;
+		this.id = id;
+		this.queue = new Semaphore(maxConcurrentIO, true);
+		this.created = System.nanoTime();
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * Wait for a slot in the I/O queue.
+	 * @return The time the operation started, to pass to {@link #end(long)}.
+	 */
+	long begin() {
+		long queued = System.nanoTime();
+		queue.acquireUninterruptibly();
+		long now = System.nanoTime();
+		waitNanos.addAndGet(now - queued);
+		synchronized (this) {
+			if (inFlight++ == 0)
+				busySince = now;
+		}
+		return now;
+	}
+
+	void end(long started) {
+		long now = System.nanoTime();
+		synchronized (this) {
+			if (--inFlight == 0)
+				busyNanos += now - busySince;
+		}
+		queue.release();
+		operations.incrementAndGet();
+		ioNanos.addAndGet(now - started);
+	}
+
+	public long getOperations() {
+		return operations.get();
+	}
+
+	/** @return Mean time an operation spent on the disk, in milliseconds. */
+	public double getAverageLatency() {
+		long ops = operations.get();
+		return ops == 0 ? 0 : ioNanos.get() / (ops * 1000000.0);
+	}
+
+	/** @return Mean time an operation waited in the queue, in milliseconds. */
+	public double getAverageQueueWait() {
+		long ops = operations.get();
+		return ops == 0 ? 0 : waitNanos.get() / (ops * 1000000.0);
+	}
+
+	/** @return Number of operations waiting for the disk. */
+	public int getQueueLength() {
+		return queue.getQueueLength();
+	}
+
+	/** @return Fraction of the time since the volume was opened that the disk was busy. */
+	public synchronized double getUtilisation() {
+		long now = System.nanoTime();
+		long busy = busyNanos;
+		if (inFlight > 0)
+			busy += now - busySince;
+		return now == created ? 0 : (double) busy / (now - created);
+	}
+
+	@Override
+	public String toString() {
+		return dir.getPath() + ": " + operations.get() + " ops, latency " + (float) getAverageLatency() + "ms, queue wait "
+		        + (float) getAverageQueueWait() + "ms, queued " + getQueueLength() + ", utilisation "
+		        + (int) (getUtilisation() * 100) + '%';
+	}
+}
@@ -0,0 +1,974 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.logstructured;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.crypt.BlockCipher;
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.keys.KeyVerifyException;
+import freenet.keys.SSKBlock;
+import freenet.node.MasterKeys;
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.node.Ticker;
+import freenet.store.BlockMetadata;
+import freenet.store.FreenetStore;
+import freenet.store.KeyCollisionException;
+import freenet.store.StorableBlock;
+import freenet.store.StoreCallback;
+import freenet.support.Fields;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Log-structured datastore, for SSDs and anything else which prefers large
+ * sequential writes to random ones.
+ *
+ * Blocks are encrypted exactly as in the salted hash store (keyed by the
+ * routing key, found by the salted digest of it), and appended to fixed size
+ * segment files in the directory <code>name.log</code>. An in-memory hash
+ * table maps a 64-bit fingerprint of the digested routing key to its slot in
+ * the log; the full digest is checked on every read. Each slot costs 8 bytes
+ * for the segment's fingerprint list plus about 21 bytes of index.
+ *
+ * When a segment is full it is sealed and a new one started. Sealed segments
+ * get a summary file listing their fingerprints, so that the index can be
+ * rebuilt on startup without reading the blocks; segments without one are
+ * scanned instead. An entry which is dropped from the index while its
+ * segment is kept has its digest zeroed on disk, so neither way of loading
+ * brings it back.
+ *
+ * Space is reclaimed in two ways: when the sealed segments alone could hold
+ * more than maxKeys blocks, the oldest segment is dropped (FIFO, like a
+ * cache); and a background job copies the live blocks out of sealed segments
+ * which are mostly overwritten, then deletes them, reading and writing no more
+ * than a configurable number of bytes per second. Resizing only changes the
+ * limit: nothing is moved, shrinking drops the oldest segments.
+ *
+ * LOCKING: the index and the segment bookkeeping are protected by the store's
+ * monitor. Reading or writing a segment file happens outside it, holding the
+ * read lock of segmentsLock, so that removing a segment (write lock) never
+ * happens under a reader. Puts and GC copies of the same key are serialised
+ * by a striped lock on the fingerprint. Lock order: put lock, segmentsLock,
+ * monitor.
+ *
+ * <pre>
+ *  ENTRY (padded to a multiple of 512 bytes)
+ *       +-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *       |0|1|2|3|4|5|6|7|8|9|A|B|C|D|E|F|
+ *  +----+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+-+
+ *  |0000|                               |
+ *  +----+     Digested Routing Key      |
+ *  |0010|                               |
+ *  +----+-------------------------------+
+ *  |0020|       Data Encrypt IV         |
+ *  +----+---------------+---------------+
+ *  |0030|     Flag      |   Reserved    |
+ *  +----+---------------+---------------+
+ *  |0040|  Encrypted header, then data  |
+ *  +----+-------------------------------+
+ * </pre>
+ */
+public class LogStructuredFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(LogStructuredFreenetStore.class);
+	}
+
+	/** Target size of a segment file */
+	static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+	/** Minimum number of entries in a segment */
+	static final int MIN_SEGMENT_ENTRIES = 16;
+	/** Entries are padded to a multiple of this, so writes stay sector aligned */
+	static final int ALIGNMENT = 512;
+	/** Compact sealed segments with less than this percentage of live entries */
+	static final int GC_THRESHOLD_PERCENT = 50;
+	/** Don't compact until the segments could hold this percentage of maxKeys */
+	static final int GC_START_PERCENT = 75;
+	static final long GC_INTERVAL = 5 * 1000;
+	public static final long DEFAULT_GC_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+	private static final int DIGEST_LENGTH = 0x20;
+	private static final int IV_LENGTH = 0x10;
+	private static final int FLAG_OFFSET = 0x30;
+	private static final int ENTRY_HEADER_LENGTH = 0x40;
+	private static final long ENTRY_FLAG_OLD_BLOCK = 0x1;
+	private static final int PUT_LOCKS = 64;
+
+	private final File dir;
+	private final String name;
+	private final StoreCallback<T> callback;
+	private final boolean collisionPossible;
+	private final int headerBlockLength;
+	private final int dataBlockLength;
+	private final int entryLength;
+	private final Random random;
+	private final File configFile;
+	private byte[] salt;
+	private int entriesPerSegment;
+	private long maxKeys;
+	private volatile long gcBytesPerSecond = DEFAULT_GC_BYTES_PER_SECOND;
+
+	private final SegmentIndex index;
+	private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+	/** The segment being appended to */
+	private Segment active;
+	private long nextSegmentID;
+
+	private final ReadWriteLock segmentsLock = new ReentrantReadWriteLock();
+	private final Object[] putLocks;
+	private volatile boolean shutdown;
+	private Ticker ticker;
+
+	/** The segment being compacted, and the next slot to look at. Only used by the GC job. */
+	private Segment gcSegment;
+	private int gcSlot;
+
+	private final class Segment {
+		final long id;
+		final File file;
+		final File summaryFile;
+		final RandomAccessFile raf;
+		final FileChannel channel;
+		/** Fingerprint of the key written to each slot, 0 if none */
+		final long[] fingerprints;
+		/** Slots allocated */
+		int used;
+		/** Slots which the index points to */
+		int live;
+		/** Writes which have been allocated a slot but not finished */
+		int pending;
+		boolean summaryWritten;
+		/** Incremented whenever an entry is erased, so a summary written from
+		 * an older copy of the fingerprints is not taken as up to date. */
+		int erased;
+		boolean removed;
+
+		Segment(long id) throws IOException {
+			this.id = id;
+			file = new File(dir, id + ".seg");
+			summaryFile = new File(dir, id + ".sum");
+			raf = new RandomAccessFile(file, "rw");
+			channel = raf.getChannel();
+			fingerprints = new long[entriesPerSegment];
+		}
+
+		/** Read the fingerprints from the summary file, or failing that from the entries. */
+		void load() throws IOException {
+			long length = raf.length();
+			used = (int) Math.min(entriesPerSegment, length / entryLength);
+			if (length != (long) used * entryLength) {
+				// Torn write at the end of the log
+				Logger.normal(this, "Truncating " + file + " from " + length + " to " + used + " entries");
+				raf.setLength((long) used * entryLength);
+			}
+			if (summaryFile.length() == entriesPerSegment * 8L) {
+				DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(summaryFile)));
+				try {
+					for (int i = 0; i < entriesPerSegment; i++)
+						fingerprints[i] = dis.readLong();
+				} finally {
+					Closer.close(dis);
+				}
+				summaryWritten = true;
+				return;
+			}
+			byte[] digest = new byte[8];
+			for (int i = 0; i < used; i++) {
+				readFully(channel, ByteBuffer.wrap(digest), (long) i * entryLength);
+				fingerprints[i] = Fields.bytesToLong(digest);
+			}
+		}
+
+		void writeSummary(long[] fps) throws IOException {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(summaryFile)));
+			try {
+				for (int i = 0; i < fps.length; i++)
+					dos.writeLong(fps[i]);
+			} finally {
+				Closer.close(dos);
+			}
+		}
+
+		void close() {
+			Closer.close(raf);
+		}
+
+		void delete() {
+			close();
+			file.delete();
+			summaryFile.delete();
+		}
+	}
+
+	/**
+	 * @param baseDir The directory to create <code>name.log</code> in.
+	 * @param maxKeys The maximum number of blocks to keep.
+	 * @param shutdownHook If not null, the store will be closed on shutdown.
+	 */
+	public LogStructuredFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
+	        SemiOrderedShutdownHook shutdownHook) throws IOException {
+		this.name = name;
+		this.callback = callback;
+		this.random = random;
+		this.maxKeys = maxKeys;
+		collisionPossible = callback.collisionPossible();
+		headerBlockLength = callback.headerLength();
+		dataBlockLength = callback.dataLength();
+		int length = ENTRY_HEADER_LENGTH + headerBlockLength + dataBlockLength;
+		entryLength = (length + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+
+		putLocks = new Object[PUT_LOCKS];
+		for (int i = 0; i < PUT_LOCKS; i++)
+			putLocks[i] = new Object();
+
+		dir = new File(baseDir, name + ".log");
+		if (!dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Unable to create " + dir);
+		configFile = new File(dir, "config");
+		loadConfigFile();
+
+		index = new SegmentIndex(maxKeys);
+		loadSegments();
+
+		callback.setStore(this);
+		if (shutdownHook != null)
+			shutdownHook.addEarlyJob(new NativeThread(new Runnable() {
+				public void run() {
+					close();
+				}
+			}, "Shutdown log-structured store", NativeThread.HIGH_PRIORITY, true));
+
+		System.err.println("Log-structured store " + name + ": " + index.size() + " keys in " + segments.size()
+		        + " segments of " + entriesPerSegment + " entries");
+	}
+
+	/** Start the background GC. */
+	public void start(Ticker ticker) {
+		synchronized (this) {
+			if (this.ticker != null)
+				return;
+			this.ticker = ticker;
+		}
+		ticker.queueTimedJob(gcJob, "Log store GC for " + name, GC_INTERVAL, false, true);
+	}
+
+	private void loadConfigFile() throws IOException {
+		if (!configFile.exists()) {
+			salt = new byte[0x10];
+			random.nextBytes(salt);
+			entriesPerSegment = (int) Math.max(MIN_SEGMENT_ENTRIES, Math.min(SEGMENT_BYTES / entryLength, maxKeys / 32));
+			RandomAccessFile raf = new RandomAccessFile(configFile, "rw");
+			try {
+				raf.write(salt);
+				raf.writeInt(entriesPerSegment);
+				raf.writeInt(entryLength);
+			} finally {
+				Closer.close(raf);
+			}
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(configFile, "r");
+		try {
+			salt = new byte[0x10];
+			raf.readFully(salt);
+			entriesPerSegment = raf.readInt();
+			int length = raf.readInt();
+			if (length != entryLength || entriesPerSegment < 1)
+				throw new IOException("Store " + name + " has entries of " + length + " bytes, expected " + entryLength);
+		} finally {
+			Closer.close(raf);
+		}
+	}
+
+	private void loadSegments() throws IOException {
+		List<Long> ids = new ArrayList<Long>();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String filename = f.getName();
+				if (!filename.endsWith(".seg"))
+					continue;
+				try {
+					ids.add(Long.parseLong(filename.substring(0, filename.length() - 4)));
+				} catch (NumberFormatException e) {
+					// Not ours
+				}
+			}
+		}
+		Collections.sort(ids);
+
+		for (long id : ids) {
+			Segment seg = new Segment(id);
+			seg.load();
+			segments.put(id, seg);
+			for (int slot = 0; slot < seg.used; slot++) {
+				long fp = seg.fingerprints[slot];
+				if (fp == 0)
+					continue;
+				long prev = index.put(fp, location(seg, slot));
+				if (prev != -1)
+					segmentOf(prev).live--;
+				seg.live++;
+			}
+			nextSegmentID = id + 1;
+		}
+
+		Segment last = segments.isEmpty() ? null : segments.get(segments.lastKey());
+		for (Segment seg : new ArrayList<Segment>(segments.values())) {
+			if (seg.live == 0 && seg != last) {
+				segments.remove(seg.id);
+				seg.delete();
+			}
+		}
+		if (last != null && last.used < entriesPerSegment) {
+			// Carry on appending to it, so the summary would go stale.
+			active = last;
+			active.summaryFile.delete();
+			active.summaryWritten = false;
+		} else {
+			roll();
+		}
+	}
+
+	private long location(Segment seg, int slot) {
+		return seg.id * entriesPerSegment + slot;
+	}
+
+	/** Call with the lock held. */
+	private Segment segmentOf(long location) {
+		return segments.get(location / entriesPerSegment);
+	}
+
+	/** Seal the active segment and start a new one. Call with the lock held. */
+	private void roll() throws IOException {
+		active = new Segment(nextSegmentID++);
+		segments.put(active.id, active);
+	}
+
+	private byte[] digest(byte[] routingKey) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(routingKey);
+			md.update(salt);
+			return md.digest();
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	private static long fingerprint(byte[] digest) {
+		long fp = Fields.bytesToLong(digest);
+		return fp == 0 ? 1 : fp;
+	}
+
+	private Object putLock(long fp) {
+		return putLocks[(int) (fp & (PUT_LOCKS - 1))];
+	}
+
+	/**
+	 * Read the entry for a key. Call with the segments read lock held.
+	 * @param location If not null, set to the location of the entry.
+	 * @return The raw entry, or null if the key isn't in the store.
+	 */
+	private byte[] readEntry(byte[] digest, long[] location) throws IOException {
+		long fp = fingerprint(digest);
+		long loc;
+		Segment seg;
+		synchronized (this) {
+			loc = index.get(fp);
+			if (loc == -1)
+				return null;
+			seg = segmentOf(loc);
+		}
+		if (seg == null)
+			return null;
+		byte[] buf = new byte[entryLength];
+		readFully(seg.channel, ByteBuffer.wrap(buf), (loc % entriesPerSegment) * entryLength);
+		for (int i = 0; i < DIGEST_LENGTH; i++) {
+			if (buf[i] != digest[i]) {
+				fingerprintFalsePos.incrementAndGet();
+				return null;
+			}
+		}
+		if (location != null)
+			location[0] = loc;
+		return buf;
+	}
+
+	/**
+	 * Forget an entry which failed to verify, unless it has been replaced
+	 * since. Call with the segments read lock held.
+	 */
+	private void removeEntry(byte[] digest, long location) throws IOException {
+		Segment seg;
+		synchronized (this) {
+			if (!index.remove(fingerprint(digest), location))
+				return;
+			seg = segmentOf(location);
+			if (seg == null)
+				return;
+			seg.live--;
+		}
+		erase(seg, (int) (location % entriesPerSegment));
+	}
+
+	/**
+	 * Make sure an entry the index doesn't point to stays dead after a
+	 * restart. Clears its fingerprint, and zeroes its digest on disk, which
+	 * is what load() reads when there is no summary. Any summary is out of
+	 * date, so it is deleted and written again later. Call with the segments
+	 * read lock held.
+	 */
+	private void erase(Segment seg, int slot) throws IOException {
+		synchronized (this) {
+			seg.fingerprints[slot] = 0;
+			seg.erased++;
+			seg.summaryWritten = false;
+		}
+		writeFully(seg.channel, ByteBuffer.wrap(new byte[DIGEST_LENGTH]), (long) slot * entryLength);
+		// The tombstone must be on disk before the summary which lists the
+		// entry is gone.
+		seg.channel.force(false);
+		seg.summaryFile.delete();
+	}
+
+	public T fetch(byte[] routingKey, byte[] fullKey, boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta) throws IOException {
+		if (logMINOR)
+			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
+		if (shutdown)
+			return null;
+		byte[] digest = digest(routingKey);
+		segmentsLock.readLock().lock();
+		try {
+			long[] location = new long[1];
+			byte[] buf = readEntry(digest, location);
+			if (buf == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			try {
+				T block = decode(buf, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+				if (block == null) {
+					misses.incrementAndGet();
+					return null;
+				}
+				if (meta != null && (getFlags(buf) & ENTRY_FLAG_OLD_BLOCK) != 0)
+					meta.setOldBlock();
+				hits.incrementAndGet();
+				return block;
+			} catch (KeyVerifyException e) {
+				Logger.minor(this, "key verification exception", e);
+				removeEntry(digest, location[0]);
+				misses.incrementAndGet();
+				return null;
+			}
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+	}
+
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws IOException, KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = block.getFullKey();
+
+		if (logMINOR)
+			Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
+		if (shutdown)
+			return;
+
+		byte[] digest = digest(routingKey);
+		long fp = fingerprint(digest);
+		synchronized (putLock(fp)) {
+			segmentsLock.readLock().lock();
+			try {
+				byte[] old = readEntry(digest, null);
+				if (old != null) {
+					if (!collisionPossible)
+						return;
+					try {
+						T oldBlock = decode(old, routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock) block).getPubKey() : null);
+						if (block.equals(oldBlock))
+							return; // already in store
+						else if (!overwrite)
+							throw new KeyCollisionException();
+					} catch (KeyVerifyException e) {
+						// ignore, overwrite it
+					}
+				}
+				append(encode(digest, routingKey, header, data, isOldBlock), fp, -1);
+				writes.incrementAndGet();
+			} finally {
+				segmentsLock.readLock().unlock();
+			}
+		}
+		if (overCapacity())
+			evict();
+	}
+
+	private byte[] encode(byte[] digest, byte[] routingKey, byte[] header, byte[] data, boolean isOldBlock) {
+		byte[] buf = new byte[entryLength];
+		System.arraycopy(digest, 0, buf, 0, DIGEST_LENGTH);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		System.arraycopy(iv, 0, buf, DIGEST_LENGTH, IV_LENGTH);
+		ByteBuffer.wrap(buf).putLong(FLAG_OFFSET, isOldBlock ? ENTRY_FLAG_OLD_BLOCK : 0);
+		System.arraycopy(header, 0, buf, ENTRY_HEADER_LENGTH, headerBlockLength);
+		System.arraycopy(data, 0, buf, ENTRY_HEADER_LENGTH + headerBlockLength, dataBlockLength);
+		makeCipher(iv, routingKey).blockEncipher(buf, ENTRY_HEADER_LENGTH, headerBlockLength + dataBlockLength);
+		return buf;
+	}
+
+	/** Decrypt the entry in place and construct the block. */
+	private T decode(byte[] buf, byte[] routingKey, byte[] fullKey, boolean canReadClientCache, boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownKey) throws KeyVerifyException {
+		byte[] iv = new byte[IV_LENGTH];
+		System.arraycopy(buf, DIGEST_LENGTH, iv, 0, IV_LENGTH);
+		makeCipher(iv, routingKey).blockDecipher(buf, ENTRY_HEADER_LENGTH, headerBlockLength + dataBlockLength);
+		byte[] header = new byte[headerBlockLength];
+		System.arraycopy(buf, ENTRY_HEADER_LENGTH, header, 0, headerBlockLength);
+		byte[] data = new byte[dataBlockLength];
+		System.arraycopy(buf, ENTRY_HEADER_LENGTH + headerBlockLength, data, 0, dataBlockLength);
+
+		T block = callback.construct(data, header, routingKey, fullKey, canReadClientCache, canReadSlashdotCache, meta, knownKey);
+		if (!Arrays.equals(block.getRoutingKey(), routingKey))
+			return null;
+		return block;
+	}
+
+	private static long getFlags(byte[] buf) {
+		return ByteBuffer.wrap(buf).getLong(FLAG_OFFSET);
+	}
+
+	/** Same construction as the salted hash store's CipherManager. */
+	private PCFBMode makeCipher(byte[] iv, byte[] key) {
+		byte[] iv2 = new byte[0x20]; // 256 bits
+
+		System.arraycopy(salt, 0, iv2, 0, 0x10);
+		System.arraycopy(iv, 0, iv2, 0x10, 0x10);
+
+		try {
+			BlockCipher aes = new Rijndael(256, 256);
+			aes.initialize(key);
+
+			return PCFBMode.create(aes, iv2);
+		} catch (UnsupportedCipherException e) {
+			Logger.error(this, "Rijndael not supported!", e);
+			throw new Error("Rijndael not supported!", e);
+		}
+	}
+
+	/**
+	 * Append an entry to the log and point the index at it. Call with the
+	 * segments read lock and the put lock for the key held.
+	 *
+	 * @param oldLocation If not -1, only update the index if the key is still
+	 * there (used when copying live entries out of a segment).
+	 * @return False if the index was not updated.
+	 */
+	private boolean append(byte[] buf, long fp, long oldLocation) throws IOException {
+		Segment seg;
+		int slot;
+		synchronized (this) {
+			if (active.used == entriesPerSegment)
+				roll();
+			seg = active;
+			slot = seg.used++;
+			seg.pending++;
+		}
+		try {
+			writeFully(seg.channel, ByteBuffer.wrap(buf), (long) slot * entryLength);
+		} catch (IOException e) {
+			synchronized (this) {
+				seg.pending--;
+			}
+			throw e;
+		}
+		boolean updated = true;
+		synchronized (this) {
+			seg.pending--;
+			long loc = location(seg, slot);
+			if (oldLocation == -1) {
+				long prev = index.put(fp, loc);
+				if (prev != -1) {
+					Segment prevSeg = segmentOf(prev);
+					if (prevSeg != null)
+						prevSeg.live--;
+				}
+			} else if (index.replace(fp, oldLocation, loc)) {
+				Segment prevSeg = segmentOf(oldLocation);
+				if (prevSeg != null)
+					prevSeg.live--;
+			} else {
+				updated = false;
+			}
+			if (updated) {
+				seg.fingerprints[slot] = fp;
+				seg.live++;
+				return true;
+			}
+		}
+		// Replaced or removed while we were copying it. Erase the copy, or a
+		// rescan of the segment would resurrect it.
+		erase(seg, slot);
+		return false;
+	}
+
+	// ------------- Space management
+
+	private synchronized boolean overCapacity() {
+		return (long) (segments.size() - 1) * entriesPerSegment > maxKeys;
+	}
+
+	/**
+	 * Choose a segment to drop: any sealed segment with nothing live in it,
+	 * otherwise the oldest if the sealed segments could hold more than
+	 * maxKeys. Call with the lock held.
+	 */
+	private Segment chooseVictim() {
+		if (segments.size() <= 1)
+			return null;
+		for (Segment seg : segments.values()) {
+			if (seg != active && seg.live == 0 && seg.pending == 0)
+				return seg;
+		}
+		if (!overCapacity())
+			return null;
+		Segment oldest = segments.get(segments.firstKey());
+		if (oldest == active || oldest.pending != 0)
+			return null;
+		return oldest;
+	}
+
+	private void evict() {
+		while (true) {
+			Segment victim;
+			synchronized (this) {
+				victim = chooseVictim();
+			}
+			if (victim == null)
+				return;
+			removeSegment(victim);
+		}
+	}
+
+	/** Drop a segment and everything still in it. */
+	private void removeSegment(Segment seg) {
+		int lost = 0;
+		segmentsLock.writeLock().lock();
+		try {
+			synchronized (this) {
+				if (seg.removed)
+					return;
+				seg.removed = true;
+				segments.remove(seg.id);
+				for (int slot = 0; slot < seg.used; slot++) {
+					long fp = seg.fingerprints[slot];
+					if (fp != 0 && index.remove(fp, location(seg, slot)))
+						lost++;
+				}
+			}
+			seg.delete();
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+		evictedKeys.addAndGet(lost);
+		if (logMINOR)
+			Logger.minor(this, "Removed segment " + seg.id + " of " + name + ", dropping " + lost + " keys");
+	}
+
+	/**
+	 * Choose a sealed segment to compact: the one with the lowest proportion
+	 * of live entries, if it is below the threshold. Call with the lock held.
+	 */
+	private Segment chooseCompaction() {
+		if ((long) segments.size() * entriesPerSegment * 100 < maxKeys * GC_START_PERCENT)
+			return null;
+		Segment best = null;
+		for (Segment seg : segments.values()) {
+			if (seg == active || seg.pending != 0 || seg.used == 0)
+				continue;
+			if (seg.live * 100L >= seg.used * (long) GC_THRESHOLD_PERCENT)
+				continue;
+			if (best == null || seg.live * (long) best.used < best.live * (long) seg.used)
+				best = seg;
+		}
+		return best;
+	}
+
+	/**
+	 * Copy live entries out of sealed segments, then delete them.
+	 * @param budget Maximum number of bytes to read and write.
+	 */
+	void compact(long budget) throws IOException {
+		while (budget > 0 && !shutdown) {
+			if (gcSegment == null || gcSegment.removed) {
+				synchronized (this) {
+					gcSegment = chooseCompaction();
+				}
+				gcSlot = 0;
+				if (gcSegment == null)
+					return;
+			}
+			Segment seg = gcSegment;
+			if (gcSlot >= seg.used) {
+				removeSegment(seg);
+				compactedSegments.incrementAndGet();
+				gcSegment = null;
+				continue;
+			}
+			int slot = gcSlot++;
+			long fp;
+			synchronized (this) {
+				fp = seg.fingerprints[slot];
+				if (fp == 0 || index.get(fp) != location(seg, slot))
+					continue;
+			}
+			budget -= 2 * entryLength;
+			copy(seg, slot, fp);
+		}
+	}
+
+	private void copy(Segment seg, int slot, long fp) throws IOException {
+		synchronized (putLock(fp)) {
+			segmentsLock.readLock().lock();
+			try {
+				long loc = location(seg, slot);
+				synchronized (this) {
+					if (seg.removed || index.get(fp) != loc)
+						return;
+				}
+				byte[] buf = new byte[entryLength];
+				readFully(seg.channel, ByteBuffer.wrap(buf), (long) slot * entryLength);
+				if (append(buf, fp, loc))
+					copiedKeys.incrementAndGet();
+			} finally {
+				segmentsLock.readLock().unlock();
+			}
+		}
+	}
+
+	/** Write summaries for sealed segments, or all of them if closing. */
+	private void writeSummaries(boolean all) {
+		segmentsLock.readLock().lock();
+		try {
+			List<Segment> todo = new ArrayList<Segment>();
+			synchronized (this) {
+				for (Segment seg : segments.values())
+					if (!seg.summaryWritten && seg.pending == 0 && (all || seg != active))
+						todo.add(seg);
+			}
+			for (Segment seg : todo) {
+				long[] fps;
+				int erased;
+				synchronized (this) {
+					fps = seg.fingerprints.clone();
+					erased = seg.erased;
+				}
+				try {
+					// The summary must not list entries which aren't on disk.
+					seg.channel.force(false);
+					seg.writeSummary(fps);
+					boolean stale;
+					synchronized (this) {
+						stale = seg.erased != erased;
+						seg.summaryWritten = !stale;
+					}
+					// An entry was erased meanwhile. Written again later.
+					if (stale)
+						seg.summaryFile.delete();
+				} catch (IOException e) {
+					Logger.error(this, "Unable to write " + seg.summaryFile + ": " + e, e);
+					seg.summaryFile.delete();
+				}
+			}
+		} finally {
+			segmentsLock.readLock().unlock();
+		}
+	}
+
+	private final Runnable gcJob = new Runnable() {
+		public void run() {
+			if (shutdown)
+				return;
+			try {
+				evict();
+				writeSummaries(false);
+				compact(gcBytesPerSecond * GC_INTERVAL / 1000);
+			} catch (IOException e) {
+				Logger.error(this, "Log store GC failed for " + name + ": " + e, e);
+			} finally {
+				if (!shutdown)
+					ticker.queueTimedJob(this, "Log store GC for " + name, GC_INTERVAL, false, true);
+			}
+		}
+	};
+
+	/** Limit the I/O used for compaction, in bytes read and written per second. */
+	public void setGCBytesPerSecond(long bytes) {
+		gcBytesPerSecond = bytes;
+	}
+
+	/**
+	 * Resizing only changes the limit. If shrinking and shrinkNow is set, the
+	 * oldest segments are dropped immediately, otherwise by the GC job.
+	 */
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow) throws IOException {
+		Logger.normal(this, "[" + name + "] Resize newStoreSize=" + maxStoreKeys + ", shinkNow=" + shrinkNow);
+		synchronized (this) {
+			maxKeys = maxStoreKeys;
+		}
+		if (shrinkNow)
+			evict();
+	}
+
+	public synchronized long getMaxKeys() {
+		return maxKeys;
+	}
+
+	public boolean probablyInStore(byte[] routingKey) {
+		long fp = fingerprint(digest(routingKey));
+		synchronized (this) {
+			return index.get(fp) != -1;
+		}
+	}
+
+	public void close() {
+		shutdown = true;
+		segmentsLock.writeLock().lock();
+		try {
+			writeSummaries(true);
+			synchronized (this) {
+				for (Segment seg : segments.values())
+					seg.close();
+			}
+		} finally {
+			segmentsLock.writeLock().unlock();
+		}
+		MasterKeys.clear(salt);
+		System.out.println("Successfully closed store " + name);
+	}
+
+	/** Delete the store. Call after close(). */
+	public void destruct() {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if (read == -1)
+				throw new EOFException();
+			position += read;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining())
+			position += channel.write(buf, position);
+	}
+
+	// ------------- Statistics
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong fingerprintFalsePos = new AtomicLong();
+	private final AtomicLong evictedKeys = new AtomicLong();
+	private final AtomicLong copiedKeys = new AtomicLong();
+	private final AtomicLong compactedSegments = new AtomicLong();
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long writes() {
+		return writes.get();
+	}
+
+	public synchronized long keyCount() {
+		return index.size();
+	}
+
+	/** There is no bloom filter; this counts index fingerprint collisions. */
+	public long getBloomFalsePositive() {
+		return fingerprintFalsePos.get();
+	}
+
+	/** There are no slots to lock: entries are appended to the log. */
+	public long getLocksAcquired() {
+		return -1;
+	}
+
+	public long getLocksContended() {
+		return -1;
+	}
+
+	public long getLockWaitTime() {
+		return -1;
+	}
+
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/** Keys dropped with the segments they were in */
+	public long getEvictedKeys() {
+		return evictedKeys.get();
+	}
+
+	/** Live keys copied by the GC */
+	public long getCopiedKeys() {
+		return copiedKeys.get();
+	}
+
+	public long getCompactedSegments() {
+		return compactedSegments.get();
+	}
+
+	/** Memory used by the index and the per-segment fingerprints, in bytes */
+	public synchronized long getIndexMemory() {
+		return index.memoryUsed() + (long) segments.size() * entriesPerSegment * 8;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ":" + name;
+	}
+}
@@ -0,0 +1,151 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.logstructured;
+
+/**
+ * Open addressing hash table from a 64-bit key fingerprint to the location of
+ * the key in the log, 16 bytes per slot and no objects per key.
+ *
+ * Linear probing, with backward shift deletion so there are no tombstones.
+ * Fingerprint 0 marks an empty slot, so callers must not use it. Grows by
+ * doubling at 75% load; never shrinks.
+ *
+ * Not thread-safe: LogStructuredFreenetStore synchronizes on itself.
+ */
+class SegmentIndex {
+
+	private static final int MIN_CAPACITY = 64;
+
+	private long[] keys;
+	private long[] values;
+	private int mask;
+	private int size;
+
+	SegmentIndex(long expectedKeys) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedKeys * 4 / 3 && capacity < (1 << 30))
+			capacity <<= 1;
+		allocate(capacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	/** @return The location, or -1 if the key is not in the index. */
+	long get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key)
+				return values[i];
+			if (k == 0)
+				return -1;
+		}
+	}
+
+	/** @return The previous location, or -1 if the key was not in the index. */
+	long put(long key, long value) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				long old = values[i];
+				values[i] = value;
+				return old;
+			}
+			if (k == 0) {
+				keys[i] = key;
+				values[i] = value;
+				if (++size > keys.length / 4 * 3)
+					grow();
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Remove the key if, and only if, it maps to the given location.
+	 * @return True if it was removed.
+	 */
+	boolean remove(long key, long value) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				if (values[i] != value)
+					return false;
+				delete(i);
+				return true;
+			}
+			if (k == 0)
+				return false;
+		}
+	}
+
+	/**
+	 * Move the key to a new location if, and only if, it is still at the old
+	 * one.
+	 * @return True if it was moved.
+	 */
+	boolean replace(long key, long oldValue, long newValue) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			long k = keys[i];
+			if (k == key) {
+				if (values[i] != oldValue)
+					return false;
+				values[i] = newValue;
+				return true;
+			}
+			if (k == 0)
+				return false;
+		}
+	}
+
+	private void delete(int i) {
+		size--;
+		// Shift back any following entries which probed past this slot.
+		int hole = i;
+		for (int j = (i + 1) & mask;; j = (j + 1) & mask) {
+			long k = keys[j];
+			if (k == 0)
+				break;
+			int home = slot(k);
+			// Can k move into the hole? Only if its home is not in (hole, j].
+			boolean movable = hole <= j ? (home <= hole || home > j) : (home <= hole && home > j);
+			if (movable) {
+				keys[hole] = k;
+				values[hole] = values[j];
+				hole = j;
+			}
+		}
+		keys[hole] = 0;
+		values[hole] = 0;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		if (oldKeys.length >= (1 << 30))
+			throw new IllegalStateException("Index full");
+		allocate(oldKeys.length * 2);
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != 0)
+				put(oldKeys[i], oldValues[i]);
+	}
+
+	int size() {
+		return size;
+	}
+
+	/** Memory used by the table, in bytes */
+	long memoryUsed() {
+		return keys.length * 16L;
+	}
+}
@@ -3,86 +3,218 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
 
 /**
  * Lock Manager
- * 
- * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Handle locking/unlocking of offsets. Offsets are mapped onto an array of
+ * striped locks, sized to the store, so locking doesn't allocate map entries
+ * or conditions, and threads only contend when they touch the same stripe.
+ * When the store grows, resize() replaces the array with a bigger one.
+ *
+ * Deadlock safety: every caller locks all the stripes it needs in one call,
+ * and they are always acquired in ascending stripe order, so two threads can
+ * never wait for each other. No thread should call lock*() while it already
+ * holds locks from another call.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Never fewer stripes than this, so the Cleaner's ranges don't block everything */
+	static final int MIN_STRIPES = 1024;
+	static final int MAX_STRIPES = 4096;
+	/** Aim for one stripe for this many entries */
+	static final int ENTRIES_PER_STRIPE = 256;
+
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	/** Replaced by resize(), only while every stripe in it is held. */
+	private volatile ReentrantLock[] stripes;
+
+	/** Stripes locked */
+	private final AtomicLong acquired = new AtomicLong();
+	/** Stripes which were already locked when we tried */
+	private final AtomicLong contended = new AtomicLong();
+	/** Time spent waiting for contended stripes, in milliseconds */
+	private final AtomicLong waitTime = new AtomicLong();
 
-	LockManager() {
+	LockManager(long storeSize) {
 		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
+		stripes = newStripes(stripesFor(storeSize));
+	}
+
+	private static int stripesFor(long storeSize) {
+		int count = MIN_STRIPES;
+		while (count < MAX_STRIPES && (long) count * ENTRIES_PER_STRIPE < storeSize)
+			count <<= 1;
+		return count;
+	}
+
+	private static ReentrantLock[] newStripes(int count) {
+		ReentrantLock[] locks = new ReentrantLock[count];
+		for (int i = 0; i < count; i++)
+			locks[i] = new ReentrantLock();
+		return locks;
+	}
+
+	/**
+	 * Add stripes if the store has grown, or is being resized to or from a
+	 * bigger size. Never removes any. Waits until nobody holds a stripe, so it
+	 * must not be called while holding locks from lock*().
+	 *
+	 * @return <code>false</code> if we are shutting down or were interrupted.
+	 */
+	boolean resize(long storeSize) {
+		while (true) {
+			ReentrantLock[] old = stripes;
+			int count = stripesFor(storeSize);
+			if (count <= old.length)
+				return true;
+			int[] all = new int[old.length];
+			for (int i = 0; i < all.length; i++)
+				all[i] = i;
+			// Anyone waiting for an old stripe sees the new array when they get
+			// it, and starts again.
+			int[] locked = lockStripes(old, all);
+			if (locked == null)
+				return false;
+			if (locked == RESIZED)
+				continue;
+			stripes = newStripes(count);
+			unlock(old, all, all.length);
+			Logger.normal(this, "Resized from " + old.length + " to " + count + " stripes");
+			return true;
+		}
+	}
+
+	/**
+	 * Lock the stripes for the given offsets.
+	 *
+	 * @return The stripes locked, to pass to unlock(), or <code>null</code> if
+	 *         we are shutting down or were interrupted. Nothing is left locked
+	 *         on failure.
+	 */
+	int[] lockEntries(long[] offsets) {
+		while (true) {
+			ReentrantLock[] current = stripes;
+			int mask = current.length - 1;
+			int[] locks = new int[offsets.length];
+			for (int i = 0; i < offsets.length; i++)
+				locks[i] = (int) (offsets[i] & mask);
+			locks = lockStripes(current, dedup(locks));
+			if (locks != RESIZED)
+				return locks;
+		}
+	}
+
+	/**
+	 * Lock the stripes for <code>length</code> consecutive offsets starting at
+	 * <code>offset</code>. Used by the Cleaner.
+	 *
+	 * @return The stripes locked, to pass to unlock(), or <code>null</code>.
+	 */
+	int[] lockRange(long offset, int length) {
+		while (true) {
+			ReentrantLock[] current = stripes;
+			int mask = current.length - 1;
+			int[] locks = new int[Math.min(length, current.length)];
+			for (int i = 0; i < locks.length; i++)
+				locks[i] = (int) ((offset + i) & mask);
+			locks = lockStripes(current, dedup(locks));
+			if (locks != RESIZED)
+				return locks;
+		}
+	}
+
+	/** Returned by lockStripes() if the stripes were replaced while we waited. */
+	private static final int[] RESIZED = new int[0];
+
+	/** Sort and de-duplicate. */
+	private static int[] dedup(int[] locks) {
+		Arrays.sort(locks);
+		int count = 0;
+		for (int i = 0; i < locks.length; i++)
+			if (i == 0 || locks[i] != locks[count - 1])
+				locks[count++] = locks[i];
+		if (count != locks.length) {
+			int[] copy = new int[count];
+			System.arraycopy(locks, 0, copy, 0, count);
+			locks = copy;
+		}
+		return locks;
 	}
 
 	/**
-	 * Lock the entry
-	 * 
-	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * Lock the given stripes of the array, in order.
+	 *
+	 * @return The stripes, <code>null</code> if we are shutting down or were
+	 *         interrupted, or RESIZED if the array was replaced. Nothing is left
+	 *         locked unless the stripes are returned.
 	 */
-	Condition lockEntry(long offset) {
+	private int[] lockStripes(ReentrantLock[] current, int[] locks) {
+		for (int i = 0; i < locks.length; i++) {
+			if (!lockStripe(current, locks[i])) {
+				// failed, remove the locks
+				unlock(current, locks, i);
+				return null;
+			}
+		}
+		// resize() can't replace the array while we hold any of its stripes.
+		if (current != stripes) {
+			unlock(current, locks, locks.length);
+			return RESIZED;
+		}
+		return locks;
+	}
+
+	private boolean lockStripe(ReentrantLock[] current, int stripe) {
+		if (shutdown)
+			return false;
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking stripe " + stripe, new Exception());
 
-		Condition condition;
-		try {
-			entryLock.lock();
+		ReentrantLock lock = current[stripe];
+		if (!lock.tryLock()) {
+			contended.incrementAndGet();
+			long start = System.currentTimeMillis();
 			try {
-				do {
+				while (!lock.tryLock(10, TimeUnit.SECONDS)) { // 10s for checking shutdown
 					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
-			} finally {
-				entryLock.unlock();
+						return false;
+				}
+			} catch (InterruptedException e) {
+				Logger.error(this, "lock interrupted", e);
+				return false;
 			}
-		} catch (InterruptedException e) {
-			Logger.error(this, "lock interrupted", e);
-			return null;
+			waitTime.addAndGet(System.currentTimeMillis() - start);
 		}
-
-		if (logDEBUG)
-			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		if (shutdown) {
+			lock.unlock();
+			return false;
+		}
+		acquired.incrementAndGet();
+		return true;
 	}
 
 	/**
-	 * Unlock the entry
+	 * Unlock the stripes returned by lockEntries() or lockRange()
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlock(int[] locks) {
 		if (logDEBUG)
-			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
-
-		entryLock.lock();
-		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
-		} finally {
-			entryLock.unlock();
-		}
+			Logger.debug(this, "unlocking " + locks.length + " stripes", new Exception("debug"));
+
+		unlock(stripes, locks, locks.length);
+	}
+
+	private static void unlock(ReentrantLock[] current, int[] locks, int count) {
+		for (int i = count - 1; i >= 0; i--)
+			current[locks[i]].unlock();
 	}
 
 	/**
@@ -90,14 +222,33 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		// Anyone who gets a stripe after this will see shutdown and let it go.
+		ReentrantLock[] current;
+		do {
+			current = stripes;
+			for (ReentrantLock lock : current) {
+				lock.lock();
+				lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
-		}
+		} while (current != stripes);
+	}
+
+	public int getStripes() {
+		return stripes.length;
+	}
+
+	/** Number of stripe locks acquired so far */
+	public long getAcquired() {
+		return acquired.get();
+	}
+
+	/** Number of times a stripe was already locked by another thread */
+	public long getContended() {
+		return contended.get();
+	}
+
+	/** Total time spent waiting for contended stripes, in milliseconds */
+	public long getWaitTime() {
+		return waitTime.get();
 	}
 }
@@ -13,11 +13,7 @@ import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -44,14 +40,17 @@ import freenet.node.useralerts.UserAlert;
 import freenet.node.useralerts.UserAlertManager;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
+import freenet.store.ShardedFreenetStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreVolume;
 import freenet.store.BlockMetadata;
 import freenet.support.BloomFilter;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
 import freenet.support.Logger;
+import freenet.support.TimeUtil;
 import freenet.support.io.Closer;
 import freenet.support.io.FileUtil;
 import freenet.support.io.NativeThread;
@@ -74,6 +73,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private static final byte FLAG_DIRTY = 0x1;
 	private static final byte FLAG_REBUILD_BLOOM = 0x2;
 
+	/** Default disk bandwidth for resizing and rebuilding the bloom filter in the background */
+	public static final long DEFAULT_CLEANER_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
 	private boolean checkBloom = true;
 	private int bloomFilterSize;
 	private int bloomFilterK;
@@ -95,6 +97,9 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private long storeSize;
 	private int generation;
 	private int flags;
+	/** Entries done by the resize or bloom filter rebuild in progress, so it can carry on after a restart */
+	private volatile long cleanerProgress;
+	private volatile long cleanerBytesPerSecond = DEFAULT_CLEANER_BYTES_PER_SECOND;
 
 	private boolean preallocate = true;
 
@@ -112,6 +117,28 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		altStore = store;
 	}
 
+	/**
+	 * Let a cache overflow into a store, if both are salt-hash stores, or both are
+	 * sharded over the same volumes. Each shard of a sharded cache overflows into
+	 * the store's shard on the same volume, which owns the same keys.
+	 */
+	public static <T extends StorableBlock> void setAltStore(FreenetStore<T> cache, FreenetStore<T> store) {
+		if(cache instanceof SaltedHashFreenetStore && store instanceof SaltedHashFreenetStore) {
+			((SaltedHashFreenetStore<T>) cache).setAltStore((SaltedHashFreenetStore<T>) store);
+		} else if(cache instanceof ShardedFreenetStore && store instanceof ShardedFreenetStore) {
+			ShardedFreenetStore<T> shardedCache = (ShardedFreenetStore<T>) cache;
+			ShardedFreenetStore<T> shardedStore = (ShardedFreenetStore<T>) store;
+			List<StoreVolume> storeVolumes = shardedStore.getVolumes();
+			for(int i = 0; i < shardedCache.getVolumes().size(); i++) {
+				long id = shardedCache.getVolumes().get(i).getId();
+				for(int j = 0; j < storeVolumes.size(); j++) {
+					if(storeVolumes.get(j).getId() == id)
+						setAltStore(shardedCache.getShards().get(i), shardedStore.getShards().get(j));
+				}
+			}
+		}
+	}
+
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
@@ -141,7 +168,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.bloomFilterSize = bloomFilterSize;
 		this.preallocate = preallocate;
 
-		lockManager = new LockManager();
+		lockManager = new LockManager(maxKeys);
 
 		// Create a directory it not exist
 		this.baseDir.mkdirs();
@@ -152,13 +179,23 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			// If not already resizing, start resizing to the new store size.
 			prevStoreSize = storeSize;
 			storeSize = maxKeys;
+			cleanerProgress = 0;
 			writeConfigFile();
 		}
+		// Entries are in both the old and the new slots until the resize is done.
+		lockManager.resize(Math.max(storeSize, prevStoreSize));
 
 		newStore |= openStoreFiles(baseDir, name);
 
-		bloomFile = new File(this.baseDir, name + ".bloom");
-		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		bloomFile = new File(this.baseDir, name + ".bbloom");
+		bloomFilter = BloomFilter.createBlockedFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		// The old format filter can't be converted, it is rebuilt from the store
+		// below like any other missing filter.
+		File oldBloomFile = new File(this.baseDir, name + ".bloom");
+		if (oldBloomFile.exists()) {
+			System.err.println("Replacing old bloom filter for " + name + ", will rebuild.");
+			oldBloomFile.delete();
+		}
 
 		System.err.println("Bloomfilter (" + bloomFilter + ") for " + name + " is loaded.");
 
@@ -178,7 +215,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (resizeOnStart && prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
 			System.out.println("Resizing datastore (" + name + ")");
 			try {
-				cleanerThread.resizeStore(prevStoreSize, false);
+				cleanerThread.resizeStore(prevStoreSize, false, -1);
 			} finally {
 				cleanerGlobalLock.unlock();
 			}
@@ -193,7 +230,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			if (cleanerGlobalLock.tryLock()) {
 				System.out.println("Bloom filter for datastore (" + name + ") missing/mismatch, rebuilding.");
 				try {
-					cleanerThread.rebuildBloom(false);
+					cleanerThread.rebuildBloom(false, -1);
 				} finally {
 					cleanerGlobalLock.unlock();
 				}
@@ -230,9 +267,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if((smallerSize * (headerBlockLength + dataBlockLength + hdPadding) > curStoreFileSize) ||
 				(smallerSize * Entry.METADATA_LENGTH > curMetaFileSize)) {
 			// Pad it up to the minimum size before proceeding.
-			if(longStart)
+			if(longStart) {
 				setStoreFileSize(storeSize, true);
-			else
+				curStoreFileSize = hdRAF.length();
+				curMetaFileSize = metaRAF.length();
+			} else
 				return true;
 		}
 
@@ -273,7 +312,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new IOException("interrupted: " +e);
 		}
 		try {
-			Map<Long, Condition> lockMap = lockPlainKey(routingKey, true);
+			int[] lockMap = lockPlainKey(routingKey, true);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -303,7 +342,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockPlainKey(routingKey, true, lockMap);
+				lockManager.unlock(lockMap);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -380,7 +419,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			throw new IOException("interrupted: " +e);
 		}
 		try {
-			Map<Long, Condition> lockMap = lockPlainKey(routingKey, false);
+			int[] lockMap = lockPlainKey(routingKey, false);
 			if (lockMap == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -499,7 +538,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					keyCount.incrementAndGet();
 				return true;
 			} finally {
-				unlockPlainKey(routingKey, false, lockMap);
+				lockManager.unlock(lockMap);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -929,11 +968,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				random.nextBytes(seed);
 				Random mt = new MersenneTwister(seed);
 				int x = 0;
+				// Growing in the background shares the cleaner's disk budget.
+				boolean throttled = !starting && Thread.currentThread() == cleanerThread;
+				long throttleStart = System.currentTimeMillis();
 				while (currentHdLen < newHdLen) {
 					mt.nextBytes(b);
 					bf.rewind();
 					hdFC.write(bf, currentHdLen);
 					currentHdLen += 4096;
+					if (throttled && currentHdLen % (1024 * 1024) == 0) {
+						try {
+							throttle(1024 * 1024, throttleStart);
+						} catch (InterruptedException e) {
+							// Carry on, the store must reach its new size
+						}
+						throttleStart = System.currentTimeMillis();
+					}
 					if(currentHdLen % (1024*1024*1024L) == 0) {
 						random.nextBytes(seed);
 						mt = new MersenneTwister(seed);
@@ -969,11 +1019,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |                       |
-	 *  +----+-------+-----------------------+
+	 *  |0030|   K   |       |   Progress    |
+	 *  +----+-------+-------+---------------+
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *  Progress = entries done by the resize or bloom filter rebuild in progress
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1051,9 +1102,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							flags |= FLAG_REBUILD_BLOOM;
 							checkBloom = false;
 						}
+						raf.readInt();
+						cleanerProgress = raf.readLong();
 					} catch (IOException e) {
 						flags |= FLAG_REBUILD_BLOOM;
 					}
+					// After a crash the saved progress may be ahead of the metadata and the bloom filter fork.
+					if ((flags & FLAG_DIRTY) != 0)
+						cleanerProgress = 0;
 
 					return false;
 				} finally {
@@ -1095,7 +1151,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(flags);
 			raf.writeInt(bloomFilterK);
 			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeLong(cleanerProgress);
 
 			raf.getFD().sync();
 			raf.close();
@@ -1167,40 +1223,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				cleanerLock.lock();
 				try {
-					long _prevStoreSize;
-					configLock.readLock().lock();
-					try {
-						_prevStoreSize = prevStoreSize;
-					} finally {
-						configLock.readLock().unlock();
-					}
-
-					if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
-						try {
-							isResizing = true;
-							resizeStore(_prevStoreSize, true);
-						} finally {
-							isResizing = false;
-							cleanerGlobalLock.unlock();
-						}
-					}
-
-					boolean _rebuildBloom;
-					configLock.readLock().lock();
-					try {
-						_rebuildBloom = ((flags & FLAG_REBUILD_BLOOM) != 0);
-					} finally {
-						configLock.readLock().unlock();
-					}
-					if (_rebuildBloom && prevStoreSize == 0 && cleanerGlobalLock.tryLock()) {
-						try {
-							isRebuilding = true;
-							rebuildBloom(false);
-						} finally {
-							isRebuilding = false;
-							cleanerGlobalLock.unlock();
-						}
-					}
+					clean(true, -1);
 
 					try {
 						if (loop % 6 == 0)
@@ -1221,12 +1244,59 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 		}
 
+		/**
+		 * Carry on with the resize or the bloom filter rebuild, if one is needed.
+		 * Call with cleanerLock held.
+		 *
+		 * @param throttle
+		 *            Keep to the cleaner's disk budget
+		 * @param maxBatches
+		 *            Stop after this many batches of the resize or rebuild, or
+		 *            -1 to run to the end
+		 */
+		void clean(boolean throttle, int maxBatches) {
+			long _prevStoreSize;
+			configLock.readLock().lock();
+			try {
+				_prevStoreSize = prevStoreSize;
+			} finally {
+				configLock.readLock().unlock();
+			}
+
+			if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
+				try {
+					isResizing = true;
+					resizeStore(_prevStoreSize, throttle, maxBatches);
+				} finally {
+					isResizing = false;
+					cleanerGlobalLock.unlock();
+				}
+			}
+
+			boolean _rebuildBloom;
+			configLock.readLock().lock();
+			try {
+				_rebuildBloom = ((flags & FLAG_REBUILD_BLOOM) != 0);
+			} finally {
+				configLock.readLock().unlock();
+			}
+			if (_rebuildBloom && prevStoreSize == 0 && cleanerGlobalLock.tryLock()) {
+				try {
+					isRebuilding = true;
+					rebuildBloom(throttle, maxBatches);
+				} finally {
+					isRebuilding = false;
+					cleanerGlobalLock.unlock();
+				}
+			}
+		}
+
 		private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
 
 		/**
 		 * Move old entries to new location and resize store
 		 */
-		private void resizeStore(final long _prevStoreSize, final boolean sleep) {
+		private void resizeStore(final long _prevStoreSize, final boolean sleep, int maxBatches) {
 			Logger.normal(this, "Starting datastore resize");
 			System.out.println("Resizing datastore "+name);
 
@@ -1239,14 +1309,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						setStoreFileSize(storeSize, false);
 
 					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						bloomFilter.fork(optimialK);
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
-					}
+					forkBloomFilter(optimialK);
 
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
 				}
@@ -1280,6 +1343,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					}
 					try {
 						entry.setHD(readHD(entry.curOffset));
+						batchBytes += headerBlockLength + dataBlockLength + hdPadding;
 						oldEntryList.add(entry);
 						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
 							oldEntryList.remove(0);
@@ -1310,7 +1374,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 
 				public void abort() {
-					bloomFilter.discard();
+					discardBloomFilterFork();
 				}
 
 				public void finish() {
@@ -1318,7 +1382,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					try {
 						if (_prevStoreSize != prevStoreSize)
 							return;
-						bloomFilter.merge();
+						mergeBloomFilterFork();
 						prevStoreSize = 0;
 
 						flags &= ~FLAG_REBUILD_BLOOM;
@@ -1332,13 +1396,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+			batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep, maxBatches);
 		}
 
 		/**
 		 * Rebuild bloom filter
 		 */
-		private void rebuildBloom(boolean sleep) {
+		private void rebuildBloom(boolean sleep, int maxBatches) {
 			if (bloomFilter == null)
 				return;
 			Logger.normal(this, "Start rebuilding bloom filter (" + name + ")");
@@ -1348,15 +1412,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				public void init() {
 					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
-
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						bloomFilter.fork(bloomFilterK);
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
-					}
+					forkBloomFilter(bloomFilterK);
 
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
 				}
@@ -1383,13 +1439,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 
 				public void abort() {
-					bloomFilter.discard();
+					discardBloomFilterFork();
 				}
 
 				public void finish() {
-					bloomFilter.merge();
 					configLock.writeLock().lock();
 					try {
+						mergeBloomFilterFork();
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
 						bloomFilterK = optimialK;
@@ -1401,15 +1457,70 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 			};
 
-			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+			batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep, maxBatches);
 		}
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
+		/** When this run of the current resize or rebuild started, and how many entries were left then */
+		private volatile long runStartTime;
+		private volatile long runStartEntriesLeft;
+		/** Disk I/O done for the current batch, for throttling */
+		private long batchBytes;
 
-		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-			entriesLeft = entriesTotal = storeSize;
+		/**
+		 * Fork the bloom filter for a resize or rebuild. If the last one was
+		 * interrupted by a restart and its fork survived, carry on from where it
+		 * stopped; otherwise start again with a new generation.
+		 */
+		private void forkBloomFilter(int k) {
+			File forkFile = getBloomForkFile();
+			configLock.writeLock().lock();
+			try {
+				boolean resume = cleanerProgress != 0;
+				if (!resume)
+					forkFile.delete();
+				try {
+					resume = bloomFilter.fork(k, forkFile) && resume;
+				} catch (IOException e) {
+					Logger.error(this, "Unable to keep the bloom filter fork on disk for " + name, e);
+					bloomFilter.fork(k);
+					resume = false;
+				}
+				if (resume) {
+					System.err.println("Continuing " + name + " cleaner from " + cleanerProgress);
+				} else {
+					generation++;
+					keyCount.set(0);
+					cleanerProgress = 0;
+				}
+			} finally {
+				configLock.writeLock().unlock();
+			}
+			writeConfigFile();
+		}
+
+		private void mergeBloomFilterFork() {
+			bloomFilter.merge();
+			getBloomForkFile().delete();
+			cleanerProgress = 0;
+		}
+
+		/** Called when a resize or rebuild stops. Keep the fork if we are shutting down, so we can carry on after the restart. */
+		private void discardBloomFilterFork() {
+			if (shutdown)
+				return;
+			bloomFilter.discard();
+			getBloomForkFile().delete();
+			cleanerProgress = 0;
+		}
 
+		/**
+		 * @param maxBatches
+		 *            If this many batches are done before the end, stop, leaving
+		 *            everything as a restart would find it. -1 for no limit.
+		 */
+		private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep, int maxBatches) {
 			long startOffset, step;
 			if (!reverse) {
 				startOffset = 0;
@@ -1421,27 +1532,45 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			int i = 0;
 			processor.init();
+			// Non-zero if we are carrying on after a restart
+			long done = cleanerProgress;
+			entriesTotal = storeSize;
+			entriesLeft = Math.max(storeSize - done, 0);
+			runStartTime = System.currentTimeMillis();
+			runStartEntriesLeft = entriesLeft;
 			try {
-				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
+				for (long curOffset = reverse ? startOffset - done : startOffset + done; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
 					if (shutdown) {
 						processor.abort();
 						return;
 					}
+					if (i == maxBatches)
+						return;
 
-					if (i++ % 64 == 0)
+					if (i++ % 64 == 0) {
+						long eta = getMaintenanceETA();
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-						        + entriesTotal);
+						        + entriesTotal + (eta < 0 ? "" : ", " + TimeUtil.formatTime(eta) + " left"));
+					}
 
+					long batchStart = System.currentTimeMillis();
+					batchBytes = 0;
 					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
 					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
 					if (!processor.batch(entriesLeft)) {
 						processor.abort();
 						return;
 					}
+					// Only count the batch if the store wasn't closed under it.
+					if (shutdown) {
+						processor.abort();
+						return;
+					}
+					cleanerProgress = reverse ? startOffset - curOffset + RESIZE_MEMORY_ENTRIES : curOffset + RESIZE_MEMORY_ENTRIES;
 
 					try {
 						if (sleep)
-							Thread.sleep(100);
+							throttle(batchBytes, batchStart);
 					} catch (InterruptedException e) {
 						processor.abort();
 						return;
@@ -1449,6 +1578,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				processor.finish();
 			} catch (Exception e) {
+				Logger.error(this, "Error in " + name + " cleaner", e);
 				processor.abort();
 			}
 		}
@@ -1467,20 +1597,18 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 *         otherwise (e.g. can't acquire locks, node shutting down)
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
-			Condition[] locked = new Condition[length];
+			// acquire all locks in the region, will unlock in the finally block
+			int[] locked = lockManager.lockRange(offset, length);
+			if (locked == null)
+				return false;
 			try {
-				// acquire all locks in the region, will unlock in the finally block
-				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
-						return false;
-				}
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
 				long entriesToRead = length;
 				long bufLen = Entry.METADATA_LENGTH * entriesToRead;
 
 				ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
+				batchBytes += bufLen;
 				boolean dirty = false;
 				try {
 					while (buf.hasRemaining()) {
@@ -1533,6 +1661,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					// write back.
 					if (dirty) {
 						buf.flip();
+						batchBytes += buf.limit();
 
 						try {
 							while (buf.hasRemaining()) {
@@ -1546,10 +1675,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 				return true;
 			} finally {
-				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				lockManager.unlock(locked);
 			}
 		}
 
@@ -1560,7 +1686,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			int[] lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
 			if (lockMap == null)
 				return false;
 			try {
@@ -1585,6 +1711,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					try {
 						if (isFree(offset)) {
 							writeEntry(entry, offset);
+							batchBytes += Entry.METADATA_LENGTH + headerBlockLength + dataBlockLength + hdPadding;
 							bloomFilter.addKeyForked(entry.getDigestedRoutingKey());
 							keyCount.incrementAndGet();
 							return true;
@@ -1595,7 +1722,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				lockManager.unlock(lockMap);
 			}
 		}
 	}
@@ -1626,27 +1753,34 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		public String getShortText() {
 			if (cleaner.isResizing)
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "", getETAString() });
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.shortRebuildProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "", getETAString() });
 		}
 
 		public String getText() {
 			if (cleaner.isResizing)
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longResizeProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "", getETAString() });
 			else
 				return NodeL10n.getBase().getString("SaltedHashFreenetStore.longRebuildProgress", //
-				        new String[] { "name", "processed", "total" },//
+				        new String[] { "name", "processed", "total", "eta" },//
 				        new String[] { name, (cleaner.entriesTotal - cleaner.entriesLeft) + "",
-				                cleaner.entriesTotal + "" });
+				                cleaner.entriesTotal + "", getETAString() });
+		}
+
+		private String getETAString() {
+			long eta = getMaintenanceETA();
+			if (eta < 0)
+				return NodeL10n.getBase().getString("SaltedHashFreenetStore.etaUnknown");
+			return TimeUtil.formatTime(eta);
 		}
 
 		public String getTitle() {
@@ -1704,10 +1838,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 			prevStoreSize = storeSize;
 			storeSize = newStoreSize;
+			cleanerProgress = 0;
 			writeConfigFile();
 		} finally {
 			configLock.writeLock().unlock();
 		}
+		lockManager.resize(newStoreSize);
 
 		if (cleanerLock.tryLock()) {
 			cleanerCondition.signal();
@@ -1715,6 +1851,73 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	/**
+	 * Set the disk bandwidth the background resize and bloom filter rebuild may
+	 * use. Requests are served in between, from both the old and the new slots.
+	 */
+	public void setCleanerBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond <= 0)
+			throw new IllegalArgumentException();
+		cleanerBytesPerSecond = bytesPerSecond;
+	}
+
+	/** Sleep so that bytes of I/O, started at the given time, stay within the cleaner's budget. */
+	private void throttle(long bytes, long since) throws InterruptedException {
+		long wait = bytes * 1000 / cleanerBytesPerSecond - (System.currentTimeMillis() - since);
+		if (wait > 0)
+			Thread.sleep(wait);
+	}
+
+	/** Run the cleaner now rather than waiting for its thread. For tests. */
+	void runCleaner(boolean throttle) {
+		runCleaner(throttle, -1);
+	}
+
+	/**
+	 * Run the cleaner now, for at most the given number of batches of entries.
+	 * If it stops early, the resize or rebuild is left where it is, as if the
+	 * node had been shut down, so it carries on from there after a restart.
+	 * For tests.
+	 * @param maxBatches The number of batches, or -1 to run to the end.
+	 */
+	void runCleaner(boolean throttle, int maxBatches) {
+		cleanerLock.lock();
+		try {
+			cleanerThread.clean(throttle, maxBatches);
+		} finally {
+			cleanerLock.unlock();
+		}
+		if (!shutdown)
+			writeConfigFile();
+	}
+
+	long getCleanerProgress() {
+		return cleanerProgress;
+	}
+
+	private File getBloomForkFile() {
+		return new File(baseDir, name + ".bbloom.fork");
+	}
+
+	/** @return Fraction of the resize or bloom filter rebuild done, or -1 if neither is running. */
+	public double getMaintenanceProgress() {
+		if (!cleanerThread.isResizing && !cleanerThread.isRebuilding)
+			return -1;
+		long total = cleanerThread.entriesTotal;
+		return total == 0 ? 0 : (double) (total - cleanerThread.entriesLeft) / total;
+	}
+
+	/** @return Estimated time until the resize or bloom filter rebuild finishes, in milliseconds, or -1 if unknown. */
+	public long getMaintenanceETA() {
+		if (!cleanerThread.isResizing && !cleanerThread.isRebuilding)
+			return -1;
+		long left = cleanerThread.entriesLeft;
+		long done = cleanerThread.runStartEntriesLeft - left;
+		if (done <= 0)
+			return -1;
+		return (System.currentTimeMillis() - cleanerThread.runStartTime) * left / done;
+	}
+
 	// ------------- Locking
 	volatile boolean shutdown = false;
 	private LockManager lockManager;
@@ -1725,70 +1928,32 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param plainKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return the locks to pass to {@link LockManager#unlock(int[])}, or <code>null</code> if
+	 *         the offsets could not be locked.
 	 */
-	private Map<Long, Condition> lockPlainKey(byte[] plainKey, boolean usePrevStoreSize) {
+	private int[] lockPlainKey(byte[] plainKey, boolean usePrevStoreSize) {
 		return lockDigestedKey(cipherManager.getDigestedKey(plainKey), usePrevStoreSize);
 	}
 
-	private void unlockPlainKey(byte[] plainKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		unlockDigestedKey(cipherManager.getDigestedKey(plainKey), usePrevStoreSize, lockMap);
-	}
-
 	/**
 	 * Lock all possible offsets of a key. This method would release the locks if any locking
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return the locks to pass to {@link LockManager#unlock(int[])}, or <code>null</code> if
+	 *         the offsets could not be locked.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
-		}
-	}
-
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private int[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			long[] all = new long[offsets.length + prevOffsets.length];
+			System.arraycopy(offsets, 0, all, 0, offsets.length);
+			System.arraycopy(prevOffsets, 0, all, offsets.length, prevOffsets.length);
+			offsets = all;
 		}
+		// LockManager removes duplicates and sorts to prevent deadlocks
+		return lockManager.lockEntries(offsets);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -1888,6 +2053,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return bloomFalsePos.get();
 	}
 
+	/** Number of slot locks taken, for checking how the store scales */
+	public long getLocksAcquired() {
+		return lockManager.getAcquired();
+	}
+
+	/** Number of slot locks which were already held by another thread */
+	public long getLocksContended() {
+		return lockManager.getContended();
+	}
+
+	/** Total time spent waiting for contended slot locks, in milliseconds */
+	public long getLockWaitTime() {
+		return lockManager.getWaitTime();
+	}
+
 	// ------------- Migration
 	public void migrationFrom(File storeFile, File keyFile) {
 		try {
@@ -1951,6 +2131,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		hdFile.delete();
 		configFile.delete();
 		bloomFile.delete();
+		getBloomForkFile().delete();
 	}
 
 	public String toString() {
@@ -14,8 +14,8 @@ import org.spaceroots.mantissa.random.MersenneTwister;
 public abstract class BloomFilter {
 	protected ByteBuffer filter;
 
-	/** Number of hash functions */
-	protected final int k;
+	/** Number of hash functions. Taken from the fork by #merge(), whose bits were set with it. */
+	protected volatile int k;
 	protected final int length;
 
 	protected ReadWriteLock lock = new ReentrantReadWriteLock();
@@ -38,6 +38,22 @@ public abstract class BloomFilter {
 			return new BinaryBloomFilter(file, length, k);
 	}
 	
+	/**
+	 * Create a BlockedBloomFilter. Much faster than the filters above, but
+	 * the bit layout is different, so it can't read their files.
+	 */
+	public static BloomFilter createBlockedFilter(int length, int k, boolean counting) {
+		if (length == 0)
+			return new NullBloomFilter(length, k);
+		return new BlockedBloomFilter(length, k, counting);
+	}
+
+	public static BloomFilter createBlockedFilter(File file, int length, int k, boolean counting) throws IOException {
+		if (length == 0)
+			return new NullBloomFilter(length, k);
+		return new BlockedBloomFilter(file, length, k, counting);
+	}
+
 	protected BloomFilter(int length, int k) {
 		if (length % 8 != 0)
 			length -= length % 8;
@@ -121,6 +137,19 @@ public abstract class BloomFilter {
 	 */
 	public abstract void fork(int k);
 
+	/**
+	 * Fork to a filter kept in the given file, so that a rebuild interrupted by
+	 * a restart can carry on with the same fork. The caller deletes the file
+	 * after #merge() or #discard().
+	 *
+	 * @return <code>true</code> if the file already held a fork of this filter,
+	 *         which is kept; <code>false</code> if the fork starts empty.
+	 */
+	public boolean fork(int k, File file) throws IOException {
+		fork(k);
+		return false;
+	}
+
 	public void merge() {
 		lock.writeLock().lock();
 		try {
@@ -134,6 +163,7 @@ public abstract class BloomFilter {
 				forkedFilter.filter.position(0);
 
 				filter.put(forkedFilter.filter);
+				k = forkedFilter.k;
 
 				filter.position(0);
 				forkedFilter.close();
@@ -195,6 +225,9 @@ public abstract class BloomFilter {
 		if (filter instanceof MappedByteBuffer) {
 			((MappedByteBuffer) filter).force();
 		}
+		BloomFilter forked = forkedFilter;
+		if (forked != null)
+			forked.force();
 	}
 	
 	public void close() {
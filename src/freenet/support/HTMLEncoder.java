@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.io.IOException;
 import java.util.HashMap;
 
 /**
@@ -35,6 +36,19 @@ public class HTMLEncoder {
 	}
 	
 	private static void encodeToBuffer(int n, String s, StringBuilder sb) {
+		try {
+			encodeTo(n, s, sb);
+		} catch (IOException e) {
+			throw new Error("Impossible: StringBuilder threw "+e, e);
+		}
+	}
+	
+	/** Encode directly to a Writer or other Appendable, e.g. while streaming a page. */
+	public static void encodeTo(String s, Appendable out) throws IOException {
+		encodeTo(s.length(), s, out);
+	}
+	
+	private static void encodeTo(int n, String s, Appendable sb) throws IOException {
 		for (int i = 0; i < n; i++) {
 			char c = s.charAt(i);
 			if(Character.isLetterOrDigit(c)){ //only special characters need checking
@@ -1,5 +1,8 @@
 package freenet.support;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -9,6 +12,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import freenet.support.io.UTF8StreamWriter;
+
 public class HTMLNode implements XMLCharacterClasses {
 	
 	private static final Pattern namePattern = Pattern.compile("^[" + NAME + "]*$");
@@ -165,65 +170,87 @@ public class HTMLNode implements XMLCharacterClasses {
 	}
 
 	public StringBuilder generate(StringBuilder tagBuffer) {
+		try {
+			writeTo(tagBuffer);
+		} catch (IOException e) {
+			throw new Error("Impossible: StringBuilder threw "+e, e);
+		}
+		return tagBuffer;
+	}
+
+	/**
+	 * Serialise the node directly to a stream as UTF-8, without building the
+	 * whole page as a String first. Buffered; does not close the stream.
+	 */
+	public void generate(OutputStream os) throws IOException {
+		UTF8StreamWriter writer = new UTF8StreamWriter(os);
+		writeTo(writer);
+		writer.close();
+	}
+
+	/**
+	 * Serialise the node. Subclasses which render differently override this,
+	 * so that all of the generate() methods pick it up.
+	 */
+	public void writeTo(Appendable out) throws IOException {
 		if("#".equals(name)) {
 			if(content != null) {
-				HTMLEncoder.encodeToBuffer(content, tagBuffer);
-				return tagBuffer;
+				HTMLEncoder.encodeTo(content, out);
+				return;
 			}
 			
 			for(int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.writeTo(out);
 			}
-			return tagBuffer;
+			return;
 		}
 		// Perhaps this should be something else, but since I don't know if '#' was not just arbitrary chosen, I'll just pick '%'
 		// This allows non-encoded text to be appended to the tag buffer
 		if ("%".equals(name)) {
-			tagBuffer.append(content);
-			return tagBuffer;
+			out.append(content);
+			return;
 		}
-		tagBuffer.append('<').append(name);
+		out.append('<').append(name);
 		Set<Map.Entry<String, String>> attributeSet = attributes.entrySet();
 		for (Map.Entry<String, String> attributeEntry : attributeSet) {
 			String attributeName = attributeEntry.getKey();
 			String attributeValue = attributeEntry.getValue();
-			tagBuffer.append(' ');
-			HTMLEncoder.encodeToBuffer(attributeName, tagBuffer);
-			tagBuffer.append("=\"");
-			HTMLEncoder.encodeToBuffer(attributeValue, tagBuffer);
-			tagBuffer.append('"');
+			out.append(' ');
+			HTMLEncoder.encodeTo(attributeName, out);
+			out.append("=\"");
+			HTMLEncoder.encodeTo(attributeValue, out);
+			out.append('"');
 		}
 		if (children.size() == 0) {
 			if(content==null){
 				if ("textarea".equals(name) || ("div").equals(name) || ("a").equals(name) || ("script").equals(name)) {
-					tagBuffer.append("></");
-					tagBuffer.append(name);
-					tagBuffer.append('>');
+					out.append("></");
+					out.append(name);
+					out.append('>');
 				} else {
-					tagBuffer.append(" />");
+					out.append(" />");
 				}
 			}else{
-				tagBuffer.append(">"+content+"</"+name+">");
+				out.append('>').append(content).append("</").append(name).append('>');
 			}
 			
 		} else {
 			if(("div").equals(name) || ("form").equals(name) || ("input").equals(name) || ("script").equals(name) || ("table").equals(name) || ("tr").equals(name) || ("td").equals(name)) {
-				tagBuffer.append('\n');
+				out.append('\n');
 			}
-			tagBuffer.append('>');
+			out.append('>');
 			for (int childIndex = 0, childCount = children.size(); childIndex < childCount; childIndex++) {
 				HTMLNode childNode = children.get(childIndex);
-				childNode.generate(tagBuffer);
+				childNode.writeTo(out);
 			}
-			tagBuffer.append("</");
-			tagBuffer.append(name);
+			out.append("</");
+			out.append(name);
 			if(("div").equals(name)|| ("form").equals(name)|| ("input").equals(name)|| ("li").equals(name)|| ("option").equals(name)|| ("script").equals(name)|| ("table").equals(name)|| ("tr").equals(name)|| ("td").equals(name)) {
-				tagBuffer.append('\n');
+				out.append('\n');
 			}
-			tagBuffer.append('>');
+			out.append('>');
 		}
-		return tagBuffer;
 	}
 	
 	public String generateChildren(){
@@ -267,15 +294,59 @@ public class HTMLNode implements XMLCharacterClasses {
 		}
 
 		/**
-		 * @see freenet.support.HTMLNode#generate(java.lang.StringBuilder)
+		 * @see freenet.support.HTMLNode#writeTo(java.lang.Appendable)
 		 */
 		@Override
-		public StringBuilder generate(StringBuilder tagBuffer) {
-			tagBuffer.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
+		public void writeTo(Appendable out) throws IOException {
+			out.append("<!DOCTYPE ").append(name).append(" PUBLIC \"").append(systemUri).append("\">\n");
 			//TODO A meaningful exception should be raised 
 			// when trying to call the method for a HTMLDoctype 
 			// with number of child != 1 
-			return children.get(0).generate(tagBuffer);
+			children.get(0).writeTo(out);
+		}
+
+	}
+
+	/**
+	 * A subtree which does not change, rendered once and kept both as a String
+	 * and as UTF-8, so it can be reused on every page without being
+	 * regenerated or encoded again. Immutable: it may be added to any number
+	 * of pages at once.
+	 */
+	public static class PreEncoded extends HTMLNode {
+
+		private final byte[] encoded;
+
+		public PreEncoded(HTMLNode subtree) {
+			super("%", subtree.generate());
+			try {
+				encoded = getContent().getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+			}
+		}
+
+		@Override
+		public void writeTo(Appendable out) throws IOException {
+			if(out instanceof UTF8StreamWriter)
+				((UTF8StreamWriter) out).writeEncoded(encoded);
+			else
+				out.append(getContent());
+		}
+
+		@Override
+		public HTMLNode addChild(HTMLNode childNode) {
+			throw new UnsupportedOperationException("Pre-encoded nodes are immutable");
+		}
+
+		@Override
+		public void addAttribute(String attributeName, String attributeValue) {
+			throw new UnsupportedOperationException("Pre-encoded nodes are immutable");
+		}
+
+		@Override
+		public void setContent(String newContent) {
+			throw new UnsupportedOperationException("Pre-encoded nodes are immutable");
 		}
 
 	}
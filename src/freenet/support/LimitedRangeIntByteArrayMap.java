@@ -1,20 +1,21 @@
 package freenet.support;
 
-import java.util.HashMap;
-import java.util.Iterator;
-
 import freenet.support.LogThresholdCallback;
 import freenet.io.comm.AsyncMessageCallback;
 
 /**
  * @author amphibian
- * 
+ *
  * A list of integers linked to byte[]'s.
  * We keep a minimum and maximum of the integers.
  * The integers are expected to be reasonably close together, and
- * there is a maximum range. We provide a mechanism to sleep 
- * until the given packet number will no longer exceed the 
+ * there is a maximum range. We provide a mechanism to sleep
+ * until the given packet number will no longer exceed the
  * maximum range (which can be interrupted).
+ *
+ * Because the range is limited, the elements are kept in a ring buffer
+ * indexed directly by the integer (modulo a power of 2 no smaller than the
+ * range), so lookups do not hash or box anything.
  */
 public class LimitedRangeIntByteArrayMap {
 
@@ -28,68 +29,87 @@ public class LimitedRangeIntByteArrayMap {
 			}
 		});
 	}
-    private final HashMap<Integer, LimitedRangeIntByteArrayMapElement> contents;
+    private final LimitedRangeIntByteArrayMapElement[] contents;
+    private final int mask;
+    private int size;
     private int minValue;
     private int maxValue;
     private final int maxRange;
+    /** Number of elements flagged for resending by markResend(). */
+    private int resendCount;
     /** If this changes, all waiting lock()s must terminate */
     private volatile boolean flag;
-    
+
     public LimitedRangeIntByteArrayMap(int maxRange) {
         this.maxRange = maxRange;
-        contents = new HashMap<Integer, LimitedRangeIntByteArrayMapElement>();
+        int capacity = 1;
+        while(capacity < maxRange) capacity <<= 1;
+        contents = new LimitedRangeIntByteArrayMapElement[capacity];
+        mask = capacity - 1;
         minValue = -1;
         maxValue = -1;
         flag = false;
     }
-    
+
     public synchronized int minValue() {
         return minValue;
     }
-    
+
     public synchronized int maxValue() {
         return maxValue;
     }
-    
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /** Must be called with the lock held. */
+    private LimitedRangeIntByteArrayMapElement getElement(int index) {
+        if(minValue == -1 || index < minValue || index > maxValue) return null;
+        LimitedRangeIntByteArrayMapElement wrapper = contents[index & mask];
+        if(wrapper != null && wrapper.packetNumber == index)
+            return wrapper;
+        return null;
+    }
+
     public synchronized byte[] get(int index) {
-        LimitedRangeIntByteArrayMapElement wrapper = contents.get(index);
+        LimitedRangeIntByteArrayMapElement wrapper = getElement(index);
         if(wrapper != null)
             return wrapper.data;
         else return null;
     }
-    
+
     public synchronized AsyncMessageCallback[] getCallbacks(int index) {
-        LimitedRangeIntByteArrayMapElement wrapper = contents.get(index);
+        LimitedRangeIntByteArrayMapElement wrapper = getElement(index);
         if(wrapper != null)
             return wrapper.callbacks;
         else return null;
     }
-    
+
     public synchronized long getTime(int index) {
-        LimitedRangeIntByteArrayMapElement wrapper = contents.get(index);
+        LimitedRangeIntByteArrayMapElement wrapper = getElement(index);
         if(wrapper != null)
             return wrapper.createdTime;
         else return -1;
     }
-    
-	public short getPriority(int index, short defaultValue) {
-        Integer i = index;
-        LimitedRangeIntByteArrayMapElement wrapper = contents.get(i);
+
+	public synchronized short getPriority(int index, short defaultValue) {
+        LimitedRangeIntByteArrayMapElement wrapper = getElement(index);
         if(wrapper != null)
             return wrapper.priority;
         else return defaultValue;
 	}
-	
+
     /**
      * Get the time at which an index was re-added last.
      */
     public synchronized long getReaddedTime(int index) {
-    	LimitedRangeIntByteArrayMapElement wrapper = contents.get(index);
+    	LimitedRangeIntByteArrayMapElement wrapper = getElement(index);
     	if(wrapper != null)
     		return wrapper.reputTime;
     	else return -1;
     }
-    
+
     /**
      * Try to add an index/data mapping.
      * @return True if we succeeded, false if the index was out
@@ -97,6 +117,7 @@ public class LimitedRangeIntByteArrayMap {
      */
     public synchronized boolean add(int index, byte[] data, AsyncMessageCallback[] callbacks, short priority) {
     	if(logMINOR) Logger.minor(this, toString()+" add "+index);
+        if(data == null) throw new NullPointerException();
         if(maxValue == -1) {
             minValue = index;
             maxValue = index;
@@ -111,17 +132,18 @@ public class LimitedRangeIntByteArrayMap {
                 return false;
             minValue = index;
         }
-        if(data == null) throw new NullPointerException();
-        Integer idx = index;
-		LimitedRangeIntByteArrayMapElement le = contents.get(idx);
-        if(le == null)
-        	contents.put(idx, new LimitedRangeIntByteArrayMapElement(idx, data, callbacks, priority));
+		LimitedRangeIntByteArrayMapElement le = contents[index & mask];
+        if(le == null) {
+        	contents[index & mask] = new LimitedRangeIntByteArrayMapElement(index, data, callbacks, priority);
+        	size++;
+        } else if(le.packetNumber != index)
+        	throw new IllegalStateException("Slot for "+index+" holds "+le.packetNumber+" on "+this);
         else
         	le.reput();
         notifyAll();
         return true;
     }
-    
+
     /**
      * Toggle the flag, and notify all waiting lock()s. They will then throw
      * InterruptedException's.
@@ -153,12 +175,12 @@ public class LimitedRangeIntByteArrayMap {
             }
         }
     }
-    
-    public boolean wouldBlock(int index) {
+
+    public synchronized boolean wouldBlock(int index) {
     	if(minValue == -1) return false;
     	return (index - minValue >= maxRange);
     }
-    
+
     /**
      * Wait until add(index, whatever) would return true.
      * If this returns, add(index, whatever) will work.
@@ -169,82 +191,168 @@ public class LimitedRangeIntByteArrayMap {
         if(index - minValue < maxRange) return;
         throw new WouldBlockException(toString()+ " WOULD BLOCK: lockNeverBlock("+index+") - minValue = "+minValue+", maxValue = "+maxValue+", maxRange="+maxRange);
     }
-    
+
     /**
      * @return true if we removed something.
      */
     public synchronized boolean remove(int index) {
     	if(logMINOR) Logger.minor(this, "Removing "+index+" - min="+minValue+" max="+maxValue);
-        if (contents.remove(index) != null) {
-            if((index > minValue) && (index < maxValue)) return true;
-            if(contents.size() == 0) {
-                minValue = maxValue = -1;
-                notifyAll();
-                return true;
-            }
-            if(index == maxValue) {
-                for(int i=maxValue;i>=minValue;i--) {
-                    Integer ii = Integer.valueOf(i);
-                    if(contents.containsKey(ii)) {
-                        maxValue = i;
-                        notifyAll();
-                        return true;
-                    }
-                }
-                // Still here - WTF?
-                notifyAll();
-                throw new IllegalStateException("Still here! (a)");
-            }
-            if(index == minValue) {
-                for(int i=minValue;i<=maxValue;i++) {
-                    Integer ii = Integer.valueOf(i);
-                    if(contents.containsKey(ii)) {
-                        minValue = i;
-                        notifyAll();
-                        return true;
-                    }
-                }
-                // Still here - WTF?
-                notifyAll();
-                throw new IllegalStateException("Still here! (b)");
-            }
-            notifyAll();
-            throw new IllegalStateException("impossible");
-        }
-        return false;
+    	if(removeElement(index) == null) return false;
+    	notifyAll();
+    	return true;
+    }
+
+    /**
+     * Remove an index and return what was stored under it, so the caller
+     * can look at the data, callbacks and time without taking the lock
+     * several times.
+     * @return The element removed, or null if there wasn't one.
+     */
+    public synchronized LimitedRangeIntByteArrayMapElement removeAndGet(int index) {
+    	if(logMINOR) Logger.minor(this, "Removing "+index+" - min="+minValue+" max="+maxValue);
+    	LimitedRangeIntByteArrayMapElement element = removeElement(index);
+    	if(element != null) notifyAll();
+    	return element;
+    }
+
+    /**
+     * Remove a batch of indexes, for example all the packets acknowledged by
+     * one incoming packet, taking the lock and waking waiters only once.
+     * @param indexes The indexes to remove.
+     * @param removed Filled in with the removed element for each index, or
+     * null if it was not present. Must be at least as long as indexes.
+     * @return The number of elements removed.
+     */
+    public synchronized int removeAll(int[] indexes, LimitedRangeIntByteArrayMapElement[] removed) {
+    	int count = 0;
+    	for(int i=0;i<indexes.length;i++) {
+    		if(logMINOR) Logger.minor(this, "Removing "+indexes[i]+" - min="+minValue+" max="+maxValue);
+    		LimitedRangeIntByteArrayMapElement element = removeElement(indexes[i]);
+    		removed[i] = element;
+    		if(element != null) count++;
+    	}
+    	if(count > 0) notifyAll();
+    	return count;
+    }
+
+    /** Must be called with the lock held. Does not notify. */
+    private LimitedRangeIntByteArrayMapElement removeElement(int index) {
+    	LimitedRangeIntByteArrayMapElement element = getElement(index);
+    	if(element == null) return null;
+    	contents[index & mask] = null;
+    	size--;
+    	if(element.resendPending) {
+    		element.resendPending = false;
+    		resendCount--;
+    	}
+    	if(size == 0) {
+    		minValue = maxValue = -1;
+    		return element;
+    	}
+    	if(index == maxValue) {
+    		for(int i=maxValue-1;i>=minValue;i--) {
+    			if(contents[i & mask] != null) {
+    				maxValue = i;
+    				return element;
+    			}
+    		}
+    		throw new IllegalStateException("Still here! (a)");
+    	}
+    	if(index == minValue) {
+    		for(int i=minValue+1;i<=maxValue;i++) {
+    			if(contents[i & mask] != null) {
+    				minValue = i;
+    				return element;
+    			}
+    		}
+    		throw new IllegalStateException("Still here! (b)");
+    	}
+    	return element;
+    }
+
+    /**
+     * Flag an index as needing to be resent.
+     * @return False if there is nothing stored under that index.
+     */
+    public synchronized boolean markResend(int index) {
+    	LimitedRangeIntByteArrayMapElement element = getElement(index);
+    	if(element == null) return false;
+    	if(!element.resendPending) {
+    		element.resendPending = true;
+    		resendCount++;
+    	}
+    	return true;
+    }
+
+    public synchronized boolean hasResendsPending() {
+    	return resendCount > 0;
+    }
+
+    /**
+     * Clear all the resend flags, and return the elements which were flagged
+     * and have not been re-added within the last minReaddedAge milliseconds.
+     * @param output Array to put the elements in. Will be reallocated if it
+     * is too small.
+     * @param counter On return, counter[0] is the number of elements in the
+     * returned array.
+     * @return Either output or a new, larger array.
+     */
+    public synchronized LimitedRangeIntByteArrayMapElement[] grabResends(long now, long minReaddedAge, LimitedRangeIntByteArrayMapElement[] output, int[] counter) {
+    	int count = 0;
+    	if(resendCount > 0) {
+    		if(output.length < resendCount)
+    			output = new LimitedRangeIntByteArrayMapElement[resendCount * 2];
+    		for(int i=minValue;i<=maxValue && resendCount > 0;i++) {
+    			LimitedRangeIntByteArrayMapElement element = contents[i & mask];
+    			if(element == null || !element.resendPending) continue;
+    			element.resendPending = false;
+    			resendCount--;
+    			if(now - element.reputTime > minReaddedAge)
+    				// Either never resent, or resent long enough ago
+    				output[count++] = element;
+    		}
+    	}
+    	counter[0] = count;
+    	return output;
     }
 
     /**
      * @return The contents of each packet sent, then clear.
      */
     public synchronized byte[][] grabAllBytes() {
-        int len = contents.size();
-        byte[][] output = new byte[len][];
+        byte[][] output = new byte[size][];
         int count = 0;
-        for (LimitedRangeIntByteArrayMapElement o : contents.values()) {
-			output[count++] = o.data;
+        if(size > 0) {
+            for(int i=minValue;i<=maxValue;i++) {
+                LimitedRangeIntByteArrayMapElement o = contents[i & mask];
+                if(o != null) output[count++] = o.data;
+            }
         }
         clear();
         return output;
     }
-    
+
     public synchronized LimitedRangeIntByteArrayMapElement[] grabAll() {
-        int len = contents.size();
-        LimitedRangeIntByteArrayMapElement[] output = new LimitedRangeIntByteArrayMapElement[len];
-        Iterator<LimitedRangeIntByteArrayMapElement> i = contents.values().iterator();
+        LimitedRangeIntByteArrayMapElement[] output = new LimitedRangeIntByteArrayMapElement[size];
         int count = 0;
-        while(i.hasNext()) {
-            output[count++] = i.next();
+        if(size > 0) {
+            for(int i=minValue;i<=maxValue;i++) {
+                LimitedRangeIntByteArrayMapElement o = contents[i & mask];
+                if(o != null) output[count++] = o;
+            }
         }
         clear();
         return output;
     }
-    
+
     /**
      * Empty the structure.
      */
     private synchronized void clear() {
-        contents.clear();
+        for(int i=0;i<contents.length;i++)
+            contents[i] = null;
+        size = 0;
+        resendCount = 0;
         minValue = maxValue = -1;
     }
 }
@@ -19,6 +19,8 @@ public class LimitedRangeIntByteArrayMapElement {
     public final long createdTime;
     public final short priority;
     long reputTime;
+    /** Set while the packet is waiting to be resent. Protected by the map's lock. */
+    boolean resendPending;
     
 	public void reput() {
 		this.reputTime = System.currentTimeMillis();
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.io.File;
+
 /**
  * @author sdiz
  */
@@ -47,6 +49,12 @@ public class NullBloomFilter extends BloomFilter {
 		return;
 	}
 
+	@Override
+	public boolean fork(int k, File file) {
+		// Nothing to lose
+		return true;
+	}
+
 	@Override
 	public void discard() {
 		return;
@@ -1,48 +1,59 @@
 package freenet.support;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
-
 
 /**
  * @author amphibian
- * 
+ *
  * Tracks which packet numbers we have received.
- * Implemented as a sorted list since this is simplest and
- * it's unlikely it will be very long in practice. The 512-
- * packet window provides a practical limit.
+ * Implemented as a ring of bits covering the window of the last
+ * <code>horizon</code> packet numbers below the highest one we have seen,
+ * indexed directly by packet number. Anything older than the window is
+ * assumed to have been received. The 512-packet window means this is only
+ * a few words, and receiving or looking up a packet never allocates.
  */
 public class ReceivedPacketNumbers {
 
-    final LinkedList<Range> ranges;
+    /** One bit per packet number, modulo the number of bits. */
+    final long[] bits;
+    final int mask;
     int lowestSeqNumber;
     int highestSeqNumber;
     final int horizon;
-    
+
     public ReceivedPacketNumbers(int horizon) {
-        ranges = new LinkedList<Range>();
+        // Need strictly more than horizon bits, so that every packet number in
+        // the window maps to a different bit.
+        int size = 64;
+        while(size <= horizon) size <<= 1;
+        bits = new long[size >> 6];
+        mask = size - 1;
         lowestSeqNumber = -1;
         highestSeqNumber = -1;
         this.horizon = horizon;
     }
-    
+
     public synchronized void clear() {
         lowestSeqNumber = -1;
         highestSeqNumber = -1;
-        ranges.clear();
+        for(int i=0;i<bits.length;i++)
+            bits[i] = 0;
     }
-    
-    private static class Range {
-        int start; // inclusive
-        int end;   // inclusive
-        
-        @Override
-		public String toString() {
-            return "Range:"+start+"->"+end;
-        }
+
+    private void setBit(int seqNumber) {
+        int bit = seqNumber & mask;
+        bits[bit >> 6] |= 1L << (bit & 63);
+    }
+
+    private void clearBit(int seqNumber) {
+        int bit = seqNumber & mask;
+        bits[bit >> 6] &= ~(1L << (bit & 63));
+    }
+
+    private boolean getBit(int seqNumber) {
+        int bit = seqNumber & mask;
+        return (bits[bit >> 6] & (1L << (bit & 63))) != 0;
     }
-    
+
     /**
      * We received a packet!
      * @param seqNumber The number of the packet.
@@ -51,77 +62,36 @@ public class ReceivedPacketNumbers {
      */
     public synchronized boolean got(int seqNumber) {
         if(seqNumber < 0) throw new IllegalArgumentException();
-        if(ranges.isEmpty()) {
-            Range r = new Range();
-            r.start = r.end = lowestSeqNumber = highestSeqNumber = seqNumber;
-            ranges.addFirst(r);
+        if(highestSeqNumber == -1) {
+            lowestSeqNumber = highestSeqNumber = seqNumber;
+            setBit(seqNumber);
             return true;
-        } else {
-            ListIterator<Range> li = ranges.listIterator();
-			Range r = li.next();
-            int firstSeq = r.end;
-            if(seqNumber - firstSeq > horizon) {
-                // Delete first item
-                li.remove();
-                r = li.next();
-                lowestSeqNumber = r.start;
-            }
-            while(true) {
-                if(seqNumber == r.start-1) {
-                    r.start--;
-                    if(li.hasPrevious()) {
-                        Range r1 = li.previous();
-                        if(r1.end == seqNumber-1) {
-                            r.start = r1.start;
-                            li.remove();
-                        }
-                    } else {
-                        lowestSeqNumber = seqNumber;
-                    }
-                    return true;
-                }
-                if(seqNumber < r.start-1) {
-                    if(highestSeqNumber - seqNumber > horizon) {
-                        // Out of window, don't store
-                        return false;
-                    }
-                    Range r1 = new Range();
-                    r1.start = r1.end = seqNumber;
-                    li.previous(); // move cursor back
-                    if(!li.hasPrevious()) // inserting at start??
-                        lowestSeqNumber = seqNumber;
-                    li.add(r1);
-                    return true;
-                }
-                if((seqNumber >= r.start) && (seqNumber <= r.end)) {
-                    // Duh
-                    return true;
-                }
-                if(seqNumber == r.end+1) {
-                    r.end++;
-                    if(li.hasNext()) {
-                        Range r1 = li.next();
-                        if(r1.start == seqNumber+1) {
-                            r.end = r1.end;
-                            li.remove();
-                        }
-                    } else {
-                        highestSeqNumber = seqNumber;
-                    }
-                    return true;
-                }
-                if(seqNumber > r.end+1) {
-                    if(!li.hasNext()) {
-                        // This is the end of the list
-                        Range r1 = new Range();
-                        r1.start = r1.end = highestSeqNumber = seqNumber;
-                        li.add(r1);
-                        return true;
-                    }
-                }
-                r = li.next();
+        }
+        if(seqNumber > highestSeqNumber) {
+            // Slide the window forward. The bits we are about to reuse belong
+            // to packet numbers which are now out of the window.
+            int advance = seqNumber - highestSeqNumber;
+            if(advance > mask) {
+                for(int i=0;i<bits.length;i++)
+                    bits[i] = 0;
+            } else {
+                for(int i=highestSeqNumber+1;i<seqNumber;i++)
+                    clearBit(i);
             }
+            setBit(seqNumber);
+            highestSeqNumber = seqNumber;
+            if(seqNumber - lowestSeqNumber > horizon)
+                lowestSeqNumber = seqNumber - horizon;
+            return true;
+        }
+        if(highestSeqNumber - seqNumber > horizon) {
+            // Out of window, don't store
+            return false;
         }
+        setBit(seqNumber);
+        if(seqNumber < lowestSeqNumber)
+            lowestSeqNumber = seqNumber;
+        return true;
     }
 
     /**
@@ -130,28 +100,15 @@ public class ReceivedPacketNumbers {
      * @return
      */
     public synchronized boolean contains(int seqNumber) {
+        if(highestSeqNumber == -1)
+            return false;
         if(seqNumber > highestSeqNumber)
             return false;
-        if(seqNumber == highestSeqNumber)
-            return true;
-        if(seqNumber == lowestSeqNumber)
-            return true;
         if(highestSeqNumber - seqNumber > horizon)
             return true; // Assume we have since out of window
-        Iterator<Range> i = ranges.iterator();
-        Range last = null;
-        for(;i.hasNext();) {
-            Range r = i.next();
-            if(r.start > r.end) {
-                Logger.error(this, "Bad Range: "+r);
-            }
-            if((last != null) && (r.start < last.end)) {
-                Logger.error(this, "This range: "+r+" but last was: "+last);
-            }
-            if((r.start <= seqNumber) && (r.end >= seqNumber))
-                return true;
-        }
-        return false;
+        if(seqNumber < lowestSeqNumber)
+            return false;
+        return getBit(seqNumber);
     }
 
     /**
@@ -160,7 +117,7 @@ public class ReceivedPacketNumbers {
     public synchronized int highest() {
         return highestSeqNumber;
     }
-    
+
     @Override
 	public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -171,14 +128,23 @@ public class ReceivedPacketNumbers {
 			sb.append(", min=");
 			sb.append(lowestSeqNumber);
 			sb.append(", ranges=");
-            Iterator<Range> i = ranges.iterator();
-            while(i.hasNext()) {
-                Range r = i.next();
-                sb.append(r.start);
-                sb.append('-');
-                sb.append(r.end);
-                if(i.hasNext()) sb.append(',');
-            }
+			if(highestSeqNumber != -1) {
+				boolean first = true;
+				int start = -1;
+				for(int i=lowestSeqNumber;i<=highestSeqNumber+1;i++) {
+					boolean got = (i <= highestSeqNumber) && getBit(i);
+					if(got && start == -1) {
+						start = i;
+					} else if(!got && start != -1) {
+						if(!first) sb.append(',');
+						first = false;
+						sb.append(start);
+						sb.append('-');
+						sb.append(i-1);
+						start = -1;
+					}
+				}
+			}
         }
         return sb.toString();
     }
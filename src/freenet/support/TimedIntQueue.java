@@ -0,0 +1,90 @@
+package freenet.support;
+
+/**
+ * FIFO queue of int's, each with a time attached, kept in a pair of
+ * primitive ring buffers so that adding and draining do not allocate
+ * (apart from growing the buffers, which is rare). Used for packet numbers
+ * waiting to be acknowledged and the like, where the time is when the item
+ * becomes urgent. Not synchronized.
+ */
+public class TimedIntQueue {
+
+	private int[] values;
+	private long[] times;
+	private int head;
+	private int size;
+
+	/**
+	 * @param initialCapacity Rounded up to a power of 2.
+	 */
+	public TimedIntQueue(int initialCapacity) {
+		int capacity = 1;
+		while(capacity < initialCapacity) capacity <<= 1;
+		values = new int[capacity];
+		times = new long[capacity];
+	}
+
+	public void add(int value, long time) {
+		if(size == values.length) grow();
+		int slot = (head + size) & (values.length - 1);
+		values[slot] = value;
+		times[slot] = time;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The time attached to the oldest item, or Long.MAX_VALUE if
+	 * the queue is empty.
+	 */
+	public long firstTime() {
+		if(size == 0) return Long.MAX_VALUE;
+		return times[head];
+	}
+
+	public boolean contains(int value) {
+		int mask = values.length - 1;
+		for(int i=0;i<size;i++)
+			if(values[(head + i) & mask] == value) return true;
+		return false;
+	}
+
+	/**
+	 * Remove all the items and return their values, oldest first.
+	 */
+	public int[] grabAll() {
+		int[] output = new int[size];
+		int mask = values.length - 1;
+		for(int i=0;i<size;i++)
+			output[i] = values[(head + i) & mask];
+		clear();
+		return output;
+	}
+
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	private void grow() {
+		int capacity = values.length * 2;
+		int[] newValues = new int[capacity];
+		long[] newTimes = new long[capacity];
+		int firstPart = Math.min(size, values.length - head);
+		System.arraycopy(values, head, newValues, 0, firstPart);
+		System.arraycopy(values, 0, newValues, firstPart, size - firstPart);
+		System.arraycopy(times, head, newTimes, 0, firstPart);
+		System.arraycopy(times, 0, newTimes, firstPart, size - firstPart);
+		values = newValues;
+		times = newTimes;
+		head = 0;
+	}
+
+}
@@ -71,7 +71,7 @@ public class Bzip2Compressor implements Compressor {
 		return output;
 	}
 
-	private long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
 		CBZip2InputStream bz2is = new CBZip2InputStream(is);
 		long written = 0;
 		byte[] buffer = new byte[4096];
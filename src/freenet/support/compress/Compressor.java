@@ -4,6 +4,8 @@
 package freenet.support.compress;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Vector;
 
 import com.db4o.ObjectContainer;
@@ -141,6 +143,14 @@ public interface Compressor {
 			return compressor.decompress(data, bucketFactory, maxLength, maxEstimateSizeLength, preferred);
 		}
 
+		public long decompress(InputStream is, OutputStream os, long maxLength, long maxEstimateSizeLength) throws IOException, CompressionOutputSizeException {
+			if(compressor == null) {
+				// DB4O VOODOO! See below.
+				if(name != null) return getOfficial().decompress(is, os, maxLength, maxEstimateSizeLength);
+			}
+			return compressor.decompress(is, os, maxLength, maxEstimateSizeLength);
+		}
+
 		public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
 			if(compressor == null) {
 				// DB4O VOODOO! See below.
@@ -207,6 +217,19 @@ public interface Compressor {
 	 */
 	public abstract Bucket decompress(Bucket data, BucketFactory bucketFactory, long maxLength, long maxEstimateSizeLength, Bucket preferred) throws IOException, CompressionOutputSizeException;
 
+	/**
+	 * Decompress data from a stream, writing it to another stream as it is
+	 * decompressed. Reads until the end of the compressed data.
+	 * @param is The stream to read compressed data from. Not closed.
+	 * @param os The stream to write the decompressed data to. Not closed.
+	 * @param maxLength The maximum length to decompress (we throw if more is present).
+	 * @param maxEstimateSizeLength If the data is too big, and this is >0, read up to this many bytes in order to try to get the data size.
+	 * @return The number of bytes written.
+	 * @throws IOException
+	 * @throws CompressionOutputSizeException
+	 */
+	public abstract long decompress(InputStream is, OutputStream os, long maxLength, long maxEstimateSizeLength) throws IOException, CompressionOutputSizeException;
+
 	/** Decompress in RAM only.
 	 * @param dbuf Input buffer.
 	 * @param i Offset to start reading from.
@@ -88,10 +88,12 @@ public class LZMACompressor implements Compressor {
         props[4] = 0x00;
     }
 
-	private void decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		CountedOutputStream cos = new CountedOutputStream(os);
 		Decoder decoder = new Decoder();
 		decoder.SetDecoderProperties(props);
-		decoder.Code(is, os, maxLength);
+		decoder.Code(is, cos, maxLength);
+		return cos.written();
 	}
 
 	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
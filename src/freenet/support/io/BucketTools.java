@@ -2,6 +2,7 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -270,6 +271,19 @@ public class BucketTools {
 		}
 	}
 
+	/**
+	 * The file holding a bucket's data, if it is stored unencrypted and
+	 * unpadded on disk, so it can be sent with FileChannel.transferTo().
+	 * @return Null if the data isn't available as a plain file.
+	 */
+	public static File getFile(Bucket data) {
+		if(data instanceof BaseFileBucket)
+			return ((BaseFileBucket) data).getFile();
+		if(data instanceof TempBucketFactory.TempBucket)
+			return ((TempBucketFactory.TempBucket) data).getUnencryptedFile();
+		return null;
+	}
+
 	/** Copy the given quantity of data from the given bucket to the given OutputStream. 
 	 * @throws IOException If there was an error reading from the bucket or writing to the stream. */
 	public static long copyTo(Bucket decodedData, OutputStream os, long truncateLength) throws IOException {
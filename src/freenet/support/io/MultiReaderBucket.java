@@ -105,6 +105,14 @@ public class MultiReaderBucket {
 				return is.read(data);
 			}
 			
+			@Override
+			public final long skip(long bytes) throws IOException {
+				synchronized(MultiReaderBucket.this) {
+					if(freed || closed) throw new IOException("Already closed");
+				}
+				return is.skip(bytes);
+			}
+			
 			@Override
 			public final void close() throws IOException {
 				is.close();
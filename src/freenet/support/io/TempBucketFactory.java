@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support.io;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -164,6 +165,18 @@ public class TempBucketFactory implements BucketFactory {
 			return (currentBucket instanceof ArrayBucket);
 		}
 
+		/**
+		 * @return The file holding the data, if it has been completely written
+		 * and is on disk unencrypted, so can be read directly e.g. with
+		 * FileChannel.transferTo(). Otherwise null.
+		 */
+		public synchronized File getUnencryptedFile() {
+			if(hasBeenFreed || !hasWritten || os != null) return null;
+			if(currentBucket instanceof BaseFileBucket)
+				return ((BaseFileBucket) currentBucket).getFile();
+			return null;
+		}
+
 		public synchronized OutputStream getOutputStream() throws IOException {
 			if(osIndex > 0)
 				throw new IOException("Only one OutputStream per bucket!");
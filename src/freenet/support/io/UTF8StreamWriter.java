@@ -0,0 +1,174 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Buffered Writer which encodes to UTF-8 directly into its own byte buffer,
+ * so text can be streamed to a socket without first building a String and
+ * then a byte[] copy of it. Fragments which are already UTF-8 encoded can be
+ * written with writeEncoded() without being decoded and encoded again.
+ *
+ * Each time the buffer fills it is written to the underlying stream with a
+ * single write(), so with a chunked stream each buffer becomes one chunk.
+ * close() flushes but does not close the underlying stream.
+ */
+public class UTF8StreamWriter extends Writer {
+
+	public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int count;
+	/** The high half of a surrogate pair whose low half we haven't seen yet, or 0. */
+	private char pendingHighSurrogate;
+	private boolean closed;
+
+	public UTF8StreamWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public UTF8StreamWriter(OutputStream out, int bufferSize) {
+		// Room for the longest encoded character.
+		if(bufferSize < 4) throw new IllegalArgumentException();
+		this.out = out;
+		this.buf = new byte[bufferSize];
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		checkOpen();
+		encode((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		checkOpen();
+		for(int i = off, end = off + len; i < end; i++)
+			encode(cbuf[i]);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		checkOpen();
+		for(int i = off, end = off + len; i < end; i++)
+			encode(str.charAt(i));
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if(csq == null) csq = "null";
+		checkOpen();
+		for(int i = 0, len = csq.length(); i < len; i++)
+			encode(csq.charAt(i));
+		return this;
+	}
+
+	@Override
+	public Writer append(char c) throws IOException {
+		checkOpen();
+		encode(c);
+		return this;
+	}
+
+	/**
+	 * Write bytes which are already UTF-8 encoded.
+	 */
+	public void writeEncoded(byte[] data, int off, int len) throws IOException {
+		checkOpen();
+		if(pendingHighSurrogate != 0) {
+			// Unpaired surrogate.
+			pendingHighSurrogate = 0;
+			put('?');
+		}
+		if(len > buf.length - count) {
+			flushBuffer();
+			if(len >= buf.length) {
+				out.write(data, off, len);
+				return;
+			}
+		}
+		System.arraycopy(data, off, buf, count, len);
+		count += len;
+	}
+
+	public void writeEncoded(byte[] data) throws IOException {
+		writeEncoded(data, 0, data.length);
+	}
+
+	private void encode(char c) throws IOException {
+		if(buf.length - count < 4) flushBuffer();
+		if(pendingHighSurrogate != 0) {
+			char high = pendingHighSurrogate;
+			pendingHighSurrogate = 0;
+			if(Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(high, c);
+				buf[count++] = (byte) (0xF0 | (cp >> 18));
+				buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				buf[count++] = (byte) (0x80 | (cp & 0x3F));
+				return;
+			}
+			// Unpaired surrogate.
+			put('?');
+			if(buf.length - count < 4) flushBuffer();
+		}
+		if(c < 0x80) {
+			buf[count++] = (byte) c;
+		} else if(c < 0x800) {
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		} else if(Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if(Character.isLowSurrogate(c)) {
+			// Unpaired surrogate.
+			buf[count++] = '?';
+		} else {
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+		}
+	}
+
+	private void put(char c) throws IOException {
+		if(count == buf.length) flushBuffer();
+		buf[count++] = (byte) c;
+	}
+
+	private void flushBuffer() throws IOException {
+		if(count == 0) return;
+		out.write(buf, 0, count);
+		count = 0;
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed) throw new IOException("Writer closed");
+	}
+
+	/** Write out any buffered data. A surrogate pair split across calls is
+	 * still held back until its second half arrives. */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+		flushBuffer();
+		out.flush();
+	}
+
+	/** Flush, and stop accepting writes. Does not close the underlying stream. */
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		if(pendingHighSurrogate != 0) {
+			pendingHighSurrogate = 0;
+			put('?');
+		}
+		flushBuffer();
+		out.flush();
+		closed = true;
+	}
+
+}
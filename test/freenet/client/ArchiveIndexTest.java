@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.tools.tar.TarEntry;
+import org.apache.tools.tar.TarOutputStream;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class ArchiveIndexTest extends TestCase {
+
+	private static final String LONG_NAME = "a/very/long/directory/name/which/does/not/fit/in/the/hundred/bytes/of/a/tar/header/file.html";
+
+	private static byte[] content(int i, int length) {
+		byte[] data = new byte[length];
+		Random r = new Random(i);
+		if(i % 2 == 0)
+			r.nextBytes(data);
+		else
+			Arrays.fill(data, (byte) ('a' + i)); // Compresses well
+		return data;
+	}
+
+	private static String[] names() {
+		return new String[] { "index.html", "images/logo.png", "empty", LONG_NAME, "style.css" };
+	}
+
+	private static int length(int i) {
+		return i == 2 ? 0 : 1000 + i * 777;
+	}
+
+	private static byte[] read(Bucket container, ArchiveIndex.Member member) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = ArchiveIndex.open(container, member);
+		byte[] buf = new byte[1000];
+		int x;
+		while((x = is.read(buf)) > 0)
+			baos.write(buf, 0, x);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	private static void checkIndex(ArchiveIndex index, Bucket container) throws IOException {
+		String[] names = names();
+		assertEquals(names.length, index.size());
+		for(int i = 0; i < names.length; i++) {
+			ArchiveIndex.Member member = index.get(names[i]);
+			assertNotNull(names[i], member);
+			assertEquals(length(i), member.size);
+			assertTrue(Arrays.equals(content(i, length(i)), read(container, member)));
+		}
+		assertNull(index.get("images/"));
+		assertNull(index.get("missing"));
+	}
+
+	public void testZip() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		zos.putNextEntry(new ZipEntry("images/"));
+		zos.closeEntry();
+		String[] names = names();
+		for(int i = 0; i < names.length; i++) {
+			byte[] data = content(i, length(i));
+			ZipEntry entry = new ZipEntry(names[i]);
+			if(i % 2 == 0) {
+				// Stored entries need their sizes and CRC up front.
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(data.length);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				entry.setCrc(crc.getValue());
+			}
+			zos.putNextEntry(entry);
+			zos.write(data);
+			zos.closeEntry();
+		}
+		zos.setComment("comment");
+		zos.close();
+		Bucket container = new ArrayBucket(baos.toByteArray());
+
+		ArchiveIndex index = ArchiveIndex.readZip(container);
+		assertNotNull(index);
+		checkIndex(index, container);
+		assertFalse(index.get("index.html").deflated);
+		assertTrue(index.get(LONG_NAME).deflated);
+	}
+
+	public void testInflatesTooBig() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		zos.putNextEntry(new ZipEntry("bomb"));
+		zos.write(new byte[100000]);
+		zos.closeEntry();
+		zos.close();
+		Bucket container = new ArrayBucket(baos.toByteArray());
+		ArchiveIndex.Member member = ArchiveIndex.readZip(container).get("bomb");
+		assertEquals(100000, read(container, member).length);
+		ArrayBucket out = new ArrayBucket();
+		ArchiveIndex.copy(container, member, out);
+		assertEquals(100000, out.size());
+
+		// The central directory says it is smaller than it really is.
+		ArchiveIndex.Member lying = new ArchiveIndex.Member(member.name, member.offset, member.storedSize, 1000, true);
+		try {
+			read(container, lying);
+			fail("Read past the declared size");
+		} catch (ArchiveIndex.SizeExceededException e) {
+			// Expected
+		}
+		try {
+			ArchiveIndex.copy(container, lying, new ArrayBucket());
+			fail("Copied past the declared size");
+		} catch (ArchiveFailureException e) {
+			// Expected
+		}
+	}
+
+	public void testRemoveLargerThan() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		String[] names = names();
+		for(int i = 0; i < names.length; i++) {
+			zos.putNextEntry(new ZipEntry(names[i]));
+			zos.write(content(i, length(i)));
+			zos.closeEntry();
+		}
+		zos.close();
+		ArchiveIndex index = ArchiveIndex.readZip(new ArrayBucket(baos.toByteArray()));
+		// Files 3 and 4 are bigger than 3000 bytes.
+		ArrayList<ArchiveIndex.Member> removed = index.removeLargerThan(3000);
+		assertEquals(2, removed.size());
+		assertEquals(3, index.size());
+		for(int i = 0; i < names.length; i++)
+			assertEquals(names[i], length(i) <= 3000, index.get(names[i]) != null);
+	}
+
+	public void testNotZip() throws Exception {
+		byte[] data = content(0, 5000);
+		assertNull(ArchiveIndex.readZip(new ArrayBucket(data)));
+	}
+
+	public void testTar() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarOutputStream tos = new TarOutputStream(baos);
+		tos.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+		tos.putNextEntry(new TarEntry("images/"));
+		tos.closeEntry();
+		String[] names = names();
+		for(int i = 0; i < names.length; i++) {
+			byte[] data = content(i, length(i));
+			TarEntry entry = new TarEntry(names[i]);
+			entry.setSize(data.length);
+			tos.putNextEntry(entry);
+			tos.write(data);
+			tos.closeEntry();
+		}
+		tos.close();
+		Bucket container = new ArrayBucket(baos.toByteArray());
+
+		checkIndex(ArchiveIndex.scanTar(container), container);
+	}
+
+	public void testTruncatedTar() throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarOutputStream tos = new TarOutputStream(baos);
+		TarEntry entry = new TarEntry("file");
+		entry.setSize(5000);
+		tos.putNextEntry(entry);
+		tos.write(content(0, 5000));
+		tos.closeEntry();
+		tos.close();
+		byte[] truncated = new byte[2048];
+		System.arraycopy(baos.toByteArray(), 0, truncated, 0, truncated.length);
+		try {
+			ArchiveIndex.scanTar(new ArrayBucket(truncated));
+			fail("Truncated archive indexed");
+		} catch (ArchiveFailureException e) {
+			// Expected
+		}
+	}
+}
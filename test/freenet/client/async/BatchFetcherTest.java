@@ -0,0 +1,129 @@
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.keys.ClientCHK;
+import freenet.keys.FreenetURI;
+import freenet.keys.Key;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.support.io.ArrayBucket;
+
+public class BatchFetcherTest extends TestCase {
+
+	private static final RequestClient CLIENT = new RequestClient() {
+
+		public boolean persistent() {
+			return false;
+		}
+
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+	};
+
+	/** Records what the batch reports. */
+	private static class Callback implements BatchFetchCallback {
+
+		final ArrayList<Integer> succeeded = new ArrayList<Integer>();
+		final ArrayList<Integer> failed = new ArrayList<Integer>();
+		int finished;
+
+		public void onSuccess(int index, FetchResult result, BatchFetcher batch) {
+			result.asBucket().free();
+			succeeded.add(index);
+		}
+
+		public void onFailure(int index, FetchException e, BatchFetcher batch) {
+			failed.add(index);
+		}
+
+		public void onFinished(BatchFetcher batch) {
+			finished++;
+		}
+
+	}
+
+	private static FreenetURI randomCHK(Random random) {
+		byte[] routingKey = new byte[32];
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(routingKey);
+		random.nextBytes(cryptoKey);
+		return new ClientCHK(routingKey, cryptoKey, false, Key.ALGO_AES_PCFB_256_SHA256, (short)-1).getURI();
+	}
+
+	private static FetchResult result() {
+		return new FetchResult(new ClientMetadata(), new ArrayBucket(new byte[] { 1, 2, 3 }));
+	}
+
+	private static BatchFetcher makeBatch(FreenetURI[] uris, Callback cb) throws FetchException {
+		return new BatchFetcher(uris, null, RequestStarter.INTERACTIVE_PRIORITY_CLASS, CLIENT, cb);
+	}
+
+	public void testCompletes() throws FetchException {
+		Random random = new Random(1);
+		FreenetURI[] uris = new FreenetURI[] { randomCHK(random), randomCHK(random), randomCHK(random) };
+		Callback cb = new Callback();
+		BatchFetcher batch = makeBatch(uris, cb);
+		assertEquals(3, batch.size());
+		assertEquals(3, batch.countRemaining());
+		batch.onSuccess(0, result(), null);
+		batch.onKeyFailed(2, new FetchException(FetchException.DATA_NOT_FOUND), null);
+		assertEquals(1, batch.countRemaining());
+		assertEquals(0, cb.finished);
+		assertFalse(batch.isFinished());
+		batch.onSuccess(1, result(), null);
+		// Reported once only.
+		batch.onSuccess(1, result(), null);
+		batch.onKeyFailed(0, new FetchException(FetchException.DATA_NOT_FOUND), null);
+		assertEquals(0, batch.countRemaining());
+		assertEquals(1, cb.finished);
+		assertTrue(batch.isFinished());
+		assertEquals(2, cb.succeeded.size());
+		assertEquals(1, cb.failed.size());
+		assertEquals(Integer.valueOf(2), cb.failed.get(0));
+	}
+
+	public void testDuplicateKeys() throws FetchException {
+		Random random = new Random(2);
+		FreenetURI a = randomCHK(random);
+		FreenetURI b = randomCHK(random);
+		Callback cb = new Callback();
+		BatchFetcher batch = makeBatch(new FreenetURI[] { a, b, a, a }, cb);
+		assertEquals(4, batch.countRemaining());
+		// Only the first copy is requested, so that is what gets reported.
+		batch.onKeyFailed(0, new FetchException(FetchException.DATA_NOT_FOUND), null);
+		assertEquals(3, cb.failed.size());
+		assertTrue(cb.failed.contains(Integer.valueOf(0)));
+		assertTrue(cb.failed.contains(Integer.valueOf(2)));
+		assertTrue(cb.failed.contains(Integer.valueOf(3)));
+		assertEquals(1, batch.countRemaining());
+		assertEquals(0, cb.finished);
+		batch.onSuccess(1, result(), null);
+		assertEquals(0, batch.countRemaining());
+		assertEquals(1, cb.finished);
+	}
+
+	public void testEmptyAfterCancel() throws FetchException {
+		Random random = new Random(3);
+		FreenetURI a = randomCHK(random);
+		Callback cb = new Callback();
+		BatchFetcher batch = makeBatch(new FreenetURI[] { a, a }, cb);
+		batch.cancel(null, null);
+		assertEquals(0, batch.countRemaining());
+		assertEquals(1, cb.finished);
+		batch.onKeyFailed(0, new FetchException(FetchException.DATA_NOT_FOUND), null);
+		assertEquals(0, cb.failed.size());
+		assertEquals(1, cb.finished);
+	}
+
+}
@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.InsertContext;
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.events.SimpleEventProducer;
+import freenet.keys.FreenetURI;
+import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+
+public class ContainerInserterTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI";
+
+	private static final RequestClient CLIENT = new RequestClient() {
+
+		public boolean persistent() {
+			return false;
+		}
+
+		public void removeFrom(ObjectContainer container) {
+			throw new UnsupportedOperationException();
+		}
+
+	};
+
+	/** Just enough of a putter to own the inserter. */
+	private static final BaseClientPutter PARENT = new BaseClientPutter(RequestStarter.INTERACTIVE_PRIORITY_CLASS, CLIENT) {
+
+		@Override
+		public void onMajorProgress(ObjectContainer container) {
+		}
+
+		@Override
+		public void onTransition(ClientPutState from, ClientPutState to, ObjectContainer container) {
+		}
+
+		@Override
+		public void onTransition(ClientGetState oldState, ClientGetState newState, ObjectContainer container) {
+		}
+
+		@Override
+		public void cancel(ObjectContainer container, ClientContext context) {
+		}
+
+		@Override
+		public FreenetURI getURI() {
+			return null;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return false;
+		}
+
+		@Override
+		public void notifyClients(ObjectContainer container, ClientContext context) {
+		}
+
+		@Override
+		protected void innerToNetwork(ObjectContainer container, ClientContext context) {
+		}
+
+	};
+
+	private static InsertContext context(boolean reuse) {
+		InsertContext ctx = new InsertContext(0, 0, 128, 128, new SimpleEventProducer(), false, false, null, 0, 0);
+		ctx.reuseInsertedData = reuse;
+		return ctx;
+	}
+
+	private static HashMap<String, Object> site(String index) throws IOException {
+		HashMap<String, Object> files = new HashMap<String, Object>();
+		byte[] data = index.getBytes("UTF-8");
+		files.put("index.html", new ManifestElement("index.html", new ArrayBucket(data), "text/html", data.length));
+		files.put("old.html", new ManifestElement("old.html", new FreenetURI(CHK), "text/html"));
+		return files;
+	}
+
+	/** Build the container as start() does, and look it up. */
+	private static FreenetURI lookUp(ContainerInserter inserter, InsertedDataCache cache) throws IOException {
+		inserter.makeMetadata(new ArrayBucketFactory(), null, null);
+		Bucket tar = new ArrayBucket();
+		String mimeType = inserter.createContainer(tar, null);
+		return inserter.lookUpInserted(tar, mimeType, false, cache);
+	}
+
+	private static ContainerInserter inserter(HashMap<String, Object> files, boolean reuse) {
+		return new ContainerInserter(PARENT, null, files, FreenetURI.EMPTY_CHK_URI, context(reuse), false, false, false, null, ARCHIVE_TYPE.TAR, false, false);
+	}
+
+	public void testUnchangedContainerNotReinserted() throws IOException {
+		InsertedDataCache cache = new InsertedDataCache(InsertedDataCache.DEFAULT_MAX_BYTES);
+		FreenetURI inserted = new FreenetURI(CHK);
+
+		ContainerInserter first = inserter(site("hello"), true);
+		assertNull(lookUp(first, cache));
+		first.onEncoded(inserted);
+		assertEquals(-1, first.onInserted(cache));
+		assertEquals(1, cache.size());
+
+		// The same site again: the archive is identical, so it's found.
+		ContainerInserter again = inserter(site("hello"), true);
+		assertEquals(inserted, lookUp(again, cache));
+
+		ContainerInserter changed = inserter(site("hello world"), true);
+		assertNull(lookUp(changed, cache));
+
+		ContainerInserter notReusing = inserter(site("hello"), false);
+		assertNull(lookUp(notReusing, cache));
+	}
+
+	public void testNotCachedUntilInserted() throws IOException {
+		InsertedDataCache cache = new InsertedDataCache(InsertedDataCache.DEFAULT_MAX_BYTES);
+		ContainerInserter first = inserter(site("hello"), true);
+		assertNull(lookUp(first, cache));
+		// Never got a key: failed or cancelled.
+		assertEquals(-1, first.onInserted(cache));
+		assertEquals(0, cache.size());
+		assertNull(lookUp(inserter(site("hello"), true), cache));
+	}
+
+}
@@ -0,0 +1,125 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata;
+import freenet.keys.FreenetURI;
+import freenet.support.Executor;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+
+public class InsertedDataCacheTest extends TestCase {
+
+	private static final String CHK = "CHK@DTCDUmnkKFlrJi9UlDDVqXlktsIXvAJ~ZTseyx5cAZs,PmA2rLgWZKVyMXxSn-ZihSskPYDTY19uhrMwqDV-~Sk,AAICAAI";
+
+	/** Runs jobs when asked to, so the test can see how many are running at once. */
+	private static class QueuedExecutor implements Executor {
+		final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+		public void execute(Runnable job) {
+			jobs.add(job);
+		}
+
+		public void execute(Runnable job, String jobName) {
+			jobs.add(job);
+		}
+
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			jobs.add(job);
+		}
+
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+	}
+
+	private static Bucket data(String s) throws IOException {
+		return new ArrayBucket(s.getBytes("UTF-8"));
+	}
+
+	public void testKey() throws Exception {
+		String key = InsertedDataCache.key(data("index"), "text/html");
+		assertEquals(key, InsertedDataCache.key(data("index"), "text/html"));
+		assertFalse(key.equals(InsertedDataCache.key(data("index2"), "text/html")));
+		assertFalse(key.equals(InsertedDataCache.key(data("index"), "text/plain")));
+	}
+
+	public void testPutGet() throws Exception {
+		InsertedDataCache cache = new InsertedDataCache(InsertedDataCache.DEFAULT_MAX_BYTES);
+		String key = InsertedDataCache.key(data("index"), "text/html");
+		assertNull(cache.get(key));
+		FreenetURI uri = new FreenetURI(CHK);
+		cache.putURI(key, uri);
+		assertEquals(uri, cache.getURI(key));
+		Metadata m = cache.get(key);
+		assertTrue(m.isSimpleRedirect());
+		cache.remove(key);
+		assertNull(cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+	public void testEviction() throws Exception {
+		FreenetURI uri = new FreenetURI(CHK);
+		int entrySize = InsertedDataCache.serialize(new Metadata(Metadata.SIMPLE_REDIRECT, null, null, uri, null)).length;
+		InsertedDataCache cache = new InsertedDataCache(entrySize * 3);
+		String[] keys = new String[4];
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = InsertedDataCache.key(data("file" + i), "text/html");
+			cache.putURI(keys[i], uri);
+			if(i == 2)
+				cache.get(keys[0]); // Now the most recently used
+		}
+		assertEquals(3, cache.size());
+		assertNotNull(cache.getURI(keys[0]));
+		assertNull(cache.getURI(keys[1]));
+		assertNotNull(cache.getURI(keys[2]));
+		assertNotNull(cache.getURI(keys[3]));
+	}
+
+	public void testHash() throws Exception {
+		final InsertedDataCache cache = new InsertedDataCache(InsertedDataCache.DEFAULT_MAX_BYTES);
+		final String inserted = InsertedDataCache.key(data("file0"), "text/html");
+		cache.putURI(inserted, new FreenetURI(CHK));
+		QueuedExecutor executor = new QueuedExecutor();
+		final ArrayList<String> hits = new ArrayList<String>();
+		final ArrayList<String> misses = new ArrayList<String>();
+		int files = Runtime.getRuntime().availableProcessors() + 3;
+		for(int i = 0; i < files; i++) {
+			cache.hash(data("file" + i), "text/html", executor, new InsertedDataCache.HashCallback() {
+
+				public void onHashed(String key, Metadata cached) {
+					if(cached != null)
+						hits.add(key);
+					else
+						misses.add(key);
+				}
+
+				public void onHashFailed(IOException e) {
+					fail(e.toString());
+				}
+
+			});
+		}
+		// One hasher per processor, each of which works through the files waiting.
+		assertEquals(Runtime.getRuntime().availableProcessors(), executor.jobs.size());
+		for(Runnable job : executor.jobs)
+			job.run();
+		assertEquals(1, hits.size());
+		assertEquals(inserted, hits.get(0));
+		assertEquals(files - 1, misses.size());
+	}
+}
@@ -0,0 +1,119 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+public class PersistentCooldownQueueTest extends TestCase {
+
+	private static final long COOLDOWN = 30*60*1000;
+
+	private static Key key(int i) {
+		byte[] routingKey = new byte[32];
+		routingKey[0] = (byte) i;
+		return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	/** What the scheduler has on startup, before rebuild(). */
+	private static PersistentCooldownQueue startup() {
+		PersistentCooldownQueue queue = new PersistentCooldownQueue();
+		queue.setCooldownTime(COOLDOWN);
+		return queue;
+	}
+
+	private static List<Key> wake(PersistentCooldownQueue queue, long now, int maxCount) {
+		Object ret = queue.removeKeyBefore(now, 0, null, maxCount);
+		assertTrue(String.valueOf(ret), ret instanceof Key[]);
+		return Arrays.asList((Key[]) ret);
+	}
+
+	public void testRestart() {
+		PersistentCooldownQueue queue = startup();
+		// The requests store the times add() returned.
+		long first = queue.add(key(1), null, null);
+		long second = queue.add(key(2), null, null);
+		assertEquals(2, queue.size(null));
+
+		// Restart: the index is rebuilt from the times the requests stored.
+		queue = startup();
+		assertEquals(0, queue.size(null));
+		queue.restore(key(1), first);
+		queue.restore(key(2), second);
+		long now = System.currentTimeMillis();
+		// Came out of cooldown while the node was shut down.
+		queue.restore(key(3), now - 60*1000);
+		queue.restore(key(4), now - 1000);
+		assertEquals(4, queue.size(null));
+
+		List<Key> woken = wake(queue, now, 10);
+		assertEquals(2, woken.size());
+		assertTrue(woken.contains(key(3)));
+		assertTrue(woken.contains(key(4)));
+		assertEquals(2, queue.size(null));
+
+		// Nothing else is due yet.
+		assertNull(queue.removeKeyBefore(now, 1000, null, 10));
+		Object next = queue.removeKeyBefore(now, COOLDOWN + 1000, null, 10);
+		assertTrue(next instanceof Long);
+		assertTrue(((Long) next).longValue() >= first);
+
+		// A request which finished while its key was cooling down removes it.
+		assertTrue(queue.removeKey(key(1), null, first, null));
+		assertFalse(queue.removeKey(key(1), null, first, null));
+		assertEquals(1, queue.size(null));
+		woken = wake(queue, second + 1000, 10);
+		assertEquals(1, woken.size());
+		assertEquals(key(2), woken.get(0));
+		assertEquals(0, queue.size(null));
+		assertNull(queue.removeKeyBefore(Long.MAX_VALUE, 0, null, 10));
+
+		assertEquals(2, queue.getWakeups());
+		assertEquals(1.5, queue.getAverageWakeupSize(), 0.0);
+		assertEquals(2, queue.getLargestWakeup());
+	}
+
+	public void testMigrate() {
+		PersistentCooldownQueue queue = startup();
+		long now = System.currentTimeMillis();
+		// Items from an older version, and a key restored from a request.
+		assertTrue(queue.migrate(new PersistentCooldownQueueItem(null, key(1), now - 1000, queue)));
+		assertTrue(queue.migrate(new PersistentCooldownQueueItem(null, key(2), now + 10*1000, queue)));
+		queue.restore(key(3), now - 5000);
+		assertEquals(3, queue.size(null));
+
+		List<Key> woken = wake(queue, now, 10);
+		assertEquals(2, woken.size());
+		assertTrue(woken.contains(key(1)));
+		assertTrue(woken.contains(key(3)));
+		// The migrated key can be removed with the time the request stored.
+		assertTrue(queue.removeKey(key(2), null, now + 10*1000, null));
+		assertEquals(0, queue.size(null));
+	}
+
+	public void testMaxCount() {
+		PersistentCooldownQueue queue = startup();
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < 5; i++)
+			queue.restore(key(i), now - 1000);
+		queue.restore(key(5), now - 2000);
+		assertEquals(6, queue.size(null));
+
+		// The earliest first, and no more than asked for.
+		List<Key> woken = wake(queue, now, 2);
+		assertEquals(2, woken.size());
+		assertTrue(woken.contains(key(5)));
+		assertEquals(4, queue.size(null));
+		assertEquals(4, wake(queue, now, 10).size());
+		assertEquals(0, queue.size(null));
+		assertEquals(4, queue.getLargestWakeup());
+		assertEquals(3.0, queue.getAverageWakeupSize(), 0.0);
+	}
+
+}
@@ -0,0 +1,140 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.client.Metadata;
+import freenet.keys.ClientCHK;
+import freenet.keys.Key;
+
+public class SplitFileFetcherSegmentTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final int BLOCK_SIZE = 32768;
+	private static final int SEGMENT_DATA_BLOCKS = 128;
+	private static final int SEGMENT_CHECK_BLOCKS = 128;
+
+	private static ClientCHK key(Random random, byte[] routingKey) {
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		return new ClientCHK(routingKey, cryptoKey, false, Key.ALGO_AES_PCFB_256_SHA256, (short)-1);
+	}
+
+	private static ClientCHK randomKey(Random random) {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		return key(random, routingKey);
+	}
+
+	private static ClientCHK[] randomKeys(Random random, int count) {
+		ClientCHK[] keys = new ClientCHK[count];
+		for(int i=0;i<count;i++)
+			keys[i] = randomKey(random);
+		return keys;
+	}
+
+	/** A transient segment, as created for a splitfile being fetched. */
+	private static SplitFileFetcherSegment segment(ClientCHK[] dataKeys, ClientCHK[] checkKeys) throws Exception {
+		return new SplitFileFetcherSegment(Metadata.SPLITFILE_ONION_STANDARD, dataKeys, checkKeys, null, false, null, null, BLOCK_SIZE, 0, null, 0, false);
+	}
+
+	private static Key nodeKey(ClientCHK key) {
+		return key.getNodeKey(true);
+	}
+
+	public void testFindAll() throws Exception {
+		Random random = new Random(1);
+		ClientCHK[] dataKeys = randomKeys(random, SEGMENT_DATA_BLOCKS);
+		ClientCHK[] checkKeys = randomKeys(random, SEGMENT_CHECK_BLOCKS);
+		SplitFileFetcherSegment segment = segment(dataKeys, checkKeys);
+		for(int i=0;i<dataKeys.length;i++) {
+			assertEquals(i, segment.getBlockNumber(nodeKey(dataKeys[i]), null));
+			assertEquals(-1, segment.findBlock(nodeKey(dataKeys[i]), i, null));
+		}
+		// Check blocks are numbered after the data blocks.
+		for(int i=0;i<checkKeys.length;i++) {
+			assertEquals(dataKeys.length + i, segment.getBlockNumber(nodeKey(checkKeys[i]), null));
+			assertEquals(-1, segment.findBlock(nodeKey(checkKeys[i]), dataKeys.length + i, null));
+		}
+		for(int i=0;i<1000;i++)
+			assertEquals(-1, segment.getBlockNumber(nodeKey(randomKey(random)), null));
+	}
+
+	public void testDuplicatesAndPrefixCollisions() throws Exception {
+		Random random = new Random(2);
+		ClientCHK[] dataKeys = randomKeys(random, 10);
+		ClientCHK[] checkKeys = randomKeys(random, 10);
+		// The same block twice, as a data block and as a check block.
+		checkKeys[5] = key(random, dataKeys[3].getRoutingKey().clone());
+		// A different key with the same routing key prefix.
+		byte[] routingKey = dataKeys[5].getRoutingKey().clone();
+		routingKey[31] ^= 1;
+		dataKeys[8] = key(random, routingKey);
+		SplitFileFetcherSegment segment = segment(dataKeys, checkKeys);
+
+		Key duplicate = nodeKey(dataKeys[3]);
+		assertEquals(3, segment.findBlock(duplicate, -1, null));
+		assertEquals(15, segment.findBlock(duplicate, 3, null));
+		assertEquals(-1, segment.findBlock(duplicate, 15, null));
+		assertEquals(5, segment.findBlock(nodeKey(dataKeys[5]), -1, null));
+		assertEquals(-1, segment.findBlock(nodeKey(dataKeys[5]), 5, null));
+		assertEquals(8, segment.findBlock(nodeKey(dataKeys[8]), -1, null));
+	}
+
+	public void testCooldownWakeupByKey() throws Exception {
+		Random random = new Random(3);
+		ClientCHK[] dataKeys = randomKeys(random, 10);
+		ClientCHK[] checkKeys = randomKeys(random, 10);
+		checkKeys[5] = key(random, dataKeys[3].getRoutingKey().clone());
+		SplitFileFetcherSegment segment = segment(dataKeys, checkKeys);
+
+		// Not in cooldown yet.
+		assertEquals(0, segment.getCooldownWakeupByKey(nodeKey(dataKeys[2]), null));
+		assertEquals(0, segment.getCooldownWakeupByKey(nodeKey(checkKeys[2]), null));
+		// Not in the segment.
+		assertEquals(-1, segment.getCooldownWakeupByKey(nodeKey(randomKey(random)), null));
+
+		segment.resetCooldownTimes(new Integer[] { 2, 12 });
+		assertEquals(-1, segment.getCooldownWakeupByKey(nodeKey(dataKeys[2]), null));
+		assertEquals(-1, segment.getCooldownWakeupByKey(nodeKey(checkKeys[2]), null));
+		assertEquals(0, segment.getCooldownWakeupByKey(nodeKey(dataKeys[1]), null));
+		assertEquals(0, segment.getCooldownWakeupByKey(nodeKey(checkKeys[1]), null));
+
+		// A duplicate block's wakeup is that of the first copy.
+		segment.resetCooldownTimes(new Integer[] { 15 });
+		assertEquals(0, segment.getCooldownWakeupByKey(nodeKey(dataKeys[3]), null));
+		segment.resetCooldownTimes(new Integer[] { 3 });
+		assertEquals(-1, segment.getCooldownWakeupByKey(nodeKey(dataKeys[3]), null));
+	}
+
+	/**
+	 * Look up every block of a 4GB splitfile as it arrives, as onGotKey() does.
+	 */
+	public void testBenchmark() throws Exception {
+		if(!BENCHMARK) return;
+		long fileSize = 4L * 1024 * 1024 * 1024;
+		int segments = (int) (fileSize / BLOCK_SIZE / SEGMENT_DATA_BLOCKS);
+		Random random = new Random(4);
+		ClientCHK[][] segmentKeys = new ClientCHK[segments][];
+		SplitFileFetcherSegment[] segs = new SplitFileFetcherSegment[segments];
+		for(int i=0;i<segments;i++) {
+			segmentKeys[i] = randomKeys(random, SEGMENT_DATA_BLOCKS);
+			segs[i] = segment(segmentKeys[i], randomKeys(random, SEGMENT_CHECK_BLOCKS));
+		}
+		int lookups = segments * SEGMENT_DATA_BLOCKS;
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			long found = 0;
+			for(int i=0;i<segments;i++) {
+				for(int j=0;j<SEGMENT_DATA_BLOCKS;j++)
+					found += segs[i].getBlockNumber(nodeKey(segmentKeys[i][j]), null) - j;
+			}
+			long end = System.nanoTime();
+			assertEquals(0, found);
+			System.out.println(segments+" segments, "+lookups+" lookups in "+((end - start) / 1000000)+"ms");
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SplitFileSegmentKeyIndexTest extends TestCase {
+
+	private static byte[][] randomKeys(Random random, int count) {
+		byte[][] keys = new byte[count][];
+		for(int i=0;i<count;i++) {
+			keys[i] = new byte[32];
+			random.nextBytes(keys[i]);
+		}
+		return keys;
+	}
+
+	private static SplitFileSegmentKeyIndex buildIndex(byte[][] keys) {
+		SplitFileSegmentKeyIndex index = new SplitFileSegmentKeyIndex(keys.length);
+		for(int i=0;i<keys.length;i++)
+			index.add(keys[i], i);
+		return index;
+	}
+
+	public void testFindAll() {
+		Random random = new Random(1);
+		byte[][] keys = randomKeys(random, 256);
+		SplitFileSegmentKeyIndex index = buildIndex(keys);
+		for(int i=0;i<keys.length;i++) {
+			// Other keys can share the prefix, but the block itself is always a candidate.
+			int candidate = -1;
+			while((candidate = index.find(keys[i], candidate)) >= 0 && candidate < i);
+			assertEquals(i, candidate);
+		}
+	}
+
+	public void testCandidatesInBlockOrder() {
+		Random random = new Random(2);
+		byte[][] keys = randomKeys(random, 20);
+		// Duplicate block
+		keys[15] = keys[3].clone();
+		// Different key, same prefix
+		keys[10] = keys[3].clone();
+		keys[10][31] ^= 1;
+		SplitFileSegmentKeyIndex index = buildIndex(keys);
+		// The index only looks at the prefix, the caller checks the whole key.
+		assertEquals(3, index.find(keys[3], -1));
+		assertEquals(10, index.find(keys[3], 3));
+		assertEquals(15, index.find(keys[3], 10));
+		assertEquals(-1, index.find(keys[3], 15));
+		assertEquals(15, index.find(keys[10], 12));
+	}
+
+	public void testPrefixOnly() {
+		byte[] key = new byte[32];
+		byte[] other = new byte[32];
+		other[0] = 1;
+		SplitFileSegmentKeyIndex index = new SplitFileSegmentKeyIndex(1);
+		index.add(key, 0);
+		assertEquals(0, index.find(key, -1));
+		assertEquals(-1, index.find(other, -1));
+		other[0] = 0;
+		other[4] = 1;
+		assertEquals(0, index.find(other, -1));
+	}
+
+}
@@ -0,0 +1,318 @@
+package freenet.client.async;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.FetchException;
+import freenet.support.Executor;
+
+public class SplitFileStreamerTest extends TestCase {
+
+	private static final int SEGMENT_LENGTH = 1000;
+	private static final long TIMEOUT = 10*1000;
+
+	/** A transient segment which is decoded or fails when the test says so. */
+	private static class TestSegment implements SplitFileStreamer.Segment {
+
+		private final byte[] data;
+		private boolean finished;
+		private FetchException failure;
+		private boolean freed;
+
+		TestSegment(int seed) {
+			data = new byte[SEGMENT_LENGTH];
+			for(int i=0;i<data.length;i++)
+				data[i] = (byte) (seed * 31 + i);
+		}
+
+		synchronized void decoded() {
+			finished = true;
+		}
+
+		synchronized void failed() {
+			failure = new FetchException(FetchException.DATA_NOT_FOUND);
+			finished = true;
+		}
+
+		synchronized boolean isFreed() {
+			return freed;
+		}
+
+		public synchronized boolean succeeded() {
+			return finished;
+		}
+
+		public synchronized void throwError(ObjectContainer container) throws FetchException {
+			if(failure != null) throw failure;
+		}
+
+		public long decodedLength(ObjectContainer container) {
+			return data.length;
+		}
+
+		public InputStream getDecodedDataInputStream() {
+			return new ByteArrayInputStream(data);
+		}
+
+		public synchronized void freeDecodedData(ObjectContainer container) {
+			freed = true;
+		}
+
+	}
+
+	/** Records what the streamer writes and reports. */
+	private static class TestTarget implements SplitFileStreamer.Target {
+
+		private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private long startLength = -2;
+		private long successLength = -1;
+		private FetchException failure;
+		/** Writes block until this is set */
+		private boolean writable = true;
+		private boolean disconnected;
+
+		public synchronized OutputStream startStreaming(long length) {
+			startLength = length;
+			return new OutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte) b }, 0, 1);
+				}
+
+				@Override
+				public void write(byte[] buf, int offset, int length) throws IOException {
+					synchronized(TestTarget.this) {
+						while(!writable && !disconnected) {
+							try {
+								TestTarget.this.wait();
+							} catch (InterruptedException e) {
+								// Ignore
+							}
+						}
+						if(disconnected) throw new IOException("Connection closed");
+						written.write(buf, offset, length);
+						TestTarget.this.notifyAll();
+					}
+				}
+
+			};
+		}
+
+		public synchronized void onStreamSuccess(long length) {
+			successLength = length;
+		}
+
+		public synchronized void onStreamFailure(FetchException e) {
+			failure = e;
+		}
+
+		synchronized void setWritable(boolean writable) {
+			this.writable = writable;
+			notifyAll();
+		}
+
+		synchronized void disconnect() {
+			disconnected = true;
+			notifyAll();
+		}
+
+		/** Wait until at least this much has been written. */
+		synchronized void waitForWritten(int length) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(written.size() < length) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out with "+written.size()+" of "+length+" bytes written", wait > 0);
+				wait(wait);
+			}
+		}
+
+		synchronized byte[] getWritten() {
+			return written.toByteArray();
+		}
+
+	}
+
+	/** Runs each job on a new thread, which the test can wait for. */
+	private static class TestExecutor implements Executor {
+
+		private final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		public void execute(Runnable job) {
+			execute(job, "Test job");
+		}
+
+		public synchronized void execute(Runnable job, String jobName) {
+			Thread t = new Thread(job, jobName);
+			threads.add(t);
+			t.start();
+		}
+
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			execute(job, jobName);
+		}
+
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+		synchronized int started() {
+			return threads.size();
+		}
+
+		void join() throws InterruptedException {
+			Thread[] t;
+			synchronized(this) {
+				t = threads.toArray(new Thread[threads.size()]);
+			}
+			for(Thread thread : t) {
+				thread.join(TIMEOUT);
+				assertFalse(thread.isAlive());
+			}
+		}
+
+	}
+
+	private TestSegment[] segments;
+	private TestTarget target;
+	private TestExecutor executor;
+
+	private SplitFileStreamer streamer(int count, long dataLength) {
+		segments = new TestSegment[count];
+		for(int i=0;i<count;i++)
+			segments[i] = new TestSegment(i);
+		target = new TestTarget();
+		executor = new TestExecutor();
+		return new SplitFileStreamer(segments, target, null, dataLength, dataLength, Long.MAX_VALUE, executor);
+	}
+
+	/** The data of the first <code>count</code> segments, truncated to <code>length</code>. */
+	private byte[] expected(int count, long length) {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for(int i=0;i<count;i++)
+			baos.write(segments[i].data, 0, segments[i].data.length);
+		byte[] data = baos.toByteArray();
+		if(data.length > length) {
+			byte[] truncated = new byte[(int) length];
+			System.arraycopy(data, 0, truncated, 0, truncated.length);
+			data = truncated;
+		}
+		return data;
+	}
+
+	private static void assertEquals(byte[] expected, byte[] actual) {
+		assertEquals(expected.length, actual.length);
+		for(int i=0;i<expected.length;i++)
+			assertEquals("Byte "+i, expected[i], actual[i]);
+	}
+
+	private void finish(int segment) {
+		segments[segment].decoded();
+		streamer.segmentFinished();
+	}
+
+	private SplitFileStreamer streamer;
+
+	public void testSegmentOrder() throws Exception {
+		// The last segment is padded.
+		long length = 3 * SEGMENT_LENGTH - 123;
+		streamer = streamer(3, length);
+		// Nothing can be sent until the first segment is ready.
+		finish(1);
+		assertEquals(0, executor.started());
+		finish(0);
+		target.waitForWritten(2 * SEGMENT_LENGTH);
+		// Each segment is freed once it has been written.
+		assertTrue(segments[0].isFreed());
+		assertFalse(segments[2].isFreed());
+		assertEquals(expected(2, length), target.getWritten());
+		finish(2);
+		executor.join();
+		assertEquals(1, executor.started());
+		assertEquals(expected(3, length), target.getWritten());
+		assertEquals(length, target.startLength);
+		assertEquals(length, target.successLength);
+		assertNull(target.failure);
+		for(TestSegment segment : segments)
+			assertTrue(segment.isFreed());
+		// The streamer has reported the outcome.
+		assertFalse(streamer.claimCompletion());
+	}
+
+	public void testSegmentFailsPartway() throws Exception {
+		streamer = streamer(3, 3 * SEGMENT_LENGTH);
+		finish(0);
+		target.waitForWritten(SEGMENT_LENGTH);
+		segments[1].failed();
+		streamer.segmentFinished();
+		executor.join();
+		assertEquals(expected(1, SEGMENT_LENGTH), target.getWritten());
+		// The fetcher reports the failure, not the streamer.
+		assertEquals(-1, target.successLength);
+		assertNull(target.failure);
+		assertTrue(segments[0].isFreed());
+		assertTrue(streamer.claimCompletion());
+	}
+
+	public void testAbort() throws Exception {
+		streamer = streamer(3, 3 * SEGMENT_LENGTH);
+		finish(0);
+		target.waitForWritten(SEGMENT_LENGTH);
+		// The fetch failed somewhere else.
+		streamer.abort();
+		executor.join();
+		assertEquals(-1, target.successLength);
+		assertNull(target.failure);
+		assertTrue(streamer.claimCompletion());
+		// Nothing is started after an abort.
+		streamer = streamer(3, 3 * SEGMENT_LENGTH);
+		streamer.abort();
+		finish(0);
+		assertEquals(0, executor.started());
+	}
+
+	public void testClientDisconnect() throws Exception {
+		streamer = streamer(2, 2 * SEGMENT_LENGTH);
+		target.setWritable(false);
+		finish(0);
+		finish(1);
+		target.disconnect();
+		executor.join();
+		assertEquals(-1, target.successLength);
+		assertNotNull(target.failure);
+		assertEquals(FetchException.BUCKET_ERROR, target.failure.mode);
+		// The segment being written is still freed.
+		assertTrue(segments[0].isFreed());
+		assertFalse(streamer.claimCompletion());
+	}
+
+	public void testSlowClient() throws Exception {
+		streamer = streamer(4, 4 * SEGMENT_LENGTH);
+		target.setWritable(false);
+		// The client isn't reading, but the decoders aren't held up.
+		for(int i=0;i<segments.length;i++)
+			finish(i);
+		assertEquals(0, target.getWritten().length);
+		target.setWritable(true);
+		executor.join();
+		assertEquals(expected(4, 4 * SEGMENT_LENGTH), target.getWritten());
+		assertEquals(4 * SEGMENT_LENGTH, target.successLength);
+	}
+
+}
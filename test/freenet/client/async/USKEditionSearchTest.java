@@ -0,0 +1,89 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import junit.framework.TestCase;
+
+public class USKEditionSearchTest extends TestCase {
+
+	/** Run the search against a USK whose latest edition is latest, one probe at a
+	 * time, the way the fetcher does when each probe finishes.
+	 * @return The number of probes it took to get within the window. */
+	private static int search(USKEditionSearch search, long known, long latest, int window) {
+		int probes = 0;
+		long found = known;
+		while(true) {
+			long probe = search.getProbe(found, 0);
+			if(probe == -1) break;
+			probes++;
+			if(probe <= latest) {
+				found = probe;
+				search.onFound(probe);
+			} else
+				search.onFailed(probe);
+			assertTrue("Too many probes", probes < 100);
+		}
+		assertTrue(found <= latest);
+		assertTrue("Stopped at "+found+" looking for "+latest, latest - found <= window);
+		return probes;
+	}
+
+	public void testCatchUp() {
+		int window = 3;
+		for(long latest : new long[] { 0, 2, 5, 17, 100, 1000, 12345, 1000000 }) {
+			int probes = search(new USKEditionSearch(window), 0, latest, window);
+			// Logarithmic rather than linear in the distance.
+			assertTrue(latest+" took "+probes+" probes", probes <= 2 * (64 - Long.numberOfLeadingZeros(latest + 1)) + 2);
+		}
+	}
+
+	public void testFromKnownEdition() {
+		int probes = search(new USKEditionSearch(3), 5000, 5600, 3);
+		assertTrue(probes < 25);
+	}
+
+	public void testLookAheadDoubles() {
+		USKEditionSearch search = new USKEditionSearch(5);
+		assertEquals(110, search.getProbe(100, 0));
+		assertEquals(120, search.getProbe(100, 1));
+		assertEquals(140, search.getProbe(100, 2));
+		search.onFound(110);
+		assertEquals(130, search.getProbe(110, 0));
+	}
+
+	public void testBinarySearch() {
+		USKEditionSearch search = new USKEditionSearch(5);
+		search.onFound(100);
+		search.onFailed(200);
+		assertEquals(150, search.getProbe(100, 0));
+		// Only one probe at a time once we are bisecting.
+		assertEquals(-1, search.getProbe(100, 1));
+		search.onFailed(150);
+		assertEquals(125, search.getProbe(100, 0));
+		search.onFound(125);
+		assertEquals(137, search.getProbe(125, 0));
+	}
+
+	public void testWrongDNF() {
+		USKEditionSearch search = new USKEditionSearch(5);
+		search.onFound(100);
+		search.onFailed(104);
+		// Close enough for the sequential probes.
+		assertEquals(-1, search.getProbe(100, 0));
+		// Found something beyond the DNF, e.g. from a date hint: look ahead again.
+		search.onFound(500);
+		assertTrue(search.getProbe(500, 0) > 500);
+		assertTrue(search.getProbe(500, 1) > search.getProbe(500, 0));
+	}
+
+	public void testReset() {
+		USKEditionSearch search = new USKEditionSearch(5);
+		search.onFound(100);
+		search.onFound(200);
+		search.onFailed(300);
+		search.reset();
+		assertEquals(310, search.getProbe(300, 0));
+	}
+
+}
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Date;
+
+import junit.framework.TestCase;
+import freenet.client.FetchException;
+import freenet.support.HTMLNode;
+import freenet.support.MultiValueTable;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+
+public class FProxyStreamingFetchTest extends TestCase {
+
+	private static final String ETAG = "\"0123\"";
+
+	/** Records the reply, as a browser would see it. */
+	private static class TestContext implements ToadletContext {
+
+		int code;
+		MultiValueTable<String, String> headers;
+		String mimeType;
+		long length = -2;
+		Date mTime;
+		final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		boolean disconnected;
+		/** The browser has gone away */
+		boolean closed;
+
+		public void sendReplyHeaders(int code, String desc, MultiValueTable<String, String> mvt, String mimeType, long length, Date mTime) throws ToadletContextClosedException {
+			if(closed) throw new ToadletContextClosedException();
+			assertEquals("Sent headers twice", 0, this.code);
+			this.code = code;
+			this.headers = mvt;
+			this.mimeType = mimeType;
+			this.length = length;
+			this.mTime = mTime;
+		}
+
+		public void sendReplyHeaders(int code, String desc, MultiValueTable<String, String> mvt, String mimeType, long length) throws ToadletContextClosedException {
+			sendReplyHeaders(code, desc, mvt, mimeType, length, null);
+		}
+
+		public OutputStream sendChunkedReplyHeaders(int code, String desc, MultiValueTable<String, String> mvt, String mimeType) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void writeData(byte[] buf, int offset, int length) throws ToadletContextClosedException {
+			if(closed) throw new ToadletContextClosedException();
+			assertTrue("Data before headers", code != 0);
+			data.write(buf, offset, length);
+		}
+
+		public void writeData(byte[] buf) throws ToadletContextClosedException {
+			writeData(buf, 0, buf.length);
+		}
+
+		public void writeData(Bucket data) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void writeData(Bucket data, long offset, long length) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void forceDisconnect() {
+			disconnected = true;
+		}
+
+		public MultiValueTable<String, String> getHeaders() {
+			return new MultiValueTable<String, String>();
+		}
+
+		public PageMaker getPageMaker() {
+			return null;
+		}
+
+		public BucketFactory getBucketFactory() {
+			return null;
+		}
+
+		public ReceivedCookie getCookie(URI domain, URI path, String name) {
+			return null;
+		}
+
+		public void setCookie(Cookie newCookie) {
+			// Ignore
+		}
+
+		public HTMLNode addFormChild(HTMLNode parentNode, String target, String id) {
+			return null;
+		}
+
+		public boolean isAllowedFullAccess() {
+			return true;
+		}
+
+		public boolean doRobots() {
+			return false;
+		}
+
+		public ToadletContainer getContainer() {
+			return null;
+		}
+
+		public boolean disableProgressPage() {
+			return false;
+		}
+
+		public Toadlet activeToadlet() {
+			return null;
+		}
+
+		public String getUniqueId() {
+			return "test";
+		}
+
+		public URI getUri() {
+			return null;
+		}
+
+	}
+
+	private TestContext ctx;
+
+	private FProxyStreamingFetch fetch(long[] range) {
+		ctx = new TestContext();
+		return new FProxyStreamingFetch(ctx, false, "test.ogg", range, ETAG);
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) i;
+		return data;
+	}
+
+	/** Write the data in uneven pieces, as the splitfile streamer would. */
+	private static void stream(OutputStream os, byte[] data) throws IOException {
+		int offset = 0;
+		int chunk = 1;
+		while(offset < data.length) {
+			int length = Math.min(chunk, data.length - offset);
+			os.write(data, offset, length);
+			offset += length;
+			chunk = chunk * 3 + 1;
+		}
+	}
+
+	private void assertData(byte[] data, int first, int last) {
+		byte[] sent = ctx.data.toByteArray();
+		assertEquals(last - first + 1, sent.length);
+		for(int i=0;i<sent.length;i++)
+			assertEquals(data[first + i], sent[i]);
+	}
+
+	public void testWholeFile() throws Exception {
+		FProxyStreamingFetch fetch = fetch(null);
+		byte[] data = data(1000);
+		OutputStream os = fetch.onStreamStarting("video/ogg", data.length, null);
+		stream(os, data);
+		fetch.onStreamFinished(data.length, null);
+		assertNull(fetch.waitForCompletion());
+		assertEquals(200, ctx.code);
+		assertEquals("video/ogg", ctx.mimeType);
+		assertEquals(data.length, ctx.length);
+		assertEquals("bytes", ctx.headers.get("Accept-Ranges"));
+		assertEquals(ETAG, ctx.headers.get("ETag"));
+		assertEquals(FProxyToadlet.IMMUTABLE_MTIME, ctx.mTime);
+		assertData(data, 0, data.length - 1);
+		assertFalse(ctx.disconnected);
+	}
+
+	public void testRange() throws Exception {
+		FProxyStreamingFetch fetch = fetch(new long[] { 100, 599 });
+		byte[] data = data(1000);
+		stream(fetch.onStreamStarting("video/ogg", data.length, null), data);
+		fetch.onStreamFinished(data.length, null);
+		assertNull(fetch.waitForCompletion());
+		assertEquals(206, ctx.code);
+		assertEquals(500, ctx.length);
+		assertEquals("bytes 100-599/1000", ctx.headers.get("Content-Range"));
+		assertData(data, 100, 599);
+	}
+
+	public void testSuffixRange() throws Exception {
+		FProxyStreamingFetch fetch = fetch(new long[] { -1, 10 });
+		byte[] data = data(1000);
+		stream(fetch.onStreamStarting("video/ogg", data.length, null), data);
+		assertEquals(206, ctx.code);
+		assertEquals("bytes 990-999/1000", ctx.headers.get("Content-Range"));
+		assertData(data, 990, 999);
+	}
+
+	public void testUnsatisfiableRange() throws Exception {
+		FProxyStreamingFetch fetch = fetch(new long[] { 1000, -1 });
+		try {
+			fetch.onStreamStarting("video/ogg", 1000, null);
+			fail("Streamed an unsatisfiable range");
+		} catch (IOException e) {
+			// Expected, the fetch is cancelled.
+		}
+		assertEquals(416, ctx.code);
+		assertEquals("bytes */1000", ctx.headers.get("Content-Range"));
+		assertEquals(0, ctx.data.size());
+	}
+
+	public void testUnknownLength() throws Exception {
+		// Compressed data: the range is ignored, and the end of the data is
+		// marked by closing the connection.
+		FProxyStreamingFetch fetch = fetch(new long[] { 100, 199 });
+		byte[] data = data(1000);
+		stream(fetch.onStreamStarting("video/ogg", -1, null), data);
+		assertEquals(200, ctx.code);
+		assertEquals(-1, ctx.length);
+		assertTrue(ctx.disconnected);
+		assertData(data, 0, data.length - 1);
+	}
+
+	public void testClientDisconnect() throws Exception {
+		FProxyStreamingFetch fetch = fetch(null);
+		byte[] data = data(1000);
+		OutputStream os = fetch.onStreamStarting("video/ogg", data.length, null);
+		os.write(data, 0, 100);
+		ctx.closed = true;
+		try {
+			os.write(data, 100, 100);
+			fail("Wrote to a closed connection");
+		} catch (IOException e) {
+			// Expected, the streamer fails the request.
+		}
+		fetch.onFailure(new FetchException(FetchException.BUCKET_ERROR), null, null);
+		// The headers have gone, so there is no error page.
+		assertNull(fetch.waitForCompletion());
+		assertTrue(ctx.disconnected);
+		// Closed before the headers were sent.
+		fetch = fetch(null);
+		ctx.closed = true;
+		try {
+			fetch.onStreamStarting("video/ogg", data.length, null);
+			fail("Streamed to a closed connection");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	public void testFailureBeforeHeaders() throws Exception {
+		FProxyStreamingFetch fetch = fetch(null);
+		fetch.onFailure(new FetchException(FetchException.DATA_NOT_FOUND), null, null);
+		try {
+			fetch.waitForCompletion();
+			fail("Failure not reported");
+		} catch (FetchException e) {
+			// FProxy shows the usual error page.
+			assertEquals(FetchException.DATA_NOT_FOUND, e.mode);
+		}
+		assertEquals(0, ctx.code);
+		assertFalse(ctx.disconnected);
+	}
+
+	public void testFailureAfterHeaders() throws Exception {
+		FProxyStreamingFetch fetch = fetch(null);
+		byte[] data = data(1000);
+		fetch.onStreamStarting("video/ogg", data.length, null).write(data, 0, 500);
+		fetch.onFailure(new FetchException(FetchException.DATA_NOT_FOUND), null, null);
+		// The browser has a truncated reply; closing the connection tells it so.
+		assertNull(fetch.waitForCompletion());
+		assertTrue(ctx.disconnected);
+		assertData(data, 0, 499);
+	}
+
+}
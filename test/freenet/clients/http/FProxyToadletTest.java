@@ -0,0 +1,135 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.net.MalformedURLException;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+
+public class FProxyToadletTest extends TestCase {
+
+	private static final String KEY = "CHK@DGcRb7mKPUZQaNgECKMXLZeucBgZc9gyY2kIRbZYFcQ,ZGAF6Y5XDIVJzRD3kRpZFh6QwZhRlEZDXPe15Xh7dHY,AAIC--8/test.html";
+
+	private static long[] range(long first, long last) {
+		return new long[] { first, last };
+	}
+
+	private static void assertRange(long first, long last, long[] range) {
+		assertNotNull(range);
+		assertEquals(first, range[0]);
+		assertEquals(last, range[1]);
+	}
+
+	public void testParseRanges() throws HTTPRangeException {
+		List<long[]> ranges = FProxyToadlet.parseRanges("bytes=0-99");
+		assertEquals(1, ranges.size());
+		assertRange(0, 99, ranges.get(0));
+
+		// Several ranges, with spaces, an open ended range and a suffix range.
+		ranges = FProxyToadlet.parseRanges("bytes=0-0, 500-, -200 ,100-199");
+		assertEquals(4, ranges.size());
+		assertRange(0, 0, ranges.get(0));
+		assertRange(500, -1, ranges.get(1));
+		assertRange(-1, 200, ranges.get(2));
+		assertRange(100, 199, ranges.get(3));
+
+		// Empty elements are allowed.
+		ranges = FProxyToadlet.parseRanges("bytes=,10-20,");
+		assertEquals(1, ranges.size());
+		assertRange(10, 20, ranges.get(0));
+	}
+
+	public void testParseInvalidRanges() {
+		String[] invalid = new String[] {
+				"items=0-10", "bytes", "bytes=", "bytes=,", "bytes=10-5",
+				"bytes=a-b", "bytes=-", "bytes=5", "bytes=--5"
+		};
+		for(String hdr : invalid) {
+			try {
+				FProxyToadlet.parseRanges(hdr);
+				fail("Parsed " + hdr);
+			} catch (HTTPRangeException e) {
+				// Expected.
+			}
+		}
+	}
+
+	public void testResolveRange() {
+		assertRange(0, 99, FProxyToadlet.resolveRange(range(0, 99), 1000));
+		// Past the end, or open ended: up to the last byte.
+		assertRange(900, 999, FProxyToadlet.resolveRange(range(900, 5000), 1000));
+		assertRange(500, 999, FProxyToadlet.resolveRange(range(500, -1), 1000));
+		assertRange(999, 999, FProxyToadlet.resolveRange(range(999, -1), 1000));
+		// Suffix ranges.
+		assertRange(800, 999, FProxyToadlet.resolveRange(range(-1, 200), 1000));
+		assertRange(0, 999, FProxyToadlet.resolveRange(range(-1, 5000), 1000));
+		assertRange(0, 9, FProxyToadlet.resolveRange(range(-1, 10), 10));
+	}
+
+	public void testUnsatisfiableRange() throws HTTPRangeException {
+		assertNull(FProxyToadlet.resolveRange(range(1000, 1999), 1000));
+		assertNull(FProxyToadlet.resolveRange(range(1000, -1), 1000));
+		assertNull(FProxyToadlet.resolveRange(range(-1, 0), 1000));
+		// Nothing can be sent from empty data.
+		assertNull(FProxyToadlet.resolveRange(range(0, -1), 0));
+		assertNull(FProxyToadlet.resolveRange(range(-1, 10), 0));
+
+		// Only some of the ranges might be satisfiable.
+		int satisfiable = 0;
+		for(long[] r : FProxyToadlet.parseRanges("bytes=2000-,-0,0-1"))
+			if(FProxyToadlet.resolveRange(r, 1000) != null) satisfiable++;
+		assertEquals(1, satisfiable);
+	}
+
+	public void testMakeETag() throws MalformedURLException {
+		FreenetURI key = new FreenetURI(KEY);
+		String etag = FProxyToadlet.makeETag(key, null, null, true, false, false);
+		assertTrue(etag.startsWith("\""));
+		assertTrue(etag.endsWith("\""));
+		// The same for the same request, so it can be checked before fetching.
+		assertEquals(etag, FProxyToadlet.makeETag(new FreenetURI(KEY), null, null, true, false, false));
+
+		// Anything which changes the bytes sent changes the ETag.
+		String[] others = new String[] {
+				FProxyToadlet.makeETag(key.setMetaString(new String[] { "other.html" }), null, null, true, false, false),
+				FProxyToadlet.makeETag(key, "text/plain", null, true, false, false),
+				FProxyToadlet.makeETag(key, null, "UTF-8", true, false, false),
+				FProxyToadlet.makeETag(key, null, null, false, false, false),
+				FProxyToadlet.makeETag(key, null, null, true, true, false),
+				FProxyToadlet.makeETag(key, null, null, true, false, true)
+		};
+		for(int i = 0; i < others.length; i++) {
+			assertFalse(etag.equals(others[i]));
+			for(int j = i + 1; j < others.length; j++)
+				assertFalse(others[i].equals(others[j]));
+		}
+	}
+
+	public void testGzipETag() {
+		assertEquals("\"abc-gzip\"", ToadletContextImpl.gzipETag("\"abc\""));
+		assertEquals("W/\"abc-gzip\"", ToadletContextImpl.gzipETag("W/\"abc\""));
+		String etag = "\"0123\"";
+		assertFalse(etag.equals(ToadletContextImpl.gzipETag(etag)));
+	}
+
+	public void testNotModified() {
+		String etag = "\"0123\"";
+		String gzipped = ToadletContextImpl.gzipETag(etag);
+		// No If-None-Match: fetch it.
+		assertNull(FProxyToadlet.matchETag(null, etag));
+		assertNull(FProxyToadlet.matchETag("\"4567\"", etag));
+		// A weak validator doesn't match a strong one.
+		assertNull(FProxyToadlet.matchETag("W/\"0123\"", etag));
+
+		// 304, with the ETag of the encoding the browser has.
+		assertEquals(etag, FProxyToadlet.matchETag(etag, etag));
+		assertEquals(etag, FProxyToadlet.matchETag("*", etag));
+		assertEquals(etag, FProxyToadlet.matchETag("\"4567\", " + etag + " ,\"89ab\"", etag));
+		assertEquals(gzipped, FProxyToadlet.matchETag(gzipped, etag));
+		assertEquals(gzipped, FProxyToadlet.matchETag("\"4567\"," + gzipped, etag));
+	}
+
+}
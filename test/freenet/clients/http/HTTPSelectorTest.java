@@ -0,0 +1,300 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+
+public class HTTPSelectorTest extends TestCase {
+
+	private static final long TIMEOUT = 10*1000;
+
+	/** Keeps the jobs it is given, and only runs them when asked. */
+	private static class TestExecutor implements Executor {
+
+		private final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+		public void execute(Runnable job) {
+			execute(job, "Test job");
+		}
+
+		public synchronized void execute(Runnable job, String jobName) {
+			jobs.add(job);
+			notifyAll();
+		}
+
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			execute(job, jobName);
+		}
+
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+		synchronized int size() {
+			return jobs.size();
+		}
+
+		synchronized void waitForJobs(int count) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(jobs.size() < count) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out waiting for "+count+" jobs", wait > 0);
+				wait(wait);
+			}
+		}
+
+		void run(int index) {
+			Runnable job;
+			synchronized(this) {
+				job = jobs.get(index);
+			}
+			job.run();
+		}
+
+	}
+
+	/** Counts how many times it has run. */
+	private static class CountingJob implements Runnable {
+
+		private int runs;
+
+		public synchronized void run() {
+			runs++;
+		}
+
+		synchronized int runs() {
+			return runs;
+		}
+
+	}
+
+	private ServerSocketChannel server;
+	private TestExecutor executor;
+	private HTTPSelector selector;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+		executor = new TestExecutor();
+		selector = new HTTPSelector(null, null, executor, 2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		selector.stop();
+		server.close();
+	}
+
+	/** @return The client's socket, and (second) the node's end of it. */
+	private Socket[] connect() throws IOException {
+		Socket client = new Socket(server.socket().getInetAddress(), server.socket().getLocalPort());
+		SocketChannel accepted = server.accept();
+		return new Socket[] { client, accepted.socket() };
+	}
+
+	private static void send(Socket sock, String s) throws IOException {
+		OutputStream os = sock.getOutputStream();
+		os.write(s.getBytes("ISO-8859-1"));
+		os.flush();
+	}
+
+	private static void waitForClose(SocketChannel channel) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(channel.isOpen()) {
+			assertTrue("Timed out waiting for close", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private void waitForParked(int connections, int polls) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(selector.countParkedConnections() != connections || selector.countParkedPolls() != polls) {
+			assertTrue("Timed out with "+selector.countParkedConnections()+" parked and "+
+					selector.countParkedPolls()+" polls", System.currentTimeMillis() < deadline);
+			Thread.sleep(10);
+		}
+	}
+
+	private static boolean headersComplete(String s) throws IOException {
+		byte[] data = s.getBytes("ISO-8859-1");
+		ByteBuffer buf = ByteBuffer.allocate(data.length + 10);
+		buf.put(data);
+		return HTTPSelector.headersComplete(buf);
+	}
+
+	public void testHeadersComplete() throws IOException {
+		assertFalse(headersComplete(""));
+		assertFalse(headersComplete("GET / HTTP/1.1\r\n"));
+		assertFalse(headersComplete("GET / HTTP/1.1\r\nHost: localhost\r\n"));
+		assertTrue(headersComplete("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+		// Bare newlines are accepted too.
+		assertTrue(headersComplete("GET / HTTP/1.1\nHost: localhost\n\n"));
+		// Blank lines before the request line are skipped.
+		assertFalse(headersComplete("\r\n\r\n"));
+		assertFalse(headersComplete("\r\n\r\nGET / HTTP/1.1\r\n"));
+		assertTrue(headersComplete("\r\nGET / HTTP/1.0\r\n\r\n"));
+	}
+
+	public void testMaxWorkers() {
+		CountingJob[] jobs = new CountingJob[4];
+		for(int i=0;i<jobs.length;i++) {
+			jobs[i] = new CountingJob();
+			selector.dispatch(jobs[i]);
+		}
+		// Only two workers; the rest wait.
+		assertEquals(2, executor.size());
+		assertEquals(2, selector.getRunningWorkers());
+		assertEquals(2, selector.getQueuedRequests());
+		// A worker runs its own job, then the queued ones.
+		executor.run(0);
+		assertEquals(1, jobs[0].runs());
+		assertEquals(1, jobs[2].runs());
+		assertEquals(1, jobs[3].runs());
+		assertEquals(0, jobs[1].runs());
+		assertEquals(1, selector.getRunningWorkers());
+		assertEquals(0, selector.getQueuedRequests());
+		executor.run(1);
+		assertEquals(1, jobs[1].runs());
+		assertEquals(0, selector.getRunningWorkers());
+
+		// Raising the limit starts workers for the queued jobs.
+		selector.setMaxWorkers(0);
+		selector.dispatch(new CountingJob());
+		selector.dispatch(new CountingJob());
+		assertEquals(2, selector.getQueuedRequests());
+		selector.setMaxWorkers(5);
+		assertEquals(4, executor.size());
+		assertEquals(2, selector.getRunningWorkers());
+	}
+
+	public void testParkUntilHeaders() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		selector.park(socks[1]);
+		waitForParked(1, 0);
+		// Nothing happens until the whole header has arrived.
+		send(socks[0], "GET / HTTP/1.1\r\n");
+		Thread.sleep(200);
+		assertEquals(0, executor.size());
+		send(socks[0], "Host: localhost\r\n\r\n");
+		executor.waitForJobs(1);
+		waitForParked(0, 0);
+		// Handed over to a worker, in blocking mode again.
+		assertTrue(socks[1].getChannel().isOpen());
+		assertTrue(socks[1].getChannel().isBlocking());
+		socks[0].close();
+		socks[1].close();
+	}
+
+	public void testIdleConnectionClosed() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		selector.park(socks[1]);
+		waitForParked(1, 0);
+		socks[0].close();
+		waitForClose(socks[1].getChannel());
+		waitForParked(0, 0);
+		assertEquals(0, executor.size());
+	}
+
+	private ToadletContextImpl.ParkedRequest longPoll(Socket sock) {
+		return new ToadletContextImpl.ParkedRequest(sock, null, null, "GET", false, selector);
+	}
+
+	public void testLongPollClientGoesAway() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		ToadletContextImpl.ParkedRequest poll = longPoll(socks[1]);
+		poll.arm(null);
+		waitForParked(1, 1);
+		socks[0].close();
+		waitForClose(socks[1].getChannel());
+		waitForParked(0, 0);
+		// A wakeup after it has been closed is ignored.
+		poll.run();
+		Thread.sleep(200);
+		assertEquals(0, executor.size());
+	}
+
+	public void testLongPollWoken() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		ToadletContextImpl.ParkedRequest poll = longPoll(socks[1]);
+		poll.arm(null);
+		waitForParked(1, 1);
+		// The client pipelines another request while it waits, which doesn't
+		// end the poll.
+		send(socks[0], "GET /next HTTP/1.1\r\n\r\n");
+		Thread.sleep(200);
+		assertEquals(0, executor.size());
+		poll.run();
+		executor.waitForJobs(1);
+		waitForParked(0, 0);
+		assertTrue(socks[1].getChannel().isOpen());
+		assertTrue(socks[1].getChannel().isBlocking());
+		// Only handled once.
+		poll.run();
+		Thread.sleep(200);
+		assertEquals(1, executor.size());
+		socks[0].close();
+		socks[1].close();
+	}
+
+	public void testLongPollWokenBeforeParked() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		ToadletContextImpl.ParkedRequest poll = longPoll(socks[1]);
+		poll.run();
+		poll.arm(null);
+		// Handled straight away, without going near the selector.
+		assertEquals(1, executor.size());
+		assertEquals(0, selector.countParkedPolls());
+		socks[0].close();
+		socks[1].close();
+	}
+
+	public void testStopClosesParkedConnections() throws Exception {
+		selector.start();
+		Socket[] socks = connect();
+		Socket[] pollSocks = connect();
+		selector.park(socks[1]);
+		longPoll(pollSocks[1]).arm(null);
+		waitForParked(2, 1);
+		selector.stop();
+		waitForClose(socks[1].getChannel());
+		waitForClose(pollSocks[1].getChannel());
+		waitForParked(0, 0);
+		// Can't be restarted.
+		selector.start();
+		Socket[] more = connect();
+		selector.park(more[1]);
+		Thread.sleep(200);
+		assertEquals(0, selector.countParkedConnections());
+		socks[0].close();
+		pollSocks[0].close();
+		more[0].close();
+		more[1].close();
+	}
+
+}
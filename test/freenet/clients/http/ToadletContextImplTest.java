@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+import freenet.support.MultiValueTable;
+
+public class ToadletContextImplTest extends TestCase {
+
+	/** A socket which collects what is sent to the browser. */
+	private static class TestSocket extends Socket {
+
+		final ByteArrayOutputStream sent = new ByteArrayOutputStream();
+
+		@Override
+		public OutputStream getOutputStream() {
+			return sent;
+		}
+
+	}
+
+	/** A reply as the browser sees it. */
+	private static class Reply {
+
+		int code;
+		final HashMap<String, String> headers = new HashMap<String, String>();
+		byte[] body;
+
+		String header(String name) {
+			return headers.get(name.toLowerCase());
+		}
+
+		/** The body with any content encoding removed. */
+		byte[] decoded() throws IOException {
+			if(!"gzip".equals(header("content-encoding"))) return body;
+			return readAll(new GZIPInputStream(new ByteArrayInputStream(body)));
+		}
+
+	}
+
+	private static byte[] readAll(InputStream is) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while((read = is.read(buf)) > 0)
+			baos.write(buf, 0, read);
+		return baos.toByteArray();
+	}
+
+	private static String readLine(InputStream is) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while((c = is.read()) != '\n') {
+			assertTrue("Truncated reply", c >= 0);
+			if(c != '\r') sb.append((char) c);
+		}
+		return sb.toString();
+	}
+
+	private static Reply parse(TestSocket sock) throws IOException {
+		InputStream is = new ByteArrayInputStream(sock.sent.toByteArray());
+		Reply reply = new Reply();
+		String status = readLine(is);
+		assertTrue(status, status.startsWith("HTTP/1.1 "));
+		reply.code = Integer.parseInt(status.split(" ")[1]);
+		String line;
+		while((line = readLine(is)).length() > 0) {
+			int colon = line.indexOf(':');
+			reply.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+		}
+		if(reply.header("content-length") != null) {
+			reply.body = new byte[Integer.parseInt(reply.header("content-length"))];
+			assertEquals(reply.body.length, is.read(reply.body));
+			assertEquals(-1, is.read());
+		} else if("chunked".equals(reply.header("transfer-encoding"))) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			int length;
+			while((length = Integer.parseInt(readLine(is), 16)) > 0) {
+				byte[] chunk = new byte[length];
+				assertEquals(length, is.read(chunk));
+				baos.write(chunk);
+				assertEquals("", readLine(is));
+			}
+			assertEquals("", readLine(is));
+			reply.body = baos.toByteArray();
+		} else {
+			reply.body = readAll(is);
+		}
+		return reply;
+	}
+
+	private TestSocket sock;
+
+	private ToadletContextImpl context(String acceptEncoding, String range) throws IOException {
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		if(acceptEncoding != null) headers.put("accept-encoding", acceptEncoding);
+		if(range != null) headers.put("range", range);
+		sock = new TestSocket();
+		return new ToadletContextImpl(sock, headers, null, null, null, null);
+	}
+
+	/** Text that compresses well. */
+	private static byte[] page() throws IOException {
+		StringBuilder sb = new StringBuilder("<html><body>");
+		for(int i=0;i<200;i++)
+			sb.append("<p>Paragraph ").append(i).append("</p>\n");
+		sb.append("</body></html>");
+		return sb.toString().getBytes("UTF-8");
+	}
+
+	private Reply send(ToadletContextImpl ctx, String mimeType, byte[] data, MultiValueTable<String, String> headers) throws Exception {
+		ctx.sendReplyHeaders(200, "OK", headers, mimeType, data.length);
+		// In pieces, as toadlets often do.
+		ctx.writeData(data, 0, 100);
+		ctx.writeData(data, 100, data.length - 100);
+		return parse(sock);
+	}
+
+	public void testGzip() throws Exception {
+		byte[] page = page();
+		Reply reply = send(context("gzip, deflate", null), "text/html", page, null);
+		assertEquals(200, reply.code);
+		assertEquals("gzip", reply.header("content-encoding"));
+		assertEquals("Accept-Encoding", reply.header("vary"));
+		assertTrue(reply.body.length < page.length);
+		assertTrue(Arrays.equals(page, reply.decoded()));
+
+		// Scripts and JSON are text too.
+		reply = send(context("gzip", null), "application/json", page, null);
+		assertEquals("gzip", reply.header("content-encoding"));
+	}
+
+	public void testNoGzip() throws Exception {
+		byte[] page = page();
+		String[][] cases = new String[][] {
+				// Accept-Encoding, Range, MIME type
+				{ null, null, "text/html" },
+				{ "deflate", null, "text/html" },
+				{ "gzip;q=0", null, "text/html" },
+				{ "gzip", "bytes=0-99", "text/html" },
+				{ "gzip", null, "image/png" }
+		};
+		for(String[] c : cases) {
+			Reply reply = send(context(c[0], c[1]), c[2], page, null);
+			assertNull(c[0]+" "+c[1]+" "+c[2], reply.header("content-encoding"));
+			assertTrue(Arrays.equals(page, reply.body));
+		}
+		// Already encoded by the toadlet.
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("Content-Encoding", "identity");
+		Reply reply = send(context("gzip", null), "text/html", page, headers);
+		assertEquals("identity", reply.header("content-encoding"));
+		assertTrue(Arrays.equals(page, reply.body));
+	}
+
+	public void testGzipETag() throws Exception {
+		MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+		headers.put("ETag", "\"0123\"");
+		Reply reply = send(context("gzip", null), "text/html", page(), headers);
+		assertEquals("gzip", reply.header("content-encoding"));
+		assertEquals("\"0123-gzip\"", reply.header("etag"));
+		// Unchanged if it isn't compressed.
+		headers = new MultiValueTable<String, String>();
+		headers.put("ETag", "\"0123\"");
+		reply = send(context(null, null), "text/html", page(), headers);
+		assertEquals("\"0123\"", reply.header("etag"));
+	}
+
+	public void testIncompressible() throws Exception {
+		// Not worth sending compressed if it gets bigger.
+		byte[] data = new byte[1000];
+		new Random(1).nextBytes(data);
+		Reply reply = send(context("gzip", null), "text/plain", data, null);
+		assertNull(reply.header("content-encoding"));
+		assertTrue(Arrays.equals(data, reply.body));
+	}
+
+	public void testChunkedGzip() throws Exception {
+		byte[] page = page();
+		ToadletContextImpl ctx = context("gzip", null);
+		OutputStream os = ctx.sendChunkedReplyHeaders(200, "OK", null, "text/html");
+		os.write(page, 0, 1000);
+		os.write(page, 1000, page.length - 1000);
+		os.close();
+		Reply reply = parse(sock);
+		assertEquals("chunked", reply.header("transfer-encoding"));
+		assertEquals("gzip", reply.header("content-encoding"));
+		assertTrue(Arrays.equals(page, reply.decoded()));
+
+		ctx = context(null, null);
+		os = ctx.sendChunkedReplyHeaders(200, "OK", null, "text/html");
+		os.write(page);
+		os.close();
+		reply = parse(sock);
+		assertNull(reply.header("content-encoding"));
+		assertTrue(Arrays.equals(page, reply.body));
+	}
+
+}
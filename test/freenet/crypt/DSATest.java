@@ -195,6 +195,24 @@ public class DSATest extends TestCase{
         assertTrue(DSA.verify(aDSAPubKey,aSignature,aDSAPrivKey.getX(),false));
     }
     
+    /**
+     * Test that a good signature is remembered when the cache is used,
+     * and that a bad one is never accepted from it. */
+    public void testVerifyCache() {
+        DSA.clearVerifiedCache();
+        long hits = DSA.getVerifiedCacheHits();
+        assertTrue(DSA.verify(FIPS_DSA_PUBLIC_KEY,FIPS_DSA_SIGNATURE,FIPS_SHA1_M,false,true));
+        assertEquals(hits, DSA.getVerifiedCacheHits());
+        assertTrue(DSA.verify(FIPS_DSA_PUBLIC_KEY,FIPS_DSA_SIGNATURE,FIPS_SHA1_M,false,true));
+        assertEquals(hits + 1, DSA.getVerifiedCacheHits());
+        
+        DSASignature badSignature = new DSASignature(FIPS_R,FIPS_S.add(BigInteger.ONE));
+        assertFalse(DSA.verify(FIPS_DSA_PUBLIC_KEY,badSignature,FIPS_SHA1_M,false,true));
+        assertFalse(DSA.verify(FIPS_DSA_PUBLIC_KEY,badSignature,FIPS_SHA1_M,false,true));
+        assertFalse(DSA.verify(FIPS_DSA_PUBLIC_KEY,FIPS_DSA_SIGNATURE,FIPS_SHA1_M.add(BigInteger.ONE),false,true));
+        assertEquals(hits + 1, DSA.getVerifiedCacheHits());
+    }
+    
     /* The following tests still generates problem,
      * they are commented so they could be useful to
      * check for bugs
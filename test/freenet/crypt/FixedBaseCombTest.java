@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.i2p.util.NativeBigInteger;
+
+public class FixedBaseCombTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final DSAGroup GROUP = Global.DSAgroupBigA;
+
+	private static void checkGroup(BigInteger g, BigInteger p, int bits, Random r) {
+		FixedBaseComb comb = new FixedBaseComb(g, p, bits);
+		assertEquals(BigInteger.ONE, comb.pow(BigInteger.ZERO));
+		assertEquals(g.mod(p), comb.pow(BigInteger.ONE));
+		BigInteger max = BigInteger.ONE.shiftLeft(bits).subtract(BigInteger.ONE);
+		assertEquals(g.modPow(max, p), comb.pow(max));
+		for (int i = 0; i < 200; i++) {
+			BigInteger e = new BigInteger(r.nextInt(bits) + 1, r);
+			assertEquals(g.modPow(e, p), comb.pow(e));
+		}
+		// Longer exponents than the tables cover still work
+		BigInteger e = new BigInteger(bits + 40, r).setBit(bits + 39);
+		assertEquals(g.modPow(e, p), comb.pow(e));
+	}
+
+	public void testMatchesModPow() {
+		Random r = new Random(1234);
+		checkGroup(GROUP.getG(), GROUP.getP(), GROUP.getQ().bitLength(), r);
+		// Exponent lengths that don't split evenly into rows and blocks
+		checkGroup(GROUP.getG(), GROUP.getP(), 161, r);
+		checkGroup(new BigInteger("626d027839ea0a13413163a55b4cb500299d5522956cefcb", 16), BigInteger.valueOf(1000003), 20, r);
+	}
+
+	public void testVerify() {
+		DummyRandomSource random = new DummyRandomSource();
+		DSAPrivateKey priv = new DSAPrivateKey(GROUP, random);
+		DSAPublicKey pub = new DSAPublicKey(GROUP, priv);
+		Random r = new Random(5678);
+		for (int i = 0; i < 20; i++) {
+			BigInteger m = new BigInteger(255, r);
+			DSASignature sig = DSA.sign(GROUP, priv, m, random);
+			assertTrue(DSA.verify(pub, sig, m, false));
+			assertFalse(DSA.verify(pub, sig, m.add(BigInteger.ONE), false));
+			assertFalse(DSA.verify(pub, new DSASignature(sig.getR(), sig.getS().add(BigInteger.ONE)), m, false));
+		}
+	}
+
+	/** Compares the comb with modPow for the group generator, and times whole verifications. */
+	public void testSpeed() {
+		int runs = BENCHMARK ? 2000 : 50;
+		Random r = new Random(42);
+		BigInteger[] exponents = new BigInteger[runs];
+		for (int i = 0; i < runs; i++)
+			exponents[i] = new BigInteger(GROUP.getQ().bitLength(), r).mod(GROUP.getQ());
+
+		FixedBaseComb comb = new FixedBaseComb(GROUP.getG(), GROUP.getP(), GROUP.getQ().bitLength());
+		BigInteger javaG = new BigInteger(1, GROUP.getG().toByteArray());
+		NativeBigInteger nativeG = new NativeBigInteger(1, GROUP.getG().toByteArray());
+		for (int pass = 0; pass < 2; pass++) {
+			long start = System.nanoTime();
+			for (BigInteger e : exponents)
+				comb.pow(e);
+			long combTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (BigInteger e : exponents)
+				javaG.modPow(e, GROUP.getP());
+			long javaTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (BigInteger e : exponents)
+				nativeG.modPow(e, GROUP.getP());
+			long nativeTime = System.nanoTime() - start;
+			if (pass == 1)
+				System.out.println("g^e: comb " + combTime / runs / 1000 + "us, BigInteger.modPow " + javaTime / runs / 1000
+				        + "us, NativeBigInteger.modPow " + nativeTime / runs / 1000 + "us (native: "
+				        + NativeBigInteger.isNative() + ")");
+		}
+
+		DummyRandomSource random = new DummyRandomSource();
+		DSAPrivateKey priv = new DSAPrivateKey(GROUP, random);
+		DSAPublicKey pub = new DSAPublicKey(GROUP, priv);
+		int sigs = Math.min(runs, 200);
+		BigInteger[] messages = new BigInteger[sigs];
+		DSASignature[] signatures = new DSASignature[sigs];
+		for (int i = 0; i < sigs; i++) {
+			messages[i] = new BigInteger(255, r);
+			signatures[i] = DSA.sign(GROUP, priv, messages[i], random);
+		}
+		DSA.clearVerifiedCache();
+		long start = System.nanoTime();
+		for (int i = 0; i < sigs; i++)
+			assertTrue(DSA.verify(pub, signatures[i], messages[i], false, true));
+		long verifyTime = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < sigs; i++)
+			assertTrue(DSA.verify(pub, signatures[i], messages[i], false, true));
+		long cachedTime = System.nanoTime() - start;
+		System.out.println("DSA.verify: " + verifyTime / sigs / 1000 + "us, from the cache " + cachedTime / sigs / 1000 + "us");
+	}
+}
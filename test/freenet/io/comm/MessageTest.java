@@ -0,0 +1,223 @@
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.io.xfer.PacketThrottle;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.OutgoingPacketMangler;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+
+public class MessageTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	/** Just enough of a peer to decode messages from. */
+	private static class DummyPeer implements PeerContext {
+		private final WeakReference<DummyPeer> ref = new WeakReference<DummyPeer>(this);
+		public Peer getPeer() { return null; }
+		public void forceDisconnect(boolean dump) { }
+		public boolean isConnected() { return true; }
+		public boolean isRoutable() { return true; }
+		public int getVersionNumber() { return 0; }
+		public void sendAsync(Message msg, AsyncMessageCallback cb, ByteCounter ctr) { }
+		public void sendThrottledMessage(Message msg, int packetSize, ByteCounter ctr, int timeout, boolean waitForSent, AsyncMessageCallback callback) { }
+		public long getBootID() { return 0; }
+		public PacketThrottle getThrottle() { return null; }
+		public SocketHandler getSocketHandler() { return null; }
+		public OutgoingPacketMangler getOutgoingMangler() { return null; }
+		public WeakReference<? extends PeerContext> getWeakRef() { return ref; }
+		public String shortToString() { return "dummy"; }
+		public void transferFailed(String reason) { }
+	}
+
+	private static final PeerContext PEER = new DummyPeer();
+
+	private static Message[] hotMessages(Random random) {
+		byte[] routingKey = new byte[32];
+		random.nextBytes(routingKey);
+		NodeCHK key = new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+		byte[] headers = new byte[36];
+		random.nextBytes(headers);
+		byte[] data = new byte[1024];
+		random.nextBytes(data);
+		BitArray sent = new BitArray(32);
+		sent.setBit(3, true);
+		LinkedList<Integer> missing = new LinkedList<Integer>();
+		missing.add(Integer.valueOf(5));
+		missing.add(Integer.valueOf(17));
+		Message request = DMT.createFNPCHKDataRequest(random.nextLong(), (short)18, key);
+		request.set(DMT.NEAREST_LOCATION, 0.4375);
+		return new Message[] {
+				request,
+				DMT.createFNPAccepted(random.nextLong()),
+				DMT.createFNPRejectedOverload(random.nextLong(), true),
+				DMT.createFNPRouteNotFound(random.nextLong(), (short)3),
+				DMT.createFNPCHKDataFound(random.nextLong(), headers),
+				DMT.createPacketTransmit(random.nextLong(), 7, sent, new Buffer(data)),
+				DMT.createMissingPacketNotification(random.nextLong(), missing)
+		};
+	}
+
+	/** How messages were encoded before MessageCodec: each boxed value through Serializer. */
+	private static byte[] referenceEncode(Message m) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(m.getSpec().getName().hashCode());
+		for(String name : m.getSpec().getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos, PEER);
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	/** How messages were decoded before MessageCodec: into a map, through Serializer. */
+	private static HashMap<String, Object> referenceDecode(byte[] buf) throws IOException {
+		ByteBufferInputStream bb = new ByteBufferInputStream(buf, 0, buf.length);
+		MessageType spec = MessageType.getSpec(Integer.valueOf(bb.readInt()));
+		HashMap<String, Object> payload = new HashMap<String, Object>(8);
+		for(String name : spec.getOrderedFields()) {
+			Class<?> type = spec.getFields().get(name);
+			if(type.equals(LinkedList.class))
+				payload.put(name, Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(name), bb));
+			else
+				payload.put(name, Serializer.readFromDataInputStream(type, bb));
+		}
+		return payload;
+	}
+
+	private static Message decode(byte[] buf) {
+		return Message.decodeMessageFromPacket(buf, 0, buf.length, PEER, 0);
+	}
+
+	public void testWireCompatible() throws IOException {
+		for(Message m : hotMessages(new Random(1234))) {
+			byte[] encoded = m.encodeToPacket(PEER);
+			assertTrue(m.getSpec().getName(), Arrays.equals(referenceEncode(m), encoded));
+			HashMap<String, Object> payload = referenceDecode(encoded);
+			for(String name : m.getSpec().getOrderedFields())
+				assertEquals(name, payload.get(name), m.getObject(name));
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		for(Message m : hotMessages(new Random(5678))) {
+			byte[] encoded = m.encodeToPacket(PEER);
+			Message decoded = decode(encoded);
+			assertNotNull(m.getSpec().getName(), decoded);
+			assertEquals(m.getSpec(), decoded.getSpec());
+			assertSame(PEER, decoded.getSource());
+			for(String name : m.getSpec().getOrderedFields()) {
+				assertTrue(decoded.isSet(name));
+				assertEquals(name, m.getObject(name), decoded.getObject(name));
+			}
+			assertTrue(Arrays.equals(encoded, decoded.encodeToPacket(PEER)));
+		}
+		Message request = decode(hotMessages(new Random(5678))[0].encodeToPacket(PEER));
+		assertEquals((short)18, request.getShort(DMT.HTL));
+		assertEquals(0.4375, request.getDouble(DMT.NEAREST_LOCATION), 0.0);
+		Message overload = decode(DMT.createFNPRejectedOverload(99, true).encodeToPacket(PEER));
+		assertEquals(99, overload.getLong(DMT.UID));
+		assertTrue(overload.getBoolean(DMT.IS_LOCAL));
+	}
+
+	public void testBadBoolean() {
+		byte[] buf = DMT.createFNPRejectedOverload(1, false).encodeToPacket(PEER);
+		buf[buf.length-1] = 2;
+		assertNull(decode(buf));
+	}
+
+	public void testTruncated() {
+		byte[] buf = DMT.createFNPAccepted(1).encodeToPacket(PEER);
+		byte[] truncated = new byte[buf.length - 1];
+		System.arraycopy(buf, 0, truncated, 0, truncated.length);
+		assertNull(decode(truncated));
+	}
+
+	public void testFields() {
+		Message m = new Message(DMT.FNPRouteNotFound);
+		assertFalse(m.isSet(DMT.UID));
+		assertNull(m.getObject(DMT.UID));
+		try {
+			m.getLong(DMT.UID);
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected
+		}
+		try {
+			m.encodeToPacket(PEER);
+			fail();
+		} catch (Message.FieldNotSetException e) {
+			// Expected
+		}
+		m.set(DMT.UID, 12345L);
+		assertTrue(m.isSet(DMT.UID));
+		assertEquals(Long.valueOf(12345), m.getObject(DMT.UID));
+		m.set(DMT.HTL, Short.valueOf((short)4));
+		assertEquals((short)4, m.getShort(DMT.HTL));
+		// A name which isn't the interned constant still finds the field.
+		assertEquals(12345L, m.getLong(new String(DMT.UID)));
+		assertFalse(m.isSet(new String("noSuchField")));
+		try {
+			m.set(DMT.HTL, 4);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		try {
+			m.set(DMT.HTL, Integer.valueOf(4));
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		try {
+			m.set(DMT.DATA, new Buffer(new byte[1]));
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		try {
+			m.getInt(DMT.HTL);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+	}
+
+	/** Messages encoded and decoded per second, for the hottest types, with and
+	 * without MessageCodec. */
+	public void testBenchmark() throws IOException {
+		if(!BENCHMARK) return;
+		final int MESSAGES = 1000000;
+		Message[] messages = hotMessages(new Random(1234));
+		for(Message m : messages) {
+			byte[] encoded = m.encodeToPacket(PEER);
+			String name = m.getSpec().getName();
+			for(int run=0;run<3;run++) {
+				long start = System.nanoTime();
+				for(int i=0;i<MESSAGES;i++)
+					referenceDecode(referenceEncode(m));
+				long reference = System.nanoTime() - start;
+				start = System.nanoTime();
+				for(int i=0;i<MESSAGES;i++)
+					decode(m.encodeToPacket(PEER));
+				long codec = System.nanoTime() - start;
+				if(run == 2)
+					System.out.println(name+": "+(MESSAGES * 1000000000L / reference)+" messages/sec with Serializer, "+
+							(MESSAGES * 1000000000L / codec)+" messages/sec with MessageCodec ("+encoded.length+" bytes)");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+public class SimulatedNetworkTest extends TestCase {
+
+	private static final int HEADERS = 28;
+
+	/** Records what arrives, and when. */
+	private static class TestEndpoint implements SimulatedNetwork.Endpoint {
+		final int port;
+		final ArrayList<Integer> received = new ArrayList<Integer>();
+		final ArrayList<Integer> fromPorts = new ArrayList<Integer>();
+		final ArrayList<Long> times = new ArrayList<Long>();
+
+		TestEndpoint(SimulatedNetwork network, int port) {
+			this.port = port;
+			network.register(this);
+		}
+
+		public int getPortNumber() {
+			return port;
+		}
+
+		public int getHeadersLength() {
+			return HEADERS;
+		}
+
+		public void receive(byte[] data, Peer from, long now) {
+			received.add(Integer.valueOf(data[0]));
+			fromPorts.add(Integer.valueOf(from.getPort()));
+			times.add(Long.valueOf(now));
+		}
+	}
+
+	private static void send(SimulatedNetwork network, TestEndpoint from, TestEndpoint to, int id, int length) {
+		byte[] data = new byte[length];
+		data[0] = (byte) id;
+		network.send(from, new Peer(SimulatedNetwork.ADDRESS, to.port), data);
+	}
+
+	private static SimulatedNetwork network(int latency, int bandwidth, double loss) {
+		return new SimulatedNetwork(1234, new SimulatedNetwork.LinkParameters(latency, bandwidth, loss), true);
+	}
+
+	public void testClockStartsNow() {
+		long before = System.currentTimeMillis();
+		SimulatedNetwork network = network(10, 0, 0.0);
+		long after = System.currentTimeMillis();
+		long start = network.now();
+		assertTrue(start >= before && start <= after);
+		network.advanceTime(1000);
+		assertEquals(start + 1000, network.now());
+	}
+
+	public void testLatencyOrdering() {
+		SimulatedNetwork network = network(10, 0, 0.0);
+		TestEndpoint a = new TestEndpoint(network, 1000);
+		TestEndpoint b = new TestEndpoint(network, 1001);
+		TestEndpoint c = new TestEndpoint(network, 1002);
+		network.setLink(1000, 1001, new SimulatedNetwork.LinkParameters(50, 0, 0.0));
+		long start = network.now();
+
+		send(network, a, b, 1, 100);
+		send(network, a, c, 2, 100);
+		send(network, a, b, 3, 100);
+		assertEquals(3, network.queuedPackets());
+
+		assertEquals(0, network.advanceTime(9));
+		// The faster link arrives first, though it was sent second.
+		assertEquals(1, network.advanceTime(1));
+		assertEquals(Integer.valueOf(2), c.received.get(0));
+		assertEquals(Integer.valueOf(1000), c.fromPorts.get(0));
+		assertEquals(Long.valueOf(start + 10), c.times.get(0));
+		assertEquals(0, b.received.size());
+
+		// Arriving at the same time, they are delivered in the order they were sent.
+		assertEquals(2, network.advanceTime(40));
+		assertEquals(Integer.valueOf(1), b.received.get(0));
+		assertEquals(Integer.valueOf(3), b.received.get(1));
+		assertEquals(Long.valueOf(start + 50), b.times.get(1));
+		assertEquals(3, network.getPacketsDelivered());
+		assertEquals(0, network.queuedPackets());
+	}
+
+	public void testBandwidthDelay() {
+		// 1000 bytes per second: 100 bytes with the headers take 100ms.
+		SimulatedNetwork network = network(5, 1000, 0.0);
+		TestEndpoint a = new TestEndpoint(network, 1000);
+		TestEndpoint b = new TestEndpoint(network, 1001);
+		TestEndpoint c = new TestEndpoint(network, 1002);
+		long start = network.now();
+		for(int i = 0; i < 3; i++)
+			send(network, a, b, i, 100 - HEADERS);
+		send(network, a, c, 9, 100 - HEADERS);
+
+		assertEquals(0, network.advanceTime(104));
+		// Each link has its own bandwidth, so the packet to c doesn't wait behind those to b.
+		assertEquals(2, network.advanceTime(1));
+		assertEquals(1, b.received.size());
+		assertEquals(1, c.received.size());
+		network.advanceTime(300);
+		assertEquals(3, b.received.size());
+		assertEquals(Long.valueOf(start + 205), b.times.get(1));
+		assertEquals(Long.valueOf(start + 305), b.times.get(2));
+
+		// An idle link sends straight away.
+		long now = network.now();
+		send(network, a, b, 3, 100 - HEADERS);
+		network.advanceTime(105);
+		assertEquals(Long.valueOf(now + 105), b.times.get(3));
+	}
+
+	public void testLoss() {
+		SimulatedNetwork network = network(1, 0, 0.25);
+		TestEndpoint a = new TestEndpoint(network, 1000);
+		TestEndpoint b = new TestEndpoint(network, 1001);
+		final int PACKETS = 4000;
+		for(int i = 0; i < PACKETS; i++)
+			send(network, a, b, i, 10);
+		network.advanceTime(1);
+		long lost = network.getPacketsLost();
+		assertEquals(PACKETS, network.getPacketsSent());
+		assertEquals(PACKETS - lost, b.received.size());
+		assertEquals(PACKETS - lost, network.getPacketsDelivered());
+		// Expect 1000, standard deviation about 27.
+		assertTrue("Lost "+lost, lost > 850 && lost < 1150);
+
+		// Same seed, same losses.
+		SimulatedNetwork again = network(1, 0, 0.25);
+		a = new TestEndpoint(again, 1000);
+		b = new TestEndpoint(again, 1001);
+		for(int i = 0; i < PACKETS; i++)
+			send(again, a, b, i, 10);
+		again.advanceTime(1);
+		assertEquals(lost, again.getPacketsLost());
+
+		network.setLink(1000, 1001, new SimulatedNetwork.LinkParameters(1, 0, 1.0));
+		send(network, a, b, 0, 10);
+		assertEquals(lost + 1, network.getPacketsLost());
+	}
+
+	public void testUndeliverable() {
+		SimulatedNetwork network = network(10, 0, 0.0);
+		TestEndpoint a = new TestEndpoint(network, 1000);
+		TestEndpoint b = new TestEndpoint(network, 1001);
+		network.send(a, new Peer(SimulatedNetwork.ADDRESS, 2000), new byte[10]);
+		assertEquals(1, network.getPacketsUndeliverable());
+		assertEquals(0, network.queuedPackets());
+
+		// Closed while the packet was in flight.
+		send(network, a, b, 1, 10);
+		network.unregister(b);
+		network.advanceTime(10);
+		assertEquals(0, b.received.size());
+		assertEquals(2, network.getPacketsUndeliverable());
+	}
+
+}
@@ -0,0 +1,149 @@
+package freenet.node;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.io.comm.DMT;
+
+public class PeerMessageQueueTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final int MIN_SIZE = 50;
+	private static final int MAX_SIZE = 1400;
+
+	private static MessageItem itemWithID(long uid) {
+		return new MessageItem(DMT.createFNPAccepted(uid), null, null, null);
+	}
+
+	private static MessageItem itemNoID(int length, short priority) {
+		return new MessageItem(new byte[length], null, false, null, priority);
+	}
+
+	/** Grab a packet's worth of messages, or null if there are none. */
+	private static MessageItem[] grab(PeerMessageQueue queue, long now) {
+		MessageItem[] buf = new MessageItem[PeerMessageQueue.MAX_MESSAGES_PER_PACKET];
+		int count = queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf);
+		if(count == 0) return null;
+		MessageItem[] items = new MessageItem[count];
+		System.arraycopy(buf, 0, items, 0, count);
+		return items;
+	}
+
+	public void testLengthTotals() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		long expected = 0;
+		for(int i=0;i<100;i++) {
+			MessageItem item = (i % 3 == 0) ? itemNoID(i+1, DMT.PRIORITY_LOW) : itemWithID(i % 7);
+			expected += item.getLength() + 2;
+			queue.queueAndEstimateSize(item);
+			assertEquals(expected, queue.getMessageQueueLengthBytes());
+		}
+		assertEquals(100, queue.size());
+		MessageItem[] all = queue.grabQueuedMessageItems();
+		assertEquals(100, all.length);
+		assertEquals(0, queue.getMessageQueueLengthBytes());
+		assertNull(grab(queue, System.currentTimeMillis()));
+	}
+
+	public void testPacketSizeAndOrder() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		for(int i=0;i<20;i++)
+			queue.queueAndEstimateSize(itemNoID(100, DMT.PRIORITY_BULK_DATA));
+		queue.queueAndEstimateSize(itemNoID(100, DMT.PRIORITY_NOW));
+		MessageItem[] items = grab(queue, System.currentTimeMillis());
+		assertNotNull(items);
+		assertEquals(DMT.PRIORITY_NOW, items[0].getPriority());
+		int size = MIN_SIZE;
+		for(MessageItem item : items)
+			size += item.getLength() + 2;
+		assertTrue(size <= MAX_SIZE);
+		assertEquals(21 - items.length, queue.size());
+	}
+
+	public void testOversizedMessageStillSent() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		queue.queueAndEstimateSize(itemNoID(MAX_SIZE * 2, DMT.PRIORITY_LOW));
+		MessageItem[] items = grab(queue, System.currentTimeMillis());
+		assertNotNull(items);
+		assertEquals(1, items.length);
+		assertEquals(0, queue.size());
+	}
+
+	public void testRequeueGoesToFront() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		MessageItem first = itemWithID(1);
+		MessageItem second = itemWithID(1);
+		queue.queueAndEstimateSize(second);
+		queue.pushfrontPrioritizedMessageItem(first);
+		MessageItem[] items = queue.grabQueuedMessageItems();
+		assertSame(first, items[0]);
+		assertSame(second, items[1]);
+	}
+
+	public void testRoundRobinBetweenIDs() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		// Enough messages on each of two IDs that one ID alone fills several packets.
+		for(int i=0;i<200;i++) {
+			queue.queueAndEstimateSize(itemWithID(1));
+			queue.queueAndEstimateSize(itemWithID(2));
+		}
+		long now = System.currentTimeMillis();
+		boolean seen1 = false, seen2 = false;
+		for(int i=0;i<4;i++) {
+			MessageItem[] items = grab(queue, now);
+			assertNotNull(items);
+			for(MessageItem item : items) {
+				long uid = item.msg.getLong(DMT.UID);
+				if(uid == 1) seen1 = true;
+				if(uid == 2) seen2 = true;
+			}
+		}
+		assertTrue(seen1 && seen2);
+	}
+
+	public void testBufferFull() {
+		PeerMessageQueue queue = new PeerMessageQueue();
+		for(int i=0;i<10;i++)
+			queue.queueAndEstimateSize(itemNoID(10, DMT.PRIORITY_LOW));
+		long now = System.currentTimeMillis();
+		MessageItem[] buf = new MessageItem[4];
+		// The rest wait for the next packet.
+		assertEquals(4, queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf));
+		assertEquals(6, queue.size());
+		assertEquals(4, queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf));
+		assertEquals(2, queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf));
+		assertEquals(0, queue.size());
+		assertEquals(0, queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf));
+		assertEquals(0, queue.getMessageQueueLengthBytes());
+	}
+
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		final int IDS = 2000;
+		final int MESSAGES = 1000000;
+		Random random = new Random(1234);
+		MessageItem[] items = new MessageItem[IDS * 4];
+		for(int i=0;i<items.length;i++)
+			items[i] = itemWithID(random.nextInt(IDS));
+		PeerMessageQueue queue = new PeerMessageQueue();
+		MessageItem[] buf = new MessageItem[PeerMessageQueue.MAX_MESSAGES_PER_PACKET];
+		for(int run=0;run<5;run++) {
+			long start = System.nanoTime();
+			int dequeued = 0;
+			long now = System.currentTimeMillis();
+			for(int i=0;i<MESSAGES;i++) {
+				queue.queueAndEstimateSize(items[i % items.length]);
+				if(i % 16 == 15) {
+					dequeued += queue.grabMessagesForPacket(now, MIN_SIZE, MAX_SIZE, buf);
+				}
+			}
+			dequeued += queue.grabQueuedMessageItems().length;
+			long end = System.nanoTime();
+			assertEquals(MESSAGES, dequeued);
+			System.out.println("Enqueued and dequeued "+MESSAGES+" messages over "+IDS+" IDs in "+((end - start) / 1000000)+"ms ("+(MESSAGES * 1000000000L / (end - start))+" messages/sec)");
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package freenet.node.fcp;
+
+import java.io.File;
+
+import junit.framework.TestCase;
+
+import freenet.client.events.SplitfileProgressEvent;
+import freenet.node.RequestStarter;
+
+public class RequestStatusCacheTest extends TestCase {
+
+	private static DownloadRequestStatus download(String identifier, long size, String mime) {
+		return new DownloadRequestStatus(identifier, true, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, false,
+				false, false, false, 0, 0, 0, 0, 0, false, 0, null, null, size, mime,
+				new File("/downloads/"+identifier), true, false, false);
+	}
+
+	private static UploadFileRequestStatus upload(String identifier) {
+		return new UploadFileRequestStatus(identifier, true, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, true,
+				false, false, false, 0, 0, 0, 0, 0, false, 0, null, null, 1000, "text/plain",
+				new File("/uploads/"+identifier), null);
+	}
+
+	private static class CountingListener implements RequestStatusCache.Listener {
+		int changes;
+		public void onStatusChanged(String identifier) {
+			changes++;
+		}
+	}
+
+	public void testAddAndRemove() {
+		RequestStatusCache cache = new RequestStatusCache();
+		assertFalse(cache.isLoaded());
+		cache.updateStatus(download("a", 100, "text/plain"));
+		cache.updateStatus(upload("b"));
+		assertEquals(1, cache.getDownloads().length);
+		assertEquals(1, cache.getUploads().length);
+		assertEquals("a", cache.getDownloads()[0].getIdentifier());
+		cache.remove("a");
+		assertNull(cache.getStatus("a"));
+		assertEquals(0, cache.getDownloads().length);
+		assertNotNull(cache.getStatus("b"));
+		cache.setLoaded();
+		assertTrue(cache.isLoaded());
+	}
+
+	public void testReturnsCopies() {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.updateStatus(download("a", 100, null));
+		RequestStatus copy = cache.getStatus("a");
+		cache.updatePriority("a", RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		assertEquals(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, copy.getPriority());
+		assertEquals(RequestStarter.INTERACTIVE_PRIORITY_CLASS, cache.getStatus("a").getPriority());
+	}
+
+	public void testProgress() {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.updateStatus(download("a", -1, null));
+		cache.updateProgress("a", new SplitfileProgressEvent(10, 4, 1, 0, 8, true), 12345);
+		RequestStatus status = cache.getStatus("a");
+		assertTrue(status.isStarted());
+		assertEquals(10, status.getTotalBlocks());
+		assertEquals(8, status.getMinBlocks());
+		assertEquals(4, status.getFetchedBlocks());
+		assertEquals(1, status.getFailedBlocks());
+		assertTrue(status.isTotalFinalized());
+		assertEquals(12345, status.getLastActivity());
+		// Unknown requests are ignored.
+		cache.updateProgress("b", new SplitfileProgressEvent(10, 4, 1, 0, 8, true), 12345);
+		assertNull(cache.getStatus("b"));
+	}
+
+	public void testExpectedSizeAndMIME() {
+		RequestStatusCache cache = new RequestStatusCache();
+		cache.updateStatus(download("a", -1, null));
+		cache.updateStatus(upload("b"));
+		CountingListener listener = new CountingListener();
+		cache.addListener("a", listener);
+		cache.updateExpectedSize("a", 4096);
+		cache.updateExpectedMIME("a", "image/png");
+		DownloadRequestStatus status = (DownloadRequestStatus) cache.getStatus("a");
+		assertEquals(4096, status.getDataSize());
+		assertEquals("image/png", status.getMIMEType());
+		assertEquals(2, listener.changes);
+		// Only downloads have an expected size.
+		cache.updateExpectedSize("b", 1);
+		assertEquals(1000, cache.getStatus("b").getDataSize());
+		cache.removeListener("a", listener);
+		cache.updateExpectedSize("a", 8192);
+		assertEquals(2, listener.changes);
+		assertEquals(8192, cache.getDownloads()[0].getDataSize());
+	}
+
+}
@@ -0,0 +1,199 @@
+package freenet.node.fcp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+public class StreamDataOutputStreamTest extends TestCase {
+
+	private static final long TIMEOUT = 10*1000;
+
+	/** A connection which the test drains, like a client reading the messages. */
+	private static class TestConnection implements StreamDataOutputStream.Connection {
+
+		private final LinkedList<FCPMessage> queue = new LinkedList<FCPMessage>();
+		private boolean closed;
+
+		public synchronized boolean waitForQueueBelow(int maxQueued) {
+			while(queue.size() >= maxQueued && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			return !closed;
+		}
+
+		public synchronized void queue(FCPMessage msg) {
+			queue.add(msg);
+			notifyAll();
+		}
+
+		synchronized StreamDataMessage take() {
+			StreamDataMessage msg = (StreamDataMessage) queue.removeFirst();
+			notifyAll();
+			return msg;
+		}
+
+		synchronized int size() {
+			return queue.size();
+		}
+
+		synchronized void waitForSize(int size) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + TIMEOUT;
+			while(queue.size() < size) {
+				long wait = deadline - System.currentTimeMillis();
+				assertTrue("Timed out with "+queue.size()+" of "+size+" messages queued", wait > 0);
+				wait(wait);
+			}
+		}
+
+		synchronized void close() {
+			closed = true;
+			notifyAll();
+		}
+
+	}
+
+	/** Writes the data, like the splitfile streamer. */
+	private static class Writer extends Thread {
+
+		private final StreamDataOutputStream os;
+		private final byte[] data;
+		private IOException failure;
+
+		Writer(StreamDataOutputStream os, byte[] data) {
+			this.os = os;
+			this.data = data;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				os.write(data, 0, data.length);
+				os.flush();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+	}
+
+	private TestConnection connection;
+
+	private StreamDataOutputStream stream(long expectedLength) {
+		connection = new TestConnection();
+		return new StreamDataOutputStream(connection, "test", true, "video/ogg", expectedLength);
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for(int i=0;i<length;i++)
+			data[i] = (byte) (i * 7);
+		return data;
+	}
+
+	private static byte[] read(StreamDataMessage msg) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		InputStream is = msg.getDataBuckets()[0].getInputStream();
+		byte[] buf = new byte[4096];
+		int read;
+		while((read = is.read(buf)) > 0)
+			baos.write(buf, 0, read);
+		is.close();
+		return baos.toByteArray();
+	}
+
+	/** Check the next message is the given part of the data. */
+	private void assertChunk(byte[] data, int offset, int length, boolean first) throws IOException {
+		StreamDataMessage msg = connection.take();
+		assertEquals("test", msg.identifier);
+		assertTrue(msg.global);
+		assertEquals(offset, msg.offset);
+		assertEquals(length, msg.dataLength);
+		// Only the first chunk says what the data is.
+		if(first) {
+			assertEquals("video/ogg", msg.mimeType);
+			assertEquals(data.length, msg.expectedDataLength);
+		} else {
+			assertNull(msg.mimeType);
+			assertEquals(-1, msg.expectedDataLength);
+			assertNull(msg.getFieldSet().get("ExpectedDataLength"));
+		}
+		byte[] sent = read(msg);
+		assertEquals(length, sent.length);
+		for(int i=0;i<length;i++)
+			assertEquals(data[offset + i], sent[i]);
+	}
+
+	public void testChunks() throws IOException {
+		byte[] data = data(3 * StreamDataOutputStream.CHUNK_SIZE + 1000);
+		StreamDataOutputStream os = stream(data.length);
+		// In uneven pieces, and a byte at a time.
+		os.write(data, 0, 10);
+		os.write(data[10]);
+		os.write(data, 11, data.length - 11);
+		// Full chunks are sent as they fill up.
+		assertEquals(3, connection.size());
+		os.flush();
+		assertEquals(4, connection.size());
+		// Nothing more to send.
+		os.flush();
+		assertEquals(4, connection.size());
+		for(int i=0;i<3;i++)
+			assertChunk(data, i * StreamDataOutputStream.CHUNK_SIZE, StreamDataOutputStream.CHUNK_SIZE, i == 0);
+		assertChunk(data, 3 * StreamDataOutputStream.CHUNK_SIZE, 1000, false);
+	}
+
+	public void testBackPressure() throws Exception {
+		int chunks = StreamDataOutputStream.MAX_QUEUED + 3;
+		byte[] data = data(chunks * StreamDataOutputStream.CHUNK_SIZE);
+		Writer writer = new Writer(stream(data.length), data);
+		writer.start();
+		// The client isn't reading, so the writer waits.
+		connection.waitForSize(StreamDataOutputStream.MAX_QUEUED);
+		Thread.sleep(100);
+		assertTrue(writer.isAlive());
+		assertEquals(StreamDataOutputStream.MAX_QUEUED, connection.size());
+		// Each message read lets one more be queued.
+		for(int i=0;i<chunks;i++) {
+			connection.waitForSize(Math.min(StreamDataOutputStream.MAX_QUEUED, chunks - i));
+			assertTrue(connection.size() <= StreamDataOutputStream.MAX_QUEUED);
+			assertChunk(data, i * StreamDataOutputStream.CHUNK_SIZE, StreamDataOutputStream.CHUNK_SIZE, i == 0);
+		}
+		writer.join(TIMEOUT);
+		assertFalse(writer.isAlive());
+		assertNull(writer.failure);
+		assertEquals(0, connection.size());
+	}
+
+	public void testClientDisconnect() throws Exception {
+		byte[] data = data((StreamDataOutputStream.MAX_QUEUED + 3) * StreamDataOutputStream.CHUNK_SIZE);
+		Writer writer = new Writer(stream(data.length), data);
+		writer.start();
+		connection.waitForSize(StreamDataOutputStream.MAX_QUEUED);
+		// The writer is waiting for the client, which goes away.
+		connection.close();
+		writer.join(TIMEOUT);
+		assertFalse(writer.isAlive());
+		assertNotNull(writer.failure);
+		assertEquals(StreamDataOutputStream.MAX_QUEUED, connection.size());
+		// Nothing more is sent.
+		StreamDataOutputStream os = stream(10);
+		connection.close();
+		os.write(data, 0, 10);
+		try {
+			os.flush();
+			fail("Sent data to a closed connection");
+		} catch (IOException e) {
+			// Expected, the request is cancelled.
+		}
+		assertEquals(0, connection.size());
+	}
+
+}
@@ -0,0 +1,194 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.pluginmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+import freenet.support.io.FileUtil;
+
+public class PluginKeyValueStoreTest extends TestCase {
+
+	private File tempDir;
+	private File file;
+	private final ArrayList<PluginKeyValueStore> opened = new ArrayList<PluginKeyValueStore>();
+
+	protected void setUp() {
+		tempDir = new File("tmp-pluginkeyvaluestoretest");
+		tempDir.mkdir();
+		file = new File(tempDir, "test.kv");
+	}
+
+	protected void tearDown() throws IOException {
+		for(PluginKeyValueStore store : opened)
+			store.close();
+		FileUtil.removeAll(tempDir);
+	}
+
+	private PluginKeyValueStore open() throws IOException {
+		PluginKeyValueStore store = new PluginKeyValueStore(file, null);
+		opened.add(store);
+		return store;
+	}
+
+	public void testReload() throws IOException {
+		PluginKeyValueStore store = open();
+		store.putLong("long", Long.MAX_VALUE);
+		store.putInt("int", 42);
+		store.putBoolean("bool", true);
+		store.putString("string", "hello");
+		store.putBytes("bytes", new byte[] { 1, 2, 3 });
+		store.putString("removed", "gone");
+		assertEquals(6, store.countDirty());
+		store.flush();
+		assertEquals(0, store.countDirty());
+		store.remove("removed");
+		store.putInt("int", 43);
+		store.close();
+
+		store = open();
+		assertEquals(5, store.size());
+		assertEquals(Long.MAX_VALUE, store.getLong("long", 0));
+		assertEquals(43, store.getInt("int", 0));
+		assertTrue(store.getBoolean("bool", false));
+		assertEquals("hello", store.getString("string", null));
+		assertEquals(3, store.getBytes("bytes", null).length);
+		assertFalse(store.containsKey("removed"));
+		assertEquals(7, store.getInt("missing", 7));
+	}
+
+	public void testLongString() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		while(sb.length() < 70000)
+			sb.append("long string \u00e9\u20ac ");
+		String longString = sb.toString();
+		PluginKeyValueStore store = open();
+		store.putString("long", longString);
+		store.putString("short", "short");
+		store.flush();
+		assertEquals(0, store.countDirty());
+		store.putInt("later", 1);
+		store.close();
+
+		store = open();
+		assertEquals(longString, store.getString("long", null));
+		assertEquals("short", store.getString("short", null));
+		assertEquals(1, store.getInt("later", 0));
+		try {
+			store.putString(longString, "value");
+			fail();
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		assertEquals(0, store.countDirty());
+	}
+
+	public void testTruncatedBatchDiscarded() throws IOException {
+		PluginKeyValueStore store = open();
+		store.putInt("a", 1);
+		store.flush();
+		long length = file.length();
+		store.putInt("b", 2);
+		store.flush();
+		// Simulate a crash while writing the second batch.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(file.length() - 3);
+		raf.close();
+		store.close();
+
+		store = open();
+		assertEquals(1, store.getInt("a", 0));
+		assertFalse(store.containsKey("b"));
+		assertEquals(length, file.length());
+	}
+
+	public void testFailedWriteRetried() throws IOException {
+		PluginKeyValueStore store = open();
+		store.putInt("a", 1);
+		store.flush();
+		// Make the next write fail.
+		File moved = new File(tempDir, "moved.kv");
+		assertTrue(file.renameTo(moved));
+		assertTrue(file.mkdir());
+		store.putInt("b", 2);
+		try {
+			store.flush();
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(1, store.countDirty());
+		assertTrue(file.delete());
+		assertTrue(moved.renameTo(file));
+		store.flush();
+		assertEquals(0, store.countDirty());
+		store.close();
+
+		store = open();
+		assertEquals(1, store.getInt("a", 0));
+		assertEquals(2, store.getInt("b", 0));
+	}
+
+	public void testTornWriteOverwritten() throws IOException {
+		PluginKeyValueStore store = open();
+		store.putInt("a", 1);
+		store.flush();
+		long length = file.length();
+		// What a write which failed part way leaves behind.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(length);
+		raf.write(new byte[] { 0, 0, 1, 0, 42, 42, 42 });
+		raf.close();
+		store.putInt("b", 2);
+		store.flush();
+		store.close();
+
+		store = open();
+		assertEquals(1, store.getInt("a", 0));
+		assertEquals(2, store.getInt("b", 0));
+		store.putInt("c", 3);
+		store.close();
+		store = open();
+		assertEquals(3, store.size());
+	}
+
+	public void testOpenOnce() throws IOException {
+		PluginKeyValueStore store = open();
+		store.putInt("a", 1);
+		try {
+			open();
+			fail("Opened twice");
+		} catch (IOException e) {
+			// Expected
+		}
+		store.close();
+		try {
+			store.putInt("b", 2);
+			fail("Written after close");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+		store = open();
+		assertEquals(1, store.getInt("a", 0));
+	}
+
+	public void testCompact() throws IOException {
+		PluginKeyValueStore store = open();
+		for(int i=0;i<100;i++) {
+			store.putInt("counter", i);
+			store.flush();
+		}
+		long before = file.length();
+		store.compact();
+		assertTrue(file.length() < before);
+		store.close();
+		store = open();
+		assertEquals(99, store.getInt("counter", -1));
+	}
+
+}
@@ -0,0 +1,116 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import junit.framework.TestCase;
+
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+
+public class HotBlockCacheTest extends TestCase {
+
+	private static final int BLOCK_SIZE = 1024;
+
+	private static class TestBlock implements KeyBlock {
+		private final NodeCHK key;
+		private final byte[] data = new byte[BLOCK_SIZE - HotBlockCache.ENTRY_OVERHEAD];
+		TestBlock(NodeCHK key) {
+			this.key = key;
+		}
+		public Key getKey() {
+			return key;
+		}
+		public byte[] getRawHeaders() {
+			return new byte[0];
+		}
+		public byte[] getRawData() {
+			return data;
+		}
+		public byte[] getPubkeyBytes() {
+			return null;
+		}
+		public byte[] getRoutingKey() {
+			return key.getRoutingKey();
+		}
+		public byte[] getFullKey() {
+			return key.getFullKey();
+		}
+	}
+
+	private static NodeCHK key(int i) {
+		byte[] routingKey = new byte[32];
+		routingKey[0] = (byte) i;
+		routingKey[1] = (byte) (i >> 8);
+		routingKey[2] = (byte) (i >> 16);
+		return new NodeCHK(routingKey, Key.ALGO_AES_PCFB_256_SHA256);
+	}
+
+	public void testGetAndRemove() {
+		HotBlockCache cache = new HotBlockCache(100 * BLOCK_SIZE);
+		NodeCHK key = key(1);
+		assertNull(cache.get(key, true, null));
+		TestBlock block = new TestBlock(key);
+		cache.offer(key, block, false, true);
+		BlockMetadata meta = new BlockMetadata();
+		assertSame(block, cache.get(key, false, meta));
+		assertTrue(meta.isOldBlock());
+		cache.remove(key);
+		assertNull(cache.get(key, true, null));
+		assertEquals(0, cache.size());
+	}
+
+	public void testClientCacheBlocksHidden() {
+		HotBlockCache cache = new HotBlockCache(100 * BLOCK_SIZE);
+		NodeCHK key = key(1);
+		TestBlock block = new TestBlock(key);
+		cache.offer(key, block, true, false);
+		assertNull(cache.get(key, false, null));
+		assertSame(block, cache.get(key, true, null));
+		// Once found in a public store anyone can have it
+		cache.offer(key, block, false, false);
+		assertSame(block, cache.get(key, false, null));
+	}
+
+	public void testRemoveClientCacheBlocks() {
+		HotBlockCache cache = new HotBlockCache(100 * BLOCK_SIZE);
+		TestBlock clientBlock = new TestBlock(key(1));
+		TestBlock publicBlock = new TestBlock(key(2));
+		cache.offer(key(1), clientBlock, true, false);
+		cache.offer(key(2), publicBlock, false, false);
+		cache.removeClientCacheBlocks();
+		assertNull(cache.get(key(1), true, null));
+		assertSame(publicBlock, cache.get(key(2), true, null));
+		assertEquals(1, cache.keyCount());
+		assertEquals(BLOCK_SIZE, cache.size());
+	}
+
+	public void testSizeLimit() {
+		HotBlockCache cache = new HotBlockCache(100 * BLOCK_SIZE);
+		for (int i = 0; i < 1000; i++)
+			cache.offer(key(i), new TestBlock(key(i)), false, false);
+		assertTrue(cache.size() <= 100 * BLOCK_SIZE);
+		assertTrue(cache.keyCount() <= 100);
+	}
+
+	/** A scan of keys which are only fetched once doesn't flush popular keys. */
+	public void testScanResistance() {
+		HotBlockCache cache = new HotBlockCache(100 * BLOCK_SIZE);
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 50; i++) {
+				NodeCHK key = key(i);
+				if (cache.get(key, false, null) == null)
+					cache.offer(key, new TestBlock(key), false, false);
+			}
+		}
+		for (int i = 1000; i < 10000; i++)
+			cache.offer(key(i), new TestBlock(key(i)), false, false);
+		int found = 0;
+		for (int i = 0; i < 50; i++)
+			if (cache.get(key(i), false, null) != null)
+				found++;
+		assertTrue("Only " + found + " popular keys left", found >= 45);
+	}
+
+}
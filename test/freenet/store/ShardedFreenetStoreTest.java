@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.io.FileUtil;
+
+public class ShardedFreenetStoreTest extends TestCase {
+
+	private static TestBlock block(int i) {
+		return TestBlock.create(i, 0);
+	}
+
+	private static void put(FreenetStore<TestBlock> store, int i) throws Exception {
+		TestBlock block = block(i);
+		store.put(block, block.data, block.header, false, false);
+	}
+
+	private static boolean fetch(FreenetStore<TestBlock> store, int i) throws Exception {
+		TestBlock block = store.fetch(block(i).routingKey, null, false, false, false, null);
+		if (block == null)
+			return false;
+		assertEquals(block(i), block);
+		return true;
+	}
+
+	private static StoreVolume volume(int i) {
+		return new StoreVolume(new File("volume" + i), new Random(i).nextLong(), StoreVolume.DEFAULT_MAX_CONCURRENT_IO);
+	}
+
+	private static ShardedFreenetStore<TestBlock> makeStore(TestBlock.Callback cb, List<FreenetStore<TestBlock>> shards, int volumes) {
+		List<StoreVolume> list = new ArrayList<StoreVolume>();
+		for (int i = 0; i < volumes; i++)
+			list.add(volume(i));
+		return new ShardedFreenetStore<TestBlock>(cb, shards, list);
+	}
+
+	public void testSpread() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		List<FreenetStore<TestBlock>> shards = new ArrayList<FreenetStore<TestBlock>>();
+		for (int i = 0; i < 3; i++)
+			shards.add(new RAMFreenetStore<TestBlock>(cb, 1000));
+		ShardedFreenetStore<TestBlock> store = makeStore(cb, shards, 3);
+		assertSame(store, cb.getStore());
+		assertEquals(3000, store.getMaxKeys());
+
+		for (int i = 0; i < 600; i++)
+			put(store, i);
+		assertEquals(600, store.keyCount());
+		for (FreenetStore<TestBlock> shard : shards)
+			assertTrue(shard.keyCount() > 100);
+		for (int i = 0; i < 600; i++)
+			assertTrue(fetch(store, i));
+		assertFalse(fetch(store, 600));
+		assertEquals(600, store.hits());
+		assertEquals(1, store.misses());
+		assertEquals(0, store.getRebalancedKeys());
+
+		long ops = 0;
+		for (StoreVolume volume : store.getVolumes()) {
+			assertTrue(volume.getOperations() > 0);
+			ops += volume.getOperations();
+		}
+		assertEquals(1201, ops);
+
+		store.setMaxKeys(300, true);
+		for (FreenetStore<TestBlock> shard : shards) {
+			assertEquals(100, shard.getMaxKeys());
+			assertTrue(shard.keyCount() <= 100);
+		}
+	}
+
+	public void testOwnerDoesNotDependOnOrder() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		List<FreenetStore<TestBlock>> shards = new ArrayList<FreenetStore<TestBlock>>();
+		List<StoreVolume> volumes = new ArrayList<StoreVolume>();
+		for (int i = 0; i < 4; i++) {
+			shards.add(new RAMFreenetStore<TestBlock>(cb, 1000));
+			volumes.add(volume(i));
+		}
+		ShardedFreenetStore<TestBlock> store = new ShardedFreenetStore<TestBlock>(cb, shards, volumes);
+		Collections.reverse(volumes);
+		ShardedFreenetStore<TestBlock> reversed = new ShardedFreenetStore<TestBlock>(cb, shards, volumes);
+		for (int i = 0; i < 100; i++) {
+			byte[] key = block(i).routingKey;
+			int[] rank = store.rank(key);
+			int[] rankReversed = reversed.rank(key);
+			assertEquals(store.getVolumes().get(rank[0]), reversed.getVolumes().get(rankReversed[0]));
+			assertEquals(store.getVolumes().get(rank[1]), reversed.getVolumes().get(rankReversed[1]));
+		}
+	}
+
+	private static ShardedFreenetStore<TestBlock> makeSaltedHashStore(File dir, String name, TestBlock.Callback cb, long keysPerShard) throws Exception {
+		List<FreenetStore<TestBlock>> shards = new ArrayList<FreenetStore<TestBlock>>();
+		for (int i = 0; i < 2; i++) {
+			File volumeDir = new File(dir, "volume" + i);
+			volumeDir.mkdirs();
+			SaltedHashFreenetStore<TestBlock> shard = SaltedHashFreenetStore.<TestBlock>construct(volumeDir, name, cb, new Random(i),
+			        keysPerShard, 16 * 1024, false, SemiOrderedShutdownHook.get(), false, false, null, null);
+			shard.start(null, true);
+			shards.add(shard);
+		}
+		return makeStore(cb, shards, 2);
+	}
+
+	public void testCacheOverflowsIntoStore() throws Exception {
+		File dir = new File("tmp-shardedfreenetstoretest");
+		FileUtil.removeAll(dir);
+		try {
+			TestBlock.Callback storeCallback = new TestBlock.Callback(false);
+			ShardedFreenetStore<TestBlock> store = makeSaltedHashStore(dir, "store", storeCallback, 1000);
+			TestBlock.Callback cacheCallback = new TestBlock.Callback(false);
+			ShardedFreenetStore<TestBlock> cache = makeSaltedHashStore(dir, "cache", cacheCallback, 50);
+			SaltedHashFreenetStore.setAltStore(cache, store);
+
+			// Far more than the cache can hold: the rest overflows into the store.
+			for (int i = 0; i < 500; i++)
+				put(cache, i);
+			for (int i = 0; i < 2; i++)
+				assertTrue(store.getShards().get(i).keyCount() > 0);
+			int inStore = 0;
+			int inCache = 0;
+			for (int i = 0; i < 500; i++) {
+				if (fetch(store, i))
+					inStore++;
+				if (fetch(cache, i))
+					inCache++;
+			}
+			// Each cache shard overflowed into the store shard on the same volume, which owns
+			// the same keys, so they are found without rebalancing.
+			assertTrue(inStore > 300);
+			assertTrue(inStore + inCache > 450);
+			assertEquals(0, store.getRebalancedKeys());
+		} finally {
+			FileUtil.removeAll(dir);
+		}
+	}
+
+	public void testAddVolume() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		List<FreenetStore<TestBlock>> shards = new ArrayList<FreenetStore<TestBlock>>();
+		for (int i = 0; i < 2; i++)
+			shards.add(new RAMFreenetStore<TestBlock>(cb, 1000));
+		ShardedFreenetStore<TestBlock> store = makeStore(cb, shards, 2);
+		for (int i = 0; i < 300; i++)
+			put(store, i);
+
+		RAMFreenetStore<TestBlock> added = new RAMFreenetStore<TestBlock>(cb, 1000);
+		shards.add(added);
+		store = makeStore(cb, shards, 3);
+		// The new volume owns about a third of the keys; they are found on the old owners and moved.
+		for (int i = 0; i < 300; i++)
+			assertTrue(fetch(store, i));
+		long moved = store.getRebalancedKeys();
+		assertTrue(moved > 50 && moved < 150);
+		assertEquals(moved, added.keyCount());
+		for (int i = 0; i < 300; i++)
+			assertTrue(fetch(store, i));
+		assertEquals(moved, store.getRebalancedKeys());
+		assertEquals(600, store.hits());
+	}
+}
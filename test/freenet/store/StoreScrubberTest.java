@@ -0,0 +1,134 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHKBlock;
+import freenet.keys.ClientSSKBlock;
+import freenet.keys.InsertableClientSSK;
+import freenet.keys.KeyVerifyException;
+import freenet.keys.SSKVerifyException;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.compress.Compressor;
+
+public class StoreScrubberTest extends TestCase {
+
+	private static ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size(), Compressor.DEFAULT_COMPRESSORDESCRIPTOR);
+	}
+
+	public void testTrustedReadsAreScrubbed() throws Exception {
+		StoreScrubber scrubber = new StoreScrubber(true, 10);
+		CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 10);
+		store.setScrubber(scrubber);
+
+		ClientCHKBlock block = encodeBlock("test");
+		store.put(block, false);
+		CHKBlock fetched = store.fetch(block.getKey(), false, null);
+		assertEquals(block.getKey(), fetched.getKey());
+		assertEquals(1, scrubber.getTrustedReads());
+
+		scrubber.scrub(10);
+		assertEquals(1, scrubber.getScrubbed());
+		assertEquals(0, scrubber.getFailures());
+		assertTrue(scrubber.trustStores());
+	}
+
+	public void testCorruptBlockStopsTrust() throws Exception {
+		StoreScrubber scrubber = new StoreScrubber(true, 10);
+		CHKStore store = new CHKStore();
+		store.setScrubber(scrubber);
+
+		ClientCHKBlock block = encodeBlock("test");
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		byte[] routingKey = block.getKey().getRoutingKey();
+		// Read back as if from disk: the corruption isn't noticed yet
+		store.construct(data, block.getRawHeaders(), routingKey, null, false, false, null, null);
+
+		scrubber.scrub(10);
+		assertEquals(1, scrubber.getFailures());
+		assertFalse(scrubber.trustStores());
+
+		try {
+			store.construct(data, block.getRawHeaders(), routingKey, null, false, false, null, null);
+			fail("Corrupt block was not verified");
+		} catch (KeyVerifyException e) {
+			// Expected
+		}
+		assertEquals(1, scrubber.getTrustedReads());
+	}
+
+	public void testSampling() throws Exception {
+		StoreScrubber scrubber = new StoreScrubber(true, 10);
+		CHKStore store = new CHKStore();
+		store.setScrubber(scrubber);
+
+		ClientCHKBlock block = encodeBlock("test");
+		byte[] routingKey = block.getKey().getRoutingKey();
+		int reads = StoreScrubber.MAX_QUEUED + 10;
+		for (int i = 0; i < reads; i++)
+			store.construct(block.getRawData(), block.getRawHeaders(), routingKey, null, false, false, null, null);
+		assertEquals(reads, scrubber.getTrustedReads());
+		assertEquals(10, scrubber.getSkipped());
+
+		scrubber.scrub(reads);
+		assertEquals(StoreScrubber.MAX_QUEUED, scrubber.getScrubbed());
+		assertEquals(0, scrubber.getFailures());
+
+		scrubber.setBlocksPerSecond(0);
+		store.construct(block.getRawData(), block.getRawHeaders(), routingKey, null, false, false, null, null);
+		assertEquals(11, scrubber.getSkipped());
+	}
+
+	/** Migration passes no routing key, and the block must be verified however much we trust the store. */
+	public void testMigratedSSKVerified() throws Exception {
+		StoreScrubber scrubber = new StoreScrubber(true, 10);
+		SSKStore store = new SSKStore(null);
+		store.setScrubber(scrubber);
+
+		DummyRandomSource random = new DummyRandomSource(1234);
+		InsertableClientSSK key = InsertableClientSSK.createRandom(random, "test");
+		byte[] data = "test".getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		ClientSSKBlock block = key.encode(bucket, false, false, (short)-1, bucket.size(), random, Compressor.DEFAULT_COMPRESSORDESCRIPTOR);
+		byte[] corrupt = block.getRawData().clone();
+		corrupt[0] ^= 1;
+		byte[] fullKey = block.getKey().getFullKey();
+
+		try {
+			store.construct(corrupt, block.getRawHeaders(), null, fullKey, false, false, null, key.getPubKey());
+			fail("Migrated block was not verified");
+		} catch (SSKVerifyException e) {
+			// Expected
+		}
+		assertEquals(0, scrubber.getTrustedReads());
+		// Read from the store itself: trusted, and checked later.
+		store.construct(corrupt, block.getRawHeaders(), block.getKey().getRoutingKey(), fullKey, false, false, null, key.getPubKey());
+		assertEquals(1, scrubber.getTrustedReads());
+	}
+
+	public void testNoScrubberVerifies() throws Exception {
+		CHKStore store = new CHKStore();
+		ClientCHKBlock block = encodeBlock("test");
+		byte[] data = block.getRawData().clone();
+		data[0] ^= 1;
+		try {
+			store.construct(data, block.getRawHeaders(), block.getKey().getRoutingKey(), null, false, false, null, null);
+			fail("Corrupt block was not verified");
+		} catch (CHKVerifyException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,152 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.crypt.DSAPublicKey;
+import freenet.crypt.SHA256;
+import freenet.keys.KeyVerifyException;
+
+/**
+ * A small block for testing stores without encoding real keys. The header is
+ * the hash of the routing key and the data, so a block read back with the
+ * wrong key or corrupted data fails to verify, like a CHK. Shared by the
+ * store tests.
+ */
+public class TestBlock implements StorableBlock {
+
+	public static final int DATA_LENGTH = 1024;
+	public static final int HEADER_LENGTH = 32;
+
+	public final byte[] routingKey;
+	public final byte[] header;
+	public final byte[] data;
+
+	public TestBlock(byte[] routingKey, byte[] data) {
+		this.routingKey = routingKey;
+		this.data = data;
+		this.header = hash(routingKey, data);
+	}
+
+	/** A block whose key and contents are determined by the id and version. */
+	public static TestBlock create(long id, int version) {
+		Random r = new Random(id);
+		byte[] routingKey = new byte[32];
+		r.nextBytes(routingKey);
+		byte[] data = new byte[DATA_LENGTH];
+		new Random(id * 31 + version).nextBytes(data);
+		return new TestBlock(routingKey, data);
+	}
+
+	public static byte[] hash(byte[] routingKey, byte[] data) {
+		MessageDigest md = SHA256.getMessageDigest();
+		try {
+			md.update(routingKey);
+			md.update(data);
+			return md.digest();
+		} finally {
+			SHA256.returnMessageDigest(md);
+		}
+	}
+
+	public byte[] getRoutingKey() {
+		return routingKey;
+	}
+
+	public byte[] getFullKey() {
+		return routingKey;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof TestBlock))
+			return false;
+		TestBlock block = (TestBlock) o;
+		return Arrays.equals(routingKey, block.routingKey) && Arrays.equals(data, block.data);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(routingKey);
+	}
+
+	public static class Callback extends StoreCallback<TestBlock> {
+
+		private final boolean collisionPossible;
+
+		/** @param collisionPossible True to behave like an SSK store, false like a CHK store. */
+		public Callback(boolean collisionPossible) {
+			this.collisionPossible = collisionPossible;
+		}
+
+		@Override
+		public int dataLength() {
+			return DATA_LENGTH;
+		}
+
+		@Override
+		public int headerLength() {
+			return HEADER_LENGTH;
+		}
+
+		@Override
+		public int routingKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean storeFullKeys() {
+			return false;
+		}
+
+		@Override
+		public boolean constructNeedsKey() {
+			return true;
+		}
+
+		@Override
+		public int fullKeyLength() {
+			return 32;
+		}
+
+		@Override
+		public boolean collisionPossible() {
+			return collisionPossible;
+		}
+
+		@Override
+		public TestBlock construct(byte[] data, byte[] headers, byte[] routingKey, byte[] fullKey, boolean canReadClientCache,
+		        boolean canReadSlashdotCache, BlockMetadata meta, DSAPublicKey knownPubKey) throws KeyVerifyException {
+			if (!Arrays.equals(headers, hash(routingKey, data)))
+				throw new KeyVerifyException("Hash mismatch");
+			return new TestBlock(routingKey, data);
+		}
+
+		@Override
+		public byte[] routingKeyFromFullKey(byte[] keyBuf) {
+			return keyBuf;
+		}
+
+		@Override
+		public byte[] blockData(TestBlock block) {
+			return block.data;
+		}
+
+		@Override
+		public byte[] blockHeaders(TestBlock block) {
+			return block.header;
+		}
+
+		public void put(TestBlock block, boolean overwrite) throws Exception {
+			store.put(block, block.data, block.header, overwrite, false);
+		}
+
+		public TestBlock fetch(TestBlock block) throws Exception {
+			return store.fetch(block.routingKey, block.routingKey, false, false, false, null);
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.logstructured;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.store.KeyCollisionException;
+import freenet.store.TestBlock;
+import freenet.support.io.FileUtil;
+
+public class LogStructuredFreenetStoreTest extends TestCase {
+
+	private File tempDir;
+	private Random random = new Random(1234);
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-logstructuredstoretest");
+		FileUtil.removeAll(tempDir);
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private LogStructuredFreenetStore<TestBlock> open(TestBlock.Callback cb, long maxKeys) throws Exception {
+		return new LogStructuredFreenetStore<TestBlock>(tempDir, "test", cb, random, maxKeys, null);
+	}
+
+	public void testPutFetch() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 1000);
+		for (int i = 0; i < 100; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		for (int i = 0; i < 100; i++)
+			assertEquals(TestBlock.create(i, 0), cb.fetch(TestBlock.create(i, 0)));
+		assertNull(cb.fetch(TestBlock.create(1000, 0)));
+		assertTrue(store.probablyInStore(TestBlock.create(5, 0).routingKey));
+		assertFalse(store.probablyInStore(TestBlock.create(1000, 0).routingKey));
+		assertEquals(100, store.keyCount());
+		assertEquals(100, store.hits());
+		assertEquals(1, store.misses());
+
+		// Storing it again doesn't write anything.
+		cb.put(TestBlock.create(5, 0), false);
+		assertEquals(100, store.writes());
+		store.close();
+	}
+
+	private void checkReopen(boolean withSummaries) throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 10000);
+		// Several segments, the last one partly full
+		for (int i = 0; i < 1000; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		int segments = store.getSegmentCount();
+		assertTrue(segments > 1);
+		store.close();
+
+		if (!withSummaries) {
+			for (File f : new File(tempDir, "test.log").listFiles())
+				if (f.getName().endsWith(".sum"))
+					f.delete();
+		}
+
+		cb = new TestBlock.Callback(false);
+		store = open(cb, 10000);
+		assertEquals(1000, store.keyCount());
+		assertEquals(segments, store.getSegmentCount());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(TestBlock.create(i, 0), cb.fetch(TestBlock.create(i, 0)));
+		// Carry on appending to the last segment
+		for (int i = 1000; i < 1010; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		assertEquals(segments, store.getSegmentCount());
+		assertEquals(TestBlock.create(1005, 0), cb.fetch(TestBlock.create(1005, 0)));
+		store.close();
+	}
+
+	public void testReopenWithSummaries() throws Exception {
+		checkReopen(true);
+	}
+
+	public void testReopenWithoutSummaries() throws Exception {
+		checkReopen(false);
+	}
+
+	public void testCollision() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(true);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 1000);
+		TestBlock v1 = TestBlock.create(1, 1);
+		TestBlock v2 = TestBlock.create(1, 2);
+		cb.put(v1, false);
+		cb.put(v1, false);
+		try {
+			cb.put(v2, false);
+			fail("Should have thrown");
+		} catch (KeyCollisionException e) {
+			// Expected
+		}
+		assertEquals(v1, cb.fetch(v1));
+		cb.put(v2, true);
+		assertEquals(v2, cb.fetch(v1));
+		assertEquals(1, store.keyCount());
+		store.close();
+
+		// The newest version wins on restart too.
+		cb = new TestBlock.Callback(true);
+		store = open(cb, 1000);
+		assertEquals(v2, cb.fetch(v1));
+		store.close();
+	}
+
+	public void testEvictOldest() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 64);
+		for (int i = 0; i < 500; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		// 16 entries per segment: at most 4 sealed segments and the active one
+		assertTrue(store.getSegmentCount() <= 5);
+		assertTrue(store.keyCount() <= 64 + 16);
+		assertTrue(store.getEvictedKeys() > 0);
+		for (int i = 450; i < 500; i++)
+			assertEquals(TestBlock.create(i, 0), cb.fetch(TestBlock.create(i, 0)));
+		assertNull(cb.fetch(TestBlock.create(0, 0)));
+		store.close();
+	}
+
+	public void testResize() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 256);
+		for (int i = 0; i < 256; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		assertEquals(256, store.keyCount());
+
+		store.setMaxKeys(1000, false);
+		assertEquals(1000, store.getMaxKeys());
+		assertEquals(256, store.keyCount());
+
+		store.setMaxKeys(64, true);
+		assertTrue(store.keyCount() <= 64 + 16);
+		assertEquals(TestBlock.create(255, 0), cb.fetch(TestBlock.create(255, 0)));
+		store.close();
+	}
+
+	public void testCompaction() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(true);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 128);
+		for (int i = 0; i < 64; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		// Overwrite most of the keys, leaving the first segments mostly dead
+		for (int i = 0; i < 64; i++)
+			if (overwritten(i))
+				cb.put(TestBlock.create(i, 1), true);
+		int before = store.getSegmentCount();
+
+		store.compact(Long.MAX_VALUE);
+		assertTrue(store.getCompactedSegments() > 0);
+		assertTrue(store.getCopiedKeys() > 0);
+		assertTrue(store.getSegmentCount() < before);
+		assertEquals(64, store.keyCount());
+		for (int i = 0; i < 64; i++)
+			assertEquals(TestBlock.create(i, overwritten(i) ? 1 : 0), cb.fetch(TestBlock.create(i, 0)));
+		store.close();
+
+		cb = new TestBlock.Callback(true);
+		store = open(cb, 128);
+		assertEquals(64, store.keyCount());
+		for (int i = 0; i < 64; i++)
+			assertEquals(TestBlock.create(i, overwritten(i) ? 1 : 0), cb.fetch(TestBlock.create(i, 0)));
+		store.close();
+	}
+
+	private static boolean overwritten(int i) {
+		return i < 48 && i % 16 < 12;
+	}
+
+	public void testCorruptEntry() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		LogStructuredFreenetStore<TestBlock> store = open(cb, 1000);
+		cb.put(TestBlock.create(1, 0), false);
+		RandomAccessFile raf = new RandomAccessFile(new File(new File(tempDir, "test.log"), "0.seg"), "rw");
+		raf.seek(200);
+		raf.write(new byte[16]);
+		raf.close();
+		assertNull(cb.fetch(TestBlock.create(1, 0)));
+		assertEquals(0, store.keyCount());
+		store.close();
+
+		// Stays removed after a restart, whether the segment is loaded from its
+		// summary or rescanned.
+		cb = new TestBlock.Callback(false);
+		store = open(cb, 1000);
+		assertEquals(0, store.keyCount());
+		store.close();
+		new File(new File(tempDir, "test.log"), "0.sum").delete();
+		cb = new TestBlock.Callback(false);
+		store = open(cb, 1000);
+		assertEquals(0, store.keyCount());
+		assertNull(cb.fetch(TestBlock.create(1, 0)));
+		store.close();
+	}
+}
@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.logstructured;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SegmentIndexTest extends TestCase {
+
+	public void testRandomOperations() {
+		// Few distinct keys, so they cluster and deletion has to shift entries back.
+		Random r = new Random(42);
+		SegmentIndex index = new SegmentIndex(0);
+		Map<Long, Long> reference = new HashMap<Long, Long>();
+		for (int i = 0; i < 100000; i++) {
+			long key = r.nextInt(2000) + 1;
+			long value = r.nextInt(1 << 20);
+			switch (r.nextInt(3)) {
+			case 0:
+				Long old = reference.put(key, value);
+				assertEquals(old == null ? -1 : old.longValue(), index.put(key, value));
+				break;
+			case 1:
+				Long expected = reference.get(key);
+				if (expected != null && r.nextBoolean()) {
+					assertTrue(index.remove(key, expected));
+					reference.remove(key);
+				} else {
+					assertFalse(index.remove(key, -2));
+				}
+				break;
+			default:
+				Long current = reference.get(key);
+				assertEquals(current == null ? -1 : current.longValue(), index.get(key));
+			}
+			assertEquals(reference.size(), index.size());
+		}
+		for (Map.Entry<Long, Long> e : reference.entrySet())
+			assertEquals(e.getValue().longValue(), index.get(e.getKey()));
+	}
+
+	public void testReplace() {
+		SegmentIndex index = new SegmentIndex(10);
+		index.put(7, 100);
+		assertFalse(index.replace(7, 99, 200));
+		assertEquals(100, index.get(7));
+		assertTrue(index.replace(7, 100, 200));
+		assertEquals(200, index.get(7));
+		assertFalse(index.replace(8, 100, 200));
+	}
+
+	public void testGrow() {
+		SegmentIndex index = new SegmentIndex(0);
+		long memory = index.memoryUsed();
+		for (long i = 1; i <= 10000; i++)
+			index.put(i * 0x100000001L, i);
+		assertTrue(index.memoryUsed() > memory);
+		for (long i = 1; i <= 10000; i++)
+			assertEquals(i, index.get(i * 0x100000001L));
+	}
+}
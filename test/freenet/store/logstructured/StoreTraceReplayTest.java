@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.logstructured;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.FreenetStore;
+import freenet.store.KeyCollisionException;
+import freenet.store.TestBlock;
+import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.io.FileUtil;
+
+/**
+ * Replays a store trace against the salted hash store and the log-structured
+ * store, checking that every hit returns the block last put for that id. With
+ * -Dbenchmark=true it also replays a bigger trace and prints the time taken and
+ * the hit rate of each.
+ *
+ * A trace is a text file with one operation per line: "P id [version]" to
+ * put a block, "G id" to fetch one. Ids are arbitrary longs; the block
+ * contents are generated from the id and version. Lines starting with # are
+ * ignored. For the benchmark, set test.storeTrace to the file to replay, and
+ * test.storeTraceKeys to the store size in blocks; without them a synthetic
+ * trace with a skewed popularity is used.
+ */
+public class StoreTraceReplayTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final int DEFAULT_KEYS = 2000;
+	private static final int DEFAULT_OPS = 20000;
+	/** Small enough to run with the other unit tests */
+	private static final int CHECK_KEYS = 200;
+	private static final int CHECK_OPS = 4000;
+
+	private File tempDir;
+
+	static final class Op {
+		final boolean put;
+		final long id;
+		final int version;
+
+		Op(boolean put, long id, int version) {
+			this.put = put;
+			this.id = id;
+			this.version = version;
+		}
+	}
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-storetracereplaytest");
+		FileUtil.removeAll(tempDir);
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	static List<Op> readTrace(File file) throws IOException {
+		List<Op> ops = new ArrayList<Op>();
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = br.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] fields = line.split("\\s+");
+				boolean put = fields[0].equalsIgnoreCase("P");
+				if (!put && !fields[0].equalsIgnoreCase("G"))
+					throw new IOException("Bad trace line: " + line);
+				int version = put && fields.length > 2 ? Integer.parseInt(fields[2]) : 0;
+				ops.add(new Op(put, Long.parseLong(fields[1]), version));
+			}
+		} finally {
+			br.close();
+		}
+		return ops;
+	}
+
+	/** Fetches of a few popular keys and many unpopular ones, with a put after each miss, as a node does. */
+	static List<Op> syntheticTrace(int keys, int count, long seed) {
+		Random r = new Random(seed);
+		List<Op> ops = new ArrayList<Op>(count);
+		while (ops.size() < count) {
+			double x = r.nextDouble();
+			long id = (long) (keys * 4 * x * x * x);
+			ops.add(new Op(false, id, 0));
+			ops.add(new Op(true, id, 0));
+		}
+		return ops;
+	}
+
+	/**
+	 * Replay the trace, checking that every hit is the version of the block
+	 * which was put last.
+	 * @return Number of hits
+	 */
+	private long replay(List<Op> ops, TestBlock.Callback cb) throws Exception {
+		HashMap<Long, Integer> versions = new HashMap<Long, Integer>();
+		long hits = 0;
+		for (Op op : ops) {
+			TestBlock block = TestBlock.create(op.id, op.version);
+			if (op.put) {
+				try {
+					cb.put(block, true);
+				} catch (KeyCollisionException e) {
+					// Can't happen with overwrite
+				}
+				versions.put(op.id, op.version);
+			} else {
+				TestBlock found = cb.fetch(block);
+				if (found == null)
+					continue;
+				hits++;
+				Integer version = versions.get(op.id);
+				assertNotNull("Found " + op.id + " which was never put", version);
+				assertEquals("Wrong version of " + op.id, TestBlock.create(op.id, version), found);
+			}
+		}
+		return hits;
+	}
+
+	private SaltedHashFreenetStore<TestBlock> makeSaltStore(TestBlock.Callback cb, int keys) throws IOException {
+		SaltedHashFreenetStore<TestBlock> store = SaltedHashFreenetStore.<TestBlock>construct(new File(tempDir, "salt"), "trace", cb,
+		        new Random(1), keys, 0, false, SemiOrderedShutdownHook.get(), true, true, null, null);
+		store.start(null, true);
+		return store;
+	}
+
+	private LogStructuredFreenetStore<TestBlock> makeLogStore(TestBlock.Callback cb, int keys) throws IOException {
+		return new LogStructuredFreenetStore<TestBlock>(new File(tempDir, "log"), "trace", cb, new Random(1), keys, null);
+	}
+
+	/** Both stores only ever return the latest version of a block. */
+	public void testReplayCorrect() throws Exception {
+		List<Op> ops = syntheticTrace(CHECK_KEYS, CHECK_OPS, 1234);
+		// Overwrite some blocks with new versions.
+		Random r = new Random(4321);
+		for (int i = 0; i < ops.size(); i += 10)
+			ops.add(i, new Op(true, ops.get(i).id, r.nextInt(3) + 1));
+
+		TestBlock.Callback cb = new TestBlock.Callback(true);
+		SaltedHashFreenetStore<TestBlock> saltStore = makeSaltStore(cb, CHECK_KEYS);
+		long saltHits = replay(ops, cb);
+		saltStore.close();
+
+		cb = new TestBlock.Callback(true);
+		LogStructuredFreenetStore<TestBlock> logStore = makeLogStore(cb, CHECK_KEYS);
+		long logHits = replay(ops, cb);
+		logStore.close();
+
+		assertTrue(saltHits > 0);
+		assertTrue(logHits > 0);
+	}
+
+	private void report(String name, List<Op> ops, long hits, long time, FreenetStore<TestBlock> store) {
+		int fetches = 0;
+		for (Op op : ops)
+			if (!op.put)
+				fetches++;
+		System.out.println(name + ": " + ops.size() + " ops in " + time + "ms ("
+		        + (ops.size() * 1000L / Math.max(time, 1)) + " ops/s), hits " + hits + "/" + fetches
+		        + ", keys " + store.keyCount());
+	}
+
+	public void testReplay() throws Exception {
+		if (!BENCHMARK)
+			return;
+		List<Op> ops;
+		String traceFile = System.getProperty("test.storeTrace");
+		int keys = Integer.getInteger("test.storeTraceKeys", DEFAULT_KEYS);
+		if (traceFile != null)
+			ops = readTrace(new File(traceFile));
+		else
+			ops = syntheticTrace(keys, DEFAULT_OPS, 5678);
+
+		TestBlock.Callback cb = new TestBlock.Callback(true);
+		SaltedHashFreenetStore<TestBlock> saltStore = makeSaltStore(cb, keys);
+		long start = System.currentTimeMillis();
+		long saltHits = replay(ops, cb);
+		long saltTime = System.currentTimeMillis() - start;
+		report("salt-hash", ops, saltHits, saltTime, saltStore);
+		saltStore.close();
+
+		cb = new TestBlock.Callback(true);
+		LogStructuredFreenetStore<TestBlock> logStore = makeLogStore(cb, keys);
+		start = System.currentTimeMillis();
+		long logHits = replay(ops, cb);
+		long logTime = System.currentTimeMillis() - start;
+		report("log-structured", ops, logHits, logTime, logStore);
+		System.out.println("log-structured: " + logStore.getSegmentCount() + " segments, evicted " + logStore.getEvictedKeys()
+		        + " keys, index " + logStore.getIndexMemory() + " bytes");
+		logStore.close();
+	}
+}
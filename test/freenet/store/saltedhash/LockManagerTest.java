@@ -0,0 +1,92 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import junit.framework.TestCase;
+
+public class LockManagerTest extends TestCase {
+
+	public void testStripesSizedToStore() {
+		assertEquals(LockManager.MIN_STRIPES, new LockManager(1000).getStripes());
+		assertEquals(LockManager.MAX_STRIPES, new LockManager(Long.MAX_VALUE).getStripes());
+	}
+
+	public void testDuplicateOffsets() {
+		LockManager lm = new LockManager(1000);
+		int stripes = lm.getStripes();
+		// Same offset twice, and two offsets on the same stripe
+		int[] locks = lm.lockEntries(new long[] { 5, 5, 5 + stripes, 3 });
+		assertNotNull(locks);
+		assertEquals(2, locks.length);
+		assertEquals(3, locks[0]);
+		assertEquals(5, locks[1]);
+		lm.unlock(locks);
+		assertEquals(2, lm.getAcquired());
+		assertEquals(0, lm.getContended());
+	}
+
+	public void testRangeWraps() {
+		LockManager lm = new LockManager(1000);
+		int stripes = lm.getStripes();
+		int[] locks = lm.lockRange(stripes - 2, 4);
+		assertEquals(4, locks.length);
+		assertEquals(0, locks[0]);
+		assertEquals(stripes - 1, locks[3]);
+		lm.unlock(locks);
+		// A range longer than the number of stripes takes them all once
+		locks = lm.lockRange(0, stripes * 2);
+		assertEquals(stripes, locks.length);
+		lm.unlock(locks);
+	}
+
+	public void testContention() throws InterruptedException {
+		final LockManager lm = new LockManager(1000);
+		int[] locks = lm.lockEntries(new long[] { 7 });
+		Thread t = new Thread() {
+			public void run() {
+				lm.unlock(lm.lockEntries(new long[] { 7 }));
+			}
+		};
+		t.start();
+		while (lm.getContended() == 0)
+			Thread.sleep(10);
+		lm.unlock(locks);
+		t.join();
+		assertEquals(1, lm.getContended());
+		assertEquals(2, lm.getAcquired());
+	}
+
+	public void testResize() throws InterruptedException {
+		final LockManager lm = new LockManager(1000);
+		assertTrue(lm.resize(1000));
+		assertEquals(LockManager.MIN_STRIPES, lm.getStripes());
+		int[] locks = lm.lockEntries(new long[] { 7 });
+		Thread resizer = new Thread() {
+			public void run() {
+				lm.resize(Long.MAX_VALUE);
+			}
+		};
+		resizer.start();
+		Thread.sleep(100);
+		// Waits until nobody holds a stripe.
+		assertEquals(LockManager.MIN_STRIPES, lm.getStripes());
+		lm.unlock(locks);
+		resizer.join();
+		assertEquals(LockManager.MAX_STRIPES, lm.getStripes());
+		// Offsets are spread over the new stripes
+		locks = lm.lockEntries(new long[] { 7 + LockManager.MIN_STRIPES });
+		assertEquals(7 + LockManager.MIN_STRIPES, locks[0]);
+		lm.unlock(locks);
+		// Never shrinks
+		assertTrue(lm.resize(1000));
+		assertEquals(LockManager.MAX_STRIPES, lm.getStripes());
+	}
+
+	public void testShutdown() {
+		LockManager lm = new LockManager(1000);
+		lm.shutdown();
+		assertNull(lm.lockEntries(new long[] { 1 }));
+	}
+
+}
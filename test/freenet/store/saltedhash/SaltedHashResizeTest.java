@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.File;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.node.SemiOrderedShutdownHook;
+import freenet.store.TestBlock;
+import freenet.support.io.FileUtil;
+
+public class SaltedHashResizeTest extends TestCase {
+
+	private File tempDir;
+
+	@Override
+	protected void setUp() {
+		tempDir = new File("tmp-saltedhashresizetest");
+		FileUtil.removeAll(tempDir);
+		tempDir.mkdir();
+	}
+
+	@Override
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private SaltedHashFreenetStore<TestBlock> open(TestBlock.Callback cb, long maxKeys) throws Exception {
+		SaltedHashFreenetStore<TestBlock> store = SaltedHashFreenetStore.<TestBlock>construct(tempDir, "test", cb, new Random(1),
+		        maxKeys, 64 * 1024, false, SemiOrderedShutdownHook.get(), false, false, null, null);
+		store.start(null, true);
+		return store;
+	}
+
+	private static int countFound(TestBlock.Callback cb, int blocks) throws Exception {
+		int found = 0;
+		for (int i = 0; i < blocks; i++) {
+			TestBlock block = cb.fetch(TestBlock.create(i, 0));
+			if (block != null) {
+				assertEquals(TestBlock.create(i, 0), block);
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private static int fill(TestBlock.Callback cb, int blocks) throws Exception {
+		for (int i = 0; i < blocks; i++)
+			cb.put(TestBlock.create(i, 0), false);
+		return countFound(cb, blocks);
+	}
+
+	public void testGrow() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		SaltedHashFreenetStore<TestBlock> store = open(cb, 1000);
+		int stored = fill(cb, 500);
+
+		store.setMaxKeys(3000, false);
+		// Both layouts are read while the resize is pending.
+		assertEquals(stored, countFound(cb, 500));
+		store.runCleaner(false);
+		assertEquals(-1.0, store.getMaintenanceProgress());
+		assertEquals(0, store.getCleanerProgress());
+		assertEquals(stored, countFound(cb, 500));
+		assertEquals(3000, store.getMaxKeys());
+		store.close();
+	}
+
+	public void testResumeAfterRestart() throws Exception {
+		TestBlock.Callback cb = new TestBlock.Callback(false);
+		SaltedHashFreenetStore<TestBlock> store = open(cb, 4096);
+		int stored = fill(cb, 2000);
+		store.setMaxKeys(8192, false);
+
+		// A quarter of the 32 batches of 128 entries in the old layout, then restart.
+		store.runCleaner(false, 8);
+		assertEquals(8 * 128, store.getCleanerProgress());
+		store.close();
+		assertTrue(new File(tempDir, "test.bbloom.fork").exists());
+
+		cb = new TestBlock.Callback(false);
+		SaltedHashFreenetStore<TestBlock> reopened = open(cb, 8192);
+		assertEquals(8 * 128, reopened.getCleanerProgress());
+		// Entries being moved when the store was closed may be lost, at most one batch.
+		int found = countFound(cb, 2000);
+		assertTrue(found + 128 >= stored);
+		reopened.runCleaner(false);
+		assertEquals(0, reopened.getCleanerProgress());
+		assertFalse(new File(tempDir, "test.bbloom.fork").exists());
+		assertEquals(found, countFound(cb, 2000));
+		reopened.close();
+	}
+}
@@ -9,6 +9,8 @@ import java.util.Set;
 import junit.framework.TestCase;
 
 public class BloomFilterTest extends TestCase {
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
 	private static final int FILTER_SIZE = 4 * 1024; // MUST be > PASS,
 	private static final int PASS = 2048;
 	private static final int PASS_REMOVE = 4096;
@@ -149,4 +151,144 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testBlockedCountingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createBlockedFilter(FILTER_SIZE, K, true);
+		_testFilterPositive(filter);
+	}
+
+	public void testBlockedBinaryFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createBlockedFilter(FILTER_SIZE, K, false);
+		_testFilterPositive(filter);
+	}
+
+	public void testBlockedCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = BloomFilter.createBlockedFilter(FILTER_SIZE, K, true);
+		byte[] a = new byte[32];
+		byte[] b = new byte[32];
+		rand.nextBytes(a);
+		rand.nextBytes(b);
+		filter.addKey(a);
+		filter.addKey(b);
+		filter.removeKey(b);
+		assertTrue(filter.checkFilter(a));
+		assertFalse(filter.checkFilter(b));
+	}
+
+	private static final int BIG_FILTER_SIZE = 1024 * 1024;
+	private static final int BIG_PASS = 64 * 1024;
+
+	/**
+	 * The expected false positive rate of a blocked filter. The number of keys
+	 * in a block is Poisson distributed, and each block is a classic filter.
+	 */
+	private static double blockedFalsePositiveRate(int keys, int blocks, int slotsPerBlock, int k) {
+		double lambda = (double) keys / blocks;
+		double pKeys = Math.exp(-lambda);
+		double rate = 0;
+		for (int j = 0; j < lambda * 10 + 100; j++) {
+			if (j > 0)
+				pKeys *= lambda / j;
+			rate += pKeys * Math.pow(1 - Math.pow(1 - 1.0 / slotsPerBlock, (double) k * j), k);
+		}
+		return rate;
+	}
+
+	/** Four standard deviations above the expected rate, for this many checks. */
+	private static double upperBound(double expected, int checks) {
+		return expected + 4 * Math.sqrt(expected / checks);
+	}
+
+	/**
+	 * Compare the false positive rate of a blocked filter with a classic filter
+	 * of the same size and k, and with what theory says each should be.
+	 * Blocking costs a little, but not much.
+	 */
+	private void _testBlockedFalsePositive(boolean counting) {
+		int K = BloomFilter.optimialK(BIG_FILTER_SIZE, BIG_PASS);
+		BloomFilter classic = BloomFilter.createFilter(BIG_FILTER_SIZE, K, counting);
+		BloomFilter blocked = BloomFilter.createBlockedFilter(BIG_FILTER_SIZE, K, counting);
+		byte[] b = new byte[32];
+		for (int i = 0; i < BIG_PASS; i++) {
+			rand.nextBytes(b);
+			classic.addKey(b);
+			blocked.addKey(b);
+		}
+		int classicPos = 0;
+		int blockedPos = 0;
+		for (int i = 0; i < PASS_FALSE * 8; i++) {
+			rand.nextBytes(b);
+			if (classic.checkFilter(b))
+				classicPos++;
+			if (blocked.checkFilter(b))
+				blockedPos++;
+		}
+		final int checks = PASS_FALSE * 8;
+		final double q = 1 - Math.pow(1 - 1.0 / BIG_FILTER_SIZE, K * BIG_PASS);
+		final double p = Math.pow(q, K);
+		// A counting filter has 4 slots per byte, a binary filter 8.
+		final int slotsPerBlock = BlockedBloomFilter.BLOCK_BYTES * (counting ? 4 : 8);
+		final double pBlocked = blockedFalsePositiveRate(BIG_PASS, BIG_FILTER_SIZE / slotsPerBlock, slotsPerBlock, K);
+		final double classicRate = (double) classicPos / checks;
+		final double blockedRate = (double) blockedPos / checks;
+		System.out.println("---" + blocked + "---");
+		System.out.println("          k = " + K);
+		System.out.println("          p = " + p);
+		System.out.println("  p blocked = " + pBlocked);
+		System.out.println("    classic = " + classicRate);
+		System.out.println("    blocked = " + blockedRate);
+
+		assertTrue("classic false positive, p=" + p + ", actual=" + classicRate, classicRate <= upperBound(p, checks));
+		assertTrue("blocked false positive, p=" + pBlocked + ", actual=" + blockedRate, blockedRate <= upperBound(pBlocked, checks));
+		// Blocking must not cost more than the load variation explains.
+		assertTrue("blocked filter costs too much: " + pBlocked / p, pBlocked < p * (counting ? 4 : 2.5));
+	}
+
+	public void testBlockedBinaryFilterFalsePositive() {
+		_testBlockedFalsePositive(false);
+	}
+
+	public void testBlockedCountingFilterFalsePositive() {
+		_testBlockedFalsePositive(true);
+	}
+
+	private long timeChecks(BloomFilter filter, byte[][] keys, int rounds) {
+		long start = System.currentTimeMillis();
+		int found = 0;
+		for (int r = 0; r < rounds; r++)
+			for (byte[] key : keys)
+				if (filter.checkFilter(key))
+					found++;
+		long end = System.currentTimeMillis();
+		assertTrue(found >= 0);
+		return end - start;
+	}
+
+	/** Not a precise benchmark, but shows the difference. */
+	public void testBlockedFilterSpeed() {
+		if (!BENCHMARK)
+			return;
+		int K = BloomFilter.optimialK(BIG_FILTER_SIZE, BIG_PASS);
+		BloomFilter classic = BloomFilter.createFilter(BIG_FILTER_SIZE, K, true);
+		BloomFilter blocked = BloomFilter.createBlockedFilter(BIG_FILTER_SIZE, K, true);
+		byte[][] keys = new byte[BIG_PASS][];
+		for (int i = 0; i < BIG_PASS; i++) {
+			keys[i] = new byte[32];
+			rand.nextBytes(keys[i]);
+			if ((i & 1) == 0) {
+				classic.addKey(keys[i]);
+				blocked.addKey(keys[i]);
+			}
+		}
+		// Warm up
+		timeChecks(classic, keys, 1);
+		timeChecks(blocked, keys, 1);
+		long classicTime = timeChecks(classic, keys, 4);
+		long blockedTime = timeChecks(blocked, keys, 4);
+		System.out.println("Classic counting filter: " + (BIG_PASS * 4) + " checks in " + classicTime + "ms");
+		System.out.println("Blocked counting filter: " + (BIG_PASS * 4) + " checks in " + blockedTime + "ms");
+	}
 }
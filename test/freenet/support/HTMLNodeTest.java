@@ -15,6 +15,9 @@
  */
 package freenet.support;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
 import junit.framework.TestCase;
@@ -691,4 +694,46 @@ public class HTMLNodeTest extends TestCase {
 		
 	}
 
+	/**
+	 * Tests generate(OutputStream) method
+	 * comparing the result with the UTF-8 encoding
+	 * of generate(), with non ASCII characters
+	 * and a small buffer.
+	 */
+	public void testGenerate_toOutputStream() throws IOException {
+		HTMLNode methodHTMLNodeDoc = new HTMLNode.HTMLDoctype("html", "-//W3C//DTD XHTML 1.1//EN");
+		HTMLNode body = methodHTMLNodeDoc.addChild(SAMPLE_OKAY_NODE_NAME, SAMPLE_OKAY_ATTRIBUTE_NAME, SAMPLE_ATTRIBUTE_VALUE);
+		for(int i = 0; i < 1000; i++)
+			body.addChild("div", "class", "c" + i, SAMPLE_NODE_CONTENT + " <&> \ud834\udd1e");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		methodHTMLNodeDoc.generate(os);
+		assertTrue(Arrays.equals(methodHTMLNodeDoc.generate().getBytes("UTF-8"), os.toByteArray()));
+	}
+	
+	/**
+	 * Tests that a HTMLNode.PreEncoded generates
+	 * the same output as the subtree it was made
+	 * from, both as a String and to a stream,
+	 * and that it cannot be modified.
+	 */
+	public void testPreEncoded() throws IOException {
+		HTMLNode subtree = new HTMLNode(SAMPLE_OKAY_NODE_NAME, SAMPLE_OKAY_ATTRIBUTE_NAME, SAMPLE_ATTRIBUTE_VALUE, SAMPLE_NODE_CONTENT);
+		HTMLNode.PreEncoded methodPreEncoded = new HTMLNode.PreEncoded(subtree);
+		HTMLNode first = new HTMLNode("div");
+		HTMLNode second = new HTMLNode("div");
+		first.addChild(methodPreEncoded);
+		second.addChild(methodPreEncoded);
+		assertEquals("<div\n>" + subtree.generate() + "</div\n>", first.generate());
+		assertEquals(first.generate(), second.generate());
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		first.generate(os);
+		assertEquals(first.generate(), new String(os.toByteArray(), "UTF-8"));
+		try {
+			methodPreEncoded.addChild("p");
+			fail("Expected Exception Error Not Thrown!");
+		} catch (UnsupportedOperationException e) {
+			assertNotNull(e);
+		}
+	}
+
 }
@@ -0,0 +1,221 @@
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests for LimitedRangeIntByteArrayMap and ReceivedPacketNumbers, the
+ * sliding windows PacketTracker uses for sent and received packets.
+ */
+public class LimitedRangeIntByteArrayMapTest extends TestCase {
+
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final byte[] DATA = new byte[100];
+
+	public void testAddGetRemove() {
+		LimitedRangeIntByteArrayMap map = new LimitedRangeIntByteArrayMap(128);
+		for(int i=1000;i<1100;i++)
+			assertTrue(map.add(i, DATA, null, (short)0));
+		assertEquals(1000, map.minValue());
+		assertEquals(1099, map.maxValue());
+		assertEquals(100, map.size());
+		assertSame(DATA, map.get(1050));
+		assertNull(map.get(999));
+		assertNull(map.get(1100));
+		assertTrue(map.remove(1000));
+		assertFalse(map.remove(1000));
+		assertEquals(1001, map.minValue());
+		assertTrue(map.remove(1099));
+		assertEquals(1098, map.maxValue());
+		LimitedRangeIntByteArrayMapElement element = map.removeAndGet(1050);
+		assertNotNull(element);
+		assertEquals(1050, element.packetNumber);
+		assertNull(map.get(1050));
+		assertEquals(97, map.size());
+	}
+
+	public void testRange() {
+		LimitedRangeIntByteArrayMap map = new LimitedRangeIntByteArrayMap(128);
+		assertTrue(map.add(500, DATA, null, (short)0));
+		assertTrue(map.add(627, DATA, null, (short)0));
+		assertFalse(map.add(628, DATA, null, (short)0));
+		assertTrue(map.wouldBlock(628));
+		map.remove(500);
+		assertFalse(map.wouldBlock(628));
+		assertTrue(map.add(628, DATA, null, (short)0));
+		assertEquals(627, map.minValue());
+	}
+
+	public void testRemoveAll() {
+		LimitedRangeIntByteArrayMap map = new LimitedRangeIntByteArrayMap(128);
+		for(int i=0;i<10;i++)
+			map.add(i, DATA, null, (short)0);
+		int[] acks = new int[] { 3, 0, 42, 9, 3 };
+		LimitedRangeIntByteArrayMapElement[] removed = new LimitedRangeIntByteArrayMapElement[acks.length];
+		assertEquals(3, map.removeAll(acks, removed));
+		assertEquals(3, removed[0].packetNumber);
+		assertNull(removed[2]);
+		assertNull(removed[4]);
+		assertEquals(1, map.minValue());
+		assertEquals(8, map.maxValue());
+		assertEquals(7, map.grabAll().length);
+		assertEquals(-1, map.minValue());
+	}
+
+	public void testResends() {
+		LimitedRangeIntByteArrayMap map = new LimitedRangeIntByteArrayMap(128);
+		for(int i=0;i<10;i++)
+			map.add(i, DATA, null, (short)0);
+		assertFalse(map.hasResendsPending());
+		assertTrue(map.markResend(2));
+		assertTrue(map.markResend(2));
+		assertTrue(map.markResend(5));
+		assertFalse(map.markResend(20));
+		assertTrue(map.hasResendsPending());
+		map.remove(5);
+		int[] count = new int[1];
+		LimitedRangeIntByteArrayMapElement[] output = map.grabResends(System.currentTimeMillis(), 1000, new LimitedRangeIntByteArrayMapElement[1], count);
+		assertEquals(1, count[0]);
+		assertEquals(2, output[0].packetNumber);
+		assertFalse(map.hasResendsPending());
+	}
+
+	public void testReceivedPacketNumbers() {
+		Random random = new Random(12345);
+		ReceivedPacketNumbers received = new ReceivedPacketNumbers(512);
+		assertFalse(received.contains(0));
+		boolean[] got = new boolean[20000];
+		int highest = -1;
+		for(int i=0;i<got.length;i++) {
+			// Mostly in order, with some loss and reordering.
+			int seq = Math.max(0, Math.min(got.length-1, i + random.nextInt(20) - 10));
+			if(random.nextInt(10) == 0) continue;
+			boolean stored = received.got(seq);
+			if(highest - seq > 512)
+				assertFalse(stored);
+			else {
+				assertTrue(stored);
+				got[seq] = true;
+			}
+			highest = Math.max(highest, seq);
+			assertEquals(highest, received.highest());
+			for(int j=Math.max(0, highest-512);j<=highest;j++)
+				assertEquals(got[j], received.contains(j));
+			assertFalse(received.contains(highest+1));
+		}
+		received.clear();
+		assertEquals(-1, received.highest());
+		assertFalse(received.contains(100));
+	}
+
+	public void testReceivedPacketNumbersOutOfWindow() {
+		ReceivedPacketNumbers received = new ReceivedPacketNumbers(512);
+		assertTrue(received.got(1000));
+		// The oldest packet number still in the window.
+		assertFalse(received.contains(488));
+		assertTrue(received.got(488));
+		assertTrue(received.contains(488));
+		assertFalse(received.contains(489));
+		// Too old: not stored, and assumed to have been received already.
+		assertFalse(received.got(487));
+		assertTrue(received.contains(487));
+		assertTrue(received.contains(0));
+		assertEquals(1000, received.highest());
+
+		// Moving the window forward forgets what was received before it.
+		assertTrue(received.got(1300));
+		assertFalse(received.got(788 - 1));
+		assertFalse(received.contains(788));
+		assertTrue(received.got(788));
+		assertTrue(received.contains(1000));
+		assertTrue(received.contains(488));
+
+		// A jump of more than the whole ring clears it.
+		assertTrue(received.got(5000));
+		assertFalse(received.contains(4488));
+		// Not confused with an old packet using the same bit.
+		assertFalse(received.contains(488 + 1024 * 4));
+		assertFalse(received.got(4487));
+		assertTrue(received.contains(4487));
+		assertTrue(received.contains(1300));
+		assertEquals(5000, received.highest());
+
+		try {
+			received.got(-1);
+			fail("Accepted a negative packet number");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Simulate a sender and receiver exchanging packets over a link which
+	 * loses and reorders them, acking in batches and resending lost packets.
+	 */
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		final int PACKETS = 5000000;
+		final int WINDOW = 128;
+		final int LOSS_PERCENT = 2;
+		Random random = new Random(1);
+		for(int run=0;run<5;run++) {
+			LimitedRangeIntByteArrayMap sent = new LimitedRangeIntByteArrayMap(WINDOW);
+			ReceivedPacketNumbers received = new ReceivedPacketNumbers(512);
+			int[] inFlight = new int[WINDOW * 2];
+			int inFlightCount = 0;
+			int[] acks = new int[16];
+			LimitedRangeIntByteArrayMapElement[] removed = new LimitedRangeIntByteArrayMapElement[acks.length];
+			LimitedRangeIntByteArrayMapElement[] resends = new LimitedRangeIntByteArrayMapElement[16];
+			int[] resendCount = new int[1];
+			int next = 0;
+			int acked = 0;
+			int resent = 0;
+			long start = System.nanoTime();
+			while(acked < PACKETS) {
+				// Send as much as the window allows.
+				while(!sent.wouldBlock(next) && inFlightCount < inFlight.length) {
+					sent.add(next, DATA, null, (short)0);
+					if(random.nextInt(100) >= LOSS_PERCENT)
+						inFlight[inFlightCount++] = next;
+					next++;
+				}
+				// Deliver in-flight packets in a random order, acking in batches.
+				int ackCount = 0;
+				while(inFlightCount > 0) {
+					int idx = random.nextInt(inFlightCount);
+					int seq = inFlight[idx];
+					inFlight[idx] = inFlight[--inFlightCount];
+					received.got(seq);
+					acks[ackCount++] = seq;
+					if(ackCount == acks.length) {
+						acked += sent.removeAll(acks, removed);
+						ackCount = 0;
+					}
+				}
+				if(ackCount > 0) {
+					int[] lastAcks = new int[ackCount];
+					System.arraycopy(acks, 0, lastAcks, 0, ackCount);
+					acked += sent.removeAll(lastAcks, removed);
+				}
+				// Anything left unacked below the highest received was lost.
+				int highest = received.highest();
+				for(int seq=sent.minValue();seq != -1 && seq<highest;seq++)
+					if(!received.contains(seq))
+						sent.markResend(seq);
+				resends = sent.grabResends(System.currentTimeMillis(), -1, resends, resendCount);
+				for(int i=0;i<resendCount[0];i++) {
+					int seq = resends[i].packetNumber;
+					sent.add(seq, DATA, null, (short)0);
+					inFlight[inFlightCount++] = seq;
+					resends[i] = null;
+					resent++;
+				}
+			}
+			long end = System.nanoTime();
+			System.out.println("Sent "+next+" packets ("+resent+" resent) and processed "+acked+" acks in "+((end - start) / 1000000)+"ms ("+(acked * 1000000000L / (end - start))+" packets/sec)");
+		}
+	}
+
+}